@@ -26,7 +26,8 @@ import freenet.support.codeshortification.IfNull;
 public final class Configuration extends Persistent {
 
 	/**
-	 * At startup, we defragment the db4o database after this interval has expired.
+	 * At startup, we start compacting the db4o database with {@link DatabaseCompactor} after this
+	 * interval has expired.
 	 * TODO: Code quality: Make configurable.
 	 * 
 	 * ATTENTION: If it ever becomes possible to set this to "infinite", for example in a
@@ -112,6 +113,22 @@ public final class Configuration extends Persistent {
 		setDefaultValues(false);
 	}
 	
+	/**
+	 * Creates a copy of the given Config object which is not stored in any database.<br>
+	 * Used by {@link DatabaseCompactor} for copying it to the compacted database.
+	 */
+	Configuration(WebOfTrust myWebOfTrust, Configuration original) {
+		synchronized(original) {
+			original.activateFully();
+			mDatabaseFormatVersion = original.mDatabaseFormatVersion;
+			mLastDefragDate = (Date)original.mLastDefragDate.clone();
+			mLastVerificationOfScoresDate = (Date)original.mLastVerificationOfScoresDate.clone();
+			mStringParams = new HashMap<String, String>(original.mStringParams);
+			mIntParams = new HashMap<String, Integer>(original.mIntParams);
+		}
+		initializeTransient(myWebOfTrust);
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 */
@@ -239,7 +256,8 @@ public final class Configuration extends Persistent {
 	}
 	
 	/**
-	 * Schedules a defragmentation of the database at the next restart of WoT.
+	 * Schedules a compaction of the database by {@link DatabaseCompactor} at the next restart of
+	 * WoT.
 	 * Not only for maintenance purposes but also for security:
 	 * After {@link WebOfTrust#deleteOwnIdentity(String)}, it is a good idea to close holes in the
 	 * database structures to erase leftover data of the deleted {@link OwnIdentity}. */
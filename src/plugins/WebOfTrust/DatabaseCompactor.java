@@ -0,0 +1,655 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static plugins.WebOfTrust.Configuration.IS_UNIT_TEST;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map.Entry;
+
+import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
+import plugins.WebOfTrust.introduction.IntroductionPuzzle;
+import plugins.WebOfTrust.introduction.IntroductionPuzzleStore;
+import plugins.WebOfTrust.introduction.IntroductionServer;
+import plugins.WebOfTrust.introduction.OwnIntroductionPuzzle;
+import plugins.WebOfTrust.util.CurrentTimeUTC;
+import plugins.WebOfTrust.util.jobs.BackgroundJob;
+import plugins.WebOfTrust.util.jobs.DelayedBackgroundJob;
+import plugins.WebOfTrust.util.jobs.MockDelayedBackgroundJob;
+import plugins.WebOfTrust.util.jobs.TickerDelayedBackgroundJob;
+
+import com.db4o.Db4o;
+import com.db4o.ObjectSet;
+import com.db4o.ext.ExtObjectContainer;
+import com.db4o.query.Query;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Logger;
+import freenet.support.SizeUtil;
+import freenet.support.Ticker;
+import freenet.support.io.FileUtil;
+import freenet.support.io.NativeThread.PriorityLevel;
+
+/**
+ * Compacts the database while WOT is running. Replaces defragmenting it with db4o's
+ * Defragment.defrag() before opening it at startup: On large databases that took many minutes,
+ * during which WOT could not be used at all.<br><br>
+ *
+ * The compaction copies the live objects into the fresh database file
+ * {@link #getCompactedFile(File)}:<br>
+ * - The {@link Identity}s, {@link Trust}s and {@link Score}s are copied from a
+ *   {@link ReadSnapshot}, so no locks of the {@link WebOfTrust} are needed for it. The snapshot is
+ *   obtained by {@link ReadSnapshotPublisher#startRecordingChanges(DatabaseCompactor)}, which also
+ *   causes the changes of all transactions which are committed after it to be passed to
+ *   {@link #recordCommittedChanges(ReadSnapshot, HashMap, HashMap, HashMap)}.<br>
+ * - The recorded changes are replayed onto the compacted database in the background, batched by
+ *   {@link #REPLAY_DELAY}.<br>
+ * - At shutdown of WOT, when all subsystems have been terminated and thus the database cannot
+ *   change anymore, {@link #finish()} replays the remaining changes and copies the
+ *   {@link IntroductionPuzzle}s and the {@link Configuration}. After the database was closed,
+ *   {@link #swapDatabaseFiles()} replaces the database file with the compacted one by renaming.
+ *   <br><br>
+ *
+ * Swapping the files while WOT is running is not possible: The subsystems keep references to the
+ * {@link Persistent} objects of the open database.<br>
+ * The puzzles are not recorded like the other objects: The {@link IntroductionPuzzleStore} only
+ * keeps a bounded amount of them, so copying them at once under the lock of finish() is cheap.
+ * Their solved and inserted state must be kept: Without it the {@link IntroductionServer} would
+ * stop fetching the solutions of the {@link OwnIntroductionPuzzle}s which were inserted already,
+ * and thus lose introductions.<br>
+ * Like {@link WebOfTrust#cloneDatabase(File, File)}, the compaction does not copy the commands
+ * of the {@link IdentityFetcher} and the objects of the {@link SubscriptionManager}, which are
+ * deleted at startup anyway.<br>
+ * If WOT is shut down before the copy has completed, or an error happens, the compacted file is
+ * deleted and the compaction is retried at the next startup. If the node is killed during the
+ * swap, the original database is restored at the next startup, see
+ * {@link WebOfTrust#restoreInterruptedDatabaseSwap(File)}.<br><br>
+ *
+ * Synchronization: {@link #run()} and, after the job was terminated, {@link #finish()} and
+ * {@link #swapDatabaseFiles()} are the only functions which access the compacted database, so it
+ * needs no lock. The queue of recorded changes is guarded by {@link #mPendingChanges}, which is
+ * the innermost lock: It is taken while the caller holds the
+ * {@link Persistent#transactionLock(ExtObjectContainer)} and the lock of the
+ * {@link ReadSnapshotPublisher}. */
+public final class DatabaseCompactor implements BackgroundJob, Runnable, PrioRunnable {
+
+	/** Delay for batching the replay of the changes which were committed after the copy. */
+	public static final long REPLAY_DELAY = IS_UNIT_TEST ? 0 : MINUTES.toMillis(1);
+
+	/** Amount of objects which are copied per transaction of the compacted database. */
+	public static final int COPY_COMMIT_INTERVAL = 1024;
+
+	public static enum Stage {
+		/** {@link DatabaseCompactor#start()} was not called or the job was not executed yet. */
+		Waiting,
+		Copying,
+		/** The copy has completed, changes are replayed until WOT is shut down. */
+		ReplayingChanges,
+		/** {@link DatabaseCompactor#finish()} has succeeded, the files are swapped. */
+		Swapping,
+		Finished,
+		/** WOT was shut down before the copy has completed. */
+		Aborted,
+		/** An error happened, see the log file. */
+		Failed
+	}
+
+	private final WebOfTrust mWebOfTrust;
+
+	private final File mDatabaseFile;
+
+	private final File mCompactedFile;
+
+	/** Runs {@link #run()}. Is a {@link MockDelayedBackgroundJob} for unit tests. */
+	private final DelayedBackgroundJob mJob;
+
+	/** The compacted database. Null until {@link #copy()} and after it was closed. */
+	private ExtObjectContainer mTarget = null;
+
+	/**
+	 * The copies of the {@link Identity}s which are stored in {@link #mTarget}, for being
+	 * referenced by the copies of the {@link Trust}s and {@link Score}s.<br>
+	 * Key = {@link Identity#getID()}. */
+	private final HashMap<String, Identity> mIdentityCopies = new HashMap<String, Identity>();
+
+	/** The changes which were recorded since the last replay, oldest first. */
+	private final ArrayList<CommittedChanges> mPendingChanges = new ArrayList<CommittedChanges>();
+
+	/** The snapshot which contains the newest of the {@link #mPendingChanges}. */
+	private ReadSnapshot mLatestSnapshot = null;
+
+	private final Statistics mStatistics = new Statistics();
+
+	/** The changes of a transaction, as passed to {@link ReadSnapshot}. Values are null for
+	 *  deleted objects. */
+	private static final class CommittedChanges {
+		final HashMap<String, Identity> mIdentities;
+		final HashMap<String, Trust> mTrusts;
+		final HashMap<String, Score> mScores;
+
+		CommittedChanges(HashMap<String, Identity> identities, HashMap<String, Trust> trusts,
+				HashMap<String, Score> scores) {
+			mIdentities = identities;
+			mTrusts = trusts;
+			mScores = scores;
+		}
+	}
+
+	public static final class Statistics implements Cloneable {
+		public Stage mStage = Stage.Waiting;
+
+		/** Amount of objects which {@link Stage#Copying} has to copy. */
+		public int mObjectsToCopy = 0;
+
+		/** Amount of objects which {@link Stage#Copying} has copied so far. */
+		public int mCopiedObjects = 0;
+
+		/** Amount of changed objects which were replayed onto the compacted database. */
+		public int mReplayedChanges = 0;
+
+		/** Size of the database file when the compaction started, in bytes. */
+		public long mOriginalFileSize = 0;
+
+		/** Size of the compacted database file, in bytes. 0 until {@link Stage#Finished}. */
+		public long mCompactedFileSize = 0;
+
+		@Override public Statistics clone() {
+			try {
+				return (Statistics)super.clone();
+			} catch (CloneNotSupportedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	private static transient volatile boolean logMINOR = false;
+	static {
+		Logger.registerClass(DatabaseCompactor.class);
+	}
+
+
+	/** @param ticker May be null for unit tests, they must call {@link #run()} manually then. */
+	DatabaseCompactor(WebOfTrust wot, Ticker ticker) {
+		mWebOfTrust = wot;
+		mDatabaseFile = wot.getDatabaseFile();
+		mCompactedFile = getCompactedFile(mDatabaseFile);
+		mJob = ticker != null
+			? new TickerDelayedBackgroundJob(this, "WOT DatabaseCompactor", REPLAY_DELAY, ticker)
+			: MockDelayedBackgroundJob.DEFAULT;
+	}
+
+	/** The file which the compacted database is written to. */
+	static File getCompactedFile(File databaseFile) {
+		return new File(databaseFile.getAbsolutePath() + ".compacted");
+	}
+
+	/** The file which the database is renamed to while it is replaced by the compacted one. */
+	static File getBackupFile(File databaseFile) {
+		return new File(databaseFile.getAbsolutePath() + ".backup");
+	}
+
+	/** Must be called during startup of WOT, after the database was opened. */
+	void start() {
+		triggerExecution();
+	}
+
+	@Override public void triggerExecution() {
+		mJob.triggerExecution();
+	}
+
+	/**
+	 * Copies the database if it was not copied yet, and replays the changes which were recorded
+	 * since the previous execution. */
+	@Override public void run() {
+		final Stage stage = getStatistics().mStage;
+		if(stage != Stage.Waiting && stage != Stage.ReplayingChanges)
+			return;
+
+		try {
+			if(stage == Stage.Waiting)
+				copy();
+
+			replayChanges();
+		} catch(InterruptedException e) {
+			Logger.normal(this, "run(): Shutdown requested, aborting copy.");
+			// Not restoring the interrupted flag: run() exits now, and TickerDelayedBackgroundJob
+			// does not need it as it has initiated the interruption. The compacted file is deleted
+			// by finish().
+		} catch(RuntimeException e) {
+			Logger.error(this, "run(): Compaction failed, will retry at next startup.", e);
+			abort(Stage.Failed);
+		}
+	}
+
+	private void copy() throws InterruptedException {
+		Logger.normal(this, "Copying database to " + mCompactedFile + " ...");
+
+		deleteCompactedFile();
+		mTarget = Db4o.openFile(mWebOfTrust.getNewDatabaseConfiguration(),
+			mCompactedFile.getAbsolutePath()).ext();
+
+		final ReadSnapshot snapshot
+			= mWebOfTrust.getReadSnapshotPublisher().startRecordingChanges(this);
+
+		final ArrayList<Persistent> objects = new ArrayList<Persistent>(
+			snapshot.getIdentityCount() + snapshot.getTrustCount() + snapshot.getScoreCount());
+		// The Identitys must be stored first as the Trusts and Scores reference them.
+		objects.addAll(snapshot.getAllIdentities());
+		objects.addAll(snapshot.getAllTrusts());
+		objects.addAll(snapshot.getAllScores());
+
+		synchronized(this) {
+			mStatistics.mStage = Stage.Copying;
+			mStatistics.mOriginalFileSize = mDatabaseFile.length();
+			mStatistics.mObjectsToCopy = objects.size();
+		}
+
+		for(int i = 0; i < objects.size(); ++i) {
+			final Persistent object = objects.get(i);
+			if(object instanceof Identity)
+				storeIdentity((Identity)object);
+			else if(object instanceof Trust)
+				storeTrust((Trust)object);
+			else
+				storeScore((Score)object);
+
+			if((i + 1) % COPY_COMMIT_INTERVAL == 0 || i + 1 == objects.size()) {
+				mTarget.commit();
+
+				synchronized(this) {
+					mStatistics.mCopiedObjects = i + 1;
+				}
+
+				if(logMINOR)
+					Logger.minor(this, "copy(): Copied " + (i + 1) + " of " + objects.size());
+
+				if(Thread.interrupted())
+					throw new InterruptedException();
+			}
+		}
+
+		setStage(Stage.ReplayingChanges);
+		Logger.normal(this, "Copying database finished.");
+	}
+
+	/**
+	 * Called by {@link ReadSnapshotPublisher#onCommit()} for each committed transaction after
+	 * {@link #copy()} has obtained its snapshot.<br>
+	 * The maps are the ones which were passed to the new snapshot, so they are never modified.
+	 * @param snapshot The snapshot which contains the changes. */
+	void recordCommittedChanges(ReadSnapshot snapshot, HashMap<String, Identity> identityChanges,
+			HashMap<String, Trust> trustChanges, HashMap<String, Score> scoreChanges) {
+
+		synchronized(mPendingChanges) {
+			mPendingChanges.add(
+				new CommittedChanges(identityChanges, trustChanges, scoreChanges));
+			mLatestSnapshot = snapshot;
+		}
+		mJob.triggerExecution();
+	}
+
+	/** Applies the {@link #mPendingChanges} to the compacted database in a single transaction. */
+	private void replayChanges() {
+		final ArrayList<CommittedChanges> pending;
+		final ReadSnapshot snapshot;
+		synchronized(mPendingChanges) {
+			if(mPendingChanges.isEmpty())
+				return;
+			pending = new ArrayList<CommittedChanges>(mPendingChanges);
+			mPendingChanges.clear();
+			snapshot = mLatestSnapshot;
+		}
+
+		// Merge the changes so each object is written only once. Later changes replace earlier
+		// ones, so the result is the difference to the state before the first of them.
+		final HashMap<String, Identity> identities = new HashMap<String, Identity>();
+		final HashMap<String, Trust> trusts = new HashMap<String, Trust>();
+		final HashMap<String, Score> scores = new HashMap<String, Score>();
+		for(CommittedChanges changes : pending) {
+			identities.putAll(changes.mIdentities);
+			trusts.putAll(changes.mTrusts);
+			scores.putAll(changes.mScores);
+		}
+
+		// The Identitys must be stored first as the Trusts and Scores reference them.
+		final ArrayList<Identity> changedClass = new ArrayList<Identity>();
+		for(Identity identity : identities.values()) {
+			if(identity == null)
+				continue;
+
+			final Identity existing = mIdentityCopies.get(identity.getID());
+			if(existing != null && existing.getClass() != identity.getClass())
+				changedClass.add(identity);
+			else
+				storeIdentity(identity);
+		}
+		for(Identity identity : changedClass)
+			replaceIdentityOfDifferentClass(identity, snapshot);
+
+		for(Entry<String, Trust> change : trusts.entrySet()) {
+			deleteByID(Trust.class, change.getKey());
+			if(change.getValue() != null)
+				storeTrust(change.getValue());
+		}
+
+		for(Entry<String, Score> change : scores.entrySet()) {
+			deleteByID(Score.class, change.getKey());
+			if(change.getValue() != null)
+				storeScore(change.getValue());
+		}
+
+		// The Trusts and Scores of deleted Identitys were deleted by the same transactions.
+		for(Entry<String, Identity> change : identities.entrySet()) {
+			if(change.getValue() == null)
+				deleteIdentity(change.getKey());
+		}
+
+		mTarget.commit();
+
+		synchronized(this) {
+			mStatistics.mReplayedChanges += identities.size() + trusts.size() + scores.size();
+		}
+
+		if(logMINOR) {
+			Logger.minor(this, "replayChanges(): Replayed " + pending.size() + " transactions: "
+				+ identities.size() + " Identitys, " + trusts.size() + " Trusts, "
+				+ scores.size() + " Scores");
+		}
+	}
+
+	/**
+	 * Stores a copy of the given {@link Identity}. If a copy of a previous version of it is
+	 * stored already, it is replaced in place: The stored {@link Trust}s and {@link Score}s
+	 * reference it, so it must keep its db4o ID.
+	 * @param identity Must be of the same class as the stored copy, if any. */
+	private void storeIdentity(final Identity identity) {
+		final Identity copy = ReadSnapshotPublisher.copy(identity);
+		final Identity existing = mIdentityCopies.get(copy.getID());
+
+		if(existing != null) {
+			assert(existing.getClass() == copy.getClass());
+			mTarget.delete(existing.mProperties);
+			mTarget.delete(existing.mContexts);
+			mTarget.bind(copy, mTarget.getID(existing));
+		}
+
+		// Same as Identity.storeWithoutCommit()
+		mTarget.store(copy.mProperties);
+		mTarget.store(copy.mContexts);
+		mTarget.store(copy);
+		mIdentityCopies.put(copy.getID(), copy);
+	}
+
+	/**
+	 * Handles an {@link Identity} having been converted to an {@link OwnIdentity} or vice versa:
+	 * db4o cannot replace a stored object with one of a different class, so the stored copy must
+	 * be deleted. Thus its {@link Trust}s and {@link Score}s must be deleted and copied again.
+	 * @param snapshot Must contain the Identity and its Trusts and Scores. */
+	private void replaceIdentityOfDifferentClass(final Identity identity,
+			final ReadSnapshot snapshot) {
+
+		final String id = identity.getID();
+		final Identity existing = mIdentityCopies.get(id);
+		deleteReferencing(Trust.class, "mTruster", existing);
+		deleteReferencing(Trust.class, "mTrustee", existing);
+		deleteReferencing(Score.class, "mTruster", existing);
+		deleteReferencing(Score.class, "mTrustee", existing);
+		deleteIdentity(id);
+
+		storeIdentity(identity);
+
+		for(Trust trust : snapshot.getGivenTrusts(id))
+			storeTrust(trust);
+		for(Trust trust : snapshot.getReceivedTrusts(id))
+			storeTrust(trust);
+
+		for(Identity other : snapshot.getAllIdentities()) {
+			try {
+				if(identity instanceof OwnIdentity)
+					storeScore(snapshot.getScore(id, other.getID()));
+			} catch(NotInTrustTreeException e) {}
+
+			try {
+				// The Score of an OwnIdentity for itself was stored by the above already.
+				if(other instanceof OwnIdentity && !other.getID().equals(id))
+					storeScore(snapshot.getScore(other.getID(), id));
+			} catch(NotInTrustTreeException e) {}
+		}
+	}
+
+	private void deleteIdentity(final String id) {
+		final Identity existing = mIdentityCopies.remove(id);
+		if(existing == null) {
+			Logger.error(this, "deleteIdentity(): Identity not found: " + id);
+			return;
+		}
+
+		// Same as Identity.deleteWithoutCommit()
+		mTarget.delete(existing.mProperties);
+		mTarget.delete(existing.mContexts);
+		mTarget.delete(existing);
+	}
+
+	private void storeTrust(final Trust trust) {
+		mTarget.store(trust.clone(
+			mIdentityCopies.get(trust.getTruster().getID()),
+			mIdentityCopies.get(trust.getTrustee().getID())));
+	}
+
+	private void storeScore(final Score score) {
+		mTarget.store(score.clone(
+			(OwnIdentity)mIdentityCopies.get(score.getTruster().getID()),
+			mIdentityCopies.get(score.getTrustee().getID())));
+	}
+
+	/**
+	 * Copies all {@link IntroductionPuzzle}s, including the {@link OwnIntroductionPuzzle}s, from
+	 * the original database. Must be called by {@link #finish()} after the replay of the changes,
+	 * so the copies of their inserters and solvers are up to date.<br>
+	 * Expired puzzles are skipped, the {@link IntroductionPuzzleStore} would delete them anyway. */
+	private void copyIntroductionPuzzles() {
+		final Query query = mWebOfTrust.getDatabase().query();
+		query.constrain(IntroductionPuzzle.class);
+		int copied = 0;
+		for(IntroductionPuzzle puzzle
+				: new Persistent.InitializingObjectSet<IntroductionPuzzle>(mWebOfTrust, query)) {
+
+			if(puzzle.getValidUntilDate().before(CurrentTimeUTC.get()))
+				continue;
+
+			final Identity inserter = mIdentityCopies.get(puzzle.getInserter().getID());
+			if(inserter == null) {
+				Logger.error(this, "copyIntroductionPuzzles(): Inserter not found: " + puzzle);
+				continue;
+			}
+
+			// The solver is null if the parsing of the solution failed.
+			Identity solver = null;
+			if(puzzle.wasSolved() && puzzle.getSolver() != null) {
+				solver = mIdentityCopies.get(puzzle.getSolver().getID());
+				if(solver == null) {
+					Logger.error(this, "copyIntroductionPuzzles(): Solver not found: " + puzzle);
+					continue;
+				}
+			}
+
+			mTarget.store(puzzle.clone(inserter, solver));
+			++copied;
+		}
+
+		if(logMINOR)
+			Logger.minor(this, "copyIntroductionPuzzles(): Copied " + copied + " puzzles");
+	}
+
+	private void deleteByID(final Class<? extends Persistent> clazz, final String id) {
+		final Query query = mTarget.query();
+		query.constrain(clazz);
+		query.descend("mID").constrain(id);
+		deleteAll(query.execute());
+	}
+
+	private void deleteReferencing(final Class<? extends Persistent> clazz,
+			final String field, final Identity identity) {
+
+		final Query query = mTarget.query();
+		query.constrain(clazz);
+		query.descend(field).constrain(identity).identity();
+		deleteAll(query.execute());
+	}
+
+	private void deleteAll(final ObjectSet<?> objects) {
+		while(objects.hasNext())
+			mTarget.delete(objects.next());
+	}
+
+	/**
+	 * Must be called by {@link WebOfTrust#terminate()} after {@link #waitForTermination(long)} and
+	 * after all other subsystems have been terminated, while holding the
+	 * {@link Persistent#transactionLock(ExtObjectContainer)}.<br>
+	 * Replays the remaining changes, copies the {@link IntroductionPuzzle}s and the
+	 * {@link Configuration} and closes the compacted database. If the copy has not completed,
+	 * the compacted file is deleted instead. */
+	void finish() {
+		if(getStatistics().mStage != Stage.ReplayingChanges) {
+			if(getStatistics().mStage != Stage.Failed)
+				abort(Stage.Aborted);
+			return;
+		}
+
+		try {
+			mWebOfTrust.getReadSnapshotPublisher().stopRecordingChanges(this);
+			replayChanges();
+			copyIntroductionPuzzles();
+
+			final Configuration config
+				= new Configuration(mWebOfTrust, mWebOfTrust.getConfig());
+			config.updateLastDefragDate();
+			mTarget.store(config);
+			mTarget.commit();
+
+			while(!mTarget.close());
+			mTarget = null;
+
+			setStage(Stage.Swapping);
+		} catch(RuntimeException e) {
+			Logger.error(this, "finish(): Compaction failed, will retry at next startup.", e);
+			abort(Stage.Failed);
+		}
+	}
+
+	/**
+	 * Must be called by {@link WebOfTrust#terminate()} after {@link #finish()}, after the
+	 * database was closed.<br>
+	 * Replaces the database file with the compacted one if finish() has succeeded. */
+	void swapDatabaseFiles() {
+		if(getStatistics().mStage != Stage.Swapping)
+			return;
+
+		final File backupFile = getBackupFile(mDatabaseFile);
+		if(!mDatabaseFile.renameTo(backupFile)) {
+			Logger.error(this, "Unable to rename database file to " + backupFile);
+			abort(Stage.Failed);
+			return;
+		}
+
+		if(!mCompactedFile.renameTo(mDatabaseFile)) {
+			Logger.error(this, "Unable to rename compacted file to " + mDatabaseFile);
+			if(!backupFile.renameTo(mDatabaseFile))
+				Logger.error(this, "Unable to restore backup, will retry at next startup.");
+			abort(Stage.Failed);
+			return;
+		}
+
+		// secureDelete() because the old file may contain leftover data of deleted OwnIdentitys,
+		// see Configuration.scheduleDefragmentationWithoutCommit().
+		try {
+			FileUtil.secureDelete(backupFile);
+		} catch(IOException e) {
+			Logger.error(this, "Unable to delete backup, will retry at next startup.", e);
+		}
+
+		final long oldSize;
+		final long newSize = mDatabaseFile.length();
+		synchronized(this) {
+			oldSize = mStatistics.mOriginalFileSize;
+			mStatistics.mCompactedFileSize = newSize;
+			mStatistics.mStage = Stage.Finished;
+		}
+
+		Logger.normal(this, "Compaction completed. "
+			+ SizeUtil.formatSize(oldSize) + " (" + oldSize + ") -> "
+			+ SizeUtil.formatSize(newSize) + " (" + newSize + ")");
+	}
+
+	/** Stops recording changes, and closes and deletes the compacted database. */
+	private void abort(final Stage stage) {
+		mWebOfTrust.getReadSnapshotPublisher().stopRecordingChanges(this);
+		synchronized(mPendingChanges) {
+			mPendingChanges.clear();
+			mLatestSnapshot = null;
+		}
+
+		if(mTarget != null) {
+			mTarget.rollback();
+			while(!mTarget.close());
+			mTarget = null;
+		}
+		mIdentityCopies.clear();
+
+		try {
+			deleteCompactedFile();
+		} catch(RuntimeException e) {
+			Logger.error(this, "abort(): Unable to delete compacted file.", e);
+		}
+
+		setStage(stage);
+	}
+
+	private void deleteCompactedFile() {
+		if(!mCompactedFile.exists())
+			return;
+
+		try {
+			FileUtil.secureDelete(mCompactedFile);
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private synchronized void setStage(Stage stage) {
+		mStatistics.mStage = stage;
+	}
+
+	@Override public int getPriority() {
+		// MIN_PRIORITY since the compaction only needs to complete until the next shutdown.
+		return PriorityLevel.MIN_PRIORITY.value;
+	}
+
+	/** Must be called before the WOT plugin is terminated. */
+	@Override public void terminate() {
+		mJob.terminate();
+	}
+
+	@Override public boolean isTerminated() {
+		return mJob.isTerminated();
+	}
+
+	/**
+	 * Must be called after {@link #terminate()} was called, and before {@link #finish()}.<br>
+	 * @param timeoutMillis Is ignored, {@link Long#MAX_VALUE} will always be used. */
+	@Override public void waitForTermination(long timeoutMillis) throws InterruptedException {
+		// finish() must not run concurrently with run(), so we force the timeout to be infinite.
+		// run() checks for interruption after each COPY_COMMIT_INTERVAL objects.
+		mJob.waitForTermination(Long.MAX_VALUE);
+	}
+
+	/** Gets a {@link Statistics} object suitable for displaying the progress in the UI. */
+	public synchronized Statistics getStatistics() {
+		return mStatistics.clone();
+	}
+}
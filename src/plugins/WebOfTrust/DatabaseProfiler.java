@@ -0,0 +1,199 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.db4o.query.Query;
+
+import freenet.support.Logger;
+
+/**
+ * Counts and times the database operations of the hot paths of WOT, to provide the data for
+ * tuning {@link Persistent#DEFAULT_ACTIVATION_DEPTH} and the class indexes which
+ * {@link WebOfTrust#getNewDatabaseConfiguration()} enables, see {@link WebOfTrust#CLASS_INDEXES}.
+ * <br><br>
+ *
+ * The operations are recorded by:<br>
+ * - {@link Persistent#checkedActivate(Object, int)} as "activate CLASS depth DEPTH",<br>
+ * - {@link Persistent#checkedStore(Object)} as "store CLASS",<br>
+ * - {@link Persistent#checkedDelete(Object)} as "delete CLASS",<br>
+ * - {@link Persistent.InitializingObjectSet#InitializingObjectSet(WebOfTrustInterface, Query)}
+ *   as "query CALLER" where CALLER is the function which built the {@link Query}, for example
+ *   "query Db4oStorage.getGivenTrusts". Each caller usually only builds a single shape of query,
+ *   so this distinguishes the shapes without having to inspect the db4o Query. Queries which
+ *   are executed without an InitializingObjectSet are not recorded.<br>
+ * The time of a query only includes the execution of it, not the activation of the objects upon
+ * retrieving them from the result. That one is included in the time of the caller, so for
+ * comparing different activation depths, compare the total time of the same workload as well,
+ * for example by "WOTUtil -profile".<br><br>
+ *
+ * The profiler is disabled by default because looking up the caller of a query is expensive.
+ * Enable it by launching the JVM with "-D{@value #ENABLED_PROPERTY}=true", by the FCP message
+ * "GetDatabaseProfile" or by {@link #setEnabled(boolean)}. When disabled, the overhead is a
+ * single volatile read per operation.<br>
+ * The {@link Statistics} are per JVM, not per database, since WOT only runs a single database
+ * outside of unit tests.<br><br>
+ *
+ * Synchronization: The {@link Statistics} are guarded by synchronizing on the class
+ * DatabaseProfiler. The operations are timed without holding the lock.
+ */
+public final class DatabaseProfiler {
+
+	/** Name of the system property which enables the profiler at startup. */
+	public static final String ENABLED_PROPERTY = "WOT_profile_database";
+
+	/**
+	 * Amount of buckets of the latency histogram of each operation, see
+	 * {@link Statistics#getHistogram(int)}. The last bucket contains all latencies of more than
+	 * 2^(HISTOGRAM_BUCKETS - 2) microseconds, which is about 4 seconds. */
+	public static final int HISTOGRAM_BUCKETS = 24;
+
+	private static volatile boolean sEnabled = Boolean.getBoolean(ENABLED_PROPERTY);
+
+	/** Key = {@link Statistics#mOperation}. */
+	private static final HashMap<String, Statistics> sStatistics
+		= new HashMap<String, Statistics>();
+
+	public static final class Statistics implements Cloneable {
+		/** Type and target of the operation, see the JavaDoc of {@link DatabaseProfiler}. */
+		public final String mOperation;
+
+		public long mCount = 0;
+
+		/** Total time which the {@link #mCount} operations took. */
+		public long mTotalNanoseconds = 0;
+
+		/** Time which the slowest of the {@link #mCount} operations took. */
+		public long mMaxNanoseconds = 0;
+
+		/** @see #getHistogram(int) */
+		private long[] mHistogram = new long[HISTOGRAM_BUCKETS];
+
+		Statistics(String operation) {
+			mOperation = operation;
+		}
+
+		void add(long nanoseconds) {
+			++mCount;
+			mTotalNanoseconds += nanoseconds;
+			mMaxNanoseconds = max(mMaxNanoseconds, nanoseconds);
+			++mHistogram[getHistogramBucket(nanoseconds)];
+		}
+
+		public double getAverageMicroseconds() {
+			return mCount != 0 ? (double)mTotalNanoseconds / mCount / 1000 : 0;
+		}
+
+		/**
+		 * @return The amount of operations which took less than
+		 *     {@link #getHistogramBucketLimitMicroseconds(int)} of the given bucket, and not less
+		 *     than the limit of the previous bucket. */
+		public long getHistogram(int bucket) {
+			return mHistogram[bucket];
+		}
+
+		/**
+		 * @return 2^bucket, or {@link Long#MAX_VALUE} for the last bucket.
+		 * @see #getHistogram(int) */
+		public static long getHistogramBucketLimitMicroseconds(int bucket) {
+			return bucket < HISTOGRAM_BUCKETS - 1 ? 1L << bucket : Long.MAX_VALUE;
+		}
+
+		static int getHistogramBucket(long nanoseconds) {
+			final long microseconds = nanoseconds / 1000;
+			// Bucket 0 is [0, 1), bucket N is [2^(N-1), 2^N).
+			return min(Long.SIZE - Long.numberOfLeadingZeros(microseconds), HISTOGRAM_BUCKETS - 1);
+		}
+
+		@Override public Statistics clone() {
+			try {
+				final Statistics clone = (Statistics)super.clone();
+				clone.mHistogram = mHistogram.clone();
+				return clone;
+			} catch(CloneNotSupportedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+
+	private DatabaseProfiler() {}
+
+	public static boolean isEnabled() {
+		return sEnabled;
+	}
+
+	/** Does not {@link #reset()} the {@link Statistics}. */
+	public static void setEnabled(boolean enabled) {
+		if(enabled != sEnabled)
+			Logger.normal(DatabaseProfiler.class, "Database profiler enabled: " + enabled);
+
+		sEnabled = enabled;
+	}
+
+	public static synchronized void reset() {
+		sStatistics.clear();
+	}
+
+	static void onActivate(Object object, int depth, long nanoseconds) {
+		add("activate " + object.getClass().getSimpleName() + " depth " + depth, nanoseconds);
+	}
+
+	static void onStore(Object object, long nanoseconds) {
+		add("store " + object.getClass().getSimpleName(), nanoseconds);
+	}
+
+	static void onDelete(Object object, long nanoseconds) {
+		add("delete " + object.getClass().getSimpleName(), nanoseconds);
+	}
+
+	/** Must only be called by {@link Persistent.InitializingObjectSet}, see getQueryCaller(). */
+	static void onQuery(long nanoseconds) {
+		add("query " + getQueryCaller(), nanoseconds);
+	}
+
+	/**
+	 * @return "Class.function" of the first stack frame outside of this class and of the
+	 *     {@link Persistent.InitializingObjectSet}. */
+	private static String getQueryCaller() {
+		final String profiler = DatabaseProfiler.class.getName();
+		final String objectSet = Persistent.InitializingObjectSet.class.getName();
+
+		for(StackTraceElement frame : new Throwable().getStackTrace()) {
+			final String className = frame.getClassName();
+			if(className.equals(profiler) || className.equals(objectSet))
+				continue;
+
+			// Remove the package but keep the outer class of inner classes.
+			return className.substring(className.lastIndexOf('.') + 1)
+			     + '.' + frame.getMethodName();
+		}
+
+		return "unknown";
+	}
+
+	private static synchronized void add(String operation, long nanoseconds) {
+		Statistics stats = sStatistics.get(operation);
+		if(stats == null) {
+			stats = new Statistics(operation);
+			sStatistics.put(operation, stats);
+		}
+		stats.add(nanoseconds);
+	}
+
+	/** @return Clones of the {@link Statistics}, sorted by their {@link Statistics#mOperation}. */
+	public static synchronized TreeMap<String, Statistics> getStatistics() {
+		final TreeMap<String, Statistics> result = new TreeMap<String, Statistics>();
+		for(Map.Entry<String, Statistics> entry : sStatistics.entrySet())
+			result.put(entry.getKey(), entry.getValue().clone());
+		return result;
+	}
+
+}
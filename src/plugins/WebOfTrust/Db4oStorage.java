@@ -0,0 +1,225 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import plugins.WebOfTrust.Score.ScoreID;
+import plugins.WebOfTrust.Trust.TrustID;
+import plugins.WebOfTrust.exceptions.DuplicateIdentityException;
+import plugins.WebOfTrust.exceptions.DuplicateScoreException;
+import plugins.WebOfTrust.exceptions.DuplicateTrustException;
+import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+
+import com.db4o.ObjectSet;
+import com.db4o.ext.ExtObjectContainer;
+import com.db4o.query.Query;
+
+/**
+ * {@link Storage} implementation upon the db4o database of a {@link WebOfTrust}.<br>
+ * The WebOfTrust uses it for its lookups of {@link Identity}s, {@link Trust}s and {@link Score}s,
+ * so they are the reference implementation which other Storages must behave equal to.<br><br>
+ *
+ * The lists are returned as {@link ObjectSet}s which initialize the transient fields of the
+ * objects, see {@link Persistent.InitializingObjectSet}. They are lazy, so you have to
+ * synchronize on the WebOfTrust when calling the functions and processing the returned lists.
+ * <br><br>
+ *
+ * {@link #commit()} and {@link #rollback()} notify the transaction listeners of the database
+ * such as the {@link ReadSnapshotPublisher}, see
+ * {@link Persistent#checkedCommit(ExtObjectContainer, Object)}.
+ */
+public final class Db4oStorage implements Storage {
+
+	private final WebOfTrustInterface mWebOfTrust;
+
+	private final ExtObjectContainer mDB;
+
+
+	Db4oStorage(WebOfTrustInterface wot, ExtObjectContainer db) {
+		mWebOfTrust = wot;
+		mDB = db;
+	}
+
+	/** @throws DuplicateIdentityException If there is more than one Identity with the ID. */
+	@Override public Identity getIdentityByID(String id) throws UnknownIdentityException {
+		final Query query = mDB.query();
+		query.constrain(Identity.class);
+		query.descend("mID").constrain(id);
+		final ObjectSet<Identity> result
+			= new Persistent.InitializingObjectSet<Identity>(mWebOfTrust, query);
+
+		switch(result.size()) {
+			case 1: return result.next();
+			case 0: throw new UnknownIdentityException(id);
+			default: throw new DuplicateIdentityException(id, result.size());
+		}
+	}
+
+	/** @throws DuplicateIdentityException If there is more than one OwnIdentity with the ID. */
+	@Override public OwnIdentity getOwnIdentityByID(String id) throws UnknownIdentityException {
+		final Query query = mDB.query();
+		query.constrain(OwnIdentity.class);
+		query.descend("mID").constrain(id);
+		final ObjectSet<OwnIdentity> result
+			= new Persistent.InitializingObjectSet<OwnIdentity>(mWebOfTrust, query);
+
+		switch(result.size()) {
+			case 1: return result.next();
+			case 0: throw new UnknownIdentityException(id);
+			default: throw new DuplicateIdentityException(id, result.size());
+		}
+	}
+
+	@Override public ObjectSet<Identity> getAllIdentities() {
+		final Query query = mDB.query();
+		query.constrain(Identity.class);
+		return new Persistent.InitializingObjectSet<Identity>(mWebOfTrust, query);
+	}
+
+	@Override public ObjectSet<OwnIdentity> getAllOwnIdentities() {
+		final Query q = mDB.query();
+		q.constrain(OwnIdentity.class);
+		return new Persistent.InitializingObjectSet<OwnIdentity>(mWebOfTrust, q);
+	}
+
+	/** @throws DuplicateTrustException If there is more than one Trust with the ID. */
+	@Override public Trust getTrust(Identity truster, Identity trustee)
+			throws NotTrustedException {
+
+		return getTrust(new TrustID(truster, trustee).toString());
+	}
+
+	/**
+	 * Gets the {@link Trust} with the given {@link TrustID}.
+	 *
+	 * @throws DuplicateTrustException If there is more than one Trust with the ID.
+	 */
+	@Override public Trust getTrust(String trustID) throws NotTrustedException {
+		final Query query = mDB.query();
+		query.constrain(Trust.class);
+		query.descend("mID").constrain(trustID);
+		final ObjectSet<Trust> result = new Persistent.InitializingObjectSet<Trust>(mWebOfTrust, query);
+
+		switch(result.size()) {
+			case 1:
+				final Trust trust = result.next();
+				assert(trustID.equals(new TrustID(trust.getTruster(), trust.getTrustee()).toString()));
+				return trust;
+			case 0: throw new NotTrustedException(trustID);
+			default: throw new DuplicateTrustException(trustID, result.size());
+		}
+	}
+
+	@Override public ObjectSet<Trust> getGivenTrusts(Identity truster) {
+		final Query query = mDB.query();
+		query.constrain(Trust.class);
+		query.descend("mTruster").constrain(truster).identity();
+		return new Persistent.InitializingObjectSet<Trust>(mWebOfTrust, query);
+	}
+
+	@Override public ObjectSet<Trust> getReceivedTrusts(Identity trustee) {
+		final Query query = mDB.query();
+		query.constrain(Trust.class);
+		query.descend("mTrustee").constrain(trustee).identity();
+		return new Persistent.InitializingObjectSet<Trust>(mWebOfTrust, query);
+	}
+
+	@Override public ObjectSet<Trust> getAllTrusts() {
+		final Query query = mDB.query();
+		query.constrain(Trust.class);
+		return new Persistent.InitializingObjectSet<Trust>(mWebOfTrust, query);
+	}
+
+	/** @throws DuplicateScoreException If there is more than one Score with the ID. */
+	@Override public Score getScore(OwnIdentity truster, Identity trustee)
+			throws NotInTrustTreeException {
+
+		final Query query = mDB.query();
+		query.constrain(Score.class);
+		query.descend("mID").constrain(new ScoreID(truster, trustee).toString());
+		final ObjectSet<Score> result = new Persistent.InitializingObjectSet<Score>(mWebOfTrust, query);
+
+		switch(result.size()) {
+			case 1:
+				final Score score = result.next();
+				assert(score.getTruster() == truster);
+				assert(score.getTrustee() == trustee);
+				return score;
+			case 0: throw new NotInTrustTreeException(truster, trustee);
+			default: throw new DuplicateScoreException(truster, trustee, result.size());
+		}
+	}
+
+	/**
+	 * Gets the {@link Score} with the given {@link ScoreID}.
+	 *
+	 * @throws DuplicateScoreException If there is more than one Score with the ID.
+	 */
+	@Override public Score getScore(String id) throws NotInTrustTreeException {
+		// TODO: Code quality: assert(id is valid)
+
+		final Query query = mDB.query();
+		query.constrain(Score.class);
+		query.descend("mID").constrain(id);
+		final ObjectSet<Score> result = new Persistent.InitializingObjectSet<Score>(mWebOfTrust, query);
+
+		switch(result.size()) {
+			case 1: return result.next();
+			case 0: throw new NotInTrustTreeException(id);
+			default: throw new DuplicateScoreException(id, result.size());
+		}
+	}
+
+	@Override public ObjectSet<Score> getGivenScores(OwnIdentity truster) {
+		final Query query = mDB.query();
+		query.constrain(Score.class);
+		query.descend("mTruster").constrain(truster).identity();
+		return new Persistent.InitializingObjectSet<Score>(mWebOfTrust, query);
+	}
+
+	@Override public ObjectSet<Score> getScores(Identity trustee) {
+		final Query query = mDB.query();
+		query.constrain(Score.class);
+		query.descend("mTrustee").constrain(trustee).identity();
+		return new Persistent.InitializingObjectSet<Score>(mWebOfTrust, query);
+	}
+
+	@Override public ObjectSet<Score> getAllScores() {
+		final Query query = mDB.query();
+		query.constrain(Score.class);
+		return new Persistent.InitializingObjectSet<Score>(mWebOfTrust, query);
+	}
+
+	/**
+	 * Uses {@link Persistent#storeWithoutCommit()} so the integrity checks of the classes apply.
+	 * The object is initialized with the WebOfTrust of this Storage first, so it may be a copy of
+	 * an object of a different Storage, as created by {@link StorageMigration}. */
+	@Override public void storeWithoutCommit(Persistent object) {
+		object.initializeTransient(mWebOfTrust);
+		object.storeWithoutCommit();
+	}
+
+	@Override public void deleteWithoutCommit(Persistent object) {
+		object.initializeTransient(mWebOfTrust);
+		object.deleteWithoutCommit();
+	}
+
+	@Override public void commit() {
+		Persistent.checkedCommit(mDB, this);
+	}
+
+	@Override public void rollback() {
+		Persistent.checkedRollback(mDB, this, null);
+	}
+
+	/**
+	 * Closes the database.<br>
+	 * The {@link WebOfTrust} does not use this, it closes its database on its own at
+	 * {@link WebOfTrust#terminate()} as other subsystems use it as well. */
+	@Override public void close() {
+		mDB.rollback();
+		mDB.close();
+	}
+}
@@ -0,0 +1,212 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.UUID;
+
+import plugins.WebOfTrust.SubscriptionManager.ObjectChangedNotification;
+
+/**
+ * Compact binary encoding of {@link Identity}, {@link OwnIdentity}, {@link Trust} and
+ * {@link Score} objects. Used by {@link ObjectChangedNotification} instead of
+ * {@link Persistent#serialize()}: Java serialization writes the class descriptors of all
+ * objects of the graph, which makes a single serialized {@link Trust} about a kilobyte large, and
+ * deserializing it is expensive as well.<br><br>
+ *
+ * Format:<br>
+ * - byte {@link #FORMAT_VERSION}. Java serialization streams start with the byte 0xAC, so data
+ *   which was stored by {@link Persistent#serialize()} can be told apart from it and is decoded
+ *   with {@link Persistent#deserialize(WebOfTrustInterface, byte[])}.<br>
+ * - The object as written by {@link #encodeObject(DataOutputStream, Persistent, Persistent)}:
+ *   A type byte, followed by a bitmask of the contained fields, followed by the fields in the
+ *   order of their bits. The fields of each class are defined by the class itself, see for
+ *   example {@link Identity#encode(DataOutputStream, Identity)}.<br><br>
+ *
+ * Field-level diffs: An object can be encoded relative to a base object, typically the version
+ * before a change. Then only the fields which differ from the base are contained, the others are
+ * copied from the base when decoding. So the base must be passed to the decoder as well.<br>
+ * The base is ignored if its class differs from the object's class, which is flagged in the type
+ * byte by {@link #FLAG_DIFF}.<br><br>
+ *
+ * ATTENTION: When changing the format, increment {@link #FORMAT_VERSION} and keep the ability to
+ * decode the previous one as long as it can still be stored in a database.
+ */
+final class EventSourceCodec {
+
+	/** First byte of encoded data. Must not be 0xAC, see the class-level JavaDoc. */
+	static final byte FORMAT_VERSION = 1;
+
+	/** First byte of data which was encoded with {@link Persistent#serialize()}. */
+	private static final byte JAVA_SERIALIZATION_MAGIC = (byte)0xAC;
+
+	static final byte TYPE_IDENTITY = 1;
+	static final byte TYPE_OWN_IDENTITY = 2;
+	static final byte TYPE_TRUST = 3;
+	static final byte TYPE_SCORE = 4;
+
+	/** Or-ed to the type byte if the object was encoded relative to a base object. */
+	private static final byte FLAG_DIFF = (byte)0x80;
+
+
+	private EventSourceCodec() {}
+
+	/**
+	 * @param base
+	 *     The object relative to which the given object shall be encoded, or null. See the
+	 *     class-level JavaDoc.
+	 * @return The encoded object, to be decoded by
+	 *     {@link #decode(WebOfTrustInterface, byte[], Persistent)} with the same base.
+	 */
+	static byte[] encode(final Persistent object, final Persistent base) {
+		try {
+			// Most objects are small, so don't waste time with growing the buffer.
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+			final DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(FORMAT_VERSION);
+			encodeObject(out, object, base);
+			out.flush();
+			return bytes.toByteArray();
+		} catch(IOException e) {
+			// ByteArrayOutputStream does not throw.
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** Inverse function of {@link #encode(Persistent, Persistent)}. */
+	static Persistent decode(final WebOfTrustInterface wot, final byte[] data,
+			final Persistent base) {
+
+		if(data[0] == JAVA_SERIALIZATION_MAGIC)
+			return Persistent.deserialize(wot, data);
+
+		if(data[0] != FORMAT_VERSION)
+			throw new IllegalArgumentException("Unknown format version: " + data[0]);
+
+		try {
+			final DataInputStream in
+				= new DataInputStream(new ByteArrayInputStream(data, 1, data.length - 1));
+			final Persistent decoded = decodeObject(wot, in, base);
+			assert(decoded.startupDatabaseIntegrityTestBoolean());
+			return decoded;
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Writes the type byte and the fields of the given object.<br>
+	 * Also used by {@link Trust} and {@link Score} to write their truster and trustee.
+	 */
+	static void encodeObject(final DataOutputStream out, final Persistent object,
+			Persistent base) throws IOException {
+
+		if(base != null && base.getClass() != object.getClass())
+			base = null;
+
+		final byte diffFlag = base != null ? FLAG_DIFF : 0;
+
+		// OwnIdentity is a child class of Identity, so it must be checked first.
+		if(object instanceof OwnIdentity) {
+			out.writeByte(TYPE_OWN_IDENTITY | diffFlag);
+			((OwnIdentity)object).encode(out, (OwnIdentity)base);
+		} else if(object instanceof Identity) {
+			out.writeByte(TYPE_IDENTITY | diffFlag);
+			((Identity)object).encode(out, (Identity)base);
+		} else if(object instanceof Trust) {
+			out.writeByte(TYPE_TRUST | diffFlag);
+			((Trust)object).encode(out, (Trust)base);
+		} else if(object instanceof Score) {
+			out.writeByte(TYPE_SCORE | diffFlag);
+			((Score)object).encode(out, (Score)base);
+		} else
+			throw new UnsupportedOperationException("Unknown type: " + object);
+	}
+
+	/** Inverse function of {@link #encodeObject(DataOutputStream, Persistent, Persistent)}. */
+	static Persistent decodeObject(final WebOfTrustInterface wot, final DataInputStream in,
+			Persistent base) throws IOException {
+
+		final byte typeAndFlags = in.readByte();
+		if((typeAndFlags & FLAG_DIFF) == 0)
+			base = null;
+		else if(base == null)
+			throw new IllegalArgumentException("Data is a diff but no base object was given");
+
+		switch(typeAndFlags & ~FLAG_DIFF) {
+			case TYPE_IDENTITY:
+				return new Identity(wot, in, (Identity)base);
+			case TYPE_OWN_IDENTITY:
+				return new OwnIdentity(wot, in, (OwnIdentity)base);
+			case TYPE_TRUST:
+				return new Trust(wot, in, (Trust)base);
+			case TYPE_SCORE:
+				return new Score(wot, in, (Score)base);
+			default:
+				throw new IllegalArgumentException("Unknown type: " + typeAndFlags);
+		}
+	}
+
+	/**
+	 * @return True if the value of a field differs from the one of the base object, i.e. if the
+	 *     field needs to be written. Both values may be null.
+	 */
+	static boolean differs(final Object value, final Object baseValue) {
+		return value == null ? baseValue != null : !value.equals(baseValue);
+	}
+
+	static void writeNullableString(final DataOutputStream out, final String value)
+			throws IOException {
+
+		out.writeBoolean(value != null);
+		if(value != null)
+			out.writeUTF(value);
+	}
+
+	static String readNullableString(final DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	static void writeNullableDate(final DataOutputStream out, final Date value)
+			throws IOException {
+
+		out.writeBoolean(value != null);
+		if(value != null)
+			out.writeLong(value.getTime());
+	}
+
+	static Date readNullableDate(final DataInputStream in) throws IOException {
+		return in.readBoolean() ? new Date(in.readLong()) : null;
+	}
+
+	/**
+	 * Writes a version ID as stored by {@link EventSource#setVersionID(UUID)}, i.e. a String
+	 * which is a valid {@link UUID}, as 16 bytes instead of 36 characters.
+	 */
+	static void writeNullableVersionID(final DataOutputStream out, final String versionID)
+			throws IOException {
+
+		out.writeBoolean(versionID != null);
+		if(versionID != null) {
+			final UUID uuid = UUID.fromString(versionID);
+			out.writeLong(uuid.getMostSignificantBits());
+			out.writeLong(uuid.getLeastSignificantBits());
+		}
+	}
+
+	static String readNullableVersionID(final DataInputStream in) throws IOException {
+		return in.readBoolean() ? new UUID(in.readLong(), in.readLong()).toString() : null;
+	}
+
+	/** @return A copy of the given Date, which is mutable, or null if it is null. */
+	static Date copy(final Date date) {
+		return date != null ? (Date)date.clone() : null;
+	}
+
+}
@@ -0,0 +1,291 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.lang.Math.max;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import plugins.WebOfTrust.introduction.IntroductionPuzzleStore;
+import plugins.WebOfTrust.util.jobs.BackgroundJob;
+import plugins.WebOfTrust.util.jobs.TickerDelayedBackgroundJob;
+
+import com.db4o.ext.ExtObjectContainer;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+import freenet.support.io.NativeThread.PriorityLevel;
+
+/**
+ * Batches the commits of transactions which do not have to be durable immediately ("group
+ * commit"): Each db4o commit syncs the database file to disk, which is the main cost of small
+ * transactions such as the processing of the commands of the {@link IdentityFetcher} or the
+ * deletion of expired puzzles by the {@link IntroductionPuzzleStore}.<br>
+ * Such transactions call {@link Persistent#checkedCommitDeferred(ExtObjectContainer, Object,
+ * Collection)} instead of {@link Persistent#checkedCommit(ExtObjectContainer, Object)}. Their
+ * changes stay in the db4o transaction and are committed:<br>
+ * - by this class {@link #COMMIT_DELAY_MILLISECONDS} after the first of them,<br>
+ * - or as soon as {@link #MAX_PENDING_TRANSACTIONS} of them have accumulated,<br>
+ * - or along with the next regular commit of any other transaction,<br>
+ * whichever happens first.<br><br>
+ *
+ * ATTENTION: db4o has only a single transaction per database. So the changes of deferred
+ * transactions would not only be lost upon a crash before they are committed, but also if any
+ * other transaction is rolled back before. To prevent the latter, deferred transactions may only
+ * delete objects: The GroupCommitter remembers them, deletes them again after a rollback of the
+ * database, and commits that immediately, see {@link #onRollback()}. Other changes cannot be
+ * re-applied reliably, so transactions which store objects must use the regular
+ * checkedCommit().<br>
+ * A crash can still lose the deletions, so only defer the ones which are redone at startup or by
+ * the next run of the code which did them, and which other transactions do not rely upon.
+ * <br><br>
+ *
+ * The commits of all transactions of the database are counted and timed in the
+ * {@link Statistics}, not only the deferred ones.<br><br>
+ *
+ * Synchronization: All functions except {@link #getStatistics()} and the {@link BackgroundJob}
+ * functions are called while {@link Persistent#transactionLock(ExtObjectContainer)} is held.
+ * The {@link Statistics} are guarded by synchronizing on this object.
+ */
+public final class GroupCommitter implements BackgroundJob, Runnable, PrioRunnable {
+
+	/** Maximal delay between the first deferred transaction and the commit of it. */
+	public static final long COMMIT_DELAY_MILLISECONDS = SECONDS.toMillis(1);
+
+	/** Amount of deferred transactions after which they are committed without further delay. */
+	public static final int MAX_PENDING_TRANSACTIONS = 128;
+
+	private final ExtObjectContainer mDB;
+
+	/** Runs {@link #run()} {@link #COMMIT_DELAY_MILLISECONDS} after the first deferred
+	 *  transaction. */
+	private final TickerDelayedBackgroundJob mJob;
+
+	private final Statistics mStatistics = new Statistics();
+
+	/**
+	 * The objects which the {@link Statistics#mPendingTransactions} have deleted, to be deleted
+	 * again by {@link #onRollback()}. */
+	private final ArrayList<Persistent> mPendingDeletions = new ArrayList<Persistent>();
+
+	public static final class Statistics implements Cloneable {
+		/** Amount of commits of the database, including the ones which were not deferred. */
+		public long mCommits = 0;
+
+		/** Total time which the {@link #mCommits} took. */
+		public long mCommitNanoseconds = 0;
+
+		/** Time which the slowest of the {@link #mCommits} took. */
+		public long mMaxCommitNanoseconds = 0;
+
+		/** Amount of transactions which used
+		 *  {@link Persistent#checkedCommitDeferred(ExtObjectContainer, Object, Collection)}. */
+		public long mDeferredTransactions = 0;
+
+		/** Amount of the {@link #mDeferredTransactions} which are not committed yet. */
+		public int mPendingTransactions = 0;
+
+		/** Amount of commits which the GroupCommitter issued for the
+		 *  {@link #mDeferredTransactions}, including the ones after re-applying them. They are
+		 *  included in {@link #mCommits}. */
+		public long mGroupCommits = 0;
+
+		/** Amount of the {@link #mDeferredTransactions} which were re-applied because a different
+		 *  transaction was rolled back before they were committed. */
+		public long mReappliedTransactions = 0;
+
+		/** Amount of the {@link #mDeferredTransactions} which were discarded because re-applying
+		 *  them after a rollback failed. */
+		public long mLostTransactions = 0;
+
+		public double getAverageCommitMilliseconds() {
+			return mCommits != 0
+				? (double)mCommitNanoseconds / mCommits / (1000 * 1000)
+				: 0;
+		}
+
+		/**
+		 * @return The amount of commits which deferring has avoided: Each committed deferred
+		 *     transaction would have been a commit of its own. */
+		public long getSavedCommits() {
+			return mDeferredTransactions - mPendingTransactions - mLostTransactions - mGroupCommits;
+		}
+
+		@Override public Statistics clone() {
+			try {
+				return (Statistics)super.clone();
+			} catch (CloneNotSupportedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	private static transient volatile boolean logDEBUG = false;
+	static {
+		Logger.registerClass(GroupCommitter.class);
+	}
+
+
+	GroupCommitter(ExtObjectContainer db, Ticker ticker) {
+		mDB = db;
+		mJob = new TickerDelayedBackgroundJob(this, "WOT GroupCommitter",
+			COMMIT_DELAY_MILLISECONDS, ticker);
+	}
+
+	/**
+	 * Causes {@link Persistent#checkedCommitDeferred(ExtObjectContainer, Object, Collection)} to
+	 * defer the commits. Until then, and after {@link #finish()}, it commits immediately. */
+	void start() {
+		Persistent.registerGroupCommitter(mDB, this);
+	}
+
+	/**
+	 * Called by {@link Persistent#checkedCommitDeferred(ExtObjectContainer, Object, Collection)}.
+	 * 
+	 * @param deletedObjects The objects which the transaction has deleted. */
+	void onDeferredCommit(Object loggingObject, Collection<? extends Persistent> deletedObjects) {
+		final int pending;
+		synchronized(this) {
+			++mStatistics.mDeferredTransactions;
+			pending = ++mStatistics.mPendingTransactions;
+			mPendingDeletions.addAll(deletedObjects);
+		}
+
+		if(logDEBUG) Logger.debug(loggingObject, "Deferred commit, pending: " + pending);
+
+		if(pending >= MAX_PENDING_TRANSACTIONS)
+			commitPending();
+		else if(pending == 1)
+			mJob.triggerExecution();
+	}
+
+	/**
+	 * Called by {@link Persistent#checkedCommit(ExtObjectContainer, Object)} after each commit of
+	 * the database, which includes the pending deferred transactions. */
+	synchronized void onCommit(long nanoseconds) {
+		++mStatistics.mCommits;
+		mStatistics.mCommitNanoseconds += nanoseconds;
+		mStatistics.mMaxCommitNanoseconds = max(mStatistics.mMaxCommitNanoseconds, nanoseconds);
+		mStatistics.mPendingTransactions = 0;
+		mPendingDeletions.clear();
+	}
+
+	/**
+	 * Called by {@link Persistent#checkedRollback(ExtObjectContainer, Object, Throwable,
+	 * freenet.support.Logger.LogLevel)} after each rollback of the database, and after the
+	 * {@link Persistent.TransactionListener}s were notified of it.<br>
+	 * The rollback has also undone the deletions of the pending deferred transactions. As the
+	 * transaction is empty now, this deletes the objects again and commits that immediately, so
+	 * they are not lost, and cannot be undone by another rollback. */
+	void onRollback() {
+		final int pending;
+		final ArrayList<Persistent> deletions;
+		synchronized(this) {
+			pending = mStatistics.mPendingTransactions;
+			if(pending == 0)
+				return;
+
+			deletions = new ArrayList<Persistent>(mPendingDeletions);
+			mStatistics.mPendingTransactions = 0;
+			mPendingDeletions.clear();
+		}
+
+		if(logDEBUG) {
+			Logger.debug(this, "Re-applying deferred transactions after rollback: " + pending
+			                 + "; deleted objects: " + deletions.size());
+		}
+
+		try {
+			for(Persistent object : deletions) {
+				// Not Persistent.deleteWithoutCommit(): It would call checkedRollback() upon
+				// failure, which would call this function again.
+				if(mDB.isStored(object))
+					mDB.delete(object);
+			}
+
+			Persistent.checkedCommit(mDB, this);
+		} catch(RuntimeException e) {
+			// Not checkedRollback() for the same reason as above. The TransactionListeners don't
+			// need to be notified since the transaction didn't contain any of their changes.
+			mDB.rollback();
+			synchronized(this) {
+				mStatistics.mLostTransactions += pending;
+			}
+			Logger.error(this, "Re-applying deferred transactions failed, lost: " + pending, e);
+			return;
+		}
+
+		synchronized(this) {
+			mStatistics.mReappliedTransactions += pending;
+			++mStatistics.mGroupCommits;
+		}
+	}
+
+	/** Must be called while {@link Persistent#transactionLock(ExtObjectContainer)} is held. */
+	private void commitPending() {
+		synchronized(this) {
+			if(mStatistics.mPendingTransactions == 0)
+				return;
+			++mStatistics.mGroupCommits;
+		}
+
+		Persistent.checkedCommit(mDB, this);
+	}
+
+	@Override public void run() {
+		synchronized(Persistent.transactionLock(mDB)) {
+			try {
+				commitPending();
+			} catch(RuntimeException e) {
+				Persistent.checkedRollback(mDB, this, e);
+			}
+		}
+	}
+
+	@Override public int getPriority() {
+		// Not LOW_PRIORITY: The longer the transactions are pending, the more of them can be lost
+		// by a rollback or crash.
+		return PriorityLevel.NORM_PRIORITY.value;
+	}
+
+	/** The job does nothing if no deferred transactions are pending. */
+	@Override public void triggerExecution() {
+		mJob.triggerExecution();
+	}
+
+	/**
+	 * Must be called before the WOT plugin is terminated, after the subsystems which defer
+	 * commits were terminated. Deferred commits after this will stay pending until
+	 * {@link #finish()}. */
+	@Override public void terminate() {
+		mJob.terminate();
+	}
+
+	@Override public boolean isTerminated() {
+		return mJob.isTerminated();
+	}
+
+	@Override public void waitForTermination(long timeoutMillis) throws InterruptedException {
+		mJob.waitForTermination(timeoutMillis);
+	}
+
+	/**
+	 * Commits the pending deferred transactions and causes further deferred commits to be
+	 * committed immediately.<br>
+	 * Must be called by {@link WebOfTrust#terminate()} after {@link #waitForTermination(long)},
+	 * while {@link Persistent#transactionLock(ExtObjectContainer)} is held and before the database
+	 * is closed. */
+	void finish() {
+		commitPending();
+		Persistent.unregisterGroupCommitter(mDB, this);
+	}
+
+	/** Gets a {@link Statistics} object suitable for displaying them in the UI. */
+	public synchronized Statistics getStatistics() {
+		return mStatistics.clone();
+	}
+}
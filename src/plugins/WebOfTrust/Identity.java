@@ -3,6 +3,15 @@
  * any later version). See http://www.gnu.org/ for details of the GPL. */
 package plugins.WebOfTrust;
 
+import static plugins.WebOfTrust.EventSourceCodec.copy;
+import static plugins.WebOfTrust.EventSourceCodec.differs;
+import static plugins.WebOfTrust.EventSourceCodec.readNullableString;
+import static plugins.WebOfTrust.EventSourceCodec.readNullableVersionID;
+import static plugins.WebOfTrust.EventSourceCodec.writeNullableString;
+import static plugins.WebOfTrust.EventSourceCodec.writeNullableVersionID;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
@@ -1148,6 +1157,8 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
 		catch(final RuntimeException e) {
 			checkedRollbackAndThrow(e);
 		}
+		
+		ReadSnapshotPublisher.storedWithoutCommit(this);
 	}
 
     /** @see WebOfTrust#upgradeDatabaseFormatVersion5 */
@@ -1224,6 +1235,8 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
 		catch(RuntimeException e) {
 			checkedRollbackAndThrow(e);
 		}
+		
+		ReadSnapshotPublisher.deletedWithoutCommit(this);
 	}
 
 	@Override
@@ -1304,6 +1317,123 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
 		// TODO: Verify context/property names/values 
 	}
 	
+	/**
+	 * Decoding constructor for {@link EventSourceCodec}, inverse function of
+	 * {@link #encode(DataOutputStream, Identity)}.
+	 * 
+	 * @param base The object which was passed to encode(), or null if null was passed.
+	 */
+	Identity(WebOfTrustInterface myWoT, DataInputStream in, Identity base) throws IOException {
+		initializeTransient(myWoT);
+		
+		final int fields = in.readUnsignedShort();
+		
+		mCreationDate = (fields & (1 << 0)) != 0 ? new Date(in.readLong()) : copy(base.mCreationDate);
+		mID = (fields & (1 << 1)) != 0 ? in.readUTF() : base.mID;
+		mRequestURIString = (fields & (1 << 2)) != 0 ? in.readUTF() : base.mRequestURIString;
+		mCurrentEditionFetchState = (fields & (1 << 3)) != 0
+			? FetchState.values()[in.readUnsignedByte()] : base.mCurrentEditionFetchState;
+		mLatestEditionHint = (fields & (1 << 4)) != 0 ? in.readLong() : base.mLatestEditionHint;
+		mLastFetchedDate = (fields & (1 << 5)) != 0 ? new Date(in.readLong()) : copy(base.mLastFetchedDate);
+		mLastChangedDate = (fields & (1 << 6)) != 0 ? new Date(in.readLong()) : copy(base.mLastChangedDate);
+		mNickname = (fields & (1 << 7)) != 0 ? readNullableString(in) : base.mNickname;
+		mDoesPublishTrustList = (fields & (1 << 8)) != 0 ? in.readBoolean() : base.mDoesPublishTrustList;
+		
+		if((fields & (1 << 9)) != 0) {
+			final int amount = in.readUnsignedShort();
+			mContexts = new ArrayList<String>(amount);
+			for(int i = 0; i < amount; ++i)
+				mContexts.add(in.readUTF());
+		} else
+			mContexts = new ArrayList<String>(base.mContexts);
+		
+		if((fields & (1 << 10)) != 0) {
+			final int amount = in.readUnsignedShort();
+			mProperties = new HashMap<String, String>(amount * 2);
+			for(int i = 0; i < amount; ++i)
+				mProperties.put(in.readUTF(), in.readUTF());
+		} else
+			mProperties = new HashMap<String, String>(base.mProperties);
+		
+		mVersionID = (fields & (1 << 11)) != 0 ? readNullableVersionID(in) : base.mVersionID;
+	}
+
+	/**
+	 * Writes the member variables for {@link EventSourceCodec}: A short of which bit N is set if
+	 * field N is contained, followed by the contained fields in the order of their bits.<br>
+	 * If the base is not null, only the fields which differ from it are contained.<br><br>
+	 * 
+	 * ATTENTION: You have to adjust this and {@link #Identity(WebOfTrustInterface,
+	 * DataInputStream, Identity)} when introducing new member variables, and increment
+	 * {@link EventSourceCodec#FORMAT_VERSION}.
+	 */
+	void encode(final DataOutputStream out, final Identity base) throws IOException {
+		activateFully();
+		if(base != null)
+			base.activateFully();
+		
+		int fields = 0;
+		if(base == null || differs(mCreationDate, base.mCreationDate))
+			fields |= 1 << 0;
+		if(base == null || differs(mID, base.mID))
+			fields |= 1 << 1;
+		if(base == null || differs(mRequestURIString, base.mRequestURIString))
+			fields |= 1 << 2;
+		if(base == null || mCurrentEditionFetchState != base.mCurrentEditionFetchState)
+			fields |= 1 << 3;
+		if(base == null || mLatestEditionHint != base.mLatestEditionHint)
+			fields |= 1 << 4;
+		if(base == null || differs(mLastFetchedDate, base.mLastFetchedDate))
+			fields |= 1 << 5;
+		if(base == null || differs(mLastChangedDate, base.mLastChangedDate))
+			fields |= 1 << 6;
+		if(base == null || differs(mNickname, base.mNickname))
+			fields |= 1 << 7;
+		if(base == null || mDoesPublishTrustList != base.mDoesPublishTrustList)
+			fields |= 1 << 8;
+		if(base == null || differs(mContexts, base.mContexts))
+			fields |= 1 << 9;
+		if(base == null || differs(mProperties, base.mProperties))
+			fields |= 1 << 10;
+		if(base == null || differs(mVersionID, base.mVersionID))
+			fields |= 1 << 11;
+		
+		out.writeShort(fields);
+		
+		if((fields & (1 << 0)) != 0)
+			out.writeLong(mCreationDate.getTime());
+		if((fields & (1 << 1)) != 0)
+			out.writeUTF(mID);
+		if((fields & (1 << 2)) != 0)
+			out.writeUTF(mRequestURIString);
+		if((fields & (1 << 3)) != 0)
+			out.writeByte(mCurrentEditionFetchState.ordinal());
+		if((fields & (1 << 4)) != 0)
+			out.writeLong(mLatestEditionHint);
+		if((fields & (1 << 5)) != 0)
+			out.writeLong(mLastFetchedDate.getTime());
+		if((fields & (1 << 6)) != 0)
+			out.writeLong(mLastChangedDate.getTime());
+		if((fields & (1 << 7)) != 0)
+			writeNullableString(out, mNickname);
+		if((fields & (1 << 8)) != 0)
+			out.writeBoolean(mDoesPublishTrustList);
+		if((fields & (1 << 9)) != 0) {
+			out.writeShort(mContexts.size());
+			for(String context : mContexts)
+				out.writeUTF(context);
+		}
+		if((fields & (1 << 10)) != 0) {
+			out.writeShort(mProperties.size());
+			for(Entry<String, String> property : mProperties.entrySet()) {
+				out.writeUTF(property.getKey());
+				out.writeUTF(property.getValue());
+			}
+		}
+		if((fields & (1 << 11)) != 0)
+			writeNullableVersionID(out, mVersionID);
+	}
+
 	/** @see Persistent#serialize() */
 	private void writeObject(ObjectOutputStream stream) throws IOException {
 		activateFully();
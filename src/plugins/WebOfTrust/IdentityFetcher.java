@@ -12,6 +12,7 @@ import static plugins.WebOfTrust.Configuration.IS_UNIT_TEST;
 
 import java.io.InputStream;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
 import java.util.HashMap;
 
 import plugins.WebOfTrust.Identity.FetchState;
@@ -530,10 +531,15 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 			try  {
 				if(logDEBUG) Logger.debug(this, "Processing identity fetcher commands ...");
 				
+				// For Persistent.checkedCommitDeferred()
+				final ArrayList<IdentityFetcherCommand> processedCommands
+					= new ArrayList<IdentityFetcherCommand>();
+				
 				for(IdentityFetcherCommand command : getCommands(AbortFetchCommand.class)) {
 					try {
 						abortFetch(command.getIdentityID());
 						command.deleteWithoutCommit();
+						processedCommands.add(command);
 					} catch(Exception e) {
 						Logger.error(this, "Aborting fetch failed", e);
 					}
@@ -546,6 +552,7 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 					try {
 						fetch(command.getIdentityID());
 						command.deleteWithoutCommit();
+						processedCommands.add(command);
 					} catch (Exception e) {
 						Logger.error(this, "Fetching identity failed", e);
 					}
@@ -558,6 +565,7 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 					try {
 						editionHintUpdated(command.getIdentityID());
 						command.deleteWithoutCommit();
+						processedCommands.add(command);
 					} catch (Exception e) { 
 						Logger.error(this, "Updating edition hint failed", e);
 					}
@@ -573,7 +581,10 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 				
 				if(logDEBUG) Logger.debug(this, "Processing finished.");
 				
-				Persistent.checkedCommit(mDB, this);
+				// Only deletes the processed commands. The GroupCommitter re-applies that if
+				// another transaction is rolled back. If it is lost due to a crash, they are
+				// deleted by start(), so there is no need for an immediate commit.
+				Persistent.checkedCommitDeferred(mDB, this, processedCommands);
 			} catch(RuntimeException e) {
 				Persistent.checkedRollback(mDB, this, e);
 			}
@@ -149,14 +149,7 @@ final class IdentityFile {
 			SimpleFieldSet sfs
 				= new SimpleFieldSet(lris, Integer.MAX_VALUE, 4096, true, false, true);
 			
-			String[] headers = sfs.getHeader();
-			if(headers == null || !headers[0].equals("IdentityFile"))
-				throw new IOException("Unexpected file type: IdentityFile header not found!");
-			
-			if(sfs.getInt("Version") != FILE_FORMAT_VERSION)
-				throw new IOException("Unknown file format version: " + sfs.getInt("Version"));
-			
-			FreenetURI uri = new FreenetURI(sfs.getString("SourceURI"));
+			FreenetURI uri = readURI(sfs);
 			
 			int xmlLength = sfs.getInt("DataLength");
 			assert(xmlLength > 0 && xmlLength <= XMLTransformer.MAX_IDENTITY_XML_BYTE_SIZE);
@@ -182,6 +175,41 @@ final class IdentityFile {
 		}
 	}
 
+	/**
+	 * Same as {@link #read(File)}.{@link #getURI()} but only reads the header of the file, not
+	 * the XML, and does not validate the CRC.<br>
+	 * Used by {@link IdentityFileDiskQueue} for deduplication and prioritization of files which
+	 * it has not read yet. */
+	public static FreenetURI readURI(File source) {
+		FileInputStream fis = null;
+		LineReadingInputStream lris = null;
+		
+		try {
+			fis = new FileInputStream(source);
+			lris = new LineReadingInputStream(fis);
+			
+			return readURI(new SimpleFieldSet(lris, Integer.MAX_VALUE, 4096, true, false, true));
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		} catch(FSParseException e) {
+			throw new RuntimeException(e);
+		} finally {
+			Closer.close(lris);
+			Closer.close(fis);
+		}
+	}
+
+	private static FreenetURI readURI(SimpleFieldSet header) throws IOException, FSParseException {
+		String[] headers = header.getHeader();
+		if(headers == null || !headers[0].equals("IdentityFile"))
+			throw new IOException("Unexpected file type: IdentityFile header not found!");
+		
+		if(header.getInt("Version") != FILE_FORMAT_VERSION)
+			throw new IOException("Unknown file format version: " + header.getInt("Version"));
+		
+		return new FreenetURI(header.getString("SourceURI"));
+	}
+
 	/** @see IdentityFileStream#mURI */
 	public FreenetURI getURI() {
 		return mURI;
@@ -8,7 +8,11 @@ import java.io.File;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.TreeSet;
 
 import plugins.WebOfTrust.Identity.IdentityID;
 import plugins.WebOfTrust.util.jobs.BackgroundJob;
@@ -22,7 +26,13 @@ import freenet.support.Logger.LogLevel;
  * 
  * Deduplicating queue: Only the latest edition of each file is returned; see
  * {@link IdentityFileQueue} for details.<br>
- * The order of files is not preserved.<br>
+ * The order of files is determined by the {@link PriorityProvider}: Files with a higher priority
+ * are returned first, files of equal priority in the order in which they were added.<br><br>
+ * 
+ * To avoid listing the directory at each {@link #poll()}, which would make draining the queue
+ * O(N²), the queued files are tracked in the in-memory index {@link #mQueueIndex}. It is built by
+ * {@link #cleanDirectories()} at startup and then maintained by {@link #add(IdentityFileStream)}
+ * and {@link #poll()}.
  */
 final class IdentityFileDiskQueue implements IdentityFileQueue {
 	/** Subdirectory of WOT data directory where we put our data dirs. */
@@ -59,6 +69,85 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 	/** @see #registerEventHandler(BackgroundJob) */
 	private BackgroundJob mEventHandler;
 
+	/**
+	 * Determines the order of {@link #mQueueIndex}. Null if the files shall be returned in the
+	 * order in which they were added. */
+	private final PriorityProvider mPriorityProvider;
+
+	/**
+	 * All files in {@link #mQueueDir} which {@link #poll()} has not tried to return yet, ordered
+	 * by descending priority and ascending {@link QueuedFile#mSequenceNumber}.<br>
+	 * The first element is the one which {@link #poll()} returns next. */
+	private final TreeSet<QueuedFile> mQueueIndex = new TreeSet<QueuedFile>();
+
+	/**
+	 * Same contents as {@link #mQueueIndex}, with the {@link File#getName()} as key. Used by
+	 * {@link #add(IdentityFileStream)} for finding the file which is to be deduplicated. */
+	private final HashMap<String, QueuedFile> mQueueIndexByFilename
+		= new HashMap<String, QueuedFile>();
+
+	/** @see QueuedFile#mSequenceNumber */
+	private long mNextSequenceNumber = 0;
+
+	/**
+	 * False if the files which {@link #cleanDirectories()} found from the previous session have
+	 * not been assigned a priority by the {@link #mPriorityProvider} yet.<br>
+	 * We do not do that in {@link #cleanDirectories()} already: It is called by the constructor,
+	 * and thus at startup of WOT where the {@link PriorityProvider} might not be usable yet. */
+	private boolean mQueueIndexPrioritized = false;
+
+	/**
+	 * Determines the order in which {@link IdentityFileDiskQueue#poll()} returns files: Files with
+	 * a higher priority are returned first, files with equal priority in the order in which they
+	 * were added.<br>
+	 * The priority of a file is determined once when it is added, or for files from a previous
+	 * session at the first {@link IdentityFileDiskQueue#poll()}.<br><br>
+	 * 
+	 * ATTENTION: Is called while holding the lock of the queue, so implementations must not
+	 * acquire the locks of the WOT database: The queue must never have to wait for the database,
+	 * see {@link IdentityFile}. They should also not do any expensive computations but only read
+	 * a cache which is maintained elsewhere, as the queue is locked while they run. */
+	interface PriorityProvider {
+		/** @param identityID See {@link Identity#getID()}. */
+		int getPriority(String identityID);
+	}
+
+	/** Entry of {@link IdentityFileDiskQueue#mQueueIndex}. */
+	private static final class QueuedFile implements Comparable<QueuedFile> {
+		/** The file in {@link IdentityFileDiskQueue#mQueueDir}. */
+		final File mFile;
+
+		/**
+		 * The {@link IdentityFileStream#mURI} of the file. Null for files from a previous session
+		 * as long as it was not needed yet: Obtaining it requires reading the file. */
+		final FreenetURI mURI;
+
+		/** @see PriorityProvider */
+		final int mPriority;
+
+		/**
+		 * Increases with each file which is added to the index. Used as secondary sort key to
+		 * return files of equal priority in FIFO order. */
+		final long mSequenceNumber;
+
+		QueuedFile(File file, FreenetURI uri, int priority, long sequenceNumber) {
+			mFile = file;
+			mURI = uri;
+			mPriority = priority;
+			mSequenceNumber = sequenceNumber;
+		}
+
+		@Override public int compareTo(QueuedFile o) {
+			if(mPriority != o.mPriority)
+				return mPriority > o.mPriority ? -1 : 1;
+			
+			if(mSequenceNumber != o.mSequenceNumber)
+				return mSequenceNumber < o.mSequenceNumber ? -1 : 1;
+			
+			return 0;
+		}
+	}
+
 
 	/**
 	 * Automatically set to true by {@link Logger} if the log level is set to
@@ -78,7 +167,16 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 	}
 
 
+	/** Returns the files in the order in which they were added. */
 	public IdentityFileDiskQueue(File parentDirectory) {
+		this(parentDirectory, null);
+	}
+
+	/**
+	 * @param priorityProvider Determines the order in which the files are returned. May be null
+	 *     to return them in the order in which they were added. */
+	public IdentityFileDiskQueue(File parentDirectory, PriorityProvider priorityProvider) {
+		mPriorityProvider = priorityProvider;
 		mDataDir = new File(parentDirectory, "IdentityFileQueue");
 		mQueueDir = new File(mDataDir, "Queued");
 		mProcessingDir = new File(mDataDir, "Processing");
@@ -115,15 +213,24 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 		// Queue dir policy:
 		// - Keep all queued files so we don't have to download them again.
 		// - Count them so mStatistics.mQueuedFiles is correct.
-		for(File file : mQueueDir.listFiles()) {
+		// - Add them to the mQueueIndex. Sort them first so the order of the index is
+		//   deterministic, which is useful for debugging.
+		//   Their priority will be determined at the first poll(), see mQueueIndexPrioritized.
+		File[] queuedFiles = mQueueDir.listFiles();
+		Arrays.sort(queuedFiles);
+		for(File file : queuedFiles) {
 			if(!file.getName().endsWith(IdentityFile.FILE_EXTENSION)) {
 				Logger.warning(this, "cleanDirectories(): Unexpected file type: " + file);
 				continue;
 			}
 
+			addToQueueIndex(new QueuedFile(file, null, 0, mNextSequenceNumber++));
 			++mStatistics.mQueuedFiles;
 			++mStatistics.mTotalQueuedFiles;
 		}
+		
+		// If there are no old files there is nothing to prioritize.
+		mQueueIndexPrioritized = mQueueIndex.isEmpty();
 
 		Logger.normal(this, "cleanDirectories(): Old queued files: " + mStatistics.mQueuedFiles);
 
@@ -200,13 +307,19 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 			
 			File filename = getQueueFilename(identityFileStream.mURI);
 			// Delete for deduplication
-			if(filename.exists()) {
-				IdentityFile existingQueuedData = IdentityFile.read(filename);
-				assert(IdentityID.constructAndValidateFromURI(existingQueuedData.getURI())
+			// The index only contains files which have not been poll()ed yet, and poll() moves
+			// files out of the queue dir, so the index contains all existing files.
+			QueuedFile existingQueuedFile = mQueueIndexByFilename.get(filename.getName());
+			assert((existingQueuedFile != null) == filename.exists());
+			if(existingQueuedFile != null) {
+				// Files from a previous session do not have their URI in the index yet.
+				FreenetURI existingQueuedURI = existingQueuedFile.mURI != null
+					? existingQueuedFile.mURI : IdentityFile.readURI(filename);
+				assert(IdentityID.constructAndValidateFromURI(existingQueuedURI)
 					   .equals(IdentityID.constructAndValidateFromURI(identityFileStream.mURI)))
 					: "Filenames should only collide for the same Identity, see getQueueFilename()";
 				
-				long existingQueuedEdition = existingQueuedData.getURI().getEdition();
+				long existingQueuedEdition = existingQueuedURI.getEdition();
 				long givenEdition = identityFileStream.mURI.getEdition();
 				
 				// Make sure that we do not delete a queued new edition in favor of an old one
@@ -233,6 +346,8 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 				} else {
 					// Queued file *is* old, deduplicate it
 					if(filename.delete()) {
+						removeFromQueueIndex(existingQueuedFile);
+						
 						if(logMINOR) {
 							Logger.minor(this, "Deduplicating edition " + existingQueuedEdition
 							                 + " with edition " + givenEdition
@@ -252,6 +367,8 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 			// FIXME: Measure how long this takes. The IdentityFileProcessor contains code which
 			// could be recycled for that.
 			IdentityFile.read(identityFileStream).write(filename);
+			addToQueueIndex(new QueuedFile(filename, identityFileStream.mURI,
+				getPriority(identityFileStream.mURI), mNextSequenceNumber++));
 			
 			++mStatistics.mQueuedFiles;
 			assert(mStatistics.checkConsistency());
@@ -319,22 +436,86 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 		return IdentityID.constructAndValidateFromURI(identityURI).toStringBase32();
 	}
 
-	@Override public synchronized IdentityFileStream poll() {
-		File[] queue = mQueueDir.listFiles();
-		assert(queue.length == mStatistics.mQueuedFiles);
+	/**
+	 * @return The {@link PriorityProvider#getPriority(String)} of the {@link Identity} of the
+	 *     given URI, or 0 if there is no {@link #mPriorityProvider}. */
+	private int getPriority(FreenetURI identityFileURI) {
+		if(mPriorityProvider == null)
+			return 0;
 		
-		if(logDEBUG) {
-			Logger.debug(this, "poll(): DEBUG logging enabled, sorting files alphabetically...");
-			Arrays.sort(queue);
+		return mPriorityProvider.getPriority(
+			IdentityID.constructAndValidateFromURI(identityFileURI).toString());
+	}
+
+	/** Must be called while synchronized(this). */
+	private void addToQueueIndex(QueuedFile file) {
+		boolean added = mQueueIndex.add(file);
+		assert(added);
+		QueuedFile previous = mQueueIndexByFilename.put(file.mFile.getName(), file);
+		assert(previous == null);
+	}
+
+	/** Must be called while synchronized(this). */
+	private void removeFromQueueIndex(QueuedFile file) {
+		boolean removed = mQueueIndex.remove(file);
+		assert(removed);
+		QueuedFile previous = mQueueIndexByFilename.remove(file.mFile.getName());
+		assert(previous == file);
+	}
+
+	/**
+	 * Assigns a priority to the files which {@link #cleanDirectories()} found from the previous
+	 * session, see {@link #mQueueIndexPrioritized}.<br>
+	 * This reads the header of each of those files so it is O(N) disk I/O, but it happens only
+	 * once per session.<br>
+	 * Must be called while synchronized(this). */
+	private void prioritizeQueueIndex() {
+		if(mPriorityProvider != null) {
+			Logger.normal(this, "prioritizeQueueIndex(): Prioritizing files of previous session: "
+			                  + mQueueIndex.size());
+			
+			for(QueuedFile file : new ArrayList<QueuedFile>(mQueueIndex)) {
+				if(file.mURI != null)
+					continue; // Was add()ed in this session and thus has a priority already.
+				
+				FreenetURI uri;
+				try {
+					uri = IdentityFile.readURI(file.mFile);
+				} catch(RuntimeException e) {
+					// poll() will deal with the broken file.
+					Logger.warning(this, "prioritizeQueueIndex(): Cannot read: " + file.mFile, e);
+					continue;
+				}
+				
+				removeFromQueueIndex(file);
+				addToQueueIndex(new QueuedFile(file.mFile, uri, getPriority(uri),
+					file.mSequenceNumber));
+			}
+			
+			Logger.normal(this, "prioritizeQueueIndex(): Finished.");
 		}
+		
+		mQueueIndexPrioritized = true;
+	}
 
-		// In theory, we should not have to loop over the result of listFiles(), we could always
-		// return the first slot in its resulting array: poll() is not required to return any
-		// specific selection of files.
-		// However, to be robust against things such as the user sticking arbitrary files in the
-		// directory, we loop over the files in the queue dir nevertheless:
-		// If processing a file fails, we try the others until we succeed. 
-		for(File queuedFile : queue) {
+	@Override public synchronized IdentityFileStream poll() {
+		assert(mQueueIndex.size() == mStatistics.mQueuedFiles);
+		
+		if(!mQueueIndexPrioritized)
+			prioritizeQueueIndex();
+
+		// In theory, we should not have to loop over the mQueueIndex, we could always return the
+		// first file: If we fail to process it, it is deleted and thus removed from the index.
+		// However, with logDEBUG == true erroneous files are kept on disk for debugging, and thus
+		// must be kept in the index as it must match the disk. So to be able to skip them, we do
+		// loop.
+		// TODO: Performance: With logDEBUG, this is O(number of erroneous files) per call.
+		// Not critical to fix as erroneous files are rare and logDEBUG is only for developers.
+		Iterator<QueuedFile> queue = mQueueIndex.iterator();
+		while(queue.hasNext()) {
+			QueuedFile queuedIndexEntry = queue.next();
+			File queuedFile = queuedIndexEntry.mFile;
+			
 			try {
 				IdentityFile fileData = IdentityFile.read(queuedFile);
 				
@@ -346,6 +527,8 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 					throw new RuntimeException("Cannot move file, source: " + queuedFile
 			                                 + "; dest: " + dequeuedFile);
 				}
+				queue.remove();
+				mQueueIndexByFilename.remove(queuedFile.getName());
 				
 				// The InputStreamWithCleanup wrapper will remove the file from mProcessingDir once
 				// the stream is close()d.
@@ -376,6 +559,8 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 					Logger.error(this, "logDEBUG is false, deleting erroneous file: " + queuedFile);
 					
 					if(queuedFile.delete()) {
+						queue.remove();
+						mQueueIndexByFilename.remove(queuedFile.getName());
 						--mStatistics.mQueuedFiles;
 						assert(mStatistics.checkConsistency());
 						assert(checkDiskConsistency());
@@ -545,6 +730,8 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 		
 		return (
 				(queued == mStatistics.mQueuedFiles)
+			 && (queued == mQueueIndex.size())
+			 && (queued == mQueueIndexByFilename.size())
 			 && (processing == mStatistics.mProcessingFiles)
 			 && (finished ==
 					(logDEBUG == false ?
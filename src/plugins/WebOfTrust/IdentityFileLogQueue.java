@@ -0,0 +1,767 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+import plugins.WebOfTrust.Identity.IdentityID;
+import plugins.WebOfTrust.util.jobs.BackgroundJob;
+import freenet.keys.FreenetURI;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.Closer;
+
+/**
+ * {@link IdentityFileQueue} implementation which appends the files to a log on disk instead of
+ * storing each of them as a separate file as {@link IdentityFileDiskQueue} does.<br>
+ * The purpose is to avoid the filesystem overhead of the IdentityFileDiskQueue: It creates,
+ * renames and deletes one file per fetched edition, which is a lot of metadata I/O.<br><br>
+ *
+ * Deduplicating queue: Only the latest edition of each file is returned; see
+ * {@link IdentityFileQueue} for details.<br>
+ * Order of the files is preserved in a FIFO manner.<br><br>
+ *
+ * The log is split into segment files of about {@link #SEGMENT_SIZE_MAX} bytes. It consists of
+ * two types of records:<br>
+ * - {@link #RECORD_TYPE_ENTRY}: Appended by {@link #add(IdentityFileStream)}, contains the
+ *   {@link FreenetURI} and the XML of an identity file.<br>
+ * - {@link #RECORD_TYPE_DONE}: Appended by {@link #poll()}, marks an entry as dequeued.<br>
+ * Each record has a CRC32 so records which were only partially written due to a crash are
+ * detected and discarded.<br><br>
+ *
+ * The queued entries are tracked in memory: {@link #mQueue} for FIFO order, and
+ * {@link #mQueueIndex} for deduplication by {@link Identity#getID()}. Neither of them contains the
+ * XML, it is read by {@link #poll()} by memory-mapping the region of the segment file where it
+ * is stored. At startup, the in-memory state is restored by replaying the log, see
+ * {@link #replaySegments()}.<br>
+ * Deduplication does not need a record of its own: Replaying the entries in the order of the log
+ * deduplicates them the same way as {@link #add(IdentityFileStream)} did.<br><br>
+ *
+ * Crash recovery semantics are the same as with IdentityFileDiskQueue:<br>
+ * - Queued files are kept across restarts.<br>
+ * - A file which was returned by {@link #poll()} is not returned again after a restart, even if
+ *   its processing was not finished. It will be fetched again by the {@link IdentityFetcher}.
+ *   <br><br>
+ *
+ * Compaction: A segment file is deleted once all entries in it are finished, i.e. have been
+ * deduplicated or have been returned by poll() and their stream was closed. Segments are only
+ * deleted from the beginning of the log: A segment may contain the records which tell that the
+ * entries of previous segments are done or deduplicated, so deleting it before those would bring
+ * them back at the next replay. As the queue is FIFO, the oldest segments are the ones which are
+ * drained first, so this does not delay compaction in practice.<br>
+ * If the last segment is full but none of its entries is queued anymore it is truncated instead
+ * of starting a new segment file.<br><br>
+ *
+ * In comparison to IdentityFileDiskQueue, this implementation has the following disadvantages:
+ * <br>
+ * - It does not archive processed files if {@link #logDEBUG} is enabled.<br>
+ * - The files in the queue are not human readable.<br><br>
+ *
+ * TODO: Performance: Add configuration option to allow users to make their WOT use this instead
+ * of the default {@link IdentityFileDiskQueue} once it has received sufficient testing.<br>
+ * TODO: Code quality: Close the {@link FileChannel}s of the segments when WOT is terminated.
+ * {@link IdentityFileQueue} has no function for that yet. */
+final class IdentityFileLogQueue implements IdentityFileQueue {
+	/**
+	 * Once a segment file has at least this size, a new one is started.<br>
+	 * A single record may exceed it as entries are not split across segments.<br>
+	 * TODO: Code quality: Make configurable. */
+	public static final int SEGMENT_SIZE_MAX = 16 * 1024 * 1024;
+
+	static final String SEGMENT_FILE_PREFIX = "segment-";
+
+	static final String SEGMENT_FILE_EXTENSION = ".wot-identity-log";
+
+	/**
+	 * Record format:<br>
+	 * byte type, int payloadLength, int crc32(payload), payload.<br>
+	 * Payload format:<br>
+	 * long sequenceNumber, short uriLength, byte[uriLength] uri, byte[] xml.<br>
+	 * The URI is encoded as UTF-8, the XML is stored as is. */
+	static final byte RECORD_TYPE_ENTRY = 1;
+
+	/**
+	 * Record format:<br>
+	 * byte type, long sequenceNumber, int crc32(sequenceNumber).<br>
+	 * The sequenceNumber is the one of the {@link #RECORD_TYPE_ENTRY} which was dequeued. */
+	static final byte RECORD_TYPE_DONE = 2;
+
+	private static final int ENTRY_HEADER_LENGTH = 1 + 4 + 4;
+
+	private static final int DONE_RECORD_LENGTH = 1 + 8 + 4;
+
+	/** Upper limit of the payload length of a {@link #RECORD_TYPE_ENTRY}. */
+	private static final int ENTRY_PAYLOAD_LENGTH_MAX
+		= 8 + 2 + Short.MAX_VALUE + XMLTransformer.MAX_IDENTITY_XML_BYTE_SIZE;
+
+	private static final Charset URI_CHARSET = Charset.forName("UTF-8");
+
+
+	/** Subdirectory of WOT data directory where we put our segment files. */
+	private final File mDataDir;
+
+	/** @see IdentityFetcher#DEBUG__NETWORK_DUMP_MODE */
+	private final boolean mDeduplicationEnabled;
+
+	/**
+	 * All segment files of the log in ascending order. The last one is the one to which new
+	 * records are appended. Never empty. */
+	private final ArrayDeque<Segment> mSegments = new ArrayDeque<Segment>();
+
+	/**
+	 * The entries in the order in which {@link #poll()} returns them.<br>
+	 * Entries which were deduplicated are not removed from it but marked as
+	 * {@link Entry#mRemoved}, poll() skips them. This avoids O(N) removal from the middle. */
+	private final ArrayDeque<Entry> mQueue = new ArrayDeque<Entry>();
+
+	/**
+	 * The queued entries with the {@link Identity#getID()} of their {@link Entry#mURI} as key.<br>
+	 * Used for deduplication, thus empty if {@link #mDeduplicationEnabled} is false. */
+	private final HashMap<String, Entry> mQueueIndex = new HashMap<String, Entry>();
+
+	/** The {@link Entry#mSequenceNumber} of the next entry. */
+	private long mNextSequenceNumber = 0;
+
+	/** @see #getStatistics() */
+	private final IdentityFileQueueStatistics mStatistics = new IdentityFileQueueStatistics();
+
+	/** @see #registerEventHandler(BackgroundJob) */
+	private BackgroundJob mEventHandler;
+
+
+	/** A segment file of the log. */
+	private static final class Segment {
+		/** Increases with each segment, used for the filename. */
+		final long mNumber;
+
+		final File mFile;
+
+		final FileChannel mChannel;
+
+		/** The offset at which the next record will be appended. */
+		long mSize;
+
+		/**
+		 * Amount of entries in this segment which are queued or being processed.<br>
+		 * The segment can be deleted once this is 0 for it and all previous segments. */
+		int mLiveEntries = 0;
+
+		Segment(long number, File file, FileChannel channel, long size) {
+			mNumber = number;
+			mFile = file;
+			mChannel = channel;
+			mSize = size;
+		}
+	}
+
+	/** A {@link IdentityFileLogQueue#RECORD_TYPE_ENTRY} of the log. */
+	private static final class Entry {
+		final Segment mSegment;
+
+		/** Identifies the entry in {@link IdentityFileLogQueue#RECORD_TYPE_DONE} records. */
+		final long mSequenceNumber;
+
+		/** @see IdentityFileStream#mURI */
+		final FreenetURI mURI;
+
+		/** Offset of the XML in the {@link #mSegment} file. */
+		final long mXMLOffset;
+
+		final int mXMLLength;
+
+		/**
+		 * True if the entry is not queued anymore: A newer edition of the same {@link Identity}
+		 * was added, or a newer edition was queued already when it was added, or it was dequeued
+		 * while replaying the log. */
+		boolean mRemoved = false;
+
+		Entry(Segment segment, long sequenceNumber, FreenetURI uri, long xmlOffset,
+				int xmlLength) {
+			mSegment = segment;
+			mSequenceNumber = sequenceNumber;
+			mURI = uri;
+			mXMLOffset = xmlOffset;
+			mXMLLength = xmlLength;
+		}
+	}
+
+	/**
+	 * Automatically set to true by {@link Logger} if the log level is set to
+	 * {@link LogLevel#DEBUG} for this class. Used as performance optimization to prevent
+	 * construction of the log strings if it is not necessary. */
+	private static transient volatile boolean logDEBUG = false;
+
+	/**
+	 * Automatically set to true by {@link Logger} if the log level is set to
+	 * {@link LogLevel#MINOR} for this class. Used as performance optimization to prevent
+	 * construction of the log strings if it is not necessary. */
+	private static transient volatile boolean logMINOR = false;
+
+	static {
+		// Necessary for automatic setting of logDEBUG and logMINOR
+		Logger.registerClass(IdentityFileLogQueue.class);
+	}
+
+
+	public IdentityFileLogQueue(File parentDirectory) {
+		mDataDir = new File(parentDirectory, "IdentityFileLogQueue");
+
+		if(!mDataDir.exists() && !mDataDir.mkdir())
+			throw new RuntimeException("Cannot create " + mDataDir);
+
+		if(!IdentityFetcher.DEBUG__NETWORK_DUMP_MODE) {
+			mDeduplicationEnabled = true;
+		} else {
+			Logger.warning(this,
+				"IdentityFetcher.DEBUG__NETWORK_DUMP_MODE == true: Disabling deduplication!");
+			mDeduplicationEnabled = false;
+		}
+
+		try {
+			replaySegments();
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Restores the in-memory state of the queue from the segment files of the previous session.
+	 * <br>Deletes segments in which all entries were finished, and discards records which were
+	 * only partially written due to a crash.<br>
+	 * Must only be called by the constructor. */
+	private synchronized void replaySegments() throws IOException {
+		Logger.normal(this, "replaySegments(): Replaying log...");
+
+		File[] files = mDataDir.listFiles();
+		Arrays.sort(files);
+		// Key = Entry.mSequenceNumber. Used for replaying RECORD_TYPE_DONE.
+		HashMap<Long, Entry> entries = new HashMap<Long, Entry>();
+
+		for(File file : files) {
+			String name = file.getName();
+			if(!name.startsWith(SEGMENT_FILE_PREFIX) || !name.endsWith(SEGMENT_FILE_EXTENSION)) {
+				Logger.warning(this, "replaySegments(): Unexpected file type: " + file);
+				continue;
+			}
+
+			long number;
+			try {
+				number = Long.parseLong(name.substring(SEGMENT_FILE_PREFIX.length(),
+					name.length() - SEGMENT_FILE_EXTENSION.length()));
+			} catch(NumberFormatException e) {
+				Logger.warning(this, "replaySegments(): Cannot parse file name: " + file);
+				continue;
+			}
+
+			Segment segment = openSegment(number, file);
+			mSegments.addLast(segment);
+			replaySegment(segment, entries);
+		}
+
+		if(mSegments.isEmpty())
+			mSegments.addLast(openSegment(0, getSegmentFilename(0)));
+
+		// The statistics are not persisted, so like IdentityFileDiskQueue we consider the old
+		// queued files as the only ones which were added.
+		mStatistics.mTotalQueuedFiles = mStatistics.mQueuedFiles;
+		mStatistics.mDeduplicatedFiles = 0;
+
+		Logger.normal(this, "replaySegments(): Old queued files: " + mStatistics.mQueuedFiles
+		                  + "; segments: " + mSegments.size());
+
+		compactSegments();
+
+		assert(mStatistics.checkConsistency());
+		assert(checkLogConsistency());
+
+		Logger.normal(this, "replaySegments(): Finished.");
+	}
+
+	/**
+	 * Replays all records of the given segment.<br>
+	 * Stops at the first record which is truncated or corrupted. If the segment is the last one
+	 * of the log, it is truncated at that record so new records can be appended to it. */
+	private void replaySegment(Segment segment, HashMap<Long, Entry> entries) throws IOException {
+		// There is no need to map the whole segment at once, but reading the records with
+		// relative get*() is convenient.
+		MappedByteBuffer buffer
+			= segment.mChannel.map(MapMode.READ_ONLY, 0, segment.mChannel.size());
+
+		long validLength = 0;
+
+		while(buffer.hasRemaining()) {
+			int recordOffset = buffer.position();
+			byte type = buffer.get();
+
+			if(type == RECORD_TYPE_ENTRY) {
+				if(buffer.remaining() < ENTRY_HEADER_LENGTH - 1)
+					break;
+
+				int payloadLength = buffer.getInt();
+				int crc = buffer.getInt();
+				if(payloadLength < 8 + 2 || payloadLength > ENTRY_PAYLOAD_LENGTH_MAX
+						|| payloadLength > buffer.remaining())
+					break;
+
+				byte[] payload = new byte[payloadLength];
+				buffer.get(payload);
+				if(crc32(payload) != crc)
+					break;
+
+				ByteBuffer payloadBuffer = ByteBuffer.wrap(payload);
+				long sequenceNumber = payloadBuffer.getLong();
+				int uriLength = payloadBuffer.getShort() & 0xFFFF;
+				if(uriLength > payloadBuffer.remaining())
+					break;
+
+				FreenetURI uri;
+				try {
+					uri = new FreenetURI(new String(payload, 8 + 2, uriLength, URI_CHARSET));
+				} catch(MalformedURLException e) {
+					break;
+				}
+
+				int xmlOffset = 8 + 2 + uriLength;
+				Entry entry = new Entry(segment, sequenceNumber, uri,
+					recordOffset + ENTRY_HEADER_LENGTH + xmlOffset, payloadLength - xmlOffset);
+
+				mNextSequenceNumber = Math.max(mNextSequenceNumber, sequenceNumber + 1);
+				entries.put(sequenceNumber, entry);
+				enqueue(entry);
+			} else if(type == RECORD_TYPE_DONE) {
+				if(buffer.remaining() < DONE_RECORD_LENGTH - 1)
+					break;
+
+				long sequenceNumber = buffer.getLong();
+				int crc = buffer.getInt();
+				if(crc32(getDoneRecordPayload(sequenceNumber)) != crc)
+					break;
+
+				// Is null if the segment of the entry was deleted already.
+				Entry entry = entries.remove(sequenceNumber);
+				if(entry != null && !entry.mRemoved) {
+					// We do not use dequeue() as it would not be robust against entries which
+					// poll() dropped without appending this record due to errors.
+					entry.mRemoved = true;
+					if(mDeduplicationEnabled)
+						mQueueIndex.remove(getIdentityID(entry.mURI));
+					--entry.mSegment.mLiveEntries;
+					--mStatistics.mQueuedFiles;
+				}
+			} else
+				break;
+
+			validLength = buffer.position();
+		}
+
+		if(validLength != segment.mSize) {
+			// Usually caused by a crash while appending. The data after the corrupted record
+			// cannot be replayed in any case as the start of the next record cannot be determined.
+			Logger.warning(this, "replaySegment(): Discarding corrupted data at offset "
+			                   + validLength + " of: " + segment.mFile);
+
+			segment.mSize = validLength;
+			segment.mChannel.truncate(validLength);
+		}
+	}
+
+	private Segment openSegment(long number, File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		FileChannel channel = raf.getChannel();
+		return new Segment(number, file, channel, channel.size());
+	}
+
+	private File getSegmentFilename(long number) {
+		return new File(mDataDir,
+			String.format(SEGMENT_FILE_PREFIX + "%019d" + SEGMENT_FILE_EXTENSION, number));
+	}
+
+	@Override public synchronized void add(IdentityFileStream identityFileStream) {
+		try {
+			// We increment the counter before errors could occur so erroneously dropped files are
+			// included: This ensures that the user might notice dropped files from the statistics
+			// in the UI.
+			++mStatistics.mTotalQueuedFiles;
+
+			// Check whether the file would be deduplicated before writing it to avoid the I/O.
+			Entry existing = mDeduplicationEnabled
+				? mQueueIndex.get(getIdentityID(identityFileStream.mURI)) : null;
+			if(existing != null
+					&& existing.mURI.getEdition() > identityFileStream.mURI.getEdition()) {
+
+				if(logMINOR) {
+					Logger.minor(this, "Fetched edition which is older than queued file, "
+					                 + "dropping: " + identityFileStream.mURI.getEdition());
+				}
+
+				++mStatistics.mDeduplicatedFiles;
+				assert(mStatistics.checkConsistency());
+				return;
+			}
+
+			IdentityFile file = IdentityFile.read(identityFileStream);
+			long sequenceNumber = mNextSequenceNumber++;
+			byte[] uri = file.getURI().toString().getBytes(URI_CHARSET);
+
+			ByteArrayOutputStream payloadBytes
+				= new ByteArrayOutputStream(8 + 2 + uri.length + file.mXML.length);
+			DataOutputStream payload = new DataOutputStream(payloadBytes);
+			payload.writeLong(sequenceNumber);
+			payload.writeShort(uri.length);
+			payload.write(uri);
+			payload.write(file.mXML);
+			payload.close();
+			byte[] payloadArray = payloadBytes.toByteArray();
+
+			ByteBuffer record = ByteBuffer.allocate(ENTRY_HEADER_LENGTH + payloadArray.length);
+			record.put(RECORD_TYPE_ENTRY);
+			record.putInt(payloadArray.length);
+			record.putInt(crc32(payloadArray));
+			record.put(payloadArray);
+			record.flip();
+
+			Segment segment = getSegmentForAppending();
+			long recordOffset = append(segment, record);
+
+			enqueue(new Entry(segment, sequenceNumber, file.getURI(),
+				recordOffset + ENTRY_HEADER_LENGTH + 8 + 2 + uri.length, file.mXML.length));
+			compactSegments();
+
+			assert(mStatistics.checkConsistency());
+			assert(checkLogConsistency());
+
+			if(mEventHandler != null)
+				mEventHandler.triggerExecution();
+			else {
+				// The IdentityFetcher might fetch files during its start() already, and call this
+				// function to enqueue fetched files. However, IdentityFileProcessor.start(), which
+				// would register it as the event handler which is missing here, is called *after*
+				// IdentityFetcher.start(). See IdentityFileDiskQueue.add() for details.
+			}
+		} catch(IOException e) {
+			++mStatistics.mFailedFiles;
+			assert(mStatistics.checkConsistency());
+			throw new RuntimeException(e);
+		} catch(RuntimeException e) {
+			++mStatistics.mFailedFiles;
+			assert(mStatistics.checkConsistency());
+			throw e;
+		} catch(Error e) { // TODO: Java 7: Merge with above to catch(RuntimeException | Error e)
+			++mStatistics.mFailedFiles;
+			assert(mStatistics.checkConsistency());
+			throw e;
+		}
+	}
+
+	/**
+	 * Adds the entry to {@link #mQueue}, and deduplicates it against the queued entry of the same
+	 * {@link Identity} using the same rules as {@link IdentityFileDiskQueue}.<br>
+	 * Used by both {@link #add(IdentityFileStream)} and {@link #replaySegment(Segment, HashMap)}
+	 * so replaying the log yields the same result as the original add() calls.<br>
+	 * Increments {@link IdentityFileQueueStatistics#mQueuedFiles} but not
+	 * {@link IdentityFileQueueStatistics#mTotalQueuedFiles}. */
+	private void enqueue(Entry entry) {
+		if(mDeduplicationEnabled) {
+			String identityID = getIdentityID(entry.mURI);
+			Entry existing = mQueueIndex.get(identityID);
+
+			if(existing != null) {
+				// Notice: This is intentionally a ">" check instead of ">=", see
+				// IdentityFileDiskQueue.add().
+				if(existing.mURI.getEdition() > entry.mURI.getEdition()) {
+					// Can only happen during replay as add() checks this before appending.
+					entry.mRemoved = true;
+					return;
+				}
+
+				if(logMINOR) {
+					Logger.minor(this, "Deduplicating edition " + existing.mURI.getEdition()
+					                 + " with edition " + entry.mURI.getEdition()
+					                 + " for: " + entry.mURI);
+				}
+
+				existing.mRemoved = true;
+				--existing.mSegment.mLiveEntries;
+				--mStatistics.mQueuedFiles;
+				++mStatistics.mDeduplicatedFiles;
+			}
+
+			mQueueIndex.put(identityID, entry);
+		}
+
+		mQueue.addLast(entry);
+		++entry.mSegment.mLiveEntries;
+		++mStatistics.mQueuedFiles;
+	}
+
+	/**
+	 * Removes and returns the first non-deduplicated entry of {@link #mQueue}, or null if there
+	 * is none.<br>
+	 * Does not modify {@link IdentityFileQueueStatistics} or {@link Segment#mLiveEntries}. */
+	private Entry dequeue() {
+		Entry entry;
+		while((entry = mQueue.pollFirst()) != null) {
+			if(entry.mRemoved)
+				continue;
+
+			if(mDeduplicationEnabled) {
+				Entry removed = mQueueIndex.remove(getIdentityID(entry.mURI));
+				assert(removed == entry);
+			}
+
+			return entry;
+		}
+		return null;
+	}
+
+	private static String getIdentityID(FreenetURI identityFileURI) {
+		return IdentityID.constructAndValidateFromURI(identityFileURI).toString();
+	}
+
+	@Override public synchronized IdentityFileStream poll() {
+		Entry entry;
+		while((entry = dequeue()) != null) {
+			try {
+				// Before we can return the entry, we must mark it as done in the log to prevent it
+				// from being returned again after a restart, see the class-level JavaDoc.
+				ByteBuffer record = ByteBuffer.allocate(DONE_RECORD_LENGTH);
+				record.put(RECORD_TYPE_DONE);
+				record.putLong(entry.mSequenceNumber);
+				record.putInt(crc32(getDoneRecordPayload(entry.mSequenceNumber)));
+				record.flip();
+				append(getSegmentForAppending(), record);
+
+				--mStatistics.mQueuedFiles;
+				++mStatistics.mProcessingFiles;
+				assert(mStatistics.mProcessingFiles == 1);
+
+				// If mapping fails, the entry is dropped by the catch() below. This is the same as
+				// IdentityFileDiskQueue deleting the queued file if reading it fails.
+				MappedByteBuffer xml = entry.mSegment.mChannel.map(MapMode.READ_ONLY,
+					entry.mXMLOffset, entry.mXMLLength);
+
+				IdentityFileStream result = new IdentityFileStream(entry.mURI,
+					new MappedEntryInputStream(entry, xml));
+
+				assert(mStatistics.checkConsistency());
+
+				if(logDEBUG) Logger.debug(this, "poll(): Yielded " + entry.mURI);
+				return result;
+			} catch(IOException e) {
+				Logger.error(this, "Error in poll() for queued file: " + entry.mURI, e);
+
+				if(mStatistics.mProcessingFiles == 0) {
+					// Appending the RECORD_TYPE_DONE failed, the entry will be replayed.
+					--mStatistics.mQueuedFiles;
+				} else
+					--mStatistics.mProcessingFiles;
+
+				--entry.mSegment.mLiveEntries;
+				++mStatistics.mFailedFiles;
+				assert(mStatistics.checkConsistency());
+
+				// Try whether we can process the next file
+				continue;
+			}
+		}
+
+		if(logDEBUG) Logger.debug(this, "poll(): Yielded no file" );
+		return null; // Queue is empty
+	}
+
+	/**
+	 * Returns the segment to which the next record shall be appended.<br>
+	 * If the last segment is full, starts a new one, or truncates it if it contains no queued
+	 * entries anymore, see the class-level JavaDoc. */
+	private Segment getSegmentForAppending() throws IOException {
+		Segment last = mSegments.getLast();
+		if(last.mSize < SEGMENT_SIZE_MAX)
+			return last;
+
+		if(mSegments.size() == 1 && last.mLiveEntries == 0) {
+			if(logMINOR) Logger.minor(this, "Truncating drained segment: " + last.mFile);
+
+			last.mChannel.truncate(0);
+			last.mSize = 0;
+			return last;
+		}
+
+		Segment next = openSegment(last.mNumber + 1, getSegmentFilename(last.mNumber + 1));
+		assert(next.mSize == 0);
+		mSegments.addLast(next);
+
+		if(logMINOR) Logger.minor(this, "Started new segment: " + next.mFile);
+		return next;
+	}
+
+	/** @return The offset of the record in the segment. */
+	private long append(Segment segment, ByteBuffer record) throws IOException {
+		long offset = segment.mSize;
+		long position = offset;
+		while(record.hasRemaining())
+			position += segment.mChannel.write(record, position);
+
+		segment.mSize = position;
+		return offset;
+	}
+
+	/**
+	 * Deletes all segments from the beginning of the log which do not contain any queued or
+	 * processing entries anymore, except for the last segment to which records are appended.<br>
+	 * See the class-level JavaDoc for why segments are only deleted from the beginning. */
+	private void compactSegments() {
+		while(mSegments.size() > 1 && mSegments.getFirst().mLiveEntries == 0) {
+			Segment first = mSegments.getFirst();
+
+			Closer.close(first.mChannel);
+			if(!first.mFile.delete()) {
+				// Can happen on Windows if a MappedByteBuffer of the file was not garbage
+				// collected yet. We must not delete subsequent segments then, so stop and retry
+				// the next time.
+				Logger.warning(this, "Cannot delete segment, will retry later: " + first.mFile);
+
+				try {
+					mSegments.removeFirst();
+					mSegments.addFirst(openSegment(first.mNumber, first.mFile));
+				} catch(IOException e) {
+					throw new RuntimeException(e);
+				}
+				return;
+			}
+
+			mSegments.removeFirst();
+
+			if(logMINOR) Logger.minor(this, "Deleted drained segment: " + first.mFile);
+		}
+	}
+
+	private static int crc32(byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return (int)crc.getValue();
+	}
+
+	private static byte[] getDoneRecordPayload(long sequenceNumber) {
+		return ByteBuffer.allocate(8).putLong(sequenceNumber).array();
+	}
+
+	/**
+	 * The {@link InputStream} of the {@link IdentityFileStream}s which {@link #poll()} returns:
+	 * Reads the XML directly from the memory-mapped segment file.<br>
+	 * Hooks {@link #close()} to mark the {@link Entry} as finished so its segment can be deleted by
+	 * {@link IdentityFileLogQueue#compactSegments()}. */
+	private final class MappedEntryInputStream extends InputStream {
+		private final Entry mEntry;
+
+		private final ByteBuffer mXML;
+
+		/** Used to prevent {@link #close()} from executing twice */
+		private boolean mClosedAlready = false;
+
+
+		MappedEntryInputStream(Entry entry, ByteBuffer xml) {
+			mEntry = entry;
+			mXML = xml;
+		}
+
+		@Override public int read() {
+			return mXML.hasRemaining() ? (mXML.get() & 0xFF) : -1;
+		}
+
+		@Override public int read(byte[] b, int off, int len) {
+			if(len == 0)
+				return 0;
+
+			if(!mXML.hasRemaining())
+				return -1;
+
+			len = Math.min(len, mXML.remaining());
+			mXML.get(b, off, len);
+			return len;
+		}
+
+		@Override public int available() {
+			return mXML.remaining();
+		}
+
+		@Override public void close() {
+			synchronized(IdentityFileLogQueue.this) {
+				// Prevent wrong value of mProcessingFiles by multiple calls to close(), which
+				// paranoid code might do.
+				if(mClosedAlready)
+					return;
+
+				assert(mStatistics.mProcessingFiles == 1);
+
+				--mStatistics.mProcessingFiles;
+				++mStatistics.mFinishedFiles;
+				--mEntry.mSegment.mLiveEntries;
+				compactSegments();
+
+				assert(mStatistics.checkConsistency());
+				assert(checkLogConsistency());
+
+				mClosedAlready = true;
+			}
+		}
+	}
+
+	@Override public synchronized void registerEventHandler(BackgroundJob handler) {
+		if(mEventHandler != null) {
+			throw new UnsupportedOperationException(
+				"Support for more than one event handler is not implemented yet.");
+		}
+
+		mEventHandler = handler;
+
+		// We preserve queued files across restarts, so as soon after startup as we know who
+		// the event handler is, we must wake up the event handler to process the waiting files.
+		if(mStatistics.mQueuedFiles != 0)
+			mEventHandler.triggerExecution();
+	}
+
+	@Override public synchronized IdentityFileQueueStatistics getStatistics() {
+		IdentityFileQueueStatistics result = mStatistics.clone();
+		assert(result.checkConsistency());
+		assert(checkLogConsistency());
+		return result;
+	}
+
+	/**
+	 * Returns true if the numbers in {@link #mStatistics} match the in-memory state of the log.
+	 * <br>Does not read the segment files. */
+	private synchronized boolean checkLogConsistency() {
+		int queued = 0;
+		for(Entry entry : mQueue) {
+			if(!entry.mRemoved)
+				++queued;
+		}
+
+		int live = 0;
+		for(Segment segment : mSegments)
+			live += segment.mLiveEntries;
+
+		return (
+				(queued == mStatistics.mQueuedFiles)
+			 && (!mDeduplicationEnabled || queued == mQueueIndex.size())
+			 && (live == mStatistics.mQueuedFiles + mStatistics.mProcessingFiles)
+			 && (!mSegments.isEmpty())
+			);
+	}
+}
@@ -4,38 +4,268 @@
 package plugins.WebOfTrust;
 
 import java.io.ByteArrayInputStream;
-import java.util.LinkedList;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.TreeSet;
 
 import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import plugins.WebOfTrust.Identity.IdentityID;
+import plugins.WebOfTrust.IdentityFileDiskQueue.PriorityProvider;
 import plugins.WebOfTrust.util.jobs.BackgroundJob;
 
 /**
  * {@link IdentityFileQueue} implementation which stores the files in memory instead of on disk.<br>
- * Order of the files is preserved in a FIFO manner.<br><br>
+ * The order of the files is determined by a {@link PriorityProvider} the same way as by the
+ * {@link IdentityFileDiskQueue}: Files with a higher priority are returned first, files of equal
+ * priority in the order in which they were added. Without a PriorityProvider, that is FIFO order.
+ * <br><br>
+ *
+ * It can operate in two modes:<br><br>
+ *
+ * 1. Unbounded, see {@link #IdentityFileMemoryQueue()}: Aims at being used in unit tests. Does not
+ * deduplicate editions and does not watch its memory usage.<br><br>
+ *
+ * 2. Bounded, see {@link #IdentityFileMemoryQueue(long, IdentityFileQueue, PriorityProvider)}:
+ * Used during regular operation. Deduplicates editions the same way as {@link IdentityFileDiskQueue}, in O(1).
+ * Keeps at most the given amount of bytes in memory, files beyond that "spill" to the given
+ * overflow queue, typically an IdentityFileDiskQueue. As on most nodes the processing keeps up
+ * with the fetching most of the time, the backlog is usually small and thus no disk I/O is
+ * needed.<br>
+ * To preserve the FIFO order, once a file has spilled, all further files are passed to the
+ * overflow queue as well until {@link #poll()} has drained it. poll() returns the files in memory
+ * first as they are older than the ones in the overflow queue. So the priorities are only
+ * obeyed within each of both queues, which is acceptable as spilling is rare, and the overflow
+ * queue should use the same PriorityProvider.<br>
+ * The files in memory are lost upon shutdown, which is not a problem: The
+ * {@link IdentityFetcher} will fetch them again as their editions have not been imported into
+ * the database yet.<br><br>
  * 
- * This implementation aims at being used in unit tests only. Thus, in comparison to the
- * {@link IdentityFileDiskQueue} which WOT actually uses, it has the following disadvantages:<br>
- * - It doesn't deduplicate editions. See {@link IdentityFileQueue} for what that means.<br>
- * - It doesn't watch its memory usage and thus on fast Freenet nodes might cause OOM.<br>
- * - It doesn't use the {@link Logger}, you need to instead enable assert() in your JVM.<br><br>
- * 
- * TODO: Performance: Add configuration option to allow users to make their WOT use this instead
- * of the default {@link IdentityFileDiskQueue}. Be sure to resolve the above disadvantages before,
- * and to warn users that they only should use it if they have lots of memory. */
+ * Errors are not reported with the {@link Logger}, you need to instead enable assert() in your
+ * JVM. */
 final class IdentityFileMemoryQueue implements IdentityFileQueue {
+	/**
+	 * Default of the byte budget of
+	 * {@link #IdentityFileMemoryQueue(long, IdentityFileQueue, PriorityProvider)}.<br>
+	 * TODO: Code quality: Make configurable. */
+	public static final long DEFAULT_BYTE_BUDGET = 16 * 1024 * 1024;
+
+	/**
+	 * Rough estimate of the memory usage of a queued {@link IdentityFile} besides its XML: The
+	 * object headers, the {@link IdentityFile#getURI()} and the entries in {@link #mQueue} and
+	 * {@link #mQueueByKey}. */
+	private static final int FILE_OVERHEAD_BYTES = 512;
+
+
+	/**
+	 * The queued files, ordered by descending priority and ascending
+	 * {@link QueuedFile#mSequenceNumber}.<br>
+	 * The first element is the one which {@link #poll()} returns next. */
+	private final TreeSet<QueuedFile> mQueue = new TreeSet<QueuedFile>();
+
+	/**
+	 * Same contents as {@link #mQueue}, with the {@link QueuedFile#mKey} as key. Used by
+	 * {@link #add(IdentityFileStream)} for finding the file which is to be deduplicated in O(1).
+	 * <br>
+	 * If {@link #mDeduplicationEnabled} is true, the key is the {@link Identity#getID()} of the
+	 * file's {@link IdentityFile#getURI()}: Replacing a file with a newer edition moves it to the
+	 * end of the files of its priority.<br>
+	 * If it is false, the key is the unique {@link QueuedFile#mSequenceNumber} so no files are
+	 * replaced. */
+	private final HashMap<Object, QueuedFile> mQueueByKey = new HashMap<Object, QueuedFile>();
+
+	/** @see QueuedFile#mSequenceNumber */
+	private long mNextSequenceNumber = 0;
+
+	/**
+	 * Determines the order of {@link #mQueue}. Null if the files shall be returned in the order in
+	 * which they were added. */
+	private final PriorityProvider mPriorityProvider;
+
+	/** Sum of {@link #getMemoryUsage(IdentityFile)} of all files in {@link #mQueue}. */
+	private long mQueuedBytes = 0;
+
+	/**
+	 * Maximal value of {@link #mQueuedBytes}. Files beyond that are passed to
+	 * {@link #mOverflowQueue}.<br>
+	 * {@link Long#MAX_VALUE} in unbounded mode. */
+	private final long mByteBudget;
+
+	/** Null in unbounded mode. */
+	private final IdentityFileQueue mOverflowQueue;
 
-	private final LinkedList<IdentityFile> mQueue = new LinkedList<IdentityFile>();
+	/**
+	 * True if the {@link #mOverflowQueue} might contain files, and thus
+	 * {@link #add(IdentityFileStream)} must pass all files to it to preserve the FIFO order.<br>
+	 * Is reset by {@link #poll()} once the overflow queue is drained. */
+	private boolean mSpilling;
 
+	/** @see IdentityFetcher#DEBUG__NETWORK_DUMP_MODE */
+	private final boolean mDeduplicationEnabled;
+
+	/**
+	 * Statistics of the files which are or were in {@link #mQueue}, i.e. excluding the files
+	 * which were passed to the {@link #mOverflowQueue}.
+	 * @see #getStatistics() */
 	private final IdentityFileQueueStatistics mStatistics = new IdentityFileQueueStatistics();
 
 	private BackgroundJob mEventHandler;
 
+	/** Entry of {@link IdentityFileMemoryQueue#mQueue}. */
+	private static final class QueuedFile implements Comparable<QueuedFile> {
+		final IdentityFile mFile;
 
-	@Override public synchronized void add(IdentityFileStream file) {
-		try {
-			mQueue.addLast(IdentityFile.read(file));
-			++mStatistics.mQueuedFiles;
+		/** @see IdentityFileMemoryQueue#mQueueByKey */
+		final Object mKey;
+
+		/** @see PriorityProvider */
+		final int mPriority;
+
+		/**
+		 * Increases with each file which is added to the queue. Used as secondary sort key to
+		 * return files of equal priority in FIFO order. */
+		final long mSequenceNumber;
+
+		QueuedFile(IdentityFile file, Object key, int priority, long sequenceNumber) {
+			mFile = file;
+			mKey = key;
+			mPriority = priority;
+			mSequenceNumber = sequenceNumber;
+		}
+
+		/** Same as IdentityFileDiskQueue.QueuedFile.compareTo() */
+		@Override public int compareTo(QueuedFile o) {
+			if(mPriority != o.mPriority)
+				return mPriority > o.mPriority ? -1 : 1;
 			
+			if(mSequenceNumber != o.mSequenceNumber)
+				return mSequenceNumber < o.mSequenceNumber ? -1 : 1;
+			
+			return 0;
+		}
+	}
+
+	/**
+	 * Automatically set to true by {@link Logger} if the log level is set to
+	 * {@link LogLevel#MINOR} for this class. Used as performance optimization to prevent
+	 * construction of the log strings if it is not necessary. */
+	private static transient volatile boolean logMINOR = false;
+
+	static {
+		// Necessary for automatic setting of logMINOR
+		Logger.registerClass(IdentityFileMemoryQueue.class);
+	}
+
+
+	/** Constructs an unbounded FIFO queue without deduplication for unit tests. */
+	public IdentityFileMemoryQueue() {
+		mByteBudget = Long.MAX_VALUE;
+		mOverflowQueue = null;
+		mPriorityProvider = null;
+		mSpilling = false;
+		mDeduplicationEnabled = false;
+	}
+
+	/** Constructs a bounded, deduplicating FIFO queue. */
+	public IdentityFileMemoryQueue(long byteBudget, IdentityFileQueue overflowQueue) {
+		this(byteBudget, overflowQueue, null);
+	}
+
+	/**
+	 * Constructs a bounded, deduplicating queue.
+	 *
+	 * @param byteBudget The approximate maximal amount of bytes of files to keep in memory.
+	 *     See {@link #DEFAULT_BYTE_BUDGET}.
+	 * @param overflowQueue Receives the files which do not fit into the budget. Must not be
+	 *     used by anyone else, especially no event handler must be registered at it.
+	 * @param priorityProvider Determines the order in which the files are returned. May be null
+	 *     to return them in the order in which they were added. */
+	public IdentityFileMemoryQueue(long byteBudget, IdentityFileQueue overflowQueue,
+			PriorityProvider priorityProvider) {
+		
+		if(byteBudget < 0)
+			throw new IllegalArgumentException("Invalid byteBudget: " + byteBudget);
+
+		mByteBudget = byteBudget;
+		mOverflowQueue = overflowQueue;
+		mPriorityProvider = priorityProvider;
+		// The overflow queue may contain files from a previous session if it is disk-based.
+		mSpilling = overflowQueue.getStatistics().mQueuedFiles != 0;
+
+		if(!IdentityFetcher.DEBUG__NETWORK_DUMP_MODE) {
+			mDeduplicationEnabled = true;
+		} else {
+			Logger.warning(this,
+				"IdentityFetcher.DEBUG__NETWORK_DUMP_MODE == true: Disabling deduplication!");
+			mDeduplicationEnabled = false;
+		}
+	}
+
+	@Override public synchronized void add(IdentityFileStream identityFileStream) {
+		// Statistics of files which are passed to the mOverflowQueue are tracked by it, so
+		// only count the file if it is not spilled. We must also count it if it fails.
+		boolean counted = false;
+
+		try {
+			final long sequenceNumber = mNextSequenceNumber++;
+			Object key = mDeduplicationEnabled
+				? IdentityID.constructAndValidateFromURI(identityFileStream.mURI).toString()
+				: Long.valueOf(sequenceNumber);
+			QueuedFile existingEntry = mQueueByKey.get(key);
+			IdentityFile existing = existingEntry != null ? existingEntry.mFile : null;
+
+			// Notice: This is intentionally a ">" check instead of ">=", see
+			// IdentityFileDiskQueue.add().
+			if(existing != null
+					&& existing.getURI().getEdition() > identityFileStream.mURI.getEdition()) {
+
+				if(logMINOR) {
+					Logger.minor(this, "Fetched edition which is older than queued file, "
+					                 + "dropping: " + identityFileStream.mURI.getEdition());
+				}
+
+				// Close the stream as IdentityFile.read() would have done.
+				identityFileStream.mXMLInputStream.close();
+				++mStatistics.mTotalQueuedFiles;
+				++mStatistics.mDeduplicatedFiles;
+				counted = true;
+				return;
+			}
+
+			if(existing != null) {
+				if(logMINOR) {
+					Logger.minor(this, "Deduplicating edition " + existing.getURI().getEdition()
+					                 + " with edition " + identityFileStream.mURI.getEdition()
+					                 + " for: " + identityFileStream.mURI);
+				}
+
+				mQueue.remove(existingEntry);
+				mQueueByKey.remove(key);
+				mQueuedBytes -= getMemoryUsage(existing);
+				--mStatistics.mQueuedFiles;
+				++mStatistics.mDeduplicatedFiles;
+			}
+
+			IdentityFile file = IdentityFile.read(identityFileStream);
+
+			if(mSpilling || mQueuedBytes + getMemoryUsage(file) > mByteBudget) {
+				if(logMINOR && !mSpilling)
+					Logger.minor(this, "Byte budget exceeded, spilling to: " + mOverflowQueue);
+
+				mSpilling = true;
+				mOverflowQueue.add(
+					new IdentityFileStream(file.getURI(), new ByteArrayInputStream(file.mXML)));
+				counted = true;
+			} else {
+				QueuedFile entry = new QueuedFile(file, key, getPriority(file), sequenceNumber);
+				mQueue.add(entry);
+				mQueueByKey.put(key, entry);
+				mQueuedBytes += getMemoryUsage(file);
+				++mStatistics.mQueuedFiles;
+				++mStatistics.mTotalQueuedFiles;
+				counted = true;
+			}
+
 			if(mEventHandler != null)
 				mEventHandler.triggerExecution();
 			else {
@@ -62,6 +292,11 @@ final class IdentityFileMemoryQueue implements IdentityFileQueue {
 				assert(false);
 				*/
 			}
+		} catch(IOException e) {
+			// TODO: Java 7: Merge with the below to catch(IOException | RuntimeException e)
+			++mStatistics.mFailedFiles;
+			assert(false) : e;
+			throw new RuntimeException(e);
 		} catch(RuntimeException e) {
 			++mStatistics.mFailedFiles;
 			assert(false) : e;
@@ -71,22 +306,45 @@ final class IdentityFileMemoryQueue implements IdentityFileQueue {
 			assert(false) : e;
 			throw e;
 		} finally {
-			++mStatistics.mTotalQueuedFiles;
+			if(!counted)
+				++mStatistics.mTotalQueuedFiles;
 			assert(checkConsistency());
 		}
 	}
 
+	/**
+	 * @return The {@link PriorityProvider#getPriority(String)} of the {@link Identity} of the
+	 *     given file, or 0 if there is no {@link #mPriorityProvider}. */
+	private int getPriority(IdentityFile file) {
+		if(mPriorityProvider == null)
+			return 0;
+		
+		return mPriorityProvider.getPriority(
+			IdentityID.constructAndValidateFromURI(file.getURI()).toString());
+	}
+
+	/**
+	 * @return An estimate of the memory which the given file consumes while it is in
+	 *     {@link #mQueue}. Used for enforcing {@link #mByteBudget}. */
+	private static long getMemoryUsage(IdentityFile file) {
+		return file.mXML.length + FILE_OVERHEAD_BYTES;
+	}
+
 	@Override public synchronized IdentityFileStream poll() {
 		try {
-			IdentityFile file;
-			
-			while((file = mQueue.pollFirst()) != null) {
+			QueuedFile entry;
+
+			while((entry = mQueue.pollFirst()) != null) {
+				IdentityFile file = entry.mFile;
+				mQueueByKey.remove(entry.mKey);
+				mQueuedBytes -= getMemoryUsage(file);
+
 				try {
 					IdentityFileStream result = new IdentityFileStream(
 						file.getURI(), new ByteArrayInputStream(file.mXML));
-					
+
 					++mStatistics.mFinishedFiles;
-					
+
 					return result;
 				} catch(RuntimeException e) {
 					++mStatistics.mFailedFiles;
@@ -101,7 +359,17 @@ final class IdentityFileMemoryQueue implements IdentityFileQueue {
 					--mStatistics.mQueuedFiles;
 				}
 			}
-				
+
+			if(mSpilling) {
+				IdentityFileStream result = mOverflowQueue.poll();
+
+				if(result != null)
+					return result;
+
+				if(logMINOR) Logger.minor(this, "Overflow queue drained, stopping spilling.");
+				mSpilling = false;
+			}
+
 			return null; // Queue is empty
 		} finally {
 			assert(checkConsistency());
@@ -113,23 +381,38 @@ final class IdentityFileMemoryQueue implements IdentityFileQueue {
 			throw new UnsupportedOperationException(
 				"Support for more than one event handler is not implemented yet.");
 		}
-		
+
 		mEventHandler = handler;
-		
-		if(mQueue.size() != 0)
+
+		if(mQueue.size() != 0 || mSpilling)
 			mEventHandler.triggerExecution();
 	}
 
+	/**
+	 * Returns the sum of the statistics of this queue and of the overflow queue, see
+	 * {@link IdentityFileQueueStatistics#add(IdentityFileQueueStatistics)}. */
 	@Override public synchronized IdentityFileQueueStatistics getStatistics() {
 		assert(checkConsistency());
-		return mStatistics.clone();
+		IdentityFileQueueStatistics result = mStatistics.clone();
+
+		if(mOverflowQueue != null)
+			result.add(mOverflowQueue.getStatistics());
+
+		return result;
 	}
 
 	private synchronized boolean checkConsistency() {
+		long queuedBytes = 0;
+		for(QueuedFile entry : mQueue)
+			queuedBytes += getMemoryUsage(entry.mFile);
+
 		return
 			   mStatistics.checkConsistency()
-			&& mStatistics.mDeduplicatedFiles == 0
+			&& (mDeduplicationEnabled || mStatistics.mDeduplicatedFiles == 0)
 			&& mStatistics.mProcessingFiles == 0
-			&& mStatistics.mQueuedFiles == mQueue.size();
+			&& mStatistics.mQueuedFiles == mQueue.size()
+			&& mQueueByKey.size() == mQueue.size()
+			&& mQueuedBytes == queuedBytes
+			&& mQueuedBytes <= mByteBudget;
 	}
 }
@@ -4,10 +4,24 @@
 package plugins.WebOfTrust;
 
 import static freenet.support.TimeUtil.formatTime;
+import static java.lang.Math.max;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static plugins.WebOfTrust.Configuration.IS_UNIT_TEST;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import plugins.WebOfTrust.IdentityFileQueue.IdentityFileStream;
+import plugins.WebOfTrust.XMLTransformer.ParsedIdentityXML;
 import plugins.WebOfTrust.util.jobs.BackgroundJob;
 import plugins.WebOfTrust.util.jobs.DelayedBackgroundJob;
 import plugins.WebOfTrust.util.jobs.MockDelayedBackgroundJob;
@@ -23,8 +37,13 @@ import freenet.support.io.NativeThread.PriorityLevel;
  * in the {@link IdentityFileQueue}. The job of this processor is to take the files from the queue,
  * and import them into the WOT database using the {@link XMLTransformer}.<br><br>
  * 
- * Notice: The implementation is single-threaded and processes the files sequentially one-by-one.
- * It is not parallelized since the core WOT {@link Score} computation algorithm is not.<br><br>
+ * Notice: The import of the files into the database is single-threaded and processes them
+ * sequentially. It is not parallelized since the core WOT {@link Score} computation algorithm is
+ * not. To reduce the cost of transactions and Score computation, it imports the files in batches,
+ * see {@link #PROCESSING_BATCH_SIZE_MAX}.<br>
+ * Parsing the XML however does not need any locks, so it is done by a separate stage of
+ * {@link #PARSING_THREADS} threads which feed the import stage through a bounded handoff queue,
+ * see {@link Processor#processFilesInParallel()}.<br><br>
  * 
  * Implemented as a {@link DelayedBackgroundJob} instead of just {@link BackgroundJob}: The default
  * implementation of {@link IdentityFileQueue} supports deduplication of old versions of identity
@@ -52,6 +71,52 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 	 * https://bugs.freenetproject.org/view.php?id=6555 */
 	public static final long PROCESSING_DELAY_MILLISECONDS
 		= IS_UNIT_TEST ? SECONDS.toMillis(1) : MINUTES.toMillis(1);
+	
+	/**
+	 * Maximal amount of files which are imported in a single transaction, see
+	 * {@link XMLTransformer#importIdentities(java.util.List)}.<br>
+	 * A value of 1 disables batch processing, each file will then be imported in a transaction of
+	 * its own by {@link XMLTransformer#importIdentity(freenet.keys.FreenetURI,
+	 * java.io.InputStream)}.<br><br>
+	 * 
+	 * Batches are beneficial when there are many files in the queue, which typically happens after
+	 * WOT was offline for some time: Each transaction causes an fsync of the database, and the
+	 * import of a trust list often triggers a full {@link Score} computation, which will then only
+	 * happen once per batch.<br>
+	 * The files of a batch are kept in memory in parsed form, each of them can contain up to
+	 * {@link XMLTransformer#MAX_IDENTITY_XML_TRUSTEE_AMOUNT} trust values.<br><br>
+	 * 
+	 * TODO: Code quality: Make configurable. */
+	public static final int PROCESSING_BATCH_SIZE_MAX = 256;
+	
+	/**
+	 * Maximal time to spend on taking files from the queue and parsing them before the batch is
+	 * imported even if it contains less than {@link #PROCESSING_BATCH_SIZE_MAX} files.<br>
+	 * This bounds the latency of the import of the first file of a batch.<br><br>
+	 * 
+	 * TODO: Code quality: Make configurable. */
+	public static final long PROCESSING_BATCH_DURATION_MAX_MILLISECONDS = SECONDS.toMillis(10);
+	
+	/**
+	 * Amount of threads which parse the XML of the files concurrently to the import of the
+	 * previously parsed ones, see {@link Processor#processFilesInParallel()}.<br>
+	 * A value of 0 disables the parse stage, the files will then be parsed by the same thread which
+	 * imports them. Also disabled if {@link #PROCESSING_BATCH_SIZE_MAX} is 1.<br>
+	 * One CPU is left for the import thread. Thus the parse stage is disabled on single-core
+	 * hosts, where the parsers would only compete with the import for the CPU.<br><br>
+	 * 
+	 * TODO: Code quality: Make configurable. */
+	public static final int PARSING_THREADS = Runtime.getRuntime().availableProcessors() - 1;
+	
+	/**
+	 * Capacity of the handoff queue between the parse stage and the import stage, see
+	 * {@link Processor#processFilesInParallel()}. If it is full, the parse threads wait for the
+	 * import to catch up, which bounds the memory usage of parsed files.<br>
+	 * Equal to {@link #PROCESSING_BATCH_SIZE_MAX} so the parse stage can prepare a full batch
+	 * while the import stage imports the previous one.<br><br>
+	 * 
+	 * TODO: Code quality: Make configurable. */
+	public static final int HANDOFF_QUEUE_CAPACITY = PROCESSING_BATCH_SIZE_MAX;
 
 	/** We consume the files of this queue when it calls our {@link #triggerExecution()}. */
 	private final IdentityFileQueue mQueue;
@@ -62,6 +127,22 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 	/** Identity files will be passed to this {@link XMLTransformer} for the actual processing. */
 	private final XMLTransformer mXMLTransformer;
 
+	/** {@link #PARSING_THREADS}, or the value passed by unit tests. */
+	private final int mParsingThreads;
+
+	/** {@link #PROCESSING_BATCH_SIZE_MAX}, or the value passed by unit tests. */
+	private final int mBatchSizeMax;
+
+	/** {@link #HANDOFF_QUEUE_CAPACITY}, or the value passed by unit tests. */
+	private final int mHandoffQueueCapacity;
+
+	/**
+	 * Runs the {@link Parser}s of {@link Processor#processFilesInParallel()}.<br>
+	 * Its threads are only created when needed and terminate on their own when idle, so it needs
+	 * no start(). It is shut down in {@link #waitForTermination(long)}.<br>
+	 * Null if {@link #mParsingThreads} is 0. */
+	private final ThreadPoolExecutor mParsingPool;
+
 	private final Statistics mStatistics = new Statistics();
 
 	public static final class Statistics implements Cloneable {
@@ -77,6 +158,80 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 		/** Total time it took to process all {@link #mProcessedFiles}. */
 		public long mProcessingTimeNanoseconds = 0;
 
+		/**
+		 * Number of batches of files which have been imported, see
+		 * {@link IdentityFileProcessor#PROCESSING_BATCH_SIZE_MAX}.<br>
+		 * Stays 0 if batch processing is disabled. */
+		public int mProcessedBatches = 0;
+
+		/**
+		 * Number of batches for which the import in a single transaction failed, and whose files
+		 * thus had to be imported one by one.<br>
+		 * Like {@link #mFailedFiles}, this does not necessarily indicate bugs. */
+		public int mFailedBatches = 0;
+
+		/** Number of files in all {@link #mProcessedBatches}. */
+		public int mBatchedFiles = 0;
+
+		/** Number of files in the largest of the {@link #mProcessedBatches}. */
+		public int mMaxBatchSize = 0;
+
+		/**
+		 * Total time it took to parse the XML of the files of all {@link #mProcessedBatches}.
+		 * Parsing happens without holding any locks, so this does not include any waiting.<br>
+		 * If the parse stage is enabled, see {@link IdentityFileProcessor#PARSING_THREADS}, this
+		 * is the time the import stage waited for the parse stage to fill the batch instead.
+		 * The time the parse stage spent parsing is {@link #mParsingTimeNanoseconds} then.<br>
+		 * Included in {@link #mProcessingTimeNanoseconds}. */
+		public long mBatchParsingTimeNanoseconds = 0;
+
+		/**
+		 * Total time it took to import all {@link #mProcessedBatches} into the database after
+		 * parsing, including the time to acquire the locks and Score computation.<br>
+		 * Included in {@link #mProcessingTimeNanoseconds}. */
+		public long mBatchImportTimeNanoseconds = 0;
+
+		/**
+		 * Number of files which the parse stage has parsed, see
+		 * {@link IdentityFileProcessor#PARSING_THREADS}. Stays 0 if the parse stage is disabled.
+		 */
+		public int mParsedFiles = 0;
+
+		/**
+		 * Number of files which the parse stage has taken from the {@link IdentityFileQueue} but
+		 * not finished parsing yet. This is the queue depth of the parse stage, it is at most
+		 * {@link IdentityFileProcessor#PARSING_THREADS}. */
+		public int mParsingFiles = 0;
+
+		/**
+		 * Total time it took the parse stage to read and parse the {@link #mParsedFiles}.<br>
+		 * The threads of the parse stage run concurrently, so this can be more than the elapsed
+		 * time. */
+		public long mParsingTimeNanoseconds = 0;
+
+		/**
+		 * Total time the threads of the parse stage waited for free space in the handoff queue
+		 * because the import stage was busy. Large values mean that the import stage is the
+		 * bottleneck. */
+		public long mParsingBlockedTimeNanoseconds = 0;
+
+		/**
+		 * Number of parsed files which wait for being imported: The ones in the handoff queue, and
+		 * the ones whose Parser waits for free space in it. This is the queue depth of the import
+		 * stage, it is at most {@link IdentityFileProcessor#HANDOFF_QUEUE_CAPACITY} +
+		 * {@link IdentityFileProcessor#PARSING_THREADS}. */
+		public int mHandoffFiles = 0;
+
+		/** Maximal value which {@link #mHandoffFiles} had so far. */
+		public int mMaxHandoffFiles = 0;
+
+		/** Number of files which the import stage has taken from the handoff queue. */
+		public int mHandedOffFiles = 0;
+
+		/**
+		 * Total time the {@link #mHandedOffFiles} spent in the handoff queue waiting for the
+		 * import stage, i.e. its latency excluding the import itself. */
+		public long mHandoffWaitTimeNanoseconds = 0;
 		/**
 		 * Gets the average time it took for processing a file, in seconds. This is rather crude as
 		 * it includes all of those:<br>
@@ -97,6 +252,49 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 				/ (double) mProcessedFiles;
 		}
 
+		/**
+		 * Gets the average amount of files in each of the {@link #mProcessedBatches}.<br><br>
+		 * 
+		 * ATTENTION: Not synchronized - only use this if you are sure that the Statistics object is
+		 * not being modified anymore. This is the case if you obtained it using
+		 * {@link IdentityFileProcessor#getStatistics()}. */
+		public double getAverageBatchSize() {
+			if(mProcessedBatches == 0) // prevent division by 0
+				return 0;
+
+			return (double)mBatchedFiles / (double)mProcessedBatches;
+		}
+
+		/**
+		 * Gets the average time the parse stage needed to read and parse a file, in seconds.
+		 * <br><br>
+		 * 
+		 * ATTENTION: Not synchronized - only use this if you are sure that the Statistics object is
+		 * not being modified anymore. This is the case if you obtained it using
+		 * {@link IdentityFileProcessor#getStatistics()}. */
+		public double getAverageParsingTime() {
+			if(mParsedFiles == 0) // prevent division by 0
+				return 0;
+
+			return ((double) mParsingTimeNanoseconds / (1000 * 1000 * 1000))
+				/ (double) mParsedFiles;
+		}
+
+		/**
+		 * Gets the average time a parsed file waited in the handoff queue before the import stage
+		 * took it, in seconds.<br><br>
+		 * 
+		 * ATTENTION: Not synchronized - only use this if you are sure that the Statistics object is
+		 * not being modified anymore. This is the case if you obtained it using
+		 * {@link IdentityFileProcessor#getStatistics()}. */
+		public double getAverageHandoffWaitTime() {
+			if(mHandedOffFiles == 0) // prevent division by 0
+				return 0;
+
+			return ((double) mHandoffWaitTimeNanoseconds / (1000 * 1000 * 1000))
+				/ (double) mHandedOffFiles;
+		}
+
 		@Override public Statistics clone() {
 			try {
 				return (Statistics)super.clone();
@@ -113,6 +311,21 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 
 
 	IdentityFileProcessor(IdentityFileQueue queue, Ticker ticker, XMLTransformer xmlTransformer) {
+		this(queue, ticker, xmlTransformer, PARSING_THREADS, PROCESSING_BATCH_SIZE_MAX,
+			HANDOFF_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * For unit tests: Allows them to enable the parse stage independently of the amount of CPUs
+	 * of the host, and to use small batches and handoff queues so the stages block each other
+	 * with few files.
+	 * 
+	 * @see #PARSING_THREADS
+	 * @see #PROCESSING_BATCH_SIZE_MAX
+	 * @see #HANDOFF_QUEUE_CAPACITY */
+	IdentityFileProcessor(IdentityFileQueue queue, Ticker ticker, XMLTransformer xmlTransformer,
+			int parsingThreads, int batchSizeMax, int handoffQueueCapacity) {
+		
 		if(ticker != null) {
 			mRealDelayedBackgroundJob = new TickerDelayedBackgroundJob(
 				new Processor(), "WOT IdentityFileProcessor", PROCESSING_DELAY_MILLISECONDS,
@@ -131,6 +344,26 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 		/* mQueue.registerEventHandler(this); */
 		
 		mXMLTransformer = xmlTransformer;
+		mParsingThreads = parsingThreads;
+		mBatchSizeMax = batchSizeMax;
+		mHandoffQueueCapacity = handoffQueueCapacity;
+		
+		if(mParsingThreads > 0) {
+			mParsingPool = new ThreadPoolExecutor(mParsingThreads, mParsingThreads,
+				PROCESSING_DELAY_MILLISECONDS, MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					@Override public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "WOT IdentityFileProcessor parser");
+						thread.setDaemon(true);
+						thread.setPriority(Thread.MIN_PRIORITY);
+						return thread;
+					}
+				});
+			// Each Processor.run() only uses the threads while the queue is non-empty, so let
+			// them terminate in between.
+			mParsingPool.allowCoreThreadTimeOut(true);
+		} else
+			mParsingPool = null;
 	}
 
 	/** Must be called during startup of WOT */
@@ -174,6 +407,17 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 		public void run() {
 			Logger.normal(this, "run()...");
 			
+			if(mBatchSizeMax > 1 && mParsingPool != null)
+				processFilesInParallel();
+			else if(mBatchSizeMax > 1)
+				processFilesInBatches();
+			else
+				processFilesOneByOne();
+			
+			Logger.normal(this, "run() finished.");
+		}
+
+		private void processFilesOneByOne() {
 			// We query the IdentityFileQueue for *multiple* files until it is empty since if
 			// it does multiple calls to triggerExecution(), that will only cause one execution of
 			// run().
@@ -194,6 +438,7 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 					// return the measured value.
 					// When implementing that, also do separate measurement of XML processing time
 					// so we get an idea how slow it is (I suspect it to be rather slow).
+					// EDIT: processFilesInBatches() measures the parsing time separately.
 					final long startTime = System.nanoTime();
 					mXMLTransformer.importIdentity(stream.mURI, stream.mXMLInputStream);
 					final long endTime = System.nanoTime();
@@ -228,8 +473,260 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 				// a chance to execute in between processing each.
 				Thread.yield();
 			}
+		}
+
+		/**
+		 * Takes up to {@link #PROCESSING_BATCH_SIZE_MAX} files from the queue, or as many as
+		 * can be parsed in {@link #PROCESSING_BATCH_DURATION_MAX_MILLISECONDS}, and imports them
+		 * with {@link XMLTransformer#importIdentities(java.util.List)}. Repeats that until the
+		 * queue is empty.<br>
+		 * The files are parsed without holding any locks, so the rest of WOT is only blocked while
+		 * the parsed batch is imported. */
+		private void processFilesInBatches() {
+			final ArrayList<ParsedIdentityXML> batch
+				= new ArrayList<ParsedIdentityXML>(mBatchSizeMax);
+			boolean queueEmpty = false;
+			boolean interrupted = false;
 			
-			Logger.normal(this, "run() finished.");
+			// We query the IdentityFileQueue for *multiple* batches until it is empty since if
+			// it does multiple calls to triggerExecution(), that will only cause one execution of
+			// run().
+			while(!queueEmpty && !interrupted) {
+				batch.clear();
+				final long parsingStartTime = System.nanoTime();
+				final long parsingEndTime = parsingStartTime
+					+ MILLISECONDS.toNanos(PROCESSING_BATCH_DURATION_MAX_MILLISECONDS);
+				
+				while(batch.size() < mBatchSizeMax
+						&& System.nanoTime() - parsingEndTime < 0) {
+					
+					IdentityFileStream stream = null;
+					
+					try {
+						stream = mQueue.poll();
+						if(stream == null) {
+							queueEmpty = true;
+							break;
+						}
+						
+						Logger.normal(this, "run(): Parsing: " + stream.mURI);
+						
+						// The queue requires the stream to be closed before the next poll(), so we
+						// cannot delay parsing until the batch is complete.
+						batch.add(mXMLTransformer.parseIdentityXML(
+							stream.mURI, stream.mXMLInputStream));
+					} catch(RuntimeException e) {
+						if(stream != null && stream.mURI != null)
+							Logger.error(this, "Parsing identity XML failed: " + stream.mURI, e);
+						else
+							Logger.error(this, "Error in poll()", e);
+						
+						synchronized(IdentityFileProcessor.this) {
+							++mStatistics.mFailedFiles;
+						}
+					} finally {
+						if(stream != null)
+							Closer.close(stream.mXMLInputStream);
+					}
+					
+					if(Thread.interrupted()) {
+						// terminate() interrupts our thread, so we obey that. We do import the
+						// files we have parsed already though: They were removed from the queue
+						// and would be lost otherwise.
+						Logger.normal(this, "run(): Shutdown requested, exiting after batch...");
+						interrupted = true;
+						break;
+					}
+				}
+				
+				if(batch.isEmpty())
+					continue;
+				
+				Logger.normal(this, "run(): Importing batch of " + batch.size() + " files...");
+				
+				final long importStartTime = System.nanoTime();
+				boolean success;
+				try {
+					success = mXMLTransformer.importIdentities(batch);
+				} catch(RuntimeException e) {
+					Logger.error(this, "Importing batch of identity XML failed severely - "
+						+ "editions probably could NOT be marked for not being fetched again!", e);
+					
+					synchronized(IdentityFileProcessor.this) {
+						mStatistics.mFailedFiles += batch.size();
+						++mStatistics.mFailedBatches;
+					}
+					continue;
+				}
+				final long endTime = System.nanoTime();
+				
+				synchronized(IdentityFileProcessor.this) {
+					mStatistics.mProcessedFiles += batch.size();
+					mStatistics.mProcessingTimeNanoseconds += endTime - parsingStartTime;
+					++mStatistics.mProcessedBatches;
+					if(!success)
+						++mStatistics.mFailedBatches;
+					mStatistics.mBatchedFiles += batch.size();
+					mStatistics.mMaxBatchSize = max(mStatistics.mMaxBatchSize, batch.size());
+					mStatistics.mBatchParsingTimeNanoseconds += importStartTime - parsingStartTime;
+					mStatistics.mBatchImportTimeNanoseconds += endTime - importStartTime;
+				}
+				
+				if(Thread.interrupted()) {
+					Logger.normal(this, "run(): Shutdown requested, exiting...");
+					interrupted = true;
+				}
+				
+				// Importing a batch can take a long time, and thus we give other stuff a chance to
+				// execute in between processing each.
+				Thread.yield();
+			}
+		}
+
+		/**
+		 * Same as {@link #processFilesInBatches()}, but the files are taken from the queue and
+		 * parsed by {@link #PARSING_THREADS} {@link Parser}s concurrently. They pass the parsed
+		 * files to this thread through a handoff queue of {@link #HANDOFF_QUEUE_CAPACITY}, and
+		 * this thread imports them in batches. So while a batch is imported, the next one is
+		 * being parsed.<br><br>
+		 * 
+		 * Backpressure: If the import stage is slower than the parse stage, the handoff queue
+		 * becomes full and the Parsers wait for free space before they take further files from
+		 * the {@link IdentityFileQueue}. If the parse stage is slower, this thread waits for up to
+		 * {@link #PROCESSING_BATCH_DURATION_MAX_MILLISECONDS} for a batch to be filled.<br><br>
+		 * 
+		 * Upon {@link #terminate()} the Parsers stop taking files from the queue, and this thread
+		 * imports the files which were parsed already: They were removed from the queue and would
+		 * be lost otherwise.<br><br>
+		 * 
+		 * Notice: The order in which the files are imported may differ from the order of the queue.
+		 * This is not a problem as {@link XMLTransformer} ignores outdated editions. */
+		private void processFilesInParallel() {
+			final ArrayBlockingQueue<ParsedFile> handoff
+				= new ArrayBlockingQueue<ParsedFile>(mHandoffQueueCapacity);
+			final AtomicBoolean stop = new AtomicBoolean(false);
+			final CountDownLatch parsersFinished = new CountDownLatch(mParsingThreads);
+			// The IdentityFileQueue requires the stream of a file to be closed before the next
+			// poll(), so the Parsers must synchronize their poll()s upon this.
+			final Object pollLock = new Object();
+			
+			for(int i = 0; i < mParsingThreads; ++i)
+				mParsingPool.execute(new Parser(handoff, stop, parsersFinished, pollLock));
+			
+			final ArrayList<ParsedIdentityXML> batch
+				= new ArrayList<ParsedIdentityXML>(mBatchSizeMax);
+			boolean interrupted = false;
+			
+			while(true) {
+				batch.clear();
+				final long gatheringStartTime = System.nanoTime();
+				final long gatheringEndTime = gatheringStartTime
+					+ MILLISECONDS.toNanos(PROCESSING_BATCH_DURATION_MAX_MILLISECONDS);
+				boolean parsersDone = false;
+				
+				while(batch.size() < mBatchSizeMax) {
+					// Check before poll() to not miss files which were added before finishing.
+					parsersDone = parsersFinished.getCount() == 0;
+					final long remaining = gatheringEndTime - System.nanoTime();
+					
+					ParsedFile file;
+					try {
+						// If we have a file already, don't wait longer than the batch duration.
+						// If not, wait in small steps so we notice if the Parsers are done.
+						file = handoff.poll(batch.isEmpty() ? MILLISECONDS.toNanos(100)
+							: max(0, remaining), NANOSECONDS);
+					} catch(InterruptedException e) {
+						// terminate() interrupts our thread. We continue until the Parsers have
+						// exited so the files they have parsed already are imported.
+						Logger.normal(this, "run(): Shutdown requested, exiting after Parsers...");
+						interrupted = true;
+						stop.set(true);
+						continue;
+					}
+					
+					if(file != null) {
+						addToBatch(file, batch);
+						// Take all which are available without waiting.
+						ParsedFile next;
+						while(batch.size() < mBatchSizeMax
+								&& (next = handoff.poll()) != null)
+							addToBatch(next, batch);
+					} else if(parsersDone || (!batch.isEmpty() && remaining <= 0))
+						break;
+				}
+				
+				if(!batch.isEmpty()) {
+					final long importStartTime = System.nanoTime();
+					importBatch(batch, gatheringStartTime, importStartTime);
+				}
+				
+				if(parsersDone && handoff.isEmpty())
+					break;
+				
+				if(Thread.interrupted()) {
+					Logger.normal(this, "run(): Shutdown requested, exiting after Parsers...");
+					interrupted = true;
+					stop.set(true);
+				}
+				
+				// Importing a batch can take a long time, and thus we give other stuff a chance to
+				// execute in between processing each.
+				Thread.yield();
+			}
+			
+			if(interrupted) {
+				// Restore the interrupted flag for the caller.
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private void addToBatch(ParsedFile file, ArrayList<ParsedIdentityXML> batch) {
+			batch.add(file.mParsedXML);
+			
+			synchronized(IdentityFileProcessor.this) {
+				--mStatistics.mHandoffFiles;
+				++mStatistics.mHandedOffFiles;
+				mStatistics.mHandoffWaitTimeNanoseconds += System.nanoTime() - file.mHandoffTime;
+			}
+		}
+
+		/**
+		 * Imports the batch with {@link XMLTransformer#importIdentities(java.util.List)} and
+		 * updates the {@link Statistics}. Used by {@link #processFilesInParallel()}.
+		 * 
+		 * @param gatheringStartTime {@link System#nanoTime()} when we started to gather the batch.
+		 * @param importStartTime {@link System#nanoTime()} when the batch was complete. */
+		private void importBatch(ArrayList<ParsedIdentityXML> batch, long gatheringStartTime,
+				long importStartTime) {
+			
+			Logger.normal(this, "run(): Importing batch of " + batch.size() + " files...");
+			
+			boolean success;
+			try {
+				success = mXMLTransformer.importIdentities(batch);
+			} catch(RuntimeException e) {
+				Logger.error(this, "Importing batch of identity XML failed severely - "
+					+ "editions probably could NOT be marked for not being fetched again!", e);
+				
+				synchronized(IdentityFileProcessor.this) {
+					mStatistics.mFailedFiles += batch.size();
+					++mStatistics.mFailedBatches;
+				}
+				return;
+			}
+			final long endTime = System.nanoTime();
+			
+			synchronized(IdentityFileProcessor.this) {
+				mStatistics.mProcessedFiles += batch.size();
+				mStatistics.mProcessingTimeNanoseconds += endTime - gatheringStartTime;
+				++mStatistics.mProcessedBatches;
+				if(!success)
+					++mStatistics.mFailedBatches;
+				mStatistics.mBatchedFiles += batch.size();
+				mStatistics.mMaxBatchSize = max(mStatistics.mMaxBatchSize, batch.size());
+				mStatistics.mBatchParsingTimeNanoseconds += importStartTime - gatheringStartTime;
+				mStatistics.mBatchImportTimeNanoseconds += endTime - importStartTime;
+			}
 		}
 
 		@Override public int getPriority() {
@@ -241,6 +738,125 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 	}
 
 
+	/** Entry of the handoff queue of {@link Processor#processFilesInParallel()}. */
+	private static final class ParsedFile {
+		final ParsedIdentityXML mParsedXML;
+
+		/** {@link System#nanoTime()} when the file was added to the handoff queue. */
+		final long mHandoffTime;
+
+		ParsedFile(ParsedIdentityXML parsedXML, long handoffTime) {
+			mParsedXML = parsedXML;
+			mHandoffTime = handoffTime;
+		}
+	}
+
+	/**
+	 * A thread of the parse stage of {@link Processor#processFilesInParallel()}: Takes files from
+	 * the {@link IdentityFileQueue}, parses them and passes them to the handoff queue until the
+	 * IdentityFileQueue is empty or the import stage requests it to stop. */
+	private final class Parser implements Runnable {
+		private final ArrayBlockingQueue<ParsedFile> mHandoff;
+
+		private final AtomicBoolean mStop;
+
+		private final CountDownLatch mFinished;
+
+		private final Object mPollLock;
+
+		Parser(ArrayBlockingQueue<ParsedFile> handoff, AtomicBoolean stop,
+				CountDownLatch finished, Object pollLock) {
+			mHandoff = handoff;
+			mStop = stop;
+			mFinished = finished;
+			mPollLock = pollLock;
+		}
+
+		@Override public void run() {
+			try {
+				while(!mStop.get()) {
+					final long startTime = System.nanoTime();
+					IdentityFile file;
+					
+					synchronized(mPollLock) {
+						IdentityFileStream stream = null;
+						
+						try {
+							stream = mQueue.poll();
+							if(stream == null)
+								break;
+							
+							synchronized(IdentityFileProcessor.this) {
+								++mStatistics.mParsingFiles;
+							}
+							
+							// Read the file into memory so we can close the stream before the
+							// next poll() while parsing it concurrently to the other Parsers.
+							file = IdentityFile.read(stream);
+						} catch(RuntimeException e) {
+							if(stream != null && stream.mURI != null) {
+								Logger.error(this, "Reading identity file failed: " + stream.mURI,
+									e);
+							} else
+								Logger.error(this, "Error in poll()", e);
+							
+							synchronized(IdentityFileProcessor.this) {
+								if(stream != null)
+									--mStatistics.mParsingFiles;
+								++mStatistics.mFailedFiles;
+							}
+							continue;
+						} finally {
+							if(stream != null)
+								Closer.close(stream.mXMLInputStream);
+						}
+					}
+					
+					Logger.normal(this, "run(): Parsing: " + file.getURI());
+					
+					// Does not throw, parse errors are handled by the import.
+					final ParsedIdentityXML parsed = mXMLTransformer.parseIdentityXML(
+						file.getURI(), new ByteArrayInputStream(file.mXML));
+					final long parsedTime = System.nanoTime();
+					
+					// Counted as handed off before the put(): The import stage may take() and
+					// un-count the file before this thread would re-acquire the lock after it.
+					synchronized(IdentityFileProcessor.this) {
+						--mStatistics.mParsingFiles;
+						++mStatistics.mParsedFiles;
+						mStatistics.mParsingTimeNanoseconds += parsedTime - startTime;
+						++mStatistics.mHandoffFiles;
+						mStatistics.mMaxHandoffFiles
+							= max(mStatistics.mMaxHandoffFiles, mStatistics.mHandoffFiles);
+					}
+					
+					// Backpressure: Waits if the import stage is busy. We do not stop waiting if
+					// interrupted: The file was removed from the queue and would be lost.
+					// The import stage keeps taking files until all Parsers have finished.
+					boolean interrupted = false;
+					while(true) {
+						try {
+							mHandoff.put(new ParsedFile(parsed, System.nanoTime()));
+							break;
+						} catch(InterruptedException e) {
+							interrupted = true;
+						}
+					}
+					final long handoffTime = System.nanoTime();
+					
+					synchronized(IdentityFileProcessor.this) {
+						mStatistics.mParsingBlockedTimeNanoseconds += handoffTime - parsedTime;
+					}
+					
+					if(interrupted)
+						break;
+				}
+			} finally {
+				mFinished.countDown();
+			}
+		}
+	}
+
 	/** Must be called before the WOT plugin is terminated. */
 	@Override public void terminate() {
 		mRealDelayedBackgroundJob.terminate();
@@ -259,6 +875,10 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 		// Processor.run() supports thread interruption by terminate(), so we force the timeout to
 		// be infinite so we always wait for clean exit of run() after it was terminate()d.
 		mRealDelayedBackgroundJob.waitForTermination(Long.MAX_VALUE);
+		
+		// Processor.run() waits for its Parsers to exit, so they are not running anymore.
+		if(mParsingPool != null)
+			mParsingPool.shutdown();
 	}
 
 	/**
@@ -126,7 +126,8 @@ public interface IdentityFileQueue {
 		 * 
 		 * Notice: Queue implementations are free to not track this number, i.e. keep it at 0.<br>
 		 * Without warranty it can be said that {@link IdentityFileDiskQueue} does track this
-		 * number, but {@link IdentityFileMemoryQueue} does not. */
+		 * number, but {@link IdentityFileMemoryQueue} does not for the files it keeps in memory.
+		 */
 		public int mProcessingFiles = 0;
 		
 		/**
@@ -182,6 +183,20 @@ public interface IdentityFileQueue {
 			return (float)mTotalQueuedFiles / uptimeHours;		
 		}
 
+		/**
+		 * Adds the counters of the given statistics to the ones of this object.<br>
+		 * Used by queues which delegate some of their files to another queue, see
+		 * {@link IdentityFileMemoryQueue#IdentityFileMemoryQueue(long, IdentityFileQueue)}.<br>
+		 * {@link #mStartupTimeMilliseconds} is not changed. */
+		void add(IdentityFileQueueStatistics other) {
+			mTotalQueuedFiles += other.mTotalQueuedFiles;
+			mQueuedFiles += other.mQueuedFiles;
+			mProcessingFiles += other.mProcessingFiles;
+			mFinishedFiles += other.mFinishedFiles;
+			mDeduplicatedFiles += other.mDeduplicatedFiles;
+			mFailedFiles += other.mFailedFiles;
+		}
+
 		boolean checkConsistency() {
 			return (
 					(mTotalQueuedFiles >= 0)
@@ -0,0 +1,242 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.lang.Math.max;
+import static java.util.Arrays.fill;
+
+import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
+import freenet.support.Logger;
+
+/**
+ * Same algorithm as {@link WebOfTrust#computeRankFromScratch(OwnIdentity, Identity)}, i.e. a
+ * search which walks backwards from the target to the source, but implemented upon the
+ * {@link TrustGraphIndex.Snapshot} instead of the database and without a priority queue.<br><br>
+ *
+ * The priority queue of the original implementation is not needed because the search only
+ * uses edges of two weights: 1 for positive {@link Trust}s, and {@link Integer#MAX_VALUE} for the
+ * distrusts which the target has received. An Identity with an infinite rank cannot hand down a
+ * finite rank to others, so all paths which contain an infinite edge are longer than all paths
+ * which don't. Thus, two FIFO queues are sufficient:
+ * - The "finite" queue is a plain breadth first search. As all its edges have weight 1, the
+ *   Identitys are added in the order of their rank, and each Identity is added at most once: When
+ *   it is added the first time, it has its lowest rank.
+ * - The "infinite" queue contains the distrusters of the target, and the Identitys which reach
+ *   them by positive Trusts. It is only processed once the finite one is empty, as only then it
+ *   is known that there is no finite path. As all its entries have the same rank, it doesn't need
+ *   sorting either. Identitys may be added multiple times since they are only marked as seen when
+ *   being processed: Otherwise a distruster of the target would not be walked if it also has a
+ *   finite path.
+ *
+ * Identitys are represented by the int vertices of the snapshot, the queues are int arrays, and
+ * the "seen" set is an array of generation stamps: A vertex is seen if its stamp equals the
+ * generation of the current search. So the arrays can be re-used for each search without clearing
+ * them, and a search does not allocate any memory unless the graph grew.<br><br>
+ *
+ * Synchronization: Objects of this class are not thread-safe as the arrays are re-used, each
+ * thread must use its own instance. See {@link RankComputer#computeRank(OwnIdentity, Identity)}
+ * for the locking. */
+final class IndexedRankComputer implements RankComputer {
+
+	private final WebOfTrust mWebOfTrust;
+
+	/**
+	 * The graph for which the arrays were last prepared, see
+	 * {@link #prepare(TrustGraphIndex.Snapshot)}. */
+	private TrustGraphIndex.Snapshot mGraph = null;
+
+	/**
+	 * Incremented for each search. Values of the below arrays are only valid if the entry of the
+	 * matching generation array equals it. */
+	private int mGeneration = 0;
+
+	/** Index = vertex, value = {@link #mGeneration} in which the vertex was seen. */
+	private int[] mSeenGenerations = new int[0];
+
+	/**
+	 * Index = vertex, value = rank of the vertex as counted from the target, i.e. 1 for its
+	 * trusters. Only valid for vertices of the finite queue. */
+	private int[] mRanks = new int[0];
+
+	/**
+	 * Index = vertex, value = {@link #mGeneration} in which the vertex has received a Trust from
+	 * the source. */
+	private int[] mSourceTrustGenerations = new int[0];
+
+	/** Index = vertex, value = {@link Trust#getValue()} of the Trust it received from the source. */
+	private byte[] mSourceTrustValues = new byte[0];
+
+	/** Each vertex is added at most once, so the size is the vertex count. */
+	private int[] mFiniteQueue = new int[0];
+
+	/**
+	 * Each vertex is processed at most once, and adds at most the Trusts it has received. So the
+	 * size is the Trust count. */
+	private int[] mInfiniteQueue = new int[0];
+
+
+	IndexedRankComputer(WebOfTrust webOfTrust) {
+		mWebOfTrust = webOfTrust;
+	}
+
+	@Override public int computeRank(final OwnIdentity source, final Identity target) {
+		final int sourceRank;
+		try {
+			sourceRank = mWebOfTrust.getScore(source, source).getRank();
+			if(source == target)
+				return sourceRank;
+		} catch (NotInTrustTreeException e) {
+			Logger.warning(this, "initTrustTreeWithoutCommit() not called for: " + source);
+			// Same as computeRankFromScratch(): Some unit tests require this to yield "no rank".
+			return -1;
+		}
+
+		final TrustGraphIndex.Snapshot graph = mWebOfTrust.getTrustGraphIndex().getSnapshot();
+		final int sourceVertex = graph.getVertex(source.getID());
+		final int targetVertex = graph.getVertex(target.getID());
+
+		// Identitys which have no Trusts are not in the graph. Then there cannot be a path.
+		if(sourceVertex == TrustGraphIndex.NO_VERTEX || targetVertex == TrustGraphIndex.NO_VERTEX)
+			return -1;
+
+		prepare(graph);
+		final int generation = mGeneration;
+		final int[] seen = mSeenGenerations;
+		final int[] ranks = mRanks;
+		final int[] sourceTrustGenerations = mSourceTrustGenerations;
+		final byte[] sourceTrustValues = mSourceTrustValues;
+		final int[] finiteQueue = mFiniteQueue;
+		final int[] infiniteQueue = mInfiniteQueue;
+
+		// If a vertex has received a Trust from the source, it overrides all other Trusts it has
+		// received. So we cache them to be able to check for them before walking a vertex.
+		for(int i = graph.getGivenTrustsStart(sourceVertex);
+				i < graph.getGivenTrustsEnd(sourceVertex); ++i) {
+
+			final int trustee = graph.getTrustee(i);
+			sourceTrustGenerations[trustee] = generation;
+			sourceTrustValues[trustee] = graph.getGivenTrustValue(i);
+		}
+
+		// A direct Trust from the source to the target overrides all other paths, see
+		// computeRankFromScratch().
+		if(sourceTrustGenerations[targetVertex] == generation) {
+			return sourceTrustValues[targetVertex] > 0
+				? sourceRank + 1 : Integer.MAX_VALUE;
+		}
+
+		int finiteHead = 0;
+		int finiteTail = 0;
+		int infiniteHead = 0;
+		int infiniteTail = 0;
+
+		seen[targetVertex] = generation;
+		for(int i = graph.getReceivedTrustsStart(targetVertex);
+				i < graph.getReceivedTrustsEnd(targetVertex); ++i) {
+
+			final int truster = graph.getTruster(i);
+
+			if(graph.getReceivedTrustValue(i) > 0) {
+				seen[truster] = generation;
+				ranks[truster] = 1;
+				finiteQueue[finiteTail++] = truster;
+			} else
+				infiniteQueue[infiniteTail++] = truster;
+		}
+
+		// Breadth first search over the positive Trusts.
+		while(finiteHead < finiteTail) {
+			final int vertex = finiteQueue[finiteHead++];
+			final int rank = ranks[vertex];
+
+			if(sourceTrustGenerations[vertex] == generation) {
+				// Breadth first search visits the vertices in the order of their rank, so the
+				// first path to the source we find is the shortest one.
+				// A distrust from the source forces the rank of the vertex to be infinite, and
+				// such a vertex cannot be in the middle of a path, see computeRankFromScratch().
+				if(sourceTrustValues[vertex] > 0)
+					return rank + 1 + sourceRank;
+
+				continue;
+			}
+
+			for(int i = graph.getReceivedTrustsStart(vertex);
+					i < graph.getReceivedTrustsEnd(vertex); ++i) {
+
+				final int truster = graph.getTruster(i);
+
+				if(graph.getReceivedTrustValue(i) <= 0 || seen[truster] == generation)
+					continue;
+
+				seen[truster] = generation;
+				ranks[truster] = rank + 1;
+				finiteQueue[finiteTail++] = truster;
+			}
+		}
+
+		// There is no path of positive Trusts, so the target can at most have an infinite rank.
+		// It has one if the source can reach one of its distrusters by positive Trusts.
+		while(infiniteHead < infiniteTail) {
+			final int vertex = infiniteQueue[infiniteHead++];
+
+			if(seen[vertex] == generation)
+				continue;
+
+			seen[vertex] = generation;
+
+			if(sourceTrustGenerations[vertex] == generation) {
+				if(sourceTrustValues[vertex] > 0)
+					return Integer.MAX_VALUE;
+
+				continue;
+			}
+
+			for(int i = graph.getReceivedTrustsStart(vertex);
+					i < graph.getReceivedTrustsEnd(vertex); ++i) {
+
+				final int truster = graph.getTruster(i);
+
+				if(graph.getReceivedTrustValue(i) > 0 && seen[truster] != generation)
+					infiniteQueue[infiniteTail++] = truster;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Ensures the arrays are large enough for the given graph and starts a new
+	 * {@link #mGeneration}.<br>
+	 * The vertices of a {@link TrustGraphIndex} are never deleted or renumbered, so the arrays of
+	 * a previous snapshot can be re-used if they are large enough. */
+	private void prepare(TrustGraphIndex.Snapshot graph) {
+		if(graph != mGraph) {
+			mGraph = graph;
+
+			final int vertexCount = graph.getVertexCount();
+			if(mSeenGenerations.length < vertexCount) {
+				// Grow by more than needed as the graph usually grows by single Identitys.
+				final int capacity = max(vertexCount, mSeenGenerations.length * 2);
+				mSeenGenerations = new int[capacity];
+				mRanks = new int[capacity];
+				mSourceTrustGenerations = new int[capacity];
+				mSourceTrustValues = new byte[capacity];
+				mFiniteQueue = new int[capacity];
+				mGeneration = 0;
+			}
+
+			final int trustCount = graph.getTrustCount();
+			if(mInfiniteQueue.length < trustCount)
+				mInfiniteQueue = new int[max(trustCount, mInfiniteQueue.length * 2)];
+		}
+
+		if(++mGeneration == 0) {
+			// Overflow: Stamps of 2^32 searches ago would look valid again.
+			fill(mSeenGenerations, 0);
+			fill(mSourceTrustGenerations, 0);
+			mGeneration = 1;
+		}
+	}
+
+}
@@ -0,0 +1,808 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import plugins.WebOfTrust.Score.ScoreID;
+import plugins.WebOfTrust.Trust.TrustID;
+import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+import freenet.support.Logger;
+import freenet.support.io.Closer;
+
+/**
+ * {@link Storage} implementation which keeps all {@link Identity}s, {@link Trust}s and
+ * {@link Score}s in memory and persists them by appending the changes to a log file.<br>
+ * The purpose is to serve the access patterns of the score computation faster than db4o: It
+ * mostly walks the Trusts given and received by an Identity, and looks up single Trusts and
+ * Scores by their truster and trustee. db4o answers each of those with a query upon a String ID
+ * or an object reference, which has to search its B-tree and activate the results from disk.
+ * <br><br>
+ *
+ * Indexes: Each Identity gets an integer index when it is stored for the first time. It is
+ * written to the log and thus stays the same across restarts. Each Identity has a {@link Node}
+ * which contains the Trusts and Scores it has given and received, keyed by the index of the
+ * Identity on the other side. So all lookups are a hash table lookup by ID followed by ones by
+ * index, and the log can store a Trust or Score with the two indexes instead of the IDs or even
+ * the whole Identitys which {@link EventSourceCodec} would write.<br><br>
+ *
+ * Log format: A sequence of records of the format:<br>
+ * byte type, int payloadLength, int crc32(payload), payload.<br>
+ * See the RECORD_TYPE_* constants for the payload formats. The changes of a transaction are
+ * written at {@link #commit()}, followed by a {@link #RECORD_TYPE_COMMIT}. When the log is
+ * replayed at startup, the records of a transaction are only applied once its commit record was
+ * read. Records which were only partially written due to a crash are detected by the CRC32, and
+ * are truncated along with the uncommitted records before them.<br><br>
+ *
+ * Compaction: Updating an object appends a new version of it but does not remove the old one.
+ * {@link #compact()} rewrites the log with only the current version of each object. The
+ * {@link Statistics} show when that is worth doing.<br><br>
+ *
+ * The objects are initialized with the {@link WebOfTrustInterface} which is passed to the
+ * constructor. They are not stored in its database, so activating them does nothing, as with
+ * the objects of a {@link ReadSnapshot}.<br><br>
+ *
+ * Synchronization: None, see {@link Storage}. The lists which are returned are copies, so they
+ * can be used after further changes to the Storage.<br><br>
+ *
+ * TODO: Performance: Key the maps of the Nodes by primitive int instead of {@link Integer}. The
+ * JRE does not have such a map, so this requires implementing one or adding a dependency.
+ */
+public final class LogStorage implements Storage {
+
+	/**
+	 * Payload format:<br>
+	 * int index, byte[] identity.<br>
+	 * The identity is encoded by {@link EventSourceCodec#encode(Persistent, Persistent)}. */
+	static final byte RECORD_TYPE_PUT_IDENTITY = 1;
+
+	/**
+	 * Payload format:<br>
+	 * int trusterIndex, int trusteeIndex, byte[] trust.<br>
+	 * The trust is encoded by {@link Trust#encodeFields(java.io.DataOutputStream, Trust)}. */
+	static final byte RECORD_TYPE_PUT_TRUST = 2;
+
+	/**
+	 * Payload format:<br>
+	 * int trusterIndex, int trusteeIndex, byte[] score.<br>
+	 * The score is encoded by {@link Score#encodeFields(java.io.DataOutputStream, Score)}. */
+	static final byte RECORD_TYPE_PUT_SCORE = 3;
+
+	/** Payload format: int index. */
+	static final byte RECORD_TYPE_DELETE_IDENTITY = 4;
+
+	/** Payload format: int trusterIndex, int trusteeIndex. */
+	static final byte RECORD_TYPE_DELETE_TRUST = 5;
+
+	/** Payload format: int trusterIndex, int trusteeIndex. */
+	static final byte RECORD_TYPE_DELETE_SCORE = 6;
+
+	/** Payload format: Empty. Marks the end of a transaction. */
+	static final byte RECORD_TYPE_COMMIT = 7;
+
+	private static final int RECORD_HEADER_LENGTH = 1 + 4 + 4;
+
+	/**
+	 * Upper limit of the payload length of a record, used for detecting corruption.<br>
+	 * The encoding of an Identity is a lot smaller than its XML. */
+	private static final int RECORD_PAYLOAD_LENGTH_MAX = XMLTransformer.MAX_IDENTITY_XML_BYTE_SIZE;
+
+	/** Suffix of the file to which {@link #compact()} writes the new log. */
+	static final String COMPACTION_FILE_SUFFIX = ".compacting";
+
+
+	private final WebOfTrustInterface mWebOfTrust;
+
+	private final File mFile;
+
+	private FileChannel mChannel;
+
+	/** Length of the committed part of the log. */
+	private long mSize;
+
+	/** The records of the current transaction, written at {@link #commit()}. */
+	private final ByteArrayOutputStream mTransaction = new ByteArrayOutputStream();
+
+	/** Amount of records in {@link #mTransaction}. */
+	private int mTransactionRecords = 0;
+
+	/** Buffer for the payload of a single record, see {@link #beginRecord()}. */
+	private final ByteArrayOutputStream mRecordPayload = new ByteArrayOutputStream(256);
+
+	/** Index = {@link Node#mIndex}. Null for deleted Identitys, their index is not reused. */
+	private final ArrayList<Node> mNodes = new ArrayList<Node>();
+
+	/** Key = {@link Identity#getID()}. */
+	private final HashMap<String, Node> mNodesByID = new HashMap<String, Node>();
+
+	private final Statistics mStatistics = new Statistics();
+
+
+	/** An {@link Identity} and the {@link Trust}s and {@link Score}s which it has given and
+	 *  received. The maps are keyed by the {@link #mIndex} of the Identity on the other side. */
+	private static final class Node {
+		final int mIndex;
+
+		final Identity mIdentity;
+
+		final HashMap<Integer, Trust> mGivenTrusts = new HashMap<Integer, Trust>();
+
+		final HashMap<Integer, Trust> mReceivedTrusts = new HashMap<Integer, Trust>();
+
+		/** Empty unless {@link #mIdentity} is an {@link OwnIdentity}. */
+		final HashMap<Integer, Score> mGivenScores = new HashMap<Integer, Score>();
+
+		final HashMap<Integer, Score> mReceivedScores = new HashMap<Integer, Score>();
+
+		Node(int index, Identity identity) {
+			mIndex = index;
+			mIdentity = identity;
+		}
+	}
+
+	public static final class Statistics implements Cloneable {
+		/** Includes the changes of the current transaction, as do mTrusts and mScores. */
+		public int mIdentities = 0;
+
+		public int mTrusts = 0;
+
+		public int mScores = 0;
+
+		/** Amount of records of the committed part of the log, excluding the commit records. */
+		public long mRecords = 0;
+
+		/** Length of the log file in bytes. */
+		public long mFileSize = 0;
+
+		/**
+		 * @return The amount of records which {@link LogStorage#compact()} would remove because
+		 *     a newer version of their object was appended, or the object was deleted. */
+		public long getObsoleteRecords() {
+			return mRecords - mIdentities - mTrusts - mScores;
+		}
+
+		@Override public Statistics clone() {
+			try {
+				return (Statistics)super.clone();
+			} catch (CloneNotSupportedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+
+	/**
+	 * Opens the given log file and replays it, or creates it if it does not exist.
+	 *
+	 * @param wot Is used for {@link Persistent#initializeTransient(WebOfTrustInterface)} of the
+	 *     decoded objects, see the class-level JavaDoc. */
+	public LogStorage(WebOfTrustInterface wot, File file) throws IOException {
+		mWebOfTrust = wot;
+		mFile = file;
+
+		// The old log is intact if compact() did not finish.
+		final File compactionFile = getCompactionFile();
+		if(compactionFile.exists() && !compactionFile.delete())
+			throw new IOException("Cannot delete leftover file of compaction: " + compactionFile);
+
+		mChannel = new RandomAccessFile(mFile, "rw").getChannel();
+		replay();
+	}
+
+	/**
+	 * Restores the in-memory state from the log file.<br>
+	 * Stops at the first record which is truncated or corrupted, and truncates the log after the
+	 * last commit record before it.<br><br>
+	 *
+	 * The committed records are first collected by the key of their object, so only the latest
+	 * version of each object is decoded: The {@link Trust}s and {@link Score}s reference the
+	 * instance of their Identity, so decoding them in the order of the log would require
+	 * replacing them whenever a new version of their Identity follows. */
+	private void replay() throws IOException {
+		Logger.normal(this, "replay(): Replaying " + mFile + " ...");
+
+		mNodes.clear();
+		mNodesByID.clear();
+		mTransaction.reset();
+		mTransactionRecords = 0;
+		mStatistics.mIdentities = 0;
+		mStatistics.mTrusts = 0;
+		mStatistics.mScores = 0;
+		mStatistics.mRecords = 0;
+
+		// Latest payload of each object. Key of Trusts and Scores = getKey(truster, trustee).
+		final HashMap<Integer, byte[]> identities = new HashMap<Integer, byte[]>();
+		final HashMap<Long, byte[]> trusts = new HashMap<Long, byte[]>();
+		final HashMap<Long, byte[]> scores = new HashMap<Long, byte[]>();
+
+		// Records of the current transaction, the first byte is the type, then the payload.
+		final ArrayList<byte[]> transaction = new ArrayList<byte[]>();
+		long committedLength = 0;
+		long position = 0;
+
+		final DataInputStream in = new DataInputStream(
+			new BufferedInputStream(new FileInputStream(mFile), 64 * 1024));
+		try {
+			while(true) {
+				final byte type;
+				final int payloadLength;
+				final int crc;
+				try {
+					type = in.readByte();
+					payloadLength = in.readInt();
+					crc = in.readInt();
+				} catch(EOFException e) {
+					break;
+				}
+
+				if(type < RECORD_TYPE_PUT_IDENTITY || type > RECORD_TYPE_COMMIT
+						|| payloadLength < 0 || payloadLength > RECORD_PAYLOAD_LENGTH_MAX)
+					break;
+
+				final byte[] record = new byte[1 + payloadLength];
+				record[0] = type;
+				try {
+					in.readFully(record, 1, payloadLength);
+				} catch(EOFException e) {
+					break;
+				}
+
+				if(crc32(record, 1, payloadLength) != crc)
+					break;
+
+				position += RECORD_HEADER_LENGTH + payloadLength;
+
+				if(type != RECORD_TYPE_COMMIT) {
+					transaction.add(record);
+					continue;
+				}
+
+				for(byte[] r : transaction)
+					collectRecord(r, identities, trusts, scores);
+
+				mStatistics.mRecords += transaction.size();
+				transaction.clear();
+				committedLength = position;
+			}
+		} finally {
+			Closer.close(in);
+		}
+
+		if(committedLength != mChannel.size()) {
+			// Usually caused by a crash while committing. The data after a corrupted record
+			// cannot be replayed in any case as the start of the next record cannot be determined.
+			Logger.warning(this, "replay(): Discarding uncommitted or corrupted data at offset "
+			                   + committedLength + " of: " + mFile);
+			mChannel.truncate(committedLength);
+		}
+		mSize = committedLength;
+		mStatistics.mFileSize = mSize;
+
+		for(Map.Entry<Integer, byte[]> entry : identities.entrySet()) {
+			final Identity identity = (Identity)EventSourceCodec.decode(mWebOfTrust,
+				entry.getValue(), null);
+			addNode(entry.getKey(), identity);
+		}
+
+		for(Map.Entry<Long, byte[]> entry : trusts.entrySet()) {
+			final Node truster = getExistingNode(getTrusterIndex(entry.getKey()));
+			final Node trustee = getExistingNode(getTrusteeIndex(entry.getKey()));
+			putTrust(truster, trustee, new Trust(mWebOfTrust, truster.mIdentity,
+				trustee.mIdentity, new DataInputStream(new ByteArrayInputStream(entry.getValue()))));
+		}
+
+		for(Map.Entry<Long, byte[]> entry : scores.entrySet()) {
+			final Node truster = getExistingNode(getTrusterIndex(entry.getKey()));
+			final Node trustee = getExistingNode(getTrusteeIndex(entry.getKey()));
+			if(!(truster.mIdentity instanceof OwnIdentity))
+				throw new IOException("Truster of Score is no OwnIdentity: " + truster.mIdentity);
+			putScore(truster, trustee, new Score(mWebOfTrust, (OwnIdentity)truster.mIdentity,
+				trustee.mIdentity, new DataInputStream(new ByteArrayInputStream(entry.getValue()))));
+		}
+
+		Logger.normal(this, "replay(): Finished. Identities: " + mStatistics.mIdentities
+		                  + "; Trusts: " + mStatistics.mTrusts + "; Scores: " + mStatistics.mScores
+		                  + "; obsolete records: " + mStatistics.getObsoleteRecords());
+	}
+
+	/**
+	 * Puts the payload of a put record into the map of its object type, or removes the object
+	 * from it for a delete record. The index of the truster and trustee of Trusts and Scores are
+	 * removed from the payload as they are the key.
+	 * @param record The type byte followed by the payload. */
+	private static void collectRecord(byte[] record, HashMap<Integer, byte[]> identities,
+			HashMap<Long, byte[]> trusts, HashMap<Long, byte[]> scores) throws IOException {
+
+		final ByteBuffer payload = ByteBuffer.wrap(record, 1, record.length - 1);
+		final byte type = record[0];
+
+		if(type == RECORD_TYPE_PUT_IDENTITY || type == RECORD_TYPE_DELETE_IDENTITY) {
+			if(payload.remaining() < 4)
+				throw new IOException("Record too short: " + type);
+
+			final int index = payload.getInt();
+			if(type == RECORD_TYPE_PUT_IDENTITY)
+				identities.put(index, Arrays.copyOfRange(record, 1 + 4, record.length));
+			else if(identities.remove(index) == null)
+				throw new IOException("Deleted Identity does not exist: " + index);
+			return;
+		}
+
+		if(payload.remaining() < 4 + 4)
+			throw new IOException("Record too short: " + type);
+
+		final long key = getKey(payload.getInt(), payload.getInt());
+		final byte[] fields = Arrays.copyOfRange(record, 1 + 4 + 4, record.length);
+
+		switch(type) {
+			case RECORD_TYPE_PUT_TRUST: trusts.put(key, fields); break;
+			case RECORD_TYPE_PUT_SCORE: scores.put(key, fields); break;
+			case RECORD_TYPE_DELETE_TRUST: trusts.remove(key); break;
+			case RECORD_TYPE_DELETE_SCORE: scores.remove(key); break;
+			default: throw new IOException("Unknown record type: " + type);
+		}
+	}
+
+	private static long getKey(int trusterIndex, int trusteeIndex) {
+		return ((long)trusterIndex << 32) | (trusteeIndex & 0xFFFFFFFFL);
+	}
+
+	private static int getTrusterIndex(long key) {
+		return (int)(key >>> 32);
+	}
+
+	private static int getTrusteeIndex(long key) {
+		return (int)key;
+	}
+
+	/** @return Null if there is no Node with the given index. */
+	private Node getNode(int index) {
+		return index < mNodes.size() ? mNodes.get(index) : null;
+	}
+
+	private Node addNode(int index, Identity identity) {
+		final Node node = new Node(index, identity);
+		while(mNodes.size() <= index)
+			mNodes.add(null);
+		mNodes.set(index, node);
+		mNodesByID.put(identity.getID(), node);
+		++mStatistics.mIdentities;
+		return node;
+	}
+
+	private Node getExistingNode(int index) throws IOException {
+		final Node node = getNode(index);
+		if(node == null)
+			throw new IOException("Record references unknown Identity index: " + index);
+		return node;
+	}
+
+	/**
+	 * @return The Node of the given Identity.
+	 * @throws IllegalArgumentException If the Identity is not stored, or a different instance
+	 *     with the same ID is stored. The latter means that the caller did not obtain it from
+	 *     this Storage. */
+	private Node getNodeOf(Identity identity) {
+		final Node node = mNodesByID.get(identity.getID());
+		if(node == null)
+			throw new IllegalArgumentException("Identity is not stored: " + identity);
+		if(node.mIdentity != identity)
+			throw new IllegalArgumentException("Identity was not obtained from this Storage: " + identity);
+		return node;
+	}
+
+	private void putTrust(Node truster, Node trustee, Trust trust) {
+		if(truster.mGivenTrusts.put(trustee.mIndex, trust) == null)
+			++mStatistics.mTrusts;
+		trustee.mReceivedTrusts.put(truster.mIndex, trust);
+	}
+
+	private void putScore(Node truster, Node trustee, Score score) {
+		if(truster.mGivenScores.put(trustee.mIndex, score) == null)
+			++mStatistics.mScores;
+		trustee.mReceivedScores.put(truster.mIndex, score);
+	}
+
+	/** @return False if there was no such Trust. */
+	private boolean removeTrust(Node truster, Node trustee) {
+		if(truster.mGivenTrusts.remove(trustee.mIndex) == null)
+			return false;
+
+		trustee.mReceivedTrusts.remove(truster.mIndex);
+		--mStatistics.mTrusts;
+		return true;
+	}
+
+	/** @return False if there was no such Score. */
+	private boolean removeScore(Node truster, Node trustee) {
+		if(truster.mGivenScores.remove(trustee.mIndex) == null)
+			return false;
+
+		trustee.mReceivedScores.remove(truster.mIndex);
+		--mStatistics.mScores;
+		return true;
+	}
+
+	private void removeNode(Node node) {
+		if(!node.mGivenTrusts.isEmpty() || !node.mReceivedTrusts.isEmpty()
+				|| !node.mGivenScores.isEmpty() || !node.mReceivedScores.isEmpty()) {
+			throw new IllegalStateException(
+				"Trusts or Scores of the Identity were not deleted: " + node.mIdentity);
+		}
+
+		mNodes.set(node.mIndex, null);
+		mNodesByID.remove(node.mIdentity.getID());
+		--mStatistics.mIdentities;
+	}
+
+	@Override public Identity getIdentityByID(String id) throws UnknownIdentityException {
+		final Node node = mNodesByID.get(id);
+		if(node == null)
+			throw new UnknownIdentityException(id);
+		return node.mIdentity;
+	}
+
+	@Override public OwnIdentity getOwnIdentityByID(String id) throws UnknownIdentityException {
+		final Node node = mNodesByID.get(id);
+		if(node == null || !(node.mIdentity instanceof OwnIdentity))
+			throw new UnknownIdentityException(id);
+		return (OwnIdentity)node.mIdentity;
+	}
+
+	@Override public ArrayList<Identity> getAllIdentities() {
+		final ArrayList<Identity> result = new ArrayList<Identity>(mNodesByID.size());
+		for(Node node : mNodesByID.values())
+			result.add(node.mIdentity);
+		return result;
+	}
+
+	@Override public ArrayList<OwnIdentity> getAllOwnIdentities() {
+		final ArrayList<OwnIdentity> result = new ArrayList<OwnIdentity>();
+		for(Node node : mNodesByID.values()) {
+			if(node.mIdentity instanceof OwnIdentity)
+				result.add((OwnIdentity)node.mIdentity);
+		}
+		return result;
+	}
+
+	@Override public Trust getTrust(Identity truster, Identity trustee)
+			throws NotTrustedException {
+
+		final Node trusterNode = getNodeOf(truster);
+		final Trust trust = trusterNode.mGivenTrusts.get(getNodeOf(trustee).mIndex);
+		if(trust == null)
+			throw new NotTrustedException(new TrustID(truster, trustee).toString());
+		return trust;
+	}
+
+	@Override public Trust getTrust(String trustID) throws NotTrustedException {
+		final TrustID id = TrustID.constructAndValidate(trustID);
+		final Node trusterNode = mNodesByID.get(id.getTrusterID());
+		final Node trusteeNode = mNodesByID.get(id.getTrusteeID());
+		final Trust trust = (trusterNode != null && trusteeNode != null)
+			? trusterNode.mGivenTrusts.get(trusteeNode.mIndex) : null;
+		if(trust == null)
+			throw new NotTrustedException(trustID);
+		return trust;
+	}
+
+	@Override public ArrayList<Trust> getGivenTrusts(Identity truster) {
+		return new ArrayList<Trust>(getNodeOf(truster).mGivenTrusts.values());
+	}
+
+	@Override public ArrayList<Trust> getReceivedTrusts(Identity trustee) {
+		return new ArrayList<Trust>(getNodeOf(trustee).mReceivedTrusts.values());
+	}
+
+	@Override public ArrayList<Trust> getAllTrusts() {
+		final ArrayList<Trust> result = new ArrayList<Trust>(mStatistics.mTrusts);
+		for(Node node : mNodesByID.values())
+			result.addAll(node.mGivenTrusts.values());
+		return result;
+	}
+
+	@Override public Score getScore(OwnIdentity truster, Identity trustee)
+			throws NotInTrustTreeException {
+
+		final Node trusterNode = getNodeOf(truster);
+		final Score score = trusterNode.mGivenScores.get(getNodeOf(trustee).mIndex);
+		if(score == null)
+			throw new NotInTrustTreeException(truster, trustee);
+		return score;
+	}
+
+	@Override public Score getScore(String id) throws NotInTrustTreeException {
+		final ScoreID scoreID = ScoreID.constructAndValidate(id);
+		final Node trusterNode = mNodesByID.get(scoreID.getTrusterID());
+		final Node trusteeNode = mNodesByID.get(scoreID.getTrusteeID());
+		final Score score = (trusterNode != null && trusteeNode != null)
+			? trusterNode.mGivenScores.get(trusteeNode.mIndex) : null;
+		if(score == null)
+			throw new NotInTrustTreeException(id);
+		return score;
+	}
+
+	@Override public ArrayList<Score> getGivenScores(OwnIdentity truster) {
+		return new ArrayList<Score>(getNodeOf(truster).mGivenScores.values());
+	}
+
+	@Override public ArrayList<Score> getScores(Identity trustee) {
+		return new ArrayList<Score>(getNodeOf(trustee).mReceivedScores.values());
+	}
+
+	@Override public ArrayList<Score> getAllScores() {
+		final ArrayList<Score> result = new ArrayList<Score>(mStatistics.mScores);
+		for(Node node : mNodesByID.values())
+			result.addAll(node.mGivenScores.values());
+		return result;
+	}
+
+	/**
+	 * @throws IllegalArgumentException If the object is an Identity and a different instance of
+	 *     it is stored already, or if it is a Trust or Score whose truster or trustee are not the
+	 *     instances of this Storage. To change the class of an Identity, delete it and its Trusts
+	 *     and Scores first. */
+	@Override public void storeWithoutCommit(Persistent object) {
+		object.initializeTransient(mWebOfTrust);
+		try {
+			if(object instanceof Identity) {
+				final Identity identity = (Identity)object;
+				Node node = mNodesByID.get(identity.getID());
+				if(node == null)
+					node = addNode(mNodes.size(), identity);
+				else if(node.mIdentity != identity)
+					throw new IllegalArgumentException("Different instance is stored: " + identity);
+
+				final DataOutputStream out = beginRecord();
+				out.writeInt(node.mIndex);
+				out.write(EventSourceCodec.encode(identity, null));
+				endRecord(RECORD_TYPE_PUT_IDENTITY, out);
+			} else if(object instanceof Trust) {
+				final Trust trust = (Trust)object;
+				final Node truster = getNodeOf(trust.getTruster());
+				final Node trustee = getNodeOf(trust.getTrustee());
+				putTrust(truster, trustee, trust);
+
+				final DataOutputStream out = beginRecord();
+				out.writeInt(truster.mIndex);
+				out.writeInt(trustee.mIndex);
+				trust.encodeFields(out, null);
+				endRecord(RECORD_TYPE_PUT_TRUST, out);
+			} else if(object instanceof Score) {
+				final Score score = (Score)object;
+				final Node truster = getNodeOf(score.getTruster());
+				final Node trustee = getNodeOf(score.getTrustee());
+				putScore(truster, trustee, score);
+
+				final DataOutputStream out = beginRecord();
+				out.writeInt(truster.mIndex);
+				out.writeInt(trustee.mIndex);
+				score.encodeFields(out, null);
+				endRecord(RECORD_TYPE_PUT_SCORE, out);
+			} else
+				throw new UnsupportedOperationException("Unknown type: " + object);
+		} catch(IOException e) {
+			// ByteArrayOutputStream does not throw.
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** Deleting an object which is not stored does nothing, as with db4o. */
+	@Override public void deleteWithoutCommit(Persistent object) {
+		try {
+			if(object instanceof Identity) {
+				final Identity identity = (Identity)object;
+				if(!mNodesByID.containsKey(identity.getID()))
+					return;
+
+				final Node node = getNodeOf(identity);
+				removeNode(node);
+
+				final DataOutputStream out = beginRecord();
+				out.writeInt(node.mIndex);
+				endRecord(RECORD_TYPE_DELETE_IDENTITY, out);
+			} else if(object instanceof Trust) {
+				final Trust trust = (Trust)object;
+				final Node truster = getNodeOf(trust.getTruster());
+				final Node trustee = getNodeOf(trust.getTrustee());
+				if(!removeTrust(truster, trustee))
+					return;
+
+				final DataOutputStream out = beginRecord();
+				out.writeInt(truster.mIndex);
+				out.writeInt(trustee.mIndex);
+				endRecord(RECORD_TYPE_DELETE_TRUST, out);
+			} else if(object instanceof Score) {
+				final Score score = (Score)object;
+				final Node truster = getNodeOf(score.getTruster());
+				final Node trustee = getNodeOf(score.getTrustee());
+				if(!removeScore(truster, trustee))
+					return;
+
+				final DataOutputStream out = beginRecord();
+				out.writeInt(truster.mIndex);
+				out.writeInt(trustee.mIndex);
+				endRecord(RECORD_TYPE_DELETE_SCORE, out);
+			} else
+				throw new UnsupportedOperationException("Unknown type: " + object);
+		} catch(IOException e) {
+			// ByteArrayOutputStream does not throw.
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** @return A stream to which the payload of a record has to be written, then it must be
+	 *      passed to {@link #endRecord(byte, DataOutputStream)}. */
+	private DataOutputStream beginRecord() {
+		mRecordPayload.reset();
+		return new DataOutputStream(mRecordPayload);
+	}
+
+	/** Appends the record to {@link #mTransaction}. */
+	private void endRecord(byte type, DataOutputStream payload) throws IOException {
+		payload.flush();
+		appendRecord(mTransaction, type, mRecordPayload.toByteArray());
+		++mTransactionRecords;
+	}
+
+	private static void appendRecord(ByteArrayOutputStream log, byte type, byte[] payload)
+			throws IOException {
+
+		final DataOutputStream out = new DataOutputStream(log);
+		out.writeByte(type);
+		out.writeInt(payload.length);
+		out.writeInt(crc32(payload, 0, payload.length));
+		out.write(payload);
+		out.flush();
+	}
+
+	/** Appends the changes of the transaction to the log and syncs it to disk. */
+	@Override public void commit() {
+		if(mTransactionRecords == 0)
+			return;
+
+		try {
+			final byte[] transaction = finishTransaction();
+			write(mChannel, mSize, transaction);
+			mChannel.force(false);
+
+			mSize += transaction.length;
+			mStatistics.mRecords += mTransactionRecords;
+			mStatistics.mFileSize = mSize;
+			mTransactionRecords = 0;
+		} catch(IOException e) {
+			// The in-memory state does not match the log anymore, so restore it from the log.
+			rollback();
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** @return The records of {@link #mTransaction} followed by a commit record. Resets
+	 *      mTransaction but not {@link #mTransactionRecords}. */
+	private byte[] finishTransaction() throws IOException {
+		appendRecord(mTransaction, RECORD_TYPE_COMMIT, new byte[0]);
+		final byte[] result = mTransaction.toByteArray();
+		mTransaction.reset();
+		return result;
+	}
+
+	private static void write(FileChannel channel, long position, byte[] data)
+			throws IOException {
+
+		final ByteBuffer buffer = ByteBuffer.wrap(data);
+		while(buffer.hasRemaining())
+			position += channel.write(buffer, position);
+	}
+
+	/**
+	 * Rollbacks only happen upon errors, so instead of undoing each change in memory this
+	 * replays the whole log again. The in-memory objects are replaced by new instances then, so
+	 * objects which were returned before must not be used anymore.<br>
+	 * Truncates the log to the last commit, which undoes a partially failed {@link #commit()}. */
+	@Override public void rollback() {
+		try {
+			replay();
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override public void close() {
+		mTransaction.reset();
+		mTransactionRecords = 0;
+		Closer.close(mChannel);
+	}
+
+	/**
+	 * Rewrites the log with only the current version of each object, see the class-level
+	 * JavaDoc.<br>
+	 * The new log is written to a separate file which replaces the old one atomically once it is
+	 * complete, so a crash during compaction does not lose data.<br>
+	 * The indexes of the Identitys do not change, so the in-memory state stays valid.
+	 *
+	 * @throws IllegalStateException If the current transaction was not committed. */
+	public void compact() throws IOException {
+		if(mTransactionRecords != 0)
+			throw new IllegalStateException("compact() must not be called during a transaction!");
+
+		Logger.normal(this, "compact(): Compacting " + mFile + " ...");
+		final long oldSize = mSize;
+
+		// Storing the objects again only appends records to mTransaction, the in-memory state
+		// stays the same.
+		for(Node node : mNodes) {
+			if(node != null)
+				storeWithoutCommit(node.mIdentity);
+		}
+		for(Node node : mNodes) {
+			if(node == null)
+				continue;
+			for(Trust trust : node.mGivenTrusts.values())
+				storeWithoutCommit(trust);
+			for(Score score : node.mGivenScores.values())
+				storeWithoutCommit(score);
+		}
+
+		final long records = mTransactionRecords;
+		final byte[] log = finishTransaction();
+		mTransactionRecords = 0;
+
+		final File compactionFile = getCompactionFile();
+		final FileChannel channel = new RandomAccessFile(compactionFile, "rw").getChannel();
+		try {
+			channel.truncate(0);
+			write(channel, 0, log);
+			channel.force(false);
+			Files.move(compactionFile.toPath(), mFile.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+		} catch(IOException e) {
+			Closer.close(channel);
+			compactionFile.delete();
+			throw e;
+		}
+
+		Closer.close(mChannel);
+		mChannel = channel;
+		mSize = log.length;
+		mStatistics.mRecords = records;
+		mStatistics.mFileSize = mSize;
+
+		Logger.normal(this, "compact(): Finished. Size before: " + oldSize + "; after: " + mSize);
+	}
+
+	private File getCompactionFile() {
+		return new File(mFile.getPath() + COMPACTION_FILE_SUFFIX);
+	}
+
+	private static int crc32(byte[] data, int offset, int length) {
+		final CRC32 crc = new CRC32();
+		crc.update(data, offset, length);
+		return (int)crc.getValue();
+	}
+
+	public Statistics getStatistics() {
+		return mStatistics.clone();
+	}
+}
@@ -3,6 +3,11 @@
  * any later version). See http://www.gnu.org/ for details of the GPL. */
 package plugins.WebOfTrust;
 
+import static plugins.WebOfTrust.EventSourceCodec.copy;
+import static plugins.WebOfTrust.EventSourceCodec.differs;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
@@ -469,6 +474,47 @@ public final class OwnIdentity extends Identity implements Cloneable, Serializab
 			throw new IllegalStateException("mLastInsertDate is in the future: " + mLastInsertDate);
 	}
 	
+	/**
+	 * Decoding constructor for {@link EventSourceCodec}, inverse function of
+	 * {@link #encode(DataOutputStream, Identity)}.
+	 * 
+	 * @param base The object which was passed to encode(), or null if null was passed.
+	 */
+	OwnIdentity(WebOfTrustInterface myWoT, DataInputStream in, OwnIdentity base)
+			throws IOException {
+		
+		super(myWoT, in, base);
+		
+		final int fields = in.readUnsignedByte();
+		mInsertURIString = (fields & (1 << 0)) != 0 ? in.readUTF() : base.mInsertURIString;
+		mLastInsertDate = (fields & (1 << 1)) != 0 ? new Date(in.readLong()) : copy(base.mLastInsertDate);
+	}
+
+	/**
+	 * Writes the member variables of {@link Identity}, followed by a byte which is a bitmask of
+	 * the contained member variables of this class, followed by them.
+	 * 
+	 * @param base Must be an OwnIdentity if not null.
+	 * @see Identity#encode(DataOutputStream, Identity)
+	 */
+	@Override void encode(final DataOutputStream out, final Identity base) throws IOException {
+		super.encode(out, base);
+		
+		final OwnIdentity ownBase = (OwnIdentity)base;
+		int fields = 0;
+		if(ownBase == null || differs(mInsertURIString, ownBase.mInsertURIString))
+			fields |= 1 << 0;
+		if(ownBase == null || differs(mLastInsertDate, ownBase.mLastInsertDate))
+			fields |= 1 << 1;
+		
+		out.writeByte(fields);
+		
+		if((fields & (1 << 0)) != 0)
+			out.writeUTF(mInsertURIString);
+		if((fields & (1 << 1)) != 0)
+			out.writeLong(mLastInsertDate.getTime());
+	}
+
 	/** @see Persistent#serialize() */
 	private void writeObject(ObjectOutputStream stream) throws IOException {
 		activateFully();
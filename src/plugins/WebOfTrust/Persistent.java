@@ -15,8 +15,10 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
@@ -43,9 +45,16 @@ import freenet.support.io.Closer;
  * @author xor (xor@freenetproject.org)
  */
 public abstract class Persistent implements Serializable {
-	// TODO: Optimization: We do explicit activation everywhere. We could change this to 0 and test whether everything still works.
-	// Ideally, we would benchmark both 0 and 1 and make it configurable.
-	public static transient final int DEFAULT_ACTIVATION_DEPTH = 1;
+	/**
+	 * The activation depth of the objects which queries return.<br>
+	 * Can be changed by launching the JVM with "-DWOT_activation_depth=0" to benchmark it with
+	 * the {@link DatabaseProfiler}.<br><br>
+	 * 
+	 * TODO: Optimization: We do explicit activation everywhere, so 0 might work and be faster.
+	 * It is not tested whether everything still works with it, so only use it for benchmarks upon
+	 * a copy of a database until the benchmarks show that it is worth testing. */
+	public static transient final int DEFAULT_ACTIVATION_DEPTH
+		= Integer.getInteger("WOT_activation_depth", 1);
 	
 	/** @see Serializable */
 	private static transient final long serialVersionUID = 1L;
@@ -81,6 +90,20 @@ public abstract class Persistent implements Serializable {
 	 */
 	private static transient final Object mTransactionLock = new Object();
 	
+	/**
+	 * The {@link TransactionListener}s of each database.
+	 * Key = database, value = listeners in order of registration.
+	 * Synchronize upon the map itself when accessing it. */
+	private static transient final
+		IdentityHashMap<ExtObjectContainer, ArrayList<TransactionListener>> mTransactionListeners
+			= new IdentityHashMap<ExtObjectContainer, ArrayList<TransactionListener>>();
+	
+	/**
+	 * The {@link GroupCommitter} of each database which has one.
+	 * Synchronize upon the map itself when accessing it. */
+	private static transient final IdentityHashMap<ExtObjectContainer, GroupCommitter>
+		mGroupCommitters = new IdentityHashMap<ExtObjectContainer, GroupCommitter>();
+	
 	/* These booleans are used for preventing the construction of log-strings if logging is disabled (for saving some cpu cycles) */
 	
 	private static transient volatile boolean logDEBUG = false;
@@ -111,6 +134,22 @@ public abstract class Persistent implements Serializable {
 	 */
 	public @interface IndexedClass { }
 
+	/**
+	 * Is notified by {@link Persistent#checkedCommit(ExtObjectContainer, Object)} and
+	 * {@link Persistent#checkedRollback(ExtObjectContainer, Object, Throwable, LogLevel)} after
+	 * the transaction of the database it was registered for has been committed / rolled back.
+	 * Allows in-memory data structures which mirror parts of the database, such as the
+	 * {@link TrustGraphIndex}, to stay coherent with it.
+	 * 
+	 * The callbacks are executed while the {@link Persistent#transactionLock(ExtObjectContainer)}
+	 * is held, so they must not acquire any other locks than their own and should be fast.
+	 * 
+	 * @see Persistent#registerTransactionListener(ExtObjectContainer, TransactionListener) */
+	public interface TransactionListener {
+		void onCommit();
+		void onRollback();
+	}
+
 	/**
 	 * Functions which have this annotation must only be called while the call is wrapped in a
 	 * database transaction, e.g.:
@@ -237,6 +276,68 @@ public abstract class Persistent implements Serializable {
 		return mTransactionLock;
 	}
 
+	/**
+	 * Causes the given {@link TransactionListener} to be notified about all future commits /
+	 * rollbacks of the given database which are done via {@link #checkedCommit(ExtObjectContainer,
+	 * Object)} / {@link #checkedRollback(ExtObjectContainer, Object, Throwable, LogLevel)}. */
+	public static final void registerTransactionListener(ExtObjectContainer db,
+			TransactionListener listener) {
+		
+		synchronized(mTransactionListeners) {
+			ArrayList<TransactionListener> listeners = mTransactionListeners.get(db);
+			if(listeners == null) {
+				listeners = new ArrayList<TransactionListener>(2);
+				mTransactionListeners.put(db, listeners);
+			}
+			listeners.add(listener);
+		}
+	}
+
+	public static final void unregisterTransactionListener(ExtObjectContainer db,
+			TransactionListener listener) {
+		
+		synchronized(mTransactionListeners) {
+			ArrayList<TransactionListener> listeners = mTransactionListeners.get(db);
+			if(listeners == null)
+				return;
+			
+			listeners.remove(listener);
+			if(listeners.isEmpty())
+				mTransactionListeners.remove(db);
+		}
+	}
+
+	/** @see GroupCommitter#start() */
+	static final void registerGroupCommitter(ExtObjectContainer db, GroupCommitter committer) {
+		synchronized(mGroupCommitters) {
+			assert(!mGroupCommitters.containsKey(db));
+			mGroupCommitters.put(db, committer);
+		}
+	}
+
+	/** @see GroupCommitter#finish() */
+	static final void unregisterGroupCommitter(ExtObjectContainer db, GroupCommitter committer) {
+		synchronized(mGroupCommitters) {
+			if(mGroupCommitters.get(db) == committer)
+				mGroupCommitters.remove(db);
+		}
+	}
+
+	private static final GroupCommitter getGroupCommitter(ExtObjectContainer db) {
+		synchronized(mGroupCommitters) {
+			return mGroupCommitters.get(db);
+		}
+	}
+
+	private static final TransactionListener[] getTransactionListeners(ExtObjectContainer db) {
+		synchronized(mTransactionListeners) {
+			ArrayList<TransactionListener> listeners = mTransactionListeners.get(db);
+			return listeners != null
+				? listeners.toArray(new TransactionListener[listeners.size()])
+				: new TransactionListener[0];
+		}
+	}
+
 	/**
 	 * Only to be used by the extending classes, not to be called from the outside.
 	 * 
@@ -247,7 +348,13 @@ public abstract class Persistent implements Serializable {
 	 * Activates the object to the specified depth.<br /><br />
 	 */
 	protected final void checkedActivate(final Object object, final int depth) {
+		final boolean profile = DatabaseProfiler.isEnabled();
+		final long start = profile ? System.nanoTime() : 0;
+		
 		mDB.activate(object, depth);
+		
+		if(profile)
+			DatabaseProfiler.onActivate(object, depth, System.nanoTime() - start);
 	}
 	
 	/**
@@ -290,7 +397,15 @@ public abstract class Persistent implements Serializable {
 	 */
 	protected final void checkedStore(final Object object) {
 		testDatabaseIntegrity();
+		
+		final boolean profile = DatabaseProfiler.isEnabled();
+		final long start = profile ? System.nanoTime() : 0;
+		
 		mDB.store(object);
+		
+		if(profile)
+			DatabaseProfiler.onStore(object, System.nanoTime() - start);
+		
 		testDatabaseIntegrity();
 	}
 	
@@ -313,9 +428,15 @@ public abstract class Persistent implements Serializable {
 	 */
 	protected final void checkedDelete(final Object object) {
 		testDatabaseIntegrity();
-		if(mDB.isStored(object))
+		if(mDB.isStored(object)) {
+			final boolean profile = DatabaseProfiler.isEnabled();
+			final long start = profile ? System.nanoTime() : 0;
+			
 			mDB.delete(object);
-		else {
+			
+			if(profile)
+				DatabaseProfiler.onDelete(object, System.nanoTime() - start);
+		} else {
 			Logger.warning(this, "Trying to delete a nonexistent object: " + object,
 			    new RuntimeException()); // Exception added to get a stack trace
 		}
@@ -380,7 +501,13 @@ public abstract class Persistent implements Serializable {
 		System.gc();
 		db.rollback();
 		System.gc(); 
+		for(TransactionListener listener : getTransactionListeners(db))
+			listener.onRollback();
 		Logger.logStatic(loggingObject, "ROLLED BACK!", error, logLevel);
+		// Must be after the listeners: It commits the deferred transactions again.
+		final GroupCommitter committer = getGroupCommitter(db);
+		if(committer != null)
+			committer.onRollback();
 		testDatabaseIntegrity(null, db);
 	}
 	
@@ -498,11 +625,44 @@ public abstract class Persistent implements Serializable {
 	 */
 	public static final void checkedCommit(final ExtObjectContainer db, final Object loggingObject) {
 		testDatabaseIntegrity(null, db);
+		final long startTime = System.nanoTime();
 		db.commit();
+		final GroupCommitter committer = getGroupCommitter(db);
+		if(committer != null)
+			committer.onCommit(System.nanoTime() - startTime);
+		for(TransactionListener listener : getTransactionListeners(db))
+			listener.onCommit();
 		if(logDEBUG) Logger.debug(loggingObject, "COMMITED.");
 		testDatabaseIntegrity(null, db);
 	}
 	
+	/**
+	 * Same as {@link #checkedCommit(ExtObjectContainer, Object)} but allows the
+	 * {@link GroupCommitter} of the database to delay the commit, so it can be done along with
+	 * the ones of other transactions. If the database has no GroupCommitter, such as in unit
+	 * tests, the commit is done immediately.<br>
+	 * ATTENTION: The transaction must not have done anything but deleting the given objects: Only
+	 * those are re-applied if another transaction is rolled back before the commit is done, see
+	 * the JavaDoc of {@link GroupCommitter} for when this may be used.<br><br>
+	 * 
+	 * The call to this function must be embedded in a transaction, that is a block of:<br />
+	 * synchronized(Persistent.transactionLock(mDB)) {<br />
+	 * 	try { object.deleteWithoutCommit();
+	 *        Persistent.checkedCommitDeferred(mDB, this, Arrays.asList(object)); }<br />
+	 * 	catch(RuntimeException e) { Persistent.checkedRollback(mDB, this, e); }<br />
+	 * } 
+	 * 
+	 * @param deletedObjects All objects which the transaction has deleted. */
+	public static final void checkedCommitDeferred(final ExtObjectContainer db,
+			final Object loggingObject, final Collection<? extends Persistent> deletedObjects) {
+		
+		final GroupCommitter committer = getGroupCommitter(db);
+		if(committer != null)
+			committer.onDeferredCommit(loggingObject, deletedObjects);
+		else
+			checkedCommit(db, loggingObject);
+	}
+	
 	/**
 	 * This is one of the only functions which outside classes should use. It is used for committing the transaction.
 	 * The call to this function must be embedded in a transaction, that is a block of:<br />
@@ -600,7 +760,19 @@ public abstract class Persistent implements Serializable {
 		}
 		
 		public InitializingObjectSet(final WebOfTrustInterface myWebOfTrust, final Query myQuery) {
-			this(myWebOfTrust, myQuery.execute());
+			this(myWebOfTrust, execute(myQuery));
+		}
+		
+		/** Executes the query and records it at the {@link DatabaseProfiler} if it is enabled. */
+		@SuppressWarnings("rawtypes")
+		private static ObjectSet execute(final Query query) {
+			if(!DatabaseProfiler.isEnabled())
+				return query.execute();
+			
+			final long start = System.nanoTime();
+			final ObjectSet result = query.execute();
+			DatabaseProfiler.onQuery(System.nanoTime() - start);
+			return result;
 		}
 	
 		@Override
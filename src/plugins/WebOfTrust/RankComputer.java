@@ -0,0 +1,35 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed 
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+/**
+ * Computes the {@link Score#getRank()} which an {@link Identity} has in the trust tree of an
+ * {@link OwnIdentity}, without computing the whole trust tree.<br><br>
+ * 
+ * The reference implementation of rank computation is
+ * {@link WebOfTrust#computeAllScoresWithoutCommit()}, the other existing implementations are:
+ * - {@link WebOfTrust#computeRankFromScratch_Forward(OwnIdentity, Identity)}
+ * - {@link WebOfTrust#computeRankFromScratch(OwnIdentity, Identity)}
+ * - {@link WebOfTrust#computeRankFromScratch_Caching(OwnIdentity, Identity, java.util.Map)}
+ * - {@link IndexedRankComputer}
+ * 
+ * They must all yield the same results, which is tested by the RankComputationTest.<br><br>
+ * 
+ * TODO: Code quality: Move the WebOfTrust.computeRankFromScratch*() functions to implementations
+ * of this interface. */
+interface RankComputer {
+
+	/**
+	 * Synchronization: The caller must synchronize upon the {@link WebOfTrust}.
+	 * 
+	 * @return The rank of the target in the trust tree of the source, i.e. the length of the
+	 *     shortest path of positive {@link Trust}s from the source to the target, plus the rank of
+	 *     the source in its own trust tree.<br>
+	 *     {@link Integer#MAX_VALUE} if the target only has an infinite rank: It is distrusted by
+	 *     the source, or only distrusted by the Identitys which have a rank.<br>
+	 *     -1 if the target has no rank, or if the source has no self-{@link Score}.
+	 * @see Score#getRank() */
+	int computeRank(OwnIdentity source, Identity target);
+
+}
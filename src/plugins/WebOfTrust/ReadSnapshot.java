@@ -0,0 +1,322 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+
+/**
+ * Immutable copy of all {@link Identity}, {@link Trust} and {@link Score} objects of the database
+ * as of the end of a committed transaction.<br>
+ * Its purpose is to allow read-only user interfaces such as the FCP "GetIdentity" / "GetTrust" /
+ * "GetScore" handlers to answer queries without taking the lock of the {@link WebOfTrust}:
+ * Trust list import and Score computation can hold the lock for a long time, which would
+ * otherwise stall every query. See https://bugs.freenetproject.org/view.php?id=6247<br><br>
+ *
+ * Use {@link WebOfTrust#getReadSnapshot()} to obtain the current snapshot. It is replaced by a new
+ * one after each committed transaction which changed any of the above objects, see
+ * {@link ReadSnapshotPublisher}. A snapshot which you obtained is never modified, so all data
+ * you query from the same snapshot is coherent. The {@link #getVersion()} increases with each
+ * new snapshot.<br><br>
+ *
+ * ATTENTION: The returned objects are detached copies which are not stored in the database.<br>
+ * - You must not modify them or pass them to any functions of the {@link WebOfTrust}: Other
+ *   threads may be using the same copies.<br>
+ * - The truster / trustee of a {@link Trust} or {@link Score} is only guaranteed to have the
+ *   correct {@link Identity#getID()}: The copies of the Identitys are shared with the Trusts and
+ *   Scores to save memory, and a changed Identity does not cause its Trusts and Scores to be
+ *   copied again. Use {@link #getIdentityByID(String)} to obtain the current version of it.<br>
+ */
+public final class ReadSnapshot {
+
+	private final long mVersion;
+
+	/** Key = {@link Identity#getID()}. Contains both {@link Identity}s and {@link OwnIdentity}s. */
+	private final VersionedMap<Identity> mIdentities;
+
+	private final int mOwnIdentityCount;
+
+	/** Key = {@link Trust#getID()}. */
+	private final VersionedMap<Trust> mTrusts;
+
+	/** Key = {@link Identity#getID()} of the truster, value = {@link Trust#getID()}s. */
+	private final VersionedMap<String[]> mGivenTrusts;
+
+	/** Key = {@link Identity#getID()} of the trustee, value = {@link Trust#getID()}s. */
+	private final VersionedMap<String[]> mReceivedTrusts;
+
+	/** Key = {@link Score#getID()}. */
+	private final VersionedMap<Score> mScores;
+
+
+	private ReadSnapshot(final long version, final VersionedMap<Identity> identities,
+			final int ownIdentityCount, final VersionedMap<Trust> trusts,
+			final VersionedMap<String[]> givenTrusts, final VersionedMap<String[]> receivedTrusts,
+			final VersionedMap<Score> scores) {
+
+		mVersion = version;
+		mIdentities = identities;
+		mOwnIdentityCount = ownIdentityCount;
+		mTrusts = trusts;
+		mGivenTrusts = givenTrusts;
+		mReceivedTrusts = receivedTrusts;
+		mScores = scores;
+	}
+
+	/** Constructs an empty snapshot with {@link #getVersion()} 0. */
+	ReadSnapshot() {
+		this(0, VersionedMap.<Identity>empty(), 0, VersionedMap.<Trust>empty(),
+			VersionedMap.<String[]>empty(), VersionedMap.<String[]>empty(),
+			VersionedMap.<Score>empty());
+	}
+
+	/**
+	 * Creates the next version of this snapshot.<br>
+	 * The parameters are taken over by the new snapshot, so they must not be modified after
+	 * passing them to this function. Key = ID of the object, value = copy of the object as
+	 * created by {@link ReadSnapshotPublisher}, or null if the object was deleted.
+	 */
+	ReadSnapshot with(final HashMap<String, Identity> identityChanges,
+			final HashMap<String, Trust> trustChanges, final HashMap<String, Score> scoreChanges) {
+
+		int ownIdentityCount = mOwnIdentityCount;
+		for(Entry<String, Identity> change : identityChanges.entrySet()) {
+			if(mIdentities.get(change.getKey()) instanceof OwnIdentity)
+				--ownIdentityCount;
+			if(change.getValue() instanceof OwnIdentity)
+				++ownIdentityCount;
+		}
+
+		final HashMap<String, ArrayList<String>> givenTrusts
+			= new HashMap<String, ArrayList<String>>();
+		final HashMap<String, ArrayList<String>> receivedTrusts
+			= new HashMap<String, ArrayList<String>>();
+
+		for(Entry<String, Trust> change : trustChanges.entrySet()) {
+			final Trust oldTrust = mTrusts.get(change.getKey());
+			final Trust newTrust = change.getValue();
+			// Changes of the value of an existing Trust don't change the indexes.
+			if((oldTrust == null) == (newTrust == null))
+				continue;
+
+			final Trust trust = newTrust != null ? newTrust : oldTrust;
+			final boolean add = newTrust != null;
+			updateIndex(mGivenTrusts, givenTrusts, trust.getTruster().getID(), trust.getID(), add);
+			updateIndex(mReceivedTrusts, receivedTrusts, trust.getTrustee().getID(),
+				trust.getID(), add);
+		}
+
+		return new ReadSnapshot(mVersion + 1, mIdentities.with(identityChanges),
+			ownIdentityCount, mTrusts.with(trustChanges),
+			mGivenTrusts.with(toIndexChanges(givenTrusts)),
+			mReceivedTrusts.with(toIndexChanges(receivedTrusts)),
+			mScores.with(scoreChanges));
+	}
+
+	private static void updateIndex(final VersionedMap<String[]> index,
+			final HashMap<String, ArrayList<String>> changes, final String key,
+			final String trustID, final boolean add) {
+
+		ArrayList<String> ids = changes.get(key);
+		if(ids == null) {
+			final String[] existing = index.get(key);
+			ids = new ArrayList<String>(existing != null ? existing.length + 1 : 4);
+			if(existing != null)
+				Collections.addAll(ids, existing);
+			changes.put(key, ids);
+		}
+
+		if(add)
+			ids.add(trustID);
+		else
+			ids.remove(trustID);
+	}
+
+	private static HashMap<String, String[]> toIndexChanges(
+			final HashMap<String, ArrayList<String>> changes) {
+
+		final HashMap<String, String[]> result = new HashMap<String, String[]>(changes.size() * 2);
+		for(Entry<String, ArrayList<String>> change : changes.entrySet()) {
+			final ArrayList<String> ids = change.getValue();
+			result.put(change.getKey(), ids.isEmpty() ? null : ids.toArray(new String[ids.size()]));
+		}
+		return result;
+	}
+
+	/**
+	 * Constructs the initial snapshot from copies of all objects of the database, see
+	 * {@link ReadSnapshotPublisher#rebuild()}. The parameters are taken over by the snapshot.
+	 */
+	static ReadSnapshot fromCopies(final HashMap<String, Identity> identities,
+			final HashMap<String, Trust> trusts, final HashMap<String, Score> scores) {
+
+		int ownIdentityCount = 0;
+		for(Identity identity : identities.values()) {
+			if(identity instanceof OwnIdentity)
+				++ownIdentityCount;
+		}
+
+		final HashMap<String, ArrayList<String>> givenTrusts
+			= new HashMap<String, ArrayList<String>>(identities.size() * 2);
+		final HashMap<String, ArrayList<String>> receivedTrusts
+			= new HashMap<String, ArrayList<String>>(identities.size() * 2);
+		final VersionedMap<String[]> emptyIndex = VersionedMap.empty();
+		for(Trust trust : trusts.values()) {
+			updateIndex(emptyIndex, givenTrusts, trust.getTruster().getID(), trust.getID(), true);
+			updateIndex(emptyIndex, receivedTrusts, trust.getTrustee().getID(), trust.getID(),
+				true);
+		}
+
+		return new ReadSnapshot(0, new VersionedMap<Identity>(identities), ownIdentityCount,
+			new VersionedMap<Trust>(trusts),
+			new VersionedMap<String[]>(toIndexChanges(givenTrusts)),
+			new VersionedMap<String[]>(toIndexChanges(receivedTrusts)),
+			new VersionedMap<Score>(scores));
+	}
+
+	/** @return A number which is incremented for each new snapshot. */
+	public long getVersion() {
+		return mVersion;
+	}
+
+	/** @see WebOfTrust#getIdentityByID(String) */
+	public Identity getIdentityByID(final String id) throws UnknownIdentityException {
+		final Identity identity = mIdentities.get(id);
+		if(identity == null)
+			throw new UnknownIdentityException(id);
+		return identity;
+	}
+
+	/** @see WebOfTrust#getOwnIdentityByID(String) */
+	public OwnIdentity getOwnIdentityByID(final String id) throws UnknownIdentityException {
+		final Identity identity = mIdentities.get(id);
+		if(!(identity instanceof OwnIdentity))
+			throw new UnknownIdentityException(id);
+		return (OwnIdentity)identity;
+	}
+
+	/** For {@link ReadSnapshotPublisher}. @return Null if the Identity does not exist. */
+	Identity getIdentityOrNull(final String id) {
+		return mIdentities.get(id);
+	}
+
+	/** @return A new list of all {@link Identity}s and {@link OwnIdentity}s. */
+	public List<Identity> getAllIdentities() {
+		return mIdentities.values();
+	}
+
+	/** @return A new list of all {@link Trust}s. */
+	public List<Trust> getAllTrusts() {
+		return mTrusts.values();
+	}
+
+	/** @see WebOfTrust#getTrust(String, String) */
+	public Trust getTrust(final String trusterID, final String trusteeID)
+			throws NotTrustedException {
+
+		final String id = trusterID + "@" + trusteeID;
+		final Trust trust = mTrusts.get(id);
+		if(trust == null)
+			throw new NotTrustedException(id);
+		return trust;
+	}
+
+	/**
+	 * @return A new list of the {@link Trust}s which the given {@link Identity} has given. Empty
+	 *     if the Identity does not exist.
+	 * @see WebOfTrust#getGivenTrusts(Identity) */
+	public List<Trust> getGivenTrusts(final String trusterID) {
+		return getTrusts(mGivenTrusts.get(trusterID));
+	}
+
+	/**
+	 * @return A new list of the {@link Trust}s which the given {@link Identity} has received.
+	 *     Empty if the Identity does not exist.
+	 * @see WebOfTrust#getReceivedTrusts(Identity) */
+	public List<Trust> getReceivedTrusts(final String trusteeID) {
+		return getTrusts(mReceivedTrusts.get(trusteeID));
+	}
+
+	private List<Trust> getTrusts(final String[] trustIDs) {
+		if(trustIDs == null)
+			return new ArrayList<Trust>(0);
+
+		final ArrayList<Trust> trusts = new ArrayList<Trust>(trustIDs.length);
+		for(String id : trustIDs) {
+			final Trust trust = mTrusts.get(id);
+			assert(trust != null);
+			trusts.add(trust);
+		}
+		return trusts;
+	}
+
+	/** @see WebOfTrust#getScore(OwnIdentity, Identity) */
+	public Score getScore(final String trusterID, final String trusteeID)
+			throws NotInTrustTreeException {
+
+		final String id = trusterID + "@" + trusteeID;
+		final Score score = mScores.get(id);
+		if(score == null)
+			throw new NotInTrustTreeException(id);
+		return score;
+	}
+
+	/** @return A new list of all {@link Score}s. */
+	public List<Score> getAllScores() {
+		return mScores.values();
+	}
+
+	/**
+	 * @return For a {@link Trust} or {@link Score} of this snapshot, a copy of it which references
+	 *     the versions of its truster and trustee which are current in this snapshot, see the
+	 *     JavaDoc of this class. The copy shares them with the snapshot, so it must not be
+	 *     modified either, except for the {@link EventSource#setVersionID(java.util.UUID)} of it.
+	 *     <br>For an {@link Identity}, the given object itself.<br>
+	 *     Used by the {@link SubscriptionManager} for deploying a synchronization from a snapshot.
+	 */
+	@SuppressWarnings("unchecked")
+	<T extends EventSource> T withCurrentIdentities(final T object) {
+		if(object instanceof Identity)
+			return object;
+
+		if(object instanceof Trust) {
+			final Trust trust = (Trust)object;
+			return (T)trust.clone(mIdentities.get(trust.getTruster().getID()),
+				mIdentities.get(trust.getTrustee().getID()));
+		}
+
+		if(object instanceof Score) {
+			final Score score = (Score)object;
+			return (T)score.clone((OwnIdentity)mIdentities.get(score.getTruster().getID()),
+				mIdentities.get(score.getTrustee().getID()));
+		}
+
+		throw new UnsupportedOperationException("Unknown type: " + object);
+	}
+
+	/** @return The amount of {@link Identity}s including the {@link OwnIdentity}s. */
+	public int getIdentityCount() {
+		return mIdentities.size();
+	}
+
+	public int getOwnIdentityCount() {
+		return mOwnIdentityCount;
+	}
+
+	public int getTrustCount() {
+		return mTrusts.size();
+	}
+
+	public int getScoreCount() {
+		return mScores.size();
+	}
+
+}
@@ -0,0 +1,261 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import plugins.WebOfTrust.Persistent.TransactionListener;
+
+/**
+ * Maintains the current {@link ReadSnapshot}.<br><br>
+ *
+ * The storeWithoutCommit() / deleteWithoutCommit() functions of {@link Identity}, {@link Trust}
+ * and {@link Score} report each change to {@link #storedWithoutCommit(Persistent)} /
+ * {@link #deletedWithoutCommit(Persistent)}, which only record which objects were changed.
+ * When the transaction is committed, {@link #onCommit()} copies each changed object once, in the
+ * state in which it was committed, creates the next version of the snapshot from the copies and
+ * publishes it atomically by a volatile write. Upon rollback, the records are discarded.<br>
+ * Copying at commit instead of at each store keeps the cost off the code which changes the
+ * objects, and avoids copying objects which are stored multiple times by a transaction, such as
+ * the Scores during a full Score computation, more than once.<br>
+ * As the changes are reported at the lowest level, there is no need to adapt the callers
+ * of these functions: All code which changes the objects is covered automatically.<br><br>
+ *
+ * The snapshot is built from the database when the database is opened, see {@link #rebuild()}.
+ * <br><br>
+ *
+ * Synchronization: The recording functions are synchronized upon the ReadSnapshotPublisher.
+ * {@link #getSnapshot()} does not need any lock.
+ */
+final class ReadSnapshotPublisher implements TransactionListener {
+
+	private final WebOfTrust mWebOfTrust;
+
+	private volatile ReadSnapshot mSnapshot = new ReadSnapshot();
+
+	/**
+	 * The {@link Identity}s which were changed by the current transaction.<br>
+	 * Key = {@link Identity#getID()}, value = the object of the database, or null if the Identity
+	 * was deleted. */
+	private final HashMap<String, Identity> mIdentityChanges = new HashMap<String, Identity>();
+
+	/** Same as {@link #mIdentityChanges} for {@link Trust}s. */
+	private final HashMap<String, Trust> mTrustChanges = new HashMap<String, Trust>();
+
+	/** Same as {@link #mIdentityChanges} for {@link Score}s. */
+	private final HashMap<String, Score> mScoreChanges = new HashMap<String, Score>();
+
+	/**
+	 * The copy of each {@link Identity} which the copies of its {@link Trust}s and {@link Score}s
+	 * reference, see {@link #getIdentityCopy(Identity, HashMap)}.<br>
+	 * Key = {@link Identity#getID()}. */
+	private HashMap<String, Identity> mIdentityAnchors = new HashMap<String, Identity>();
+
+	/** Receives the changes of each committed transaction, see
+	 *  {@link #startRecordingChanges(DatabaseCompactor)}. Null if there is none. */
+	private DatabaseCompactor mChangeRecorder = null;
+
+
+	ReadSnapshotPublisher(final WebOfTrust wot) {
+		mWebOfTrust = wot;
+	}
+
+	ReadSnapshot getSnapshot() {
+		return mSnapshot;
+	}
+
+	/**
+	 * Replaces the snapshot with one which contains copies of all {@link Identity}s,
+	 * {@link Trust}s and {@link Score}s of the database.<br>
+	 * You must synchronize upon the {@link WebOfTrust} and the
+	 * {@link Persistent#transactionLock(com.db4o.ext.ExtObjectContainer)} when calling this. */
+	synchronized void rebuild() {
+		final HashMap<String, Identity> identities = new HashMap<String, Identity>();
+		final HashMap<String, Trust> trusts = new HashMap<String, Trust>();
+		final HashMap<String, Score> scores = new HashMap<String, Score>();
+
+		for(Identity identity : mWebOfTrust.getAllIdentities())
+			identities.put(identity.getID(), copy(identity));
+
+		for(Trust trust : mWebOfTrust.getAllTrusts()) {
+			trusts.put(trust.getID(), trust.clone(
+				identities.get(trust.getTruster().getID()),
+				identities.get(trust.getTrustee().getID())));
+		}
+
+		for(Score score : mWebOfTrust.getAllScores()) {
+			scores.put(score.getID(), score.clone(
+				(OwnIdentity)identities.get(score.getTruster().getID()),
+				identities.get(score.getTrustee().getID())));
+		}
+
+		discardChanges();
+		mIdentityAnchors = new HashMap<String, Identity>(identities);
+		mSnapshot = ReadSnapshot.fromCopies(identities, trusts, scores);
+	}
+
+	/**
+	 * Causes the changes of all transactions which are committed from now on to be passed to
+	 * {@link DatabaseCompactor#recordCommittedChanges(ReadSnapshot, HashMap, HashMap, HashMap)}
+	 * until {@link #stopRecordingChanges(DatabaseCompactor)} is called.
+	 * @return The current snapshot, which the recorded changes will be relative to. */
+	synchronized ReadSnapshot startRecordingChanges(final DatabaseCompactor recorder) {
+		assert(mChangeRecorder == null);
+		mChangeRecorder = recorder;
+		return mSnapshot;
+	}
+
+	/** Does nothing if the given recorder is not the current one. */
+	synchronized void stopRecordingChanges(final DatabaseCompactor recorder) {
+		if(mChangeRecorder == recorder)
+			mChangeRecorder = null;
+	}
+
+	/**
+	 * Must be called by the storeWithoutCommit() of {@link Identity}, {@link Trust} and
+	 * {@link Score} after the object was stored. */
+	static void storedWithoutCommit(final Persistent object) {
+		final ReadSnapshotPublisher publisher = getPublisher(object);
+		if(publisher != null)
+			publisher.onStoredWithoutCommit(object);
+	}
+
+	/**
+	 * Must be called by the deleteWithoutCommit() of {@link Identity}, {@link Trust} and
+	 * {@link Score} after the object was deleted. */
+	static void deletedWithoutCommit(final Persistent object) {
+		final ReadSnapshotPublisher publisher = getPublisher(object);
+		if(publisher != null)
+			publisher.onDeletedWithoutCommit(object);
+	}
+
+	/**
+	 * @return The publisher of the {@link WebOfTrust} which the object belongs to, or null if
+	 *     it belongs to a different implementation of {@link WebOfTrustInterface} or the
+	 *     snapshot was not built yet. */
+	private static ReadSnapshotPublisher getPublisher(final Persistent object) {
+		final WebOfTrustInterface wot = object.getWebOfTrust();
+		return wot instanceof WebOfTrust ? ((WebOfTrust)wot).getReadSnapshotPublisher() : null;
+	}
+
+	private synchronized void onStoredWithoutCommit(final Persistent object) {
+		if(object instanceof Identity) {
+			final Identity identity = (Identity)object;
+			mIdentityChanges.put(identity.getID(), identity);
+		} else if(object instanceof Trust) {
+			final Trust trust = (Trust)object;
+			mTrustChanges.put(trust.getID(), trust);
+		} else if(object instanceof Score) {
+			final Score score = (Score)object;
+			mScoreChanges.put(score.getID(), score);
+		} else
+			throw new UnsupportedOperationException("Unknown type: " + object);
+	}
+
+	private synchronized void onDeletedWithoutCommit(final Persistent object) {
+		if(object instanceof Identity) {
+			final String id = ((Identity)object).getID();
+			mIdentityChanges.put(id, null);
+			mIdentityAnchors.remove(id);
+		} else if(object instanceof Trust)
+			mTrustChanges.put(((Trust)object).getID(), null);
+		else if(object instanceof Score)
+			mScoreChanges.put(((Score)object).getID(), null);
+		else
+			throw new UnsupportedOperationException("Unknown type: " + object);
+	}
+
+	/**
+	 * @param identityCopies The copies of the Identitys which were changed by the transaction
+	 *     which is being committed, see {@link #onCommit()}.
+	 * @return A copy of the given {@link Identity} for being referenced by the copies of its
+	 *     {@link Trust}s and {@link Score}s.<br>
+	 *     All of them reference the same copy, even if the Identity was changed in between: If
+	 *     each referenced the version which was current when it was stored, the snapshot would
+	 *     keep alive a separate copy of an Identity for each of its Trusts and Scores. That is
+	 *     why only the {@link Identity#getID()} of them is guaranteed to be up to date, see
+	 *     {@link ReadSnapshot}. */
+	private Identity getIdentityCopy(final Identity identity,
+			final HashMap<String, Identity> identityCopies) {
+		
+		final String id = identity.getID();
+		Identity copy = mIdentityAnchors.get(id);
+		// The type changes if an Identity is converted to an OwnIdentity or vice versa.
+		if(copy != null && copy.getClass() == identity.getClass())
+			return copy;
+
+		copy = identityCopies.get(id);
+		if(copy == null)
+			copy = mSnapshot.getIdentityOrNull(id);
+		// Also handles the should-not-happen case of the Identity not having been reported yet.
+		if(copy == null || copy.getClass() != identity.getClass())
+			copy = copy(identity);
+
+		mIdentityAnchors.put(id, copy);
+		return copy;
+	}
+
+	/**
+	 * @return A copy of the Identity which is not stored in the database. Contrary to
+	 *     {@link Identity#clone()}, all member variables are copied.<br>
+	 *     Also used by {@link DatabaseCompactor} for copying the Identitys of a snapshot. */
+	static Identity copy(final Identity identity) {
+		return (Identity)EventSourceCodec.decode(identity.getWebOfTrust(),
+			EventSourceCodec.encode(identity, null), null);
+	}
+
+	/**
+	 * Publishes the next version of the snapshot if the transaction changed anything.<br>
+	 * Copies the changed objects for it: As this is called while the
+	 * {@link Persistent#transactionLock(com.db4o.ext.ExtObjectContainer)} is still held, they
+	 * cannot have been changed by the next transaction yet. */
+	@Override public synchronized void onCommit() {
+		if(mIdentityChanges.isEmpty() && mTrustChanges.isEmpty() && mScoreChanges.isEmpty())
+			return;
+
+		// The maps are taken over by the new snapshot, so they must be new ones.
+		final HashMap<String, Identity> identities
+			= new HashMap<String, Identity>(mIdentityChanges.size() * 2);
+		final HashMap<String, Trust> trusts = new HashMap<String, Trust>(mTrustChanges.size() * 2);
+		final HashMap<String, Score> scores = new HashMap<String, Score>(mScoreChanges.size() * 2);
+
+		for(Map.Entry<String, Identity> change : mIdentityChanges.entrySet()) {
+			final Identity identity = change.getValue();
+			identities.put(change.getKey(), identity != null ? copy(identity) : null);
+		}
+
+		for(Map.Entry<String, Trust> change : mTrustChanges.entrySet()) {
+			final Trust trust = change.getValue();
+			trusts.put(change.getKey(), trust == null ? null : trust.clone(
+				getIdentityCopy(trust.getTruster(), identities),
+				getIdentityCopy(trust.getTrustee(), identities)));
+		}
+
+		for(Map.Entry<String, Score> change : mScoreChanges.entrySet()) {
+			final Score score = change.getValue();
+			scores.put(change.getKey(), score == null ? null : score.clone(
+				(OwnIdentity)getIdentityCopy(score.getTruster(), identities),
+				getIdentityCopy(score.getTrustee(), identities)));
+		}
+
+		discardChanges();
+
+		mSnapshot = mSnapshot.with(identities, trusts, scores);
+		if(mChangeRecorder != null)
+			mChangeRecorder.recordCommittedChanges(mSnapshot, identities, trusts, scores);
+	}
+
+	/** Discards the changes of the current transaction. */
+	@Override public synchronized void onRollback() {
+		discardChanges();
+	}
+
+	private void discardChanges() {
+		mIdentityChanges.clear();
+		mTrustChanges.clear();
+		mScoreChanges.clear();
+	}
+
+}
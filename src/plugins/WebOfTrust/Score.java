@@ -4,8 +4,16 @@
 package plugins.WebOfTrust;
 
 import static java.util.Arrays.binarySearch;
+import static plugins.WebOfTrust.EventSourceCodec.copy;
+import static plugins.WebOfTrust.EventSourceCodec.decodeObject;
+import static plugins.WebOfTrust.EventSourceCodec.differs;
+import static plugins.WebOfTrust.EventSourceCodec.encodeObject;
+import static plugins.WebOfTrust.EventSourceCodec.readNullableVersionID;
+import static plugins.WebOfTrust.EventSourceCodec.writeNullableVersionID;
 import static plugins.WebOfTrust.WebOfTrust.VALID_CAPACITIES;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
@@ -421,6 +429,14 @@ public final class Score extends Persistent implements ReallyCloneable<Score>, E
 			// Please check the callers nevertheless and remove it if possible.
 			checkedRollbackAndThrow(e);
 		}
+		
+		ReadSnapshotPublisher.storedWithoutCommit(this);
+	}
+
+	@Override
+	protected void deleteWithoutCommit() {
+		super.deleteWithoutCommit();
+		ReadSnapshotPublisher.deletedWithoutCommit(this);
 	}
 	
 	/**
@@ -467,7 +483,20 @@ public final class Score extends Persistent implements ReallyCloneable<Score>, E
 	@Override
 	public Score clone() {
 		activateFully();
-		final Score clone = new Score(mWebOfTrust, getTruster().clone(), getTrustee().clone(), getScore(), getRank(), getCapacity());
+		return clone(getTruster().clone(), getTrustee().clone());
+	}
+
+	/**
+	 * Same as {@link #clone()} except that the clone references the given copies of the truster
+	 * and trustee instead of new clones of them.<br>
+	 * Used by {@link ReadSnapshotPublisher} so the Scores of a {@link ReadSnapshot} can share its
+	 * copies of the Identitys.
+	 */
+	Score clone(final OwnIdentity trusterCopy, final Identity trusteeCopy) {
+		activateFully();
+		assert(trusterCopy.getID().equals(mTruster.getID()));
+		assert(trusteeCopy.getID().equals(mTrustee.getID()));
+		final Score clone = new Score(mWebOfTrust, trusterCopy, trusteeCopy, getScore(), getRank(), getCapacity());
 		clone.setCreationDate(getCreationDate());
 		clone.mLastChangedDate = (Date)mLastChangedDate.clone();	// Clone it because date is mutable
 		if(mVersionID != null)
@@ -523,6 +552,101 @@ public final class Score extends Persistent implements ReallyCloneable<Score>, E
 		}
 	}
 	
+	/**
+	 * Decoding constructor for {@link EventSourceCodec}, inverse function of
+	 * {@link #encode(DataOutputStream, Score)}.
+	 * 
+	 * @param base The object which was passed to encode(), or null if null was passed.
+	 */
+	Score(WebOfTrustInterface myWoT, DataInputStream in, Score base) throws IOException {
+		initializeTransient(myWoT);
+		
+		mTruster = (OwnIdentity)decodeObject(myWoT, in, base != null ? base.mTruster : null);
+		mTrustee = (Identity)decodeObject(myWoT, in, base != null ? base.mTrustee : null);
+		mID = new ScoreID(mTruster, mTrustee).toString();
+		decodeFields(in, base);
+	}
+
+	/**
+	 * Decoding constructor for {@link LogStorage}, see
+	 * {@link Trust#Trust(WebOfTrustInterface, Identity, Identity, DataInputStream)}.
+	 */
+	Score(WebOfTrustInterface myWoT, OwnIdentity truster, Identity trustee, DataInputStream in)
+			throws IOException {
+		
+		initializeTransient(myWoT);
+		
+		mTruster = truster;
+		mTrustee = trustee;
+		mID = new ScoreID(mTruster, mTrustee).toString();
+		decodeFields(in, null);
+	}
+
+	/** Inverse function of {@link #encodeFields(DataOutputStream, Score)}. */
+	private void decodeFields(final DataInputStream in, final Score base) throws IOException {
+		final int fields = in.readUnsignedByte();
+		mCreationDate = (fields & (1 << 0)) != 0 ? new Date(in.readLong()) : copy(base.mCreationDate);
+		mValue = (fields & (1 << 1)) != 0 ? in.readInt() : base.mValue;
+		mRank = (fields & (1 << 2)) != 0 ? in.readInt() : base.mRank;
+		mCapacity = (fields & (1 << 3)) != 0 ? in.readInt() : base.mCapacity;
+		mLastChangedDate = (fields & (1 << 4)) != 0 ? new Date(in.readLong()) : copy(base.mLastChangedDate);
+		mVersionID = (fields & (1 << 5)) != 0 ? readNullableVersionID(in) : base.mVersionID;
+	}
+
+	/**
+	 * Writes the member variables for {@link EventSourceCodec}, in the same layout as
+	 * {@link Trust#encode(DataOutputStream, Trust)}.<br><br>
+	 * 
+	 * ATTENTION: You have to adjust {@link #encodeFields(DataOutputStream, Score)} and
+	 * {@link #decodeFields(DataInputStream, Score)} when introducing new member variables, and
+	 * increment {@link EventSourceCodec#FORMAT_VERSION}.
+	 */
+	void encode(final DataOutputStream out, final Score base) throws IOException {
+		activateFully();
+		if(base != null)
+			base.activateFully();
+		
+		encodeObject(out, mTruster, base != null ? base.mTruster : null);
+		encodeObject(out, mTrustee, base != null ? base.mTrustee : null);
+		encodeFields(out, base);
+	}
+
+	/** See {@link Trust#encodeFields(DataOutputStream, Trust)}. */
+	void encodeFields(final DataOutputStream out, final Score base) throws IOException {
+		activateFully();
+		if(base != null)
+			base.activateFully();
+		
+		int fields = 0;
+		if(base == null || differs(mCreationDate, base.mCreationDate))
+			fields |= 1 << 0;
+		if(base == null || mValue != base.mValue)
+			fields |= 1 << 1;
+		if(base == null || mRank != base.mRank)
+			fields |= 1 << 2;
+		if(base == null || mCapacity != base.mCapacity)
+			fields |= 1 << 3;
+		if(base == null || differs(mLastChangedDate, base.mLastChangedDate))
+			fields |= 1 << 4;
+		if(base == null || differs(mVersionID, base.mVersionID))
+			fields |= 1 << 5;
+		
+		out.writeByte(fields);
+		
+		if((fields & (1 << 0)) != 0)
+			out.writeLong(mCreationDate.getTime());
+		if((fields & (1 << 1)) != 0)
+			out.writeInt(mValue);
+		if((fields & (1 << 2)) != 0)
+			out.writeInt(mRank);
+		if((fields & (1 << 3)) != 0)
+			out.writeInt(mCapacity);
+		if((fields & (1 << 4)) != 0)
+			out.writeLong(mLastChangedDate.getTime());
+		if((fields & (1 << 5)) != 0)
+			writeNullableVersionID(out, mVersionID);
+	}
+
 	/** @see Persistent#serialize() */
 	private void writeObject(ObjectOutputStream stream) throws IOException {
 		activateFully();
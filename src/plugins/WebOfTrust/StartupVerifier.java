@@ -0,0 +1,254 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.lang.Math.min;
+import static plugins.WebOfTrust.Configuration.IS_UNIT_TEST;
+
+import java.util.concurrent.CountDownLatch;
+
+import plugins.WebOfTrust.util.jobs.BackgroundJob;
+import plugins.WebOfTrust.util.jobs.TickerDelayedBackgroundJob;
+import freenet.node.PrioRunnable;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+import freenet.support.io.NativeThread.PriorityLevel;
+
+/**
+ * Verifies the database after startup of WOT in the background instead of doing it before the
+ * user interfaces are started: On large databases it can take many minutes, during which WOT
+ * would be unusable.<br>
+ * The verification consists of:<br>
+ * - If DEBUG logging is enabled, {@link Persistent#startupDatabaseIntegrityTest()} for all
+ *   objects of the database. It is done in slices of {@link #INTEGRITY_TEST_SLICE_SIZE} objects,
+ *   each of which takes the locks of the {@link WebOfTrust} only for a short time. A pause of
+ *   {@link #INTEGRITY_TEST_SLICE_PAUSE_MILLISECONDS} between the slices gives the other threads a
+ *   chance to use the locks.<br>
+ * - {@link WebOfTrust#maybeVerifyAndCorrectStoredScores()}. This is a single transaction and
+ *   thus holds the locks for its whole duration. Its expensive part, the computation of the trust
+ *   trees, is done from the {@link TrustGraphIndex} though, and the read-only user interfaces
+ *   are answered from the {@link ReadSnapshot} without the lock.<br><br>
+ *
+ * Until the verification has finished, {@link WebOfTrust#isStartupVerificationFinished()}
+ * returns false and the user interfaces must not modify the database.<br>
+ * Upon {@link #terminate()}, the verification is aborted at the next slice. It is considered as
+ * finished then as well: It is best-effort only, WOT merely did not verify the database during
+ * this session then. The same happens at regular operation anyway, the integrity test is skipped
+ * if DEBUG logging is disabled and the Scores are only verified every
+ * {@link Configuration#DEFAULT_VERIFY_SCORES_INTERVAL}. */
+public final class StartupVerifier implements BackgroundJob, Runnable, PrioRunnable {
+
+	/** Maximal amount of objects which are tested while holding the locks. */
+	public static final int INTEGRITY_TEST_SLICE_SIZE = 256;
+
+	/** Pause between the slices of {@link #INTEGRITY_TEST_SLICE_SIZE} objects. */
+	public static final long INTEGRITY_TEST_SLICE_PAUSE_MILLISECONDS = IS_UNIT_TEST ? 0 : 50;
+
+	public static enum Stage {
+		/** {@link StartupVerifier#start()} was not called or the job was not executed yet. */
+		Waiting,
+		TestingIntegrity,
+		VerifyingScores,
+		Finished,
+		/** {@link StartupVerifier#terminate()} was called before the verification finished. */
+		Aborted
+	}
+
+	private final WebOfTrust mWebOfTrust;
+
+	/** If false, {@link Stage#TestingIntegrity} is skipped. */
+	private final boolean mTestIntegrity;
+
+	/** Runs {@link #run()} once. */
+	private final TickerDelayedBackgroundJob mJob;
+
+	/** Counted down when {@link #run()} has exited, or upon termination if it did not run. */
+	private final CountDownLatch mFinished = new CountDownLatch(1);
+
+	private final Statistics mStatistics = new Statistics();
+
+	public static final class Statistics implements Cloneable {
+		public Stage mStage = Stage.Waiting;
+
+		/** Amount of objects which {@link Stage#TestingIntegrity} has to test. */
+		public int mObjectsToTest = 0;
+
+		/** Amount of objects which {@link Stage#TestingIntegrity} has tested so far. */
+		public int mTestedObjects = 0;
+
+		/** Amount of slices of the {@link #mTestedObjects} which contained objects whose
+		 *  integrity test failed. The failures are logged. */
+		public int mFailedSlices = 0;
+
+		/** {@link System#nanoTime()} when {@link StartupVerifier#run()} started, 0 if it did not start. */
+		public long mStartTime = 0;
+
+		/** {@link System#nanoTime()} when {@link StartupVerifier#run()} exited, 0 if it did not exit. */
+		public long mEndTime = 0;
+
+		/** @return The time which the verification took, or has taken so far, in seconds. */
+		public double getDuration() {
+			if(mStartTime == 0)
+				return 0;
+
+			final long end = mEndTime != 0 ? mEndTime : System.nanoTime();
+			return (double)(end - mStartTime) / (1000 * 1000 * 1000);
+		}
+
+		@Override public Statistics clone() {
+			try {
+				return (Statistics)super.clone();
+			} catch (CloneNotSupportedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	private static transient volatile boolean logMINOR = false;
+	static {
+		Logger.registerClass(StartupVerifier.class);
+	}
+
+
+	/** @param testIntegrity See {@link #mTestIntegrity}. */
+	StartupVerifier(WebOfTrust wot, Ticker ticker, boolean testIntegrity) {
+		mWebOfTrust = wot;
+		mTestIntegrity = testIntegrity;
+		mJob = new TickerDelayedBackgroundJob(this, "WOT StartupVerifier", 0, ticker);
+	}
+
+	/** Must be called during startup of WOT, after the {@link IdentityFetcher} was started. */
+	void start() {
+		triggerExecution();
+	}
+
+	/** Does nothing if the verification was executed already. */
+	@Override public void triggerExecution() {
+		if(mFinished.getCount() != 0)
+			mJob.triggerExecution();
+	}
+
+	@Override public void run() {
+		Logger.normal(this, "run()...");
+
+		synchronized(this) {
+			// Don't run twice if triggerExecution() raced with the end of a previous run().
+			if(mStatistics.mStartTime != 0)
+				return;
+			mStatistics.mStartTime = System.nanoTime();
+		}
+
+		Stage result = Stage.Aborted;
+		try {
+			if(mTestIntegrity)
+				testIntegrity();
+
+			setStage(Stage.VerifyingScores);
+			mWebOfTrust.maybeVerifyAndCorrectStoredScores();
+
+			result = Stage.Finished;
+		} catch(InterruptedException e) {
+			Logger.normal(this, "run(): Shutdown requested, aborting verification.");
+			// Not restoring the interrupted flag: run() exits now, and TickerDelayedBackgroundJob
+			// does not need it as it has initiated the interruption.
+		} finally {
+			synchronized(this) {
+				mStatistics.mStage = result;
+				mStatistics.mEndTime = System.nanoTime();
+			}
+			mFinished.countDown();
+
+			Logger.normal(this, "run() finished: " + result + "; duration: "
+				+ getStatistics().getDuration() + "s");
+		}
+	}
+
+	private void testIntegrity() throws InterruptedException {
+		setStage(Stage.TestingIntegrity);
+
+		final long[] ids = mWebOfTrust.getAllPersistentObjectIDs();
+		synchronized(this) {
+			mStatistics.mObjectsToTest = ids.length;
+		}
+
+		for(int from = 0; from < ids.length; from += INTEGRITY_TEST_SLICE_SIZE) {
+			if(Thread.interrupted())
+				throw new InterruptedException();
+
+			final int to = min(ids.length, from + INTEGRITY_TEST_SLICE_SIZE);
+			final boolean success = mWebOfTrust.verifyDatabaseIntegrity(ids, from, to);
+
+			synchronized(this) {
+				mStatistics.mTestedObjects = to;
+				if(!success)
+					++mStatistics.mFailedSlices;
+			}
+
+			if(logMINOR)
+				Logger.minor(this, "testIntegrity(): Tested " + to + " of " + ids.length);
+
+			if(INTEGRITY_TEST_SLICE_PAUSE_MILLISECONDS > 0)
+				Thread.sleep(INTEGRITY_TEST_SLICE_PAUSE_MILLISECONDS);
+		}
+
+		if(getStatistics().mFailedSlices > 0)
+			Logger.error(this, "Database integrity test failed, see the previous log messages!");
+		else
+			Logger.normal(this, "Database integrity test finished, no errors found.");
+	}
+
+	private synchronized void setStage(Stage stage) {
+		mStatistics.mStage = stage;
+	}
+
+	@Override public int getPriority() {
+		// LOW_PRIORITY since we are background processing, and not triggered by UI actions.
+		// Not MIN_PRIORITY since the user interfaces are read-only until we have finished.
+		return PriorityLevel.LOW_PRIORITY.value;
+	}
+
+	/**
+	 * True if the verification has finished or was aborted by {@link #terminate()}, see
+	 * {@link WebOfTrust#isStartupVerificationFinished()}. */
+	public boolean isFinished() {
+		return mFinished.getCount() == 0;
+	}
+
+	/** Blocks until {@link #isFinished()} is true. For unit tests which need a writable WOT. */
+	public void waitUntilFinished() throws InterruptedException {
+		mFinished.await();
+	}
+
+	/** Must be called before the WOT plugin is terminated. */
+	@Override public void terminate() {
+		mJob.terminate();
+	}
+
+	@Override public boolean isTerminated() {
+		return mJob.isTerminated();
+	}
+
+	/**
+	 * Must be called after {@link #terminate()} was called, and before the WOT plugin is
+	 * terminated.<br>
+	 * @param timeoutMillis Is ignored, {@link Long#MAX_VALUE} will always be used. */
+	@Override public void waitForTermination(long timeoutMillis) throws InterruptedException {
+		// run() checks for interruption after each slice, so we force the timeout to be infinite
+		// so we always wait for clean exit of run() after it was terminate()d.
+		mJob.waitForTermination(Long.MAX_VALUE);
+
+		// If the job was terminated before it was executed, run() did not count down.
+		if(mFinished.getCount() != 0) {
+			synchronized(this) {
+				mStatistics.mStage = Stage.Aborted;
+			}
+			mFinished.countDown();
+		}
+	}
+
+	/** Gets a {@link Statistics} object suitable for displaying the progress in the UI. */
+	public synchronized Statistics getStatistics() {
+		return mStatistics.clone();
+	}
+}
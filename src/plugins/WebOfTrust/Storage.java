@@ -0,0 +1,108 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.List;
+
+import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+
+/**
+ * Storage backend of the {@link Identity}s, {@link Trust}s and {@link Score}s: Their CRUD
+ * operations and the indexed lookups which the score computation and the user interfaces need.
+ * <br><br>
+ *
+ * Implementations:<br>
+ * - {@link Db4oStorage}: The database of the {@link WebOfTrust}, which it queries through this
+ *   interface.<br>
+ * - {@link LogStorage}: A log-structured store which keeps all objects in memory and indexes the
+ *   Trusts and Scores by the integer index of their truster and trustee.<br>
+ * {@link StorageMigration#migrate(Storage, Storage, int)} copies all objects from one to
+ * another.<br><br>
+ *
+ * Not covered yet, they are only stored by db4o:<br>
+ * - The queries of {@link WebOfTrust} with sorting or value filtering, for example
+ *   {@link WebOfTrust#getIdentitiesByScore(OwnIdentity, int)}. They are built upon db4o
+ *   {@link com.db4o.query.Query}s.<br>
+ * - The {@link Configuration}, the {@link plugins.WebOfTrust.introduction.IntroductionPuzzle}s,
+ *   the commands of the {@link IdentityFetcher} and the notifications of the
+ *   {@link SubscriptionManager}. The notifications are a transient queue which is flushed at
+ *   startup, so they would not benefit from a different backend.<br>
+ * TODO: Performance: Move them to the interface, and allow the user to choose the backend.
+ * <br><br>
+ *
+ * Transactions: Changes are made by {@link #storeWithoutCommit(Persistent)} and
+ * {@link #deleteWithoutCommit(Persistent)}, and become durable with {@link #commit()}. The
+ * functions are not thread-safe, the caller has to synchronize like with the database of the
+ * WebOfTrust, see {@link Persistent#transactionLock(com.db4o.ext.ExtObjectContainer)}.<br>
+ * Objects which were returned by one Storage must not be passed to another one as the Trusts and
+ * Scores reference the Identitys of their Storage, see {@link StorageMigration}.
+ */
+public interface Storage {
+
+	/** @throws UnknownIdentityException If there is no {@link Identity} with the given ID. */
+	public Identity getIdentityByID(String id) throws UnknownIdentityException;
+
+	/** @throws UnknownIdentityException If there is no {@link OwnIdentity} with the given ID. */
+	public OwnIdentity getOwnIdentityByID(String id) throws UnknownIdentityException;
+
+	/** Includes the {@link OwnIdentity}s. */
+	public List<Identity> getAllIdentities();
+
+	public List<OwnIdentity> getAllOwnIdentities();
+
+	/** @throws NotTrustedException If the truster does not trust the trustee. */
+	public Trust getTrust(Identity truster, Identity trustee) throws NotTrustedException;
+
+	/**
+	 * @param trustID The {@link Trust#getID()}.
+	 * @throws NotTrustedException If there is no {@link Trust} with the given ID. */
+	public Trust getTrust(String trustID) throws NotTrustedException;
+
+	/** @return All {@link Trust}s which the given {@link Identity} has given. */
+	public List<Trust> getGivenTrusts(Identity truster);
+
+	/** @return All {@link Trust}s which the given {@link Identity} has received. */
+	public List<Trust> getReceivedTrusts(Identity trustee);
+
+	public List<Trust> getAllTrusts();
+
+	/** @throws NotInTrustTreeException If the trustee is not in the trust tree of the truster. */
+	public Score getScore(OwnIdentity truster, Identity trustee) throws NotInTrustTreeException;
+
+	/**
+	 * @param id The {@link Score#getID()}.
+	 * @throws NotInTrustTreeException If there is no {@link Score} with the given ID. */
+	public Score getScore(String id) throws NotInTrustTreeException;
+
+	/** @return The {@link Score}s of the trust tree of the given {@link OwnIdentity}. */
+	public List<Score> getGivenScores(OwnIdentity truster);
+
+	/** @return The {@link Score}s which the given {@link Identity} has in all trust trees. */
+	public List<Score> getScores(Identity trustee);
+
+	public List<Score> getAllScores();
+
+	/**
+	 * Stores the given {@link Identity}, {@link Trust} or {@link Score}, or updates it if it was
+	 * stored already.<br>
+	 * The truster and trustee of a Trust or Score must have been stored before. */
+	public void storeWithoutCommit(Persistent object);
+
+	/**
+	 * Deletes the given {@link Identity}, {@link Trust} or {@link Score}.<br>
+	 * The Trusts and Scores of an Identity must be deleted before the Identity. */
+	public void deleteWithoutCommit(Persistent object);
+
+	public void commit();
+
+	/** Discards the changes since the last {@link #commit()}. Objects which were returned before
+	 *  must be queried again as they might have been modified by the caller. */
+	public void rollback();
+
+	/** Discards the changes since the last {@link #commit()} and closes the underlying files. */
+	public void close();
+
+}
@@ -0,0 +1,117 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.HashMap;
+
+import freenet.support.Logger;
+
+/**
+ * Copies all {@link Identity}s, {@link Trust}s and {@link Score}s from one {@link Storage} to
+ * another, for example from the db4o database of WOT to a {@link LogStorage}.<br>
+ * Used by the "-exportToLogStorage" command of {@link plugins.WebOfTrust.ui.terminal.WOTUtil}.
+ * <br><br>
+ *
+ * The objects cannot be passed from one Storage to the other as they are: The Trusts and Scores
+ * of the target must reference the Identitys of the target. So the Identitys are copied first,
+ * and the Trusts and Scores are cloned with references to the copies, the same way as
+ * {@link DatabaseCompactor} does it.
+ */
+public final class StorageMigration {
+
+	/** Default amount of objects after which the target is committed. Committing once per
+	 *  object would be slow, committing only at the end would need a lot of memory with db4o. */
+	public static final int DEFAULT_COMMIT_INTERVAL = 1024;
+
+
+	private StorageMigration() {}
+
+	/**
+	 * Copies all objects of the source to the target and commits the target.<br>
+	 * Upon errors, the target is rolled back to the last intermediate commit and the error is
+	 * thrown. The target should then be deleted and the migration be retried.<br><br>
+	 *
+	 * The caller must ensure that the source is not modified during the migration, for the
+	 * database of a {@link WebOfTrust} by synchronizing on it and on
+	 * {@link Persistent#transactionLock(com.db4o.ext.ExtObjectContainer)}.
+	 *
+	 * @param target Must be empty.
+	 * @param commitInterval The target is committed whenever this amount of objects has been
+	 *     stored, see {@link #DEFAULT_COMMIT_INTERVAL}.
+	 * @return The amount of copied objects. */
+	public static int migrate(Storage source, Storage target, int commitInterval) {
+		if(!target.getAllIdentities().isEmpty())
+			throw new IllegalArgumentException("Target is not empty!");
+
+		final Migration migration = new Migration(target, commitInterval);
+		try {
+			for(Identity identity : source.getAllIdentities())
+				migration.store(identity);
+
+			Logger.normal(StorageMigration.class, "migrate(): Copied Identitys: "
+			                                    + migration.mCopiedObjects);
+
+			for(Trust trust : source.getAllTrusts()) {
+				migration.store(trust.clone(migration.getCopy(trust.getTruster()),
+				                            migration.getCopy(trust.getTrustee())));
+			}
+
+			for(Score score : source.getAllScores()) {
+				migration.store(score.clone((OwnIdentity)migration.getCopy(score.getTruster()),
+				                            migration.getCopy(score.getTrustee())));
+			}
+
+			target.commit();
+		} catch(RuntimeException e) {
+			target.rollback();
+			throw e;
+		} catch(Error e) { // TODO: Java 7: Merge with above to catch(RuntimeException | Error e)
+			target.rollback();
+			throw e;
+		}
+
+		Logger.normal(StorageMigration.class, "migrate(): Finished, copied objects: "
+		                                    + migration.mCopiedObjects);
+		return migration.mCopiedObjects;
+	}
+
+	/** State of a single {@link StorageMigration#migrate(Storage, Storage, int)} call. */
+	private static final class Migration {
+		final Storage mTarget;
+
+		final int mCommitInterval;
+
+		/** Key = {@link Identity#getID()}, value = the copy which was stored in the target. */
+		final HashMap<String, Identity> mIdentityCopies = new HashMap<String, Identity>();
+
+		int mCopiedObjects = 0;
+
+		Migration(Storage target, int commitInterval) {
+			mTarget = target;
+			mCommitInterval = commitInterval;
+		}
+
+		/** Stores a copy of the given Identity, or the given Trust / Score. */
+		void store(Persistent object) {
+			if(object instanceof Identity) {
+				final Identity copy = ReadSnapshotPublisher.copy((Identity)object);
+				mIdentityCopies.put(copy.getID(), copy);
+				object = copy;
+			}
+
+			mTarget.storeWithoutCommit(object);
+
+			if(++mCopiedObjects % mCommitInterval == 0) {
+				mTarget.commit();
+				Logger.normal(this, "Copied objects: " + mCopiedObjects);
+			}
+		}
+
+		Identity getCopy(Identity identity) {
+			final Identity copy = mIdentityCopies.get(identity.getID());
+			assert(copy != null) : "Identity was not migrated: " + identity;
+			return copy;
+		}
+	}
+}
@@ -3,12 +3,23 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package plugins.WebOfTrust;
 
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.UUID;
 
+import plugins.WebOfTrust.Identity.IdentityID;
 import plugins.WebOfTrust.exceptions.DuplicateObjectException;
+import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
+import plugins.WebOfTrust.ui.fcp.FCPInterface;
 import plugins.WebOfTrust.ui.fcp.FCPInterface.FCPCallFailedException;
 import plugins.WebOfTrust.util.jobs.BackgroundJob;
 import plugins.WebOfTrust.util.jobs.DelayedBackgroundJob;
@@ -71,8 +82,13 @@ import freenet.support.io.NativeThread;
  * Any functions which require synchronization upon some of the locks will mention it.
  * 
  * TODO: Allow out-of-order notifications if the client desires them
- * TODO: Optimization: Allow coalescing of notifications: If a single object changes twice, only send one notification
- * TODO: Optimization: Allow the client to specify filters to reduce traffic: - Context of identities, etc. 
+ * If a single object changes multiple times before the {@link Notification} about the first change
+ * was deployed, the changes are coalesced into a single Notification, see
+ * {@link #coalesceNotificationWithoutCommit(Subscription, Persistent, Persistent)}.<br>
+ * 
+ * Clients can reduce the amount of Notifications by specifying a {@link Filter} when
+ * subscribing. It is applied when storing Notifications, so filtered changes are never stored
+ * at all.
  * 
  * 
  * TODO: This should be used for powering the IntroductionClient/IntroductionServer.
@@ -129,6 +145,18 @@ public final class SubscriptionManager implements PrioRunnable {
 		 */
 		private byte mSendNotificationsFailureCount = 0;
 		
+		/**
+		 * The maximal amount of {@link Notification}s which {@link #sendNotifications(
+		 * SubscriptionManager)} may send in a single FCP message, see
+		 * {@link FCPInterface#sendNotificationBatch(UUID, List)}.<br>
+		 * 0 if the client does not support batches: Each Notification is then sent as a separate
+		 * message. This is the default for compatibility with older clients, and also the value
+		 * which db4o will yield for Clients stored before this field was added.
+		 * 
+		 * @see #setMaxNotificationBatchSizeWithoutCommit(int)
+		 */
+		private int mMaxNotificationBatchSize = 0;
+		
 		/** @param myFCP_ID See {@link #mFCP_ID} */
 		public Client(final UUID myFCP_ID) {
             assert(myFCP_ID != null);
@@ -154,6 +182,10 @@ public final class SubscriptionManager implements PrioRunnable {
 			
 			if(mSendNotificationsFailureCount < 0 || mSendNotificationsFailureCount > SubscriptionManager.DISCONNECT_CLIENT_AFTER_FAILURE_COUNT)
 				throw new IllegalStateException("mSendNotificationsFailureCount==" + mSendNotificationsFailureCount);
+			
+			if(mMaxNotificationBatchSize < 0
+			        || mMaxNotificationBatchSize > SubscriptionManager.MAX_NOTIFICATION_BATCH_SIZE)
+				throw new IllegalStateException("mMaxNotificationBatchSize==" + mMaxNotificationBatchSize);
 		}
 		
 		/**
@@ -227,10 +259,43 @@ public final class SubscriptionManager implements PrioRunnable {
 			return mSendNotificationsFailureCount;
 		}
 
+		/**
+		 * @see #mMaxNotificationBatchSize
+		 */
+		public final int getMaxNotificationBatchSize() {
+			checkedActivate(1);
+			return mMaxNotificationBatchSize;
+		}
+		
+		/**
+		 * Sets {@link #mMaxNotificationBatchSize} and stores this Client without committing the
+		 * transaction.<br>
+		 * Values above {@link SubscriptionManager#MAX_NOTIFICATION_BATCH_SIZE} are reduced to it.
+		 * 
+		 * @param maxNotificationBatchSize Must be >= 0. 0 disables batching.
+		 */
+		protected final void setMaxNotificationBatchSizeWithoutCommit(
+		        final int maxNotificationBatchSize) {
+		    
+			if(maxNotificationBatchSize < 0)
+				throw new IllegalArgumentException("maxNotificationBatchSize==" + maxNotificationBatchSize);
+			
+			checkedActivate(1);
+			mMaxNotificationBatchSize
+			    = min(maxNotificationBatchSize, SubscriptionManager.MAX_NOTIFICATION_BATCH_SIZE);
+			storeWithoutCommit();
+		}
+
 		/**
 		 * Sends out the notification queue for this Client, in sequence.
 		 * 
-		 * If a notification is sent successfully, it is deleted and the transaction is committed.
+		 * If the Client supports batches (see {@link #mMaxNotificationBatchSize}), up to that many
+		 * Notifications are sent in a single FCP message. Otherwise each one is sent as a separate
+		 * message.<br>
+		 * If a message is sent successfully, its notifications are deleted and the transaction is
+		 * committed - so with batches there is one commit per batch instead of per notification.
+		 * If the client indicates failure in the middle of a batch, the notifications which it
+		 * has acknowledged as processed are deleted nevertheless so they are not re-sent.
 		 * 
 		 * If sending a single notification fails, the failure counter {@link #mSendNotificationsFailureCount} is incremented
 		 * and {@link SubscriptionManager#scheduleNotificationProcessing()} is executed to retry sending the notification after some time.
@@ -261,12 +326,38 @@ public final class SubscriptionManager implements PrioRunnable {
 			// This is necessary for SubscriptionManager.stop() to be fast.
 			switch(getType()) {
 				case FCP:
-					for(final Notification notification : manager.getNotifications(this)) {
-						if(SubscriptionManager.logDEBUG) Logger.debug(manager, "Sending notification via FCP: " + notification);
+					final int maxBatchSize = getMaxNotificationBatchSize();
+					final Iterator<Notification> notifications
+					    = manager.getNotificationsIncludingSnapshots(this);
+					final ArrayList<Notification> batch
+					    = new ArrayList<Notification>(max(1, maxBatchSize));
+					// The Subscriptions of the deployed snapshot entries of the batch, see
+					// deleteDeployedNotificationsWithoutCommit().
+					final ArrayList<Subscription<? extends EventSource>> deployedSnapshotEntries
+					    = new ArrayList<Subscription<? extends EventSource>>();
+					
+					while(notifications.hasNext()) {
+						// The batch must be taken from the head of the queue so the order of
+						// the notifications is preserved.
+						batch.clear();
+						deployedSnapshotEntries.clear();
+						do {
+							batch.add(notifications.next());
+						} while(batch.size() < maxBatchSize && notifications.hasNext());
+						
+						if(SubscriptionManager.logDEBUG) Logger.debug(manager, "Sending notifications via FCP: " + batch);
 						try {
 							try {
-								notification.getSubscription().notifySubscriberByFCP(notification);
-								notification.deleteWithoutCommit();
+								if(maxBatchSize == 0) {
+									final Notification notification = batch.get(0);
+									notification.getSubscription().notifySubscriberByFCP(notification);
+								} else {
+									mWebOfTrust.getFCPInterface()
+									    .sendNotificationBatch(getFCP_ID(), batch);
+								}
+								
+								deleteDeployedNotificationsWithoutCommit(
+								    batch, deployedSnapshotEntries);
 							} catch(InterruptedException e) {
                                 // Shutdown of WOT was requested. This is normal mode of operation,
                                 // and not the fault of the client, so we do not increment its
@@ -282,8 +373,24 @@ public final class SubscriptionManager implements PrioRunnable {
 							    
 								Persistent.checkedRollback(mDB, this, e, LogLevel.WARNING);
 								
+								// The client did process the first notifications of a batch
+								// before the failure. It must not receive them again: Re-sending
+								// them would not break the order, but the client might not be
+								// able to deal with duplicates.
+								// The snapshot entries of the rolled back deletions were not
+								// removed yet, see deleteDeployedNotificationsWithoutCommit().
+								deployedSnapshotEntries.clear();
+								if(e instanceof FCPCallFailedException) {
+									final int acknowledged
+									    = ((FCPCallFailedException)e).getAcknowledgedCount();
+									deleteDeployedNotificationsWithoutCommit(
+									    batch.subList(0, acknowledged), deployedSnapshotEntries);
+								}
+								
 								final byte failureCount = incrementSendNotificationsFailureCountWithoutCommit();
 								Persistent.checkedCommit(mDB, this);
+								manager.removeSynchronizationSnapshotEntries(
+								    deployedSnapshotEntries);
 								
 								boolean doNotDeleteClient = true;
 								
@@ -312,15 +419,17 @@ public final class SubscriptionManager implements PrioRunnable {
 								return doNotDeleteClient;
 							}
 							
-							// If processing of a single notification fails, we do not want the previous notifications
-							// to be sent again when the failed notification is retried. Therefore, we commit after
-							// each processed notification but do not catch RuntimeExceptions here
+							// If processing of a batch fails, we do not want the previous batches
+							// to be sent again when the failed batch is retried. Therefore, we
+							// commit after each processed batch but do not catch RuntimeExceptions
+							// here
 							
 							Persistent.checkedCommit(mDB, this);
+							manager.removeSynchronizationSnapshotEntries(deployedSnapshotEntries);
 						} catch(RuntimeException e) {
 							Persistent.checkedRollbackAndThrow(mDB, this, e);
 						}
-						if(SubscriptionManager.logDEBUG) Logger.debug(manager, "Sending notification via FCP finished: " + notification);
+						if(SubscriptionManager.logDEBUG) Logger.debug(manager, "Sending notifications via FCP finished: " + batch);
 					}
 					break;
 				default:
@@ -330,6 +439,27 @@ public final class SubscriptionManager implements PrioRunnable {
 			return true;
 		}
 		
+		/**
+		 * Deletes the given {@link Notification}s after they were deployed. Does not commit the
+		 * transaction.<br>
+		 * Notifications which are {@link Notification#isSnapshotEntry()} are not stored in the
+		 * database, so deleting them cannot be rolled back. Instead, their {@link Subscription}s
+		 * are added to the given list, and the caller must pass it to
+		 * {@link SubscriptionManager#removeSynchronizationSnapshotEntries(List)} after the
+		 * transaction was committed.
+		 */
+		private static void deleteDeployedNotificationsWithoutCommit(
+		        final List<Notification> notifications,
+		        final List<Subscription<? extends EventSource>> deployedSnapshotEntries) {
+		    
+			for(final Notification notification : notifications) {
+				if(notification.isSnapshotEntry())
+					deployedSnapshotEntries.add(notification.getSubscription());
+				else
+					notification.deleteWithoutCommit();
+			}
+		}
+		
 		/**
 		 * Sends a message to the client which indicates that a {@link Subscription} has been forcefully terminated.
 		 * This can happen if the client exceeds the limit of {@link SubscriptionManager#DISCONNECT_CLIENT_AFTER_FAILURE_COUNT} failures
@@ -396,6 +526,167 @@ public final class SubscriptionManager implements PrioRunnable {
 		}
 	}
 	
+	/**
+	 * The objects of the synchronization of a {@link Subscription}, see
+	 * {@link Subscription#storeSynchronizationWithoutCommit()}.<br>
+	 * The objects are not copied: They are the ones of the {@link ReadSnapshot} which was
+	 * current when the Subscription was stored. ReadSnapshots are immutable and share the objects
+	 * which did not change with their successors, see {@link VersionedMap}. So a
+	 * SynchronizationSnapshot only costs a reference per object, plus the objects which were
+	 * changed in the database after it was taken and have not been deployed yet.<br>
+	 * Instead of storing an {@link ObjectChangedNotification} for each of the objects, such
+	 * Notifications are only constructed while being sent, see
+	 * {@link SubscriptionManager#getNotificationsIncludingSnapshots(Client)}. Once one of them
+	 * was sent and the transaction of the deployment was committed, the first object of the
+	 * snapshot is removed.<br><br>
+	 * 
+	 * Synchronization: Protected by the lock on the {@link SubscriptionManager}. The
+	 * ReadSnapshot does not need any lock.
+	 */
+	static final class SynchronizationSnapshot<EventType extends EventSource> {
+		
+		private final Subscription<EventType> mSubscription;
+		
+		/** The snapshot of the database which the {@link #mObjects} belong to. */
+		private final ReadSnapshot mSnapshot;
+		
+		/**
+		 * The version ID of the objects when deploying them, see
+		 * {@link EventSource#setVersionID(UUID)}. */
+		private final UUID mSynchronizationID;
+		
+		/**
+		 * Objects of the {@link #mSnapshot}, in the order in which they shall be deployed.<br>
+		 * They must not be modified, see {@link ReadSnapshot}. Use {@link #getDeployableCopy(
+		 * EventSource)}. */
+		private final ArrayDeque<EventType> mObjects = new ArrayDeque<EventType>();
+		
+		SynchronizationSnapshot(final Subscription<EventType> subscription,
+				final ReadSnapshot snapshot, final UUID synchronizationID) {
+			mSubscription = subscription;
+			mSnapshot = snapshot;
+			mSynchronizationID = synchronizationID;
+		}
+		
+		/**
+		 * @return The given object of the {@link #mSnapshot}, or for {@link Trust}s and
+		 *     {@link Score}s a copy of it which references the current versions of the truster
+		 *     and trustee. Must not be modified.<br>
+		 *     For {@link Subscription#passesFilter(EventSource)}: The filters check the contexts
+		 *     of the truster and trustee.
+		 * @see ReadSnapshot#withCurrentIdentities(EventSource) */
+		EventType withCurrentIdentities(final EventType object) {
+			return mSnapshot.withCurrentIdentities(object);
+		}
+		
+		/**
+		 * @return A copy of the given object with the current versions of the truster and
+		 *     trustee of {@link Trust}s and {@link Score}s, and with the
+		 *     {@link #mSynchronizationID}. */
+		@SuppressWarnings("unchecked")
+		private EventType getDeployableCopy(final EventType object) {
+			EventType copy = withCurrentIdentities(object);
+			// Identitys are returned as is. They must not be modified as other threads may use
+			// the same ReadSnapshot.
+			if(copy == object)
+				copy = (EventType)object.clone();
+			
+			copy.setVersionID(mSynchronizationID);
+			return copy;
+		}
+		
+		void add(final EventType object) {
+			mObjects.addLast(object);
+		}
+		
+		/** Called when the first object was deployed successfully. */
+		void removeFirst() {
+			mObjects.removeFirst();
+		}
+		
+		boolean isEmpty() {
+			return mObjects.isEmpty();
+		}
+		
+		int size() {
+			return mObjects.size();
+		}
+		
+		/**
+		 * @return The {@link ObjectChangedNotification}s of the remaining objects, constructed
+		 *     with {@link Subscription#constructSynchronizationNotification(EventSource)} on demand
+		 *     so there is only a serialized copy of the objects which are currently being sent.
+		 *     <br>The iterator works on a copy of the list of objects so {@link #removeFirst()}
+		 *     can be called while iterating.
+		 */
+		Iterator<Notification> iterator() {
+			final Iterator<EventType> objects = new ArrayList<EventType>(mObjects).iterator();
+			
+			return new Iterator<Notification>() {
+				@Override public boolean hasNext() {
+					return objects.hasNext();
+				}
+
+				@Override public Notification next() {
+					final ObjectChangedNotification notification
+					    = mSubscription.constructSynchronizationNotification(
+					        getDeployableCopy(objects.next()));
+					notification.initializeTransient(mSubscription.getWebOfTrust());
+					return notification;
+				}
+
+				@Override public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
+	
+	/**
+	 * Restricts the objects about which a {@link Subscription} notifies its {@link Client}.<br>
+	 * The Client should only subscribe to what it needs: Each {@link Notification} is a database
+	 * object, and thus costs disk IO when storing it and FCP traffic when deploying it.<br><br>
+	 * 
+	 * Which fields are supported depends on the type of the Subscription, see
+	 * {@link Subscription#passesFilter(EventSource)} at its implementations.<br>
+	 * The filter is stored as part of the Subscription, objects of this class are not stored.
+	 */
+	public static final class Filter {
+		
+		/** Does not filter anything. */
+		public static final Filter NONE = new Filter(null, null, Integer.MIN_VALUE, false);
+		
+		/**
+		 * If non-null, only {@link Identity}s which have this context, and {@link Trust}s /
+		 * {@link Score}s which only refer to such Identitys, are passed. {@link OwnIdentity}s
+		 * always pass, see {@link Subscription#passesContextFilter(Identity)}. */
+		public final String context;
+		
+		/**
+		 * If non-null, only {@link Trust}s and {@link Score}s whose truster has this
+		 * {@link Identity#getID()} are passed. */
+		public final String trusterID;
+		
+		/**
+		 * Only {@link Score}s whose {@link Score#getScore()} is at least this value are passed.
+		 * {@link Integer#MIN_VALUE} if not filtering. */
+		public final int minimumScore;
+		
+		/**
+		 * If true, changes of {@link Trust}s and {@link Score}s are only deployed if the
+		 * {@link Trust#getValue()} or {@link Score#getScore()} changed.<br>
+		 * Creations and deletions are always deployed. */
+		public final boolean valueChangedOnly;
+		
+		public Filter(String context, String trusterID, int minimumScore,
+				boolean valueChangedOnly) {
+			this.context = context;
+			this.trusterID = trusterID;
+			this.minimumScore = minimumScore;
+			this.valueChangedOnly = valueChangedOnly;
+		}
+	}
+	
 	/**
 	 * A subscription stores the information which client is subscribed to which content.<br>
 	 * For each {@link Client}, one subscription is stored one per {@link EventSource}-type.
@@ -427,13 +718,47 @@ public final class SubscriptionManager implements PrioRunnable {
 		@IndexedField
 		private final String mID;
 		
+		/**
+		 * The {@link Notification#mIndex} of the {@link EndSynchronizationNotification} which was
+		 * stored by {@link #storeSynchronizationWithoutCommit()}, or -1 if it wasn't called yet.
+		 * <br>
+		 * The {@link ObjectChangedNotification}s up to this index are part of the synchronization
+		 * and thus must not be coalesced with later changes: That would move them out of the
+		 * synchronization. See {@link SubscriptionManager#coalesceNotificationWithoutCommit(
+		 * Subscription, Persistent, Persistent)}.
+		 */
+		private long mSynchronizationEndIndex = -1;
+		
+		/**
+		 * @see Filter#context
+		 * @see #passesContextFilter(Identity)
+		 */
+		private final String mFilterContext;
+		
+		/**
+		 * @see Filter#trusterID
+		 * @see #passesTrusterFilter(Identity)
+		 */
+		private final String mFilterTrusterID;
+		
+		/** @see Filter#minimumScore */
+		private final int mFilterMinimumScore;
+		
+		/** @see Filter#valueChangedOnly */
+		private final boolean mFilterValueChangedOnly;
+		
 		/**
 		 * Constructor for being used by child classes.
 		 * @param myClient The {@link Client} to which this Subscription belongs.
+		 * @param filter The {@link Filter} which restricts the objects the Client is notified about.
 		 */
-		protected Subscription(final Client myClient) {
+		protected Subscription(final Client myClient, final Filter filter) {
 			mClient = myClient;
 			mID = UUID.randomUUID().toString();
+			mFilterContext = filter.context;
+			mFilterTrusterID = filter.trusterID;
+			mFilterMinimumScore = filter.minimumScore;
+			mFilterValueChangedOnly = filter.valueChangedOnly;
 			
 			assert(mClient != null);
 		}
@@ -447,6 +772,12 @@ public final class SubscriptionManager implements PrioRunnable {
 			
 			IfNull.thenThrow(mID, "mID");
 			UUID.fromString(mID); // Throws if invalid
+			
+			if(mFilterContext != null && mFilterContext.trim().length() == 0)
+				throw new IllegalStateException("mFilterContext is blank");
+			
+			if(mFilterTrusterID != null)
+				IdentityID.constructAndValidateFromString(mFilterTrusterID); // Throws if invalid
 		}
 
 		/**
@@ -468,7 +799,58 @@ public final class SubscriptionManager implements PrioRunnable {
 			checkedActivate(1);
 			return mID;
 		}
+		
+		/** @see #mSynchronizationEndIndex */
+		final long getSynchronizationEndIndex() {
+			checkedActivate(1);
+			return mSynchronizationEndIndex;
+		}
 
+		/** @see #mFilterContext */
+		final String getFilterContext() {
+			checkedActivate(1);
+			return mFilterContext;
+		}
+		
+		/** @see #mFilterValueChangedOnly */
+		final boolean getFilterValueChangedOnly() {
+			checkedActivate(1);
+			return mFilterValueChangedOnly;
+		}
+		
+		/** @see #mFilterMinimumScore */
+		final int getFilterMinimumScore() {
+			checkedActivate(1);
+			return mFilterMinimumScore;
+		}
+		
+		/** @see #mFilterTrusterID */
+		final String getFilterTrusterID() {
+			checkedActivate(1);
+			return mFilterTrusterID;
+		}
+		
+		/**
+		 * @return True if no {@link Filter#context} was specified, or if the given {@link Identity}
+		 *         has it. {@link OwnIdentity}s always pass: They are the trusters of all
+		 *         {@link Score}s, so the Client could not make sense of those without them.
+		 */
+		final boolean passesContextFilter(final Identity identity) {
+			final String context = getFilterContext();
+			return context == null
+			    || identity instanceof OwnIdentity
+			    || identity.hasContext(context);
+		}
+		
+		/**
+		 * @return True if no {@link Filter#trusterID} was specified, or if it matches the given
+		 *         truster of a {@link Trust} or {@link Score}.
+		 */
+		final boolean passesTrusterFilter(final Identity truster) {
+			final String trusterID = getFilterTrusterID();
+			return trusterID == null || trusterID.equals(truster.getID());
+		}
+		
 		/**
 		 * ATTENTION: This does NOT delete the {@link Notification} objects associated with this Subscription!
 		 * Only use it if you delete them manually before!
@@ -482,7 +864,10 @@ public final class SubscriptionManager implements PrioRunnable {
 		
 		/**
 		 * Deletes this Subscription and - using the passed in {@link SubscriptionManager} - also deletes all
-		 * queued {@link Notification}s of it. Does not commit the transaction.
+		 * queued {@link Notification}s of it. Does not commit the transaction.<br>
+		 * Does not remove the {@link SynchronizationSnapshot} of it: The caller must do so with
+		 * {@link SubscriptionManager#removeSynchronizationSnapshots(List)} after the transaction
+		 * was committed.
 		 * 
 		 * @param manager The {@link SubscriptionManager} to which this Subscription belongs.
 		 */
@@ -505,24 +890,34 @@ public final class SubscriptionManager implements PrioRunnable {
          * As new identities appear afterwards, the client can be kept up to date by sending each single new identity as it appears.
          * <br><br>
          * 
-		 * The job of this function is to store the initial state of the WOT database in this
-		 * Subscription, as a clone of all relevant objects, serialized into a series of
-		 * {@link ObjectChangedNotification}s.<br>
+		 * The job of this function is to take a snapshot of the initial state of the WOT database.
+		 * Only a {@link BeginSynchronizationNotification} and an
+		 * {@link EndSynchronizationNotification} are stored in the database, the relevant objects
+		 * are returned as a {@link SynchronizationSnapshot} which is kept in memory: Storing an
+		 * {@link ObjectChangedNotification} for each of them would mean writing hundreds of
+		 * thousands of database objects for a large {@link ScoresSubscription}, while holding
+		 * the main {@link WebOfTrust} lock.<br>
+		 * The objects are not cloned but taken from the current {@link ReadSnapshot}, which is
+		 * immutable. While we hold the locks which are required below, no transaction can be
+		 * pending which changes them, so the ReadSnapshot matches the database.<br>
 		 * The actual deployment of the data to the client will happen in the future, as part of
-		 * regular {@link Notification} deployment: The synchronization can be large in size, and
-		 * thus sending it over the network can take a long time. Therefore, it would be bad if we
-		 * sent it directly from the main {@link WebOfTrust} database since that would require us
-		 * to take the main {@link WebOfTrust} lock during the whole time.<br>
+		 * regular {@link Notification} deployment which streams the snapshot before the
+		 * EndSynchronizationNotification, see {@link SubscriptionManager#
+		 * getNotificationsIncludingSnapshots(Client)}. The synchronization can be large in size,
+		 * and thus sending it over the network can take a long time. Therefore, it would be bad if
+		 * we sent it directly from the main {@link WebOfTrust} database since that would require
+		 * us to take the main {@link WebOfTrust} lock during the whole time.<br>
 		 * By separating the part of copying the data from the {@link WebOfTrust} into a local
 		 * operation, we can keep the time we have to take the main lock as short as possible.<br>
-		 * <br>
+		 * The snapshot does not need to survive a restart since all {@link Client}s are deleted
+		 * at startup.<br><br>
 		 * 
          * <b>Thread safety:</b><br>
 		 * This must be called while locking upon the {@link WebOfTrust}, the SubscriptionManager
 		 * and the {@link Persistent#transactionLock(ExtObjectContainer)}.<br>
 		 * Therefore it may perform database queries on the WebOfTrust to obtain the dataset.
 		 */
-		protected final void storeSynchronizationWithoutCommit() {
+		protected final SynchronizationSnapshot<EventType> storeSynchronizationWithoutCommit() {
             final BeginSynchronizationNotification<EventType> beginMarker
                 = new BeginSynchronizationNotification<EventType>(this);
                 
@@ -536,17 +931,18 @@ public final class SubscriptionManager implements PrioRunnable {
             final UUID synchronizationID
                 = UUID.fromString(beginMarker.getID());
             
-            // We require thread locking upon the WebOfTrust per JavaDoc, so we may now call
-            // getSynchronization().
-            for(EventType eventSource : getSynchronization()) {
-                // We need to call setVersionID() on the EventSource, but we must not modify the
-                // main EventSource object stored in the mWebOfTrust. Thus, we clone() the
-                // EventSource and call the setter upon the temporary clone.
-                @SuppressWarnings("unchecked")
-                EventType eventSourceWithProperVersionID = (EventType) eventSource.clone();
-                eventSourceWithProperVersionID.setVersionID(synchronizationID);
-                
-                storeNotificationWithoutCommit(null, eventSourceWithProperVersionID);
+            final ReadSnapshot readSnapshot
+                = getClient().getSubscriptionManager().mWoT.getReadSnapshot();
+            
+            // The EventSource.setVersionID() must not be called upon the objects of the
+            // ReadSnapshot, so the SynchronizationSnapshot calls it upon a temporary copy while
+            // deploying each object.
+            final SynchronizationSnapshot<EventType> snapshot
+                = new SynchronizationSnapshot<EventType>(this, readSnapshot, synchronizationID);
+            
+            for(EventType eventSource : getSynchronization(readSnapshot)) {
+                if(passesFilter(snapshot.withCurrentIdentities(eventSource)))
+                    snapshot.add(eventSource);
             }
             
             final EndSynchronizationNotification<EventType> endMarker
@@ -554,22 +950,46 @@ public final class SubscriptionManager implements PrioRunnable {
             
             endMarker.initializeTransient(mWebOfTrust);
             endMarker.storeWithoutCommit();
+            
+            // Stored by our caller storeNewSubscriptionWithoutCommit()
+            checkedActivate(1);
+            mSynchronizationEndIndex = endMarker.getIndex();
+            
+            return snapshot;
         }
 		
 		/**
 		 * Must return all objects of a given EventType which form a valid synchronization.<br>
-		 * This is all objects of the EventType stored in the {@link WebOfTrust}.<br><br>
+		 * This is all objects of the EventType in the given {@link ReadSnapshot}. Objects which
+		 * do not pass the {@link #passesFilter(EventSource)} may be left out.<br><br>
 		 * 
          * <b>Thread safety:</b><br>
-         * This must be called while locking upon the {@link WebOfTrust}.<br>
-         * Therefore it may perform database queries on the WebOfTrust to obtain the dataset.<br>
+         * The ReadSnapshot is immutable, so no locks are needed.<br>
          * 
          * @see #storeSynchronizationWithoutCommit()
          *         storeSynchronizationWithoutCommit() will use this function to obtain the dataset
          *         of this function. Its JavaDoc also explains what a "synchronization" is in more
          *         detail.
 		 */
-		abstract List<EventType> getSynchronization();
+		abstract List<EventType> getSynchronization(ReadSnapshot snapshot);
+		
+		/**
+		 * @return True if the Client shall be notified about the given version of an object, i.e.
+		 *         if it matches the {@link Filter} of this Subscription.<br>
+		 *         If only one of the versions of a changed object passes, the change is deployed
+		 *         as a creation or deletion, see {@link SubscriptionManager#
+		 *         storeFilteredNotificationWithoutCommit(Subscription, EventSource, EventSource)}.
+		 */
+		abstract boolean passesFilter(EventType eventSource);
+		
+		/**
+		 * Only called if both versions of the changed object {@link #passesFilter(EventSource)}.
+		 * @return False if the Client shall not be notified about the change because the
+		 *         {@link Filter} of this Subscription marks the changed attributes as irrelevant.
+		 */
+		boolean isRelevantChange(EventType oldEventSource, EventType newEventSource) {
+			return true;
+		}
 
         /**
          * Shall store a {@link ObjectChangedNotification} constructed via
@@ -585,6 +1005,16 @@ public final class SubscriptionManager implements PrioRunnable {
          */
         abstract void storeNotificationWithoutCommit(
             final EventType oldEventSource, final EventType newEventSource);
+        
+        /**
+         * Shall construct an entry of the {@link SynchronizationSnapshot} of this Subscription:
+         * The {@link ObjectChangedNotification} about the creation of the given object, which is
+         * not stored in the database. See
+         * {@link ObjectChangedNotification#ObjectChangedNotification(Subscription, Persistent,
+         * Persistent, boolean)}.
+         */
+        abstract ObjectChangedNotification constructSynchronizationNotification(
+            final EventType eventSource);
 
 		/**
 		 * Called by this Subscription when the type of it is FCP and a {@link Notification} shall be sent via FCP. 
@@ -649,7 +1079,11 @@ public final class SubscriptionManager implements PrioRunnable {
 		public String toString() {
 			return "[" + super.toString()
 			     + "; ID: " + getID()
-			     + "; Client: " + getClient() + "]";
+			     + "; Client: " + getClient()
+			     + "; Filter context: " + getFilterContext()
+			     + "; Filter truster: " + getFilterTrusterID()
+			     + "; Filter minimum score: " + getFilterMinimumScore()
+			     + "; Filter value changed only: " + getFilterValueChangedOnly() + "]";
 		}
 	}
 	
@@ -675,9 +1109,20 @@ public final class SubscriptionManager implements PrioRunnable {
 		/**
 		 * The index of this Notification in the queue of its {@link Client}:
 		 * Notifications are supposed to be sent out in proper sequence, therefore we use incremental indices.
+		 * 
+		 * Not final because {@link #moveToEndOfQueue()} changes it.
 		 */
 		@IndexedField
-		private final long mIndex;
+		private long mIndex;
+		
+		/**
+		 * True if this Notification is not stored in the database, but an entry of the in-memory
+		 * {@link SynchronizationSnapshot} of its {@link Subscription}. Such Notifications are
+		 * constructed while being deployed. They cannot be deleted, they are removed from the
+		 * snapshot by {@link SubscriptionManager#removeSynchronizationSnapshotEntries(List)}
+		 * instead.
+		 */
+		private transient final boolean mIsSnapshotEntry;
 	
         /**
          * Constructs a Notification in the queue of the given Client.<br>
@@ -687,9 +1132,21 @@ public final class SubscriptionManager implements PrioRunnable {
          * @param mySubscription The {@link Subscription} which requested this type of Notification.
          */
         Notification(final Subscription<? extends EventSource> mySubscription) {
+            this(mySubscription, false);
+        }
+        
+        /**
+         * @param isSnapshotEntry
+         *            See {@link #mIsSnapshotEntry}. If true, no Notification index is taken from
+         *            the Client: The Notification is never stored, so it is not part of the queue
+         *            of the Client in the database.
+         */
+        Notification(final Subscription<? extends EventSource> mySubscription,
+                final boolean isSnapshotEntry) {
             mSubscription = mySubscription;
             mClient = mSubscription.getClient();
-            mIndex = mClient.takeFreeNotificationIndexWithoutCommit();
+            mIndex = isSnapshotEntry ? -1 : mClient.takeFreeNotificationIndexWithoutCommit();
+            mIsSnapshotEntry = isSnapshotEntry;
         }
         
         /** {@inheritDoc} */
@@ -724,6 +1181,39 @@ public final class SubscriptionManager implements PrioRunnable {
             return mSubscription;
         }
         
+        /** @see #mIndex */
+        final long getIndex() {
+            checkedActivate(1);
+            return mIndex;
+        }
+        
+        /**
+         * Takes a new index from the {@link Client} with
+         * {@link Client#takeFreeNotificationIndexWithoutCommit()}, which moves this Notification to
+         * the end of the queue.<br>
+         * Does not store this Notification, you must do so yourself.
+         */
+        final void moveToEndOfQueue() {
+            checkedActivate(1);
+            mIndex = getSubscription().getClient().takeFreeNotificationIndexWithoutCommit();
+        }
+        
+        /** @see #mIsSnapshotEntry */
+        final boolean isSnapshotEntry() {
+            return mIsSnapshotEntry;
+        }
+        
+        /**
+         * @throws UnsupportedOperationException If this Notification is a
+         *     {@link #mIsSnapshotEntry}: It is not stored in the database, so its deletion could
+         *     not be rolled back. */
+        @Override protected void deleteWithoutCommit() {
+            if(mIsSnapshotEntry)
+                throw new UnsupportedOperationException("Snapshot entries cannot be deleted");
+            
+            super.deleteWithoutCommit();
+        }
+        
         /** {@inheritDoc} */
         @Override protected void activateFully() {
             checkedActivate(1);
@@ -756,7 +1246,7 @@ public final class SubscriptionManager implements PrioRunnable {
 		 * Null if the change was the creation of the object.
 		 * If non-null its {@link Persistent#getID()} must be equal to the one of {@link #mNewObject} if that member is non-null as well.
 		 * 
-		 * @see Persistent#serialize()
+		 * @see EventSourceCodec#encode(Persistent, Persistent) Encodes it with a null base.
 		 * @see #getOldObject() The public getter for this.
 		 */
 		private final byte[] mOldObject;
@@ -766,10 +1256,32 @@ public final class SubscriptionManager implements PrioRunnable {
 		 * Null if the change was the deletion of the object.
 		 * If non-null its {@link Persistent#getID()} must be equal to the one of {@link #mOldObject} if that member is non-null as well.
 		 * 
-		 * @see Persistent#serialize()
+		 * Only contains the fields which differ from the old object if there is one, so modifications
+		 * of e.g. a {@link Trust} value don't store all fields of the truster and trustee twice.
+		 * 
+		 * @see EventSourceCodec#encode(Persistent, Persistent) Encodes it with the old object as base.
 		 * @see #getNewObject() The public getter for this.
+		 * 
+		 * Not final because {@link #coalesceWithoutCommit(Persistent)} changes it.
+		 */
+		private byte[] mNewObject;
+		
+		/**
+		 * The {@link Persistent#getID()} of {@link #mOldObject} and {@link #mNewObject}.<br>
+		 * Stored separately to allow {@link SubscriptionManager#coalesceNotificationWithoutCommit(
+		 * Subscription, Persistent, Persistent)} to query the queued Notifications about an
+		 * object without deserializing them.
+		 */
+		@IndexedField
+		private final String mObjectID;
+		
+		/**
+		 * True if the class of the object changed, for example from {@link OwnIdentity} to
+		 * {@link Identity}.
+		 * 
+		 * @see #isCoalescable()
 		 */
-		private final byte[] mNewObject;
+		private final boolean mClassChanged;
 		
 		/**
 		 * Only one of oldObject or newObject may be null.
@@ -785,15 +1297,31 @@ public final class SubscriptionManager implements PrioRunnable {
 		ObjectChangedNotification(final Subscription<? extends EventSource> mySubscription,
 		        final Persistent oldObject, final Persistent newObject) {
 		    
-			super(mySubscription);
+			this(mySubscription, oldObject, newObject, false);
+		}
+		
+		/**
+		 * Same as {@link #ObjectChangedNotification(Subscription, Persistent, Persistent)}, but
+		 * with the choice of constructing an entry of a {@link SynchronizationSnapshot}.
+		 * 
+		 * @see Notification#Notification(Subscription, boolean)
+		 */
+		ObjectChangedNotification(final Subscription<? extends EventSource> mySubscription,
+		        final Persistent oldObject, final Persistent newObject,
+		        final boolean isSnapshotEntry) {
+		    
+			super(mySubscription, isSnapshotEntry);
 			
 			assert	(
 						(oldObject == null ^ newObject == null) ||
 						(oldObject != null && newObject != null && oldObject.getID().equals(newObject.getID()))
 					);
 			
-			mOldObject = (oldObject != null ? oldObject.serialize() : null);
-			mNewObject = (newObject != null ? newObject.serialize() : null);
+			mOldObject = (oldObject != null ? EventSourceCodec.encode(oldObject, null) : null);
+			mNewObject = (newObject != null ? EventSourceCodec.encode(newObject, oldObject) : null);
+			mObjectID = (newObject != null ? newObject : oldObject).getID();
+			mClassChanged = (oldObject != null && newObject != null
+			                 && oldObject.getClass() != newObject.getClass());
 		}
 		
 		/** {@inheritDoc} */
@@ -817,6 +1345,11 @@ public final class SubscriptionManager implements PrioRunnable {
 
 			if(mOldObject != null && mNewObject != null && !getOldObject().getID().equals(getNewObject().getID()))
 				throw new IllegalStateException("The ID of mOldObject and mNewObject must match!");
+			
+			IfNull.thenThrow(mObjectID, "mObjectID");
+			
+			if(!mObjectID.equals((mNewObject != null ? getNewObject() : getOldObject()).getID()))
+				throw new IllegalStateException("mObjectID does not match the objects!");
 		}
 
 		/**
@@ -833,7 +1366,7 @@ public final class SubscriptionManager implements PrioRunnable {
 		 */
 		public final Persistent getOldObject() throws NoSuchElementException {
 			checkedActivate(1); // byte[] is a db4o primitive type so 1 is enough
-			return mOldObject != null ? Persistent.deserialize(mWebOfTrust, mOldObject) : null;
+			return mOldObject != null ? EventSourceCodec.decode(mWebOfTrust, mOldObject, null) : null;
 		}
 		
 		/**
@@ -842,7 +1375,72 @@ public final class SubscriptionManager implements PrioRunnable {
 		 */
 		public final Persistent getNewObject() throws NoSuchElementException {
 			checkedActivate(1); // byte[] is a db4o primitive type so 1 is enough
-			return mNewObject != null ? Persistent.deserialize(mWebOfTrust, mNewObject) : null;
+			if(mNewObject == null)
+				return null;
+			
+			// mNewObject is a diff against the old object, see its JavaDoc.
+			return EventSourceCodec.decode(mWebOfTrust, mNewObject, getOldObject());
+		}
+		
+		/** @return True if this is about the creation of the object, i.e. there is no old object. */
+		final boolean isCreation() {
+			checkedActivate(1);
+			return mOldObject == null;
+		}
+		
+		/**
+		 * Returns true if a later change of the same object may be merged into this Notification
+		 * by {@link #coalesceWithoutCommit(Persistent)}.<br><br>
+		 * 
+		 * Merging moves this Notification to the end of the queue, so it must not be done if other
+		 * Notifications in between might depend on the absence of the object:<br>
+		 * - If the object was deleted, it might have been re-created since then, and objects which
+		 *   reference it might have been created. The client would then receive them while the
+		 *   object still is deleted in its database.<br>
+		 * - If the class of the object changed, objects which require the new class might have
+		 *   been created. For example {@link Score}s require their truster to be an
+		 *   {@link OwnIdentity}.<br>
+		 * Child classes must override this if there are more such cases.
+		 */
+		boolean isCoalescable() {
+			checkedActivate(1);
+			return mNewObject != null && !mClassChanged;
+		}
+		
+		/**
+		 * Merges a later change of the same object into this queued Notification: The old object
+		 * is kept, the new object is replaced with the given one. Then it is moved to the end of
+		 * the queue, which is where the Notification about the later change would have been
+		 * stored, by {@link #moveToEndOfQueue()}.<br>
+		 * If the object was created and now is deleted, the client doesn't need to know about it
+		 * at all, so this Notification is deleted instead.<br><br>
+		 * 
+		 * May only be called if {@link #isCoalescable()} is true.<br>
+		 * Stores or deletes this Notification without committing the transaction.
+		 * 
+		 * @param newObject The version of the object after the later change.
+		 */
+		final void coalesceWithoutCommit(final Persistent newObject) {
+			assert(isCoalescable());
+			assert(newObject == null || newObject.getID().equals(getID_Object()));
+			
+			checkedActivate(1);
+			
+			if(mOldObject == null && newObject == null) {
+				deleteWithoutCommit();
+				return;
+			}
+			
+			mNewObject = (newObject != null
+				? EventSourceCodec.encode(newObject, getOldObject()) : null);
+			moveToEndOfQueue();
+			storeWithoutCommit();
+		}
+		
+		/** @see #mObjectID */
+		final String getID_Object() {
+			checkedActivate(1);
+			return mObjectID;
 		}
 
 		/** {@inheritDoc} */
@@ -974,6 +1572,28 @@ public final class SubscriptionManager implements PrioRunnable {
 				final Identity oldIdentity, final Identity newIdentity) {
 			super(mySubscription, oldIdentity, newIdentity);
 		}
+		
+		/**
+		 * Constructs an entry of a {@link SynchronizationSnapshot}, i.e. the creation of the
+		 * given Identity, which is not stored in the database.
+		 * 
+		 * @see Notification#Notification(Subscription, boolean)
+		 */
+		IdentityChangedNotification(final Subscription<Identity> mySubscription,
+				final Identity synchronizedIdentity) {
+			super(mySubscription, null, synchronizedIdentity, true);
+		}
+		
+		/**
+		 * {@inheritDoc}<br><br>
+		 * 
+		 * The creation of an Identity must not be moved to the end of the queue: The
+		 * {@link TrustChangedNotification}s and {@link ScoreChangedNotification}s which reference
+		 * it would then be deployed before it.
+		 */
+		@Override boolean isCoalescable() {
+			return super.isCoalescable() && !isCreation();
+		}
 
 	}
 	
@@ -1004,6 +1624,17 @@ public final class SubscriptionManager implements PrioRunnable {
 			super(mySubscription, oldTrust, newTrust);
 		}
 		
+		/**
+		 * Constructs an entry of a {@link SynchronizationSnapshot}, i.e. the creation of the
+		 * given Trust, which is not stored in the database.
+		 * 
+		 * @see Notification#Notification(Subscription, boolean)
+		 */
+		TrustChangedNotification(final Subscription<Trust> mySubscription,
+				final Trust synchronizedTrust) {
+			super(mySubscription, null, synchronizedTrust, true);
+		}
+		
 	}
 	
 	/**
@@ -1032,6 +1663,17 @@ public final class SubscriptionManager implements PrioRunnable {
 				final Score oldScore, final Score newScore) {
 			super(mySubscription, oldScore, newScore);
 		}
+		
+		/**
+		 * Constructs an entry of a {@link SynchronizationSnapshot}, i.e. the creation of the
+		 * given Score, which is not stored in the database.
+		 * 
+		 * @see Notification#Notification(Subscription, boolean)
+		 */
+		ScoreChangedNotification(final Subscription<Score> mySubscription,
+				final Score synchronizedScore) {
+			super(mySubscription, null, synchronizedScore, true);
+		}
 
 	}
 
@@ -1047,14 +1689,22 @@ public final class SubscriptionManager implements PrioRunnable {
 		/**
 		 * @param myClient The {@link Client} which created this Subscription. 
 		 */
-		protected IdentitiesSubscription(final Client myClient) {
-			super(myClient);
+		protected IdentitiesSubscription(final Client myClient, final Filter filter) {
+			super(myClient, filter);
 		}
 
 
 		/** {@inheritDoc} */
-        @Override List<Identity> getSynchronization() {
-            return mWebOfTrust.getAllIdentities();
+        @Override List<Identity> getSynchronization(final ReadSnapshot snapshot) {
+            return snapshot.getAllIdentities();
+        }
+
+        /**
+         * Only {@link Filter#context} is supported.<br>
+         * {@inheritDoc}
+         */
+        @Override boolean passesFilter(final Identity identity) {
+            return passesContextFilter(identity);
         }
 
         // TODO: Code quality: This function is almost the same in TrustsSubscription and
@@ -1101,6 +1751,13 @@ public final class SubscriptionManager implements PrioRunnable {
 			notification.storeWithoutCommit();
 		}
 
+		/** {@inheritDoc} */
+		@Override ObjectChangedNotification constructSynchronizationNotification(
+		        final Identity identity) {
+		    
+			return new IdentityChangedNotification(this, identity);
+		}
+
 	}
 	
 	/**
@@ -1115,13 +1772,51 @@ public final class SubscriptionManager implements PrioRunnable {
 		/**
 		 * @param myClient The {@link Client} which created this Subscription. 
 		 */
-		protected TrustsSubscription(final Client myClient) {
-			super(myClient);
+		protected TrustsSubscription(final Client myClient, final Filter filter) {
+			super(myClient, filter);
 		}
 
         /** {@inheritDoc} */
-        @Override List<Trust> getSynchronization() {
-            return mWebOfTrust.getAllTrusts();
+        @Override List<Trust> getSynchronization(final ReadSnapshot snapshot) {
+            final String trusterID = getFilterTrusterID();
+            
+            // Don't return all Trusts only to throw away most of them in passesFilter().
+            return trusterID == null
+                ? snapshot.getAllTrusts() : snapshot.getGivenTrusts(trusterID);
+        }
+
+        /**
+         * Supports {@link Filter#context}, {@link Filter#trusterID} and
+         * {@link Filter#valueChangedOnly}. The context must be satisfied by both the truster and
+         * the trustee.<br>
+         * {@inheritDoc}
+         */
+        @Override boolean passesFilter(final Trust trust) {
+            final Identity truster = trust.getTruster();
+            return passesTrusterFilter(truster)
+                && passesContextFilter(truster)
+                && passesContextFilter(trust.getTrustee());
+        }
+
+        /**
+         * Same as {@link #passesFilter(Trust)} but ignores whether the given truster or trustee
+         * of the given Trust has the {@link Filter#context}.<br>
+         * Used for deploying the Trusts of an {@link Identity} whose context changed, see
+         * {@link SubscriptionManager#storeContextFilterChangeNotificationsWithoutCommit(
+         * Identity, Identity, boolean)}.
+         */
+        boolean passesFilterExceptContextOf(final Trust trust, final Identity identity) {
+            final Identity truster = trust.getTruster();
+            // An Identity cannot trust itself, so the other one is the trustee if it is not the
+            // truster.
+            final Identity other = truster.getID().equals(identity.getID())
+                ? trust.getTrustee() : truster;
+            return passesTrusterFilter(truster) && passesContextFilter(other);
+        }
+
+        /** {@inheritDoc} */
+        @Override boolean isRelevantChange(final Trust oldTrust, final Trust newTrust) {
+            return !getFilterValueChangedOnly() || oldTrust.getValue() != newTrust.getValue();
         }
 
 		/** {@inheritDoc} */
@@ -1163,6 +1858,13 @@ public final class SubscriptionManager implements PrioRunnable {
 			notification.storeWithoutCommit();
 		}
 
+		/** {@inheritDoc} */
+		@Override ObjectChangedNotification constructSynchronizationNotification(
+		        final Trust trust) {
+		    
+			return new TrustChangedNotification(this, trust);
+		}
+
 	}
 	
 	/**
@@ -1177,13 +1879,53 @@ public final class SubscriptionManager implements PrioRunnable {
 		/**
 		 * @param myClient The {@link Client} which created this Subscription.
 		 */
-		protected ScoresSubscription(final Client myClient) {
-			super(myClient);
+		protected ScoresSubscription(final Client myClient, final Filter filter) {
+			super(myClient, filter);
 		}
 
         /** {@inheritDoc} */
-        @Override List<Score> getSynchronization() {
-            return mWebOfTrust.getAllScores();
+        @Override List<Score> getSynchronization(final ReadSnapshot snapshot) {
+            final String trusterID = getFilterTrusterID();
+            
+            if(trusterID == null)
+                return snapshot.getAllScores();
+            
+            // Don't return all Scores only to throw away most of them in passesFilter().
+            // The ReadSnapshot has no index of the given Scores, but looking up the Score of
+            // each Identity is still cheaper than filtering all Scores.
+            final ArrayList<Score> result = new ArrayList<Score>();
+            for(Identity trustee : snapshot.getAllIdentities()) {
+                try {
+                    result.add(snapshot.getScore(trusterID, trustee.getID()));
+                } catch(NotInTrustTreeException e) {}
+            }
+            return result;
+        }
+
+        /**
+         * Supports all fields of {@link Filter}. The context must be satisfied by the trustee, the
+         * truster is an {@link OwnIdentity} and thus always passes.<br>
+         * {@inheritDoc}
+         */
+        @Override boolean passesFilter(final Score score) {
+            return passesFilterExceptContext(score) && passesContextFilter(score.getTrustee());
+        }
+
+        /**
+         * Same as {@link #passesFilter(Score)} but ignores whether the trustee has the
+         * {@link Filter#context}.<br>
+         * Used for deploying the Scores of an {@link Identity} whose context changed, see
+         * {@link SubscriptionManager#storeContextFilterChangeNotificationsWithoutCommit(
+         * Identity, Identity, boolean)}.
+         */
+        boolean passesFilterExceptContext(final Score score) {
+            return passesTrusterFilter(score.getTruster())
+                && score.getScore() >= getFilterMinimumScore();
+        }
+
+        /** {@inheritDoc} */
+        @Override boolean isRelevantChange(final Score oldScore, final Score newScore) {
+            return !getFilterValueChangedOnly() || oldScore.getScore() != newScore.getScore();
         }
 
 		/** {@inheritDoc} */
@@ -1225,6 +1967,13 @@ public final class SubscriptionManager implements PrioRunnable {
 			notification.storeWithoutCommit();
 		}
 
+		/** {@inheritDoc} */
+		@Override ObjectChangedNotification constructSynchronizationNotification(
+		        final Score score) {
+		    
+			return new ScoreChangedNotification(this, score);
+		}
+
 	}
 
 	
@@ -1243,6 +1992,16 @@ public final class SubscriptionManager implements PrioRunnable {
 	 */
 	public static final byte DISCONNECT_CLIENT_AFTER_FAILURE_COUNT = 5;
 	
+	/**
+	 * Upper limit for the "MaxNotificationBatchSize" which a client can request when subscribing,
+	 * see {@link Client#setMaxNotificationBatchSizeWithoutCommit(int)}.<br>
+	 * Bounds the size of a single FCP message: Each {@link Notification} may contain two copies of
+	 * an {@link Identity}, and the whole message is kept in memory.<br><br>
+	 * 
+	 * TODO: Code quality: Make configurable.
+	 */
+	public static final int MAX_NOTIFICATION_BATCH_SIZE = 256;
+	
 	
 	/**
 	 * The {@link WebOfTrust} to which this SubscriptionManager belongs.
@@ -1277,6 +2036,36 @@ public final class SubscriptionManager implements PrioRunnable {
 	 */
     private volatile DelayedBackgroundJob mJob = MockDelayedBackgroundJob.DEFAULT;
 
+	/**
+	 * Statistics: Amount of {@link ObjectChangedNotification}s which were not stored due to
+	 * {@link #coalesceNotificationWithoutCommit(Subscription, Persistent, Persistent)}.<br>
+	 * Protected by the lock on this SubscriptionManager.
+	 * 
+	 * @see #getCoalescedNotificationAmount()
+	 */
+	private long mCoalescedNotificationCount = 0;
+	
+	/**
+	 * Statistics: Amount of {@link ObjectChangedNotification}s which were not stored because the
+	 * change did not pass the {@link Filter} of the {@link Subscription}, see
+	 * {@link #storeFilteredNotificationWithoutCommit(Subscription, EventSource, EventSource)}.<br>
+	 * Protected by the lock on this SubscriptionManager.
+	 * 
+	 * @see #getFilteredNotificationAmount()
+	 */
+	private long mFilteredNotificationCount = 0;
+	
+	/**
+	 * The {@link SynchronizationSnapshot}s of the {@link Subscription}s whose synchronization was
+	 * not fully deployed yet. Key = {@link Subscription#getID()}.<br>
+	 * Empty snapshots are removed.<br>
+	 * Not stored in the database since all {@link Client}s are deleted at startup.<br>
+	 * Protected by the lock on this SubscriptionManager.
+	 */
+	private final HashMap<String, SynchronizationSnapshot<? extends EventSource>>
+	    mSynchronizationSnapshots
+	        = new HashMap<String, SynchronizationSnapshot<? extends EventSource>>();
+
 
 	/** Automatically set to true by {@link Logger} if the log level is set to {@link LogLevel#DEBUG} for this class.
 	 * Used as performance optimization to prevent construction of the log strings if it is not necessary. */
@@ -1392,6 +2181,9 @@ public final class SubscriptionManager implements PrioRunnable {
 	 * and the {@link Persistent#transactionLock(ExtObjectContainer)}.<br>
 	 * You must take care of transaction management.<br>
 	 * 
+	 * @param maxNotificationBatchSize
+	 *             See {@link Client#setMaxNotificationBatchSizeWithoutCommit(int)}. Applies to
+	 *             all Subscriptions of the {@link Client}, not just the new one.
 	 * @throws SubscriptionExistsAlreadyException
 	 *             Thrown if a subscription of the same type for the same client exists already.<br>
 	 *             See {@link #throwIfSimilarSubscriptionExists(Subscription)}.<br>
@@ -1414,19 +2206,50 @@ public final class SubscriptionManager implements PrioRunnable {
      *             calling the FCP interface's
      *             {@link FredPluginFCPMessageHandler.ServerSideFCPMessageHandler}.
 	 */
-	private void storeNewSubscriptionWithoutCommit(
-	        final Subscription<? extends EventSource> subscription)
+	private <EventType extends EventSource> SynchronizationSnapshot<EventType>
+	        storeNewSubscriptionWithoutCommit(
+	            final Subscription<EventType> subscription, final int maxNotificationBatchSize)
 	            throws InterruptedException, SubscriptionExistsAlreadyException {
 	    
 		subscription.initializeTransient(mWoT);
 
 		throwIfSimilarSubscriptionExists(subscription);
 		
+		subscription.getClient().setMaxNotificationBatchSizeWithoutCommit(maxNotificationBatchSize);
+		
 		// Needs the lock on mWoT which the JavaDoc requests
-		subscription.storeSynchronizationWithoutCommit();
+		final SynchronizationSnapshot<EventType> snapshot
+		    = subscription.storeSynchronizationWithoutCommit();
 		
 		subscription.storeWithoutCommit();
 		Logger.normal(this, "Subscribed: " + subscription);
+		return snapshot;
+	}
+	
+	/**
+	 * Must be called after the transaction of
+	 * {@link #storeNewSubscriptionWithoutCommit(Subscription, int)} was committed: The snapshot
+	 * is not part of the database, so it must not exist if the transaction was rolled back.
+	 */
+	private void addSynchronizationSnapshot(
+	        final SynchronizationSnapshot<? extends EventSource> snapshot,
+	        final Subscription<? extends EventSource> subscription) {
+	    
+		if(!snapshot.isEmpty())
+			mSynchronizationSnapshots.put(subscription.getID(), snapshot);
+	}
+	
+	/**
+	 * Must be called after the transaction which deleted the given {@link Subscription}s was
+	 * committed, for the same reason as {@link #addSynchronizationSnapshot(
+	 * SynchronizationSnapshot, Subscription)}: If the transaction is rolled back, the
+	 * Subscriptions and their {@link BeginSynchronizationNotification} and
+	 * {@link EndSynchronizationNotification} come back, so their snapshots must still exist.
+	 * 
+	 * @param subscriptionIDs See {@link Subscription#getID()}.
+	 */
+	private void removeSynchronizationSnapshots(final List<String> subscriptionIDs) {
+		mSynchronizationSnapshots.keySet().removeAll(subscriptionIDs);
 	}
 	
 	/**
@@ -1447,6 +2270,13 @@ public final class SubscriptionManager implements PrioRunnable {
 	 * TODO: Code quality: Rename to subscribeToIdentitiesByFCP() or similar.
 	 * 
 	 * @param fcpID The identifier of the FCP connection of the {@link Client}. Must be unique among all FCP connections!
+	 * @param filter
+	 *            Restricts the objects the {@link Client} is notified about. Use
+	 *            {@link Filter#NONE} to be notified about all of them.
+	 * @param maxNotificationBatchSize
+	 *            The maximal amount of {@link Notification}s which the {@link Client} accepts in
+	 *            a single FCP message, or 0 if it does not support batches. See
+	 *            {@link Client#setMaxNotificationBatchSizeWithoutCommit(int)}.
 	 * @return The return value of {@link Subscription#getID()} of the created subscription.<br>
 	 *         TODO: Return the Subscription object after this is fixed:
 	 *         https://bugs.freenetproject.org/view.php?id=6247
@@ -1459,7 +2289,7 @@ public final class SubscriptionManager implements PrioRunnable {
 	 *             quickly. 
 	 * @see IdentityChangedNotification The type of {@link Notification} which is sent when an event happens.
 	 */
-    public String subscribeToIdentities(UUID fcpID)
+    public String subscribeToIdentities(UUID fcpID, Filter filter, int maxNotificationBatchSize)
             throws InterruptedException, SubscriptionExistsAlreadyException {
 
 		synchronized(mWoT) {
@@ -1467,9 +2297,11 @@ public final class SubscriptionManager implements PrioRunnable {
 		synchronized(Persistent.transactionLock(mDB)) {
 		    try {
     			final IdentitiesSubscription subscription
-    			    = new IdentitiesSubscription(getOrCreateClient(fcpID));
-    			storeNewSubscriptionWithoutCommit(subscription);
+    			    = new IdentitiesSubscription(getOrCreateClient(fcpID), filter);
+    			final SynchronizationSnapshot<? extends EventSource> snapshot
+    			    = storeNewSubscriptionWithoutCommit(subscription, maxNotificationBatchSize);
     			subscription.checkedCommit(this);
+    			addSynchronizationSnapshot(snapshot, subscription);
     			return subscription.getID();
 		    } catch(RuntimeException e) {
 		        Persistent.checkedRollbackAndThrow(mDB, this, e);
@@ -1491,6 +2323,13 @@ public final class SubscriptionManager implements PrioRunnable {
 	 * The {@link Client} is notified when a {@link Trust} changes, is created or removed.
 	 * 
 	 * @param fcpID The identifier of the FCP connection of the {@link Client}. Must be unique among all FCP connections!
+	 * @param filter
+	 *            Restricts the objects the {@link Client} is notified about. Use
+	 *            {@link Filter#NONE} to be notified about all of them.
+	 * @param maxNotificationBatchSize
+	 *            The maximal amount of {@link Notification}s which the {@link Client} accepts in
+	 *            a single FCP message, or 0 if it does not support batches. See
+	 *            {@link Client#setMaxNotificationBatchSizeWithoutCommit(int)}.
      * @return The return value of {@link Subscription#getID()} of the created subscription.<br>
      *         TODO: Return the Subscription object after this is fixed:
      *         https://bugs.freenetproject.org/view.php?id=6247
@@ -1503,7 +2342,7 @@ public final class SubscriptionManager implements PrioRunnable {
      *             quickly.
 	 * @see TrustChangedNotification The type of {@link Notification} which is sent when an event happens.
 	 */
-	public String subscribeToTrusts(UUID fcpID)
+	public String subscribeToTrusts(UUID fcpID, Filter filter, int maxNotificationBatchSize)
 	    throws InterruptedException, SubscriptionExistsAlreadyException {
 	    
 		synchronized(mWoT) {
@@ -1511,9 +2350,11 @@ public final class SubscriptionManager implements PrioRunnable {
 		synchronized(Persistent.transactionLock(mDB)) {
 	        try {
     			final TrustsSubscription subscription
-    			    = new TrustsSubscription(getOrCreateClient(fcpID));
-    			storeNewSubscriptionWithoutCommit(subscription);
+    			    = new TrustsSubscription(getOrCreateClient(fcpID), filter);
+    			final SynchronizationSnapshot<? extends EventSource> snapshot
+    			    = storeNewSubscriptionWithoutCommit(subscription, maxNotificationBatchSize);
     			subscription.checkedCommit(this);
+    			addSynchronizationSnapshot(snapshot, subscription);
     			return subscription.getID();
 	        } catch(RuntimeException e) {
                 Persistent.checkedRollbackAndThrow(mDB, this, e);
@@ -1535,6 +2376,13 @@ public final class SubscriptionManager implements PrioRunnable {
 	 * The {@link Client} is notified when a {@link Score} changes, is created or removed.
 	 * 
 	 * @param fcpID The identifier of the FCP connection of the {@link Client}. Must be unique among all FCP connections!
+	 * @param filter
+	 *            Restricts the objects the {@link Client} is notified about. Use
+	 *            {@link Filter#NONE} to be notified about all of them.
+	 * @param maxNotificationBatchSize
+	 *            The maximal amount of {@link Notification}s which the {@link Client} accepts in
+	 *            a single FCP message, or 0 if it does not support batches. See
+	 *            {@link Client#setMaxNotificationBatchSizeWithoutCommit(int)}.
      * @return The return value of {@link Subscription#getID()} of the created subscription.<br>
      *         TODO: Return the Subscription object after this is fixed:
      *         https://bugs.freenetproject.org/view.php?id=6247
@@ -1547,7 +2395,7 @@ public final class SubscriptionManager implements PrioRunnable {
      *             quickly.
 	 * @see ScoreChangedNotification The type of {@link Notification} which is sent when an event happens.
 	 */
-	public String subscribeToScores(UUID fcpID)
+	public String subscribeToScores(UUID fcpID, Filter filter, int maxNotificationBatchSize)
 	        throws InterruptedException, SubscriptionExistsAlreadyException {
 	    
 		synchronized(mWoT) {
@@ -1555,9 +2403,11 @@ public final class SubscriptionManager implements PrioRunnable {
 	    synchronized(Persistent.transactionLock(mDB)) {
 	        try {
 	            final ScoresSubscription subscription
-	                = new ScoresSubscription(getOrCreateClient(fcpID));
-	            storeNewSubscriptionWithoutCommit(subscription);
+	                = new ScoresSubscription(getOrCreateClient(fcpID), filter);
+	            final SynchronizationSnapshot<? extends EventSource> snapshot
+	                = storeNewSubscriptionWithoutCommit(subscription, maxNotificationBatchSize);
 	            subscription.checkedCommit(this);
+	            addSynchronizationSnapshot(snapshot, subscription);
 	            return subscription.getID();
 	        } catch(RuntimeException e) {
 	            Persistent.checkedRollbackAndThrow(mDB, this, e);
@@ -1599,6 +2449,7 @@ public final class SubscriptionManager implements PrioRunnable {
 				}
 				
 				Persistent.checkedCommit(mDB, this);
+				removeSynchronizationSnapshots(Arrays.asList(subscription.getID()));
 				Logger.normal(this, "Unsubscribed: " + subscription);
 			} catch(RuntimeException e) {
 				Persistent.checkedRollbackAndThrow(mDB, this, e);
@@ -1766,6 +2617,7 @@ public final class SubscriptionManager implements PrioRunnable {
 					client.deleteWithoutCommit();
 				}
 				Persistent.checkedCommit(mDB, this);
+				mSynchronizationSnapshots.clear();
 			} catch(RuntimeException e) {
 				Persistent.checkedRollbackAndThrow(mDB, this, e);
 			}
@@ -1822,6 +2674,257 @@ public final class SubscriptionManager implements PrioRunnable {
 		return new Persistent.InitializingObjectSet<Notification>(mWoT, q);
 	}
 	
+	/**
+	 * Same as {@link #getNotifications(Client)}, but includes the entries of the
+	 * {@link SynchronizationSnapshot}s of the {@link Client}'s {@link Subscription}s: They are
+	 * returned before the {@link EndSynchronizationNotification} of their Subscription.<br>
+	 * No stored Notification of the Subscription can be queued before the
+	 * EndSynchronizationNotification except the {@link BeginSynchronizationNotification}, so this
+	 * is where the snapshot belongs - even if the BeginSynchronizationNotification was already
+	 * deployed and deleted by a previous run of {@link Client#sendNotifications(
+	 * SubscriptionManager)}.<br><br>
+	 * 
+	 * You must synchronize on this {@link SubscriptionManager} while using the iterator.
+	 */
+	private Iterator<Notification> getNotificationsIncludingSnapshots(final Client client) {
+		final Iterator<? extends Notification> stored = getNotifications(client).iterator();
+		
+		return new Iterator<Notification>() {
+			/** The entries of the snapshot which is being returned, or null. */
+			private Iterator<Notification> mSnapshotEntries = null;
+			
+			/** The Notification to return after {@link #mSnapshotEntries}. */
+			private Notification mEndMarker = null;
+			
+			@Override public boolean hasNext() {
+				return mEndMarker != null || stored.hasNext();
+			}
+
+			@Override public Notification next() {
+				if(mEndMarker != null) {
+					if(mSnapshotEntries.hasNext())
+						return mSnapshotEntries.next();
+					
+					final Notification endMarker = mEndMarker;
+					mSnapshotEntries = null;
+					mEndMarker = null;
+					return endMarker;
+				}
+				
+				final Notification next = stored.next();
+				if(next instanceof EndSynchronizationNotification<?>) {
+					final SynchronizationSnapshot<? extends EventSource> snapshot
+					    = mSynchronizationSnapshots.get(next.getSubscription().getID());
+					
+					// Empty snapshots are not stored in the map.
+					if(snapshot != null) {
+						mSnapshotEntries = snapshot.iterator();
+						mEndMarker = next;
+						return mSnapshotEntries.next();
+					}
+				}
+				return next;
+			}
+
+			@Override public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+	
+	/**
+	 * For each of the given {@link Subscription}s, removes the first object of its
+	 * {@link SynchronizationSnapshot}, and the snapshot if it is empty then.<br>
+	 * Called for the {@link Notification}s which are entries of the snapshots after they were
+	 * deployed. Must only be called after the transaction which deleted the other Notifications
+	 * of the deployment was committed, for the same reason as
+	 * {@link #removeSynchronizationSnapshots(List)}: If the transaction is rolled back, the
+	 * Notifications are sent again, so the entries must still exist.<br><br>
+	 * 
+	 * You must synchronize on this {@link SubscriptionManager} when calling this function.
+	 * 
+	 * @param subscriptions Contains a Subscription once per deployed entry of its snapshot.
+	 */
+	private void removeSynchronizationSnapshotEntries(
+	        final List<Subscription<? extends EventSource>> subscriptions) {
+	    
+		for(final Subscription<? extends EventSource> subscription : subscriptions) {
+			final String id = subscription.getID();
+			final SynchronizationSnapshot<? extends EventSource> snapshot
+			    = mSynchronizationSnapshots.get(id);
+			
+			snapshot.removeFirst();
+			if(snapshot.isEmpty())
+				mSynchronizationSnapshots.remove(id);
+		}
+	}
+	
+	/**
+	 * Used instead of storing a new {@link ObjectChangedNotification} about the given change if
+	 * there is a queued, not yet deployed one about the same object: The change is merged into it
+	 * by {@link ObjectChangedNotification#coalesceWithoutCommit(Persistent)}. It then contains
+	 * the old object of the first change and the new object of the last change.<br>
+	 * This is typical during trust list import, where the same {@link Score} is changed many
+	 * times. The client only needs to know the final result.<br><br>
+	 * 
+	 * The order of deployment stays valid because the merged Notification takes the position
+	 * where the new one would have been stored, and because merging is refused if other
+	 * Notifications might depend on the previous position; see
+	 * {@link ObjectChangedNotification#isCoalescable()}. Further, the Notifications of a
+	 * {@link Subscription#storeSynchronizationWithoutCommit()} are never merged as that would
+	 * move them out of the synchronization.<br><br>
+	 * 
+	 * You must synchronize on this {@link SubscriptionManager} and the
+	 * {@link Persistent#transactionLock(ExtObjectContainer)} when calling this function!
+	 * 
+	 * @return True if the change was merged into an existing Notification, false if the caller
+	 *         must store a new Notification.
+	 */
+	private boolean coalesceNotificationWithoutCommit(
+	        final Subscription<? extends EventSource> subscription,
+	        final Persistent oldObject, final Persistent newObject) {
+	    
+		// The Notification about a change of the class could not be merged into later ones.
+		if(oldObject != null && newObject != null && oldObject.getClass() != newObject.getClass())
+			return false;
+		
+		final Query q = mDB.query();
+		q.constrain(ObjectChangedNotification.class);
+		q.descend("mSubscription").constrain(subscription).identity();
+		q.descend("mObjectID").constrain((newObject != null ? newObject : oldObject).getID());
+		q.descend("mIndex").orderDescending();
+		final ObjectSet<ObjectChangedNotification> result
+		    = new Persistent.InitializingObjectSet<ObjectChangedNotification>(mWoT, q);
+		
+		// Only the latest Notification about the object may be merged into: Earlier ones are
+		// followed by it, so moving them to the end would break the order.
+		if(!result.hasNext())
+			return false;
+		
+		final ObjectChangedNotification latest = result.next();
+		
+		if(latest.getIndex() <= subscription.getSynchronizationEndIndex()
+		        || !latest.isCoalescable())
+			return false;
+		
+		if(logDEBUG) Logger.debug(this, "Coalescing notification: " + latest);
+		
+		latest.coalesceWithoutCommit(newObject);
+		++mCoalescedNotificationCount;
+		return true;
+	}
+	
+	/**
+	 * Stores an {@link ObjectChangedNotification} about the given change if it passes the
+	 * {@link Filter} of the given {@link Subscription}, either by
+	 * {@link #coalesceNotificationWithoutCommit(Subscription, Persistent, Persistent)} or by
+	 * {@link Subscription#storeNotificationWithoutCommit(EventSource, EventSource)}.<br><br>
+	 * 
+	 * The Client must be able to apply the change to its copy of the filtered dataset. Thus, if
+	 * only one of the versions passes the filter, the other one is replaced with null: A change
+	 * which moves an object out of the filter is deployed as deletion, a change which moves it
+	 * into the filter as creation.<br><br>
+	 * 
+	 * You must synchronize on this {@link SubscriptionManager} and the
+	 * {@link Persistent#transactionLock(ExtObjectContainer)} when calling this function!
+	 */
+	private <T extends EventSource> void storeFilteredNotificationWithoutCommit(
+	        final Subscription<T> subscription, final T oldObject, final T newObject) {
+	    
+		final T filteredOld
+		    = (oldObject != null && subscription.passesFilter(oldObject)) ? oldObject : null;
+		final T filteredNew
+		    = (newObject != null && subscription.passesFilter(newObject)) ? newObject : null;
+		
+		if((filteredOld == null && filteredNew == null)
+		        || (filteredOld != null && filteredNew != null
+		            && !subscription.isRelevantChange(filteredOld, filteredNew))) {
+			
+			++mFilteredNotificationCount;
+			return;
+		}
+		
+		if(!coalesceNotificationWithoutCommit(subscription,
+		        (Persistent)filteredOld, (Persistent)filteredNew))
+			subscription.storeNotificationWithoutCommit(filteredOld, filteredNew);
+	}
+	
+	/**
+	 * If an {@link Identity} gains or loses the {@link Filter#context} of a
+	 * {@link TrustsSubscription} or {@link ScoresSubscription}, its {@link Trust}s and
+	 * {@link Score}s enter or leave the filter even though they did not change themselves. This
+	 * function stores creations or deletions for them.<br>
+	 * To keep the Client's dataset consistent, deletions must be stored before the
+	 * {@link IdentityChangedNotification}, and creations after it. Thus this is called twice by
+	 * {@link #storeIdentityChangedNotificationWithoutCommit(Identity, Identity)}, once with
+	 * gained = false before storing it, and once with gained = true afterwards.<br><br>
+	 * 
+	 * You must synchronize on the {@link WebOfTrust}, this {@link SubscriptionManager} and the
+	 * {@link Persistent#transactionLock(ExtObjectContainer)} when calling this function!
+	 * 
+	 * @param gained If true, only handles Subscriptions whose filter the Identity now passes but
+	 *               did not pass before. If false, only handles the opposite.
+	 */
+	private void storeContextFilterChangeNotificationsWithoutCommit(
+	        final Identity oldIdentity, final Identity newIdentity, final boolean gained) {
+	    
+		// Creations and deletions of Identitys are preceded / followed by the ones of their
+		// Trusts and Scores anyway.
+		if(oldIdentity == null || newIdentity == null)
+			return;
+		
+		@SuppressWarnings("unchecked")
+		final ObjectSet<TrustsSubscription> trustsSubscriptions
+		    = (ObjectSet<TrustsSubscription>)getSubscriptions(TrustsSubscription.class);
+		
+		for(TrustsSubscription subscription : trustsSubscriptions) {
+			if(subscription.getFilterContext() == null
+			        || subscription.passesContextFilter(oldIdentity) == gained
+			        || subscription.passesContextFilter(newIdentity) != gained)
+				continue;
+			
+			for(Trust trust : mWoT.getGivenTrusts(newIdentity))
+				storeContextFilterChangeNotificationWithoutCommit(subscription,
+				    subscription.passesFilterExceptContextOf(trust, newIdentity), trust, gained);
+			
+			for(Trust trust : mWoT.getReceivedTrusts(newIdentity))
+				storeContextFilterChangeNotificationWithoutCommit(subscription,
+				    subscription.passesFilterExceptContextOf(trust, newIdentity), trust, gained);
+		}
+		
+		@SuppressWarnings("unchecked")
+		final ObjectSet<ScoresSubscription> scoresSubscriptions
+		    = (ObjectSet<ScoresSubscription>)getSubscriptions(ScoresSubscription.class);
+		
+		for(ScoresSubscription subscription : scoresSubscriptions) {
+			if(subscription.getFilterContext() == null
+			        || subscription.passesContextFilter(oldIdentity) == gained
+			        || subscription.passesContextFilter(newIdentity) != gained)
+				continue;
+			
+			for(Score score : mWoT.getScores(newIdentity))
+				storeContextFilterChangeNotificationWithoutCommit(subscription,
+				    subscription.passesFilterExceptContext(score), score, gained);
+		}
+	}
+	
+	/** @see #storeContextFilterChangeNotificationsWithoutCommit(Identity, Identity, boolean) */
+	private <T extends EventSource> void storeContextFilterChangeNotificationWithoutCommit(
+	            final Subscription<T> subscription, final boolean passesOtherFilters,
+	            final T object, final boolean gained) {
+	    
+		if(!passesOtherFilters)
+			return;
+		
+		// No need to clone: The Notification stores a serialized copy.
+		final T oldObject = gained ? null : object;
+		final T newObject = gained ? object : null;
+		
+		if(!coalesceNotificationWithoutCommit(subscription,
+		        (Persistent)oldObject, (Persistent)newObject))
+			subscription.storeNotificationWithoutCommit(oldObject, newObject);
+	}
+	
 	/**
 	 * Interface for the core of WOT to queue an {@link IdentityChangedNotification} to be deployed to all {@link Client}s subscribed to that type of notification. 
 	 * 
@@ -1829,7 +2932,7 @@ public final class SubscriptionManager implements PrioRunnable {
 	 * See {@link #subscribeToIdentities(String)} for a list of the changes which do or do not trigger a notification.
 	 * 
      * <br><br>This function does not store the given objects as real database entries, it
-     * only stores a copy of them serialized into a byte[] by {@link Persistent#serialize()},
+     * only stores a copy of them serialized into a byte[] by {@link EventSourceCodec},
      * encapsulated into a {@link Notification} database object.<br>
      * Thus, the passed objects will be invisible to regular database queries and you are safe to
      * pass object such as clones which must not be stored in the database for consistency reasons
@@ -1843,12 +2946,15 @@ public final class SubscriptionManager implements PrioRunnable {
 	protected void storeIdentityChangedNotificationWithoutCommit(final Identity oldIdentity, final Identity newIdentity) {
 		if(logDEBUG) Logger.debug(this, "storeIdentityChangedNotificationWithoutCommit(): old=" + oldIdentity + "; new=" + newIdentity);
 		
+		storeContextFilterChangeNotificationsWithoutCommit(oldIdentity, newIdentity, false);
+		
 		@SuppressWarnings("unchecked")
 		final ObjectSet<IdentitiesSubscription> subscriptions = (ObjectSet<IdentitiesSubscription>)getSubscriptions(IdentitiesSubscription.class);
 		
-		for(IdentitiesSubscription subscription : subscriptions) {
-			subscription.storeNotificationWithoutCommit(oldIdentity, newIdentity);
-		}
+		for(IdentitiesSubscription subscription : subscriptions)
+			storeFilteredNotificationWithoutCommit(subscription, oldIdentity, newIdentity);
+		
+		storeContextFilterChangeNotificationsWithoutCommit(oldIdentity, newIdentity, true);
 		
 		if(logDEBUG) Logger.debug(this, "storeIdentityChangedNotificationWithoutCommit() finished.");
 	}
@@ -1859,7 +2965,7 @@ public final class SubscriptionManager implements PrioRunnable {
 	 * Typically called when a {@link Trust} is added, deleted or its attributes are modified.
 	 * 
      * <br><br>This function does not store the given objects as real database entries, it
-     * only stores a copy of them serialized into a byte[] by {@link Persistent#serialize()},
+     * only stores a copy of them serialized into a byte[] by {@link EventSourceCodec},
      * encapsulated into a {@link Notification} database object.<br>
      * Thus, the passed objects will be invisible to regular database queries and you are safe to
      * pass object such as clones which must not be stored in the database for consistency reasons
@@ -1876,9 +2982,8 @@ public final class SubscriptionManager implements PrioRunnable {
 		@SuppressWarnings("unchecked")
 		final ObjectSet<TrustsSubscription> subscriptions = (ObjectSet<TrustsSubscription>)getSubscriptions(TrustsSubscription.class);
 		
-		for(TrustsSubscription subscription : subscriptions) {
-			subscription.storeNotificationWithoutCommit(oldTrust, newTrust);
-		}
+		for(TrustsSubscription subscription : subscriptions)
+			storeFilteredNotificationWithoutCommit(subscription, oldTrust, newTrust);
 		
 		if(logDEBUG) Logger.debug(this, "storeTrustChangedNotificationWithoutCommit() finished.");
 	}
@@ -1889,7 +2994,7 @@ public final class SubscriptionManager implements PrioRunnable {
 	 * Typically called when a {@link Score} is added, deleted or its attributes are modified.
 	 * 
      * <br><br>This function does not store the given objects as real database entries, it
-     * only stores a copy of them serialized into a byte[] by {@link Persistent#serialize()},
+     * only stores a copy of them serialized into a byte[] by {@link EventSourceCodec},
      * encapsulated into a {@link Notification} database object.<br>
      * Thus, the passed objects will be invisible to regular database queries and you are safe to
      * pass object such as clones which must not be stored in the database for consistency reasons
@@ -1906,9 +3011,8 @@ public final class SubscriptionManager implements PrioRunnable {
 		@SuppressWarnings("unchecked")
 		final ObjectSet<ScoresSubscription> subscriptions = (ObjectSet<ScoresSubscription>)getSubscriptions(ScoresSubscription.class);
 		
-		for(ScoresSubscription subscription : subscriptions) {
-			subscription.storeNotificationWithoutCommit(oldScore, newScore);
-		}
+		for(ScoresSubscription subscription : subscriptions)
+			storeFilteredNotificationWithoutCommit(subscription, oldScore, newScore);
 		
 		if(logDEBUG) Logger.debug(this, "storeScoreChangedNotificationWithoutCommit() finished.");
 	}
@@ -1945,8 +3049,16 @@ public final class SubscriptionManager implements PrioRunnable {
 						// Persistent.checkedCommit(mDB, this);	/* sendNotifications() does this already */
 					} else {
 						Logger.warning(this, "sendNotifications tells us to delete the Client, deleting it: " + client);
+						// Collected before the deletion as they cannot be queried afterwards.
+						final ArrayList<String> subscriptionIDs = new ArrayList<String>();
+						for(Subscription<? extends EventSource> subscription
+						        : getSubscriptions(client)) {
+						    
+							subscriptionIDs.add(subscription.getID());
+						}
 						client.deleteWithoutCommit(this);
 						Persistent.checkedCommit(mDB, this);
+						removeSynchronizationSnapshots(subscriptionIDs);
 					}
 				} catch(InterruptedException e) {
 				    Logger.normal(this, "run(): Got InterruptedException, exiting thread.", e);
@@ -2117,7 +3229,32 @@ public final class SubscriptionManager implements PrioRunnable {
      * @return The total amount of all {@link Notification}s which are queued for sending.
      */
     public synchronized int getPendingNotificationAmount() {
-        return getAllNotifications().size();
+        int amount = getAllNotifications().size();
+        for(SynchronizationSnapshot<? extends EventSource> snapshot
+                : mSynchronizationSnapshots.values()) {
+            
+            amount += snapshot.size();
+        }
+        return amount;
+    }
+
+    /**
+     * @return The amount of {@link ObjectChangedNotification}s which were not stored since
+     *         startup because they were merged into a queued one about the same object.
+     * @see #coalesceNotificationWithoutCommit(Subscription, Persistent, Persistent)
+     */
+    public synchronized long getCoalescedNotificationAmount() {
+        return mCoalescedNotificationCount;
+    }
+
+    /**
+     * @return The amount of {@link ObjectChangedNotification}s which were not stored since
+     *         startup because the change did not pass the {@link Filter} of the
+     *         {@link Subscription}.
+     * @see #storeFilteredNotificationWithoutCommit(Subscription, EventSource, EventSource)
+     */
+    public synchronized long getFilteredNotificationAmount() {
+        return mFilteredNotificationCount;
     }
 
     /**
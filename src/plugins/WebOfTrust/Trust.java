@@ -3,6 +3,15 @@
  * any later version). See http://www.gnu.org/ for details of the GPL. */
 package plugins.WebOfTrust;
 
+import static plugins.WebOfTrust.EventSourceCodec.copy;
+import static plugins.WebOfTrust.EventSourceCodec.decodeObject;
+import static plugins.WebOfTrust.EventSourceCodec.differs;
+import static plugins.WebOfTrust.EventSourceCodec.encodeObject;
+import static plugins.WebOfTrust.EventSourceCodec.readNullableVersionID;
+import static plugins.WebOfTrust.EventSourceCodec.writeNullableVersionID;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
@@ -340,9 +349,7 @@ public final class Trust extends Persistent implements ReallyCloneable<Trust>, E
 	 * @throws InvalidParameterException if value isn't in the range
 	 */
 	protected void setValue(byte newValue) throws InvalidParameterException {
-		// TODO: Use l10n Trust.InvalidValue
-		if(newValue < -100 || newValue > 100) 
-			throw new InvalidParameterException("Invalid trust value ("+ newValue +"). Trust values must be in range of -100 to +100.");
+		validateValue(newValue);
 
 		checkedActivate(1); // byte is a db4o primitive type so 1 is enough
 		
@@ -352,6 +359,17 @@ public final class Trust extends Persistent implements ReallyCloneable<Trust>, E
 		}
 	}
 
+	/**
+	 * Checks whether the value would be accepted by {@link #setValue(byte)}.<br>
+	 * Allows callers which modify multiple Trusts in a single transaction to reject invalid values
+	 * before modifying any object.
+	 */
+	static void validateValue(byte value) throws InvalidParameterException {
+		// TODO: Use l10n Trust.InvalidValue
+		if(value < -100 || value > 100) 
+			throw new InvalidParameterException("Invalid trust value ("+ value +"). Trust values must be in range of -100 to +100.");
+	}
+
 	/** @return The comment associated to this Trust relationship. */
 	public String getComment() {
 		checkedActivate(1); // String is a db4o primitive type so 1 is enough
@@ -366,14 +384,7 @@ public final class Trust extends Persistent implements ReallyCloneable<Trust>, E
 		
 		newComment = newComment != null ? newComment.trim() : "";
 		
-		if(newComment.length() > MAX_TRUST_COMMENT_LENGTH)
-			throw new InvalidParameterException("Comment is too long (maximum is " + MAX_TRUST_COMMENT_LENGTH + " characters).");
-		
-		if(!StringValidityChecker.containsNoInvalidCharacters(newComment)
-			|| !StringValidityChecker.containsNoLinebreaks(newComment)
-			|| !StringValidityChecker.containsNoControlCharacters(newComment)
-			|| !StringValidityChecker.containsNoInvalidFormatting(newComment))
-			throw new InvalidParameterException("Comment contains illegal characters.");
+		validateComment(newComment);
 
 		checkedActivate(1); // String is a db4o primitive type so 1 is enough
 		
@@ -382,6 +393,23 @@ public final class Trust extends Persistent implements ReallyCloneable<Trust>, E
 			mLastChangedDate = CurrentTimeUTC.get();
 		}
 	}
+
+	/**
+	 * Checks whether the comment would be accepted by {@link #setComment(String)}.
+	 * @see #validateValue(byte)
+	 */
+	static void validateComment(String comment) throws InvalidParameterException {
+		comment = comment.trim();
+		
+		if(comment.length() > MAX_TRUST_COMMENT_LENGTH)
+			throw new InvalidParameterException("Comment is too long (maximum is " + MAX_TRUST_COMMENT_LENGTH + " characters).");
+		
+		if(!StringValidityChecker.containsNoInvalidCharacters(comment)
+			|| !StringValidityChecker.containsNoLinebreaks(comment)
+			|| !StringValidityChecker.containsNoControlCharacters(comment)
+			|| !StringValidityChecker.containsNoInvalidFormatting(comment))
+			throw new InvalidParameterException("Comment contains illegal characters.");
+	}
 	
 	public Date getDateOfCreation() {
 		checkedActivate(1); // Date is a db4o primitive type so 1 is enough
@@ -439,6 +467,14 @@ public final class Trust extends Persistent implements ReallyCloneable<Trust>, E
 		catch(final RuntimeException e) {
 			checkedRollbackAndThrow(e);
 		}
+		
+		ReadSnapshotPublisher.storedWithoutCommit(this);
+	}
+
+	@Override
+	protected void deleteWithoutCommit() {
+		super.deleteWithoutCommit();
+		ReadSnapshotPublisher.deletedWithoutCommit(this);
 	}
 
 	/**
@@ -496,6 +532,28 @@ public final class Trust extends Persistent implements ReallyCloneable<Trust>, E
 		}
 	}
 
+	/**
+	 * Same as {@link #clone()} except that the clone references the given copies of the truster
+	 * and trustee instead of new clones of them, and that the {@link #getVersionID()} is copied.
+	 * <br>Used by {@link ReadSnapshotPublisher} so the Trusts of a {@link ReadSnapshot} can share
+	 * its copies of the Identitys.
+	 */
+	Trust clone(final Identity trusterCopy, final Identity trusteeCopy) {
+		try {
+			activateFully();
+			assert(trusterCopy.getID().equals(mTruster.getID()));
+			assert(trusteeCopy.getID().equals(mTrustee.getID()));
+			Trust clone = new Trust(mWebOfTrust, trusterCopy, trusteeCopy, getValue(), getComment());
+			clone.setCreationDate(getCreationDate());
+			clone.mLastChangedDate = (Date)mLastChangedDate.clone();	// Clone it because date is mutable
+			clone.mTrusterTrustListEdition = mTrusterTrustListEdition;
+			clone.mVersionID = mVersionID; // No need to clone, String is immutable
+			return clone;
+		} catch (InvalidParameterException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	@Override public Trust cloneP() {
 		return clone();
 	}
@@ -538,6 +596,111 @@ public final class Trust extends Persistent implements ReallyCloneable<Trust>, E
 			throw new IllegalStateException("mTrusterTrustListEdition is invalid: " + mTrusterTrustListEdition);
 	}
 	
+	/**
+	 * Decoding constructor for {@link EventSourceCodec}, inverse function of
+	 * {@link #encode(DataOutputStream, Trust)}.
+	 * 
+	 * @param base The object which was passed to encode(), or null if null was passed.
+	 */
+	Trust(WebOfTrustInterface myWoT, DataInputStream in, Trust base) throws IOException {
+		initializeTransient(myWoT);
+		
+		mTruster = (Identity)decodeObject(myWoT, in, base != null ? base.mTruster : null);
+		mTrustee = (Identity)decodeObject(myWoT, in, base != null ? base.mTrustee : null);
+		mID = new TrustID(mTruster, mTrustee).toString();
+		decodeFields(in, base);
+	}
+
+	/**
+	 * Decoding constructor for {@link LogStorage}, inverse function of
+	 * {@link #encodeFields(DataOutputStream, Trust)} with a base of null: The log stores the
+	 * truster and trustee by their index, so they are passed in instead of being decoded.
+	 */
+	Trust(WebOfTrustInterface myWoT, Identity truster, Identity trustee, DataInputStream in)
+			throws IOException {
+		
+		initializeTransient(myWoT);
+		
+		mTruster = truster;
+		mTrustee = trustee;
+		mID = new TrustID(mTruster, mTrustee).toString();
+		decodeFields(in, null);
+	}
+
+	/** Inverse function of {@link #encodeFields(DataOutputStream, Trust)}. */
+	private void decodeFields(final DataInputStream in, final Trust base) throws IOException {
+		final int fields = in.readUnsignedByte();
+		mCreationDate = (fields & (1 << 0)) != 0 ? new Date(in.readLong()) : copy(base.mCreationDate);
+		mValue = (fields & (1 << 1)) != 0 ? in.readByte() : base.mValue;
+		mComment = (fields & (1 << 2)) != 0 ? in.readUTF() : base.mComment;
+		mLastChangedDate = (fields & (1 << 3)) != 0 ? new Date(in.readLong()) : copy(base.mLastChangedDate);
+		mTrusterTrustListEdition = (fields & (1 << 4)) != 0
+			? in.readLong() : base.mTrusterTrustListEdition;
+		mVersionID = (fields & (1 << 5)) != 0 ? readNullableVersionID(in) : base.mVersionID;
+	}
+
+	/**
+	 * Writes the member variables for {@link EventSourceCodec}: The truster and trustee as
+	 * encoded by {@link Identity#encode(DataOutputStream, Identity)}, then a byte of which bit N is
+	 * set if field N is contained, followed by the contained fields in the order of their bits.<br>
+	 * If the base is not null, only the fields which differ from it are contained, and the truster
+	 * and trustee are encoded relative to the ones of the base.<br>
+	 * The ID is not written as it is computed from the truster and trustee.<br><br>
+	 * 
+	 * ATTENTION: You have to adjust {@link #encodeFields(DataOutputStream, Trust)} and
+	 * {@link #decodeFields(DataInputStream, Trust)} when introducing new member variables, and
+	 * increment {@link EventSourceCodec#FORMAT_VERSION}.
+	 */
+	void encode(final DataOutputStream out, final Trust base) throws IOException {
+		activateFully();
+		if(base != null)
+			base.activateFully();
+		
+		encodeObject(out, mTruster, base != null ? base.mTruster : null);
+		encodeObject(out, mTrustee, base != null ? base.mTrustee : null);
+		encodeFields(out, base);
+	}
+
+	/**
+	 * Writes the part of {@link #encode(DataOutputStream, Trust)} which follows the truster and
+	 * trustee.<br>
+	 * Also used by {@link LogStorage}, which stores the truster and trustee by their index.
+	 */
+	void encodeFields(final DataOutputStream out, final Trust base) throws IOException {
+		activateFully();
+		if(base != null)
+			base.activateFully();
+		
+		int fields = 0;
+		if(base == null || differs(mCreationDate, base.mCreationDate))
+			fields |= 1 << 0;
+		if(base == null || mValue != base.mValue)
+			fields |= 1 << 1;
+		if(base == null || differs(mComment, base.mComment))
+			fields |= 1 << 2;
+		if(base == null || differs(mLastChangedDate, base.mLastChangedDate))
+			fields |= 1 << 3;
+		if(base == null || mTrusterTrustListEdition != base.mTrusterTrustListEdition)
+			fields |= 1 << 4;
+		if(base == null || differs(mVersionID, base.mVersionID))
+			fields |= 1 << 5;
+		
+		out.writeByte(fields);
+		
+		if((fields & (1 << 0)) != 0)
+			out.writeLong(mCreationDate.getTime());
+		if((fields & (1 << 1)) != 0)
+			out.writeByte(mValue);
+		if((fields & (1 << 2)) != 0)
+			out.writeUTF(mComment);
+		if((fields & (1 << 3)) != 0)
+			out.writeLong(mLastChangedDate.getTime());
+		if((fields & (1 << 4)) != 0)
+			out.writeLong(mTrusterTrustListEdition);
+		if((fields & (1 << 5)) != 0)
+			writeNullableVersionID(out, mVersionID);
+	}
+
 	/** @see Persistent#serialize() */
 	private void writeObject(ObjectOutputStream stream) throws IOException {
 		activateFully();
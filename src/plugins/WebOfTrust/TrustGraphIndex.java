@@ -0,0 +1,521 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.lang.Math.max;
+import static java.util.Arrays.copyOf;
+
+import java.util.HashMap;
+
+import plugins.WebOfTrust.Persistent.TransactionListener;
+
+/**
+ * In-memory copy of the graph of all {@link Trust} objects of the database, stored in compact
+ * primitive arrays instead of db4o objects.<br>
+ * Its purpose is to allow the algorithms of Score computation, i.e. rank computation by breadth
+ * first search, and capacity and score value computation, to run without doing database queries
+ * for each visited {@link Identity}: Those have shown to be the main bottleneck of
+ * {@link WebOfTrust#computeAllScoresWithoutCommit()}.<br><br>
+ *
+ * Each {@link Identity} which is a truster or trustee of at least one Trust is mapped to an int
+ * "vertex" number. For each vertex, the given and received Trusts are stored as a segment of an
+ * int array which contains the vertex numbers of the trustees / trusters, plus a parallel byte
+ * array of the {@link Trust#getValue()}s. This is a variant of the "compressed sparse row" format
+ * which leaves some slack at each segment so single Trusts can be added without rebuilding the
+ * arrays. Segments which are full are moved to the end of the arrays, the garbage this leaves
+ * behind is removed by compacting the arrays once it becomes too large.<br>
+ * For algorithms which want to iterate over the whole graph, {@link #getSnapshot()} provides an
+ * immutable, fully compacted copy.<br><br>
+ *
+ * The index is kept up to date by the {@link WebOfTrust} functions which store or delete Trust
+ * objects, for example {@link WebOfTrust#setTrustWithoutCommit(Identity, Identity, byte, String)}
+ * and {@link WebOfTrust#removeTrustWithoutCommit(Trust)}. It is built from the database when the
+ * database is opened, see {@link #rebuild(Iterable)}.<br>
+ * As the database changes can be rolled back, the index keeps an undo log of the changes of the
+ * current transaction. It is registered as a {@link TransactionListener} at {@link Persistent}
+ * to be notified about commit / rollback so it can clear / replay the undo log.<br><br>
+ *
+ * Vertices are never deleted: Deleting an {@link Identity} deletes all its Trusts, so its vertex
+ * will be isolated and thus invisible to graph algorithms. It will be gone after the next restart
+ * of WoT as the index is not stored to disk.<br><br>
+ *
+ * Synchronization: All functions are synchronized upon the TrustGraphIndex. However, to get a
+ * coherent view of the Trust database, callers should synchronize upon the {@link WebOfTrust} as
+ * the index is modified while holding its lock. */
+public final class TrustGraphIndex implements TransactionListener {
+
+	/** Returned by {@link #getVertex(String)} for {@link Identity} IDs which are not indexed. */
+	public static final int NO_VERTEX = -1;
+
+	/**
+	 * Returned by the functions which query {@link Trust#getValue()} if there is no Trust.<br>
+	 * Outside of the range of byte so it cannot collide with valid values. */
+	public static final int NO_VALUE = Integer.MIN_VALUE;
+
+	private static final int INITIAL_VERTEX_CAPACITY = 1024;
+
+	private static final int INITIAL_EDGE_CAPACITY = 16 * INITIAL_VERTEX_CAPACITY;
+
+	/** Initial size of the array segment of a vertex, in amount of Trusts. */
+	private static final int MIN_SEGMENT_CAPACITY = 4;
+
+
+	/** Key = {@link Identity#getID()}, value = vertex. */
+	private final HashMap<String, Integer> mVertices
+		= new HashMap<String, Integer>(INITIAL_VERTEX_CAPACITY * 2);
+
+	/** Index = vertex, value = {@link Identity#getID()}. */
+	private String[] mIdentityIDs = new String[INITIAL_VERTEX_CAPACITY];
+
+	private int mVertexCount = 0;
+
+	private int mTrustCount = 0;
+
+	/** Trusts by truster vertex. Targets are the trustee vertices. */
+	private final Adjacency mGivenTrusts = new Adjacency();
+
+	/** Trusts by trustee vertex. Targets are the truster vertices. */
+	private final Adjacency mReceivedTrusts = new Adjacency();
+
+	/**
+	 * Undo log of the current transaction, consisting of triples of:<br>
+	 * truster vertex, trustee vertex, previous {@link Trust#getValue()} or {@link #NO_VALUE}. */
+	private int[] mUndoLog = new int[3 * 64];
+
+	private int mUndoLogSize = 0;
+
+	/** Cache of {@link #getSnapshot()}, null if the index was modified since it was created. */
+	private Snapshot mSnapshot = null;
+
+	/**
+	 * Incremented upon each modification, see {@link #getModificationCount()}.<br>
+	 * Volatile so it can be read without synchronizing. */
+	private volatile long mModificationCount = 0;
+
+
+	/**
+	 * Immutable, fully compacted copy of the {@link TrustGraphIndex} as of the time it was created.
+	 * <br>As it is immutable it can be used by multiple threads concurrently without any locking.
+	 * <br><br>
+	 *
+	 * The given / received Trusts of vertex v are at the indices
+	 * [{@link #getGivenTrustsStart(int)}, {@link #getGivenTrustsEnd(int)}) respectively
+	 * [{@link #getReceivedTrustsStart(int)}, {@link #getReceivedTrustsEnd(int)}) and can be
+	 * accessed with {@link #getTrustee(int)}, {@link #getGivenTrustValue(int)} respectively
+	 * {@link #getTruster(int)}, {@link #getReceivedTrustValue(int)}. */
+	public static final class Snapshot {
+		private final HashMap<String, Integer> mVertices;
+		private final String[] mIdentityIDs;
+		private final int[] mGivenOffsets;
+		private final int[] mTrustees;
+		private final byte[] mGivenValues;
+		private final int[] mReceivedOffsets;
+		private final int[] mTrusters;
+		private final byte[] mReceivedValues;
+
+		private Snapshot(TrustGraphIndex index) {
+			final int vertexCount = index.mVertexCount;
+			mVertices = new HashMap<String, Integer>(index.mVertices);
+			mIdentityIDs = copyOf(index.mIdentityIDs, vertexCount);
+			mGivenOffsets = new int[vertexCount + 1];
+			mTrustees = new int[index.mTrustCount];
+			mGivenValues = new byte[index.mTrustCount];
+			mReceivedOffsets = new int[vertexCount + 1];
+			mTrusters = new int[index.mTrustCount];
+			mReceivedValues = new byte[index.mTrustCount];
+
+			index.mGivenTrusts.copyTo(vertexCount, mGivenOffsets, mTrustees, mGivenValues);
+			index.mReceivedTrusts.copyTo(vertexCount, mReceivedOffsets, mTrusters,
+				mReceivedValues);
+		}
+
+		public int getVertexCount() {
+			return mIdentityIDs.length;
+		}
+
+		public int getTrustCount() {
+			return mTrustees.length;
+		}
+
+		/**
+		 * @return The vertex of the given {@link Identity#getID()}, or
+		 *     {@link TrustGraphIndex#NO_VERTEX}. */
+		public int getVertex(String identityID) {
+			final Integer vertex = mVertices.get(identityID);
+			return vertex != null ? vertex : NO_VERTEX;
+		}
+
+		public String getIdentityID(int vertex) {
+			return mIdentityIDs[vertex];
+		}
+
+		public int getGivenTrustsStart(int trusterVertex) {
+			return mGivenOffsets[trusterVertex];
+		}
+
+		public int getGivenTrustsEnd(int trusterVertex) {
+			return mGivenOffsets[trusterVertex + 1];
+		}
+
+		public int getTrustee(int givenTrustIndex) {
+			return mTrustees[givenTrustIndex];
+		}
+
+		public byte getGivenTrustValue(int givenTrustIndex) {
+			return mGivenValues[givenTrustIndex];
+		}
+
+		public int getReceivedTrustsStart(int trusteeVertex) {
+			return mReceivedOffsets[trusteeVertex];
+		}
+
+		public int getReceivedTrustsEnd(int trusteeVertex) {
+			return mReceivedOffsets[trusteeVertex + 1];
+		}
+
+		public int getTruster(int receivedTrustIndex) {
+			return mTrusters[receivedTrustIndex];
+		}
+
+		public byte getReceivedTrustValue(int receivedTrustIndex) {
+			return mReceivedValues[receivedTrustIndex];
+		}
+
+		/**
+		 * @return The {@link Trust#getValue()} of the Trust between the given vertices, or
+		 *     {@link #NO_VALUE} if there is none. */
+		public int getTrustValue(int trusterVertex, int trusteeVertex) {
+			for(int i = mGivenOffsets[trusterVertex]; i < mGivenOffsets[trusterVertex + 1]; ++i) {
+				if(mTrustees[i] == trusteeVertex)
+					return mGivenValues[i];
+			}
+			return NO_VALUE;
+		}
+	}
+
+	/**
+	 * Adds or changes the Trust between the given {@link Identity#getID()}s.<br>
+	 * Must be called by whoever stores a {@link Trust} object to the database, in the same
+	 * transaction. */
+	public synchronized void setTrust(String trusterID, String trusteeID, byte value) {
+		final int truster = getOrCreateVertex(trusterID);
+		final int trustee = getOrCreateVertex(trusteeID);
+		final int oldValue = setTrust(truster, trustee, value);
+		logUndo(truster, trustee, oldValue);
+	}
+
+	/**
+	 * Removes the Trust between the given {@link Identity#getID()}s, if there is one.<br>
+	 * Must be called by whoever deletes a {@link Trust} object from the database, in the same
+	 * transaction. */
+	public synchronized void removeTrust(String trusterID, String trusteeID) {
+		final int truster = getVertex(trusterID);
+		final int trustee = getVertex(trusteeID);
+		if(truster == NO_VERTEX || trustee == NO_VERTEX)
+			return;
+
+		final int oldValue = removeTrust(truster, trustee);
+		if(oldValue != NO_VALUE)
+			logUndo(truster, trustee, oldValue);
+	}
+
+	/**
+	 * @return The {@link Trust#getValue()} of the Trust between the given {@link Identity#getID()}s,
+	 *     or {@link #NO_VALUE} if there is none. */
+	public synchronized int getTrustValue(String trusterID, String trusteeID) {
+		final int truster = getVertex(trusterID);
+		final int trustee = getVertex(trusteeID);
+		if(truster == NO_VERTEX || trustee == NO_VERTEX)
+			return NO_VALUE;
+
+		final int index = mGivenTrusts.find(truster, trustee);
+		return index >= 0 ? mGivenTrusts.mValues[index] : NO_VALUE;
+	}
+
+	public synchronized int getVertexCount() {
+		return mVertexCount;
+	}
+
+	public synchronized int getTrustCount() {
+		return mTrustCount;
+	}
+
+	/**
+	 * Returns an immutable copy of the current state of the index.<br>
+	 * The copy is cached until the index is modified the next time, so calling this repeatedly
+	 * is cheap as long as no Trusts change. */
+	public synchronized Snapshot getSnapshot() {
+		if(mSnapshot == null)
+			mSnapshot = new Snapshot(this);
+
+		return mSnapshot;
+	}
+
+	/**
+	 * Allows callers which cache data derived from a {@link #getSnapshot()} to check whether it
+	 * is outdated without having to synchronize upon the index: Creating a snapshot after a
+	 * modification copies the whole graph.<br>
+	 * Does not synchronize upon the TrustGraphIndex.
+	 * 
+	 * @return A value which changes whenever the index is modified. */
+	public long getModificationCount() {
+		return mModificationCount;
+	}
+
+	/**
+	 * Discards the current contents of the index and fills it with the given {@link Trust}s.<br>
+	 * Must be called while there is no uncommitted transaction which modified Trusts since the undo
+	 * log is discarded. */
+	public synchronized void rebuild(Iterable<Trust> allTrusts) {
+		mVertices.clear();
+		mIdentityIDs = new String[INITIAL_VERTEX_CAPACITY];
+		mVertexCount = 0;
+		mTrustCount = 0;
+		mGivenTrusts.clear();
+		mReceivedTrusts.clear();
+		mUndoLogSize = 0;
+		onModified();
+
+		for(Trust trust : allTrusts) {
+			// Split the ID instead of using getTruster() / getTrustee() to avoid activating the
+			// Identity objects.
+			final String id = trust.getID();
+			final int separator = id.indexOf('@');
+			final int truster = getOrCreateVertex(id.substring(0, separator));
+			final int trustee = getOrCreateVertex(id.substring(separator + 1));
+			setTrust(truster, trustee, trust.getValue());
+		}
+	}
+
+	/** Clears the undo log. */
+	@Override public synchronized void onCommit() {
+		mUndoLogSize = 0;
+	}
+
+	/** Undoes all changes of the current transaction by replaying the undo log in reverse. */
+	@Override public synchronized void onRollback() {
+		for(int i = mUndoLogSize - 3; i >= 0; i -= 3) {
+			final int truster = mUndoLog[i];
+			final int trustee = mUndoLog[i + 1];
+			final int oldValue = mUndoLog[i + 2];
+
+			if(oldValue == NO_VALUE)
+				removeTrust(truster, trustee);
+			else
+				setTrust(truster, trustee, (byte)oldValue);
+		}
+
+		mUndoLogSize = 0;
+	}
+
+	/** Must be called while synchronized upon the TrustGraphIndex. */
+	private void onModified() {
+		mSnapshot = null;
+		++mModificationCount;
+	}
+
+	private int getVertex(String identityID) {
+		final Integer vertex = mVertices.get(identityID);
+		return vertex != null ? vertex : NO_VERTEX;
+	}
+
+	private int getOrCreateVertex(String identityID) {
+		final Integer existing = mVertices.get(identityID);
+		if(existing != null)
+			return existing;
+
+		final int vertex = mVertexCount++;
+		if(vertex == mIdentityIDs.length)
+			mIdentityIDs = copyOf(mIdentityIDs, mIdentityIDs.length * 2);
+
+		mIdentityIDs[vertex] = identityID;
+		mVertices.put(identityID, vertex);
+		mGivenTrusts.addVertex();
+		mReceivedTrusts.addVertex();
+		onModified();
+		return vertex;
+	}
+
+	/** @return The previous value, or {@link #NO_VALUE}. */
+	private int setTrust(int truster, int trustee, byte value) {
+		final int oldValue = mGivenTrusts.put(truster, trustee, value);
+		final int oldReceivedValue = mReceivedTrusts.put(trustee, truster, value);
+		assert(oldValue == oldReceivedValue);
+
+		if(oldValue == NO_VALUE)
+			++mTrustCount;
+
+		onModified();
+		return oldValue;
+	}
+
+	/** @return The previous value, or {@link #NO_VALUE} if there was no Trust. */
+	private int removeTrust(int truster, int trustee) {
+		final int oldValue = mGivenTrusts.remove(truster, trustee);
+		final int oldReceivedValue = mReceivedTrusts.remove(trustee, truster);
+		assert(oldValue == oldReceivedValue);
+
+		if(oldValue != NO_VALUE) {
+			--mTrustCount;
+			onModified();
+		}
+
+		return oldValue;
+	}
+
+	private void logUndo(int truster, int trustee, int oldValue) {
+		if(mUndoLogSize + 3 > mUndoLog.length)
+			mUndoLog = copyOf(mUndoLog, mUndoLog.length * 2);
+
+		mUndoLog[mUndoLogSize++] = truster;
+		mUndoLog[mUndoLogSize++] = trustee;
+		mUndoLog[mUndoLogSize++] = oldValue;
+	}
+
+	/**
+	 * One direction of the adjacency of the graph: For each vertex, a segment of the
+	 * {@link #mTargets} / {@link #mValues} arrays which contains the vertices at the other end of
+	 * its Trusts and their values.<br>
+	 * The order of the Trusts within a segment is not defined. */
+	private static final class Adjacency {
+		/** Index = vertex, value = start of its segment in {@link #mTargets} */
+		int[] mStart = new int[INITIAL_VERTEX_CAPACITY];
+
+		/** Index = vertex, value = amount of used slots in its segment */
+		int[] mCount = new int[INITIAL_VERTEX_CAPACITY];
+
+		/** Index = vertex, value = size of its segment */
+		int[] mCapacity = new int[INITIAL_VERTEX_CAPACITY];
+
+		int mVertexCount = 0;
+
+		int[] mTargets = new int[INITIAL_EDGE_CAPACITY];
+
+		byte[] mValues = new byte[INITIAL_EDGE_CAPACITY];
+
+		/** The slots of mTargets starting at this index are not allocated to any segment yet. */
+		int mUsed = 0;
+
+		/** Amount of slots in segments which were abandoned by moving them to the end. */
+		int mGarbage = 0;
+
+		void clear() {
+			mStart = new int[INITIAL_VERTEX_CAPACITY];
+			mCount = new int[INITIAL_VERTEX_CAPACITY];
+			mCapacity = new int[INITIAL_VERTEX_CAPACITY];
+			mVertexCount = 0;
+			mTargets = new int[INITIAL_EDGE_CAPACITY];
+			mValues = new byte[INITIAL_EDGE_CAPACITY];
+			mUsed = 0;
+			mGarbage = 0;
+		}
+
+		void addVertex() {
+			if(mVertexCount == mStart.length) {
+				final int newLength = mStart.length * 2;
+				mStart = copyOf(mStart, newLength);
+				mCount = copyOf(mCount, newLength);
+				mCapacity = copyOf(mCapacity, newLength);
+			}
+			// The vertex has a segment of length 0 at index 0, which is fine as it will be moved
+			// when the first target is added.
+			++mVertexCount;
+		}
+
+		/** @return The index of the given target in the segment of the vertex, or -1. */
+		int find(int vertex, int target) {
+			final int end = mStart[vertex] + mCount[vertex];
+			for(int i = mStart[vertex]; i < end; ++i) {
+				if(mTargets[i] == target)
+					return i;
+			}
+			return -1;
+		}
+
+		/** @return The previous value, or {@link #NO_VALUE}. */
+		int put(int vertex, int target, byte value) {
+			int index = find(vertex, target);
+			if(index >= 0) {
+				final int oldValue = mValues[index];
+				mValues[index] = value;
+				return oldValue;
+			}
+
+			if(mCount[vertex] == mCapacity[vertex])
+				moveToEnd(vertex, max(MIN_SEGMENT_CAPACITY, mCapacity[vertex] * 2));
+
+			index = mStart[vertex] + mCount[vertex]++;
+			mTargets[index] = target;
+			mValues[index] = value;
+			return NO_VALUE;
+		}
+
+		/** @return The previous value, or {@link #NO_VALUE} if the target was not contained. */
+		int remove(int vertex, int target) {
+			final int index = find(vertex, target);
+			if(index < 0)
+				return NO_VALUE;
+
+			final int oldValue = mValues[index];
+			// Fill the gap with the last entry of the segment
+			final int last = mStart[vertex] + --mCount[vertex];
+			mTargets[index] = mTargets[last];
+			mValues[index] = mValues[last];
+			return oldValue;
+		}
+
+		/**
+		 * Copies the used slots of all segments into the given arrays in the format of
+		 * {@link Snapshot}. */
+		void copyTo(int vertexCount, int[] offsets, int[] targets, byte[] values) {
+			assert(vertexCount == mVertexCount);
+			int offset = 0;
+			for(int vertex = 0; vertex < vertexCount; ++vertex) {
+				offsets[vertex] = offset;
+				System.arraycopy(mTargets, mStart[vertex], targets, offset, mCount[vertex]);
+				System.arraycopy(mValues, mStart[vertex], values, offset, mCount[vertex]);
+				offset += mCount[vertex];
+			}
+			offsets[vertexCount] = offset;
+			assert(offset == targets.length);
+		}
+
+		private void moveToEnd(int vertex, int newCapacity) {
+			if(mUsed + newCapacity > mTargets.length) {
+				if(mGarbage > mUsed / 2)
+					compact();
+
+				if(mUsed + newCapacity > mTargets.length) {
+					final int newLength = max(mUsed + newCapacity, mTargets.length * 2);
+					mTargets = copyOf(mTargets, newLength);
+					mValues = copyOf(mValues, newLength);
+				}
+			}
+
+			System.arraycopy(mTargets, mStart[vertex], mTargets, mUsed, mCount[vertex]);
+			System.arraycopy(mValues, mStart[vertex], mValues, mUsed, mCount[vertex]);
+			mGarbage += mCapacity[vertex];
+			mStart[vertex] = mUsed;
+			mCapacity[vertex] = newCapacity;
+			mUsed += newCapacity;
+		}
+
+		/** Removes the garbage of abandoned segments by copying all segments to new arrays. */
+		private void compact() {
+			final int[] targets = new int[mTargets.length];
+			final byte[] values = new byte[mValues.length];
+			int used = 0;
+			for(int vertex = 0; vertex < mVertexCount; ++vertex) {
+				System.arraycopy(mTargets, mStart[vertex], targets, used, mCount[vertex]);
+				System.arraycopy(mValues, mStart[vertex], values, used, mCount[vertex]);
+				mStart[vertex] = used;
+				used += mCapacity[vertex];
+			}
+			mTargets = targets;
+			mValues = values;
+			mUsed = used;
+			mGarbage = 0;
+		}
+	}
+}
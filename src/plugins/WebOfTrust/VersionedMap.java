@@ -0,0 +1,158 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+/**
+ * Immutable map from String keys to non-null values. A modified version is created with
+ * {@link #with(HashMap)} and shares most of its memory with the previous version, so keeping
+ * many versions alive and creating a new one for a small change is cheap.<br>
+ * Used by {@link ReadSnapshot}.<br><br>
+ *
+ * The map consists of a base {@link HashMap} and a list of "delta" HashMaps which contain the
+ * changes since the base was created. A null value in a delta means that the key was removed.
+ * Each delta is at most half as large as the previous, i.e. older, one: When adding a new delta
+ * would violate this, it is merged with the previous ones. When the merged delta becomes half as
+ * large as the base, it is merged into a new base.<br>
+ * Thus there are at most log2(size) deltas which a lookup has to check, and each change is copied
+ * a logarithmic amount of times - similar to a log-structured merge tree.<br><br>
+ *
+ * None of the HashMaps is modified after it has been passed to the constructor, so the map can be
+ * used by multiple threads concurrently without locking.
+ */
+final class VersionedMap<V> {
+
+	private static final VersionedMap<Object> EMPTY = new VersionedMap<Object>(
+		new HashMap<String, Object>(), Collections.<HashMap<String, Object>>emptyList(), 0);
+
+	private final HashMap<String, V> mBase;
+
+	/** Oldest first. Values are null for removed keys. */
+	private final List<HashMap<String, V>> mDeltas;
+
+	private final int mSize;
+
+
+	private VersionedMap(final HashMap<String, V> base, final List<HashMap<String, V>> deltas,
+			final int size) {
+		mBase = base;
+		mDeltas = deltas;
+		mSize = size;
+	}
+
+	/**
+	 * @param base Must not be modified after passing it to this function. Must not contain null
+	 *     values.
+	 */
+	VersionedMap(final HashMap<String, V> base) {
+		this(base, Collections.<HashMap<String, V>>emptyList(), base.size());
+		assert(!base.containsValue(null));
+	}
+
+	@SuppressWarnings("unchecked")
+	static <V> VersionedMap<V> empty() {
+		return (VersionedMap<V>)EMPTY;
+	}
+
+	/** @return The value of the key, or null if there is none. */
+	V get(final String key) {
+		for(int i = mDeltas.size() - 1; i >= 0; --i) {
+			final HashMap<String, V> delta = mDeltas.get(i);
+			// Check get() first as it is cheaper than containsKey() + get() for the common case.
+			final V value = delta.get(key);
+			if(value != null || delta.containsKey(key))
+				return value;
+		}
+		return mBase.get(key);
+	}
+
+	int size() {
+		return mSize;
+	}
+
+	/**
+	 * @param changes
+	 *     The values to set. A null value removes the key.<br>
+	 *     Is taken over by the new map, so it must not be modified after passing it to this
+	 *     function.
+	 * @return A new map which contains the changes. This map is not modified.
+	 */
+	VersionedMap<V> with(HashMap<String, V> changes) {
+		if(changes.isEmpty())
+			return this;
+
+		int size = mSize;
+		for(Entry<String, V> change : changes.entrySet()) {
+			final boolean existed = get(change.getKey()) != null;
+			final boolean exists = change.getValue() != null;
+			if(!existed && exists)
+				++size;
+			else if(existed && !exists)
+				--size;
+		}
+
+		final ArrayList<HashMap<String, V>> deltas = new ArrayList<HashMap<String, V>>(mDeltas);
+		while(!deltas.isEmpty()
+				&& deltas.get(deltas.size() - 1).size() <= 2 * changes.size()) {
+
+			final HashMap<String, V> merged
+				= new HashMap<String, V>(deltas.remove(deltas.size() - 1));
+			merged.putAll(changes);
+			changes = merged;
+		}
+
+		if(deltas.isEmpty() && changes.size() * 2 >= mBase.size()) {
+			final HashMap<String, V> base = new HashMap<String, V>(size * 2);
+			base.putAll(mBase);
+			for(Entry<String, V> change : changes.entrySet()) {
+				if(change.getValue() != null)
+					base.put(change.getKey(), change.getValue());
+				else
+					base.remove(change.getKey());
+			}
+			assert(base.size() == size);
+			return new VersionedMap<V>(base);
+		}
+
+		deltas.add(changes);
+		return new VersionedMap<V>(mBase, deltas, size);
+	}
+
+	/** @return A new list of all values, in no particular order. */
+	ArrayList<V> values() {
+		final ArrayList<V> result = new ArrayList<V>(mSize);
+		for(int i = mDeltas.size() - 1; i >= 0; --i) {
+			for(Entry<String, V> entry : mDeltas.get(i).entrySet()) {
+				if(entry.getValue() != null && !isInDeltas(entry.getKey(), i + 1))
+					result.add(entry.getValue());
+			}
+		}
+		for(Entry<String, V> entry : mBase.entrySet()) {
+			if(!isInDeltas(entry.getKey(), 0))
+				result.add(entry.getValue());
+		}
+		assert(result.size() == mSize);
+		return result;
+	}
+
+	/** @return True if one of the deltas starting at the given index contains the key. */
+	private boolean isInDeltas(final String key, final int fromIndex) {
+		for(int i = fromIndex; i < mDeltas.size(); ++i) {
+			if(mDeltas.get(i).containsKey(key))
+				return true;
+		}
+		return false;
+	}
+
+	/** For unit tests. */
+	int getDeltaCount() {
+		return mDeltas.size();
+	}
+
+}
@@ -4,6 +4,7 @@
 package plugins.WebOfTrust;
 
 import static java.util.Arrays.copyOfRange;
+import static java.util.Arrays.fill;
 import static java.util.Arrays.sort;
 
 import java.io.File;
@@ -11,6 +12,7 @@ import java.io.IOException;
 import java.lang.reflect.Field;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.Date;
@@ -18,9 +20,13 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
@@ -47,12 +53,12 @@ import plugins.WebOfTrust.ui.fcp.FCPInterface;
 import plugins.WebOfTrust.ui.web.WebInterface;
 import plugins.WebOfTrust.util.IdentifierHashSet;
 import plugins.WebOfTrust.util.StopWatch;
+import plugins.WebOfTrust.util.jobs.DelayedBackgroundJob;
+import plugins.WebOfTrust.util.jobs.TickerDelayedBackgroundJob;
 
 import com.db4o.Db4o;
 import com.db4o.ObjectContainer;
 import com.db4o.ObjectSet;
-import com.db4o.defragment.Defragment;
-import com.db4o.defragment.DefragmentConfig;
 import com.db4o.ext.ExtObjectContainer;
 import com.db4o.query.Query;
 import com.db4o.reflect.jdk.JdkReflector;
@@ -82,7 +88,7 @@ import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.PooledExecutor;
 import freenet.support.SimpleFieldSet;
-import freenet.support.SizeUtil;
+import freenet.support.Ticker;
 import freenet.support.api.Bucket;
 import freenet.support.io.FileUtil;
 
@@ -109,6 +115,45 @@ public final class WebOfTrust extends WebOfTrustInterface
 	
 	public static final String DATABASE_FILENAME =  WebOfTrustInterface.WOT_NAME + ".db4o"; 
 	public static final int DATABASE_FORMAT_VERSION = 7;
+	
+	/**
+	 * Amount of threads which {@link #computeAllScoresWithoutCommit_Indexed()} uses to compute
+	 * the trust trees of the {@link OwnIdentity}s in parallel. A value of 1 disables the parallel
+	 * mode, the trust trees will then be computed by the calling thread.<br>
+	 * Each thread only needs a few arrays of the size of the amount of Identitys, and the trees of
+	 * all OwnIdentitys are kept in memory during the computation anyway, so there is no need to
+	 * limit this to less than the amount of CPUs.<br>
+	 * TODO: Code quality: Make configurable. */
+	public static final int SCORE_COMPUTATION_THREADS
+		= Math.max(1, Runtime.getRuntime().availableProcessors());
+	
+	/**
+	 * Delay of the {@link #mBestCapacityEstimateJob} after a commit, and thus the minimal interval
+	 * in which it recomputes the estimate of {@link #getBestCapacityEstimate(String)}.
+	 * <br>TODO: Code quality: Make configurable. */
+	public static final long BEST_CAPACITY_ESTIMATE_MIN_RECOMPUTE_INTERVAL
+		= TimeUnit.MINUTES.toMillis(1);
+	
+	/**
+	 * Batches of {@link #setTrusts(String, List)} with more changes than this update the
+	 * {@link Score}s by a single full recomputation at the end instead of incrementally for each
+	 * change: The indexed full recomputation takes roughly as long as a few incremental ones.
+	 * <br>TODO: Performance: Determine by benchmarks. */
+	public static final int SET_TRUSTS_INCREMENTAL_SCORE_UPDATE_LIMIT = 8;
+
+	/**
+	 * Simple names of the {@link Persistent} classes for which
+	 * {@link #getNewDatabaseConfiguration()} enables a db4o class index, or null for all of them.
+	 * <br>
+	 * Can be set by launching the JVM with a comma-separated list such as
+	 * "-DWOT_class_indexes=Identity,Trust,Score" to benchmark it with the {@link DatabaseProfiler}.
+	 * <br>
+	 * ATTENTION: Queries which only constrain the class, such as {@link #getAllIdentities()}, need
+	 * its index, and db4o changes the indexes of the database file when opening it. So only use
+	 * this for benchmarks upon a copy of a database. */
+	public static final HashSet<String> CLASS_INDEXES
+		= System.getProperty("WOT_class_indexes") == null ? null
+		: new HashSet<String>(Arrays.asList(System.getProperty("WOT_class_indexes").split(",")));
 
 	/* References from the node */
 	
@@ -122,6 +167,10 @@ public final class WebOfTrust extends WebOfTrustInterface
 	/* Database & configuration of the plugin */
 	private File mDatabaseFile;
 	private ExtObjectContainer mDB;
+	
+	/** Used for the lookups of {@link Identity}s, {@link Trust}s and {@link Score}s in {@link #mDB}. */
+	private Storage mStorage;
+	
 	private Configuration mConfig;
 	private IntroductionPuzzleStore mPuzzleStore;
 	
@@ -163,6 +212,24 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * the {@link #mIdentityFileQueue}. */
 	private IdentityFileProcessor mIdentityFileProcessor;
 	
+	/**
+	 * Verifies the database in the background after startup. Until it has finished, the user
+	 * interfaces are read-only, see {@link #isStartupVerificationFinished()}.<br>
+	 * Null in unit tests which use the {@link #WebOfTrust(String)} constructor. */
+	private StartupVerifier mStartupVerifier = null;
+	
+	/**
+	 * Commits the transactions which use
+	 * {@link Persistent#checkedCommitDeferred(ExtObjectContainer, Object, Collection)} in groups.<br>
+	 * Null in unit tests which use the {@link #WebOfTrust(String)} constructor, the deferred
+	 * commits are done immediately then. */
+	private GroupCommitter mGroupCommitter = null;
+	
+	/**
+	 * Compacts the database in the background if {@link Configuration#DEFAULT_DEFRAG_INTERVAL} has
+	 * expired, see {@link #startDatabaseCompaction(Ticker)}. Null if it has not. */
+	private DatabaseCompactor mDatabaseCompactor = null;
+	
 	
 	/**
 	 * Uploads captchas belonging to our own identities which others can solve to get on the trust list of them. Checks whether someone
@@ -191,6 +258,80 @@ public final class WebOfTrust extends WebOfTrustInterface
 	
 	private boolean mTrustListImportInProgress = false;
 	
+	/**
+	 * In-memory copy of the graph of all {@link Trust}s, used by
+	 * {@link #computeAllScoresWithoutCommit_Indexed()} to avoid database queries.<br>
+	 * Must be updated by all code which stores / deletes Trusts. */
+	private final TrustGraphIndex mTrustGraphIndex = new TrustGraphIndex();
+	
+	/**
+	 * False until {@link #rebuildTrustGraphIndex()} was called after {@link #upgradeDB()}.<br>
+	 * While it is false, the {@link #mTrustGraphIndex} must not be used for Score computation
+	 * as the upgrade code might store or delete Trusts without updating it. */
+	private boolean mTrustGraphIndexBuilt = false;
+	
+	/**
+	 * Maintains the {@link ReadSnapshot} of {@link #getReadSnapshot()}.<br>
+	 * Is notified about changes by the storeWithoutCommit() / deleteWithoutCommit() functions of
+	 * the Identity, Trust and Score classes, see {@link #getReadSnapshotPublisher()}. */
+	private final ReadSnapshotPublisher mReadSnapshotPublisher = new ReadSnapshotPublisher(this);
+	
+	/**
+	 * False until {@link #rebuildReadSnapshot()} was called after {@link #upgradeDB()}.<br>
+	 * While it is false, changes are not reported to the {@link #mReadSnapshotPublisher} as the
+	 * snapshot will be built from scratch anyway.<br>
+	 * Only changed while holding the {@link Persistent#transactionLock(ExtObjectContainer)}. */
+	private boolean mReadSnapshotBuilt = false;
+	
+	/**
+	 * Computes the trust trees of {@link #computeAllScoresWithoutCommit_Indexed()} in parallel,
+	 * see {@link #computeTrustTrees(TrustGraphIndex.Snapshot, String[])}.<br>
+	 * Null if {@link #SCORE_COMPUTATION_THREADS} is 1.<br>
+	 * The {@link ForkJoinPool} only creates its threads when the first task is submitted, and
+	 * they terminate on their own when idle, so there is no need to start / stop it along with
+	 * the other subsystems. It is shut down in {@link #terminate()} nevertheless to prevent usage
+	 * after the database was closed. */
+	private final ForkJoinPool mScoreComputationPool
+		= SCORE_COMPUTATION_THREADS > 1 ? new ForkJoinPool(SCORE_COMPUTATION_THREADS) : null;
+	
+	/**
+	 * {@link Identity#getID()}s of the {@link OwnIdentity}s which have a trust tree, as of the
+	 * last call to {@link #rebuildTrustGraphIndex()} or
+	 * {@link #computeAllScoresWithoutCommit_Indexed()}.<br>
+	 * Used by {@link #getBestCapacityEstimate(String)}, which must not acquire the database
+	 * locks and thus cannot query the OwnIdentitys on its own. Null if not known yet. */
+	private volatile String[] mTrustTreeOwnerIDs = null;
+	
+	/**
+	 * Last estimate published by the {@link #mBestCapacityEstimateJob}, null if none yet.
+	 * @see #getBestCapacityEstimate(String) */
+	private volatile BestCapacityEstimate mBestCapacityEstimate = null;
+	
+	/**
+	 * Recomputes the {@link #mBestCapacityEstimate} in the background, see
+	 * {@link #updateBestCapacityEstimate()}. Triggered by the
+	 * {@link #mBestCapacityEstimateTrigger} after each commit.<br>
+	 * Null in unit tests which use the {@link #WebOfTrust(String)} constructor,
+	 * {@link #getBestCapacityEstimate(String)} always returns 0 then. */
+	private DelayedBackgroundJob mBestCapacityEstimateJob = null;
+	
+	/**
+	 * Triggers the {@link #mBestCapacityEstimateJob} after each commit: Trusts and OwnIdentitys
+	 * are only changed in transactions.<br>
+	 * The job is delayed by {@link #BEST_CAPACITY_ESTIMATE_MIN_RECOMPUTE_INTERVAL}, so the many
+	 * commits of the trust list imports are aggregated into one recomputation. */
+	private final Persistent.TransactionListener mBestCapacityEstimateTrigger
+		= new Persistent.TransactionListener() {
+			@Override public void onCommit() {
+				mBestCapacityEstimateJob.triggerExecution();
+			}
+			
+			@Override public void onRollback() {
+				// The index was reverted to its previous state, which the estimate was computed
+				// from or will be recomputed from due to the commit which caused it.
+			}
+		};
+	
 	
 	/* User interfaces */
 	
@@ -239,6 +380,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 			// cloneDatabase(getDatabaseFile(), new File(getUserDataDirectory(), DATABASE_FILENAME + ".clone"));
 			
 			mDB = openDatabase(getDatabaseFile());
+			mStorage = new Db4oStorage(this, mDB);
 			
 			mConfig = getOrCreateConfig();
 			
@@ -262,10 +404,24 @@ public final class WebOfTrust extends WebOfTrustInterface
 			};
 
 
-			mIdentityFileQueue = new IdentityFileDiskQueue(getUserDataDirectory());
-			// You may use this instead for debugging purposes, or on very high memory nodes.
-			// See its JavaDoc for requirements of making this a config option.
-			/* mIdentityFileQueue = new IdentityFileMemoryQueue(); */
+			IdentityFileDiskQueue.PriorityProvider priorityProvider
+				= new IdentityFileDiskQueue.PriorityProvider() {
+					@Override public int getPriority(String identityID) {
+						// Importing trust lists of trusted Identitys first makes the Identitys
+						// which are important for the user appear earlier after startup.
+						return getBestCapacityEstimate(identityID);
+					}
+				};
+			
+			IdentityFileQueue diskQueue
+				= new IdentityFileDiskQueue(getUserDataDirectory(), priorityProvider);
+			// Appends the files to segmented log files instead of creating one file per edition.
+			/* diskQueue = new IdentityFileLogQueue(getUserDataDirectory()); */
+			
+			// Keep the usually small backlog in memory, only spill to disk if it grows large.
+			// Both queues must use the priorities: Most files never spill.
+			mIdentityFileQueue = new IdentityFileMemoryQueue(
+				IdentityFileMemoryQueue.DEFAULT_BYTE_BUDGET, diskQueue, priorityProvider);
 			
 			mXMLTransformer = new XMLTransformer(this);
 
@@ -277,10 +433,29 @@ public final class WebOfTrust extends WebOfTrustInterface
 
 			// Please ensure that no threads are using the IntroductionPuzzleStore / IdentityFetcher / SubscriptionManager while this is executing.
 			upgradeDB();
+			
+			rebuildTrustGraphIndex();
+			rebuildReadSnapshot();
+			
+			mBestCapacityEstimateJob = new TickerDelayedBackgroundJob(
+				new Runnable() { @Override public void run() {
+					updateBestCapacityEstimate();
+				}},
+				"WOT BestCapacityEstimate",
+				BEST_CAPACITY_ESTIMATE_MIN_RECOMPUTE_INTERVAL,
+				mPR.getNode().getTicker());
+			Persistent.registerTransactionListener(mDB, mBestCapacityEstimateTrigger);
+			// Compute the initial estimate before the IdentityFetcher starts filling the queue.
+			mBestCapacityEstimateJob.triggerExecution(0);
 
 			
 			mInserter = new IdentityInserter(this);
 			
+			// Must be started before the IdentityFetcher and IntroductionPuzzleStore are used as
+			// they defer their commits to it.
+			mGroupCommitter = new GroupCommitter(mDB, mPR.getNode().getTicker());
+			mGroupCommitter.start();
+			
 			// Identity files flow through the following pipe:
 			//     mFetcher -> mIdentityFileQueue -> mIdentityFileProcessor
 			// Thus, in theory, we should want to start the pipe's daemons in reverse order to
@@ -296,19 +471,22 @@ public final class WebOfTrust extends WebOfTrustInterface
 			mFetcher.start();
 			
 			
-			// verifyDatabaseIntegrity() and maybeVerifyAndCorrectStoredScores() must be called
-			// after the IdentityFetcher was started because they might verify its state.
+			// The integrity test of all objects and maybeVerifyAndCorrectStoredScores() can take
+			// many minutes on large databases, so they are done by the StartupVerifier in the
+			// background and the user interfaces are read-only until it has finished.
+			// Only the deletion of duplicate and orphan objects is done here: It must happen
+			// before the SubscriptionManager is started, see deleteDuplicateObjects().
 			
 			// We only do this if debug logging is enabled since the integrity verification cannot repair anything anyway,
 			// if the user does not read his logs there is no need to check the integrity.
 			// TODO: Do this once every few startups and notify the user in the web ui if errors are found.
 			if(logDEBUG)
-				verifyDatabaseIntegrity();
+				deleteDuplicateAndOrphanObjects();
 			
-			maybeVerifyAndCorrectStoredScores();
+			mStartupVerifier = new StartupVerifier(this, mPR.getNode().getTicker(), logDEBUG);
 			
 						
-			// Database is up now, integrity is checked. We can start to actually do stuff
+			// Database is up now. We can start to actually do stuff
 			
 			// TODO: This can be used for doing backups. Implement auto backup, maybe once a week or month
 			//backupDatabase(new File(getUserDataDirectory(), DATABASE_FILENAME + ".backup"));
@@ -337,8 +515,14 @@ public final class WebOfTrust extends WebOfTrustInterface
 			}
 			
 			// Start at the very end to ensure that its processing doesn't slow down startup.
+			// The StartupVerifier must be started after the IdentityFetcher because it might
+			// verify its state.
+			mStartupVerifier.start();
 			mIdentityFileProcessor.start();
 			
+			if(isDatabaseCompactionDue())
+				startDatabaseCompaction(mPR.getNode().getTicker());
+			
 			Logger.normal(this, "Web Of Trust plugin starting up completed.");
 		}
 		catch(RuntimeException e){
@@ -368,6 +552,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 	public WebOfTrust(String databaseFilename) {
 		setDatabaseFile(new File(databaseFilename));
 		mDB = openDatabase(getDatabaseFile());
+		mStorage = new Db4oStorage(this, mDB);
 		
 		mConfig = getOrCreateConfig();
 		
@@ -375,6 +560,9 @@ public final class WebOfTrust extends WebOfTrustInterface
 			throw new RuntimeException("Database format version mismatch. Found: " + mConfig.getDatabaseFormatVersion() + 
 					"; expected: " + WebOfTrust.DATABASE_FORMAT_VERSION);
 		
+		rebuildTrustGraphIndex();
+		rebuildReadSnapshot();
+		
 		mPuzzleStore = new IntroductionPuzzleStore(this);
 		
 		mSubscriptionManager = new SubscriptionManager(this);
@@ -441,7 +629,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 	}
 
 	/** Same as {@link #getNewDatabaseConfiguration(boolean)} with parameter readOnly = false. */
-	private com.db4o.config.Configuration getNewDatabaseConfiguration() {
+	com.db4o.config.Configuration getNewDatabaseConfiguration() {
 		return getNewDatabaseConfiguration(false);
 	}
 
@@ -456,6 +644,8 @@ public final class WebOfTrust extends WebOfTrustInterface
 		cfg.activationDepth(Persistent.DEFAULT_ACTIVATION_DEPTH);
 		cfg.updateDepth(1); // This must not be changed: We only activate(this, 1) before store(this).
 		Logger.normal(this, "Default activation depth: " + cfg.activationDepth());
+		if(CLASS_INDEXES != null)
+			Logger.warning(this, "Only enabling class indexes for: " + CLASS_INDEXES);
 		cfg.exceptionsOnNotStorable(true);
         // The shutdown hook does auto-commit. We do NOT want auto-commit: if a transaction hasn't commit()ed, it's not safe to commit it.
         cfg.automaticShutDown(false);
@@ -499,7 +689,8 @@ public final class WebOfTrust extends WebOfTrustInterface
         	
         	// TODO: We enable class indexes for all classes to make sure nothing breaks because it is the db4o default, check whether enabling
         	// them only for the classes where we need them does not cause any harm.
-        	classHasIndex = true;
+        	// CLASS_INDEXES allows benchmarking that.
+        	classHasIndex = CLASS_INDEXES == null || CLASS_INDEXES.contains(clazz.getSimpleName());
         	
         	if(logDEBUG) Logger.debug(this, "Persistent class: " + clazz.getCanonicalName() + "; hasIndex==" + classHasIndex);
         	
@@ -556,114 +747,38 @@ public final class WebOfTrust extends WebOfTrustInterface
 		}
 	}
 
-	private synchronized void defragmentDatabase(File databaseFile) throws IOException {
-		Logger.normal(this, "Defragmenting database ...");
+	/**
+	 * Cleans up after a {@link DatabaseCompactor} whose swapping of the database files was
+	 * interrupted, e.g. by the node being killed:<br>
+	 * - If the database file was renamed to the backup file but the compacted file was not
+	 *   renamed to the database file yet, the backup is restored.<br>
+	 * - If both the database file and the backup file exist, the swap has completed except for
+	 *   deleting the backup, so it is deleted.<br>
+	 * - A leftover compacted file is incomplete, so it is deleted. */
+	private synchronized void restoreInterruptedDatabaseSwap(File databaseFile)
+			throws IOException {
 		
 		if(mDB != null) 
 			throw new RuntimeException("Database is opened already!");
 		
-		if(mPR == null) {
-			Logger.normal(this, "No PluginRespirator found, probably running as unit test, not defragmenting.");
-			return;
-		}
-		
-
-		final File backupFile = new File(databaseFile.getAbsolutePath() + ".backup");
+		final File backupFile = DatabaseCompactor.getBackupFile(databaseFile);
 		
 		if(backupFile.exists()) {
 			if(!databaseFile.exists() || databaseFile.length() == 0) {
-				Logger.warning(this, "Backup file exists while main database file does not or is empty, maybe the node was shot during defrag. Restoring backup...");
+				Logger.warning(this, "Backup file exists while main database file does not or is empty, maybe the node was shot during compaction. Restoring backup...");
 				restoreDatabaseBackup(databaseFile, backupFile);			
 			} else {
-				Logger.error(this, "Not defragmenting database: Backup AND main database exist, maybe the node was shot during defrag: " + backupFile.getAbsolutePath());
-				return;
-			}
-		}	
-		
-		// Open it first, because defrag will throw if it needs to upgrade the file.
-		{
-			// Db4o will throw during defragmentation if new fields were added to classes and we didn't initialize their values on existing
-			// objects before defragmenting. So we just don't defragment if the database format version has changed.
-			final boolean canDefragment = peekDatabaseFormatVersion(databaseFile) == WebOfTrust.DATABASE_FORMAT_VERSION;
-
-			if(!canDefragment) {
-				Logger.normal(this, "Not defragmenting, database format version changed!");
-				return;
-			}
-			
-			final ObjectContainer database = Db4o.openFile(getNewDatabaseConfiguration(), databaseFile.getAbsolutePath());
-
-			// Check whether the minimal delay between defragmentations is expired
-			// TODO: Code quality: Only update last defrag date if defragmentation actually succeeds
-			boolean mayDefrag = tryUpdateLastDefragDate(this, database.ext());
-			
-			while(!database.close());
-
-			if(!mayDefrag) {
-				Logger.normal(this, "Not defragmenting, minimal delay not expired.");
-				return;
-			}
-			
-			if(!databaseFile.exists()) {
-				Logger.error(this, "Database file does not exist after openFile: " + databaseFile.getAbsolutePath());
-				return;
+				Logger.warning(this, "Deleting leftover backup of database: " + backupFile.getAbsolutePath());
+				FileUtil.secureDelete(backupFile);
 			}
 		}
-
-		final File tmpFile = new File(databaseFile.getAbsolutePath() + ".temp");
-		FileUtil.secureDelete(tmpFile);
-
-		/* As opposed to the default, BTreeIDMapping uses an on-disk file instead of in-memory for mapping IDs. 
-		/* Reduces memory usage during defragmentation while being slower.
-		/* However as of db4o 7.4.63.11890, it is bugged and prevents defragmentation from succeeding for my database, so we don't use it for now. */
-		final DefragmentConfig config = new DefragmentConfig(databaseFile.getAbsolutePath(), 
-																backupFile.getAbsolutePath()
-															//	,new BTreeIDMapping(tmpFile.getAbsolutePath())
-															);
-		
-		/* Delete classes which are not known to the classloader anymore - We do NOT do this because:
-		/* - It is buggy and causes exceptions often as of db4o 7.4.63.11890
-		/* - WOT has always had proper database upgrade code (function upgradeDB()) and does not rely on automatic schema evolution.
-		/*   If we need to get rid of certain objects we should do it in the database upgrade code, */
-		// config.storedClassFilter(new AvailableClassFilter());
 		
-		config.db4oConfig(getNewDatabaseConfiguration());
+		final File compactedFile = DatabaseCompactor.getCompactedFile(databaseFile);
 		
-		try {
-			Defragment.defrag(config);
-		} catch (Exception e) {
-			Logger.error(this, "Defragment failed", e);
-			
-			try {
-				restoreDatabaseBackup(databaseFile, backupFile);
-				return;
-			} catch(IOException e2) {
-				Logger.error(this, "Unable to restore backup", e2);
-				throw new IOException(e);
-			}
-		}
-
-		final long oldSize = backupFile.length();
-		final long newSize = databaseFile.length();
-
-		if(newSize <= 0) {
-			Logger.error(this, "Defrag produced an empty file! Trying to restore old database file...");
-			
-			databaseFile.delete();
-			try {
-				restoreDatabaseBackup(databaseFile, backupFile);
-			} catch(IOException e2) {
-				Logger.error(this, "Unable to restore backup", e2);
-				throw new IOException(e2);
-			}
-		} else {
-			final double change = 100.0 * (((double)(oldSize - newSize)) / ((double)oldSize));
-			FileUtil.secureDelete(tmpFile);
-			FileUtil.secureDelete(backupFile);
-			Logger.normal(this, "Defragment completed. "+SizeUtil.formatSize(oldSize)+" ("+oldSize+") -> "
-					+SizeUtil.formatSize(newSize)+" ("+newSize+") ("+(int)change+"% shrink)");
+		if(compactedFile.exists()) {
+			Logger.warning(this, "Deleting incomplete compacted database: " + compactedFile.getAbsolutePath());
+			FileUtil.secureDelete(compactedFile);
 		}
-
 	}
 
 	
@@ -685,7 +800,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 			throw new RuntimeException("Database is opened already!");
 		
 		try {
-			defragmentDatabase(file);
+			restoreInterruptedDatabaseSwap(file);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
@@ -752,6 +867,55 @@ public final class WebOfTrust extends WebOfTrustInterface
 					+ getDatabaseFile() + ". Contact the developers if you really need your old data.");
 	}
 	
+	/**
+	 * Fills the {@link #mTrustGraphIndex} with all {@link Trust}s of the database and registers it
+	 * for being notified about commits / rollbacks.<br>
+	 * Must be called after {@link #upgradeDB()} and before any threads which modify Trusts are
+	 * started. */
+	private synchronized void rebuildTrustGraphIndex() {
+		synchronized(Persistent.transactionLock(mDB)) {
+			final StopWatch time = new StopWatch();
+			mTrustGraphIndex.rebuild(getAllTrusts());
+			time.stop();
+			
+			if(!mTrustGraphIndexBuilt) {
+				Persistent.registerTransactionListener(mDB, mTrustGraphIndex);
+				mTrustGraphIndexBuilt = true;
+			}
+			
+			mTrustTreeOwnerIDs = getTrustTreeOwnerIDs(getAllOwnIdentities());
+			
+			Logger.normal(this, "Built TrustGraphIndex: Trusts: " + mTrustGraphIndex.getTrustCount()
+			                  + "; Identitys: " + mTrustGraphIndex.getVertexCount()
+			                  + "; time: " + time);
+		}
+	}
+	
+	/**
+	 * Fills the {@link #mReadSnapshotPublisher} with copies of all {@link Identity}s,
+	 * {@link Trust}s and {@link Score}s of the database and registers it for being notified about
+	 * commits / rollbacks.<br>
+	 * Must be called after {@link #upgradeDB()} and before any threads which modify the database
+	 * are started. */
+	private synchronized void rebuildReadSnapshot() {
+		synchronized(Persistent.transactionLock(mDB)) {
+			final StopWatch time = new StopWatch();
+			mReadSnapshotPublisher.rebuild();
+			time.stop();
+			
+			if(!mReadSnapshotBuilt) {
+				Persistent.registerTransactionListener(mDB, mReadSnapshotPublisher);
+				mReadSnapshotBuilt = true;
+			}
+			
+			final ReadSnapshot snapshot = mReadSnapshotPublisher.getSnapshot();
+			Logger.normal(this, "Built ReadSnapshot: Identitys: " + snapshot.getIdentityCount()
+			                  + "; Trusts: " + snapshot.getTrustCount()
+			                  + "; Scores: " + snapshot.getScoreCount()
+			                  + "; time: " + time);
+		}
+	}
+	
 	/**
 	 * Upgrades database format version 1 to version 2
 	 */
@@ -1082,8 +1246,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		synchronized(mPuzzleStore) {
 		synchronized(mFetcher) {
 		synchronized(mSubscriptionManager) {
-			deleteDuplicateObjects();
-			deleteOrphanObjects();
+			deleteDuplicateAndOrphanObjects();
 			
 			Logger.debug(this, "Testing database integrity...");
 			
@@ -1093,18 +1256,8 @@ public final class WebOfTrust extends WebOfTrustInterface
 			boolean result = true;
 			
 			for(final Persistent p : new Persistent.InitializingObjectSet<Persistent>(this, q)) {
-				try {
-					p.startupDatabaseIntegrityTest();
-				} catch(Exception e) {
+				if(!testDatabaseIntegrity(p))
 					result = false;
-					
-					try {
-						Logger.error(this, "Integrity test failed for " + p, e);
-					} catch(Exception e2) {
-						Logger.error(this, "Integrity test failed for Persistent of class " + p.getClass(), e);
-						Logger.error(this, "Exception thrown by toString() was:", e2);
-					}
-				}
 			}
 			
 			Logger.debug(this, "Database integrity test finished.");
@@ -1115,6 +1268,81 @@ public final class WebOfTrust extends WebOfTrustInterface
 		}
 	}
 	
+	/**
+	 * Calls {@link #deleteDuplicateObjects()} and {@link #deleteOrphanObjects()}.<br>
+	 * ATTENTION: Must be called before the {@link SubscriptionManager} is initialized, see
+	 * deleteDuplicateObjects(). */
+	@SuppressWarnings("deprecation")
+	private synchronized void deleteDuplicateAndOrphanObjects() {
+		synchronized(mPuzzleStore) {
+		synchronized(mFetcher) {
+		synchronized(mSubscriptionManager) {
+			deleteDuplicateObjects();
+			deleteOrphanObjects();
+		}
+		}
+		}
+	}
+	
+	/** @return False if {@link Persistent#startupDatabaseIntegrityTest()} threw. */
+	private boolean testDatabaseIntegrity(final Persistent p) {
+		try {
+			p.startupDatabaseIntegrityTest();
+			return true;
+		} catch(Exception e) {
+			try {
+				Logger.error(this, "Integrity test failed for " + p, e);
+			} catch(Exception e2) {
+				Logger.error(this, "Integrity test failed for Persistent of class " + p.getClass(), e);
+				Logger.error(this, "Exception thrown by toString() was:", e2);
+			}
+			return false;
+		}
+	}
+	
+	/**
+	 * For {@link StartupVerifier}: Returns the db4o IDs of all {@link Persistent} objects so they
+	 * can be passed to {@link #verifyDatabaseIntegrity(long[], int, int)} in slices. */
+	synchronized long[] getAllPersistentObjectIDs() {
+		final Query q = mDB.query();
+		q.constrain(Persistent.class);
+		return q.execute().ext().getIDs();
+	}
+	
+	/**
+	 * For {@link StartupVerifier}: Same as {@link #verifyDatabaseIntegrity()} but only tests the
+	 * objects whose db4o IDs are at the indices from (inclusive) to (exclusive) of the given
+	 * array, and does not delete duplicate or orphan objects.<br>
+	 * Objects which were deleted since the IDs were obtained are skipped.
+	 * 
+	 * @return False if any of the objects' startupDatabaseIntegrityTest() threw an exception. */
+	synchronized boolean verifyDatabaseIntegrity(final long[] ids, final int from, final int to) {
+		synchronized(mPuzzleStore) {
+		synchronized(mFetcher) {
+		synchronized(mSubscriptionManager) {
+			boolean result = true;
+			
+			for(int i = from; i < to; ++i) {
+				final Object o = mDB.getByID(ids[i]);
+				// Deleted meanwhile. The check for Persistent is paranoia: db4o might re-use IDs.
+				if(!(o instanceof Persistent))
+					continue;
+				
+				final Persistent p = (Persistent)o;
+				// getByID() does not activate the object, contrary to a query.
+				mDB.activate(p, Persistent.DEFAULT_ACTIVATION_DEPTH);
+				p.initializeTransient(this, Persistent.DEFAULT_ACTIVATION_DEPTH);
+				
+				if(!testDatabaseIntegrity(p))
+					result = false;
+			}
+			
+			return result;
+		}
+		}
+		}
+	}
+	
 	/**
 	 * Does not do proper synchronization! Only use it in single-thread-mode during startup.
 	 * 
@@ -1174,6 +1402,8 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * 
 	 * Creates a clone of the source database by reading all objects of it into memory and then writing them out to the target database.
 	 * Does NOT copy the Configuration, the IntroductionPuzzles or the IdentityFetcher command queue.
+	 * The {@link TrustGraphIndex} of the clone is rebuilt after the Trusts were written as they are stored without the functions which
+	 * maintain it.
 	 * 
 	 * The difference to backupDatabase is that it does NOT use db4o's backup mechanism, instead it creates the whole database from scratch.
 	 * This is useful because the backup mechanism of db4o does nothing but copying the raw file:
@@ -1264,6 +1494,10 @@ public final class WebOfTrust extends WebOfTrustInterface
 			}
 			Persistent.checkedCommit(clone.getDatabase(), clone);
 			
+			// The Trusts were stored directly instead of by setTrustWithoutCommit() etc., so the
+			// index of the clone is still empty.
+			clone.rebuildTrustGraphIndex();
+			
 			// And because cloning is a complex operation we do a mandatory database integrity check
 
 			Logger.normal(this, "Checking database integrity of clone...");
@@ -1306,8 +1540,9 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * last execution, verifies that all stored {@link Score} objects are correct.<br><br>
 	 * 
 	 * Shall be called at startup: Score computation is fully incremental nowadays and thus wrong
-	 * results due to bugs will persist for a long time. This function fixes wrong Scores. */
-	private synchronized void maybeVerifyAndCorrectStoredScores() {
+	 * results due to bugs will persist for a long time. This function fixes wrong Scores.<br>
+	 * Called by the {@link StartupVerifier}. */
+	synchronized void maybeVerifyAndCorrectStoredScores() {
 		boolean doVerify = false;
 		
 		if(logDEBUG) {
@@ -1348,7 +1583,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		synchronized(mSubscriptionManager) {
 		synchronized(Persistent.transactionLock(mDB)) {
 			try {
-				boolean result = computeAllScoresWithoutCommit();
+				boolean result = computeAllScoresWithoutCommit_Indexed();
 				Persistent.checkedCommit(mDB, this);
 				return result;
 			} catch(RuntimeException e) {
@@ -1498,12 +1733,16 @@ public final class WebOfTrust extends WebOfTrustInterface
 					Logger.error(trust, "Deleting orphan trust, truster = " + trust.getTruster() + ", trustee = " + trust.getTrustee());
 					assert(false) : trust;
 					orphanTrustFound = true;
+					// The TrustGraphIndex was built from the IDs of the Trusts, not from the
+					// missing Identity objects, so it contains the Trust.
+					final TrustID trustID = TrustID.constructAndValidate(trust.getID());
+					mTrustGraphIndex.removeTrust(trustID.getTrusterID(), trustID.getTrusteeID());
 					trust.deleteWithoutCommit();
 					// No need to update subscriptions as the trust is broken anyway.
 				}
 				
 				if(orphanTrustFound) {
-					computeAllScoresWithoutCommit();
+					computeAllScoresWithoutCommit_Indexed();
 					Persistent.checkedCommit(mDB, this);
 				}
 			}
@@ -1542,7 +1781,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 				}
 				
 				if(orphanScoresFound) {
-					computeAllScoresWithoutCommit();
+					computeAllScoresWithoutCommit_Indexed();
 					Persistent.checkedCommit(mDB, this);
 				}
 			}
@@ -1588,45 +1827,6 @@ public final class WebOfTrust extends WebOfTrustInterface
 		}
 	}
 
-	/**
-	 * ATTENTION: This function is not synchronized, use it only in single threaded mode.
-	 * @return
-	 *     True if {@link Configuration#getLastDefragDate()} indicated that the caller may do
-	 *     database defragmentation now.
-	 *     Will also call {@link Configuration#updateLastDefragDate()} and store the modified
-	 *     configuration.
-	 */
-	@SuppressWarnings("deprecation")
-	private static boolean tryUpdateLastDefragDate(WebOfTrust wot, ExtObjectContainer database) {
-		final Query query = database.query();
-		query.constrain(Configuration.class);
-		@SuppressWarnings("unchecked")
-		ObjectSet<Configuration> result = (ObjectSet<Configuration>)query.execute();
-		
-		switch(result.size()) {
-			case 1: {
-				final Configuration config = (Configuration)result.next();
-				config.initializeTransient(wot, database);
-				// For the HashMaps to stay alive we need to activate to full depth.
-				config.checkedActivate(4);
-				
-				Date lastDefragDate = config.getLastDefragDate();
-				Date nextDefragDate
-					= new Date(lastDefragDate.getTime() + Configuration.DEFAULT_DEFRAG_INTERVAL);
-			
-				if(!nextDefragDate.after(CurrentTimeUTC.get())) {
-					config.updateLastDefragDate();
-					config.storeAndCommit();
-					return true;
-				} else
-					return false;
-			}
-			default:
-				Logger.error(wot, "tryUpdateLastDefragDate(): No Configuration found!");
-				return false;
-		}
-	}
-
 	/**
 	 * Loads an existing Config object from the database and adds any missing default values to it, creates and stores a new one if none exists.
 	 * @return The config object.
@@ -1731,15 +1931,15 @@ public final class WebOfTrust extends WebOfTrustInterface
 		if(truster == trustee)
 			return 100;
 		 
-		try {
-            // TODO: Performance: The comment "Security check, if rank computation breaks this will
-            // hit." below sounds like we don't actually need to execute this because the callers
-            // probably do it implicitly. Check if this is true and if yes, convert it to an assert.
-			if(getTrust(truster, trustee).getValue() <= 0) { // Security check, if rank computation breaks this will hit.
-				assert(rank == Integer.MAX_VALUE);
-				return 0;
-			}
-		} catch(NotTrustedException e) { }
+		// TODO: Performance: The comment "Security check, if rank computation breaks this will
+		// hit." below sounds like we don't actually need to execute this because the callers
+		// probably do it implicitly. Check if this is true and if yes, convert it to an assert.
+		// EDIT: It is cheap now that getTrustValue() uses the TrustGraphIndex.
+		final int treeOwnerTrust = getTrustValue(truster, trustee);
+		if(treeOwnerTrust != TrustGraphIndex.NO_VALUE && treeOwnerTrust <= 0) { // Security check, if rank computation breaks this will hit.
+			assert(rank == Integer.MAX_VALUE);
+			return 0;
+		}
 		
 		if(rank == -1 || rank == Integer.MAX_VALUE)
 			return 0;
@@ -1786,7 +1986,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		for(OwnIdentity treeOwner : getAllOwnIdentities()) {
 			// TODO: Performance: Move this outside the above loop once the issue which caused this
 			// workaround is fixed: https://bugs.freenetproject.org/view.php?id=6646
-			final ObjectSet<Identity> allIdentities = getAllIdentities();
+			final List<Identity> allIdentities = getAllIdentities();
 			
 			// Key = Identity.getID(); Value = Rank of the identity
 			// At the end of the loop body, this table will be filled with the ranks of all identities which are visible for treeOwner.
@@ -2093,88 +2293,601 @@ public final class WebOfTrust extends WebOfTrustInterface
 		
 		return returnValue;
 	}
-	
-	private synchronized void createSeedIdentities() {
-		synchronized(mSubscriptionManager) {
-		for(String seedURI : WebOfTrustInterface.SEED_IDENTITIES) {
-			synchronized(Persistent.transactionLock(mDB)) {
-			try { 
-				final Identity existingSeed = getIdentityByURI(seedURI);
-				final Identity oldExistingSeed = existingSeed.clone(); // For the SubscriptionManager
-				
-				if(existingSeed instanceof OwnIdentity) {
-					try {
-						setPublishIntroductionPuzzles(existingSeed.getID(), true, IntroductionServer.SEED_IDENTITY_PUZZLE_COUNT);
-					} catch(UnknownIdentityException e) {
-						throw new RuntimeException(e); // Should never happen since we are synchronized on the WOT
-					}
-				} else {
-					try {
-						existingSeed.setEdition(new FreenetURI(seedURI).getEdition());
-						mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(oldExistingSeed, existingSeed);
-						existingSeed.storeAndCommit();
-					} catch(InvalidParameterException e) {
-						/* We already have the latest edition stored */
-					}
-				}
-			}
-			catch (UnknownIdentityException uie) {
-				try {
-					final Identity newSeed = new Identity(this, seedURI, null, true);
-					// We have to explicitly set the edition number because the constructor only considers the given edition as a hint.
-					if(!IdentityFetcher.DEBUG__NETWORK_DUMP_MODE)
-						newSeed.setEdition(new FreenetURI(seedURI).getEdition());
-					else {
-						Logger.warning(this, "IdentityFetcher.DEBUG__NETWORK_DUMP_MODE == true: "
-							+ "Using seed edition 0!");
-					}
-					newSeed.storeWithoutCommit();
-					Logger.normal(this, "Created seed identity: " + newSeed);
-					mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(null, newSeed);
-					Persistent.checkedCommit(mDB, this);
-				} catch (Exception e) {
-					Persistent.checkedRollback(mDB, this, e);					
-				}
-			}
-			catch (Exception e) {
-				Persistent.checkedRollback(mDB, this, e);
-			}
-			}
-		}
-		}
-	}
 
 	/**
-	 * ATTENTION: This will NOT throw if termination did not succeed! Use {@link #isTerminated()}
-	 * to validate success of termination.
+	 * Same as the reference implementation {@link #computeAllScoresWithoutCommit()} except that
+	 * it computes the ranks, capacities and score values from the {@link TrustGraphIndex} instead
+	 * of querying the database for the Trusts and Scores of each {@link Identity} in each trust
+	 * tree. The database is only queried for the existing {@link Score}s once per Identity, and
+	 * written to for the Scores which changed.<br>
+	 * Thus, this is the function which should be used if a full Score computation is needed, the
+	 * reference implementation should only be used for verifying its results by assert().<br><br>
 	 * 
-	 * The reason behind this decision is that this is the API for fred which the node uses to
-	 * terminate the plugin, and we want to allow fred to unload the plugin successfully even if it
-	 * has bugs. (Notice that I'm not 100% sure whether fred actually doesn't want this to throw, a
-	 * bug for investigating has been filed at https://bugs.freenetproject.org/view.php?id=7004) */
-	@Override public void terminate() {
-		terminate(false);
-	}
-
-	/**
-	 * ATTENTION: For unit test purposes only!
+	 * The resulting database state, the return value, the {@link SubscriptionManager}
+	 * notifications and the {@link IdentityFetcher} commands are the same as the ones of the
+	 * reference implementation. The only difference is that the changes of "should fetch?" state
+	 * of an Identity are determined across all trust trees at once instead of for each trust tree
+	 * separately, which avoids storing superfluous IdentityFetcher commands.
 	 * 
-	 * Version of {@link #terminate()} which only halts all threads of WoT while still not
-	 * terminating the whole plugin and thus allowing unit tests to keep doing e.g. database
-	 * queries. This is intended to allow unit tests to call it right after startup so they do not
-	 * have to contain code to deal with concurrency.
+	 * Falls back to the reference implementation if the index was not built yet, see
+	 * {@link #mTrustGraphIndexBuilt}.
 	 * 
-	 * ATTENTION: Like {@link #terminate()} this does not throw upon errors.
+	 * Synchronization: Same as {@link #computeAllScoresWithoutCommit()}.
 	 * 
-	 * {@link #isTerminated()} will NOT return true when this was called, it will only return true
-	 * after {@link #terminate()} was called. */
-	void terminateSubsystemThreads() {
-		terminate(true);
-	}
-
-	/** @param threadsOnly See {@link #terminateSubsystemThreads()}. */
-	private void terminate(boolean threadsOnly) {
-		Logger.normal(this, "Web Of Trust plugin terminating ...");
+	 * @return True if all stored scores were correct. False if there were any errors in stored scores.
+	 */
+	protected boolean computeAllScoresWithoutCommit_Indexed() {
+		if(!mTrustGraphIndexBuilt)
+			return computeAllScoresWithoutCommit();
+		
+		if(logMINOR) Logger.minor(this, "Doing a full computation of all Scores using the index...");
+		
+		final long beginTime = CurrentTimeUTC.getInMillis();
+		
+		boolean returnValue = true;
+		
+		final TrustGraphIndex.Snapshot graph = mTrustGraphIndex.getSnapshot();
+		
+		final ArrayList<OwnIdentity> treeOwners
+			= new ArrayList<OwnIdentity>(getAllOwnIdentities());
+		// Index = index in treeOwners.
+		final String[] treeOwnerIDs = getTrustTreeOwnerIDs(treeOwners);
+		mTrustTreeOwnerIDs = treeOwnerIDs;
+		
+		// The trees only depend on the immutable snapshot, so they can be computed in parallel.
+		// Everything below which accesses the database or sends notifications is done serially by
+		// this thread, in the transaction of the caller.
+		final TrustTree[] trees = computeTrustTrees(graph, treeOwnerIDs);
+		
+		// Key = ID of the tree owner of the Score; value = Score. Re-used for each Identity.
+		final HashMap<String, Score> oldScores = new HashMap<String, Score>();
+		
+		for(Identity target : getAllIdentities()) {
+			final String targetID = target.getID();
+			final int targetVertex = graph.getVertex(targetID);
+			
+			oldScores.clear();
+			boolean oldShouldFetch = false;
+			for(Score score : getScores(target)) {
+				// Obtain the truster ID from the Score ID to avoid activating the truster.
+				final String scoreID = score.getID();
+				final String treeOwnerID = scoreID.substring(0, scoreID.indexOf('@'));
+				if(oldScores.put(treeOwnerID, score) != null)
+					throw new DuplicateScoreException(scoreID, 2);
+				
+				// Same as shouldFetchIdentity(), but without querying the Scores again.
+				if(target instanceof OwnIdentity)
+					oldShouldFetch |= treeOwnerID.equals(targetID);
+				else
+					oldShouldFetch |= score.getCapacity() > 0 || score.getValue() >= 0;
+			}
+			
+			boolean newShouldFetch = false;
+			boolean scoreChanged = false;
+			boolean capacityChangedFromZero = false;
+			
+			for(int i = 0; i < treeOwners.size(); ++i) {
+				final OwnIdentity treeOwner = treeOwners.get(i);
+				final TrustTree tree = trees[i];
+				final boolean isTreeOwner = treeOwner.getID().equals(targetID);
+				
+				final int rank;
+				final int capacity;
+				final int value;
+				
+				if(tree == null) {
+					rank = -1;
+					capacity = 0;
+					value = 0;
+				} else if(isTreeOwner) {
+					// The tree owner might not have any Trusts and thus not be in the graph.
+					rank = 0;
+					capacity = 100;
+					value = Integer.MAX_VALUE;
+				} else if(targetVertex == TrustGraphIndex.NO_VERTEX) {
+					rank = -1;
+					capacity = 0;
+					value = 0;
+				} else {
+					rank = tree.mRanks[targetVertex];
+					capacity = tree.mCapacities[targetVertex];
+					value = tree.mValues[targetVertex];
+				}
+				
+				final Score currentStoredScore = oldScores.get(treeOwner.getID());
+				
+				if(rank == -1) {
+					if(currentStoredScore != null) {
+						returnValue = false;
+						scoreChanged = true;
+						if(!mFullScoreComputationNeeded)
+							Logger.error(this, "Correcting wrong score: The identity has no rank and should have no score but score was " + currentStoredScore, new RuntimeException());
+						
+						currentStoredScore.deleteWithoutCommit();
+						mSubscriptionManager.storeScoreChangedNotificationWithoutCommit(currentStoredScore, null);
+					}
+					continue;
+				}
+				
+				if(target instanceof OwnIdentity)
+					newShouldFetch |= isTreeOwner;
+				else
+					newShouldFetch |= capacity > 0 || value >= 0;
+				
+				if(currentStoredScore == null) {
+					returnValue = false;
+					scoreChanged = true;
+					capacityChangedFromZero |= capacity > 0;
+					
+					final Score newScore = new Score(this, treeOwner, target, value, rank, capacity);
+					if(!mFullScoreComputationNeeded)
+						Logger.error(this, "Correcting wrong score: No score was stored for the identity but it should be " + newScore, new RuntimeException());
+					
+					newScore.storeWithoutCommit();
+					mSubscriptionManager.storeScoreChangedNotificationWithoutCommit(null, newScore);
+				} else if(currentStoredScore.getValue() != value
+						|| currentStoredScore.getRank() != rank
+						|| currentStoredScore.getCapacity() != capacity) {
+					
+					returnValue = false;
+					scoreChanged = true;
+					capacityChangedFromZero
+						|= currentStoredScore.getCapacity() == 0 && capacity > 0;
+					
+					if(!mFullScoreComputationNeeded) {
+						Logger.error(this, "Correcting wrong score: Should have been "
+							+ new Score(this, treeOwner, target, value, rank, capacity)
+							+ " but was " + currentStoredScore, new RuntimeException());
+					}
+					
+					final Score oldScore = currentStoredScore.clone();
+					
+					currentStoredScore.setRank(rank);
+					currentStoredScore.setCapacity(capacity);
+					currentStoredScore.setValue(value);
+					
+					currentStoredScore.storeWithoutCommit();
+					mSubscriptionManager.storeScoreChangedNotificationWithoutCommit(oldScore, currentStoredScore);
+				}
+			}
+			
+			if(!scoreChanged) {
+				// Same as in the reference implementation: Validate the state of the
+				// IdentityFetcher even though the Scores were correct.
+				final boolean realOldShouldFetch = mFetcher.getShouldFetchState(targetID);
+				
+				if(realOldShouldFetch != newShouldFetch) {
+					returnValue = false;
+					oldShouldFetch = realOldShouldFetch;
+					scoreChanged = true; // To trigger the below handling of the fetch state
+					
+					Logger.error(this, "Correcting wrong IdentityFetcher shouldFetch state: "
+						+ "was: " + realOldShouldFetch + "; should be: " + newShouldFetch + "; "
+						+ "identity: " + target, new Exception());
+				}
+			}
+			
+			if(!scoreChanged)
+				continue;
+			
+			// See the reference implementation for an explanation.
+			if((!oldShouldFetch || capacityChangedFromZero) && newShouldFetch) {
+				returnValue = false;
+				
+				if(logMINOR) {
+					if(!oldShouldFetch)
+						Logger.minor(this, "Fetch status changed from false to true, refetching " + target);
+					else
+						Logger.minor(this, "Capacity changed from 0 to > 0, refetching" + target);
+				}
+				
+				final Identity oldTarget = target.clone();
+				
+				target.markForRefetch();
+				target.storeWithoutCommit();
+				
+				if(!oldTarget.equals(target))
+					mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(oldTarget, target);
+				
+				mFetcher.storeStartFetchCommandWithoutCommit(target);
+			} else if(oldShouldFetch && !newShouldFetch) {
+				returnValue = false;
+				
+				if(logMINOR) Logger.minor(this, "Fetch status changed from true to false, aborting fetch of " + target);
+				
+				mFetcher.storeAbortFetchCommandWithoutCommit(target);
+			}
+		}
+		
+		mFullScoreComputationNeeded = false;
+		
+		++mFullScoreRecomputationCount;
+		mFullScoreRecomputationMilliseconds += CurrentTimeUTC.getInMillis() - beginTime;
+		
+		if(logMINOR) {
+			Logger.minor(this, "Full score computation finished. Amount: " + mFullScoreRecomputationCount + "; Avg Time:" + getAverageFullScoreRecomputationTime() + "s");
+		}
+		
+		return returnValue;
+	}
+	
+	/**
+	 * Calls {@link #computeTrustTree(TrustGraphIndex.Snapshot, String)} for each non-null
+	 * element of the given array.<br>
+	 * If there is more than one tree to compute and {@link #SCORE_COMPUTATION_THREADS} is greater
+	 * than 1, the trees are computed in parallel on the {@link #mScoreComputationPool}. The
+	 * calling thread waits for all of them to complete.<br>
+	 * Does not access the database and thus the caller is free to hold any locks.
+	 * 
+	 * @return An array of the same size as the given one. The element at index i is the tree of
+	 *     treeOwnerIDs[i], or null if treeOwnerIDs[i] was null. */
+	TrustTree[] computeTrustTrees(final TrustGraphIndex.Snapshot graph,
+			final String[] treeOwnerIDs) {
+		
+		final TrustTree[] trees = new TrustTree[treeOwnerIDs.length];
+		
+		int treeCount = 0;
+		for(String treeOwnerID : treeOwnerIDs) {
+			if(treeOwnerID != null)
+				++treeCount;
+		}
+		
+		if(mScoreComputationPool == null || treeCount < 2) {
+			for(int i = 0; i < treeOwnerIDs.length; ++i) {
+				if(treeOwnerIDs[i] != null)
+					trees[i] = computeTrustTree(graph, treeOwnerIDs[i]);
+			}
+			return trees;
+		}
+		
+		@SuppressWarnings("unchecked")
+		final ForkJoinTask<TrustTree>[] tasks = new ForkJoinTask[treeOwnerIDs.length];
+		for(int i = 0; i < treeOwnerIDs.length; ++i) {
+			final String treeOwnerID = treeOwnerIDs[i];
+			if(treeOwnerID == null)
+				continue;
+			
+			tasks[i] = mScoreComputationPool.submit(new Callable<TrustTree>() {
+				@Override public TrustTree call() {
+					return computeTrustTree(graph, treeOwnerID);
+				}
+			});
+		}
+		
+		// join() re-throws any RuntimeException or Error of the task, so the caller will roll
+		// back its transaction just as if the computation had happened in its own thread.
+		for(int i = 0; i < tasks.length; ++i) {
+			if(tasks[i] != null)
+				trees[i] = tasks[i].join();
+		}
+		
+		return trees;
+	}
+	
+	/**
+	 * @return For each of the given {@link OwnIdentity}s, at the same index, its
+	 *     {@link Identity#getID()}, or null if the OwnIdentity has no self-Score and thus no trust
+	 *     tree.
+	 *     The array is not modified afterwards so it can be shared with other threads. */
+	private String[] getTrustTreeOwnerIDs(Collection<OwnIdentity> treeOwners) {
+		final String[] treeOwnerIDs = new String[treeOwners.size()];
+		int i = 0;
+		for(OwnIdentity treeOwner : treeOwners) {
+			try {
+				// The reference implementation only assigns a rank to the treeOwner if it has a
+				// self-Score, so we must do the same.
+				getScore(treeOwner, treeOwner);
+				treeOwnerIDs[i] = treeOwner.getID();
+			} catch(NotInTrustTreeException e) {
+				// This only happens in unit tests.
+				treeOwnerIDs[i] = null;
+			}
+			++i;
+		}
+		return treeOwnerIDs;
+	}
+	
+	/**
+	 * Returns an estimate of the best {@link Score#getCapacity()} which the given {@link Identity}
+	 * has in the trust trees of all {@link OwnIdentity}s, or 0 if it has none or if no estimate is
+	 * available yet.<br>
+	 * Used by the {@link IdentityFileDiskQueue} to import the trust lists of the most trusted
+	 * Identitys first.<br><br>
+	 * 
+	 * Does NOT acquire any locks and does NOT compute anything, and thus is safe to be called by
+	 * code which must never wait, such as the queue while holding its lock: It only reads the
+	 * last estimate which was published by the {@link #mBestCapacityEstimateJob}.<br>
+	 * The estimate may thus be outdated by up to
+	 * {@link #BEST_CAPACITY_ESTIMATE_MIN_RECOMPUTE_INTERVAL} plus the time of its computation.
+	 * As it is computed from the {@link TrustGraphIndex}, which includes uncommitted Trusts, it may
+	 * also reflect Trusts which were rolled back later on. */
+	int getBestCapacityEstimate(String identityID) {
+		final BestCapacityEstimate estimate = mBestCapacityEstimate;
+		return estimate != null ? estimate.getBestCapacity(identityID) : 0;
+	}
+	
+	/**
+	 * Recomputes the {@link #mBestCapacityEstimate} if the Trusts or tree owners changed since it
+	 * was computed.<br>
+	 * Executed by the {@link #mBestCapacityEstimateJob}. Does not acquire the database locks: It
+	 * only synchronizes upon the {@link TrustGraphIndex} to take a snapshot. */
+	private void updateBestCapacityEstimate() {
+		// Is only non-null once mTrustGraphIndexBuilt is true.
+		final String[] treeOwnerIDs = mTrustTreeOwnerIDs;
+		if(treeOwnerIDs == null)
+			return;
+		
+		final BestCapacityEstimate estimate = mBestCapacityEstimate;
+		if(estimate != null && !estimate.isOutdated(mTrustGraphIndex, treeOwnerIDs))
+			return;
+		
+		final StopWatch time = new StopWatch();
+		// Read the count before taking the snapshot: If the index is modified in between, the
+		// estimate is considered as outdated, which merely causes a needless recomputation.
+		final long modificationCount = mTrustGraphIndex.getModificationCount();
+		mBestCapacityEstimate = new BestCapacityEstimate(mTrustGraphIndex.getSnapshot(),
+			modificationCount, treeOwnerIDs);
+		time.stop();
+		
+		if(logMINOR) Logger.minor(this, "Recomputed BestCapacityEstimate; time: " + time);
+	}
+	
+	/**
+	 * Immutable cache of {@link #getBestCapacityEstimate(String)}: The best capacity of each vertex
+	 * of a {@link TrustGraphIndex.Snapshot} across the {@link TrustTree}s of all tree owners. */
+	private static final class BestCapacityEstimate {
+		final TrustGraphIndex.Snapshot mGraph;
+		
+		/** {@link TrustGraphIndex#getModificationCount()} as of the creation of {@link #mGraph}. */
+		final long mGraphModificationCount;
+		
+		final String[] mTreeOwnerIDs;
+		
+		/** Index = vertex of {@link #mGraph}, value = best {@link Score#getCapacity()}. */
+		final int[] mBestCapacities;
+		
+		BestCapacityEstimate(TrustGraphIndex.Snapshot graph, long graphModificationCount,
+				String[] treeOwnerIDs) {
+			mGraph = graph;
+			mGraphModificationCount = graphModificationCount;
+			mTreeOwnerIDs = treeOwnerIDs;
+			mBestCapacities = new int[graph.getVertexCount()];
+			
+			for(String treeOwnerID : treeOwnerIDs) {
+				if(treeOwnerID == null)
+					continue;
+				
+				final TrustTree tree = computeTrustTree(graph, treeOwnerID);
+				for(int vertex = 0; vertex < mBestCapacities.length; ++vertex) {
+					if(tree.mRanks[vertex] != -1) {
+						mBestCapacities[vertex]
+							= Math.max(mBestCapacities[vertex], tree.mCapacities[vertex]);
+					}
+				}
+			}
+		}
+		
+		/**
+		 * @return True if the Trusts or tree owners changed since this estimate was computed.
+		 *     Does not take a {@link TrustGraphIndex#getSnapshot()}, which would copy the graph
+		 *     after each change, but compares the {@link TrustGraphIndex#getModificationCount()}.
+		 *     The tree owners are compared by object identity: {@link WebOfTrust#mTrustTreeOwnerIDs}
+		 *     is replaced at each full Score computation even if it did not change, which merely
+		 *     causes a needless recomputation. */
+		boolean isOutdated(TrustGraphIndex index, String[] treeOwnerIDs) {
+			return mTreeOwnerIDs != treeOwnerIDs
+				|| mGraphModificationCount != index.getModificationCount();
+		}
+		
+		int getBestCapacity(String identityID) {
+			final int vertex = mGraph.getVertex(identityID);
+			return vertex != TrustGraphIndex.NO_VERTEX ? mBestCapacities[vertex] : 0;
+		}
+	}
+	
+	/**
+	 * The ranks, capacities and score values of all {@link Identity}s in the trust tree of an
+	 * {@link OwnIdentity}, as computed by
+	 * {@link WebOfTrust#computeTrustTree(TrustGraphIndex.Snapshot, String)}.<br>
+	 * The arrays are indexed by the vertices of the {@link TrustGraphIndex.Snapshot}. Their values
+	 * are only valid for vertices with a rank other than -1. */
+	static final class TrustTree {
+		/** -1 = no rank, Integer.MAX_VALUE = infinite rank, see {@link Score#getRank()}. */
+		final int[] mRanks;
+		
+		/** @see Score#getCapacity() */
+		final int[] mCapacities;
+		
+		/** @see Score#getValue() */
+		final int[] mValues;
+		
+		TrustTree(int[] ranks, int[] capacities, int[] values) {
+			mRanks = ranks;
+			mCapacities = capacities;
+			mValues = values;
+		}
+	}
+	
+	/**
+	 * Computes the trust tree of the given {@link OwnIdentity} with the same algorithm as
+	 * {@link #computeAllScoresWithoutCommit()}, but from the given snapshot of the
+	 * {@link TrustGraphIndex} instead of the database.<br>
+	 * Does not access the database or any member variables and thus needs no locking.
+	 * 
+	 * The caller must check whether the tree owner has a self-Score as the reference
+	 * implementation does: Without it, no Identity has a rank in its tree. */
+	static TrustTree computeTrustTree(TrustGraphIndex.Snapshot graph, String treeOwnerID) {
+		final int vertexCount = graph.getVertexCount();
+		final int treeOwner = graph.getVertex(treeOwnerID);
+		final int[] ranks = new int[vertexCount];
+		final int[] capacities = new int[vertexCount];
+		final int[] values = new int[vertexCount];
+		fill(ranks, -1);
+		
+		if(treeOwner == TrustGraphIndex.NO_VERTEX)
+			return new TrustTree(ranks, capacities, values);
+		
+		// Index = vertex, value = Trust value which the treeOwner has assigned to it, or
+		// TrustGraphIndex.NO_VALUE. Those override the view of remote identities.
+		final int[] treeOwnerTrusts = new int[vertexCount];
+		fill(treeOwnerTrusts, TrustGraphIndex.NO_VALUE);
+		for(int i = graph.getGivenTrustsStart(treeOwner); i < graph.getGivenTrustsEnd(treeOwner); ++i)
+			treeOwnerTrusts[graph.getTrustee(i)] = graph.getGivenTrustValue(i);
+		
+		// Compute the rank values by breadth first search, see the reference implementation for
+		// an explanation.
+		// Each vertex is enqueued at most once: Only when its rank changes from none or infinite to
+		// a finite value, which cannot be changed afterwards.
+		final int[] unprocessedTrusters = new int[vertexCount];
+		int head = 0;
+		int tail = 0;
+		ranks[treeOwner] = 0;
+		unprocessedTrusters[tail++] = treeOwner;
+		
+		while(head < tail) {
+			final int truster = unprocessedTrusters[head++];
+			final int trusteeRank = ranks[truster] + 1;
+			
+			for(int i = graph.getGivenTrustsStart(truster); i < graph.getGivenTrustsEnd(truster); ++i) {
+				final int trustee = graph.getTrustee(i);
+				final byte value = graph.getGivenTrustValue(i);
+				final int oldTrusteeRank = ranks[trustee];
+				
+				if(oldTrusteeRank == -1) {
+					if(value > 0) {
+						ranks[trustee] = trusteeRank;
+						unprocessedTrusters[tail++] = trustee;
+					} else
+						ranks[trustee] = Integer.MAX_VALUE;
+				} else if(oldTrusteeRank == Integer.MAX_VALUE
+						&& treeOwnerTrusts[trustee] == TrustGraphIndex.NO_VALUE && value > 0) {
+					
+					ranks[trustee] = trusteeRank;
+					unprocessedTrusters[tail++] = trustee;
+				}
+			}
+		}
+		
+		// Compute the capacities. Same as computeCapacity().
+		for(int vertex = 0; vertex < vertexCount; ++vertex) {
+			final int rank = ranks[vertex];
+			
+			if(vertex == treeOwner)
+				capacities[vertex] = 100;
+			else if(treeOwnerTrusts[vertex] != TrustGraphIndex.NO_VALUE
+					&& treeOwnerTrusts[vertex] <= 0) {
+				assert(rank == Integer.MAX_VALUE);
+				capacities[vertex] = 0;
+			} else if(rank == -1 || rank == Integer.MAX_VALUE)
+				capacities[vertex] = 0;
+			else
+				capacities[vertex] = rank < WebOfTrust.capacities.length ? WebOfTrust.capacities[rank] : 1;
+		}
+		
+		// Compute the score values
+		for(int vertex = 0; vertex < vertexCount; ++vertex) {
+			if(ranks[vertex] == -1)
+				continue;
+			
+			if(vertex == treeOwner)
+				values[vertex] = Integer.MAX_VALUE;
+			else if(treeOwnerTrusts[vertex] != TrustGraphIndex.NO_VALUE)
+				values[vertex] = treeOwnerTrusts[vertex];
+			else {
+				int value = 0;
+				for(int i = graph.getReceivedTrustsStart(vertex);
+						i < graph.getReceivedTrustsEnd(vertex); ++i) {
+					
+					value += (graph.getReceivedTrustValue(i) * capacities[graph.getTruster(i)]) / 100;
+				}
+				values[vertex] = value;
+			}
+		}
+		
+		return new TrustTree(ranks, capacities, values);
+	}
+	
+	private synchronized void createSeedIdentities() {
+		synchronized(mSubscriptionManager) {
+		for(String seedURI : WebOfTrustInterface.SEED_IDENTITIES) {
+			synchronized(Persistent.transactionLock(mDB)) {
+			try { 
+				final Identity existingSeed = getIdentityByURI(seedURI);
+				final Identity oldExistingSeed = existingSeed.clone(); // For the SubscriptionManager
+				
+				if(existingSeed instanceof OwnIdentity) {
+					try {
+						setPublishIntroductionPuzzles(existingSeed.getID(), true, IntroductionServer.SEED_IDENTITY_PUZZLE_COUNT);
+					} catch(UnknownIdentityException e) {
+						throw new RuntimeException(e); // Should never happen since we are synchronized on the WOT
+					}
+				} else {
+					try {
+						existingSeed.setEdition(new FreenetURI(seedURI).getEdition());
+						mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(oldExistingSeed, existingSeed);
+						existingSeed.storeAndCommit();
+					} catch(InvalidParameterException e) {
+						/* We already have the latest edition stored */
+					}
+				}
+			}
+			catch (UnknownIdentityException uie) {
+				try {
+					final Identity newSeed = new Identity(this, seedURI, null, true);
+					// We have to explicitly set the edition number because the constructor only considers the given edition as a hint.
+					if(!IdentityFetcher.DEBUG__NETWORK_DUMP_MODE)
+						newSeed.setEdition(new FreenetURI(seedURI).getEdition());
+					else {
+						Logger.warning(this, "IdentityFetcher.DEBUG__NETWORK_DUMP_MODE == true: "
+							+ "Using seed edition 0!");
+					}
+					newSeed.storeWithoutCommit();
+					Logger.normal(this, "Created seed identity: " + newSeed);
+					mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(null, newSeed);
+					Persistent.checkedCommit(mDB, this);
+				} catch (Exception e) {
+					Persistent.checkedRollback(mDB, this, e);					
+				}
+			}
+			catch (Exception e) {
+				Persistent.checkedRollback(mDB, this, e);
+			}
+			}
+		}
+		}
+	}
+
+	/**
+	 * ATTENTION: This will NOT throw if termination did not succeed! Use {@link #isTerminated()}
+	 * to validate success of termination.
+	 * 
+	 * The reason behind this decision is that this is the API for fred which the node uses to
+	 * terminate the plugin, and we want to allow fred to unload the plugin successfully even if it
+	 * has bugs. (Notice that I'm not 100% sure whether fred actually doesn't want this to throw, a
+	 * bug for investigating has been filed at https://bugs.freenetproject.org/view.php?id=7004) */
+	@Override public void terminate() {
+		terminate(false);
+	}
+
+	/**
+	 * ATTENTION: For unit test purposes only!
+	 * 
+	 * Version of {@link #terminate()} which only halts all threads of WoT while still not
+	 * terminating the whole plugin and thus allowing unit tests to keep doing e.g. database
+	 * queries. This is intended to allow unit tests to call it right after startup so they do not
+	 * have to contain code to deal with concurrency.
+	 * 
+	 * ATTENTION: Like {@link #terminate()} this does not throw upon errors.
+	 * 
+	 * {@link #isTerminated()} will NOT return true when this was called, it will only return true
+	 * after {@link #terminate()} was called. */
+	void terminateSubsystemThreads() {
+		terminate(true);
+	}
+
+	/** @param threadsOnly See {@link #terminateSubsystemThreads()}. */
+	private void terminate(boolean threadsOnly) {
+		Logger.normal(this, "Web Of Trust plugin terminating ...");
 		
 		assert(!mIsTerminated);
 
@@ -2279,6 +2992,55 @@ public final class WebOfTrust extends WebOfTrustInterface
 			if(mSubscriptionManager != null)
 				mSubscriptionManager.stop();
 		}});
+		
+		shutdownThreads.add(new ShutdownThread() { @Override public void realRun() {
+			if(mDatabaseCompactor != null) {
+				mDatabaseCompactor.terminate();
+				try {
+					mDatabaseCompactor.waitForTermination(Long.MAX_VALUE);
+				} catch (InterruptedException e) {
+					Logger.error(this, "ShutdownThread should not be interrupted!", e);
+					success.set(false);
+				}
+			}
+		}});
+
+		shutdownThreads.add(new ShutdownThread() { @Override public void realRun() {
+			// The deferred commits which happen after this are committed by finish() below.
+			if(mGroupCommitter != null) {
+				mGroupCommitter.terminate();
+				try {
+					mGroupCommitter.waitForTermination(Long.MAX_VALUE);
+				} catch (InterruptedException e) {
+					Logger.error(this, "ShutdownThread should not be interrupted!", e);
+					success.set(false);
+				}
+			}
+		}});
+
+		shutdownThreads.add(new ShutdownThread() { @Override public void realRun() {
+			if(mBestCapacityEstimateJob != null) {
+				mBestCapacityEstimateJob.terminate();
+				try {
+					mBestCapacityEstimateJob.waitForTermination(Long.MAX_VALUE);
+				} catch (InterruptedException e) {
+					Logger.error(this, "ShutdownThread should not be interrupted!", e);
+					success.set(false);
+				}
+			}
+		}});
+
+		shutdownThreads.add(new ShutdownThread() { @Override public void realRun() {
+			if(mStartupVerifier != null) {
+				mStartupVerifier.terminate();
+				try {
+					mStartupVerifier.waitForTermination(Long.MAX_VALUE);
+				} catch (InterruptedException e) {
+					Logger.error(this, "ShutdownThread should not be interrupted!", e);
+					success.set(false);
+				}
+			}
+		}});
 
         latch.set(new CountDownLatch(shutdownThreads.size()));
 
@@ -2329,11 +3091,28 @@ public final class WebOfTrust extends WebOfTrustInterface
 					// - All transactions should be committed after obtaining the lock() on the
 					// database.
 					synchronized(Persistent.transactionLock(mDB)) {
+						// Must be done at this quiet point: Nothing can modify the database
+						// anymore, and the database is still open for copying the Configuration.
+						// The GroupCommitter must be first so the compactor replays its commit.
+						if(mGroupCommitter != null)
+							mGroupCommitter.finish();
+						if(mDatabaseCompactor != null)
+							mDatabaseCompactor.finish();
+						
+						Persistent.unregisterTransactionListener(mDB, mTrustGraphIndex);
+						Persistent.unregisterTransactionListener(mDB, mReadSnapshotPublisher);
+						if(mBestCapacityEstimateJob != null) {
+							Persistent.unregisterTransactionListener(mDB,
+								mBestCapacityEstimateTrigger);
+						}
 						System.gc();
 						mDB.rollback();
 						System.gc(); 
 						mDB.close();
 					}
+					
+					if(mDatabaseCompactor != null)
+						mDatabaseCompactor.swapDatabaseFiles();
 				}
 			}
 			catch(Exception e) {
@@ -2341,6 +3120,9 @@ public final class WebOfTrust extends WebOfTrustInterface
 				success.set(false);
 			}
 			
+			if(mScoreComputationPool != null)
+				mScoreComputationPool.shutdown();
+			
 			mIsTerminated = success.get();
 			
 			Logger.normal(this, "Web Of Trust plugin terminated.");
@@ -2397,16 +3179,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * @throws UnknownIdentityException if there is no identity with this id in the database
 	 */
 	public synchronized Identity getIdentityByID(String id) throws UnknownIdentityException {
-		final Query query = mDB.query();
-		query.constrain(Identity.class);
-		query.descend("mID").constrain(id);
-		final ObjectSet<Identity> result = new Persistent.InitializingObjectSet<Identity>(this, query);
-		
-		switch(result.size()) {
-			case 1: return result.next();
-			case 0: throw new UnknownIdentityException(id);
-			default: throw new DuplicateIdentityException(id, result.size());
-		}  
+		return mStorage.getIdentityByID(id);
 	}
 	
 	/**
@@ -2417,16 +3190,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * @throws UnknownIdentityException if there is now OwnIdentity with that id
 	 */
 	public synchronized OwnIdentity getOwnIdentityByID(String id) throws UnknownIdentityException {
-		final Query query = mDB.query();
-		query.constrain(OwnIdentity.class);
-		query.descend("mID").constrain(id);
-		final ObjectSet<OwnIdentity> result = new Persistent.InitializingObjectSet<OwnIdentity>(this, query);
-		
-		switch(result.size()) {
-			case 1: return result.next();
-			case 0: throw new UnknownIdentityException(id);
-			default: throw new DuplicateIdentityException(id, result.size());
-		}  
+		return mStorage.getOwnIdentityByID(id);
 	}
 
 	/**
@@ -2481,13 +3245,11 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * Returns all identities that are in the database
 	 * You have to synchronize on this WoT when calling the function and processing the returned list!
 	 * 
-	 * @return An {@link ObjectSet} containing all identities present in the database 
+	 * @return A {@link List} containing all identities present in the database 
 	 */
 	@Override
-	public ObjectSet<Identity> getAllIdentities() {
-		final Query query = mDB.query();
-		query.constrain(Identity.class);
-		return new Persistent.InitializingObjectSet<Identity>(this, query);
+	public List<Identity> getAllIdentities() {
+		return mStorage.getAllIdentities();
 	}
 	
 	public static enum SortOrder {
@@ -2628,12 +3390,10 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * Returns all own identities that are in the database
 	 * You have to synchronize on this WoT when calling the function and processing the returned list!
 	 * 
-	 * @return An {@link ObjectSet} containing all identities present in the database.
+	 * @return A {@link List} containing all identities present in the database.
 	 */
-	public ObjectSet<OwnIdentity> getAllOwnIdentities() {
-		final Query q = mDB.query();
-		q.constrain(OwnIdentity.class);
-		return new Persistent.InitializingObjectSet<OwnIdentity>(this, q);
+	public List<OwnIdentity> getAllOwnIdentities() {
+		return mStorage.getAllOwnIdentities();
 	}
 
 	
@@ -2683,12 +3443,14 @@ public final class WebOfTrust extends WebOfTrustInterface
 
 			if(logDEBUG) Logger.debug(this, "Deleting received trusts...");
 			for(Trust trust : getReceivedTrusts(identity)) {
+				mTrustGraphIndex.removeTrust(trust.getTruster().getID(), identity.getID());
 				trust.deleteWithoutCommit();
 				mSubscriptionManager.storeTrustChangedNotificationWithoutCommit(trust, null);
 			}
 
 			if(logDEBUG) Logger.debug(this, "Deleting given trusts...");
 			for(Trust givenTrust : getGivenTrusts(identity)) {
+				mTrustGraphIndex.removeTrust(identity.getID(), givenTrust.getTrustee().getID());
 				givenTrust.deleteWithoutCommit();
 				mSubscriptionManager.storeTrustChangedNotificationWithoutCommit(givenTrust, null);
 				// We call computeAllScores anyway so we do not use removeTrustWithoutCommit()
@@ -2735,62 +3497,32 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * @throws NotInTrustTreeException if this identity is not in the required trust tree 
 	 */
 	public synchronized Score getScore(final OwnIdentity truster, final Identity trustee) throws NotInTrustTreeException {
-		final Query query = mDB.query();
-		query.constrain(Score.class);
-		query.descend("mID").constrain(new ScoreID(truster, trustee).toString());
-		final ObjectSet<Score> result = new Persistent.InitializingObjectSet<Score>(this, query);
-		
-		switch(result.size()) {
-			case 1: 
-				final Score score = result.next();
-				assert(score.getTruster() == truster);
-				assert(score.getTrustee() == trustee);
-				return score;
-			case 0: throw new NotInTrustTreeException(truster, trustee);
-			default: throw new DuplicateScoreException(truster, trustee, result.size());
-		}
+		return mStorage.getScore(truster, trustee);
 	}
 
 	/** @see #getScore(OwnIdentity, Identity) */
 	public synchronized Score getScore(final String id) throws NotInTrustTreeException {
-		// TODO: Code quality: assert(id is valid)
-		
-		final Query query = mDB.query();
-		query.constrain(Score.class);
-		query.descend("mID").constrain(id);
-		final ObjectSet<Score> result = new Persistent.InitializingObjectSet<Score>(this, query);
-		
-		switch(result.size()) {
-			case 1: return result.next();
-			case 0: throw new NotInTrustTreeException(id);
-			default: throw new DuplicateScoreException(id, result.size());
-		}
+		return mStorage.getScore(id);
 	}
 
 	/**
 	 * Gets a list of all this Identity's Scores.
 	 * You have to synchronize on this WoT around the call to this function and the processing of the returned list! 
 	 * 
-	 * @return An {@link ObjectSet} containing all {@link Score} this Identity has.
+	 * @return A {@link List} containing all {@link Score} this Identity has.
 	 */
-	public ObjectSet<Score> getScores(final Identity identity) {
-		final Query query = mDB.query();
-		query.constrain(Score.class);
-		query.descend("mTrustee").constrain(identity).identity();
-		return new Persistent.InitializingObjectSet<Score>(this, query);
+	public List<Score> getScores(final Identity identity) {
+		return mStorage.getScores(identity);
 	}
 	
 	/**
 	 * Get a list of all scores which the passed own identity has assigned to other identities.
 	 * 
 	 * You have to synchronize on this WoT around the call to this function and the processing of the returned list! 
-	 * @return An {@link ObjectSet} containing all {@link Score} this Identity has given.
+	 * @return A {@link List} containing all {@link Score} this Identity has given.
 	 */
-	public ObjectSet<Score> getGivenScores(final OwnIdentity truster) {
-		final Query query = mDB.query();
-		query.constrain(Score.class);
-		query.descend("mTruster").constrain(truster).identity();
-		return new Persistent.InitializingObjectSet<Score>(this, query);
+	public List<Score> getGivenScores(final OwnIdentity truster) {
+		return mStorage.getGivenScores(truster);
 	}
 	
 	/**
@@ -2801,7 +3533,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 */
 	public synchronized int getBestScore(final Identity identity) throws NotInTrustTreeException {
 		int bestScore = Integer.MIN_VALUE;
-		final ObjectSet<Score> scores = getScores(identity);
+		final List<Score> scores = getScores(identity);
 		
 		if(scores.size() == 0)
 			throw new NotInTrustTreeException(identity);
@@ -2819,7 +3551,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 */
 	public synchronized int getBestCapacity(final Identity identity) throws NotInTrustTreeException {
 		int bestCapacity = 0;
-		final ObjectSet<Score> scores = getScores(identity);
+		final List<Score> scores = getScores(identity);
 		
 		if(scores.size() == 0)
 			throw new NotInTrustTreeException(identity);
@@ -2836,10 +3568,8 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * You have to synchronize on this WoT when calling the function and processing the returned list!
 	 */
 	@Override
-	public ObjectSet<Score> getAllScores() {
-		final Query query = mDB.query();
-		query.constrain(Score.class);
-		return new Persistent.InitializingObjectSet<Score>(this, query);
+	public List<Score> getAllScores() {
+		return mStorage.getAllScores();
 	}
 	
 	/**
@@ -2870,7 +3600,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		
 		int bestScore = Integer.MIN_VALUE;
 		int bestCapacity = 0;
-		final ObjectSet<Score> scores = getScores(identity);
+		final List<Score> scores = getScores(identity);
 			
 		if(scores.size() == 0)
 			return false;
@@ -2978,6 +3708,23 @@ public final class WebOfTrust extends WebOfTrustInterface
 	public Trust getTrust(final Identity truster, final Identity trustee) throws NotTrustedException, DuplicateTrustException {
 		return getTrust(new TrustID(truster, trustee).toString());
 	}
+	
+	/**
+	 * Same as {@link #getTrust(Identity, Identity)}.{@link Trust#getValue()} except that it
+	 * returns {@link TrustGraphIndex#NO_VALUE} if there is no Trust, and that it uses the
+	 * {@link TrustGraphIndex} instead of a database query if it has been built already.
+	 * 
+	 * Synchronization: You have to synchronize on this WebOfTrust when using this function. */
+	int getTrustValue(final Identity truster, final Identity trustee) {
+		if(mTrustGraphIndexBuilt)
+			return mTrustGraphIndex.getTrustValue(truster.getID(), trustee.getID());
+		
+		try {
+			return getTrust(truster, trustee).getValue();
+		} catch(NotTrustedException e) {
+			return TrustGraphIndex.NO_VALUE;
+		}
+	}
 
     /**
      * @see #getTrust(Identity, Identity)
@@ -2996,32 +3743,17 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * @see #getTrust(Identity, Identity)
 	 */
 	public synchronized Trust getTrust(final String trustID) throws NotTrustedException, DuplicateTrustException {
-		final Query query = mDB.query();
-		query.constrain(Trust.class);
-		query.descend("mID").constrain(trustID);
-		final ObjectSet<Trust> result = new Persistent.InitializingObjectSet<Trust>(this, query);
-		
-		switch(result.size()) {
-			case 1: 
-				final Trust trust = result.next();
-				assert(trustID.equals(new TrustID(trust.getTruster(), trust.getTrustee()).toString()));
-				return trust;
-			case 0: throw new NotTrustedException(trustID);
-			default: throw new DuplicateTrustException(trustID, result.size());
-		}
+		return mStorage.getTrust(trustID);
 	}
 
 	/**
 	 * Gets all trusts given by the given truster.
 	 * You have to synchronize on this WoT when calling the function and processing the returned list!
 	 * 
-	 * @return An {@link ObjectSet} containing all {@link Trust} the passed Identity has given.
+	 * @return A {@link List} containing all {@link Trust} the passed Identity has given.
 	 */
-	public ObjectSet<Trust> getGivenTrusts(final Identity truster) {
-		final Query query = mDB.query();
-		query.constrain(Trust.class);
-		query.descend("mTruster").constrain(truster).identity();
-		return new Persistent.InitializingObjectSet<Trust>(this, query);
+	public List<Trust> getGivenTrusts(final Identity truster) {
+		return mStorage.getGivenTrusts(truster);
 	}
 	
 	/**
@@ -3081,13 +3813,10 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * Gets all trusts received by the given trustee.
 	 * You have to synchronize on this WoT when calling the function and processing the returned list!
 	 * 
-	 * @return An {@link ObjectSet} containing all {@link Trust} the passed Identity has received.
+	 * @return A {@link List} containing all {@link Trust} the passed Identity has received.
 	 */
-	public ObjectSet<Trust> getReceivedTrusts(final Identity trustee) {
-		final Query query = mDB.query();
-		query.constrain(Trust.class);
-		query.descend("mTrustee").constrain(trustee).identity();
-		return new Persistent.InitializingObjectSet<Trust>(this, query);
+	public List<Trust> getReceivedTrusts(final Identity trustee) {
+		return mStorage.getReceivedTrusts(trustee);
 	}
 	
 	/**
@@ -3120,15 +3849,40 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * Gets all trusts.
 	 * You have to synchronize on this WoT when calling the function and processing the returned list!
 	 * 
-	 * @return An {@link ObjectSet} containing all {@link Trust} the passed Identity has received.
+	 * @return A {@link List} containing all {@link Trust} the passed Identity has received.
 	 */
 	@Override
-	public ObjectSet<Trust> getAllTrusts() {
+	public List<Trust> getAllTrusts() {
+		return mStorage.getAllTrusts();
+	}
+
+	/**
+	 * Gets all {@link Identity}s, {@link Trust}s or {@link Score}s whose ID is greater than the
+	 * given one, sorted ascending by ID.<br>
+	 * Used for cursor-based paging of bulk queries: The ID of the last object of a page is the
+	 * cursor of the next page, so each page can be fetched while holding the lock only briefly.
+	 * Objects which are added or deleted between two pages are missed or included depending on
+	 * whether their ID is before or after the cursor, all other objects are returned exactly once.
+	 * <br><br>
+	 *
+	 * You have to synchronize on this WoT when calling the function and processing the returned list!
+	 *
+	 * @param clazz Identity.class, Trust.class or Score.class: The ID must be stored in a field
+	 *     called "mID". Child classes such as OwnIdentity.class can be used as well.
+	 * @param afterID The ID of the last object of the previous page, or null for the first page.
+	 */
+	public <T extends Persistent> ObjectSet<T> getAllSortedByID(final Class<T> clazz,
+			final String afterID) {
+
 		final Query query = mDB.query();
-		query.constrain(Trust.class);
-		return new Persistent.InitializingObjectSet<Trust>(this, query); 
+		query.constrain(clazz);
+		// mID is indexed for all allowed classes, so both the range and the sorting use the index.
+		if(afterID != null)
+			query.descend("mID").constrain(afterID).greater();
+		query.descend("mID").orderAscending();
+		return new Persistent.InitializingObjectSet<T>(this, query);
 	}
-	
+
 	/**
 	 * Gives some {@link Trust} to another Identity.
 	 * It creates or updates an existing Trust object and make the trustee compute its {@link Score}.
@@ -3163,6 +3917,9 @@ public final class WebOfTrust extends WebOfTrustInterface
 			
 			trust.storeWithoutCommit();
 			
+			if(valueChanged)
+				mTrustGraphIndex.setTrust(truster.getID(), trustee.getID(), newValue);
+			
 			if(!trust.equals(oldTrust))
 				mSubscriptionManager.storeTrustChangedNotificationWithoutCommit(oldTrust, trust);
 			
@@ -3173,6 +3930,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		} catch (NotTrustedException e) {
 			final Trust trust = new Trust(this, truster, trustee, newValue, newComment);
 			trust.storeWithoutCommit();
+			mTrustGraphIndex.setTrust(truster.getID(), trustee.getID(), newValue);
 			mSubscriptionManager.storeTrustChangedNotificationWithoutCommit(null, trust);
 			if(logDEBUG) Logger.debug(this, "New trust value ("+ trust +"), now updating Score.");
 			updateScoresWithoutCommit(null, trust);
@@ -3250,6 +4008,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * 
 	 */
 	protected void removeTrustWithoutCommit(Trust trust) {
+		mTrustGraphIndex.removeTrust(trust.getTruster().getID(), trust.getTrustee().getID());
 		trust.deleteWithoutCommit();
 		mSubscriptionManager.storeTrustChangedNotificationWithoutCommit(trust, null);
 		updateScoresWithoutCommit(trust, null);
@@ -3300,10 +4059,9 @@ public final class WebOfTrust extends WebOfTrustInterface
 		
 		int value = 0;
 		
-		try {
-			return getTrust(truster, trustee).getValue();
-		}
-		catch(NotTrustedException e) { }
+		final int treeOwnerTrust = getTrustValue(truster, trustee);
+		if(treeOwnerTrust != TrustGraphIndex.NO_VALUE)
+			return treeOwnerTrust;
 		
 		for(Trust trust : getReceivedTrusts(trustee)) {
 			try {
@@ -3328,9 +4086,9 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * - for unit testing purposes, provide an alternate, unoptimized implementation of said
 	 *   functions.
 	 *   
-	 * TODO: Code quality: Since we have 4 implementations of rank computation now
-	 * (including {@link #computeAllScoresWithoutCommit()}), this and the other functions should be
-	 * moved to an interface "RankComputer" with 4 implementing classes.*/
+	 * TODO: Code quality: Since we have 5 implementations of rank computation now
+	 * (including {@link #computeAllScoresWithoutCommit()} and {@link IndexedRankComputer}), this
+	 * and the other functions should be moved to implementations of {@link RankComputer}.*/
 	int computeRankFromScratch_Forward(final OwnIdentity source, final Identity target) {
 		final class Vertex implements Comparable<Vertex>{
 			final Identity identity;
@@ -3471,15 +4229,13 @@ public final class WebOfTrust extends WebOfTrustInterface
 			}
 		}
 		
-		// TODO: Performance: It is likely that the priority part of the queue is used very
-		// scarcely: All edges we ever add have either weight of 1 or Integer.MAX_VALUE. Further,
-		// there are very few with Integer.MAX_VALUE - only the received trusts of the target may
-		// use MAX_VALUE.
+		// It is likely that the priority part of the queue is used very scarcely: All edges we
+		// ever add have either weight of 1 or Integer.MAX_VALUE. Further, there are very few with
+		// Integer.MAX_VALUE - only the received trusts of the target may use MAX_VALUE.
 		// If there only was weight 1, the natural order in which edges are added would be sorted
 		// by priority already (this is how breadth-first search works).
-		// So we almost don't need the sorting by priority. Maybe a more simple datastructure can be
-		// used to amend a non-sorting queue to be able to handle the few cases of MAX_VALUE which
-		// need sorting?
+		// IndexedRankComputer uses this to replace the PriorityQueue with two FIFO queues. This
+		// function is kept as is to serve as an independent implementation for unit tests.
 		PriorityQueue<Vertex> queue = new PriorityQueue<Vertex>();
 		IdentifierHashSet<Identity> seen = new IdentifierHashSet<Identity>();
 		
@@ -3822,6 +4578,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		// So we almost don't need the sorting by priority. Maybe a more simple datastructure can be
 		// used to amend a non-sorting queue to be able to handle the few cases of MAX_VALUE which
 		// need sorting?
+		// IndexedRankComputer does so with two FIFO queues, but does not have the cache yet.
 		PriorityQueue<Vertex> queue = new PriorityQueue<Vertex>();
 		// Notice:
 		// - Regular HashSets cannot be used for the reasons explained at class IdentifierHashSet.
@@ -4034,14 +4791,9 @@ public final class WebOfTrust extends WebOfTrustInterface
 		
 		int rank = -1;
 		
-		try {
-			Trust treeOwnerTrust = getTrust(truster, trustee);
-			
-			if(treeOwnerTrust.getValue() > 0)
-				return 1;
-			else
-				return Integer.MAX_VALUE;
-		} catch(NotTrustedException e) { }
+		final int treeOwnerTrust = getTrustValue(truster, trustee);
+		if(treeOwnerTrust != TrustGraphIndex.NO_VALUE)
+			return treeOwnerTrust > 0 ? 1 : Integer.MAX_VALUE;
 		
 		for(Trust trust : getReceivedTrusts(trustee)) {
 			try {
@@ -4206,7 +4958,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		}
 		
 		if(mFullScoreComputationNeeded) {
-			computeAllScoresWithoutCommit();
+			computeAllScoresWithoutCommit_Indexed();
 			assert(!mFullScoreComputationNeeded); // It properly clears the flag
 			assert(computeAllScoresWithoutCommit()); // computeAllScoresWithoutCommit() is stable
 		}
@@ -4254,7 +5006,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 			if(!mTrustListImportInProgress) {
 				// If not trust list import is in progress, finishTrustListImport() will not be
 				// called, so we must do the full computation ourselves.
-				computeAllScoresWithoutCommit();
+				computeAllScoresWithoutCommit_Indexed();
 				assert(computeAllScoresWithoutCommit()); // computeAllScoresWithoutCommit is stable
 			}
 			return;
@@ -4283,7 +5035,33 @@ public final class WebOfTrust extends WebOfTrustInterface
 		// rank, if we remove the rank from an identity, all its trustees will have a better rank and if one of them trusts the original identity
 		// then this function would run into an infinite loop. Decreasing or incrementing an existing rank is possible with this function because
 		// the rank received from the trustees will always be higher (that is exactly 1 more) than this identities rank.
-		if(trustWasDeleted) { 
+		// updateScoresAfterTrustRemovalWithoutCommit() avoids this problem by searching the new
+		// ranks with the TrustGraphIndex, so we only use the above fallback if it is not available.
+		// During trust list import, many Trusts are usually removed at once, so a single full
+		// computation at finishTrustListImport() is cheaper than walking the trees for each.
+		if(trustWasDeleted) {
+			if(mTrustGraphIndexBuilt && !mTrustListImportInProgress) {
+				updateScoresAfterTrustRemovalWithoutCommit(oldTrust);
+				time.stop();
+				
+				// Trust removal used to be handled by updateScoresAfterDistrustWithoutCommit(), so
+				// we keep counting it as distrust to keep the statistics comparable.
+				++mIncrementalScoreRecomputationDueToDistrustCount;
+				mIncrementalScoreRecomputationDueToDistrustNanos += time.getNanos();
+				
+				if(time.getNanos() > TimeUnit.SECONDS.toNanos(10)) {
+					++mIncrementalScoreRecomputationDueToDistrustCountSlow;
+					mIncrementalScoreRecomputationDueToDistrustNanosSlow += time.getNanos();
+				}
+				
+				if(logMINOR) Logger.minor(this, "Incremental computation of all Scores finished.");
+				
+				// See the end of this function.
+				assert(computeAllScoresWithoutCommit()); // This function worked correctly.
+				
+				return;
+			}
+			
 			mFullScoreComputationNeeded = true;
 		}
 
@@ -4474,7 +5252,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 				// TODO: Optimization: This uses very much CPU and memory. Write a partial computation function...
 				// TODO: Optimization: While we do not have a partial computation function, we could at least optimize computeAllScores to NOT
 				// keep all objects in memory etc.
-				computeAllScoresWithoutCommit();
+				computeAllScoresWithoutCommit_Indexed();
 				assert(computeAllScoresWithoutCommit()); // computeAllScoresWithoutCommit is stable
 			} else {
 				assert(computeAllScoresWithoutCommit()); // This function worked correctly.
@@ -4486,6 +5264,547 @@ public final class WebOfTrust extends WebOfTrustInterface
 		}
 	}
 
+	/**
+	 * Updates the {@link Score}s after the given {@link Trust} was deleted, without doing a full
+	 * computation.<br><br>
+	 * 
+	 * Deleting a Trust can remove the rank of its trustee, which then has to be searched anew: The
+	 * trustee might have another path to the tree owner, or might receive its rank back through a
+	 * cycle of Trusts which the removed one was part of. This cannot be determined by only looking
+	 * at the trusters of the trustee, see the explanation in
+	 * {@link #updateScoresWithoutCommit(Trust, Trust)}.<br>
+	 * Thus, for each trust tree in which the removed Trust was relevant, this computes the new
+	 * values of the affected part of the tree by
+	 * {@link #computeScoresAfterTrustRemoval(TrustGraphIndex.Snapshot, OwnIdentity, int,
+	 * HashMap)}, which only considers the Identitys whose rank the removed Trust could have
+	 * provided, and their direct trustees. The {@link TrustGraphIndex} is only used to walk the
+	 * graph, the ranks of the rest of the tree are taken from the stored Scores.<br>
+	 * So the amount of database queries is proportional to the amount of Scores which changed,
+	 * plus the Trusts received by their Identitys, instead of to the amount of all Scores as in
+	 * {@link #computeAllScoresWithoutCommit_Indexed()}.<br><br>
+	 * 
+	 * The only exception is the removal of a distrust which the tree owner itself has given: That
+	 * can improve the rank of its trustee, which the above cannot handle as ranks otherwise only
+	 * get worse upon removal. Then the tree is computed as a whole by
+	 * {@link #computeTrustTree(TrustGraphIndex.Snapshot, String)}, which is rare as it only
+	 * happens upon user action.<br><br>
+	 * 
+	 * The handling of the {@link IdentityFetcher} and {@link SubscriptionManager} is the same as in
+	 * {@link #computeAllScoresWithoutCommit_Indexed()}.<br><br>
+	 * 
+	 * Must only be called if {@link #mTrustGraphIndexBuilt} is true, and not during trust list
+	 * import: As each call walks the affected part of the trees, a full computation at
+	 * {@link #finishTrustListImport()} is cheaper if many Trusts are removed.<br>
+	 * Synchronization: Same as {@link #updateScoresWithoutCommit(Trust, Trust)}.
+	 * 
+	 * @param removedTrust The Trust which was deleted, it must not be in the database or the
+	 *     TrustGraphIndex anymore. */
+	private void updateScoresAfterTrustRemovalWithoutCommit(final Trust removedTrust) {
+		assert(mTrustGraphIndexBuilt);
+		assert(!mTrustListImportInProgress);
+		
+		if(logMINOR) Logger.minor(this, "Updating Scores after removal of: " + removedTrust);
+		
+		// Must use the IDs since the Trust was deleted and might be a clone()
+		final String trusterID = removedTrust.getTruster().getID();
+		final String trusteeID = removedTrust.getTrustee().getID();
+		
+		final TrustGraphIndex.Snapshot graph = mTrustGraphIndex.getSnapshot();
+		final int trusteeVertex = graph.getVertex(trusteeID);
+		if(trusteeVertex == TrustGraphIndex.NO_VERTEX) {
+			// Vertices are never deleted from the index, and the trustee had received a Trust.
+			throw new RuntimeException("TrustGraphIndex is out of sync: " + trusteeID);
+		}
+		
+		// Key = Identity ID. Values = the Identitys of which any Score changed, and their state of
+		// shouldFetchIdentity() before the first one changed.
+		final HashMap<String, Identity> changedIdentities = new HashMap<String, Identity>();
+		final HashMap<String, Boolean> oldShouldFetch = new HashMap<String, Boolean>();
+		final HashSet<String> capacityChangedFromZero = new HashSet<String>();
+		int visitedScores = 0;
+		
+		for(OwnIdentity treeOwner : getAllOwnIdentities()) {
+			final String treeOwnerID = treeOwner.getID();
+			
+			// The self-Score of the tree owner never changes, and the Trusts it receives do not
+			// influence its tree: Its own rank is what the others receive their ranks from.
+			if(trusteeID.equals(treeOwnerID))
+				continue;
+			
+			// The reference implementation only assigns ranks in trees whose owner has a
+			// self-Score, see getTrustTreeOwnerIDs().
+			try {
+				getScore(treeOwnerID + "@" + treeOwnerID);
+			} catch(NotInTrustTreeException e) {
+				continue;
+			}
+			
+			// The Trust could only have influenced trees in which its truster has a finite rank:
+			// Others cannot hand down a rank or give weight to their Trusts.
+			try {
+				final int trusterRank = getScore(treeOwnerID + "@" + trusterID).getRank();
+				if(trusterRank < 0 || trusterRank == Integer.MAX_VALUE)
+					continue;
+			} catch(NotInTrustTreeException e) {
+				continue;
+			}
+			
+			// Key = vertex, value = the stored Score of it in this tree, or null if it has none.
+			final HashMap<Integer, Score> oldScores = new HashMap<Integer, Score>();
+			// Key = vertex, value = {rank, capacity, value} of its Score as it should be now.
+			final HashMap<Integer, int[]> newScores;
+			
+			if(trusterID.equals(treeOwnerID) && removedTrust.getValue() <= 0)
+				newScores = computeScoresOfTrustTree(graph, treeOwner, trusteeVertex, oldScores);
+			else
+				newScores = computeScoresAfterTrustRemoval(graph, treeOwner, trusteeVertex, oldScores);
+			
+			for(Map.Entry<Integer, int[]> entry : newScores.entrySet()) {
+				final int vertex = entry.getKey();
+				final int rank = entry.getValue()[0];
+				final int capacity = entry.getValue()[1];
+				final int value = entry.getValue()[2];
+				final Score score = getStoredScore(graph, treeOwnerID, vertex, oldScores);
+				++visitedScores;
+				
+				if(score == null && rank == -1)
+					continue;
+				
+				if(score != null && score.getRank() == rank && score.getCapacity() == capacity
+						&& score.getScore() == value)
+					continue;
+				
+				final String targetID = graph.getIdentityID(vertex);
+				Identity target = changedIdentities.get(targetID);
+				if(target == null) {
+					try {
+						target = getIdentityByID(targetID);
+					} catch(UnknownIdentityException e) {
+						// The index is updated in the same transaction as the Trusts.
+						throw new RuntimeException("TrustGraphIndex is out of sync: " + targetID,
+							e);
+					}
+					changedIdentities.put(targetID, target);
+					oldShouldFetch.put(targetID, shouldFetchIdentity(target));
+				}
+				
+				if((score == null || score.getCapacity() == 0) && capacity > 0)
+					capacityChangedFromZero.add(targetID);
+				
+				if(rank == -1) {
+					score.deleteWithoutCommit();
+					mSubscriptionManager.storeScoreChangedNotificationWithoutCommit(score, null);
+				} else if(score == null) {
+					final Score newScore
+						= new Score(this, treeOwner, target, value, rank, capacity);
+					newScore.storeWithoutCommit();
+					mSubscriptionManager.storeScoreChangedNotificationWithoutCommit(null, newScore);
+				} else {
+					final Score oldScore = score.clone();
+					score.setRank(rank);
+					score.setCapacity(capacity);
+					score.setValue(value);
+					score.storeWithoutCommit();
+					mSubscriptionManager.storeScoreChangedNotificationWithoutCommit(oldScore, score);
+				}
+			}
+		}
+		
+		// Update the IdentityFetcher. Same as computeAllScoresWithoutCommit_Indexed().
+		for(Identity target : changedIdentities.values()) {
+			final String targetID = target.getID();
+			final boolean oldShould = oldShouldFetch.get(targetID);
+			final boolean newShould = shouldFetchIdentity(target);
+			
+			if((!oldShould || capacityChangedFromZero.contains(targetID)) && newShould) {
+				if(logMINOR) {
+					if(!oldShould)
+						Logger.minor(this, "Fetch status changed from false to true, refetching " + target);
+					else
+						Logger.minor(this, "Capacity changed from 0 to > 0, refetching" + target);
+				}
+				
+				final Identity oldTarget = target.clone();
+				
+				target.markForRefetch();
+				target.storeWithoutCommit();
+				
+				if(!oldTarget.equals(target))
+					mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(oldTarget, target);
+				
+				mFetcher.storeStartFetchCommandWithoutCommit(target);
+			} else if(oldShould && !newShould) {
+				if(logMINOR) Logger.minor(this, "Fetch status changed from true to false, aborting fetch of " + target);
+				
+				mFetcher.storeAbortFetchCommandWithoutCommit(target);
+			}
+		}
+		
+		if(logMINOR) {
+			Logger.minor(this, "Updated Scores after Trust removal: Visited Scores: "
+				+ visitedScores + "; changed Identitys: " + changedIdentities.size());
+		}
+	}
+	
+	/**
+	 * Computes the new values of the {@link Score}s in the tree of the given tree owner which are
+	 * affected by the removal of a {@link Trust} which the given trustee had received.<br>
+	 * The graph and the stored Scores are only accessed in the neighbourhood of the trustee, not
+	 * for the whole tree:<br>
+	 * 1. The affected Identitys are searched: Those whose rank might be worse now as it was
+	 *    provided by the removed Trust. Ranks only get worse upon removal of a Trust, so an
+	 *    Identity is not affected if it still has a truster which is not affected and has the rank
+	 *    it needs to provide the same rank as before. As the candidates are checked in the order of
+	 *    their old rank, the state of their trusters is known when they are checked. Only the
+	 *    trustees of affected Identitys are candidates.<br>
+	 * 2. The new ranks of the affected Identitys are computed by a breadth first search within
+	 *    the affected set, starting with the best rank which each receives from non-affected
+	 *    trusters. Their ranks are the same as before and thus taken from the stored Scores.<br>
+	 * 3. The new capacities and score values are computed for the affected Identitys, the trustee,
+	 *    and the trustees of affected Identitys whose capacity changed, as only their values
+	 *    depend on the changed ranks.<br><br>
+	 * 
+	 * The caller must ensure that the tree owner has not given the removed Trust, or that its
+	 * value was positive, see {@link #updateScoresAfterTrustRemovalWithoutCommit(Trust)}.
+	 * The tree owner must not be the trustee: Its self-Score never changes.
+	 * 
+	 * @param oldScores Cache of {@link #getStoredScore(TrustGraphIndex.Snapshot, String, int,
+	 *     HashMap)}, shared with the caller.
+	 * @return Key = vertex, value = {rank, capacity, value} which its Score should have. Contains
+	 *     all vertices whose Score might have changed, rank -1 means it should be deleted. */
+	private HashMap<Integer, int[]> computeScoresAfterTrustRemoval(
+			final TrustGraphIndex.Snapshot graph, final OwnIdentity treeOwner,
+			final int trusteeVertex, final HashMap<Integer, Score> oldScores) {
+		
+		final String treeOwnerID = treeOwner.getID();
+		final int treeOwnerVertex = graph.getVertex(treeOwnerID);
+		
+		if(trusteeVertex == treeOwnerVertex)
+			throw new IllegalArgumentException("The tree owner is the trustee: " + treeOwnerID);
+		
+		// Key = vertex, value = Trust value which the treeOwner has assigned to it. Those
+		// override the view of remote identities.
+		final HashMap<Integer, Integer> treeOwnerTrusts = new HashMap<Integer, Integer>();
+		if(treeOwnerVertex != TrustGraphIndex.NO_VERTEX) {
+			for(int i = graph.getGivenTrustsStart(treeOwnerVertex);
+					i < graph.getGivenTrustsEnd(treeOwnerVertex); ++i) {
+				treeOwnerTrusts.put(graph.getTrustee(i), (int)graph.getGivenTrustValue(i));
+			}
+		}
+		
+		// 1. Search the affected Identitys.
+		
+		final HashSet<Integer> affected = new HashSet<Integer>();
+		final HashSet<Integer> queued = new HashSet<Integer>();
+		// Candidates with a finite old rank. They are added in the order of their old rank.
+		final LinkedList<Integer> finiteCandidates = new LinkedList<Integer>();
+		// Candidates with an infinite old rank. They cannot provide a rank to others, so they are
+		// checked after all finite ones.
+		final LinkedList<Integer> infiniteCandidates = new LinkedList<Integer>();
+		
+		queued.add(trusteeVertex);
+		final int trusteeOldRank = getStoredRank(graph, treeOwnerID, trusteeVertex, oldScores);
+		if(trusteeOldRank == Integer.MAX_VALUE)
+			infiniteCandidates.add(trusteeVertex);
+		else if(trusteeOldRank != -1)
+			finiteCandidates.add(trusteeVertex);
+		// A rank of -1 cannot get any worse.
+		
+		while(!finiteCandidates.isEmpty()) {
+			final int vertex = finiteCandidates.removeFirst();
+			final int oldRank = getStoredRank(graph, treeOwnerID, vertex, oldScores);
+			
+			final Integer treeOwnerTrust = treeOwnerTrusts.get(vertex);
+			boolean unchanged = false;
+			if(treeOwnerTrust != null)
+				unchanged = (treeOwnerTrust > 0 ? 1 : Integer.MAX_VALUE) == oldRank;
+			else {
+				for(int i = graph.getReceivedTrustsStart(vertex);
+						i < graph.getReceivedTrustsEnd(vertex); ++i) {
+					
+					final int truster = graph.getTruster(i);
+					if(graph.getReceivedTrustValue(i) > 0 && !affected.contains(truster)
+							&& getStoredRank(graph, treeOwnerID, truster, oldScores) == oldRank - 1) {
+						unchanged = true;
+						break;
+					}
+				}
+			}
+			
+			if(unchanged)
+				continue;
+			
+			affected.add(vertex);
+			
+			// The trustees which might have received their rank from this vertex.
+			for(int i = graph.getGivenTrustsStart(vertex); i < graph.getGivenTrustsEnd(vertex); ++i) {
+				final int trustee = graph.getTrustee(i);
+				if(trustee == treeOwnerVertex || queued.contains(trustee))
+					continue;
+				
+				final int trusteeRank = getStoredRank(graph, treeOwnerID, trustee, oldScores);
+				if(graph.getGivenTrustValue(i) > 0 && trusteeRank == oldRank + 1) {
+					queued.add(trustee);
+					finiteCandidates.add(trustee);
+				} else if(graph.getGivenTrustValue(i) <= 0 && trusteeRank == Integer.MAX_VALUE) {
+					queued.add(trustee);
+					infiniteCandidates.add(trustee);
+				}
+			}
+		}
+		
+		for(int vertex : infiniteCandidates) {
+			// An infinite rank stays if a distruster with a finite rank remains. It cannot become
+			// finite as ranks only get worse.
+			boolean unchanged = treeOwnerTrusts.containsKey(vertex);
+			for(int i = graph.getReceivedTrustsStart(vertex);
+					!unchanged && i < graph.getReceivedTrustsEnd(vertex); ++i) {
+				
+				final int truster = graph.getTruster(i);
+				final int trusterRank = getStoredRank(graph, treeOwnerID, truster, oldScores);
+				unchanged = graph.getReceivedTrustValue(i) <= 0 && !affected.contains(truster)
+					&& trusterRank != -1 && trusterRank != Integer.MAX_VALUE;
+			}
+			
+			if(!unchanged)
+				affected.add(vertex);
+		}
+		
+		// 2. Compute the new ranks of the affected Identitys.
+		
+		// Key = vertex, value = new rank.
+		final HashMap<Integer, Integer> newRanks = new HashMap<Integer, Integer>();
+		// Entries are rank << 32 | vertex, so the lowest rank is polled first.
+		final PriorityQueue<Long> unprocessed = new PriorityQueue<Long>();
+		
+		for(int vertex : affected) {
+			final Integer treeOwnerTrust = treeOwnerTrusts.get(vertex);
+			if(treeOwnerTrust != null) {
+				if(treeOwnerTrust > 0)
+					unprocessed.add(1L << 32 | vertex);
+				else
+					newRanks.put(vertex, Integer.MAX_VALUE);
+				continue;
+			}
+			
+			int bestRank = Integer.MAX_VALUE;
+			for(int i = graph.getReceivedTrustsStart(vertex);
+					i < graph.getReceivedTrustsEnd(vertex); ++i) {
+				
+				final int truster = graph.getTruster(i);
+				if(graph.getReceivedTrustValue(i) <= 0 || affected.contains(truster))
+					continue;
+				
+				final int trusterRank = getStoredRank(graph, treeOwnerID, truster, oldScores);
+				if(trusterRank != -1 && trusterRank != Integer.MAX_VALUE)
+					bestRank = Math.min(bestRank, trusterRank + 1);
+			}
+			
+			if(bestRank != Integer.MAX_VALUE)
+				unprocessed.add((long)bestRank << 32 | vertex);
+		}
+		
+		while(!unprocessed.isEmpty()) {
+			final long entry = unprocessed.poll();
+			final int rank = (int)(entry >>> 32);
+			final int vertex = (int)entry;
+			
+			// Vertices may be added multiple times, the first one has the lowest rank.
+			if(newRanks.containsKey(vertex))
+				continue;
+			
+			newRanks.put(vertex, rank);
+			
+			for(int i = graph.getGivenTrustsStart(vertex); i < graph.getGivenTrustsEnd(vertex); ++i) {
+				final int trustee = graph.getTrustee(i);
+				if(graph.getGivenTrustValue(i) > 0 && affected.contains(trustee)
+						&& !newRanks.containsKey(trustee) && !treeOwnerTrusts.containsKey(trustee))
+					unprocessed.add((long)(rank + 1) << 32 | trustee);
+			}
+		}
+		
+		// The remaining affected Identitys have no finite rank anymore. Whether they have an
+		// infinite one only depends on trusters with a finite rank, which are all known now.
+		for(int vertex : affected) {
+			if(newRanks.containsKey(vertex))
+				continue;
+			
+			int rank = -1;
+			for(int i = graph.getReceivedTrustsStart(vertex);
+					i < graph.getReceivedTrustsEnd(vertex); ++i) {
+				
+				if(graph.getReceivedTrustValue(i) > 0)
+					continue;
+				
+				final int truster = graph.getTruster(i);
+				final Integer trusterNewRank = newRanks.get(truster);
+				final int trusterRank = affected.contains(truster)
+					? (trusterNewRank != null ? trusterNewRank : -1)
+					: getStoredRank(graph, treeOwnerID, truster, oldScores);
+				
+				if(trusterRank != -1 && trusterRank != Integer.MAX_VALUE) {
+					rank = Integer.MAX_VALUE;
+					break;
+				}
+			}
+			newRanks.put(vertex, rank);
+		}
+		
+		// 3. Compute the capacities and values of all Identitys whose Score might have changed.
+		
+		final HashSet<Integer> changed = new HashSet<Integer>(affected);
+		changed.add(trusteeVertex);
+		for(int vertex : affected) {
+			final int newCapacity = computeCapacity(newRanks.get(vertex));
+			final Score oldScore = getStoredScore(graph, treeOwnerID, vertex, oldScores);
+			if(newCapacity == (oldScore != null ? oldScore.getCapacity() : 0))
+				continue;
+			
+			for(int i = graph.getGivenTrustsStart(vertex); i < graph.getGivenTrustsEnd(vertex); ++i) {
+				if(graph.getTrustee(i) != treeOwnerVertex)
+					changed.add(graph.getTrustee(i));
+			}
+		}
+		
+		final HashMap<Integer, int[]> result = new HashMap<Integer, int[]>(changed.size() * 2);
+		for(int vertex : changed) {
+			final int rank = affected.contains(vertex)
+				? newRanks.get(vertex) : getStoredRank(graph, treeOwnerID, vertex, oldScores);
+			
+			if(rank == -1) {
+				result.put(vertex, new int[] { -1, 0, 0 });
+				continue;
+			}
+			
+			final int value;
+			final Integer treeOwnerTrust = treeOwnerTrusts.get(vertex);
+			if(treeOwnerTrust != null)
+				value = treeOwnerTrust;
+			else {
+				int sum = 0;
+				for(int i = graph.getReceivedTrustsStart(vertex);
+						i < graph.getReceivedTrustsEnd(vertex); ++i) {
+					
+					final int truster = graph.getTruster(i);
+					final int trusterCapacity;
+					if(affected.contains(truster))
+						trusterCapacity = computeCapacity(newRanks.get(truster));
+					else {
+						final Score trusterScore
+							= getStoredScore(graph, treeOwnerID, truster, oldScores);
+						trusterCapacity = trusterScore != null ? trusterScore.getCapacity() : 0;
+					}
+					
+					// Same as computeTrustTree()
+					sum += (graph.getReceivedTrustValue(i) * trusterCapacity) / 100;
+				}
+				value = sum;
+			}
+			
+			result.put(vertex, new int[] { rank, computeCapacity(rank), value });
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Computes the whole tree of the given tree owner by
+	 * {@link #computeTrustTree(TrustGraphIndex.Snapshot, String)}, and walks the graph from the
+	 * given trustee downwards to find the {@link Score}s which differ from it.<br>
+	 * It only walks further from an Identity whose rank or capacity changed: The ones of its
+	 * trustees only depend on those, so the Scores below it are still valid otherwise.<br><br>
+	 * 
+	 * Used by {@link #updateScoresAfterTrustRemovalWithoutCommit(Trust)} for the cases which
+	 * {@link #computeScoresAfterTrustRemoval(TrustGraphIndex.Snapshot, OwnIdentity, int, HashMap)}
+	 * cannot handle.
+	 * 
+	 * @return Same as computeScoresAfterTrustRemoval(). */
+	private HashMap<Integer, int[]> computeScoresOfTrustTree(final TrustGraphIndex.Snapshot graph,
+			final OwnIdentity treeOwner, final int trusteeVertex,
+			final HashMap<Integer, Score> oldScores) {
+		
+		final String treeOwnerID = treeOwner.getID();
+		final int treeOwnerVertex = graph.getVertex(treeOwnerID);
+		final TrustTree tree = computeTrustTree(graph, treeOwnerID);
+		
+		final HashMap<Integer, int[]> result = new HashMap<Integer, int[]>();
+		final LinkedList<Integer> unprocessed = new LinkedList<Integer>();
+		final HashSet<Integer> queued = new HashSet<Integer>();
+		unprocessed.add(trusteeVertex);
+		queued.add(trusteeVertex);
+		
+		while(!unprocessed.isEmpty()) {
+			final int vertex = unprocessed.removeFirst();
+			
+			// The self-Score of the tree owner never changes.
+			if(vertex == treeOwnerVertex)
+				continue;
+			
+			final int rank = tree.mRanks[vertex];
+			final int capacity = rank != -1 ? tree.mCapacities[vertex] : 0;
+			final int value = rank != -1 ? tree.mValues[vertex] : 0;
+			result.put(vertex, new int[] { rank, capacity, value });
+			
+			final Score score = getStoredScore(graph, treeOwnerID, vertex, oldScores);
+			final int oldRank = score != null ? score.getRank() : -1;
+			final int oldCapacity = score != null ? score.getCapacity() : 0;
+			
+			// The ranks of the trustees are computed from the rank of the vertex, and their
+			// values are weighted with its capacity. If both didn't change, only the value of
+			// the vertex changed, which does not influence any other Scores.
+			if(oldRank == rank && oldCapacity == capacity)
+				continue;
+			
+			for(int i = graph.getGivenTrustsStart(vertex); i < graph.getGivenTrustsEnd(vertex); ++i) {
+				final int trustee = graph.getTrustee(i);
+				if(queued.add(trustee))
+					unprocessed.add(trustee);
+			}
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * @return The stored {@link Score} of the Identity of the given vertex in the tree of the
+	 *     given tree owner, or null if it has none. Cached in the given map to avoid querying the
+	 *     database multiple times. */
+	private Score getStoredScore(TrustGraphIndex.Snapshot graph, String treeOwnerID, int vertex,
+			HashMap<Integer, Score> cache) {
+		
+		if(cache.containsKey(vertex))
+			return cache.get(vertex);
+		
+		Score score;
+		try {
+			score = getScore(treeOwnerID + "@" + graph.getIdentityID(vertex));
+		} catch(NotInTrustTreeException e) {
+			score = null;
+		}
+		cache.put(vertex, score);
+		return score;
+	}
+	
+	/** @return {@link Score#getRank()} of {@link #getStoredScore(TrustGraphIndex.Snapshot,
+	 *     String, int, HashMap)}, or -1 if there is no Score. */
+	private int getStoredRank(TrustGraphIndex.Snapshot graph, String treeOwnerID, int vertex,
+			HashMap<Integer, Score> cache) {
+		
+		final Score score = getStoredScore(graph, treeOwnerID, vertex, cache);
+		return score != null ? score.getRank() : -1;
+	}
+	
+	/**
+	 * Same as {@link #computeCapacity(OwnIdentity, Identity, int)} for an Identity which is not
+	 * the tree owner: A distrust of the tree owner forces an infinite rank, which yields the same
+	 * capacity as the check for it there. */
+	private static int computeCapacity(int rank) {
+		if(rank == -1 || rank == Integer.MAX_VALUE)
+			return 0;
+		
+		return (rank < capacities.length) ? capacities[rank] : 1;
+	}
+
 	/**
 	 * FIXME: Check whether all the HashMap/HashSet used by this and the callees to avoid double 
 	 * computations of stuff actually yield hits. It is possible that I wrongly assumed that double
@@ -5025,6 +6344,8 @@ public final class WebOfTrust extends WebOfTrustInterface
 				// Copy all received trusts.
 				// We don't have to modify them because they are user-assigned values and the assignment
 				// of the user does not change just because the type of the identity changes.
+				// The mTrustGraphIndex doesn't need to be updated for the same reason: The IDs of
+				// the Identity and thus of the Trusts don't change either.
 				for(Trust oldReceivedTrust : getReceivedTrusts(oldIdentity)) {
 					Trust newReceivedTrust;
 					try {
@@ -5257,15 +6578,18 @@ public final class WebOfTrust extends WebOfTrustInterface
 					// would be confused by both the OwnIdentity and non-own Identity object being
 					// in the database at the same time.
 					// Thus we will first delete the non-own Identity and then re-set the trusts.
-					final ObjectSet<Trust> oldGivenTrusts = getGivenTrusts(oldIdentity);
+					final List<Trust> oldGivenTrusts = getGivenTrusts(oldIdentity);
 					
 					// TODO: No need to copy after this is fixed:
 					// https://bugs.freenetproject.org/view.php?id=6596
 					final ArrayList<Trust> oldGivenTrustsCopy
 						= new ArrayList<Trust>(oldGivenTrusts);
 					
-					for(Trust oldGivenTrust : oldGivenTrusts)
+					for(Trust oldGivenTrust : oldGivenTrusts) {
+						mTrustGraphIndex.removeTrust(
+							oldIdentity.getID(), oldGivenTrust.getTrustee().getID());
 						oldGivenTrust.deleteWithoutCommit();
+					}
 					
 					assert(getGivenTrusts(oldIdentity).size() == 0);
 					
@@ -5360,6 +6684,107 @@ public final class WebOfTrust extends WebOfTrustInterface
 		setTrust(truster, trustee, value, comment);
 	}
 	
+	/** A single change of {@link #setTrusts(String, List)}. */
+	public static final class TrustChange {
+		public final String mTrusteeID;
+		
+		/** Null to remove the {@link Trust}. */
+		public final Byte mValue;
+		
+		/** Ignored if {@link #mValue} is null. */
+		public final String mComment;
+		
+		public TrustChange(String trusteeID, Byte value, String comment) {
+			mTrusteeID = trusteeID;
+			mValue = value;
+			mComment = comment != null ? comment : "";
+		}
+	}
+	
+	/**
+	 * Applies multiple {@link #setTrust(String, String, byte, String)} /
+	 * {@link #removeTrust(String, String)} of the same {@link OwnIdentity} in a single
+	 * transaction.<br>
+	 * This is much faster than separate calls: It takes the locks and commits once, and the
+	 * {@link Score}s are updated using the {@link #beginTrustListImport()} mechanism, i.e. by a
+	 * single full recomputation at the end if there are more than
+	 * {@link #SET_TRUSTS_INCREMENTAL_SCORE_UPDATE_LIMIT} changes.<br><br>
+	 * 
+	 * Invalid changes don't prevent the valid ones from being applied, their errors are returned
+	 * instead. The changes are applied in the given order, so if multiple ones concern the same
+	 * trustee, the last one wins.
+	 * 
+	 * @return For each change at the same index: Null if it was applied, or the exception which
+	 *     prevented it from being applied:<br>
+	 *     - {@link UnknownIdentityException} if the trustee does not exist.<br>
+	 *     - {@link NotTrustedException} if a Trust to remove does not exist.<br>
+	 *     - {@link InvalidParameterException} if the value or comment is invalid, or the truster
+	 *       would trust itself.
+	 * @throws UnknownIdentityException If the truster does not exist. No change is applied then.
+	 */
+	public synchronized Exception[] setTrusts(String ownTrusterID, List<TrustChange> changes)
+			throws UnknownIdentityException {
+		
+		final OwnIdentity truster = getOwnIdentityByID(ownTrusterID);
+		final Exception[] results = new Exception[changes.size()];
+		
+		synchronized(mFetcher) {
+		synchronized(mSubscriptionManager) {
+		synchronized(Persistent.transactionLock(mDB)) {
+			try {
+				beginTrustListImport();
+				
+				// finishTrustListImport() will do the full computation.
+				if(changes.size() > SET_TRUSTS_INCREMENTAL_SCORE_UPDATE_LIMIT)
+					mFullScoreComputationNeeded = true;
+				
+				for(int i = 0; i < results.length; ++i) {
+					final TrustChange change = changes.get(i);
+					try {
+						final Identity trustee = getIdentityByID(change.mTrusteeID);
+						
+						if(change.mValue == null) {
+							removeTrustWithoutCommit(getTrust(truster, trustee));
+							continue;
+						}
+						
+						// setTrustWithoutCommit() would modify objects before it throws, so we
+						// must validate the parameters before calling it.
+						if(trustee.getID().equals(truster.getID()))
+							throw new InvalidParameterException("Trust values cannot be self-referential!");
+						Trust.validateValue(change.mValue);
+						Trust.validateComment(change.mComment);
+						
+						try {
+							setTrustWithoutCommit(truster, trustee, change.mValue, change.mComment);
+						} catch(InvalidParameterException e) {
+							// Should not happen due to the above validation, and we cannot
+							// continue because it may have modified objects already.
+							throw new RuntimeException(e);
+						}
+					} catch(UnknownIdentityException e) {
+						results[i] = e;
+					} catch(NotTrustedException e) {
+						results[i] = e;
+					} catch(InvalidParameterException e) {
+						results[i] = e;
+					}
+				}
+				
+				finishTrustListImport();
+				Persistent.checkedCommit(mDB, this);
+			}
+			catch(RuntimeException e) {
+				abortTrustListImport(e); // Does the rollback
+				throw e;
+			}
+		}
+		}
+		}
+		
+		return results;
+	}
+	
 	/** FIXME: Should this throw {@link NotTrustedException} instead of swallowing it? */
 	public synchronized void removeTrust(String ownTrusterID, String trusteeID) throws UnknownIdentityException {
 		final OwnIdentity truster = getOwnIdentityByID(ownTrusterID);
@@ -5591,6 +7016,14 @@ public final class WebOfTrust extends WebOfTrustInterface
 		return mDB;
 	}
 	
+	/**
+	 * @return The {@link Storage} which this WebOfTrust uses for its lookups of {@link Identity}s,
+	 *     {@link Trust}s and {@link Score}s. Its functions require the same locking as the ones of
+	 *     this WebOfTrust. */
+	public Storage getStorage() {
+		return mStorage;
+	}
+	
 	public Configuration getConfig() {
 		return mConfig;
 	}
@@ -5604,6 +7037,30 @@ public final class WebOfTrust extends WebOfTrustInterface
 		return mFetcher;
 	}
 	
+	TrustGraphIndex getTrustGraphIndex() {
+		return mTrustGraphIndex;
+	}
+	
+	/**
+	 * @return The publisher which the storeWithoutCommit() / deleteWithoutCommit() functions of
+	 *     {@link Identity}, {@link Trust} and {@link Score} must notify about changes, or null if
+	 *     they must not notify it yet, see {@link #mReadSnapshotBuilt}.<br>
+	 *     You must synchronize upon the {@link Persistent#transactionLock(ExtObjectContainer)}
+	 *     when using this. */
+	ReadSnapshotPublisher getReadSnapshotPublisher() {
+		return mReadSnapshotBuilt ? mReadSnapshotPublisher : null;
+	}
+	
+	/**
+	 * Returns an immutable copy of all {@link Identity}s, {@link Trust}s and {@link Score}s as of
+	 * the last committed transaction.<br>
+	 * Querying it does not require any locks, so read-only user interfaces should prefer it over
+	 * the query functions of this class which require synchronizing upon the WebOfTrust. See the
+	 * JavaDoc of {@link ReadSnapshot} for how to use it. */
+	public ReadSnapshot getReadSnapshot() {
+		return mReadSnapshotPublisher.getSnapshot();
+	}
+	
 	public IdentityFileQueue getIdentityFileQueue() {
 		return mIdentityFileQueue;
 	}
@@ -5612,6 +7069,51 @@ public final class WebOfTrust extends WebOfTrustInterface
 		return mIdentityFileProcessor;
 	}
 
+	/** @return Null in unit tests which use the {@link #WebOfTrust(String)} constructor. */
+	public StartupVerifier getStartupVerifier() {
+		return mStartupVerifier;
+	}
+
+	/**
+	 * Returns false while the {@link StartupVerifier} is verifying the database after startup.
+	 * The user interfaces must not modify the database then, they are read-only.<br>
+	 * Daemons such as the {@link IdentityFileProcessor} may modify it: The verification takes
+	 * the locks in short slices only, so they can proceed in between. */
+	public boolean isStartupVerificationFinished() {
+		return mStartupVerifier == null || mStartupVerifier.isFinished();
+	}
+
+	/** @return Null in unit tests, see {@link #mGroupCommitter}. */
+	public GroupCommitter getGroupCommitter() {
+		return mGroupCommitter;
+	}
+
+	/** @return Null if no compaction was started during this session. */
+	public DatabaseCompactor getDatabaseCompactor() {
+		return mDatabaseCompactor;
+	}
+
+	/** @return True if {@link Configuration#DEFAULT_DEFRAG_INTERVAL} has expired. */
+	private synchronized boolean isDatabaseCompactionDue() {
+		final Date lastDefragDate = mConfig.getLastDefragDate();
+		final Date nextDefragDate
+			= new Date(lastDefragDate.getTime() + Configuration.DEFAULT_DEFRAG_INTERVAL);
+		return !nextDefragDate.after(CurrentTimeUTC.get());
+	}
+
+	/**
+	 * Creates and starts the {@link DatabaseCompactor}. The database will be replaced with the
+	 * compacted one at {@link #terminate()}.<br>
+	 * Must not be called more than once.
+	 * @param ticker Null for unit tests, they must execute {@link DatabaseCompactor#run()}
+	 *     manually then. */
+	DatabaseCompactor startDatabaseCompaction(Ticker ticker) {
+		assert(mDatabaseCompactor == null);
+		mDatabaseCompactor = new DatabaseCompactor(this, ticker);
+		mDatabaseCompactor.start();
+		return mDatabaseCompactor;
+	}
+
     public IdentityInserter getIdentityInserter() {
         return mInserter;
     }
@@ -5781,7 +7283,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		synchronized(other) {
 
 		{ // Compare own identities
-			final ObjectSet<OwnIdentity> allIdentities = getAllOwnIdentities();
+			final List<OwnIdentity> allIdentities = getAllOwnIdentities();
 			
 			if(allIdentities.size() != other.getAllOwnIdentities().size())
 				return false;
@@ -5797,7 +7299,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		}
 
 		{ // Compare identities
-			final ObjectSet<Identity> allIdentities = getAllIdentities();
+			final List<Identity> allIdentities = getAllIdentities();
 			
 			if(allIdentities.size() != other.getAllIdentities().size())
 				return false;
@@ -5814,7 +7316,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		
 		
 		{ // Compare trusts
-			final ObjectSet<Trust> allTrusts = getAllTrusts();
+			final List<Trust> allTrusts = getAllTrusts();
 			
 			if(allTrusts.size() != other.getAllTrusts().size())
 				return false;
@@ -5835,7 +7337,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		}
 		
 		{ // Compare scores
-			final ObjectSet<Score> allScores = getAllScores();
+			final List<Score> allScores = getAllScores();
 			
 			if(allScores.size() != other.getAllScores().size())
 				return false;
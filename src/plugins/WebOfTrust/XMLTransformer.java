@@ -17,6 +17,8 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.TimeZone;
@@ -25,6 +27,10 @@ import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
@@ -98,6 +104,17 @@ public final class XMLTransformer {
 	 */
 	public static final int MAX_IDENTITY_XML_TRUSTEE_AMOUNT = 512;
 	
+	/**
+	 * If true, identity XML is parsed with the streaming parser of
+	 * {@link #parseIdentityXMLWithStAX(InputStream)}. If false, the DOM parser of
+	 * {@link #parseIdentityXMLWithDOM(InputStream)} is used.<br>
+	 * The streaming parser does not build a DOM, does not need {@link OneBytePerReadInputStream}
+	 * and does not hold a lock while parsing, so multiple threads can parse concurrently.
+	 * The DOM parser is kept for verification of the streaming one.<br><br>
+	 * 
+	 * TODO: Code quality: Make configurable. */
+	public static final boolean USE_STREAMING_IDENTITY_XML_PARSER = true;
+	
 	private final WebOfTrust mWoT;
 	
 	/**
@@ -115,6 +132,25 @@ public final class XMLTransformer {
 	/** Created by mDocumentBuilder, used for building the identity XML DOM when encoding identities */
 	private final DOMImplementation mDOM;
 	
+	/**
+	 * Used for parsing the identity XML in {@link #parseIdentityXMLWithStAX(InputStream)}.<br>
+	 * The JavaDoc of {@link XMLInputFactory} does not guarantee thread-safety, so we use one per
+	 * thread instead of a lock as with {@link #mDocumentBuilder}. */
+	private final ThreadLocal<XMLInputFactory> mXMLInputFactory
+			= new ThreadLocal<XMLInputFactory>() {
+		
+		@Override protected XMLInputFactory initialValue() {
+			final XMLInputFactory factory = XMLInputFactory.newInstance();
+			// Same as the "disallow-doctype-decl" of the DocumentBuilder
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+			factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+			// The DocumentBuilder is not namespace aware, so element names are matched literally.
+			factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+			factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+			return factory;
+		}
+	};
+	
 	/** Used for ensuring that the order of the output XML does not reveal private data of the user */
 	private final Random mFastWeakRandom;
 	
@@ -301,7 +337,11 @@ public final class XMLTransformer {
 
 	}
 	
-	private static final class ParsedIdentityXML {
+	/**
+	 * The result of {@link XMLTransformer#parseIdentityXML(FreenetURI, InputStream)}.<br>
+	 * Does not reference the database and thus can be created without holding any locks, and be
+	 * passed to {@link XMLTransformer#importIdentities(List)} later on. */
+	static final class ParsedIdentityXML {
 		static final class TrustListEntry {
 			final FreenetURI mTrusteeURI;
 			final byte mTrustValue;
@@ -314,6 +354,9 @@ public final class XMLTransformer {
 			}
 		}
 		
+		/** The URI from which the file was downloaded, including the edition of the file. */
+		FreenetURI identityURI = null;
+		
 		Exception parseError = null;
 		
 		String identityName = null;
@@ -323,12 +366,43 @@ public final class XMLTransformer {
 		ArrayList<TrustListEntry> identityTrustList = null;
 	}
 	
+	/**
+	 * Parses the given identity XML without taking any locks. Does not throw: Parse errors are
+	 * stored in {@link ParsedIdentityXML#parseError} and will be dealt with by the import
+	 * functions, which mark the edition as {@link FetchState#ParsingFailed}.
+	 * 
+	 * @param identityURI The {@link FreenetURI} from which the file was downloaded, including the
+	 *     edition of the file.
+	 * @param xmlInputStream An InputStream which must not return more than
+	 *     {@link #MAX_IDENTITY_XML_BYTE_SIZE} bytes. Is not closed by this function. */
+	ParsedIdentityXML parseIdentityXML(FreenetURI identityURI, InputStream xmlInputStream) {
+		final ParsedIdentityXML result = parseIdentityXML(xmlInputStream);
+		result.identityURI = identityURI;
+		return result;
+	}
+	
 	/**
 	 * @param xmlInputStream An InputStream which must not return more than {@link MAX_IDENTITY_XML_BYTE_SIZE} bytes.
 	 */
-	private ParsedIdentityXML parseIdentityXML(InputStream xmlInputStream) throws IOException {
+	private ParsedIdentityXML parseIdentityXML(InputStream xmlInputStream) {
 		Logger.normal(this, "Parsing identity XML...");
 		
+		final ParsedIdentityXML result = USE_STREAMING_IDENTITY_XML_PARSER
+			? parseIdentityXMLWithStAX(xmlInputStream)
+			: parseIdentityXMLWithDOM(xmlInputStream);
+		
+		Logger.normal(this, "Finished parsing identity XML.");
+		
+		return result;
+	}
+	
+	/**
+	 * Parses identity XML by building a DOM of it with the {@link #mDocumentBuilder}, which is
+	 * synchronized. Used if {@link #USE_STREAMING_IDENTITY_XML_PARSER} is false.
+	 * 
+	 * @param xmlInputStream An InputStream which must not return more than {@link MAX_IDENTITY_XML_BYTE_SIZE} bytes.
+	 */
+	ParsedIdentityXML parseIdentityXMLWithDOM(InputStream xmlInputStream) {
 		final ParsedIdentityXML result = new ParsedIdentityXML();
 		
 		try {			
@@ -378,11 +452,180 @@ public final class XMLTransformer {
 			result.parseError = e;
 		}
 		
-		Logger.normal(this, "Finished parsing identity XML.");
+		return result;
+	}
+	
+	/**
+	 * Parses identity XML with a streaming {@link XMLStreamReader}, filling the
+	 * {@link ParsedIdentityXML} directly without building a DOM. Used if
+	 * {@link #USE_STREAMING_IDENTITY_XML_PARSER} is true.<br>
+	 * Holds no locks, so it may be called by multiple threads concurrently.<br><br>
+	 * 
+	 * The result is the same as the one of {@link #parseIdentityXMLWithDOM(InputStream)}: Elements
+	 * are matched the same way as by {@link Element#getElementsByTagName(String)}, i.e. at any
+	 * depth below the first "Identity" element, and missing attributes are treated as "".
+	 * Only the exception in {@link ParsedIdentityXML#parseError} may differ.<br><br>
+	 * 
+	 * The stream is passed to the parser as is, without buffering it, so the parser detects the
+	 * encoding from the XML declaration the same way as the DOM parser does.
+	 * 
+	 * @param xmlInputStream An InputStream which must not return more than
+	 *     {@link #MAX_IDENTITY_XML_BYTE_SIZE} bytes. Unlike with the DOM parser, this limit is
+	 *     enforced exactly. */
+	ParsedIdentityXML parseIdentityXMLWithStAX(InputStream xmlInputStream) {
+		final ParsedIdentityXML result = new ParsedIdentityXML();
+		XMLStreamReader reader = null;
+		
+		try {
+			reader = mXMLInputFactory.get().createXMLStreamReader(
+				new SizeLimitedInputStream(xmlInputStream, MAX_IDENTITY_XML_BYTE_SIZE));
+			
+			// Depth of the current element. The root element has depth 1.
+			int depth = 0;
+			// Depth of the first "Identity" / "TrustList" element while we are inside of it, or
+			// 0 if we are not. They are set to -1 after the element was left as we only want the
+			// first one.
+			int identityDepth = 0;
+			int trustListDepth = 0;
+			
+			while(reader.hasNext()) {
+				final int event = reader.next();
+				
+				if(event == XMLStreamConstants.END_ELEMENT) {
+					if(depth == identityDepth)
+						identityDepth = -1;
+					if(depth == trustListDepth)
+						trustListDepth = -1;
+					--depth;
+					continue;
+				}
+				
+				if(event != XMLStreamConstants.START_ELEMENT)
+					continue;
+				
+				++depth;
+				final String name = reader.getLocalName();
+				
+				if(identityDepth == 0) {
+					if(!"Identity".equals(name))
+						continue;
+					
+					identityDepth = depth;
+					
+					final String version = getAttribute(reader, "Version");
+					if(Integer.parseInt(version) > XML_FORMAT_VERSION)
+						throw new Exception("Version " + version + " > " + XML_FORMAT_VERSION);
+					
+					result.identityName = getAttribute(reader, "Name");
+					result.identityPublishesTrustList
+						= Boolean.parseBoolean(getAttribute(reader, "PublishesTrustList"));
+					result.identityContexts = new ArrayList<String>();
+					result.identityProperties = new HashMap<String, String>();
+				} else if(identityDepth > 0) {
+					if("Context".equals(name)) {
+						result.identityContexts.add(getAttribute(reader, "Name"));
+					} else if("Property".equals(name)) {
+						result.identityProperties.put(
+							getAttribute(reader, "Name"), getAttribute(reader, "Value"));
+					} else if("TrustList".equals(name)) {
+						if(trustListDepth == 0 && result.identityPublishesTrustList) {
+							trustListDepth = depth;
+							result.identityTrustList
+								= new ArrayList<ParsedIdentityXML.TrustListEntry>();
+						}
+					} else if("Trust".equals(name) && trustListDepth > 0) {
+						if(result.identityTrustList.size() >= MAX_IDENTITY_XML_TRUSTEE_AMOUNT) {
+							throw new Exception(
+								"Too many trust values: > " + MAX_IDENTITY_XML_TRUSTEE_AMOUNT);
+						}
+						
+						result.identityTrustList.add(new ParsedIdentityXML.TrustListEntry(
+							new FreenetURI(getAttribute(reader, "Identity")),
+							Byte.parseByte(getAttribute(reader, "Value")),
+							getAttribute(reader, "Comment")));
+					}
+				}
+			}
+			
+			if(identityDepth == 0)
+				throw new Exception("No Identity element found");
+			
+			if(result.identityPublishesTrustList && result.identityTrustList == null)
+				throw new Exception("No TrustList element found");
+		} catch(Exception e) {
+			result.parseError = e;
+		} finally {
+			if(reader != null) {
+				try {
+					reader.close();
+				} catch(XMLStreamException e) {
+					Logger.error(this, "XMLStreamReader.close() failed", e);
+				}
+			}
+		}
 		
 		return result;
 	}
 	
+	/**
+	 * @return The value of the attribute of the current element of the reader, or "" if it does
+	 *     not exist. The latter is the same as {@link Element#getAttribute(String)} does. */
+	private static String getAttribute(XMLStreamReader reader, String name) {
+		final String value = reader.getAttributeValue(null, name);
+		return value != null ? value : "";
+	}
+	
+	/**
+	 * Throws an {@link IOException} once more than the given amount of bytes was read from the
+	 * wrapped stream. Used by {@link XMLTransformer#parseIdentityXMLWithStAX(InputStream)} to
+	 * enforce the size limit exactly without having to buffer the whole stream. */
+	private static final class SizeLimitedInputStream extends FilterInputStream {
+		private final long mMaxSize;
+		
+		private long mSize = 0;
+		
+		SizeLimitedInputStream(InputStream in, long maxSize) {
+			super(in);
+			mMaxSize = maxSize;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			final int result = super.read();
+			if(result >= 0)
+				addToSize(1);
+			return result;
+		}
+		
+		/** Also used by {@link FilterInputStream#read(byte[])}. */
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			final int result = super.read(b, off, len);
+			if(result > 0)
+				addToSize(result);
+			return result;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			final long result = super.skip(n);
+			addToSize(result);
+			return result;
+		}
+		
+		/** Bytes which were read after a {@link #reset()} would be counted twice. */
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+		
+		private void addToSize(long bytes) throws IOException {
+			mSize += bytes;
+			if(mSize > mMaxSize)
+				throw new IOException("XML contains too many bytes: > " + mMaxSize);
+		}
+	}
+	
 	/**
 	 * Imports a identity XML file into the given web of trust. This includes:
 	 * - The identity itself and its attributes
@@ -391,167 +634,31 @@ public final class XMLTransformer {
 	 * @param xmlInputStream The input stream containing the XML.
 	 */
 	public void importIdentity(FreenetURI identityURI, InputStream xmlInputStream) {
-		try { // Catch import problems so we can mark the edition as parsing failed
 		// We first parse the XML without synchronization, then do the synchronized import into the WebOfTrust		
-		final ParsedIdentityXML xmlData = parseIdentityXML(xmlInputStream);
+		importIdentity(parseIdentityXML(identityURI, xmlInputStream));
+	}
+	
+	/**
+	 * Imports a single file which was parsed with
+	 * {@link #parseIdentityXML(FreenetURI, InputStream)}, in a transaction of its own.<br>
+	 * If the import fails, the edition is marked as {@link FetchState#ParsingFailed}. */
+	private void importIdentity(ParsedIdentityXML xmlData) {
+		final FreenetURI identityURI = xmlData.identityURI;
 		
+		try { // Catch import problems so we can mark the edition as parsing failed
 		synchronized(mWoT) {
 		synchronized(mWoT.getIdentityFetcher()) {
 		synchronized(mSubscriptionManager) {
-			final Identity identity = mWoT.getIdentityByURI(identityURI);
-			final Identity oldIdentity = identity.clone(); // For the SubscriptionManager
-			
-			Logger.normal(this, "Importing parsed XML for " + identity);
-
-			// When shouldFetchIdentity() changes from true to false due to an identity becoming
-			// distrusted, this change will not cause the IdentityFetcher to abort the fetch
-			// immediately: It queues the command to abort the fetch, and processes commands after
-			// some seconds.
-			// Also, fetched identity files are enqueued for processing in an IdentityFileQueue, and
-			// might wait there for several minutes.
-			// Thus, it is possible that this function is called for an Identity which is not
-			// actually wanted anymore. So we must check whether the identity is really still
-			// wanted.
-            if(!mWoT.shouldFetchIdentity(identity)) {
-                Logger.normal(this,
-                    "importIdentity() called for unwanted identity, probably because the "
-                  + "IdentityFetcher has not processed the AbortFetchCommand yet or the "
-                  + "file was in the IdentityFileQueue for some time, not importing: "
-                  + identity);
-                return;
-            }
-			
-			long newEdition = identityURI.getEdition();
-			if(identity.getEdition() > newEdition) {
-				if(logDEBUG) Logger.debug(this, "Fetched an older edition: current == " + identity.getEdition() + "; fetched == " + identityURI.getEdition());
+			final Identity identity = getIdentityToImport(xmlData);
+			if(identity == null)
 				return;
-			} else if(identity.getEdition() == newEdition) {
-				if(identity.getCurrentEditionFetchState() == FetchState.Fetched) {
-					if(logDEBUG) Logger.debug(this, "Fetched current edition which is marked as fetched already, not importing: " + identityURI);
-					return;
-				} else if(identity.getCurrentEditionFetchState() == FetchState.ParsingFailed) {
-					Logger.normal(this, "Re-fetched current-edition which was marked as parsing failed: " + identityURI);
-				}
-			}
-				
-			// We throw parse errors AFTER checking the edition number: If this XML was outdated anyway, we don't have to throw.
-			if(xmlData.parseError != null)
-				throw xmlData.parseError;
-				
 			
 			synchronized(Persistent.transactionLock(mDB)) {
 				try { // Transaction rollback block
-					identity.setEdition(newEdition); // The identity constructor only takes the edition number as a hint, so we must store it explicitly.
-					boolean didPublishTrustListPreviously = identity.doesPublishTrustList();
-					identity.setPublishTrustList(xmlData.identityPublishesTrustList);
-					
-					try {
-						identity.setNickname(xmlData.identityName);
-					}
-					catch(Exception e) {
-						/* Nickname changes are not allowed, ignore them... */
-						Logger.warning(this, "setNickname() failed.", e);
-					}
-	
-					try { /* Failure of context importing should not make an identity disappear, therefore we catch exceptions. */
-						identity.setContexts(xmlData.identityContexts);
-					}
-					catch(Exception e) {
-						Logger.warning(this, "setContexts() failed.", e);
-					}
-	
-					try { /* Failure of property importing should not make an identity disappear, therefore we catch exceptions. */
-						identity.setProperties(xmlData.identityProperties);
-					}
-					catch(Exception e) {
-						Logger.warning(this, "setProperties() failed", e);
-					}
-				
-					
-					mWoT.beginTrustListImport(); // We delete the old list if !identityPublishesTrustList and it did publish one earlier => we always call this. 
-					
-					if(xmlData.identityPublishesTrustList) {
-						// We import the trust list of an identity if it's score is equal to 0, but we only create new identities or import edition hints
-						// if the score is greater than 0. Solving a captcha therefore only allows you to create one single identity.
-						boolean positiveScore = false;
-						boolean hasCapacity = false;
-						
-						// TODO: getBestScore/getBestCapacity should always yield a positive result because we store a positive score object for an OwnIdentity
-						// upon creation. The only case where it could not exist might be restoreOwnIdentity() ... check that. If it is created there as well,
-						// remove the additional check here.
-						if(identity instanceof OwnIdentity) {
-							// Importing of OwnIdentities is always allowed
-							positiveScore = true;
-							hasCapacity = true;
-						} else {
-							try {
-								positiveScore = mWoT.getBestScore(identity) > 0;
-								hasCapacity = mWoT.getBestCapacity(identity) > 0;
-							}
-							catch(NotInTrustTreeException e) { }
-						}
-						
-						
-						HashSet<String>	identitiesWithUpdatedEditionHint = null;
-
-						if(positiveScore) {
-							identitiesWithUpdatedEditionHint = new HashSet<String>(xmlData.identityTrustList.size() * 2);
-						}
-
-						for(final ParsedIdentityXML.TrustListEntry trustListEntry : xmlData.identityTrustList) {
-							final FreenetURI trusteeURI = trustListEntry.mTrusteeURI;
-							final byte trustValue = trustListEntry.mTrustValue;
-							final String trustComment = trustListEntry.mTrustComment;
-
-							Identity trustee = null;
-							try {
-								trustee = mWoT.getIdentityByURI(trusteeURI);
-								if(positiveScore) {
-									if(trustee.setNewEditionHint(trusteeURI.getEdition())) {
-										identitiesWithUpdatedEditionHint.add(trustee.getID());
-										trustee.storeWithoutCommit();
-										
-										// We don't notify clients about this: The edition hint is not very useful to them.
-										// mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(trustee, trustee);
-									}
-								}
-							}
-							catch(UnknownIdentityException e) {
-								if(hasCapacity) { /* We only create trustees if the truster has capacity to rate them. */
-									try {
-										trustee = new Identity(mWoT, trusteeURI, null, false);
-										trustee.storeWithoutCommit();
-										mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(null, trustee);
-										Logger.normal(this, "New identity received via trust list: " + identity);
-									} catch(MalformedURLException urlEx) {
-										// Logging the exception does NOT log the actual malformed URL so we do it manually.
-										Logger.warning(this, "Received malformed identity URL: " + trusteeURI, urlEx);
-										throw urlEx;
-									}
-								}
-							}
-
-							if(trustee != null)
-								mWoT.setTrustWithoutCommit(identity, trustee, trustValue, trustComment); // Also takes care of SubscriptionManager
-						}
-
-						for(Trust trust : mWoT.getGivenTrustsOfDifferentEdition(identity, identityURI.getEdition())) {
-							mWoT.removeTrustWithoutCommit(trust); // Also takes care of SubscriptionManager
-						}
-
-						IdentityFetcher identityFetcher = mWoT.getIdentityFetcher();
-						if(positiveScore) {
-							for(String id : identitiesWithUpdatedEditionHint)
-								identityFetcher.storeUpdateEditionHintCommandWithoutCommit(id);
-
-							// We do not have to store fetch commands for new identities here, setTrustWithoutCommit does it.
-						}
-					} else if(!xmlData.identityPublishesTrustList && didPublishTrustListPreviously && !(identity instanceof OwnIdentity)) {
-						// If it does not publish a trust list anymore, we delete all trust values it has given.
-						for(Trust trust : mWoT.getGivenTrusts(identity))
-							mWoT.removeTrustWithoutCommit(trust); // Also takes care of SubscriptionManager
-					}
-
+					// We delete the old list if !identityPublishesTrustList and it did publish one
+					// earlier => we always call this.
+					mWoT.beginTrustListImport();
+					final Identity oldIdentity = importIdentityWithoutCommit(identity, xmlData);
 					mWoT.finishTrustListImport();
 					identity.onFetched(); // Marks the identity as parsed successfully
 					mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(oldIdentity, identity);
@@ -601,6 +708,286 @@ public final class XMLTransformer {
 			}
 		}
 	}
+	
+	/**
+	 * Imports multiple files which were parsed with
+	 * {@link #parseIdentityXML(FreenetURI, InputStream)} in a single transaction. This is much
+	 * faster than calling {@link #importIdentity(FreenetURI, InputStream)} for each of them:<br>
+	 * - The locks are only taken once.<br>
+	 * - There is only one commit, i.e. one fsync of the database.<br>
+	 * - All of them are imported in one {@link WebOfTrust#beginTrustListImport()} /
+	 *   {@link WebOfTrust#finishTrustListImport()} cycle, so if a full Score computation is
+	 *   needed, it happens only once instead of once per file.<br><br>
+	 * 
+	 * Files whose parsing failed, or which cannot be imported because their Identity is unknown,
+	 * are imported one by one after the transaction was committed, which will mark them as
+	 * {@link FetchState#ParsingFailed}.<br>
+	 * If the import of a file fails after it has modified the database, which would mostly happen
+	 * due to malformed trustee URIs, we cannot roll back only the changes of that file. So the
+	 * whole transaction is rolled back and all files are imported one by one instead.<br><br>
+	 * 
+	 * Notice: The checks whether a file shall be imported at all, and whether its trust list may
+	 * create new Identitys, use the Scores which are stored in the database. These will not
+	 * reflect Trusts of files earlier in the batch yet if those required a full Score
+	 * computation. This is the same as if the files had been processed in a different order, which
+	 * is fine: The order in which the {@link IdentityFetcher} fetches the files is random anyway.
+	 * The Scores themselves will be correct after the batch was imported.
+	 * 
+	 * @return True if all files were imported in a single transaction. False if the transaction
+	 *     had to be rolled back and the files were imported one by one. */
+	boolean importIdentities(List<ParsedIdentityXML> files) {
+		// Files which we will pass to importIdentity() after the transaction
+		final ArrayList<ParsedIdentityXML> deferredFiles = new ArrayList<ParsedIdentityXML>();
+		boolean success = true;
+		
+		synchronized(mWoT) {
+		synchronized(mWoT.getIdentityFetcher()) {
+		synchronized(mSubscriptionManager) {
+		synchronized(Persistent.transactionLock(mDB)) {
+			// Key = Identity ID. Values = The Identity before the first file of it was imported,
+			// and the Identity itself. A LinkedHashMap so the notifications are in import order.
+			// If a FIFO IdentityFileQueue passes multiple editions of the same Identity, the
+			// clients of the SubscriptionManager only need to know about the latest state.
+			final LinkedHashMap<String, Identity> oldIdentities
+				= new LinkedHashMap<String, Identity>(files.size() * 2);
+			final HashMap<String, Identity> importedIdentities
+				= new HashMap<String, Identity>(files.size() * 2);
+			
+			try {
+				mWoT.beginTrustListImport();
+				
+				for(ParsedIdentityXML xmlData : files) {
+					final Identity identity;
+					try {
+						identity = getIdentityToImport(xmlData);
+					} catch(Exception e) {
+						// Has not modified the database yet so there is no need to roll back.
+						deferredFiles.add(xmlData);
+						continue;
+					}
+					
+					if(identity == null)
+						continue;
+					
+					final Identity oldIdentity = importIdentityWithoutCommit(identity, xmlData);
+					final String id = identity.getID();
+					if(!oldIdentities.containsKey(id))
+						oldIdentities.put(id, oldIdentity);
+					importedIdentities.put(id, identity);
+				}
+				
+				mWoT.finishTrustListImport();
+				
+				for(Entry<String, Identity> entry : oldIdentities.entrySet()) {
+					final Identity identity = importedIdentities.get(entry.getKey());
+					identity.onFetched(); // Marks the identity as parsed successfully
+					mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(
+						entry.getValue(), identity);
+					identity.storeWithoutCommit();
+				}
+				
+				Persistent.checkedCommit(mDB, this);
+				
+				Logger.normal(this, "Finished XML import of " + oldIdentities.size()
+				                  + " identities in batch of " + files.size() + " files.");
+			} catch(Exception e) {
+				// Don't keep references to objects which were modified in the transaction:
+				// checkedRollback() relies on the garbage collector to get rid of them.
+				oldIdentities.clear();
+				importedIdentities.clear();
+				mWoT.abortTrustListImport(e, Logger.LogLevel.WARNING); // Does the rollback
+				success = false;
+			}
+		}}}}
+		
+		for(ParsedIdentityXML xmlData : (success ? deferredFiles : files))
+			importIdentity(xmlData);
+		
+		return success;
+	}
+	
+	/**
+	 * Checks whether the given parsed file shall be imported. Does not modify the database.
+	 * 
+	 * Synchronization: Must be called while holding the locks on the {@link WebOfTrust}, its
+	 * {@link IdentityFetcher} and {@link SubscriptionManager}.
+	 * 
+	 * @return The {@link Identity} to which the file belongs, or null if it shall not be imported.
+	 * @throws UnknownIdentityException If the Identity of the file does not exist.
+	 * @throws Exception The {@link ParsedIdentityXML#parseError}, if any, if the file would have
+	 *     been imported otherwise. */
+	private Identity getIdentityToImport(ParsedIdentityXML xmlData) throws Exception {
+		final FreenetURI identityURI = xmlData.identityURI;
+		final Identity identity = mWoT.getIdentityByURI(identityURI);
+		
+		// When shouldFetchIdentity() changes from true to false due to an identity becoming
+		// distrusted, this change will not cause the IdentityFetcher to abort the fetch
+		// immediately: It queues the command to abort the fetch, and processes commands after
+		// some seconds.
+		// Also, fetched identity files are enqueued for processing in an IdentityFileQueue, and
+		// might wait there for several minutes.
+		// Thus, it is possible that this function is called for an Identity which is not
+		// actually wanted anymore. So we must check whether the identity is really still
+		// wanted.
+        if(!mWoT.shouldFetchIdentity(identity)) {
+            Logger.normal(this,
+                "importIdentity() called for unwanted identity, probably because the "
+              + "IdentityFetcher has not processed the AbortFetchCommand yet or the "
+              + "file was in the IdentityFileQueue for some time, not importing: "
+              + identity);
+            return null;
+        }
+		
+		long newEdition = identityURI.getEdition();
+		if(identity.getEdition() > newEdition) {
+			if(logDEBUG) Logger.debug(this, "Fetched an older edition: current == " + identity.getEdition() + "; fetched == " + identityURI.getEdition());
+			return null;
+		} else if(identity.getEdition() == newEdition) {
+			if(identity.getCurrentEditionFetchState() == FetchState.Fetched) {
+				if(logDEBUG) Logger.debug(this, "Fetched current edition which is marked as fetched already, not importing: " + identityURI);
+				return null;
+			} else if(identity.getCurrentEditionFetchState() == FetchState.ParsingFailed) {
+				Logger.normal(this, "Re-fetched current-edition which was marked as parsing failed: " + identityURI);
+			}
+		}
+			
+		// We throw parse errors AFTER checking the edition number: If this XML was outdated anyway, we don't have to throw.
+		if(xmlData.parseError != null)
+			throw xmlData.parseError;
+		
+		return identity;
+	}
+	
+	/**
+	 * Imports the attributes and trust list of the given parsed file into the given
+	 * {@link Identity}, which must have been obtained using
+	 * {@link #getIdentityToImport(ParsedIdentityXML)}.<br>
+	 * Does not call {@link Identity#onFetched()} and does not store the Identity: The caller must
+	 * do that after {@link WebOfTrust#finishTrustListImport()}, and store a notification at the
+	 * {@link SubscriptionManager} using the returned clone.
+	 * 
+	 * Synchronization: Must be called inside of a {@link WebOfTrust#beginTrustListImport()} /
+	 * {@link WebOfTrust#finishTrustListImport()} cycle and thus with all of its locks held.
+	 * 
+	 * @return A clone of the Identity from before it was modified by this function. */
+	private Identity importIdentityWithoutCommit(Identity identity, ParsedIdentityXML xmlData)
+			throws Exception {
+		
+		final FreenetURI identityURI = xmlData.identityURI;
+		final Identity oldIdentity = identity.clone(); // For the SubscriptionManager
+		
+		Logger.normal(this, "Importing parsed XML for " + identity);
+		
+		identity.setEdition(identityURI.getEdition()); // The identity constructor only takes the edition number as a hint, so we must store it explicitly.
+		boolean didPublishTrustListPreviously = identity.doesPublishTrustList();
+		identity.setPublishTrustList(xmlData.identityPublishesTrustList);
+		
+		try {
+			identity.setNickname(xmlData.identityName);
+		}
+		catch(Exception e) {
+			/* Nickname changes are not allowed, ignore them... */
+			Logger.warning(this, "setNickname() failed.", e);
+		}
+
+		try { /* Failure of context importing should not make an identity disappear, therefore we catch exceptions. */
+			identity.setContexts(xmlData.identityContexts);
+		}
+		catch(Exception e) {
+			Logger.warning(this, "setContexts() failed.", e);
+		}
+
+		try { /* Failure of property importing should not make an identity disappear, therefore we catch exceptions. */
+			identity.setProperties(xmlData.identityProperties);
+		}
+		catch(Exception e) {
+			Logger.warning(this, "setProperties() failed", e);
+		}
+		
+		if(xmlData.identityPublishesTrustList) {
+			// We import the trust list of an identity if it's score is equal to 0, but we only create new identities or import edition hints
+			// if the score is greater than 0. Solving a captcha therefore only allows you to create one single identity.
+			boolean positiveScore = false;
+			boolean hasCapacity = false;
+			
+			// TODO: getBestScore/getBestCapacity should always yield a positive result because we store a positive score object for an OwnIdentity
+			// upon creation. The only case where it could not exist might be restoreOwnIdentity() ... check that. If it is created there as well,
+			// remove the additional check here.
+			if(identity instanceof OwnIdentity) {
+				// Importing of OwnIdentities is always allowed
+				positiveScore = true;
+				hasCapacity = true;
+			} else {
+				try {
+					positiveScore = mWoT.getBestScore(identity) > 0;
+					hasCapacity = mWoT.getBestCapacity(identity) > 0;
+				}
+				catch(NotInTrustTreeException e) { }
+			}
+			
+			
+			HashSet<String>	identitiesWithUpdatedEditionHint = null;
+
+			if(positiveScore) {
+				identitiesWithUpdatedEditionHint = new HashSet<String>(xmlData.identityTrustList.size() * 2);
+			}
+
+			for(final ParsedIdentityXML.TrustListEntry trustListEntry : xmlData.identityTrustList) {
+				final FreenetURI trusteeURI = trustListEntry.mTrusteeURI;
+				final byte trustValue = trustListEntry.mTrustValue;
+				final String trustComment = trustListEntry.mTrustComment;
+
+				Identity trustee = null;
+				try {
+					trustee = mWoT.getIdentityByURI(trusteeURI);
+					if(positiveScore) {
+						if(trustee.setNewEditionHint(trusteeURI.getEdition())) {
+							identitiesWithUpdatedEditionHint.add(trustee.getID());
+							trustee.storeWithoutCommit();
+							
+							// We don't notify clients about this: The edition hint is not very useful to them.
+							// mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(trustee, trustee);
+						}
+					}
+				}
+				catch(UnknownIdentityException e) {
+					if(hasCapacity) { /* We only create trustees if the truster has capacity to rate them. */
+						try {
+							trustee = new Identity(mWoT, trusteeURI, null, false);
+							trustee.storeWithoutCommit();
+							mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(null, trustee);
+							Logger.normal(this, "New identity received via trust list: " + identity);
+						} catch(MalformedURLException urlEx) {
+							// Logging the exception does NOT log the actual malformed URL so we do it manually.
+							Logger.warning(this, "Received malformed identity URL: " + trusteeURI, urlEx);
+							throw urlEx;
+						}
+					}
+				}
+
+				if(trustee != null)
+					mWoT.setTrustWithoutCommit(identity, trustee, trustValue, trustComment); // Also takes care of SubscriptionManager
+			}
+
+			for(Trust trust : mWoT.getGivenTrustsOfDifferentEdition(identity, identityURI.getEdition())) {
+				mWoT.removeTrustWithoutCommit(trust); // Also takes care of SubscriptionManager
+			}
+
+			IdentityFetcher identityFetcher = mWoT.getIdentityFetcher();
+			if(positiveScore) {
+				for(String id : identitiesWithUpdatedEditionHint)
+					identityFetcher.storeUpdateEditionHintCommandWithoutCommit(id);
+
+				// We do not have to store fetch commands for new identities here, setTrustWithoutCommit does it.
+			}
+		} else if(!xmlData.identityPublishesTrustList && didPublishTrustListPreviously && !(identity instanceof OwnIdentity)) {
+			// If it does not publish a trust list anymore, we delete all trust values it has given.
+			for(Trust trust : mWoT.getGivenTrusts(identity))
+				mWoT.removeTrustWithoutCommit(trust); // Also takes care of SubscriptionManager
+		}
+		
+		return oldIdentity;
+	}
 
 	public void exportIntroduction(OwnIdentity identity, OutputStream os) throws TransformerException {
 		Document xmlDoc;
@@ -9,6 +9,7 @@ import java.util.Arrays;
 import java.util.Date;
 import java.util.TimeZone;
 
+import plugins.WebOfTrust.DatabaseCompactor;
 import plugins.WebOfTrust.Identity;
 import plugins.WebOfTrust.Identity.IdentityID;
 import plugins.WebOfTrust.OwnIdentity;
@@ -465,6 +466,21 @@ public class IntroductionPuzzle extends Persistent implements ReallyCloneable<In
 		return copy;
 	}
 
+	/**
+	 * Same as {@link #clone()} except that the clone references the given copies of the inserter
+	 * and solver instead of new clones of them.<br>
+	 * Used by {@link DatabaseCompactor} so the puzzles of the compacted database can share its
+	 * copies of the Identitys.
+	 * @param solverCopy Null if the puzzle was not solved or has no solver. */
+	public IntroductionPuzzle clone(Identity inserterCopy, Identity solverCopy) {
+		final IntroductionPuzzle copy = new IntroductionPuzzle(mWebOfTrust, inserterCopy, getID(), getType(), getMimeType(), getData(), getDateOfInsertion(), getValidUntilDate(), getIndex());
+		copy.setCreationDate(getCreationDate());
+		if(wasSolved()) copy.setSolved((OwnIdentity)solverCopy, getSolution());
+		if(wasInserted()) copy.setInserted();
+		copy.initializeTransient(mWebOfTrust);
+		return copy;
+	}
+
 	@Override public IntroductionPuzzle cloneP() {
 		return clone();
 	}
@@ -1,6 +1,7 @@
 package plugins.WebOfTrust.introduction;
 
 import java.text.ParseException;
+import java.util.Collections;
 import java.util.Date;
 
 import plugins.WebOfTrust.Persistent.InitializingObjectSet;
@@ -112,7 +113,11 @@ public final class IntroductionPuzzleStore {
 	}
 	
 	/**
-	 * Delete puzzles which can no longer be solved because they have expired.
+	 * Delete puzzles which can no longer be solved because they have expired.<br>
+	 * The deletions are committed via
+	 * {@link Persistent#checkedCommitDeferred(ExtObjectContainer, Object, java.util.Collection)}:
+	 * They are re-applied if another transaction is rolled back before the commit. If they are
+	 * lost due to a crash, the next call deletes the puzzles again.
 	 */
 	protected synchronized void deleteExpiredPuzzles() {
 			final Query q = mDB.query();
@@ -127,7 +132,7 @@ public final class IntroductionPuzzleStore {
 				try {
 					if(logDEBUG) Logger.debug(this, "Deleting expired puzzle, was valid until " + p.getValidUntilDate());
 					p.deleteWithoutCommit();
-					Persistent.checkedCommit(mDB, this);
+					Persistent.checkedCommitDeferred(mDB, this, Collections.singletonList(p));
 					++deleted;					
 				} catch(RuntimeException e) {
 					Persistent.checkedRollback(mDB, this, e);
@@ -146,6 +151,7 @@ public final class IntroductionPuzzleStore {
 	 * Delete the oldest unsolved puzzles so that only an amount of <code>puzzlePoolSize</code> of unsolved puzzles is left.
 	 * 
 	 * Used by the introduction client to delete old puzzles and replace them with new ones.
+	 * The deletions are committed the same way as by {@link #deleteExpiredPuzzles()}.
 	 * 
 	 * @param puzzlePoolSize The amount of puzzles which should not be deleted.
 	 */
@@ -167,7 +173,8 @@ public final class IntroductionPuzzleStore {
 				synchronized(Persistent.transactionLock(mDB)) {
 				try {
 					puzzle.deleteWithoutCommit();
-					Persistent.checkedCommit(mDB, this);
+					Persistent.checkedCommitDeferred(mDB, this,
+						Collections.singletonList(puzzle));
 					deleteCount--;
 				}
 				catch(RuntimeException e) {
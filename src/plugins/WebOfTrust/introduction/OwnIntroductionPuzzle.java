@@ -145,6 +145,31 @@ public class OwnIntroductionPuzzle extends IntroductionPuzzle {
 		return copy;
 	}
 	
+	/**
+	 * Same as {@link #clone()} except that the clone references the given copies of the inserter
+	 * and solver instead of new clones of them.
+	 * @param solverCopy Null if the puzzle was not solved or has no solver. */
+	@Override
+	public OwnIntroductionPuzzle clone(Identity inserterCopy, Identity solverCopy) {
+		final OwnIntroductionPuzzle copy = new OwnIntroductionPuzzle(mWebOfTrust, (OwnIdentity)inserterCopy, getID(), getType(), getMimeType(), getData(), getSolution(), getDateOfInsertion(), getIndex());
+		
+		copy.setCreationDate(getCreationDate());
+		
+		// Before setSolved() as that one complains about non-inserted puzzles.
+		if(wasInserted()) copy.setInserted();
+		
+		if(wasSolved()) {
+			if(solverCopy != null)
+				copy.setSolved(solverCopy);
+			else
+				copy.setSolved();
+		}
+		
+		copy.initializeTransient(mWebOfTrust);
+		
+		return copy;
+	}
+	
 	@Override
 	public boolean equals(Object o) {
 		return super.equals(o);
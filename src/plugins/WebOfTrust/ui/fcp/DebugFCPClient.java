@@ -3,6 +3,7 @@ package plugins.WebOfTrust.ui.fcp;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
@@ -20,8 +21,6 @@ import plugins.WebOfTrust.ui.fcp.FCPClientReferenceImplementation.ChangeSet;
 import plugins.WebOfTrust.ui.fcp.FCPClientReferenceImplementation.EndSubscriptionSynchronizationHandler;
 import plugins.WebOfTrust.ui.fcp.FCPClientReferenceImplementation.SubscribedObjectChangedHandler;
 
-import com.db4o.ObjectSet;
-
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 
@@ -135,7 +134,7 @@ public final class DebugFCPClient implements FCPClientReferenceImplementation.Co
 		
 		Logger.normal(this, "terminate(): Amending edition hints...");
 		// Event-notifications does not propagate edition hints because that would cause a lot of traffic so we need to set them manually
-		final ObjectSet<Identity> allIdentities = mWebOfTrust.getAllIdentities();
+		final List<Identity> allIdentities = mWebOfTrust.getAllIdentities();
 		for(final Identity identity : allIdentities) {
 			final Identity received = mReceivedIdentities.get(identity.getID());
 			if(received == null)
@@ -152,7 +151,7 @@ public final class DebugFCPClient implements FCPClientReferenceImplementation.Co
 	}
 	
 	private <T extends Persistent> void validateAgainstDatabase(final Class<T> type,
-	        final ObjectSet<T> expectedSet, final HashMap<String, T> actualSet) {
+	        final List<T> expectedSet, final HashMap<String, T> actualSet) {
 
 		if(actualSet.size() != expectedSet.size()) {
 			Logger.error(this,
@@ -101,6 +101,11 @@ public final class FCPClientReferenceImplementation {
 	/** The amount of milliseconds after which assume the connection to WOT to be dead and try to reconnect */
 	private static final int WOT_PING_TIMEOUT_DELAY = 2*WOT_PING_DELAY;
 	
+	/**
+	 * The maximal amount of event-notifications which WOT shall send in a single
+	 * "NotificationBatch" FCP message, see {@link FCPNotificationBatchHandler}. */
+	private static final int MAX_NOTIFICATION_BATCH_SIZE = 64;
+	
 	/** The amount of milliseconds for waiting for "Unsubscribed" messages to arrive in {@link #stop()} */
 	private static final int SHUTDOWN_UNSUBSCRIBE_TIMEOUT = 3*1000;
 	
@@ -313,7 +318,8 @@ public final class FCPClientReferenceImplementation {
 				new FCPErrorHandler(),
 				new FCPBeginSynchronizationEventHandler(),
 				new FCPEndSynchronizationEventHandler(),
-				new FCPObjectChangedEventHandler()
+				new FCPObjectChangedEventHandler(),
+				new FCPNotificationBatchHandler()
 		};
 		
 		for(FCPMessageHandler handler : handlers)
@@ -707,6 +713,7 @@ public final class FCPClientReferenceImplementation {
 		final SimpleFieldSet sfs = new SimpleFieldSet(true);
 		sfs.putOverwrite("Message", "Subscribe");
 		sfs.putOverwrite("To", type.toString());
+		sfs.put("MaxNotificationBatchSize", MAX_NOTIFICATION_BATCH_SIZE);
 		send(sfs);
 	}
 	
@@ -790,9 +797,16 @@ public final class FCPClientReferenceImplementation {
 			    String errorMessage = "Message handler failed and requested passing the error to"
 			                        + " WOT, doing so: " + handler;
 				Logger.error(this, errorMessage, e);
-				return !message.isReplyMessage() ? FCPPluginMessage.constructErrorReply(
-				           message, "InternalError", errorMessage)
-				       : null;
+				
+				if(message.isReplyMessage())
+				    return null;
+				
+				final FCPPluginMessage reply = FCPPluginMessage.constructErrorReply(
+				    message, "InternalError", errorMessage);
+				// Tell WOT which notifications of a "NotificationBatch" it must not resend.
+				if(e.mAcknowledgedNotifications > 0)
+				    reply.params.put("Acknowledged", e.mAcknowledgedNotifications);
+				return reply;
 			} finally {
 				if(logMINOR) Logger.minor(this, "Handling message finished.");
 			}
@@ -834,8 +848,20 @@ public final class FCPClientReferenceImplementation {
 	 */
 	@SuppressWarnings("serial")
     public final class ProcessingFailedException extends Exception {
+		/**
+		 * If the failed message was a "NotificationBatch", the number of notifications at its
+		 * beginning which were processed successfully before the failure. 0 otherwise.
+		 * 
+		 * @see FCPNotificationBatchHandler */
+		private final int mAcknowledgedNotifications;
+		
 		public ProcessingFailedException(Throwable t) {
+			this(t, 0);
+		}
+		
+		ProcessingFailedException(Throwable t, int acknowledgedNotifications) {
 			super(t);
+			mAcknowledgedNotifications = acknowledgedNotifications;
 		}
 	}
 	
@@ -1094,6 +1120,53 @@ public final class FCPClientReferenceImplementation {
         }
 	}
 
+	/**
+	 * Handles the "NotificationBatch" message which WOT sends instead of the above event messages
+	 * because we requested batching when subscribing, see
+	 * {@link FCPClientReferenceImplementation#fcp_Subscribe(SubscriptionType)}.<br>
+	 * It contains multiple of the other event messages, which are passed to their handlers in
+	 * order. If one fails, the following ones are not processed, and WOT is told how many were
+	 * processed so it will resend exactly the remaining ones.
+	 * 
+	 * @see FCPInterface#sendNotificationBatch(UUID, java.util.List)
+	 */
+	private final class FCPNotificationBatchHandler implements FCPMessageHandler {
+		@Override
+		public String getMessageName() {
+			return "NotificationBatch";
+		}
+		
+		@Override
+		public void handle(final FCPPluginMessage message) throws ProcessingFailedException {
+			final int amount;
+			try {
+				amount = message.params.getInt("Amount");
+			} catch(FSParseException e) {
+				throw new ProcessingFailedException(e);
+			}
+			
+			for(int i = 0; i < amount; ++i) {
+				try {
+					final SimpleFieldSet notification
+					    = message.params.subset(Integer.toString(i));
+					final FCPMessageHandler handler
+					    = mFCPMessageHandlers.get(notification.get("Message"));
+					
+					// Only event notifications can be batched.
+					if(!(handler instanceof MaybeFailingFCPMessageHandler)) {
+						throw new UnsupportedOperationException(
+						    "Unexpected message in NotificationBatch: " + notification);
+					}
+					
+					((MaybeFailingFCPMessageHandler)handler)
+					    .handle_MaybeFailing(notification, null);
+				} catch(Throwable t) {
+					throw new ProcessingFailedException(t, i);
+				}
+			}
+		}
+	}
+
 	/**
 	 * Represents the data of a {@link SubscriptionManager.Notification}
 	 */
@@ -6,16 +6,23 @@ package plugins.WebOfTrust.ui.fcp;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
+import plugins.WebOfTrust.DatabaseProfiler;
 import plugins.WebOfTrust.EventSource;
 import plugins.WebOfTrust.Identity;
 import plugins.WebOfTrust.Identity.IdentityID;
 import plugins.WebOfTrust.OwnIdentity;
+import plugins.WebOfTrust.ReadSnapshot;
+import plugins.WebOfTrust.Persistent;
 import plugins.WebOfTrust.Score;
 import plugins.WebOfTrust.SubscriptionManager;
 import plugins.WebOfTrust.SubscriptionManager.BeginSynchronizationNotification;
@@ -43,6 +50,7 @@ import plugins.WebOfTrust.introduction.IntroductionPuzzle;
 import plugins.WebOfTrust.introduction.IntroductionPuzzle.PuzzleType;
 import plugins.WebOfTrust.introduction.IntroductionPuzzleStore;
 import plugins.WebOfTrust.ui.fcp.FCPClientReferenceImplementation.SubscriptionType;
+import plugins.WebOfTrust.ui.fcp.FCPRequestDispatcher.MessageTypeStatistics;
 import plugins.WebOfTrust.util.RandomName;
 import freenet.clients.fcp.FCPPluginConnection;
 import freenet.clients.fcp.FCPPluginMessage;
@@ -87,11 +95,39 @@ public final class FCPInterface
      */
     public static final int SUBSCRIPTION_NOTIFICATION_TIMEOUT_MINUTES = 1;
 
+    /**
+     * Default of the "Limit" field of "GetIdentities" / "GetTrusts" / "GetScores" if paging was
+     * requested by any of the other paging fields but "Limit" was not specified.<br>
+     * See {@link #handleGetIdentities(FCPPluginConnection, FCPPluginMessage)}.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 512;
+
+    /**
+     * Maximal value of the "Limit" field of paged queries, larger values are reduced to it.
+     * Bounds the size of a single page message.
+     */
+    public static final int MAX_PAGE_SIZE = 4096;
+
+    /**
+     * Timeout for the client's reply to a page of a paged query with "Stream" = "true".
+     * When this expires, the query is aborted.
+     */
+    public static final int PAGE_TIMEOUT_MINUTES = 1;
+
+    /** {@link #PAGE_TIMEOUT_MINUTES} in nanoseconds, can be lowered by unit tests with
+     *  {@link #setPageTimeout(long)}. */
+    private volatile long mPageTimeoutNanos = TimeUnit.MINUTES.toNanos(PAGE_TIMEOUT_MINUTES);
+
+    /** Maximal value of the "Trusts.Amount" field of "SetTrusts". */
+    public static final int MAX_SET_TRUSTS_AMOUNT = 4096;
+
     private final WebOfTrust mWoT;
     
     private final PluginRespirator mPluginRespirator;
     
     private final SubscriptionManager mSubscriptionManager;
+    
+    private final FCPRequestDispatcher mDispatcher;
 
     /** Automatically set to true by {@link Logger} if the log level is set to
      *  {@link LogLevel#MINOR} for this class.<br>
@@ -109,17 +145,31 @@ public final class FCPInterface
         mWoT = myWoT;
         mPluginRespirator = mWoT.getPluginRespirator();
         mSubscriptionManager = mWoT.getSubscriptionManager();
+        mDispatcher = new FCPRequestDispatcher(this);
     }
     
     /** TODO: Could be removed, is empty. */
     public void start() {}
     
+    /** For unit tests only: Overrides {@link #PAGE_TIMEOUT_MINUTES}. */
+    public void setPageTimeout(final long nanoseconds) {
+        mPageTimeoutNanos = nanoseconds;
+    }
+    
     public void stop() {
         // We currently do not have to interrupt() threads on functions of FCPInterface which use
         // FCPPluginConnection.sendSynchronous():
         // By their JavaDoc, they all require the caller to deal with interrupting the thread upon
         // shutdown and all callers are outside of this class (they're typically in
         // SubscriptionManager).
+        // The FCPRequestDispatcher threads do execute our message handling functions and thus
+        // must be interrupted.
+        mDispatcher.stop();
+    }
+    
+    /** @see FCPRequestDispatcher#getStatistics() */
+    public TreeMap<String, MessageTypeStatistics> getRequestStatistics() {
+        return mDispatcher.getStatistics();
     }
 
     /** {@inheritDoc} */
@@ -136,13 +186,42 @@ public final class FCPInterface
             return null;
         }
         
-
+        // Callers which don't provide a connection cannot receive replies asynchronously.
+        if(connection == null)
+            return handlePluginFCPMessageSynchronously(connection, fcpMessage);
+        
+        // Don't block the fred thread which delivered the message, and don't let one client
+        // starve the others. The dispatcher will send the reply.
+        mDispatcher.dispatch(connection, fcpMessage);
+        return null;
+    }
+    
+    /**
+     * Same as {@link #handlePluginFCPMessage(FCPPluginConnection, FCPPluginMessage)} except that
+     * the message is handled on the calling thread and the reply is returned instead of being
+     * sent by the {@link FCPRequestDispatcher}.<br>
+     * Used by the dispatcher, and for the legacy API and offline tools which cannot receive
+     * replies asynchronously.
+     * 
+     * @param connection May be null for the legacy API. Messages which require it will fail then.
+     */
+    public FCPPluginMessage handlePluginFCPMessageSynchronously(
+            FCPPluginConnection connection, FCPPluginMessage fcpMessage) {
+        
         final SimpleFieldSet params = fcpMessage.params;
         SimpleFieldSet result = null;
         FCPPluginMessage reply = null;
         
         try {
             final String message = params.get("Message");
+            
+            // The UI is read-only while the database is being verified after startup.
+            if(FCPRequestDispatcher.WRITE_MESSAGES.contains(message)
+                    && !mWoT.isStartupVerificationFinished()) {
+                return errorMessageFCP(fcpMessage, "StartingUp",
+                    "WOT is verifying its database after startup, please retry later.");
+            }
+            
             // TODO: Optimization: This should use a HashMap<String, HandleInterface> instead of zillions of equals()
             
             if (message.equals("GetTrust")) {
@@ -155,6 +234,8 @@ public final class FCPInterface
                 result = handleSetTrust(params);
             } else if (message.equals("RemoveTrust")) {
                 result = handleRemoveTrust(params);
+            } else if (message.equals("SetTrusts")) {
+                result = handleSetTrusts(params);
             } else if (message.equals("AddIdentity")) {
                 result = handleAddIdentity(params);
             } else if (message.equals("GetIdentity")) {
@@ -162,11 +243,11 @@ public final class FCPInterface
             } else if (message.equals("GetOwnIdentities")) {
                 result = handleGetOwnIdentities(params);
             } else if (message.equals("GetIdentities")) {
-                reply = handleGetIdentities(fcpMessage);
+                reply = handleGetIdentities(connection, fcpMessage);
             } else if (message.equals("GetTrusts")) {
-                reply = handleGetTrusts(fcpMessage);
+                reply = handleGetTrusts(connection, fcpMessage);
             } else if (message.equals("GetScores")) {
-                reply = handleGetScores(fcpMessage);
+                reply = handleGetScores(connection, fcpMessage);
             } else if (message.equals("GetIdentitiesByScore")) {
                 result = handleGetIdentitiesByScore(params);
             } else if (message.equals("GetTrusters")) {
@@ -201,6 +282,8 @@ public final class FCPInterface
                 result = handlePing();
             } else if (message.equals("RandomName")) {
                 result = handleRandomName(params);
+            } else if (message.equals("GetDatabaseProfile")) {
+                result = handleGetDatabaseProfile(params);
             } else {
                 throw new Exception("Unknown message (" + message + ")");
             }
@@ -275,7 +358,7 @@ public final class FCPInterface
                         "'Subscribe' message can only be used via the new plugin API. "
                       + "See PluginRespirator.connectToOtherPlugin()."));;
             } else {
-                result = handlePluginFCPMessage(null, message);
+                result = handlePluginFCPMessageSynchronously(null, message);
             }
             
             try {
@@ -295,6 +378,76 @@ public final class FCPInterface
         }
     }
 
+    /**
+     * The fields of {@link Identity}s / {@link Trust}s / {@link Score}s which a client wants to
+     * receive in reply to a query. See {@link #parseFieldSelection(SimpleFieldSet)}.
+     */
+    private static final class FieldSelection {
+        /** Selects all fields including the deprecated ones, i.e. the behavior of old clients. */
+        static final FieldSelection ALL = new FieldSelection(null, true);
+        
+        /** Names of the valid values of the "Fields" parameter. */
+        static final Set<String> VALID_FIELDS = new HashSet<String>(Arrays.asList(
+            // Identity
+            "Nickname", "RequestURI", "InsertURI", "ID", "VersionID", "PublishesTrustList",
+            "CurrentEditionFetchState", "Contexts", "Properties",
+            // Trust and Score, "VersionID" is listed above already
+            "Truster", "Trustee", "Value", "Comment", "TrusterEdition", "Capacity", "Rank"));
+        
+        /** Null if all fields are selected. */
+        private final Set<String> mFields;
+        
+        /** If false, fields which are only sent for old clients are omitted. */
+        final boolean includeDeprecated;
+        
+        FieldSelection(Set<String> fields, boolean includeDeprecated) {
+            mFields = fields;
+            this.includeDeprecated = includeDeprecated;
+        }
+        
+        boolean contains(String field) {
+            return mFields == null || mFields.contains(field);
+        }
+    }
+
+    /**
+     * Parses the following optional fields of query messages such as "GetIdentity",
+     * "GetIdentities", "GetIdentitiesByScore", "GetTrusters" and "GetTrustees":<br>
+     * "Fields" = Comma-separated list of the fields you want to receive for each object, for
+     * example "ID,Nickname,Value". By default, all fields are sent.<br>
+     * The names are the ones of the fields of the replies, see
+     * {@link #addIdentityFields(SimpleFieldSet, Identity, String, String, FieldSelection)},
+     * {@link #handleGetTrust(SimpleFieldSet, Trust, String, FieldSelection)} and
+     * {@link #handleGetScore(SimpleFieldSet, Score, String, FieldSelection)}. A name applies to
+     * all types of objects which have such a field, for example "Value" to both Trusts and
+     * Scores. The "Type" of Identitys is always sent.<br>
+     * "IncludeDeprecated" = "true" or "false". If false, the fields of the deprecated layouts of
+     * the replies are not sent. Defaults to false if "Fields" is specified, and to true
+     * otherwise to stay compatible with old clients.
+     * 
+     * @throws InvalidParameterException If "Fields" contains an unknown field name.
+     */
+    private FieldSelection parseFieldSelection(final SimpleFieldSet params)
+            throws InvalidParameterException {
+        
+        final String fieldsString = params.get("Fields");
+        final boolean includeDeprecated
+            = params.getBoolean("IncludeDeprecated", fieldsString == null);
+        
+        if(fieldsString == null)
+            return includeDeprecated ? FieldSelection.ALL : new FieldSelection(null, false);
+        
+        final HashSet<String> fields = new HashSet<String>();
+        for(String field : fieldsString.split(",")) {
+            field = field.trim();
+            if(!FieldSelection.VALID_FIELDS.contains(field))
+                throw new InvalidParameterException("Unknown field in Fields: " + field);
+            fields.add(field);
+        }
+        
+        return new FieldSelection(fields, includeDeprecated);
+    }
+
     private String getMandatoryParameter(final SimpleFieldSet sfs, final String name) throws InvalidParameterException {
     	final String result = sfs.get(name);
     	if(result == null)
@@ -345,28 +498,31 @@ public final class FCPInterface
     private SimpleFieldSet handleGetTrust(final SimpleFieldSet params) throws InvalidParameterException, UnknownIdentityException {
     	final String trusterID = getMandatoryParameter(params, "Truster");
     	final String trusteeID = getMandatoryParameter(params, "Trustee");
+    	final FieldSelection fields = parseFieldSelection(params);
     	
     	final SimpleFieldSet sfs = new SimpleFieldSet(true);
-        // TODO: Performance: The synchronized() can be removed after this is fixed:
-        // https://bugs.freenetproject.org/view.php?id=6247
-    	synchronized(mWoT) {
-            // getTrust() won't validate the IDs. Since we are a UI, it's better to do it:
-            // This will prevent getTrust() claiming that there is no trust due to invalid IDs.
-            IdentityID.constructAndValidateFromString(trusterID);
-            IdentityID.constructAndValidateFromString(trusteeID);
+        // getTrust() won't validate the IDs. Since we are a UI, it's better to do it:
+        // This will prevent getTrust() claiming that there is no trust due to invalid IDs.
+        IdentityID.constructAndValidateFromString(trusterID);
+        IdentityID.constructAndValidateFromString(trusteeID);
 
-    		Trust trust = null;
-    		try {
-                trust = mWoT.getTrust(trusterID, trusteeID);
-    		} catch(NotTrustedException e) {}
-    		
-    		handleGetTrust(sfs, trust, "0");
-    	}
+        // Don't synchronize upon mWoT: The ReadSnapshot is immutable.
+        Trust trust = null;
+        try {
+            trust = mWoT.getReadSnapshot().getTrust(trusterID, trusteeID);
+        } catch(NotTrustedException e) {}
+
+        handleGetTrust(sfs, trust, "0", fields);
     	sfs.putOverwrite("Message", "Trust");
     	return sfs;
     }
     
-    private SimpleFieldSet handleGetTrust(final SimpleFieldSet sfs, final Trust trust, String suffix) {
+    /**
+     * @param fields The fields to add, see {@link #parseFieldSelection(SimpleFieldSet)}. "Value"
+     *     is always added if the Trust is null as it then signals that it doesn't exist.
+     */
+    private SimpleFieldSet handleGetTrust(final SimpleFieldSet sfs, final Trust trust,
+            final String suffix, final FieldSelection fields) {
     	final String prefix = "Trusts." + suffix + ".";
     	
     	if(trust == null) {
@@ -374,12 +530,18 @@ public final class FCPInterface
     		return sfs;
     	}
     	
-		sfs.putOverwrite(prefix + "Truster", trust.getTruster().getID());
-		sfs.putOverwrite(prefix + "Trustee", trust.getTrustee().getID());
-		sfs.putOverwrite(prefix + "Value", Byte.toString(trust.getValue()));
-		sfs.putOverwrite(prefix + "Comment", trust.getComment());
-		sfs.put(prefix + "TrusterEdition", trust.getTrusterEdition());
-		sfs.putOverwrite(prefix + "VersionID", trust.getVersionID().toString());
+    	if(fields.contains("Truster"))
+    		sfs.putOverwrite(prefix + "Truster", trust.getTruster().getID());
+    	if(fields.contains("Trustee"))
+    		sfs.putOverwrite(prefix + "Trustee", trust.getTrustee().getID());
+    	if(fields.contains("Value"))
+    		sfs.putOverwrite(prefix + "Value", Byte.toString(trust.getValue()));
+    	if(fields.contains("Comment"))
+    		sfs.putOverwrite(prefix + "Comment", trust.getComment());
+    	if(fields.contains("TrusterEdition"))
+    		sfs.put(prefix + "TrusterEdition", trust.getTrusterEdition());
+    	if(fields.contains("VersionID"))
+    		sfs.putOverwrite(prefix + "VersionID", trust.getVersionID().toString());
 		
     	sfs.putOverwrite("Trusts.Amount", "1");
     	
@@ -389,25 +551,32 @@ public final class FCPInterface
     private SimpleFieldSet handleGetScore(final SimpleFieldSet params) throws UnknownIdentityException, InvalidParameterException {
     	final String trusterID = getMandatoryParameter(params, "Truster");
     	final String trusteeID = getMandatoryParameter(params, "Trustee");
+    	final FieldSelection fields = parseFieldSelection(params);
 
     	final SimpleFieldSet sfs = new SimpleFieldSet(true);
-        // TODO: Performance: The synchronized() can be removed after this is fixed:
-        // https://bugs.freenetproject.org/view.php?id=6247
-    	synchronized(mWoT) {
-    		Score score = null;
-    		try {
-        		// TODO: Optimize by implementing https://bugs.freenetproject.org/view.php?id=6076
-    			score = mWoT.getScore(mWoT.getOwnIdentityByID(trusterID), mWoT.getIdentityByID(trusteeID));
-     		} catch(NotInTrustTreeException e) {}
-    		
-    		handleGetScore(sfs, score, "0");
-    	}
+        // Don't synchronize upon mWoT: The ReadSnapshot is immutable.
+        final ReadSnapshot snapshot = mWoT.getReadSnapshot();
+        // Throw UnknownIdentityException if they don't exist.
+        snapshot.getOwnIdentityByID(trusterID);
+        snapshot.getIdentityByID(trusteeID);
+
+        Score score = null;
+        try {
+            score = snapshot.getScore(trusterID, trusteeID);
+        } catch(NotInTrustTreeException e) {}
+
+        handleGetScore(sfs, score, "0", fields);
 
     	sfs.putOverwrite("Message", "Score");
 		return sfs;
     }
     
-    private SimpleFieldSet handleGetScore(final SimpleFieldSet sfs, final Score score, final String suffix) {
+    /**
+     * @param fields The fields to add, see {@link #parseFieldSelection(SimpleFieldSet)}. "Value"
+     *     is always added if the Score is null as it then signals that it doesn't exist.
+     */
+    private SimpleFieldSet handleGetScore(final SimpleFieldSet sfs, final Score score,
+            final String suffix, final FieldSelection fields) {
     	final String prefix = "Scores." + suffix + ".";
     	
     	if(score == null) {
@@ -415,12 +584,18 @@ public final class FCPInterface
     		return sfs;
     	}
     	
-		sfs.putOverwrite(prefix + "Truster", score.getTruster().getID());
-		sfs.putOverwrite(prefix + "Trustee", score.getTrustee().getID());
-		sfs.putOverwrite(prefix + "Capacity", Integer.toString(score.getCapacity()));
-		sfs.putOverwrite(prefix + "Rank", Integer.toString(score.getRank()));
-		sfs.putOverwrite(prefix + "Value", Integer.toString(score.getScore()));
-		sfs.putOverwrite(prefix + "VersionID", score.getVersionID().toString());
+    	if(fields.contains("Truster"))
+    		sfs.putOverwrite(prefix + "Truster", score.getTruster().getID());
+    	if(fields.contains("Trustee"))
+    		sfs.putOverwrite(prefix + "Trustee", score.getTrustee().getID());
+    	if(fields.contains("Capacity"))
+    		sfs.putOverwrite(prefix + "Capacity", Integer.toString(score.getCapacity()));
+    	if(fields.contains("Rank"))
+    		sfs.putOverwrite(prefix + "Rank", Integer.toString(score.getRank()));
+    	if(fields.contains("Value"))
+    		sfs.putOverwrite(prefix + "Value", Integer.toString(score.getScore()));
+    	if(fields.contains("VersionID"))
+    		sfs.putOverwrite(prefix + "VersionID", score.getVersionID().toString());
 		
     	sfs.putOverwrite("Scores.Amount", "1");
     	
@@ -463,6 +638,98 @@ public final class FCPInterface
 		return sfs;
 	}
 
+    /**
+     * Handles the "SetTrusts" message, which applies multiple "SetTrust" / "RemoveTrust" of the
+     * same {@link OwnIdentity} in a single transaction, see
+     * {@link WebOfTrust#setTrusts(String, List)}. Use it instead of separate messages when you
+     * change many {@link Trust}s at once.<br><br>
+     * 
+     * Parameters:<br>
+     * "Truster" = ID of the OwnIdentity.<br>
+     * "Trusts.Amount" = Number of changes, at most {@link #MAX_SET_TRUSTS_AMOUNT}.<br>
+     * "Trusts.N.Trustee" = ID of the trustee of change number N, starting at 0.<br>
+     * "Trusts.N.Value" = The new value. If omitted or empty, the Trust is removed.<br>
+     * "Trusts.N.Comment" = The new comment. Optional, defaults to "".<br><br>
+     * 
+     * Reply: "Message" = "TrustsSet", "Truster" and "Trusts.Amount" as in the request, and for
+     * each change:<br>
+     * "Trusts.N.Trustee" = As in the request.<br>
+     * "Trusts.N.Result" = "Success", or if the change was not applied: "UnknownIdentity" if the
+     * trustee does not exist, "NotTrusted" if a Trust to remove does not exist, or
+     * "InvalidParameter" if the value or comment is invalid.<br>
+     * "Trusts.N.Description" = Error message if the Result is not "Success".<br>
+     * A change which fails doesn't prevent the others from being applied.
+     */
+    private SimpleFieldSet handleSetTrusts(final SimpleFieldSet params)
+            throws InvalidParameterException, UnknownIdentityException {
+        
+        final String trusterID = getMandatoryParameter(params, "Truster");
+        final int amount;
+        try {
+            amount = Integer.parseInt(getMandatoryParameter(params, "Trusts.Amount"));
+        } catch(NumberFormatException e) {
+            throw new InvalidParameterException("Trusts.Amount is not an integer");
+        }
+        if(amount < 0 || amount > MAX_SET_TRUSTS_AMOUNT) {
+            throw new InvalidParameterException(
+                "Trusts.Amount must be in range of 0 to " + MAX_SET_TRUSTS_AMOUNT);
+        }
+        
+        final ArrayList<WebOfTrust.TrustChange> changes
+            = new ArrayList<WebOfTrust.TrustChange>(amount);
+        // Changes whose value cannot be parsed are not passed to the WebOfTrust.
+        final Exception[] parseErrors = new Exception[amount];
+        for(int i = 0; i < amount; ++i) {
+            final String prefix = "Trusts." + i + ".";
+            final String trusteeID = getMandatoryParameter(params, prefix + "Trustee");
+            final String value = params.get(prefix + "Value");
+            final String comment = params.get(prefix + "Comment");
+            
+            try {
+                changes.add(new WebOfTrust.TrustChange(trusteeID,
+                    value == null || value.trim().equals("") ? null : Byte.valueOf(value.trim()),
+                    comment));
+            } catch(NumberFormatException e) {
+                parseErrors[i] = new InvalidParameterException("Invalid trust value: " + value);
+                changes.add(null);
+            }
+        }
+        
+        final ArrayList<WebOfTrust.TrustChange> validChanges
+            = new ArrayList<WebOfTrust.TrustChange>(amount);
+        for(WebOfTrust.TrustChange change : changes) {
+            if(change != null)
+                validChanges.add(change);
+        }
+        final Exception[] results = mWoT.setTrusts(trusterID, validChanges);
+        
+        final SimpleFieldSet sfs = new SimpleFieldSet(true);
+        sfs.putOverwrite("Message", "TrustsSet");
+        sfs.putOverwrite("Truster", trusterID);
+        sfs.put("Trusts.Amount", amount);
+        for(int i = 0, validIndex = 0; i < amount; ++i) {
+            final String prefix = "Trusts." + i + ".";
+            final Exception error = changes.get(i) != null ? results[validIndex++] : parseErrors[i];
+            
+            sfs.putOverwrite(prefix + "Trustee", params.get(prefix + "Trustee"));
+            if(error == null) {
+                sfs.putOverwrite(prefix + "Result", "Success");
+                continue;
+            }
+            
+            final String result;
+            if(error instanceof UnknownIdentityException)
+                result = "UnknownIdentity";
+            else if(error instanceof NotTrustedException)
+                result = "NotTrusted";
+            else
+                result = "InvalidParameter";
+            sfs.putOverwrite(prefix + "Result", result);
+            sfs.putOverwrite(prefix + "Description", error.getMessage());
+        }
+        return sfs;
+    }
+
     /**
      * NOTICE: The added identity will not be fetched unless you also add a positive {@link Trust} value from an {@link OwnIdentity} to it.
      * (An exception would be if another identity which is being fetched starts trusting the added identity at some point in the future)
@@ -489,20 +756,17 @@ public final class FCPInterface
     private SimpleFieldSet handleGetIdentity(final SimpleFieldSet params) throws InvalidParameterException, UnknownIdentityException {
     	final String trusterID = params.get("Truster");
     	final String identityID = getMandatoryParameter(params, "Identity");
+    	final FieldSelection fields = parseFieldSelection(params);
 
-    	final SimpleFieldSet sfs;
-    	
-        // We query two Identity objects from the database. Thus we must synchronize to ensure that
-        // the returned data is coherent - one of the two might be deleted meanwhile, or change
-        // from being an Identity to being an OwnIdentity.
-    	synchronized(mWoT) {
-    		final Identity identity = mWoT.getIdentityByID(identityID);
-    		final OwnIdentity truster = (trusterID != null ? mWoT.getOwnIdentityByID(trusterID) : null);
-    		
-    		sfs = handleGetIdentity(identity, truster);
-    		sfs.putOverwrite("Message", "Identity");
-    	}
-    	
+        // We query multiple objects. We don't need to synchronize upon mWoT to ensure that the
+        // returned data is coherent: All of them are queried from the same immutable snapshot.
+        final ReadSnapshot snapshot = mWoT.getReadSnapshot();
+        final Identity identity = snapshot.getIdentityByID(identityID);
+        final OwnIdentity truster
+            = (trusterID != null ? snapshot.getOwnIdentityByID(trusterID) : null);
+
+        final SimpleFieldSet sfs = handleGetIdentity(identity, truster, snapshot, fields);
+        sfs.putOverwrite("Message", "Identity");
 		return sfs;
 	}
     
@@ -510,30 +774,37 @@ public final class FCPInterface
      * Used as backend for:
      * - {@link #handleGetIdentity(SimpleFieldSet)}
      * - {@link #sendIdentityChangedNotification(String, IdentityChangedNotification)}
+     * 
+     * @param snapshot Is used to query the {@link Trust} and {@link Score} of the truster. May
+     *     be null if the truster is null.
+     * @param fields The fields to add, see {@link #parseFieldSelection(SimpleFieldSet)}.
      */
-    private SimpleFieldSet handleGetIdentity(final Identity identity, final OwnIdentity truster) {
+    private SimpleFieldSet handleGetIdentity(final Identity identity, final OwnIdentity truster,
+            final ReadSnapshot snapshot, final FieldSelection fields) {
     	final SimpleFieldSet sfs = new SimpleFieldSet(true);
     		
-           	// TODO: As of 2013-10-24, this is deprecated code to support old FCP clients.
-    	    // Remove it after some time. Also do not forget to remove the appropriate
-    	    // Stuff.DeprecatedField=true and Stuff.DeprecatedField=false in the rest of this
-    	    // function then.
-    		addIdentityFields(sfs, identity,"", "0");
-
-            // TODO: As of 2013-10-24, this is deprecated code to support old FCP clients.
-            // Remove it after some time. Also do not forget to remove the appropriate
-            // Stuff.DeprecatedField=true and Stuff.DeprecatedField=false in the rest of this
-            // function then.
-            addIdentityFields(sfs, identity,"", "");
-            
-            // The above two have both an empty prefix, and all non-deprecated stuff which this
-            // function adds has a well-defined prefix, so we can use "*.DeprecatedField" to mark
-            // the above two as deprecated by whitelisting the non-deprecated stuff with
-            // "WellDefinedPrefix.DeprecatedField=false"
-            if(logMINOR)
-                sfs.put("*.DeprecatedField", true);
+    		if(fields.includeDeprecated) {
+    		    // TODO: As of 2013-10-24, this is deprecated code to support old FCP clients.
+    		    // Remove it after some time. Also do not forget to remove the appropriate
+    		    // Stuff.DeprecatedField=true and Stuff.DeprecatedField=false in the rest of this
+    		    // function then.
+    		    addIdentityFields(sfs, identity,"", "0", fields);
+    		    
+    		    // TODO: As of 2013-10-24, this is deprecated code to support old FCP clients.
+    		    // Remove it after some time. Also do not forget to remove the appropriate
+    		    // Stuff.DeprecatedField=true and Stuff.DeprecatedField=false in the rest of this
+    		    // function then.
+    		    addIdentityFields(sfs, identity,"", "", fields);
+    		    
+    		    // The above two have both an empty prefix, and all non-deprecated stuff which this
+    		    // function adds has a well-defined prefix, so we can use "*.DeprecatedField" to
+    		    // mark the above two as deprecated by whitelisting the non-deprecated stuff with
+    		    // "WellDefinedPrefix.DeprecatedField=false"
+    		    if(logMINOR)
+    		        sfs.put("*.DeprecatedField", true);
+    		}
             
-            addIdentityFields(sfs, identity, "Identities.0.", "");
+            addIdentityFields(sfs, identity, "Identities.0.", "", fields);
             // Don't include the "0": The addIdentityFields will add a field Identities.Amount
             if(logMINOR)
                 sfs.put("Identities.*.DeprecatedField", false);
@@ -543,29 +814,31 @@ public final class FCPInterface
     			Score score = null;
     			
     			try {
-    				trust = mWoT.getTrust(truster, identity);
+    				trust = snapshot.getTrust(truster.getID(), identity.getID());
     			} catch(NotTrustedException e) {}
     			
     			try {
-    				score = mWoT.getScore(truster, identity);
+    				score = snapshot.getScore(truster.getID(), identity.getID());
     			} catch(NotInTrustTreeException e) {}
     			
-    			handleGetTrust(sfs, trust, "0");
+    			handleGetTrust(sfs, trust, "0", fields);
     			if(logMINOR)
     			    sfs.put("Trusts.*.DeprecatedField", false);
     			
-    			handleGetScore(sfs, score, "0");
+    			handleGetScore(sfs, score, "0", fields);
     			if(logMINOR)
     			    sfs.put("Scores.*.DeprecatedField", false);
     			
     			// No "DeprecatedField" entries needed for the following four, they all add them
     			// on their own already.
     			
-            	addTrustFields(sfs, trust, "0"); // TODO: As of 2013-10-25, this is deprecated code to support old FCP clients. Remove it after some time.
-            	addScoreFields(sfs, score, "0"); // TODO: As of 2013-10-25, this is deprecated code to support old FCP clients. Remove it after some time.
-            
-            	addTrustFields(sfs, trust, "");	// TODO: As of 2013-08-02, this is deprecated code to support old FCP clients. Remove it after some time.
-            	addScoreFields(sfs, score, ""); // TODO: As of 2013-08-02, this is deprecated code to support old FCP clients. Remove it after some time.
+    			if(fields.includeDeprecated) {
+    			    addTrustFields(sfs, trust, "0"); // TODO: As of 2013-10-25, this is deprecated code to support old FCP clients. Remove it after some time.
+    			    addScoreFields(sfs, score, "0"); // TODO: As of 2013-10-25, this is deprecated code to support old FCP clients. Remove it after some time.
+    			    
+    			    addTrustFields(sfs, trust, "");	// TODO: As of 2013-08-02, this is deprecated code to support old FCP clients. Remove it after some time.
+    			    addScoreFields(sfs, score, ""); // TODO: As of 2013-08-02, this is deprecated code to support old FCP clients. Remove it after some time.
+    			}
     		}
     	
 		return sfs;
@@ -615,87 +888,120 @@ public final class FCPInterface
      * @param identity The {@link Identity} to describe. Can be null to signal that the identity does not exist anymore.
      * @param prefix Added as descriptor for possibly multiple identities. Empty string is special case as explained in the function description.
      * @param suffix Added as descriptor for possibly multiple identities. Empty string is special case as explained in the function description.
+     * @param fields
+     *     The fields to add, see {@link #parseFieldSelection(SimpleFieldSet)}. "Type" is always
+     *     added. "Contexts" / "Properties" select all of the above context / property fields.
+     *     If {@link FieldSelection#includeDeprecated} is false, the "Identity" field and the
+     *     deprecated context / property fields are not added.
      */
-    private void addIdentityFields(SimpleFieldSet sfs, Identity identity, final String prefix, String suffix) {
+    private void addIdentityFields(SimpleFieldSet sfs, Identity identity, final String prefix,
+            String suffix, final FieldSelection fields) {
     	if(identity == null) {
     		sfs.putOverwrite(prefix + "Type" + suffix, "Nonexistent");
     		return;
     	}
     	
     	sfs.putOverwrite(prefix + "Type" + suffix, (identity instanceof OwnIdentity) ? "OwnIdentity" : "Identity");
-        sfs.putOverwrite(prefix + "Nickname" + suffix, identity.getNickname());
-        sfs.putOverwrite(prefix + "RequestURI" + suffix, identity.getRequestURI().toString());
+    	if(fields.contains("Nickname"))
+    		sfs.putOverwrite(prefix + "Nickname" + suffix, identity.getNickname());
+    	if(fields.contains("RequestURI"))
+    		sfs.putOverwrite(prefix + "RequestURI" + suffix, identity.getRequestURI().toString());
         
-        sfs.putOverwrite(prefix + "Identity" + suffix, identity.getID()); // TODO: As of 2013-09-11, this is legacy code to support old FCP clients. Remove it after some time.
-        if(logMINOR)
-            sfs.put(prefix + "Identity" + suffix + ".DeprecatedField", true);
+        if(fields.includeDeprecated && fields.contains("ID")) {
+            sfs.putOverwrite(prefix + "Identity" + suffix, identity.getID()); // TODO: As of 2013-09-11, this is legacy code to support old FCP clients. Remove it after some time.
+            if(logMINOR)
+                sfs.put(prefix + "Identity" + suffix + ".DeprecatedField", true);
+        }
         
- 		sfs.putOverwrite(prefix + "ID" + suffix, identity.getID());
- 		sfs.putOverwrite(prefix + "VersionID" + suffix, identity.getVersionID().toString());
+    	if(fields.contains("ID"))
+    		sfs.putOverwrite(prefix + "ID" + suffix, identity.getID());
+    	if(fields.contains("VersionID"))
+    		sfs.putOverwrite(prefix + "VersionID" + suffix, identity.getVersionID().toString());
  		
-        sfs.put(prefix + "PublishesTrustList" + suffix, identity.doesPublishTrustList());
+    	if(fields.contains("PublishesTrustList"))
+    		sfs.put(prefix + "PublishesTrustList" + suffix, identity.doesPublishTrustList());
 
- 		if(identity instanceof OwnIdentity) {
+ 		if(identity instanceof OwnIdentity && fields.contains("InsertURI")) {
  			OwnIdentity ownId = (OwnIdentity)identity;
  			sfs.putOverwrite(prefix + "InsertURI" + suffix, ownId.getInsertURI().toString());
  		}
-        sfs.putOverwrite(prefix + "CurrentEditionFetchState" + suffix, identity.getCurrentEditionFetchState().toString());
+    	if(fields.contains("CurrentEditionFetchState"))
+    		sfs.putOverwrite(prefix + "CurrentEditionFetchState" + suffix, identity.getCurrentEditionFetchState().toString());
         
- 		final ArrayList<String> contexts = identity.getContexts();
- 		final HashMap<String, String> properties = identity.getProperties();
- 		
-        if (suffix.isEmpty()) {	 // Deprecated
-     		int contextCounter = 0;
-     		int propertyCounter = 0;
-     		
-            for(String context : contexts) {
-                sfs.putOverwrite(prefix + "Context" + contextCounter++, context);
-            }
-            if(logMINOR)
-                sfs.put(prefix + "Context*.DeprecatedField", true);
-            
-            for (Entry<String, String> property : properties.entrySet()) {
-                sfs.putOverwrite(prefix + "Property" + propertyCounter + ".Name", property.getKey());
-                sfs.putOverwrite(prefix + "Property" + propertyCounter++ + ".Value", property.getValue());
-            }
-            if(logMINOR)
-                sfs.put(prefix + "Property*.*.DeprecatedField", true);
-        } else { // Deprecated
-     		int contextCounter = 0;
-     		int propertyCounter = 0;
-     		
-        	for(String context : contexts) {
-                sfs.putOverwrite(prefix + "Contexts" + suffix + ".Context" + contextCounter++, context);
-            }
-        	
-        	if(logMINOR)
-        	    sfs.put(prefix + "Contexts" + suffix + ".Context*.DeprecatedField", true);
+        sfs.putOverwrite("Identities.Amount", "1");
+        
+        // Don't clone the contexts / properties if they aren't wanted, it's expensive.
+        if(fields.contains("Contexts"))
+            addContextFields(sfs, identity.getContexts(), prefix, suffix, fields);
+        if(fields.contains("Properties"))
+            addPropertyFields(sfs, identity.getProperties(), prefix, suffix, fields);
+    }
+
+    /** Adds the context fields of {@link #addIdentityFields(SimpleFieldSet, Identity, String,
+     *  String, FieldSelection)}. */
+    private void addContextFields(SimpleFieldSet sfs, final ArrayList<String> contexts,
+            final String prefix, final String suffix, final FieldSelection fields) {
+        
+        if(fields.includeDeprecated) {
+            int contextCounter = 0;
             
-            for (Entry<String, String> property : properties.entrySet()) {
-                sfs.putOverwrite(prefix + "Properties" + suffix + ".Property" + propertyCounter + ".Name", property.getKey());
-                sfs.putOverwrite(prefix + "Properties" + suffix + ".Property" + propertyCounter++ + ".Value", property.getValue());
+            if (suffix.isEmpty()) {	 // Deprecated
+                for(String context : contexts) {
+                    sfs.putOverwrite(prefix + "Context" + contextCounter++, context);
+                }
+                if(logMINOR)
+                    sfs.put(prefix + "Context*.DeprecatedField", true);
+            } else { // Deprecated
+                for(String context : contexts) {
+                    sfs.putOverwrite(prefix + "Contexts" + suffix + ".Context" + contextCounter++, context);
+                }
+                if(logMINOR)
+                    sfs.put(prefix + "Contexts" + suffix + ".Context*.DeprecatedField", true);
             }
-            
-            if(logMINOR)
-                sfs.put(prefix + "Properties" + suffix + ".Property*.*.DeprecatedField", true);
         }
         
  		int contextCounter = 0;
- 		int propertyCounter = 0;
         
     	for(String context : contexts) { // Non-deprecated
             sfs.putOverwrite(prefix + "Contexts." + contextCounter++ + ".Name", context);
         }
         
+        sfs.put(prefix + "Contexts" + suffix + ".Amount", contextCounter);
+    }
+
+    /** Adds the property fields of {@link #addIdentityFields(SimpleFieldSet, Identity, String,
+     *  String, FieldSelection)}. */
+    private void addPropertyFields(SimpleFieldSet sfs, final HashMap<String, String> properties,
+            final String prefix, final String suffix, final FieldSelection fields) {
+        
+        if(fields.includeDeprecated) {
+            int propertyCounter = 0;
+            
+            if (suffix.isEmpty()) {	 // Deprecated
+                for (Entry<String, String> property : properties.entrySet()) {
+                    sfs.putOverwrite(prefix + "Property" + propertyCounter + ".Name", property.getKey());
+                    sfs.putOverwrite(prefix + "Property" + propertyCounter++ + ".Value", property.getValue());
+                }
+                if(logMINOR)
+                    sfs.put(prefix + "Property*.*.DeprecatedField", true);
+            } else { // Deprecated
+                for (Entry<String, String> property : properties.entrySet()) {
+                    sfs.putOverwrite(prefix + "Properties" + suffix + ".Property" + propertyCounter + ".Name", property.getKey());
+                    sfs.putOverwrite(prefix + "Properties" + suffix + ".Property" + propertyCounter++ + ".Value", property.getValue());
+                }
+                if(logMINOR)
+                    sfs.put(prefix + "Properties" + suffix + ".Property*.*.DeprecatedField", true);
+            }
+        }
+        
+ 		int propertyCounter = 0;
+        
         for (Entry<String, String> property : properties.entrySet()) { // Non-deprecated
             sfs.putOverwrite(prefix + "Properties." + propertyCounter + ".Name", property.getKey());
             sfs.putOverwrite(prefix + "Properties." + propertyCounter++ + ".Value", property.getValue());
         }
         
-        sfs.put(prefix + "Contexts" + suffix + ".Amount", contextCounter);
         sfs.put(prefix + "Properties" + suffix + ".Amount", propertyCounter);
-        
-        sfs.putOverwrite("Identities.Amount", "1");
     }
     
     /**
@@ -783,81 +1089,323 @@ public final class FCPInterface
 		return sfs;
     }
 
-    private FCPPluginMessage handleGetIdentities(final FCPPluginMessage request) {
-        final FCPPluginMessage result = FCPPluginMessage.constructSuccessReply(request);
+    /**
+     * Handles the "GetIdentities" message, which queries all {@link Identity}s.<br><br>
+     * 
+     * <b>Optional fields:</b><br>
+     * "Context" = Only return Identitys which have the given context.<br>
+     * The following fields enable paging, see below. If none of them is specified, the whole
+     * result is returned in a single reply, for which the database is locked during the whole
+     * query. This can take a long time and create a very large message, so new clients should
+     * use paging:<br>
+     * "Limit" = Maximal number of Identitys per page, default {@link #DEFAULT_PAGE_SIZE}, at most
+     * {@link #MAX_PAGE_SIZE}.<br>
+     * "Offset" = Number of Identitys to skip before the page. Default 0.<br>
+     * "Continuation" = The value of the same field of the previous page, to fetch the next page.
+     * <br>
+     * "Stream" = "true" or "false", default "false". If true, the whole result is sent as a
+     * series of pages, see below.<br>
+     * "Fields" and "IncludeDeprecated" = Select which fields of each object you want to receive,
+     * see {@link #parseFieldSelection(SimpleFieldSet)}. Not selecting the contexts and
+     * properties and the deprecated fields makes the reply a lot smaller.<br><br>
+     * 
+     * <b>Reply:</b><br>
+     * "Message" = "Identities"<br>
+     * "Identities.Amount" = Number of Identitys in the reply.<br>
+     * "Identities.0.", "Identities.1.", ... = Prefixes of the Identitys, see
+     * {@link #addIdentityFields(SimpleFieldSet, Identity, String, String, FieldSelection)}.<br>
+     * "Continuation" = Only present when paging if there are more results. Pass it to the next
+     * "GetIdentities" message to get the next page, along with the same "Context" and "Limit"
+     * as before. It is an opaque String, don't make any assumptions about it.<br><br>
+     * 
+     * <b>Paging:</b><br>
+     * The results are sorted by ID. Each page is taken separately, so other operations of WOT
+     * can execute between pages. This also means that the pages together are not a consistent
+     * snapshot of the database: Identitys which are added or deleted while paging may or may not
+     * be included, all others are returned exactly once. If you need a consistent view, use
+     * {@link #handleSubscribe(FCPPluginConnection, FCPPluginMessage)} instead.<br><br>
+     * 
+     * <b>Streaming:</b><br>
+     * If "Stream" = "true", all pages except the last are sent as separate, non-reply messages in
+     * the above format. Additionally, each contains "RequestIdentifier" = the
+     * {@link FCPPluginMessage#identifier} of your "GetIdentities" message, and "Page" = the index
+     * of the page starting at 0. You must reply to each with {@link FCPPluginMessage#success} =
+     * true before the next page is sent. The last page is the regular reply and contains no
+     * "Continuation" field, and its "Page" field tells the index of it.<br>
+     * If you reply with success = false, do not reply within {@link #PAGE_TIMEOUT_MINUTES}, or
+     * the page cannot be delivered, the regular reply will be an error message with
+     * {@link FCPPluginMessage#errorCode} = "StreamAborted". It contains the "Offset" and, unless
+     * the first page of a query without "Continuation" failed, the "Continuation" field: Pass
+     * them to a new query to resume at the page which failed. Without a "Continuation", the
+     * query thus restarts at the beginning, skipping the same amount of Identitys as the failed
+     * query did.<br>
+     * Streaming is only available via the new plugin FCP API, see
+     * {@link FCPPluginConnection}.
+     */
+    private FCPPluginMessage handleGetIdentities(final FCPPluginConnection connection,
+            final FCPPluginMessage request)
+                throws InvalidParameterException, IOException, InterruptedException {
         
-        result.params.putOverwrite("Message", "Identities");
-		
         final String context = request.params.get("Context");
+        final boolean getAll = context == null || context.equals("");
+        final FieldSelection fields = parseFieldSelection(request.params);
         
-        // WebOfTrust.getAllIdentities() demands that we synchronize while processing the result.
-		synchronized(mWoT) {
-			final boolean getAll = context == null || context.equals("");
-	
-			int i = 0;
-			for(final Identity identity : mWoT.getAllIdentities()) {
-				if(getAll || identity.hasContext(context)) {
-					// TODO: Allow the client to select what data he wants
-                    addIdentityFields(result.params, identity,
-                        "Identities." + Integer.toString(i) + ".", "");
-					
-					++i;
-				}
-			}
-            
-            // Need to use Overwrite because addIdentityFields() sets it to 1
-            result.params.putOverwrite("Identities.Amount", Integer.toString(i));
-		}
-		
-        return result;
+        return handlePagedQuery(connection, request, "Identities", Identity.class,
+            new PageWriter<Identity>() {
+                @Override public boolean accept(Identity identity) {
+                    return getAll || identity.hasContext(context);
+                }
+                
+                @Override public void add(SimpleFieldSet sfs, Identity identity, int index) {
+                    addIdentityFields(sfs, identity, "Identities." + Integer.toString(index) + ".",
+                        "", fields);
+                }
+            });
     }
 
-    private FCPPluginMessage handleGetTrusts(final FCPPluginMessage request) {
-        final FCPPluginMessage result = FCPPluginMessage.constructSuccessReply(request);
+    /**
+     * Handles the "GetTrusts" message, which queries all {@link Trust}s.<br>
+     * Same as {@link #handleGetIdentities(FCPPluginConnection, FCPPluginMessage)} except for:<br>
+     * - There is no "Context" field.<br>
+     * - "Message" = "Trusts". The Trusts are formatted as by
+     *   {@link #handleGetTrust(SimpleFieldSet, Trust, String, FieldSelection)}, with
+     *   "Trusts.Amount" as the
+     *   number of Trusts.
+     */
+    private FCPPluginMessage handleGetTrusts(final FCPPluginConnection connection,
+            final FCPPluginMessage request)
+                throws InvalidParameterException, IOException, InterruptedException {
         
-        result.params.putOverwrite("Message", "Trusts");
-   
-        // WebOfTrust.getAllTrusts() demands that we synchronize while processing the result.
-        synchronized(mWoT) {
-        	int i = 0;
-			for(final Trust trust : mWoT.getAllTrusts()) {
-                handleGetTrust(result.params, trust, Integer.toString(i));
-				++i;
-			}
+        final FieldSelection fields = parseFieldSelection(request.params);
+        
+        return handlePagedQuery(connection, request, "Trusts", Trust.class,
+            new PageWriter<Trust>() {
+                @Override public boolean accept(Trust trust) {
+                    return true;
+                }
+                
+                @Override public void add(SimpleFieldSet sfs, Trust trust, int index) {
+                    handleGetTrust(sfs, trust, Integer.toString(index), fields);
+                }
+            });
+    }
+
+    /**
+     * Handles the "GetScores" message, which queries all {@link Score}s.<br>
+     * Same as {@link #handleGetTrusts(FCPPluginConnection, FCPPluginMessage)} except for
+     * "Message" = "Scores" and the Scores being formatted as by
+     * {@link #handleGetScore(SimpleFieldSet, Score, String, FieldSelection)}, with "Scores.Amount"
+     * as the number
+     * of Scores.
+     */
+    private FCPPluginMessage handleGetScores(final FCPPluginConnection connection,
+            final FCPPluginMessage request)
+                throws InvalidParameterException, IOException, InterruptedException {
+        
+        final FieldSelection fields = parseFieldSelection(request.params);
+        
+        return handlePagedQuery(connection, request, "Scores", Score.class,
+            new PageWriter<Score>() {
+                @Override public boolean accept(Score score) {
+                    return true;
+                }
+                
+                @Override public void add(SimpleFieldSet sfs, Score score, int index) {
+                    handleGetScore(sfs, score, Integer.toString(index), fields);
+                }
+            });
+    }
+
+    /** Formats the objects of {@link #handlePagedQuery(FCPPluginConnection, FCPPluginMessage,
+     *  String, Class, PageWriter)}. */
+    private interface PageWriter<T extends Persistent> {
+        /** @return False if the object shall not be included in the result. */
+        boolean accept(T object);
+        
+        /** Adds the given object to the given params as the index-th object of the page. */
+        void add(SimpleFieldSet sfs, T object, int index);
+    }
+
+    /**
+     * Implementation of "GetIdentities" / "GetTrusts" / "GetScores", see
+     * {@link #handleGetIdentities(FCPPluginConnection, FCPPluginMessage)}.
+     * 
+     * @param type
+     *     "Identities", "Trusts" or "Scores". Used as "Message" of the reply, and as prefix of the
+     *     "Amount" field.
+     */
+    private <T extends Persistent> FCPPluginMessage handlePagedQuery(
+            final FCPPluginConnection connection, final FCPPluginMessage request,
+            final String type, final Class<T> clazz, final PageWriter<T> writer)
+                throws InvalidParameterException, IOException, InterruptedException {
+        
+        final SimpleFieldSet params = request.params;
+        final boolean paging = params.get("Limit") != null || params.get("Offset") != null
+            || params.get("Continuation") != null || params.get("Stream") != null;
+        
+        if(!paging) {
+            final FCPPluginMessage result = FCPPluginMessage.constructSuccessReply(request);
+            result.params.putOverwrite("Message", type);
             
-            // Need to use Overwrite because handleGetTrust() sets it to 1
-            result.params.putOverwrite("Trusts.Amount", Integer.toString(i));
+            // WebOfTrust.getAll*() demands that we synchronize while processing the result.
+            synchronized(mWoT) {
+                addPage(result.params, type, clazz, null, 0, Integer.MAX_VALUE, writer);
+            }
+            return result;
         }
         
-        return result;
+        final int limit = Math.min(getIntegerParameter(params, "Limit", DEFAULT_PAGE_SIZE, 1),
+            MAX_PAGE_SIZE);
+        int offset = getIntegerParameter(params, "Offset", 0, 0);
+        final boolean stream = Boolean.parseBoolean(params.get("Stream"));
+        String continuation = params.get("Continuation");
+        
+        if(stream && connection == null) {
+            throw new UnsupportedOperationException(
+                "'Stream' can only be used via the new plugin API. "
+              + "See PluginRespirator.connectToOtherPlugin().");
+        }
+        
+        for(int page = 0; ; ++page) {
+            final FCPPluginMessage result = FCPPluginMessage.constructSuccessReply(request);
+            result.params.putOverwrite("Message", type);
+            
+            // Where the page starts, for resuming at it if it fails.
+            final int pageOffset = offset;
+            final String nextContinuation;
+            // Only lock for a single page so other threads can execute in between.
+            synchronized(mWoT) {
+                nextContinuation
+                    = addPage(result.params, type, clazz, continuation, offset, limit, writer);
+            }
+            offset = 0; // addPage() has skipped them already
+            
+            if(stream)
+                result.params.put("Page", page);
+            
+            if(nextContinuation != null)
+                result.params.putOverwrite("Continuation", nextContinuation);
+            
+            if(!stream || nextContinuation == null)
+                return result;
+            
+            // Not a reply: The reply is sent when returning, which marks the end of the stream.
+            final FCPPluginMessage pageMessage = FCPPluginMessage.construct(result.params, null);
+            pageMessage.params.putOverwrite("RequestIdentifier", request.identifier);
+            
+            final FCPPluginMessage pageReply;
+            try {
+                pageReply = connection.sendSynchronous(pageMessage, mPageTimeoutNanos);
+            } catch(IOException e) {
+                // The timeout expired, or the client disconnected. In the latter case the reply
+                // cannot be delivered either, which is harmless.
+                return streamAbortedMessage(request,
+                    "Sending page " + page + " failed: " + e, continuation, pageOffset);
+            }
+            
+            if(!pageReply.success) {
+                return streamAbortedMessage(request,
+                    "Client replied to page " + page + " with failure", continuation, pageOffset);
+            }
+            
+            continuation = nextContinuation;
+        }
+    }
+    
+    /**
+     * @return The "StreamAborted" reply of {@link #handlePagedQuery(FCPPluginConnection,
+     *     FCPPluginMessage, String, Class, PageWriter)}, with the "Continuation" (if non-null)
+     *     and "Offset" at which the page which failed started.
+     */
+    private FCPPluginMessage streamAbortedMessage(final FCPPluginMessage request,
+            final String errorMessage, final String continuation, final int offset) {
+        
+        final FCPPluginMessage error = errorMessageFCP(request, "StreamAborted", errorMessage);
+        if(continuation != null)
+            error.params.putOverwrite("Continuation", continuation);
+        error.params.put("Offset", offset);
+        return error;
     }
 
-    private FCPPluginMessage handleGetScores(final FCPPluginMessage request) {
-        final FCPPluginMessage result = FCPPluginMessage.constructSuccessReply(request);
-       
-        result.params.putOverwrite("Message", "Scores");
-   
-        // WebOfTrust.getAllScores() demands that we synchronize while processing the result.
-        synchronized(mWoT) {
-        	int i = 0;
-			for(final Score score: mWoT.getAllScores()) {
-                handleGetScore(result.params, score, Integer.toString(i));
-				
-				++i;
-			}
+    /**
+     * Adds a single page of a paged query to the given params.<br>
+     * You must synchronize on the {@link WebOfTrust} when calling this.
+     * 
+     * @param continuation See {@link WebOfTrust#getAllSortedByID(Class, String)}, null to start at
+     *     the beginning.
+     * @param offset Number of accepted objects to skip before the page.
+     * @param limit Maximal number of objects of the page.
+     * @return The "Continuation" for the next page, or null if there are no more objects.
+     */
+    private <T extends Persistent> String addPage(final SimpleFieldSet sfs, final String type,
+            final Class<T> clazz, final String continuation, int offset, final int limit,
+            final PageWriter<T> writer) {
+        
+        int i = 0;
+        String lastID = null;
+        String nextContinuation = null;
+        
+        for(final T object : mWoT.getAllSortedByID(clazz, continuation)) {
+            if(!writer.accept(object))
+                continue;
+            
+            if(offset > 0) {
+                --offset;
+                continue;
+            }
             
-            // Need to use Overwrite because handleGetScore() sets it to 1
-            result.params.putOverwrite("Scores.Amount", Integer.toString(i));
+            if(i == limit) {
+                // There are more objects: The next page starts after the last one of this page.
+                nextContinuation = lastID;
+                break;
+            }
+            
+            writer.add(sfs, object, i);
+            lastID = object.getID();
+            ++i;
         }
         
-        return result;
+        // Need to use Overwrite because the writer may have set it to 1
+        sfs.putOverwrite(type + ".Amount", Integer.toString(i));
+        return nextContinuation;
     }
 
+    /**
+     * @return The value of the given field as an integer, or the default value if the field is not
+     *     specified.
+     * @throws InvalidParameterException If the value is not an integer or less than the minimum.
+     */
+    private int getIntegerParameter(final SimpleFieldSet sfs, final String name,
+            final int defaultValue, final int minimum) throws InvalidParameterException {
+        
+        final String string = sfs.get(name);
+        if(string == null)
+            return defaultValue;
+        
+        final int value;
+        try {
+            value = Integer.parseInt(string);
+        } catch(NumberFormatException e) {
+            throw new InvalidParameterException(name + " is not an integer: " + string);
+        }
+        
+        if(value < minimum)
+            throw new InvalidParameterException(name + " must be >= " + minimum + ": " + value);
+        
+        return value;
+    }
+
+    /**
+     * Used for handling the "GetIdentitiesByScore" FCP message.<br>
+     * Supports the optional "Fields" and "IncludeDeprecated" parameters of
+     * {@link #parseFieldSelection(SimpleFieldSet)}.
+     */
     private SimpleFieldSet handleGetIdentitiesByScore(final SimpleFieldSet params) throws InvalidParameterException, UnknownIdentityException, FSParseException {
     	final String trusterID = params.get("Truster");
         final String selection = getMandatoryParameter(params, "Selection");
         final String context = getMandatoryParameter(params, "Context");
         final boolean includeTrustValue = params.getBoolean("WantTrustValues", false);
+        final FieldSelection fields = parseFieldSelection(params);
 
 		final String selectString = selection.trim();
 		int select = 0; // TODO: decide about the default value
@@ -882,28 +1430,30 @@ public final class FCPInterface
 			int i = 0;
 			for(final Score score : mWoT.getIdentitiesByScore(truster, select)) {
 				if(getAll || score.getTrustee().hasContext(context)) {
-					// TODO: Allow the client to select what data he wants
 					final OwnIdentity scoreOwner = score.getTruster();
 					final Identity identity = score.getTrustee();
 					final String suffix = Integer.toString(i);
 					
-					// TODO: As of 2013-10-24, this is deprecated code to support old FCP clients.
-					// Remove it after some time. Make sure to update all DeprecatedFields entries
-					// which this function adds.
-					addIdentityFields(sfs, identity, "", suffix);
-					// The above has no prefix, so we set it as deprecated as a whole, and then
-					// whitelist other stuff by setting DeprecatedField=false:
-					if(logMINOR)
-					    sfs.put("*.DeprecatedField", true);
+					if(fields.includeDeprecated) {
+						// TODO: As of 2013-10-24, this is deprecated code to support old FCP clients.
+						// Remove it after some time. Make sure to update all DeprecatedFields entries
+						// which this function adds.
+						addIdentityFields(sfs, identity, "", suffix, fields);
+						// The above has no prefix, so we set it as deprecated as a whole, and then
+						// whitelist other stuff by setting DeprecatedField=false:
+						if(logMINOR)
+						    sfs.put("*.DeprecatedField", true);
+					}
 					
-					addIdentityFields(sfs, identity, "Identities." + suffix + ".", "");
+					addIdentityFields(sfs, identity, "Identities." + suffix + ".", "", fields);
 					if(logMINOR)
 					    sfs.put("Identities." + suffix + ".*.DeprecatedField", false);
 					
 					// Adds DeprecatedField entries on its own.
-					addScoreFields(sfs, score, suffix); // TODO: As of 2013-10-25, this is deprecated code to support old FCP clients. Remove it after some time.
+					if(fields.includeDeprecated)
+						addScoreFields(sfs, score, suffix); // TODO: As of 2013-10-25, this is deprecated code to support old FCP clients. Remove it after some time.
 					
-					handleGetScore(sfs, score, suffix);
+					handleGetScore(sfs, score, suffix, fields);
 					if(logMINOR)
 					    sfs.put("Scores.*.DeprecatedField", false);
 					
@@ -914,14 +1464,15 @@ public final class FCPInterface
 						} catch(NotTrustedException e) {}
 						
 		                // Adds DeprecatedField entries on its own.
-						addTrustFields(sfs, trust, suffix); // TODO: As of 2013-10-25, this is deprecated code to support old FCP clients. Remove it after some time.
+						if(fields.includeDeprecated)
+							addTrustFields(sfs, trust, suffix); // TODO: As of 2013-10-25, this is deprecated code to support old FCP clients. Remove it after some time.
 						
-						handleGetTrust(sfs, trust, suffix);
+						handleGetTrust(sfs, trust, suffix, fields);
 						if(logMINOR)
 						    sfs.put("Trusts.*.DeprecatedField", false);
 					}
 					
-					if(truster == null) { // TODO: As of 2013-10-25, this is deprecated code to support old FCP clients. Remove it after some time.
+					if(truster == null && fields.includeDeprecated) { // TODO: As of 2013-10-25, this is deprecated code to support old FCP clients. Remove it after some time.
 		    			sfs.putOverwrite("ScoreOwner" + i, scoreOwner.getID());
 		    			if(logMINOR)
 		    			    sfs.put("ScoreOwner" + i + ".DeprecatedField", true); 
@@ -939,83 +1490,86 @@ public final class FCPInterface
     }
 
     /**
-     * TODO: Unify message layout to be same as in {@link #handleGetIdentities(FCPPluginMessage)}
+     * TODO: Unify message layout to be same as in {@link #handleGetIdentities(FCPPluginConnection,
+     * FCPPluginMessage)}
      */
     private SimpleFieldSet handleGetTrusters(final SimpleFieldSet params) throws InvalidParameterException, UnknownIdentityException {
     	final String identityID = getMandatoryParameter(params, "Identity");
     	final String context = getMandatoryParameter(params, "Context");
+    	final FieldSelection fields = parseFieldSelection(params);
     	
         final SimpleFieldSet sfs = new SimpleFieldSet(true);
         sfs.putOverwrite("Message", "Identities");
         
         final boolean getAll = context.equals("");
         
-        // WebOfTrust.getReceivedTrusts() demands that we synchronize while processing the result.
-        // Also, we query the Identity trustee before calling it, i.e. query two datasets
-        // from the database. Thus we must synchronize to ensure that the returned data is
-        // coherent - the trustee might be deleted meanwhile.
-        synchronized(mWoT) {
-        	int i = 0;
-			for(final Trust trust : mWoT.getReceivedTrusts(mWoT.getIdentityByID(identityID))) {
-				if(getAll || trust.getTruster().hasContext(params.get("Context"))) {
-					sfs.putOverwrite("Identity" + i, trust.getTruster().getID());
-					sfs.putOverwrite("Nickname" + i, trust.getTruster().getNickname());
-					sfs.putOverwrite("RequestURI" + i, trust.getTruster().getRequestURI().toString());
-					sfs.putOverwrite("Value" + i, Byte.toString(trust.getValue()));
-					sfs.putOverwrite("Comment" + i, trust.getComment());
-
-					int contextCounter = 0;
-					for (String identityContext: trust.getTruster().getContexts()) {
-						sfs.putOverwrite("Contexts" + i + ".Context" + contextCounter++, identityContext);
-					}
-
-					int propertiesCounter = 0;
-					for (Entry<String, String> property : trust.getTruster().getProperties().entrySet()) {
-						sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter + ".Name", property.getKey());
-						sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter++ + ".Value", property.getValue());
-					}
-					// TODO: Allow the client to select what data he wants
-					++i;
-				}
-			}
-			sfs.put("Amount", i);
+        // We query the Identity trustee and its Trusts, i.e. multiple datasets. We don't need to
+        // synchronize upon mWoT to ensure that the returned data is coherent: All of them are
+        // queried from the same immutable snapshot.
+        final ReadSnapshot snapshot = mWoT.getReadSnapshot();
+        final Identity identity = snapshot.getIdentityByID(identityID);
+        int i = 0;
+        for(final Trust trust : snapshot.getReceivedTrusts(identity.getID())) {
+            // The truster of Trusts of the snapshot is only guaranteed to have a valid ID.
+            final Identity truster = snapshot.getIdentityByID(trust.getTruster().getID());
+            
+            if(getAll || truster.hasContext(context)) {
+                addTrustersOrTrusteesFields(sfs, i, truster, trust, truster, fields);
+                ++i;
+            }
         }
+        sfs.put("Amount", i);
         
         return sfs;
     }
     
+    /**
+     * Adds the fields of one entry of the replies of {@link #handleGetTrusters(SimpleFieldSet)}
+     * and {@link #handleGetTrustees(SimpleFieldSet)}. Their layout has no deprecated variant, so
+     * {@link FieldSelection#includeDeprecated} is ignored.
+     * 
+     * @param identity The truster / trustee which the entry is about.
+     * @param contextsAndProperties The Identity whose contexts and properties are added. */
+    private static void addTrustersOrTrusteesFields(final SimpleFieldSet sfs, final int i,
+            final Identity identity, final Trust trust, final Identity contextsAndProperties,
+            final FieldSelection fields) {
+        
+        if(fields.contains("ID"))
+            sfs.putOverwrite("Identity" + i, identity.getID());
+        if(fields.contains("Nickname"))
+            sfs.putOverwrite("Nickname" + i, identity.getNickname());
+        if(fields.contains("RequestURI"))
+            sfs.putOverwrite("RequestURI" + i, identity.getRequestURI().toString());
+        if(fields.contains("Value"))
+            sfs.putOverwrite("Value" + i, Byte.toString(trust.getValue()));
+        if(fields.contains("Comment"))
+            sfs.putOverwrite("Comment" + i, trust.getComment());
+
+        if(fields.contains("Contexts")) {
+            int contextCounter = 0;
+            for (String identityContext: contextsAndProperties.getContexts()) {
+                sfs.putOverwrite("Contexts" + i + ".Context" + contextCounter++, identityContext);
+            }
+        }
+
+        if(fields.contains("Properties")) {
+            int propertiesCounter = 0;
+            for (Entry<String, String> property : contextsAndProperties.getProperties().entrySet()) {
+                sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter + ".Name", property.getKey());
+                sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter++ + ".Value", property.getValue());
+            }
+        }
+    }
+    
     private SimpleFieldSet handleGetTrustersCount(final SimpleFieldSet params) throws InvalidParameterException, UnknownIdentityException {
     	final String identityID = getMandatoryParameter(params, "Identity");
     	//final String context = getMandatoryParameter(params, "Context"); // TODO: Implement as soon as we have per-context trust
 
-        String selection = params.get("Selection");
-        final int result;
-        
-        if(selection != null) {
-        	selection = selection.trim();
-    		final int select;
-    		
-    		if (selection.equals("+")) select = 1;
-    		else if (selection.equals("-")) select = -1;
-    		else if (selection.equals("0")) select = 0;
-    		else throw new InvalidParameterException("Unhandled selection value (" + selection + ")");
-        	
-            // getReceivedTrusts() demands that we synchronize while processing the result.
-            // Also, we query the Identity truster before calling it, i.e. query two datasets
-            // from the database. Thus we must synchronize to ensure that the returned data is
-            // coherent - the truster might be deleted meanwhile.
-    		synchronized(mWoT) {
-        		result = mWoT.getReceivedTrusts(mWoT.getIdentityByID(identityID), select).size();
-        	}
-        } else {
-            // getReceivedTrusts() demands that we synchronize while processing the result.
-            // Also, we query the Identity truster before calling it, i.e. query two datasets
-            // from the database. Thus we must synchronize to ensure that the returned data is
-            // coherent - the truster might be deleted meanwhile.
-        	synchronized(mWoT) {
-        		result = mWoT.getReceivedTrusts(mWoT.getIdentityByID(identityID)).size();
-        	}
-        }
+        // Don't synchronize upon mWoT: The ReadSnapshot is immutable.
+        final ReadSnapshot snapshot = mWoT.getReadSnapshot();
+        final int result = countTrusts(
+            snapshot.getReceivedTrusts(snapshot.getIdentityByID(identityID).getID()),
+            params.get("Selection"));
     	
         final SimpleFieldSet sfs = new SimpleFieldSet(true);
         sfs.putOverwrite("Message", "TrustersCount");
@@ -1024,49 +1578,37 @@ public final class FCPInterface
     }
 
     /**
-     * TODO: Unify message layout to be same as in {@link #handleGetIdentities(FCPPluginMessage)}
+     * TODO: Unify message layout to be same as in {@link #handleGetIdentities(FCPPluginConnection,
+     * FCPPluginMessage)}
      */
     private SimpleFieldSet handleGetTrustees(final SimpleFieldSet params) throws InvalidParameterException, UnknownIdentityException {
     	final String identityID = getMandatoryParameter(params, "Identity");
     	final String context = getMandatoryParameter(params, "Context");
+    	final FieldSelection fields = parseFieldSelection(params);
 
     	final SimpleFieldSet sfs = new SimpleFieldSet(true);
         sfs.putOverwrite("Message", "Identities");
         
         final boolean getAll = context.equals("");
 
-        // WebOfTrust.getGivenTrusts() demands that we synchronize while processing the result.
-        // Also, we query the Identity truster before calling it, i.e. query two datasets
-        // from the database. Thus we must synchronize to ensure that the returned data is
-        // coherent - the truster might be deleted meanwhile.
-        synchronized(mWoT) {
-        	int i = 0;
-        	for(final Trust trust : mWoT.getGivenTrusts(mWoT.getIdentityByID(identityID))) {
-        		final Identity trustee = trust.getTrustee();
-
-				if(getAll || trustee.hasContext(params.get("Context"))) {
-					sfs.putOverwrite("Identity" + i, trustee.getID());
-					sfs.putOverwrite("Nickname" + i, trustee.getNickname());
-					sfs.putOverwrite("RequestURI" + i, trustee.getRequestURI().toString());
-					sfs.putOverwrite("Value" + i, Byte.toString(trust.getValue()));
-					sfs.putOverwrite("Comment" + i, trust.getComment());
-
-					int contextCounter = 0;
-					for (String identityContext: trust.getTruster().getContexts()) {
-						sfs.putOverwrite("Contexts" + i + ".Context" + contextCounter++, identityContext);
-					}
-
-					int propertiesCounter = 0;
-					for (Entry<String, String> property : trust.getTruster().getProperties().entrySet()) {
-						sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter + ".Name", property.getKey());
-						sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter++ + ".Value", property.getValue());
-					}
-					// TODO: Allow the client to select what data he wants
-					++i;
-				}
-        	}
-        	sfs.put("Amount", i);
+        // We query the Identity truster and its Trusts, i.e. multiple datasets. We don't need to
+        // synchronize upon mWoT to ensure that the returned data is coherent: All of them are
+        // queried from the same immutable snapshot.
+        final ReadSnapshot snapshot = mWoT.getReadSnapshot();
+        final Identity identity = snapshot.getIdentityByID(identityID);
+        int i = 0;
+        for(final Trust trust : snapshot.getGivenTrusts(identity.getID())) {
+            // The trustee of Trusts of the snapshot is only guaranteed to have a valid ID.
+            final Identity trustee = snapshot.getIdentityByID(trust.getTrustee().getID());
+
+            if(getAll || trustee.hasContext(context)) {
+                // TODO: This adds the contexts and properties of the truster, not the trustee.
+                // It has always been like this, so fixing it might break clients.
+                addTrustersOrTrusteesFields(sfs, i, trustee, trust, identity, fields);
+                ++i;
+            }
         }
+        sfs.put("Amount", i);
         
         return sfs;
     }
@@ -1075,34 +1617,11 @@ public final class FCPInterface
     	final String identityID = getMandatoryParameter(params, "Identity");
     	//final String context = getMandatoryParameter(params, "Context"); // TODO: Implement as soon as we have per-context trust
 
-        String selection = params.get("Selection");
-        final int result;
-        
-        if(selection != null) {
-        	selection = selection.trim();
-    		final int select;
-    		
-    		if (selection.equals("+")) select = 1;
-    		else if (selection.equals("-")) select = -1;
-    		else if (selection.equals("0")) select = 0;
-    		else throw new InvalidParameterException("Unhandled selection value (" + selection + ")");
-        	
-            // WebOfTrust.getGivenTrusts() demands that we synchronize while processing the result.
-            // Also, we query the Identity truster before calling it, i.e. query two datasets
-            // from the database. Thus we must synchronize to ensure that the returned data is
-            // coherent - the truster might be deleted meanwhile.
-    		synchronized(mWoT) {
-        		result = mWoT.getGivenTrusts(mWoT.getIdentityByID(identityID), select).size();
-        	}
-        } else {
-            // WebOfTrust.getGivenTrusts() demands that we synchronize while processing the result.
-            // Also, we query the Identity truster before calling it, i.e. query two datasets
-            // from the database. Thus we must synchronize to ensure that the returned data is
-            // coherent - the truster might be deleted meanwhile.
-        	synchronized(mWoT) {
-        		result = mWoT.getGivenTrusts(mWoT.getIdentityByID(identityID)).size();
-        	}
-        }
+        // Don't synchronize upon mWoT: The ReadSnapshot is immutable.
+        final ReadSnapshot snapshot = mWoT.getReadSnapshot();
+        final int result = countTrusts(
+            snapshot.getGivenTrusts(snapshot.getIdentityByID(identityID).getID()),
+            params.get("Selection"));
     	
         final SimpleFieldSet sfs = new SimpleFieldSet(true);
         sfs.putOverwrite("Message", "TrusteesCount");
@@ -1110,6 +1629,37 @@ public final class FCPInterface
         return sfs;
     }
     
+    /**
+     * Implementation of the "Selection" field of "GetTrustersCount" / "GetTrusteesCount".
+     * 
+     * @param selection Null to count all Trusts. "+" to count the Trusts with a value >= 0 -
+     *     0 is included because solving captchas gives 0 trust. "-" to count the Trusts with a
+     *     value < 0, "0" to count those with a value of 0.
+     * @see WebOfTrust#getReceivedTrusts(Identity, int)
+     */
+    private int countTrusts(final List<Trust> trusts, String selection)
+            throws InvalidParameterException {
+        
+        if(selection == null)
+            return trusts.size();
+        
+        selection = selection.trim();
+        final int select;
+        
+        if (selection.equals("+")) select = 1;
+        else if (selection.equals("-")) select = -1;
+        else if (selection.equals("0")) select = 0;
+        else throw new InvalidParameterException("Unhandled selection value (" + selection + ")");
+        
+        int result = 0;
+        for(Trust trust : trusts) {
+            final byte value = trust.getValue();
+            if(select > 0 ? value >= 0 : (select < 0 ? value < 0 : value == 0))
+                ++result;
+        }
+        return result;
+    }
+    
     private SimpleFieldSet handleAddContext(final SimpleFieldSet params) throws InvalidParameterException, UnknownIdentityException {
     	final String identityID = getMandatoryParameter(params, "Identity");
     	final String context = getMandatoryParameter(params, "Context");
@@ -1227,12 +1777,85 @@ public final class FCPInterface
     	return sfs;
     }
     
+    /**
+     * Parses the optional "Filter.*" fields of the "Subscribe" message, see
+     * {@link #handleSubscribe(FCPPluginConnection, FCPPluginMessage)}.
+     * 
+     * @param to The "To" field of the message. Not validated here.
+     * @throws InvalidParameterException If a field is invalid or not supported for the given type
+     *     of subscription.
+     */
+    private SubscriptionManager.Filter parseSubscriptionFilter(final SimpleFieldSet params,
+            final String to) throws InvalidParameterException {
+        
+        final String context = params.get("Filter.Context");
+        if(context != null && context.trim().length() == 0)
+            throw new InvalidParameterException("Filter.Context must not be blank");
+        
+        final String trusterID = params.get("Filter.Truster");
+        if(trusterID != null) {
+            if(to.equals("Identities"))
+                throw new InvalidParameterException("Filter.Truster is not allowed for: " + to);
+            
+            IdentityID.constructAndValidateFromString(trusterID);
+        }
+        
+        final String minimumScoreString = params.get("Filter.MinimumScore");
+        int minimumScore = Integer.MIN_VALUE;
+        if(minimumScoreString != null) {
+            if(!to.equals("Scores"))
+                throw new InvalidParameterException("Filter.MinimumScore is not allowed for: " + to);
+            
+            try {
+                minimumScore = Integer.parseInt(minimumScoreString);
+            } catch(NumberFormatException e) {
+                throw new InvalidParameterException(
+                    "Filter.MinimumScore is not an integer: " + minimumScoreString);
+            }
+        }
+        
+        final boolean valueChangedOnly = params.getBoolean("Filter.ValueChangedOnly", false);
+        if(valueChangedOnly && to.equals("Identities")) {
+            throw new InvalidParameterException(
+                "Filter.ValueChangedOnly is not allowed for: " + to);
+        }
+        
+        if(context == null && trusterID == null && minimumScoreString == null
+                && !valueChangedOnly)
+            return SubscriptionManager.Filter.NONE;
+        
+        return new SubscriptionManager.Filter(
+            context != null ? context.trim() : null, trusterID, minimumScore, valueChangedOnly);
+    }
+    
     /**
      * Processes the "Subscribe" FCP message, filing a {@link Subscription} to event-{@link Notification}s via {@link SubscriptionManager}.
      * <br><b>Required fields:</b><br>
      * "To" = "Identities" or "Trusts" or "Scores" - chooses among {@link IdentitiesSubscription} / {@link TrustsSubscription} /
      * {@link ScoresSubscription}.<br><br>
      * 
+     * <b>Optional fields:</b><br>
+     * "MaxNotificationBatchSize" = Integer >= 0, default 0. If > 0, multiple event
+     * {@link Notification}s may be sent in a single "NotificationBatch" message, see below. Values
+     * larger than {@link SubscriptionManager#MAX_NOTIFICATION_BATCH_SIZE} are reduced to it.<br>
+     * The setting applies to all your subscriptions, the value of your latest "Subscribe" message
+     * is used.<br>
+     * The following fields restrict which objects you are notified about, see
+     * {@link SubscriptionManager.Filter}. They are applied to the synchronization as well.
+     * You should use them if you only need a part of the dataset: Filtered events are not even
+     * stored to WOT's database.<br>
+     * "Filter.Context" = Only {@link Identity}s which have the given context, and {@link Trust}s
+     * / {@link Score}s which only refer to such Identitys. {@link OwnIdentity}s always pass.<br>
+     * "Filter.Truster" = Only Trusts / Scores given by the Identity / OwnIdentity of the given
+     * ID. Not allowed for "To" = "Identities".<br>
+     * "Filter.MinimumScore" = Only Scores whose value is at least the given Integer. Only allowed
+     * for "To" = "Scores".<br>
+     * "Filter.ValueChangedOnly" = "true" or "false", default "false". If true, changes of Trusts
+     * / Scores are only sent if their value changed. Not allowed for "To" = "Identities".<br>
+     * If an object enters or leaves the filter due to a change, you will receive a creation or
+     * deletion event for it. Notice that this also applies to the Trusts / Scores of an Identity
+     * which gains / loses the filtered context.<br><br>
+     * 
      * <b>Reply:</b><br>
      * The reply will have the same {@link FCPPluginMessage#identifier} as the
      * original "Subscribe" message which you first sent to subscribe, or in other words be the
@@ -1272,6 +1895,23 @@ public final class FCPInterface
      * {@link #sendScoreChangedNotification(String, ScoreChangedNotification)}.
      * <br>
      * 
+     * <h2>"NotificationBatch":</h2>
+     * If you specified "MaxNotificationBatchSize", the above messages are wrapped into messages
+     * of this type to save the round trip time of one synchronous reply per notification:<br>
+     * "Message" = "NotificationBatch"<br>
+     * "Amount" = Number of notifications in the batch, at least 1.<br>
+     * "0.", "1.", ... = Prefixes of the params of each notification in the above formats,
+     * including their "Message" field. For example "0.Message" = "BeginSynchronizationEvent".
+     * <br>
+     * You must process them in ascending order of their prefix. The order across batches is
+     * preserved as well.<br>
+     * If processing one of them fails, reply with {@link FCPPluginMessage#success}=false and
+     * the field "Acknowledged" = the number of notifications at the beginning of the batch which
+     * you did process successfully, i.e. the prefix of the failed one. Those will not be sent
+     * again, the others will be resent as described below. If you omit "Acknowledged", the whole
+     * batch will be resent.<br>
+     * See {@link #sendNotificationBatch(UUID, List)}.<br>
+     * 
      * <h2>Replying to notifications:</h2>
      * By replying with a {@link FCPPluginMessage} with {@link FCPPluginMessage#success}=false, you
      * can signal that you want to receive the same notification again.
@@ -1301,7 +1941,24 @@ public final class FCPInterface
             final FCPPluginMessage message) throws InvalidParameterException {
         
         final String to = getMandatoryParameter(message.params, "To");
-
+        
+        final String maxNotificationBatchSizeString
+            = message.params.get("MaxNotificationBatchSize");
+        int maxNotificationBatchSize = 0;
+        if(maxNotificationBatchSizeString != null) {
+            try {
+                maxNotificationBatchSize = Integer.parseInt(maxNotificationBatchSizeString);
+            } catch(NumberFormatException e) {
+                throw new InvalidParameterException(
+                    "MaxNotificationBatchSize is not an integer: " + maxNotificationBatchSizeString);
+            }
+        }
+        if(maxNotificationBatchSize < 0) {
+            throw new InvalidParameterException(
+                "MaxNotificationBatchSize must be >= 0: " + maxNotificationBatchSize);
+        }
+        
+        final SubscriptionManager.Filter filter = parseSubscriptionFilter(message.params, to);
     	
     	try {
             FCPPluginMessage reply = FCPPluginMessage.constructSuccessReply(message);
@@ -1313,11 +1970,14 @@ public final class FCPInterface
             // which wouldn't make sense to copy to a WOT client plugin. SubscriptionManager for
             // sure does not need to be in a WOT client plugin)
 	    	if(to.equals("Identities")) {
-                subscriptionID = mSubscriptionManager.subscribeToIdentities(connection.getID());
+                subscriptionID = mSubscriptionManager.subscribeToIdentities(
+                    connection.getID(), filter, maxNotificationBatchSize);
 	    	} else if(to.equals("Trusts")) {
-                subscriptionID = mSubscriptionManager.subscribeToTrusts(connection.getID());
+                subscriptionID = mSubscriptionManager.subscribeToTrusts(
+                    connection.getID(), filter, maxNotificationBatchSize);
 	    	} else if(to.equals("Scores")) {
-                subscriptionID = mSubscriptionManager.subscribeToScores(connection.getID());
+                subscriptionID = mSubscriptionManager.subscribeToScores(
+                    connection.getID(), filter, maxNotificationBatchSize);
 	    	} else
 	    		throw new InvalidParameterException("Invalid subscription type specified: " + to);
 	    	
@@ -1440,46 +2100,7 @@ public final class FCPInterface
             final BeginSynchronizationNotification<?> notification)
                 throws FCPCallFailedException, IOException, InterruptedException {
         
-        // Not a reply to an existing message since it is sent due to an event, not a client message
-        final FCPPluginMessage fcpMessage = FCPPluginMessage.construct();
-        
-        fcpMessage.params.putOverwrite("Message", 
-             notification instanceof EndSynchronizationNotification 
-                 ? "EndSynchronizationEvent" : "BeginSynchronizationEvent");
-        
-        Subscription<? extends EventSource> subscription = notification.getSubscription();
-        String to;
-        
-        // The type parameter of the BeginSynchronizationNotification<T> is not known at runtime
-        // due to the way Java is implemented. Thus, we must use the hack of checking the
-        // class of the Subscription to which the Notification belongs:
-        // Subscription is not parameterized, so we can check its class.
-        // TODO: Code quality: Use FCPClientReferenceImplementation.SubscriptionType.*.name()
-        // Maybe copy the enum to class SubscriptionManager. (It must be copied instead of moved
-        // from FCPClientReferenceImplementation because that class should not require classes
-        // which wouldn't make sense to copy to a WOT client plugin. SubscriptionManager for
-        // sure does not need to be in a WOT client plugin)
-        if(subscription instanceof IdentitiesSubscription)
-            to = "Identities";
-        else if (subscription instanceof TrustsSubscription)
-            to = "Trusts";
-        else if (subscription instanceof ScoresSubscription)
-            to = "Scores";
-        else  {
-            throw new UnsupportedOperationException(
-                "BeginSynchronizationNotification for unknown Subscription type: " + subscription);
-        }
-        
-        // "To" because thats what we also use in handleSubscribe()
-        fcpMessage.params.putOverwrite("To", to);
-        fcpMessage.params.putOverwrite("VersionID", notification.getID());
-        
-        final FCPPluginMessage reply = mPluginRespirator.getPluginConnectionByID(clientID)
-            .sendSynchronous(
-                fcpMessage, TimeUnit.MINUTES.toNanos(SUBSCRIPTION_NOTIFICATION_TIMEOUT_MINUTES));
-        
-        if(reply.success == false)
-            throw new FCPCallFailedException(reply);
+        sendNotification(clientID, getNotificationParams(notification));
     }
 
     /**
@@ -1494,10 +2115,7 @@ public final class FCPInterface
             final IdentityChangedNotification notification)
                 throws FCPCallFailedException, IOException, InterruptedException {
         
-    	final SimpleFieldSet oldIdentity = handleGetIdentity((Identity)notification.getOldObject(), null);
-    	final SimpleFieldSet newIdentity = handleGetIdentity((Identity)notification.getNewObject(), null);
-    	
-        sendChangeNotification(clientID, SubscriptionType.Identities, oldIdentity, newIdentity);
+        sendNotification(clientID, getNotificationParams(notification));
     }
     
     /**
@@ -1512,10 +2130,7 @@ public final class FCPInterface
             final TrustChangedNotification notification)
                 throws FCPCallFailedException, IOException, InterruptedException {
         
-    	final SimpleFieldSet oldTrust = handleGetTrust(new SimpleFieldSet(true), (Trust)notification.getOldObject(), "0");
-    	final SimpleFieldSet newTrust = handleGetTrust(new SimpleFieldSet(true), (Trust)notification.getNewObject(), "0");
-
-        sendChangeNotification(clientID, SubscriptionType.Trusts, oldTrust, newTrust);
+        sendNotification(clientID, getNotificationParams(notification));
     }
     
     /**
@@ -1530,30 +2145,68 @@ public final class FCPInterface
             final ScoreChangedNotification notification)
                 throws FCPCallFailedException, IOException, InterruptedException {
         
-    	final SimpleFieldSet oldScore = handleGetScore(new SimpleFieldSet(true), (Score)notification.getOldObject(), "0");
-    	final SimpleFieldSet newScore = handleGetScore(new SimpleFieldSet(true), (Score)notification.getNewObject(), "0");
-
-        sendChangeNotification(clientID, SubscriptionType.Scores, oldScore, newScore);
+        sendNotification(clientID, getNotificationParams(notification));
     }
     
     /**
+     * Sends the given {@link Notification}s of a single {@link SubscriptionManager.Client} as a
+     * single "NotificationBatch" message. Used instead of the above functions for clients which
+     * requested batching via the "MaxNotificationBatchSize" field of the "Subscribe" message,
+     * see {@link #handleSubscribe(FCPPluginConnection, FCPPluginMessage)} for the format.<br>
+     * This saves one round trip per Notification: The above functions must each wait for the
+     * client's reply before the next Notification can be sent since their order must be
+     * preserved.<br><br>
+     * 
      * ATTENTION: At shutdown of WOT, you have to make sure to use {@link Thread#interrupt()} to
      * interrupt any of your threads which call this function:<br>
      * It uses the blocking {@link FCPPluginConnection#sendSynchronous(FCPPluginMessage, long)},
      * which can take a long time to complete. It can be aborted by interrupt().<br><br>
+     * 
+     * @param notifications
+     *            Must be in the order of their index in the queue of the Client.
+     * @throws FCPCallFailedException
+     *             If the client indicated failure of processing the batch.
+     *             {@link FCPCallFailedException#getAcknowledgedCount()} then is the number of
+     *             Notifications at the beginning of the given list which the client did process
+     *             successfully before the failure. Those must not be sent again.
      */
-    private void sendChangeNotification(
-            final UUID clientID, final SubscriptionType subscriptionType,
-            final SimpleFieldSet beforeChange, final SimpleFieldSet afterChange)
+    public void sendNotificationBatch(final UUID clientID,
+            final List<? extends Notification> notifications)
                 throws FCPCallFailedException, IOException, InterruptedException {
         
         // Not a reply to an existing message since it is sent due to an event, not a client message
         final FCPPluginMessage fcpMessage = FCPPluginMessage.construct();
         
-        fcpMessage.params.putOverwrite("Message", "ObjectChangedEvent");
-        fcpMessage.params.putOverwrite("SubscriptionType", subscriptionType.name());
-        fcpMessage.params.put("Before", beforeChange);
-        fcpMessage.params.put("After", afterChange);
+        fcpMessage.params.putOverwrite("Message", "NotificationBatch");
+        fcpMessage.params.put("Amount", notifications.size());
+        
+        int i = 0;
+        for(Notification notification : notifications)
+            fcpMessage.params.put(Integer.toString(i++), getNotificationParams(notification));
+        
+        final FCPPluginMessage reply = mPluginRespirator.getPluginConnectionByID(clientID)
+            .sendSynchronous(
+                fcpMessage, TimeUnit.MINUTES.toNanos(SUBSCRIPTION_NOTIFICATION_TIMEOUT_MINUTES));
+        
+        if(reply.success == false) {
+            int acknowledged = reply.params != null ? reply.params.getInt("Acknowledged", 0) : 0;
+            // Don't trust the client: It must not cause us to delete Notifications we didn't send.
+            acknowledged = Math.max(0, Math.min(acknowledged, notifications.size()));
+            throw new FCPCallFailedException(reply, acknowledged);
+        }
+    }
+    
+    /**
+     * ATTENTION: At shutdown of WOT, you have to make sure to use {@link Thread#interrupt()} to
+     * interrupt any of your threads which call this function:<br>
+     * It uses the blocking {@link FCPPluginConnection#sendSynchronous(FCPPluginMessage, long)},
+     * which can take a long time to complete. It can be aborted by interrupt().<br><br>
+     */
+    private void sendNotification(final UUID clientID, final SimpleFieldSet params)
+            throws FCPCallFailedException, IOException, InterruptedException {
+        
+        // Not a reply to an existing message since it is sent due to an event, not a client message
+        final FCPPluginMessage fcpMessage = FCPPluginMessage.construct(params, null);
         
         final FCPPluginMessage reply = mPluginRespirator.getPluginConnectionByID(clientID)
             .sendSynchronous(
@@ -1563,6 +2216,139 @@ public final class FCPInterface
             throw new FCPCallFailedException(reply);
     }
     
+    /**
+     * Constructs the params of the FCP message which deploys the given {@link Notification}.<br>
+     * The same params are used for sending it as a single message and for sending it as an entry
+     * of a "NotificationBatch", see {@link #sendNotificationBatch(UUID, List)}.
+     */
+    private SimpleFieldSet getNotificationParams(final Notification notification) {
+        if(notification instanceof BeginSynchronizationNotification<?>) {
+            // EndSynchronizationNotification is a child of BeginSynchronizationNotification.
+            return getBeginOrEndSynchronizationNotificationParams(
+                (BeginSynchronizationNotification<?>)notification);
+        }
+        
+        final ObjectChangedNotification changeNotification
+            = (ObjectChangedNotification)notification;
+        
+        if(notification instanceof IdentityChangedNotification) {
+            return getChangeNotificationParams(SubscriptionType.Identities,
+                handleGetIdentity((Identity)changeNotification.getOldObject(), null, null,
+                    FieldSelection.ALL),
+                handleGetIdentity((Identity)changeNotification.getNewObject(), null, null,
+                    FieldSelection.ALL));
+        } else if(notification instanceof TrustChangedNotification) {
+            return getChangeNotificationParams(SubscriptionType.Trusts,
+                handleGetTrust(new SimpleFieldSet(true),
+                    (Trust)changeNotification.getOldObject(), "0", FieldSelection.ALL),
+                handleGetTrust(new SimpleFieldSet(true),
+                    (Trust)changeNotification.getNewObject(), "0", FieldSelection.ALL));
+        } else if(notification instanceof ScoreChangedNotification) {
+            return getChangeNotificationParams(SubscriptionType.Scores,
+                handleGetScore(new SimpleFieldSet(true),
+                    (Score)changeNotification.getOldObject(), "0", FieldSelection.ALL),
+                handleGetScore(new SimpleFieldSet(true),
+                    (Score)changeNotification.getNewObject(), "0", FieldSelection.ALL));
+        } else
+            throw new UnsupportedOperationException("Unknown notification type: " + notification);
+    }
+    
+    private SimpleFieldSet getBeginOrEndSynchronizationNotificationParams(
+            final BeginSynchronizationNotification<?> notification) {
+        
+        final SimpleFieldSet sfs = new SimpleFieldSet(true);
+        
+        sfs.putOverwrite("Message", 
+             notification instanceof EndSynchronizationNotification 
+                 ? "EndSynchronizationEvent" : "BeginSynchronizationEvent");
+        
+        Subscription<? extends EventSource> subscription = notification.getSubscription();
+        String to;
+        
+        // The type parameter of the BeginSynchronizationNotification<T> is not known at runtime
+        // due to the way Java is implemented. Thus, we must use the hack of checking the
+        // class of the Subscription to which the Notification belongs:
+        // Subscription is not parameterized, so we can check its class.
+        // TODO: Code quality: Use FCPClientReferenceImplementation.SubscriptionType.*.name()
+        // Maybe copy the enum to class SubscriptionManager. (It must be copied instead of moved
+        // from FCPClientReferenceImplementation because that class should not require classes
+        // which wouldn't make sense to copy to a WOT client plugin. SubscriptionManager for
+        // sure does not need to be in a WOT client plugin)
+        if(subscription instanceof IdentitiesSubscription)
+            to = "Identities";
+        else if (subscription instanceof TrustsSubscription)
+            to = "Trusts";
+        else if (subscription instanceof ScoresSubscription)
+            to = "Scores";
+        else  {
+            throw new UnsupportedOperationException(
+                "BeginSynchronizationNotification for unknown Subscription type: " + subscription);
+        }
+        
+        // "To" because thats what we also use in handleSubscribe()
+        sfs.putOverwrite("To", to);
+        sfs.putOverwrite("VersionID", notification.getID());
+        return sfs;
+    }
+    
+    private SimpleFieldSet getChangeNotificationParams(final SubscriptionType subscriptionType,
+            final SimpleFieldSet beforeChange, final SimpleFieldSet afterChange) {
+        
+        final SimpleFieldSet sfs = new SimpleFieldSet(true);
+        sfs.putOverwrite("Message", "ObjectChangedEvent");
+        sfs.putOverwrite("SubscriptionType", subscriptionType.name());
+        sfs.put("Before", beforeChange);
+        sfs.put("After", afterChange);
+        return sfs;
+    }
+    
+    /**
+     * Handles the "GetDatabaseProfile" message, which returns the {@link DatabaseProfiler}
+     * statistics of the database operations.<br><br>
+     * 
+     * Parameters:<br>
+     * "Enabled" = "true" / "false" to enable / disable the profiler after the statistics were
+     * taken. Optional, defaults to not changing it.<br>
+     * "Reset" = "true" to clear the statistics after they were taken. Optional, defaults to
+     * "false".<br><br>
+     * 
+     * Reply: "Message" = "DatabaseProfile", "Enabled" = Whether the profiler is enabled now,
+     * "Operations.Amount" = Number of operations, and for each operation:<br>
+     * "Operations.N.Name" = Type and target of the operation, for example
+     * "query Db4oStorage.getGivenTrusts" or "activate Identity depth 1".<br>
+     * "Operations.N.Count" = How often it was executed.<br>
+     * "Operations.N.TotalNanoseconds" / "Operations.N.MaxNanoseconds" = Total / maximal time.<br>
+     * "Operations.N.Histogram.M" = How many of the executions took less than 2^M microseconds
+     * and not less than 2^(M-1), for M from 0 to {@link DatabaseProfiler#HISTOGRAM_BUCKETS} - 1.
+     * The last bucket is unbounded.
+     */
+    private SimpleFieldSet handleGetDatabaseProfile(final SimpleFieldSet params) {
+        final TreeMap<String, DatabaseProfiler.Statistics> statistics
+            = DatabaseProfiler.getStatistics();
+        
+        if(params.getBoolean("Reset", false))
+            DatabaseProfiler.reset();
+        if(params.get("Enabled") != null)
+            DatabaseProfiler.setEnabled(params.getBoolean("Enabled", false));
+        
+        final SimpleFieldSet sfs = new SimpleFieldSet(true);
+        sfs.putOverwrite("Message", "DatabaseProfile");
+        sfs.put("Enabled", DatabaseProfiler.isEnabled());
+        int i = 0;
+        for(DatabaseProfiler.Statistics operation : statistics.values()) {
+            final String prefix = "Operations." + i + ".";
+            sfs.putOverwrite(prefix + "Name", operation.mOperation);
+            sfs.put(prefix + "Count", operation.mCount);
+            sfs.put(prefix + "TotalNanoseconds", operation.mTotalNanoseconds);
+            sfs.put(prefix + "MaxNanoseconds", operation.mMaxNanoseconds);
+            for(int bucket = 0; bucket < DatabaseProfiler.HISTOGRAM_BUCKETS; ++bucket)
+                sfs.put(prefix + "Histogram." + bucket, operation.getHistogram(bucket));
+            ++i;
+        }
+        sfs.put("Operations.Amount", i);
+        return sfs;
+    }
+    
     private SimpleFieldSet handlePing() {
     	final SimpleFieldSet sfs = new SimpleFieldSet(true);
     	sfs.putOverwrite("Message", "Pong");
@@ -1588,7 +2374,7 @@ public final class FCPInterface
     /**
      * TODO: Optimization: Remove the deprecated fields after some time. They were added 2014-09-23
      */
-    private FCPPluginMessage errorMessageFCP(final FCPPluginMessage originalFCPMessage,
+    FCPPluginMessage errorMessageFCP(final FCPPluginMessage originalFCPMessage,
            final String errorCode, final String errorMessage) {
         
         FCPPluginMessage reply = FCPPluginMessage.constructErrorReply(
@@ -1628,12 +2414,34 @@ public final class FCPInterface
     public static final class FCPCallFailedException extends Exception {
         private static final long serialVersionUID = 1L;
         
+        /** @see #getAcknowledgedCount() */
+        private final int mAcknowledgedCount;
+        
         public FCPCallFailedException(FCPPluginMessage clientReply) {
+            this(clientReply, 0);
+        }
+        
+        /** @param acknowledgedCount See {@link #getAcknowledgedCount()}. */
+        public FCPCallFailedException(FCPPluginMessage clientReply, int acknowledgedCount) {
             super("The client indicated failure of processing the message."
                 + " errorCode: " + clientReply.errorCode
-                + "; errorMessage: " + clientReply.errorMessage);
+                + "; errorMessage: " + clientReply.errorMessage
+                + "; acknowledged: " + acknowledgedCount);
             
             assert(clientReply.success == false);
+            assert(acknowledgedCount >= 0);
+            
+            mAcknowledgedCount = acknowledgedCount;
+        }
+        
+        /**
+         * If the message was a "NotificationBatch", the number of the Notifications at its
+         * beginning which the client did process successfully before the failure.<br>
+         * Zero for all other messages.
+         * 
+         * @see FCPInterface#sendNotificationBatch(UUID, List) */
+        public int getAcknowledgedCount() {
+            return mAcknowledgedCount;
         }
     }
 
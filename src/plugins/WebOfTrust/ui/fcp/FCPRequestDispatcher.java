@@ -0,0 +1,422 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust.ui.fcp;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import freenet.clients.fcp.FCPPluginConnection;
+import freenet.clients.fcp.FCPPluginMessage;
+import freenet.support.Logger;
+
+/**
+ * Executes the FCP messages which {@link FCPInterface} receives on its own threads instead of the
+ * thread of fred which delivered them, so a single client which floods WOT with messages cannot
+ * starve the other clients:<br>
+ * - Each {@link FCPPluginConnection} has its own queue of messages. The messages of a single
+ *   connection are processed one after another in the order in which they were received, so
+ *   replies are sent in the same order and a client which sends a "SetTrust" followed by a
+ *   "GetTrust" will see the new value.<br>
+ * - The connections take turns: Each turn processes a single message of a connection, and a
+ *   connection which has more messages queued is put at the end of the line of waiting
+ *   connections. The turns are executed by a pool of at most {@link #READ_THREADS} threads, so
+ *   different clients are served concurrently.<br>
+ * - Messages which modify the WOT database, see {@link #WRITE_MESSAGES}, are passed from the turn
+ *   of their connection to a single writer thread which executes them one after another in the
+ *   order in which their turns came. They would be serialized by the lock of the
+ *   {@link plugins.WebOfTrust.WebOfTrust} anyway, so executing them on the read threads would only
+ *   block those threads.<br>
+ * - The {@link #SUBSCRIPTION_MESSAGES} are passed from the turn of their connection to a separate
+ *   pool of at most {@link #SUBSCRIPTION_THREADS} threads: "Subscribe" waits for the client to
+ *   process the initial synchronization, which might take long, so it must not occupy the read
+ *   threads.<br>
+ * - If a connection has more than {@link #MAX_QUEUED_MESSAGES_PER_CONNECTION} messages queued, new
+ *   messages are answered with an error reply of code "Overloaded" immediately.<br><br>
+ *
+ * For each message type, the amount of queued messages and the percentiles of the latency from
+ * reception to completion of the reply are recorded, see {@link #getStatistics()}.<br><br>
+ *
+ * Synchronization: All member variables are guarded by the FCPRequestDispatcher. The handler
+ * functions of {@link FCPInterface} are called without holding the lock.
+ */
+public final class FCPRequestDispatcher {
+
+	/**
+	 * Maximal amount of threads which process the messages which are not
+	 * {@link #WRITE_MESSAGES}. Most of them are answered from the
+	 * {@link plugins.WebOfTrust.ReadSnapshot} without locking, so they scale with the amount of
+	 * CPU cores. */
+	public static final int READ_THREADS
+		= Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	/** Maximal amount of threads which process the {@link #SUBSCRIPTION_MESSAGES}. */
+	public static final int SUBSCRIPTION_THREADS = READ_THREADS;
+
+	/** See the JavaDoc of the class. */
+	public static final int MAX_QUEUED_MESSAGES_PER_CONNECTION = 128;
+
+	/** Amount of the most recent latencies per message type from which
+	 *  {@link MessageTypeStatistics#getLatencyPercentile(int)} is computed. */
+	public static final int LATENCY_SAMPLES = 1024;
+
+	/**
+	 * The types of messages which are executed by the writer thread.<br>
+	 * "Subscribe" / "Unsubscribe" are not included even though they modify the database: They
+	 * only require the lock of the {@link plugins.WebOfTrust.SubscriptionManager}, and
+	 * "Subscribe" waits for the client to process the synchronization which might take long.
+	 * This would stall all other clients' writes if it was done on the writer thread. */
+	public static final Set<String> WRITE_MESSAGES = new HashSet<String>(Arrays.asList(
+		"CreateIdentity", "AddIdentity", "SetTrust", "SetTrusts", "RemoveTrust", "AddContext",
+		"RemoveContext", "SetProperty", "RemoveProperty", "SolveIntroductionPuzzle"));
+
+	/**
+	 * The types of messages which are executed by the subscription threads, see the JavaDoc of
+	 * the class.<br>
+	 * "Unsubscribe" is included because it waits for the lock of the
+	 * {@link plugins.WebOfTrust.SubscriptionManager}, which a "Subscribe" may hold while waiting
+	 * for its client. */
+	public static final Set<String> SUBSCRIPTION_MESSAGES = new HashSet<String>(Arrays.asList(
+		"Subscribe", "Unsubscribe"));
+
+	/** The types of messages which {@link FCPInterface} can handle and which are neither
+	 *  {@link #WRITE_MESSAGES} nor {@link #SUBSCRIPTION_MESSAGES}. Other types are accounted as
+	 *  "Unknown" in the statistics, so clients cannot make the statistics grow without bound. */
+	static final Set<String> READ_MESSAGES = new HashSet<String>(Arrays.asList(
+		"GetTrust", "GetScore", "GetIdentity", "GetOwnIdentities", "GetIdentities", "GetTrusts",
+		"GetScores", "GetIdentitiesByScore", "GetTrusters", "GetTrustersCount", "GetTrustees",
+		"GetTrusteesCount", "GetProperty", "GetIntroductionPuzzles", "GetIntroductionPuzzle",
+		"Ping", "RandomName", "GetDatabaseProfile"));
+
+	private final FCPInterface mFCPInterface;
+
+	/** Executes the {@link Turn}s. */
+	private final ThreadPoolExecutor mReadPool;
+
+	/** Executes the {@link #WRITE_MESSAGES} in the order they were submitted. */
+	private final ThreadPoolExecutor mWriter;
+
+	/** Executes the {@link #SUBSCRIPTION_MESSAGES}. */
+	private final ThreadPoolExecutor mSubscriptionPool;
+
+	/** Key = {@link FCPPluginConnection#getID()}. Contains only connections which have messages
+	 *  queued or being processed. */
+	private final HashMap<UUID, ConnectionQueue> mConnections
+		= new HashMap<UUID, ConnectionQueue>();
+
+	/** Key = Message type, or "Unknown", see {@link #READ_MESSAGES}. */
+	private final HashMap<String, MessageTypeStatistics> mStatistics
+		= new HashMap<String, MessageTypeStatistics>();
+
+	/** Automatically set to true by {@link Logger} if the log level is set to
+	 *  {@link freenet.support.Logger.LogLevel#MINOR} for this class.<br>
+	 *  Used as performance optimization to prevent construction of the log strings if it is not
+	 *  necessary. */
+	private static transient volatile boolean logMINOR = false;
+
+	static {
+		// Necessary for automatic setting of logDEBUG and logMINOR
+		Logger.registerClass(FCPRequestDispatcher.class);
+	}
+
+
+	FCPRequestDispatcher(FCPInterface fcpInterface) {
+		mFCPInterface = fcpInterface;
+		mReadPool = newPool(READ_THREADS, "WOT FCP reader");
+		mWriter = newPool(1, "WOT FCP writer");
+		mSubscriptionPool = newPool(SUBSCRIPTION_THREADS, "WOT FCP subscriptions");
+	}
+
+	/** The threads terminate when idle so unit tests which never call {@link #stop()} don't leak
+	 *  them. */
+	private static ThreadPoolExecutor newPool(int threads, final String name) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 1, MINUTES,
+			new LinkedBlockingQueue<Runnable>(),
+			new ThreadFactory() {
+				@Override public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, name);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/** Interrupts the threads and discards all queued messages. Their clients will not receive
+	 *  a reply, which is the same as if WOT was unloaded while fred was delivering them. */
+	void stop() {
+		mReadPool.shutdownNow();
+		mWriter.shutdownNow();
+		mSubscriptionPool.shutdownNow();
+		synchronized(this) {
+			mConnections.clear();
+		}
+	}
+
+	/** The queued messages of a single {@link FCPPluginConnection}. */
+	private static final class ConnectionQueue {
+		final FCPPluginConnection mConnection;
+
+		final LinkedList<QueuedMessage> mMessages = new LinkedList<QueuedMessage>();
+
+		/** True if a {@link Turn} of this connection is queued or being executed. */
+		boolean mHasTurn = false;
+
+		ConnectionQueue(FCPPluginConnection connection) {
+			mConnection = connection;
+		}
+	}
+
+	private static final class QueuedMessage {
+		final FCPPluginMessage mMessage;
+
+		/** Key of {@link FCPRequestDispatcher#mStatistics}. */
+		final String mType;
+
+		/** {@link System#nanoTime()} when the message was received. */
+		final long mReceivedTime;
+
+		QueuedMessage(FCPPluginMessage message, String type) {
+			mMessage = message;
+			mType = type;
+			mReceivedTime = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Queues the message for being processed by
+	 * {@link FCPInterface#handlePluginFCPMessageSynchronously(FCPPluginConnection,
+	 * FCPPluginMessage)}. The reply will be sent using {@link FCPPluginConnection#send(
+	 * FCPPluginMessage)}. */
+	void dispatch(FCPPluginConnection connection, FCPPluginMessage message) {
+		String type = message.params.get("Message");
+		if(type == null || !(READ_MESSAGES.contains(type) || WRITE_MESSAGES.contains(type)
+				|| SUBSCRIPTION_MESSAGES.contains(type)))
+			type = "Unknown";
+
+		final ConnectionQueue connectionQueue;
+		final boolean rejected;
+
+		synchronized(this) {
+			ConnectionQueue existing = mConnections.get(connection.getID());
+			if(existing == null) {
+				existing = new ConnectionQueue(connection);
+				mConnections.put(connection.getID(), existing);
+			}
+			connectionQueue = existing;
+
+			rejected
+				= connectionQueue.mMessages.size() >= MAX_QUEUED_MESSAGES_PER_CONNECTION;
+			if(rejected)
+				++getStatistics(type).mRejected;
+			else {
+				connectionQueue.mMessages.add(new QueuedMessage(message, type));
+				++getStatistics(type).mQueued;
+
+				if(connectionQueue.mHasTurn)
+					return;
+
+				connectionQueue.mHasTurn = true;
+			}
+		}
+
+		if(rejected) {
+			if(logMINOR)
+				Logger.minor(this, "Too many queued messages, rejecting: " + message);
+
+			sendReply(connection, mFCPInterface.errorMessageFCP(message, "Overloaded",
+				"Too many messages are queued for this connection: "
+				+ MAX_QUEUED_MESSAGES_PER_CONNECTION));
+		} else
+			schedule(new Turn(connectionQueue));
+	}
+
+	private void schedule(Turn turn) {
+		try {
+			mReadPool.execute(turn);
+		} catch(RejectedExecutionException e) {
+			// stop() was called
+			Logger.normal(this, "Shutting down, dropping message", e);
+		}
+	}
+
+	/** Processes the oldest message of a connection. */
+	private final class Turn implements Runnable {
+		private final ConnectionQueue mQueue;
+
+		Turn(ConnectionQueue queue) {
+			mQueue = queue;
+		}
+
+		@Override public void run() {
+			final QueuedMessage message;
+			synchronized(FCPRequestDispatcher.this) {
+				message = mQueue.mMessages.peek();
+			}
+
+			final ThreadPoolExecutor executor;
+			if(WRITE_MESSAGES.contains(message.mType))
+				executor = mWriter;
+			else if(SUBSCRIPTION_MESSAGES.contains(message.mType))
+				executor = mSubscriptionPool;
+			else {
+				process(mQueue, message);
+				return;
+			}
+
+			// The turn of the connection continues on the other executor so the following
+			// messages of the connection cannot overtake the message.
+			try {
+				executor.execute(new Runnable() { @Override public void run() {
+					process(mQueue, message);
+				}});
+			} catch(RejectedExecutionException e) {
+				// stop() was called
+				Logger.normal(this, "Shutting down, dropping message", e);
+			}
+		}
+	}
+
+	/** Handles the message, sends the reply and ends the {@link Turn} of the connection. */
+	private void process(ConnectionQueue queue, QueuedMessage message) {
+		try {
+			final FCPPluginMessage reply;
+			try {
+				reply = mFCPInterface.handlePluginFCPMessageSynchronously(
+					queue.mConnection, message.mMessage);
+			} finally {
+				// Before sending the reply: A client which has received it shall see the message
+				// in the statistics.
+				final long latency = System.nanoTime() - message.mReceivedTime;
+				synchronized(this) {
+					final MessageTypeStatistics stats = getStatistics(message.mType);
+					--stats.mQueued;
+					stats.addLatency(latency);
+				}
+			}
+
+			// Is null if the handler has sent the reply on its own, or must not send one during
+			// shutdown.
+			if(reply != null)
+				sendReply(queue.mConnection, reply);
+		} finally {
+			boolean hasNextTurn;
+			synchronized(this) {
+				final QueuedMessage removed = queue.mMessages.poll();
+				assert(removed == message);
+
+				hasNextTurn = !queue.mMessages.isEmpty();
+				if(!hasNextTurn) {
+					queue.mHasTurn = false;
+					mConnections.remove(queue.mConnection.getID());
+				}
+			}
+
+			// Put the connection at the end of the line so other connections get a turn first.
+			if(hasNextTurn)
+				schedule(new Turn(queue));
+		}
+	}
+
+	private void sendReply(FCPPluginConnection connection, FCPPluginMessage reply) {
+		try {
+			connection.send(reply);
+		} catch(IOException e) {
+			// The client has disconnected, which it may do as it pleases.
+			Logger.normal(this, "Connection lost already while trying to send FCP reply.", e);
+		}
+	}
+
+	/** Must be called while synchronized on this FCPRequestDispatcher. */
+	private MessageTypeStatistics getStatistics(String type) {
+		MessageTypeStatistics stats = mStatistics.get(type);
+		if(stats == null) {
+			stats = new MessageTypeStatistics(type);
+			mStatistics.put(type, stats);
+		}
+		return stats;
+	}
+
+	/**
+	 * @return A clone of the statistics of each message type which was received at least once.
+	 *     Key = Message type, sorted alphabetically. */
+	public synchronized TreeMap<String, MessageTypeStatistics> getStatistics() {
+		TreeMap<String, MessageTypeStatistics> result
+			= new TreeMap<String, MessageTypeStatistics>();
+		for(MessageTypeStatistics stats : mStatistics.values())
+			result.put(stats.mMessageType, stats.clone());
+		return result;
+	}
+
+	/** Statistics of a single type of FCP message. */
+	public static final class MessageTypeStatistics implements Cloneable {
+		public final String mMessageType;
+
+		/** Number of messages which are queued or being processed currently. */
+		public int mQueued = 0;
+
+		/** Number of messages which have been processed completely. */
+		public long mProcessed = 0;
+
+		/** Number of messages which were rejected because their connection had
+		 *  {@link FCPRequestDispatcher#MAX_QUEUED_MESSAGES_PER_CONNECTION} messages queued. */
+		public long mRejected = 0;
+
+		/** Ring buffer of the latencies of the most recent {@link #mProcessed} messages, in
+		 *  nanoseconds. */
+		private long[] mLatencies = new long[LATENCY_SAMPLES];
+
+		MessageTypeStatistics(String messageType) {
+			mMessageType = messageType;
+		}
+
+		void addLatency(long nanoseconds) {
+			mLatencies[(int)(mProcessed % LATENCY_SAMPLES)] = nanoseconds;
+			++mProcessed;
+		}
+
+		/**
+		 * @param percentile For example 50 for the median, or 99.
+		 * @return The latency from reception of a message to completion of its reply in
+		 *     milliseconds which the given percentage of the recent messages did not exceed. 0 if
+		 *     no message has been processed yet. */
+		public double getLatencyPercentile(int percentile) {
+			assert(percentile >= 0 && percentile <= 100);
+			int samples = (int)Math.min(mProcessed, LATENCY_SAMPLES);
+			if(samples == 0)
+				return 0;
+
+			long[] sorted = Arrays.copyOf(mLatencies, samples);
+			Arrays.sort(sorted);
+			// Nearest-rank method
+			int rank = Math.max(1, (int)Math.ceil(percentile / 100d * samples));
+			return (double)sorted[rank - 1] / NANOSECONDS.convert(1, MILLISECONDS);
+		}
+
+		@Override public MessageTypeStatistics clone() {
+			try {
+				MessageTypeStatistics clone = (MessageTypeStatistics)super.clone();
+				clone.mLatencies = mLatencies.clone();
+				return clone;
+			} catch(CloneNotSupportedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+}
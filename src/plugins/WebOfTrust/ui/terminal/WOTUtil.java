@@ -17,17 +17,21 @@ import java.util.Random;
 import java.util.TreeMap;
 import java.util.UUID;
 
+import plugins.WebOfTrust.DatabaseProfiler;
 import plugins.WebOfTrust.Identity;
+import plugins.WebOfTrust.LogStorage;
+import plugins.WebOfTrust.Persistent;
+import plugins.WebOfTrust.Score;
+import plugins.WebOfTrust.StorageMigration;
 import plugins.WebOfTrust.Trust;
 import plugins.WebOfTrust.Trust.TrustID;
 import plugins.WebOfTrust.WebOfTrust;
+import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
 import plugins.WebOfTrust.exceptions.NotTrustedException;
 import plugins.WebOfTrust.exceptions.UnknownIdentityException;
 import plugins.WebOfTrust.ui.fcp.FCPInterface;
 import plugins.WebOfTrust.util.StopWatch;
 
-import com.db4o.ObjectSet;
-
 import freenet.clients.fcp.FCPPluginConnection;
 import freenet.clients.fcp.FCPPluginMessage;
 
@@ -136,13 +140,13 @@ public final class WOTUtil {
 		// The connection is *not* used then. It is only used if the server wants to asynchronously
 		// send another message in the future.
 		// So we can safely pass our fake connection which doesn't work, it likely won't be used.
-		return wot.getFCPInterface().handlePluginFCPMessage(connection, message);
+		return wot.getFCPInterface().handlePluginFCPMessageSynchronously(connection, message);
 	}
 
 	private static ArrayList<TrustID> getTrustsRandomized(WebOfTrust wot, Random random) {
 		System.out.println("Loading trusts...");
 		
-		ObjectSet<Trust> trusts = wot.getAllTrusts();
+		List<Trust> trusts = wot.getAllTrusts();
 		
 		System.out.println("Cloning trust IDs...");
 		
@@ -159,6 +163,110 @@ public final class WOTUtil {
 		return clones;
 	}
 
+	/**
+	 * Copies the {@link Identity}s, {@link Trust}s and {@link plugins.WebOfTrust.Score}s of the
+	 * database to a new {@link LogStorage}, see {@link StorageMigration}. */
+	public static void exportToLogStorage(WebOfTrust wot, File output) throws IOException {
+		if(output.exists())
+			throw new IOException("Output file exists already: " + output);
+		
+		final LogStorage log = new LogStorage(wot, output);
+		try {
+			System.out.println("Copying objects...");
+			
+			final StopWatch time = new StopWatch();
+			final int objects;
+			synchronized(wot) {
+			synchronized(Persistent.transactionLock(wot.getDatabase())) {
+				objects = StorageMigration.migrate(wot.getStorage(), log,
+					StorageMigration.DEFAULT_COMMIT_INTERVAL);
+			}
+			}
+			time.stop();
+			
+			final LogStorage.Statistics stats = log.getStatistics();
+			System.out.println("Copied objects: " + objects + " in " + time);
+			System.out.println("Identities: " + stats.mIdentities);
+			System.out.println("Trusts: " + stats.mTrusts);
+			System.out.println("Scores: " + stats.mScores);
+			System.out.println("Log size: " + stats.mFileSize + " bytes");
+		} finally {
+			log.close();
+		}
+	}
+
+	/**
+	 * Runs the lookups which the score computation and the UI use most upon all {@link Identity}s,
+	 * {@link Trust}s and {@link Score}s of the database with the {@link DatabaseProfiler} enabled,
+	 * and prints its statistics.<br>
+	 * To compare different values of {@link Persistent#DEFAULT_ACTIVATION_DEPTH} and
+	 * {@link WebOfTrust#CLASS_INDEXES}, run it multiple times with the according JVM options upon
+	 * copies of the same database. */
+	public static void profile(WebOfTrust wot) throws NotTrustedException, NotInTrustTreeException {
+		System.out.println("Activation depth: " + Persistent.DEFAULT_ACTIVATION_DEPTH);
+		System.out.println("Class indexes: "
+			+ (WebOfTrust.CLASS_INDEXES != null ? WebOfTrust.CLASS_INDEXES : "all"));
+		
+		// Not part of the profile: Copy the lists, the ObjectSets of db4o are lazy.
+		final List<Identity> identities = new ArrayList<Identity>(wot.getAllIdentities());
+		final List<Trust> trusts = new ArrayList<Trust>(wot.getAllTrusts());
+		final List<Score> scores = new ArrayList<Score>(wot.getAllScores());
+		
+		DatabaseProfiler.reset();
+		DatabaseProfiler.setEnabled(true);
+		
+		System.out.println("Profiling...");
+		
+		// Summing up the values prevents the JIT from removing the loops.
+		long sum = 0;
+		final StopWatch time = new StopWatch();
+		synchronized(wot) {
+			for(Identity identity : identities) {
+				for(Trust trust : wot.getGivenTrusts(identity))
+					sum += trust.getValue();
+				for(Trust trust : wot.getReceivedTrusts(identity))
+					sum += trust.getValue();
+				for(Score score : wot.getScores(identity))
+					sum += score.getScore();
+			}
+			for(Trust trust : trusts)
+				sum += wot.getTrust(trust.getTruster(), trust.getTrustee()).getValue();
+			for(Score score : scores)
+				sum += wot.getScore(score.getTruster(), score.getTrustee()).getScore();
+		}
+		time.stop();
+		
+		DatabaseProfiler.setEnabled(false);
+		
+		System.out.println("Identities: " + identities.size());
+		System.out.println("Trusts: " + trusts.size());
+		System.out.println("Scores: " + scores.size());
+		System.out.println("Total time: " + time + " (" + sum + ")");
+		printDatabaseProfile(System.out);
+	}
+
+	/** Prints the {@link DatabaseProfiler#getStatistics()}, see {@link #profile(WebOfTrust)}. */
+	public static void printDatabaseProfile(PrintStream out) {
+		for(DatabaseProfiler.Statistics stats : DatabaseProfiler.getStatistics().values()) {
+			out.println();
+			out.println(stats.mOperation);
+			out.println("    Count: " + stats.mCount);
+			out.println("    Total: " + stats.mTotalNanoseconds / (1000 * 1000) + " ms");
+			out.println("    Average: " + stats.getAverageMicroseconds() + " us");
+			out.println("    Maximum: " + stats.mMaxNanoseconds / 1000 + " us");
+			out.println("    Histogram:");
+			for(int i = 0; i < DatabaseProfiler.HISTOGRAM_BUCKETS; ++i) {
+				if(stats.getHistogram(i) == 0)
+					continue;
+				
+				final long limit
+					= DatabaseProfiler.Statistics.getHistogramBucketLimitMicroseconds(i);
+				out.println("        " + (limit != Long.MAX_VALUE ? "< " + limit : "more")
+					+ " us: " + stats.getHistogram(i));
+			}
+		}
+	}
+
 	public static void trustValueHistogram(WebOfTrust wot) {
 		// Counts number of occurrences of each possible Trust value. +1 for value of 0.
 		int[] histogram = new int[Trust.MAX_TRUST_VALUE + Math.abs(Trust.MIN_TRUST_VALUE) + 1];
@@ -166,7 +274,7 @@ public final class WOTUtil {
 		
 		// Compute histogram
 		
-		final ObjectSet<Trust> trusts = wot.getAllTrusts();
+		final List<Trust> trusts = wot.getAllTrusts();
 		final int trustCount = trusts.size();
 		int processedTrusts = 0;
 		
@@ -210,7 +318,7 @@ public final class WOTUtil {
 		
 		// Compute histogram
 		
-		final ObjectSet<Identity> trusters = wot.getAllIdentities();
+		final List<Identity> trusters = wot.getAllIdentities();
 		final int trusterCount = trusters.size();
 		final int onePercent = (trusterCount / 100);
 		int processedTrusters = 0;
@@ -247,7 +355,12 @@ public final class WOTUtil {
 		err.println("    ATTENTION: OUTPUT_GNUPLOT will be appended to, not overwritten.");
 		err.println("    Push ENTER to exit for pause. Resume by restarting with same parameters.");
 		err.println("    Deterministic execution by SEED is not supported with resume.");
+		err.println("WOTUtil -exportToLogStorage INPUT_DATABASE OUTPUT_LOG");
 		err.println("WOTUtil -fcp INPUT_DATABASE Message=WOT_FCP_CALL key1=value1 key2=value2 ...");
+		err.println("WOTUtil -profile INPUT_DATABASE");
+		err.println("    Profiles the database lookups. Set the JVM options -DWOT_activation_depth");
+		err.println("    and -DWOT_class_indexes by the environment variable WOTUTIL_JAVA_OPTIONS.");
+		err.println("    ATTENTION: Use a copy of the database if setting them.");
 		err.println("WOTUtil -testAndRepair INPUT_DATABASE");
 		err.println("WOTUtil -trustValueHistogram INPUT_DATABASE");
 		err.println("WOTUtil -trusteeCountHistogram INPUT_DATABASE");
@@ -281,12 +394,20 @@ public final class WOTUtil {
 				trustValueHistogram(wot);
 			else if(args[0].equalsIgnoreCase("-trusteeCountHistogram"))
 				trusteeCountHistogram(wot);
+			else if(args[0].equalsIgnoreCase("-profile"))
+				profile(wot);
 			else if(args[0].equalsIgnoreCase("-benchmarkRemoveTrustDestructive")) {
 				if(args.length != 4) {
 					printSyntax();
 					return 1;
 				}
 				benchmarkRemoveTrustDestructive(wot, new File(args[2]), Long.parseLong(args[3]));
+			} else if(args[0].equalsIgnoreCase("-exportToLogStorage")) {
+				if(args.length != 3) {
+					printSyntax();
+					return 1;
+				}
+				exportToLogStorage(wot, new File(args[2]));
 			} else if(args[0].equalsIgnoreCase("-fcp")) {
 				FCPPluginMessage message = FCPPluginMessage.construct();
 				for(String keyValuePair : Arrays.copyOfRange(args, 2, args.length)) {
@@ -23,18 +23,18 @@ import java.net.URISyntaxException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.TimeZone;
 
 import plugins.WebOfTrust.Identity;
 import plugins.WebOfTrust.OwnIdentity;
+import plugins.WebOfTrust.ReadSnapshot;
 import plugins.WebOfTrust.Trust;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
 import plugins.WebOfTrust.exceptions.NotTrustedException;
 import plugins.WebOfTrust.exceptions.UnknownIdentityException;
 import plugins.WebOfTrust.ui.web.WebInterface.IdentityWebInterfaceToadlet;
 
-import com.db4o.ObjectSet;
-
 import freenet.clients.http.RedirectException;
 import freenet.clients.http.SessionManager.Session;
 import freenet.clients.http.ToadletContext;
@@ -74,52 +74,65 @@ public class IdentityPage extends WebPageImpl {
 	 */
 	@Override
 	public void make(final boolean mayWrite) {
-        // TODO: Performance: The synchronized() can be removed after this is fixed:
-        // https://bugs.freenetproject.org/view.php?id=6247
-		synchronized(mWebOfTrust) {			
-		    try {
-	            identity = mWebOfTrust.getIdentityByID(mRequest.getParam("id"));
-		    } catch(UnknownIdentityException e) {
-		        new ErrorPage(mToadlet, mRequest, mContext, e).addToPage(this);
-		        return;
-		    }
-		    
-			makeURIBox();
-			makeServicesBox();
-			makeStatisticsBox();
-			makeAddTrustBox(mayWrite);
-			makeTrustsBox(mWebOfTrust.getGivenTrusts(identity), true);
-			makeTrustsBox(mWebOfTrust.getReceivedTrusts(identity), false);
+		final String identityID = mRequest.getParam("id");
+		
+		// We don't synchronize upon mWebOfTrust: The page is rendered from a ReadSnapshot, which
+		// is immutable, so all the data we display is coherent even without the lock.
+		try {
+			mWebOfTrust.getReadSnapshot().getIdentityByID(identityID);
+		} catch(UnknownIdentityException e) {
+			new ErrorPage(mToadlet, mRequest, mContext, e).addToPage(this);
+			return;
+		}
+		
+		// Must be done before obtaining the snapshot we display so the snapshot contains the
+		// changed Trust.
+		if(mayWrite && mRequest.isPartSet("SetTrust"))
+			setTrust(identityID);
+		
+		final ReadSnapshot snapshot = mWebOfTrust.getReadSnapshot();
+		try {
+			identity = snapshot.getIdentityByID(identityID);
+		} catch(UnknownIdentityException e) {
+			// Was deleted concurrently
+			new ErrorPage(mToadlet, mRequest, mContext, e).addToPage(this);
+			return;
 		}
+		
+		makeURIBox();
+		makeServicesBox();
+		makeStatisticsBox();
+		makeAddTrustBox(snapshot);
+		makeTrustsBox(snapshot, snapshot.getGivenTrusts(identityID), true);
+		makeTrustsBox(snapshot, snapshot.getReceivedTrusts(identityID), false);
 	}
 	
 	/**
 	 * @author ShadowW4lk3r (ShadowW4lk3r@ye~rQ4m~pu2Iu3O2TH-GOLBbSeKoQ~QR~vC6tJbKmDg.freetalkrc2) - Most of the code
 	 * @author xor (xor@freenetproject.org)	- Minor improvements only
 	 */
-	private void makeAddTrustBox(final boolean mayWrite) {
-		//Change trust level if needed
-		if(mayWrite && mRequest.isPartSet("SetTrust")) {
-			String value = mRequest.getPartAsStringFailsafe("Value", 4).trim();
-			// Set length limit 1 too much to ensure that setTrust() throws if the user entered too much. We need it to throw so we display an error message.
-			String comment = mRequest.getPartAsStringFailsafe("Comment", Trust.MAX_TRUST_COMMENT_LENGTH + 1);
+	private void setTrust(final String identityID) {
+		String value = mRequest.getPartAsStringFailsafe("Value", 4).trim();
+		// Set length limit 1 too much to ensure that setTrust() throws if the user entered too much. We need it to throw so we display an error message.
+		String comment = mRequest.getPartAsStringFailsafe("Comment", Trust.MAX_TRUST_COMMENT_LENGTH + 1);
 
-			try {
-				if(value.equals(""))
-					mWebOfTrust.removeTrust(mLoggedInOwnIdentity.getID(), identity.getID());
-				else {
-					mWebOfTrust.setTrust(mLoggedInOwnIdentity.getID(), identity.getID(),
-					    Byte.parseByte(value), comment);
-				}
-			} catch(NumberFormatException e) {
-				addErrorBox(l10n().getString("KnownIdentitiesPage.SetTrust.Failed"), l10n().getString("Trust.InvalidValue"));
-			} catch(InvalidParameterException e) {
-				addErrorBox(l10n().getString("KnownIdentitiesPage.SetTrust.Failed"), e.getMessage());
-			} catch(Exception e) {
-				addErrorBox(l10n().getString("KnownIdentitiesPage.SetTrust.Failed"), e);
+		try {
+			if(value.equals(""))
+				mWebOfTrust.removeTrust(mLoggedInOwnIdentity.getID(), identityID);
+			else {
+				mWebOfTrust.setTrust(mLoggedInOwnIdentity.getID(), identityID,
+				    Byte.parseByte(value), comment);
 			}
+		} catch(NumberFormatException e) {
+			addErrorBox(l10n().getString("KnownIdentitiesPage.SetTrust.Failed"), l10n().getString("Trust.InvalidValue"));
+		} catch(InvalidParameterException e) {
+			addErrorBox(l10n().getString("KnownIdentitiesPage.SetTrust.Failed"), e.getMessage());
+		} catch(Exception e) {
+			addErrorBox(l10n().getString("KnownIdentitiesPage.SetTrust.Failed"), e);
 		}
-
+	}
+	
+	private void makeAddTrustBox(final ReadSnapshot snapshot) {
 		HTMLNode boxContent = addContentBox(l10n().getString("IdentityPage.ChangeTrustBox.Header", "nickname", identity.getNickname()));
 
 		String trustValue = "";
@@ -127,7 +140,7 @@ public class IdentityPage extends WebPageImpl {
 
 		try
 		{
-			Trust trust = mWebOfTrust.getTrust(mLoggedInOwnIdentity.getID(), identity.getID());
+			Trust trust = snapshot.getTrust(mLoggedInOwnIdentity.getID(), identity.getID());
 			trustValue = String.valueOf(trust.getValue());
 			trustComment = trust.getComment();
 		}
@@ -201,7 +214,7 @@ public class IdentityPage extends WebPageImpl {
 	/**
 	 * @param showTrustee If true, show the trustee of the trust in the table. If false, show the truster.
 	 */
-	private void makeTrustsBox(ObjectSet<Trust> trusts, boolean showTrustee) {
+	private void makeTrustsBox(ReadSnapshot snapshot, List<Trust> trusts, boolean showTrustee) {
 		String l10n = showTrustee ? "IdentityPage.TrusteeTrustsBox.Header" : "IdentityPage.TrusterTrustsBox.Header";
 		HTMLNode trustsBox = addContentBox(l10n().getString(l10n, "nickname", identity.getNickname()));
 		HTMLNode trustsTable = trustsBox.addChild("table");
@@ -213,7 +226,14 @@ public class IdentityPage extends WebPageImpl {
 		
 		for(Trust trust : trusts) {
 			HTMLNode trustRow = trustsTable.addChild("tr");
-			Identity involvedIdentity = showTrustee ? trust.getTrustee() : trust.getTruster(); 
+			// The truster / trustee of Trusts of the snapshot is only guaranteed to have a valid ID.
+			String involvedID = (showTrustee ? trust.getTrustee() : trust.getTruster()).getID();
+			Identity involvedIdentity;
+			try {
+				involvedIdentity = snapshot.getIdentityByID(involvedID);
+			} catch (UnknownIdentityException e) {
+				throw new RuntimeException(e); // Cannot happen: Trusts are deleted with their Identitys
+			}
 			
 			String nickname = involvedIdentity.getNickname();
 			HTMLNode nicknameNode;
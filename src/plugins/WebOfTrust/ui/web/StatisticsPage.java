@@ -12,12 +12,17 @@ import java.util.Date;
 import java.util.concurrent.TimeUnit;
 
 import plugins.WebOfTrust.Configuration;
+import plugins.WebOfTrust.DatabaseCompactor;
+import plugins.WebOfTrust.GroupCommitter;
 import plugins.WebOfTrust.Identity;
 import plugins.WebOfTrust.IdentityFileProcessor;
 import plugins.WebOfTrust.IdentityFileQueue.IdentityFileQueueStatistics;
+import plugins.WebOfTrust.ReadSnapshot;
+import plugins.WebOfTrust.StartupVerifier;
 import plugins.WebOfTrust.SubscriptionManager;
 import plugins.WebOfTrust.WebOfTrust;
 import plugins.WebOfTrust.introduction.IntroductionPuzzleStore;
+import plugins.WebOfTrust.ui.fcp.FCPRequestDispatcher.MessageTypeStatistics;
 import freenet.clients.http.ToadletContext;
 import plugins.WebOfTrust.util.CurrentTimeUTC;
 import freenet.support.HTMLNode;
@@ -45,8 +50,11 @@ public class StatisticsPage extends WebPageImpl {
 	@Override
 	public void make(final boolean mayWrite) {
 		makeSummary();
+		makeStartupVerifierBox();
 		makeIdentityFileQueueBox();
 		makeIdentityFileProcessorBox();
+		makeFCPBox();
+		makeDatabaseCommitsBox();
 		makeMaintenanceBox();
 	}
 
@@ -57,15 +65,21 @@ public class StatisticsPage extends WebPageImpl {
 		HTMLNode box = addContentBox(l10n().getString("StatisticsPage.SummaryBox.Header"));
 		HTMLNode list = new HTMLNode("ul");
 		
+		// The counts which don't need database queries are computed from the ReadSnapshot, which
+		// doesn't require the lock: Getting the full lists from the database would take long.
+		final ReadSnapshot snapshot = mWebOfTrust.getReadSnapshot();
+		final int ownIdentityCount = snapshot.getOwnIdentityCount();
+		final long editionSum = getEditionSum(snapshot);
+		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.OwnIdentities") + ": " + ownIdentityCount));
+		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.KnownIdentities") + ": " + (snapshot.getIdentityCount() - ownIdentityCount)));
+		
         // TODO: Performance: All the synchronized() can be removed after this is fixed:
         // https://bugs.freenetproject.org/view.php?id=6247
 		synchronized(mWebOfTrust) {
-		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.OwnIdentities") + ": " + mWebOfTrust.getAllOwnIdentities().size()));
-		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.KnownIdentities") + ": " + mWebOfTrust.getAllNonOwnIdentities().size()));
 		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.UnfetchedIdentities") + " " + mWebOfTrust.getNumberOfUnfetchedIdentities()));
-		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.FetchProgress", "editionCount", Long.toString(getEditionSum()))));
-		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.TrustRelationships") + ": " + mWebOfTrust.getAllTrusts().size()));
-		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.ScoreRelationships") + ": " + mWebOfTrust.getAllScores().size()));
+		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.FetchProgress", "editionCount", Long.toString(editionSum))));
+		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.TrustRelationships") + ": " + snapshot.getTrustCount()));
+		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.ScoreRelationships") + ": " + snapshot.getScoreCount()));
 		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.FullRecomputations") + ": " + mWebOfTrust.getNumberOfFullScoreRecomputations()));
 		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.FullRecomputationTime") + ": " + mWebOfTrust.getAverageFullScoreRecomputationTime()));
 		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.IncrementalTrustRecomputations") + " " + mWebOfTrust.getNumberOfIncrementalScoreRecomputationDueToTrust()));
@@ -92,6 +106,12 @@ public class StatisticsPage extends WebPageImpl {
 		    list.addChild(new HTMLNode("li",
 		        l10n().getString("StatisticsPage.SummaryBox.EventNotifications.Total", "amount",
 		            Long.toString(sm.getTotalNotificationsAmountForCurrentClients()))));
+		    list.addChild(new HTMLNode("li",
+		        l10n().getString("StatisticsPage.SummaryBox.EventNotifications.Coalesced", "amount",
+		            Long.toString(sm.getCoalescedNotificationAmount()))));
+		    list.addChild(new HTMLNode("li",
+		        l10n().getString("StatisticsPage.SummaryBox.EventNotifications.Filtered", "amount",
+		            Long.toString(sm.getFilteredNotificationAmount()))));
 		}
 		
 		box.addChild(list);
@@ -100,14 +120,41 @@ public class StatisticsPage extends WebPageImpl {
 	/**
 	 * TODO: Move to class {@link WebOfTrust}
 	 */
-	private long getEditionSum() {
+	private long getEditionSum(final ReadSnapshot snapshot) {
 		long editionSum = 0;
-		for(Identity identity : mWebOfTrust.getAllIdentities()) {
+		for(Identity identity : snapshot.getAllIdentities()) {
 			editionSum += identity.getEdition();
 		}
 		return editionSum;
 	}
 
+	public void makeStartupVerifierBox() {
+		StartupVerifier verifier = mWebOfTrust.getStartupVerifier();
+		if(verifier == null) // Unit tests
+			return;
+		
+		String l10nPrefix = "StatisticsPage.StartupVerifierBox.";
+		HTMLNode box = addContentBox(l10n().getString(l10nPrefix + "Header"));
+		HTMLNode list = new HTMLNode("ul");
+		StartupVerifier.Statistics stats = verifier.getStatistics();
+		
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "Stage") + " "
+			+ l10n().getString(l10nPrefix + "Stage." + stats.mStage.name())));
+		
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "TestedObjects",
+			new String[] { "tested", "total" },
+			new String[] { Integer.toString(stats.mTestedObjects),
+			               Integer.toString(stats.mObjectsToTest) })));
+		
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "FailedSlices") + " "
+			+ stats.mFailedSlices));
+		
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "Duration") + " "
+			+ stats.getDuration()));
+		
+		box.addChild(list);
+	}
+
 	public void makeIdentityFileQueueBox() {
 		String l10nPrefix = "StatisticsPage.IdentityFileQueueBox.";
 		HTMLNode box = addContentBox(l10n().getString(l10nPrefix + "Header"));
@@ -150,10 +197,120 @@ public class StatisticsPage extends WebPageImpl {
 		
 		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "AverageProcessingTimeSecs")
 			+ " " + stats.getAverageXMLImportTime()));
+
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "ProcessedBatches") + " "
+			+ stats.mProcessedBatches));
+
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "FailedBatches") + " "
+			+ stats.mFailedBatches));
+
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "AverageBatchSize") + " "
+			+ stats.getAverageBatchSize()));
+
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "MaxBatchSize") + " "
+			+ stats.mMaxBatchSize));
+
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "TotalBatchParsingTime")
+			+ " " + TimeUtil.formatTime(
+				TimeUnit.NANOSECONDS.toMillis(stats.mBatchParsingTimeNanoseconds))));
+
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "TotalBatchImportTime")
+			+ " " + TimeUtil.formatTime(
+				TimeUnit.NANOSECONDS.toMillis(stats.mBatchImportTimeNanoseconds))));
+
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "ParsedFiles") + " "
+			+ stats.mParsedFiles));
+
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "ParsingFiles") + " "
+			+ stats.mParsingFiles));
+
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "AverageParsingTimeSecs")
+			+ " " + stats.getAverageParsingTime()));
+
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "TotalParsingBlockedTime")
+			+ " " + TimeUtil.formatTime(
+				TimeUnit.NANOSECONDS.toMillis(stats.mParsingBlockedTimeNanoseconds))));
+
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "HandoffFiles") + " "
+			+ stats.mHandoffFiles));
+
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "MaxHandoffFiles") + " "
+			+ stats.mMaxHandoffFiles));
+
+		list.addChild(new HTMLNode("li",
+			l10n().getString(l10nPrefix + "AverageHandoffWaitTimeSecs") + " "
+			+ stats.getAverageHandoffWaitTime()));
 		
 		box.addChild(list);
 	}
 
+	public void makeFCPBox() {
+		String l10nPrefix = "StatisticsPage.FCPBox.";
+		HTMLNode box = addContentBox(l10n().getString(l10nPrefix + "Header"));
+		HTMLNode list = new HTMLNode("ul");
+		
+		for(MessageTypeStatistics stats
+				: mWebOfTrust.getFCPInterface().getRequestStatistics().values()) {
+			
+			list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "MessageType",
+				new String[] { "type", "queued", "processed", "rejected",
+				               "median", "percentile90", "percentile99" },
+				new String[] { stats.mMessageType,
+				               Integer.toString(stats.mQueued),
+				               Long.toString(stats.mProcessed),
+				               Long.toString(stats.mRejected),
+				               formatMilliseconds(stats.getLatencyPercentile(50)),
+				               formatMilliseconds(stats.getLatencyPercentile(90)),
+				               formatMilliseconds(stats.getLatencyPercentile(99)) })));
+		}
+		
+		box.addChild(list);
+	}
+
+	public void makeDatabaseCommitsBox() {
+		GroupCommitter committer = mWebOfTrust.getGroupCommitter();
+		if(committer == null) // Unit tests
+			return;
+		
+		String l10nPrefix = "StatisticsPage.DatabaseCommitsBox.";
+		HTMLNode box = addContentBox(l10n().getString(l10nPrefix + "Header"));
+		HTMLNode list = new HTMLNode("ul");
+		GroupCommitter.Statistics stats = committer.getStatistics();
+		
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "Commits") + " "
+			+ stats.mCommits));
+		
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "AverageCommitTime") + " "
+			+ formatMilliseconds(stats.getAverageCommitMilliseconds())));
+		
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "MaxCommitTime") + " "
+			+ formatMilliseconds((double)stats.mMaxCommitNanoseconds / (1000 * 1000))));
+		
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "DeferredTransactions")
+			+ " " + stats.mDeferredTransactions));
+		
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "GroupCommits") + " "
+			+ stats.mGroupCommits));
+		
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "SavedCommits") + " "
+			+ stats.getSavedCommits()));
+		
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "PendingTransactions")
+			+ " " + stats.mPendingTransactions));
+		
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "ReappliedTransactions")
+			+ " " + stats.mReappliedTransactions));
+		
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "LostTransactions") + " "
+			+ stats.mLostTransactions));
+		
+		box.addChild(list);
+	}
+
+	private static String formatMilliseconds(double milliseconds) {
+		return String.format("%.1f", milliseconds);
+	}
+
 	public void makeMaintenanceBox() {
 		String l10nPrefix = "StatisticsPage.MaintenanceBox.";
 		HTMLNode box = addContentBox(l10n().getString(l10nPrefix + "Header"));
@@ -187,6 +344,22 @@ public class StatisticsPage extends WebPageImpl {
 		list.addChild(new HTMLNode("li", defrag));
 		list.addChild(new HTMLNode("li", verification));
 		
+		DatabaseCompactor compactor = mWebOfTrust.getDatabaseCompactor();
+		if(compactor != null) {
+			DatabaseCompactor.Statistics stats = compactor.getStatistics();
+			
+			list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "Compaction") + " "
+				+ l10n().getString(l10nPrefix + "Compaction.Stage." + stats.mStage.name())));
+			
+			list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "CompactionProgress",
+				new String[] { "copied",
+				               "total",
+				               "replayed" },
+				new String[] { Integer.toString(stats.mCopiedObjects),
+				               Integer.toString(stats.mObjectsToCopy),
+				               Integer.toString(stats.mReplayedChanges) })));
+		}
+		
 		box.addChild(list);
 	}
 
@@ -20,6 +20,7 @@ import freenet.clients.http.SessionManager.Session;
 import freenet.clients.http.Toadlet;
 import freenet.clients.http.ToadletContext;
 import freenet.clients.http.ToadletContextClosedException;
+import freenet.l10n.BaseL10n;
 import freenet.node.NodeClientCore;
 import freenet.support.Logger;
 import freenet.support.api.HTTPRequest;
@@ -191,7 +192,7 @@ public abstract class WebInterfaceToadlet extends Toadlet implements LinkEnabled
 	 * @param mayWrite This indicates whether the resulting {@link WebPage} is allowed to change the server state, for example write to the WOT database.
 	 *                 Must be false for GET-requests. You MUST only set this to true if {@link #checkAntiCSRFToken(HTTPRequest, ToadletContext)} returned true.
 	 */
-	private void handleRequest(final URI uri, final HTTPRequest request, final ToadletContext ctx, final boolean mayWrite)
+	private void handleRequest(final URI uri, final HTTPRequest request, final ToadletContext ctx, boolean mayWrite)
 			throws RedirectException, ToadletContextClosedException, IOException {
 		String ret = "";
 		WebPage page = null;
@@ -214,6 +215,18 @@ public abstract class WebInterfaceToadlet extends Toadlet implements LinkEnabled
 		}
 		
 		if(page != null) {
+			// The UI is read-only while the database is being verified after startup.
+			if(mayWrite && !webInterface.getWoT().isStartupVerificationFinished()) {
+				mayWrite = false;
+				
+				if(page instanceof WebPageImpl) {
+					final BaseL10n l10n = webInterface.l10n();
+					((WebPageImpl)page).addErrorBox(
+						l10n.getString("WebInterface.StartupVerification.Header"),
+						l10n.getString("WebInterface.StartupVerification.Text"));
+				}
+			}
+			
 			page.make(mayWrite);
 			ret = page.toHTML();
 		}
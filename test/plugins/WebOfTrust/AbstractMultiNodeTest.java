@@ -292,6 +292,14 @@ public abstract class AbstractMultiNodeTest
         
         WebOfTrust wot = (WebOfTrust) wotWrapper.getPlugin();
         
+        // The tests expect WOT to accept changes from its user interfaces, which it only does
+        // after the StartupVerifier has finished.
+        try {
+            wot.getStartupVerifier().waitUntilFinished();
+        } catch(InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        
         // Prevent unit tests from having to do thread synchronization by terminating all WOT
         // subsystems which run their own thread.
         if(shouldTerminateAllWoTThreads())
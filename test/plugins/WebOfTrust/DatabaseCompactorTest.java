@@ -0,0 +1,207 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.DatabaseCompactor.Stage;
+import plugins.WebOfTrust.exceptions.DuplicateTrustException;
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+import plugins.WebOfTrust.exceptions.UnknownPuzzleException;
+import plugins.WebOfTrust.introduction.IntroductionPuzzle;
+import plugins.WebOfTrust.introduction.IntroductionPuzzle.PuzzleType;
+import plugins.WebOfTrust.introduction.IntroductionPuzzleStore;
+import plugins.WebOfTrust.introduction.OwnIntroductionPuzzle;
+import plugins.WebOfTrust.util.CurrentTimeUTC;
+
+/** Tests {@link DatabaseCompactor}. */
+public final class DatabaseCompactorTest extends AbstractJUnit4BaseTest {
+
+	private WebOfTrust mWebOfTrust;
+
+
+	@Before public void setUp() {
+		mWebOfTrust = constructEmptyWebOfTrust();
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+	/**
+	 * Tests whether the compacted database equals the original one if changes happen during and
+	 * after the copy, including the conversion of Identitys to OwnIdentitys and vice versa. */
+	@Test public void testCompaction()
+			throws MalformedURLException, InvalidParameterException, NotTrustedException,
+			DuplicateTrustException, UnknownIdentityException {
+
+		ArrayList<Identity> identities = addRandomIdentities(5, 50);
+		addRandomTrustValues(identities, 500);
+
+		final File database = mWebOfTrust.getDatabaseFile();
+		final Date lastDefragDate = mWebOfTrust.getConfig().getLastDefragDate();
+		final DatabaseCompactor compactor = mWebOfTrust.startDatabaseCompaction(null);
+		assertEquals(Stage.Waiting, compactor.getStatistics().mStage);
+
+		compactor.run();
+		DatabaseCompactor.Statistics stats = compactor.getStatistics();
+		assertEquals(Stage.ReplayingChanges, stats.mStage);
+		assertEquals(stats.mObjectsToCopy, stats.mCopiedObjects);
+		assertTrue(DatabaseCompactor.getCompactedFile(database).exists());
+
+		// Replayed by run()
+		doRandomChangesToWOT(200);
+		compactor.run();
+		assertTrue(compactor.getStatistics().mReplayedChanges > 0);
+
+		// Replayed by finish() at terminate()
+		doRandomChangesToWOT(200);
+
+		// The objects of the snapshot cannot be used after terminate(), so describe them now.
+		final HashMap<String, String> expected = describe(mWebOfTrust.getReadSnapshot());
+		mWebOfTrust.terminate();
+		assertTrue(mWebOfTrust.isTerminated());
+		stats = compactor.getStatistics();
+		assertEquals(Stage.Finished, stats.mStage);
+		assertEquals(database.length(), stats.mCompactedFileSize);
+		assertFalse(DatabaseCompactor.getCompactedFile(database).exists());
+		assertFalse(DatabaseCompactor.getBackupFile(database).exists());
+
+		mWebOfTrust = new WebOfTrust(database.toString());
+		assertTrue(mWebOfTrust.getConfig().getLastDefragDate().after(lastDefragDate));
+		assertEquals(expected, describe(mWebOfTrust.getReadSnapshot()));
+		// The @After testDatabaseIntegrityAfterTermination() will verify the database integrity
+		// and the Scores.
+	}
+
+	/**
+	 * Tests whether the {@link IntroductionPuzzle}s and {@link OwnIntroductionPuzzle}s are
+	 * copied including their solved and inserted state. */
+	@Test public void testCompactionKeepsPuzzles()
+			throws MalformedURLException, InvalidParameterException, UnknownPuzzleException {
+
+		final IntroductionPuzzleStore store = mWebOfTrust.getIntroductionPuzzleStore();
+		final OwnIdentity inserter = mWebOfTrust.createOwnIdentity(getRandomInsertURI(),
+			"Inserter", true, null);
+		final OwnIdentity solver = mWebOfTrust.createOwnIdentity(getRandomInsertURI(),
+			"Solver", true, null);
+		final Date now = CurrentTimeUTC.get();
+		final ArrayList<IntroductionPuzzle> puzzles = new ArrayList<IntroductionPuzzle>();
+
+		for(int i = 0; i < 3; ++i) {
+			final OwnIntroductionPuzzle puzzle = new OwnIntroductionPuzzle(mWebOfTrust,
+				inserter, PuzzleType.Captcha, "image/jpeg", new byte[] { 0 }, "solution", now,
+				store.getFreeIndex(inserter, now));
+			if(i > 0)
+				puzzle.setInserted();
+			if(i == 1)
+				puzzle.setSolved(solver);
+			store.storeAndCommit(puzzle);
+			puzzles.add(puzzle);
+		}
+
+		final IntroductionPuzzle puzzle = new IntroductionPuzzle(mWebOfTrust, solver,
+			UUID.randomUUID().toString() + "@" + solver.getID(), PuzzleType.Captcha, "image/jpeg",
+			new byte[] { 0 }, now, new Date(now.getTime() + DAYS.toMillis(1)),
+			store.getFreeIndex(solver, now));
+		puzzle.setSolved(inserter, "solution");
+		store.storeAndCommit(puzzle);
+		puzzles.add(puzzle);
+
+		final HashMap<String, String> expected = describe(puzzles);
+		final File database = mWebOfTrust.getDatabaseFile();
+		final DatabaseCompactor compactor = mWebOfTrust.startDatabaseCompaction(null);
+		compactor.run();
+		mWebOfTrust.terminate();
+		assertEquals(Stage.Finished, compactor.getStatistics().mStage);
+
+		mWebOfTrust = new WebOfTrust(database.toString());
+		final ArrayList<IntroductionPuzzle> copies = new ArrayList<IntroductionPuzzle>();
+		for(IntroductionPuzzle original : puzzles)
+			copies.add(mWebOfTrust.getIntroductionPuzzleStore().getByID(original.getID()));
+		assertEquals(expected, describe(copies));
+	}
+
+	/** Tests whether the compacted file is deleted if WOT is terminated before the copy. */
+	@Test public void testAbort() throws MalformedURLException, InvalidParameterException {
+		addRandomIdentities(2, 10);
+
+		final File database = mWebOfTrust.getDatabaseFile();
+		final DatabaseCompactor compactor = mWebOfTrust.startDatabaseCompaction(null);
+		mWebOfTrust.terminate();
+
+		assertEquals(Stage.Aborted, compactor.getStatistics().mStage);
+		assertFalse(DatabaseCompactor.getCompactedFile(database).exists());
+		assertTrue(database.exists());
+		mWebOfTrust = new WebOfTrust(database.toString());
+	}
+
+	/**
+	 * @return Key = ID of each {@link Identity}, {@link Trust} and {@link Score} of the snapshot,
+	 *     value = its encoded member variables. For Trusts and Scores, the truster and trustee are
+	 *     described by their ID only, see {@link ReadSnapshot}. */
+	private static HashMap<String, String> describe(ReadSnapshot snapshot) {
+		final HashMap<String, String> result = new HashMap<String, String>();
+
+		for(Identity identity : snapshot.getAllIdentities()) {
+			result.put(identity.getID(), identity.getClass().getSimpleName()
+				+ Arrays.toString(EventSourceCodec.encode(identity, null)));
+		}
+
+		for(Trust trust : snapshot.getAllTrusts()) {
+			result.put("Trust " + trust.getID(), trust.getValue() + " " + trust.getComment()
+				+ " " + trust.getDateOfLastChange().getTime());
+		}
+
+		for(Score score : snapshot.getAllScores()) {
+			result.put("Score " + score.getID(), score.getScore() + " " + score.getRank()
+				+ " " + score.getCapacity() + " " + score.getDateOfLastChange().getTime());
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return Key = ID of each puzzle, value = its class, inserter, state, solver and solution.
+	 *     The solution is described by the {@link IntroductionPuzzle#getSolutionURI()} as the
+	 *     solution itself is not public. */
+	private static HashMap<String, String> describe(ArrayList<IntroductionPuzzle> puzzles) {
+		final HashMap<String, String> result = new HashMap<String, String>();
+
+		for(IntroductionPuzzle puzzle : puzzles) {
+			String description = puzzle.getClass().getSimpleName()
+				+ " " + puzzle.getInserter().getID()
+				+ " " + puzzle.getCreationDate().getTime()
+				+ " " + puzzle.wasInserted() + " " + puzzle.wasSolved();
+
+			if(puzzle.wasSolved()) {
+				final Identity solver = puzzle.getSolver();
+				description += " " + (solver != null ? solver.getID() : null)
+					+ " " + puzzle.getSolutionURI();
+			} else if(puzzle instanceof OwnIntroductionPuzzle)
+				description += " " + puzzle.getSolutionURI();
+
+			result.put(puzzle.getID(), description);
+		}
+
+		return result;
+	}
+
+}
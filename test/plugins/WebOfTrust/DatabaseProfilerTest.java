@@ -0,0 +1,108 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+
+/** Tests {@link DatabaseProfiler}. */
+public final class DatabaseProfilerTest extends AbstractJUnit4BaseTest {
+
+	private WebOfTrust mWebOfTrust;
+
+
+	@Before public void setUp() {
+		mWebOfTrust = constructEmptyWebOfTrust();
+		DatabaseProfiler.reset();
+	}
+
+	@After public void tearDown() {
+		// The profiler is static, don't slow down the other tests.
+		DatabaseProfiler.setEnabled(false);
+		DatabaseProfiler.reset();
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+	@Test public void testProfile() throws MalformedURLException, InvalidParameterException,
+			NotTrustedException {
+
+		DatabaseProfiler.setEnabled(false);
+		addRandomTrustValues(addRandomIdentities(2, 10), 20);
+		assertTrue(DatabaseProfiler.getStatistics().isEmpty());
+
+		DatabaseProfiler.setEnabled(true);
+		final ArrayList<Identity> identities = addRandomIdentities(2, 10);
+		final ArrayList<Trust> trusts = addRandomTrustValues(identities, 20);
+		for(Identity identity : identities)
+			mWebOfTrust.getGivenTrusts(identity).size();
+		DatabaseProfiler.setEnabled(false);
+
+		final TreeMap<String, DatabaseProfiler.Statistics> statistics
+			= DatabaseProfiler.getStatistics();
+
+		final DatabaseProfiler.Statistics queries
+			= statistics.get("query Db4oStorage.getGivenTrusts");
+		assertNotNull(statistics.keySet().toString(), queries);
+		assertTrue(queries.mCount >= identities.size());
+
+		final DatabaseProfiler.Statistics stores = statistics.get("store Trust");
+		assertNotNull(statistics.keySet().toString(), stores);
+		assertTrue(stores.mCount >= trusts.size());
+
+		for(DatabaseProfiler.Statistics stats : statistics.values()) {
+			assertFalse(stats.mOperation.contains("unknown"));
+			assertTrue(stats.mCount > 0);
+			assertTrue(stats.mMaxNanoseconds <= stats.mTotalNanoseconds);
+
+			long histogramCount = 0;
+			for(int i = 0; i < DatabaseProfiler.HISTOGRAM_BUCKETS; ++i)
+				histogramCount += stats.getHistogram(i);
+			assertEquals(stats.mCount, histogramCount);
+		}
+
+		// The snapshot must not change.
+		final long count = queries.mCount;
+		DatabaseProfiler.setEnabled(true);
+		mWebOfTrust.getGivenTrusts(identities.get(0)).size();
+		assertEquals(count, queries.mCount);
+		assertEquals(count + 1,
+			DatabaseProfiler.getStatistics().get("query Db4oStorage.getGivenTrusts").mCount);
+
+		DatabaseProfiler.reset();
+		assertTrue(DatabaseProfiler.getStatistics().isEmpty());
+	}
+
+	@Test public void testGetHistogramBucket() {
+		assertEquals(0, DatabaseProfiler.Statistics.getHistogramBucket(0));
+		assertEquals(0, DatabaseProfiler.Statistics.getHistogramBucket(999));
+		assertEquals(1, DatabaseProfiler.Statistics.getHistogramBucket(1000));
+		assertEquals(1, DatabaseProfiler.Statistics.getHistogramBucket(1999));
+		assertEquals(2, DatabaseProfiler.Statistics.getHistogramBucket(2000));
+		assertEquals(DatabaseProfiler.HISTOGRAM_BUCKETS - 1,
+			DatabaseProfiler.Statistics.getHistogramBucket(Long.MAX_VALUE));
+
+		for(int i = 0; i < DatabaseProfiler.HISTOGRAM_BUCKETS - 1; ++i) {
+			final long limit = DatabaseProfiler.Statistics.getHistogramBucketLimitMicroseconds(i);
+			assertEquals(i, DatabaseProfiler.Statistics.getHistogramBucket(limit * 1000 - 1));
+			assertEquals(i + 1, DatabaseProfiler.Statistics.getHistogramBucket(limit * 1000));
+		}
+	}
+
+}
@@ -0,0 +1,417 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.SubscriptionManagerFCPTest.ReplyReceiver;
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+import plugins.WebOfTrust.ui.fcp.FCPClientReferenceImplementation;
+import plugins.WebOfTrust.ui.fcp.FCPInterface;
+import plugins.WebOfTrust.ui.fcp.FCPRequestDispatcher;
+import plugins.WebOfTrust.ui.fcp.FCPRequestDispatcher.MessageTypeStatistics;
+import freenet.clients.fcp.FCPPluginConnection;
+import freenet.clients.fcp.FCPPluginMessage;
+import freenet.pluginmanager.FredPluginFCPMessageHandler;
+import freenet.pluginmanager.PluginNotFoundException;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Tests the paged queries "GetIdentities" / "GetTrusts" / "GetScores" of {@link FCPInterface},
+ * the selection of the fields of their replies, and the {@link FCPRequestDispatcher}.
+ */
+public final class FCPInterfaceTest extends AbstractSingleNodeTest {
+
+	private final ReplyReceiver mReplyReceiver = new ReplyReceiver();
+
+	private FCPPluginConnection mConnection;
+
+	@Before public void setUpClient() throws Exception {
+		mConnection = mWebOfTrust.getPluginRespirator()
+			.connectToOtherPlugin(FCPClientReferenceImplementation.WOT_FCP_NAME, mReplyReceiver);
+	}
+
+	@Before public void setUpWOT() throws UnknownIdentityException, MalformedURLException {
+		deleteSeedIdentities();
+	}
+
+	private FCPPluginMessage fcpCall(final SimpleFieldSet params)
+			throws IOException, InterruptedException {
+
+		return mConnection.sendSynchronous(
+			FCPPluginMessage.construct(params, null), SECONDS.toNanos(60));
+	}
+
+	/** Fetches all pages of the given type and returns the IDs of all received objects. */
+	private HashSet<String> getAllPages(final String type, final int limit)
+			throws IOException, InterruptedException {
+
+		final HashSet<String> ids = new HashSet<String>();
+		String continuation = null;
+		do {
+			final SimpleFieldSet sfs = new SimpleFieldSet(true);
+			sfs.putOverwrite("Message", "Get" + type);
+			sfs.put("Limit", limit);
+			if(continuation != null)
+				sfs.putOverwrite("Continuation", continuation);
+
+			final FCPPluginMessage reply = fcpCall(sfs);
+			assertTrue(reply.success);
+			assertEquals(type, reply.params.get("Message"));
+
+			final int amount = Integer.parseInt(reply.params.get(type + ".Amount"));
+			assertTrue(amount <= limit);
+			for(int i = 0; i < amount; ++i)
+				assertTrue(ids.add(reply.params.get(type + "." + i + ".ID")));
+
+			continuation = reply.params.get("Continuation");
+			if(continuation != null)
+				assertEquals(limit, amount);
+		} while(continuation != null);
+
+		return ids;
+	}
+
+	@Test public void testPaging() throws MalformedURLException, InvalidParameterException,
+			NotTrustedException, IOException, InterruptedException {
+
+		addRandomTrustValues(addRandomIdentities(2, 20), 40);
+
+		final HashSet<String> identityIDs = new HashSet<String>();
+		final HashSet<String> trustIDs = new HashSet<String>();
+		final HashSet<String> scoreIDs = new HashSet<String>();
+		synchronized(mWebOfTrust) {
+			for(Identity identity : mWebOfTrust.getAllIdentities())
+				identityIDs.add(identity.getID());
+			for(Trust trust : mWebOfTrust.getAllTrusts())
+				trustIDs.add(trust.getID());
+			for(Score score : mWebOfTrust.getAllScores())
+				scoreIDs.add(score.getID());
+		}
+
+		// Use a limit which does not divide the amounts to test an incomplete last page, and a
+		// limit which is larger than the amounts to test a single page.
+		for(int limit : new int[] { 1, 7, 1000 }) {
+			assertEquals(identityIDs, getAllPages("Identities", limit));
+			assertEquals(trustIDs, getAllPages("Trusts", limit));
+			assertEquals(scoreIDs, getAllPages("Scores", limit));
+		}
+	}
+
+	@Test public void testOffset() throws MalformedURLException, InvalidParameterException,
+			IOException, InterruptedException {
+
+		addRandomIdentities(10);
+
+		final SimpleFieldSet sfs = new SimpleFieldSet(true);
+		sfs.putOverwrite("Message", "GetIdentities");
+		sfs.put("Offset", 8);
+		final FCPPluginMessage reply = fcpCall(sfs);
+		assertTrue(reply.success);
+		assertEquals("2", reply.params.get("Identities.Amount"));
+		assertNull(reply.params.get("Continuation"));
+
+		sfs.put("Offset", -1);
+		assertFalse(fcpCall(sfs).success);
+	}
+
+	@Test public void testStream() throws MalformedURLException, InvalidParameterException,
+			IOException, InterruptedException {
+
+		addRandomIdentities(10);
+
+		final SimpleFieldSet sfs = new SimpleFieldSet(true);
+		sfs.putOverwrite("Message", "GetIdentities");
+		sfs.put("Limit", 3);
+		sfs.putOverwrite("Stream", "true");
+		final FCPPluginMessage request = FCPPluginMessage.construct(sfs, null);
+		final FCPPluginMessage reply = mConnection.sendSynchronous(request, SECONDS.toNanos(60));
+
+		assertTrue(reply.success);
+		assertEquals("3", reply.params.get("Page"));
+		assertEquals("1", reply.params.get("Identities.Amount"));
+		assertNull(reply.params.get("Continuation"));
+
+		// The ReplyReceiver has acknowledged the pages before the last one.
+		final HashSet<String> ids = new HashSet<String>();
+		for(int page = 0; page < 3; ++page) {
+			final FCPPluginMessage pageMessage = mReplyReceiver.getNextResult();
+			assertEquals(request.identifier, pageMessage.params.get("RequestIdentifier"));
+			assertEquals(Integer.toString(page), pageMessage.params.get("Page"));
+			assertEquals("3", pageMessage.params.get("Identities.Amount"));
+			assertNotNull(pageMessage.params.get("Continuation"));
+			for(int i = 0; i < 3; ++i)
+				assertTrue(ids.add(pageMessage.params.get("Identities." + i + ".ID")));
+		}
+		assertFalse(mReplyReceiver.hasNextResult());
+		assertTrue(ids.add(reply.params.get("Identities.0.ID")));
+		assertEquals(10, ids.size());
+	}
+
+	/**
+	 * Sends a streamed "GetIdentities" with "Limit" = 3 via a new connection whose client fails
+	 * the page with the given index.
+	 * 
+	 * @param offset The "Offset" of the query.
+	 * @param replyToFailingPage If true, the client replies to the page with failure. If false, it
+	 *     does not reply at all, so the page times out.
+	 * @param pages Receives the pages which the client received, including the failing one.
+	 * @return The reply to the query.
+	 */
+	private FCPPluginMessage streamWithFailingPage(final int offset, final int failingPage,
+			final boolean replyToFailingPage, final ArrayList<FCPPluginMessage> pages)
+			throws IOException, InterruptedException, PluginNotFoundException {
+
+		final FCPPluginConnection connection = mWebOfTrust.getPluginRespirator()
+			.connectToOtherPlugin(FCPClientReferenceImplementation.WOT_FCP_NAME,
+				new FredPluginFCPMessageHandler.ClientSideFCPMessageHandler() {
+					@Override public synchronized FCPPluginMessage handlePluginFCPMessage(
+							FCPPluginConnection connection, FCPPluginMessage message) {
+						if(message.isReplyMessage())
+							return null;
+
+						pages.add(message);
+						if(!Integer.toString(failingPage).equals(message.params.get("Page")))
+							return FCPPluginMessage.constructSuccessReply(message);
+
+						return replyToFailingPage
+							? FCPPluginMessage.constructErrorReply(message, "Test", "Failing page")
+							: null;
+					}
+				});
+
+		final SimpleFieldSet sfs = new SimpleFieldSet(true);
+		sfs.putOverwrite("Message", "GetIdentities");
+		sfs.put("Limit", 3);
+		sfs.put("Offset", offset);
+		sfs.putOverwrite("Stream", "true");
+		return connection.sendSynchronous(FCPPluginMessage.construct(sfs, null),
+			SECONDS.toNanos(60));
+	}
+
+	/**
+	 * Tests whether a streamed query which the client aborts replies with "StreamAborted" and a
+	 * "Continuation" and "Offset" which resume at the page which failed - also if the first page
+	 * failed. */
+	@Test public void testStreamAborted() throws MalformedURLException, InvalidParameterException,
+			IOException, InterruptedException, PluginNotFoundException {
+
+		addRandomIdentities(10);
+
+		// Failure of a later page: Resume with its Continuation.
+		ArrayList<FCPPluginMessage> pages = new ArrayList<FCPPluginMessage>();
+		FCPPluginMessage reply = streamWithFailingPage(1, 1, true, pages);
+		assertFalse(reply.success);
+		assertEquals("StreamAborted", reply.errorCode);
+		assertEquals(2, pages.size());
+		assertEquals(pages.get(0).params.get("Continuation"), reply.params.get("Continuation"));
+		assertEquals("0", reply.params.get("Offset"));
+		assertResumesAt(reply, pages.get(1));
+
+		// Failure of the first page: Resume with the Offset of the query.
+		pages = new ArrayList<FCPPluginMessage>();
+		reply = streamWithFailingPage(1, 0, true, pages);
+		assertFalse(reply.success);
+		assertEquals("StreamAborted", reply.errorCode);
+		assertEquals(1, pages.size());
+		assertNull(reply.params.get("Continuation"));
+		assertEquals("1", reply.params.get("Offset"));
+		assertResumesAt(reply, pages.get(0));
+	}
+
+	/**
+	 * Tests whether a streamed query whose client does not reply to a page within the timeout
+	 * replies with "StreamAborted" the same way as if the client had replied with failure. */
+	@Test public void testStreamTimeout() throws MalformedURLException,
+			InvalidParameterException, IOException, InterruptedException,
+			PluginNotFoundException {
+
+		addRandomIdentities(10);
+
+		final ArrayList<FCPPluginMessage> pages = new ArrayList<FCPPluginMessage>();
+		final FCPPluginMessage reply;
+		mWebOfTrust.getFCPInterface().setPageTimeout(SECONDS.toNanos(1));
+		try {
+			reply = streamWithFailingPage(0, 1, false, pages);
+		} finally {
+			mWebOfTrust.getFCPInterface().setPageTimeout(
+				MINUTES.toNanos(FCPInterface.PAGE_TIMEOUT_MINUTES));
+		}
+		assertFalse(reply.success);
+		assertEquals("StreamAborted", reply.errorCode);
+		assertEquals(2, pages.size());
+		assertEquals(pages.get(0).params.get("Continuation"), reply.params.get("Continuation"));
+		assertEquals("0", reply.params.get("Offset"));
+		assertResumesAt(reply, pages.get(1));
+	}
+
+	/**
+	 * Asserts that a query with the "Continuation" and "Offset" of the given "StreamAborted"
+	 * reply returns the same Identitys as the given page which failed. */
+	private void assertResumesAt(final FCPPluginMessage streamAborted,
+			final FCPPluginMessage failedPage) throws IOException, InterruptedException {
+
+		final SimpleFieldSet sfs = new SimpleFieldSet(true);
+		sfs.putOverwrite("Message", "GetIdentities");
+		sfs.put("Limit", 3);
+		sfs.putOverwrite("Offset", streamAborted.params.get("Offset"));
+		if(streamAborted.params.get("Continuation") != null)
+			sfs.putOverwrite("Continuation", streamAborted.params.get("Continuation"));
+
+		final FCPPluginMessage resumed = fcpCall(sfs);
+		assertTrue(resumed.success);
+		assertEquals("3", resumed.params.get("Identities.Amount"));
+		assertEquals("3", failedPage.params.get("Identities.Amount"));
+		for(int i = 0; i < 3; ++i) {
+			assertEquals(failedPage.params.get("Identities." + i + ".ID"),
+				resumed.params.get("Identities." + i + ".ID"));
+		}
+	}
+
+	@Test public void testFieldSelection() throws MalformedURLException,
+			InvalidParameterException, NotTrustedException, IOException, InterruptedException {
+
+		final ArrayList<Identity> identities = addRandomIdentities(1, 1);
+		final Trust trust = addRandomTrustValues(identities, 1).get(0);
+
+		final SimpleFieldSet sfs = new SimpleFieldSet(true);
+		sfs.putOverwrite("Message", "GetIdentities");
+		sfs.put("Limit", 10);
+		sfs.putOverwrite("Fields", "ID, Nickname");
+		FCPPluginMessage reply = fcpCall(sfs);
+		assertTrue(reply.success);
+		assertEquals("2", reply.params.get("Identities.Amount"));
+		for(int i = 0; i < 2; ++i) {
+			assertNotNull(reply.params.get("Identities." + i + ".ID"));
+			assertNotNull(reply.params.get("Identities." + i + ".Type"));
+			assertNull(reply.params.get("Identities." + i + ".RequestURI"));
+			assertNull(reply.params.get("Identities." + i + ".Contexts.Amount"));
+			assertNull(reply.params.get("Identities." + i + ".Identity"));
+		}
+
+		// Trust and Score share the "Value" field
+		sfs.putOverwrite("Message", "GetScores");
+		sfs.putOverwrite("Fields", "Value");
+		reply = fcpCall(sfs);
+		assertTrue(reply.success);
+		assertNotNull(reply.params.get("Scores.0.Value"));
+		assertNull(reply.params.get("Scores.0.Rank"));
+		assertNull(reply.params.get("Scores.0.Truster"));
+
+		// Not specifying Fields keeps the deprecated fields for old clients...
+		final Identity identity = identities.get(0);
+		final SimpleFieldSet getIdentity = new SimpleFieldSet(true);
+		getIdentity.putOverwrite("Message", "GetIdentity");
+		getIdentity.putOverwrite("Identity", identity.getID());
+		reply = fcpCall(getIdentity);
+		assertTrue(reply.success);
+		assertEquals(identity.getNickname(), reply.params.get("Nickname"));
+		assertEquals(identity.getNickname(), reply.params.get("Identities.0.Nickname"));
+
+		// ... unless they are explicitly disabled.
+		getIdentity.putOverwrite("IncludeDeprecated", "false");
+		reply = fcpCall(getIdentity);
+		assertTrue(reply.success);
+		assertNull(reply.params.get("Nickname"));
+		assertEquals(identity.getNickname(), reply.params.get("Identities.0.Nickname"));
+
+		getIdentity.putOverwrite("Fields", "ID,NoSuchField");
+		assertFalse(fcpCall(getIdentity).success);
+
+		final SimpleFieldSet getTrustees = new SimpleFieldSet(true);
+		getTrustees.putOverwrite("Message", "GetTrustees");
+		getTrustees.putOverwrite("Identity", trust.getTruster().getID());
+		getTrustees.putOverwrite("Context", "");
+		getTrustees.putOverwrite("Fields", "ID,Value");
+		reply = fcpCall(getTrustees);
+		assertTrue(reply.success);
+		assertEquals("1", reply.params.get("Amount"));
+		assertEquals(trust.getTrustee().getID(), reply.params.get("Identity0"));
+		assertEquals(Byte.toString(trust.getValue()), reply.params.get("Value0"));
+		assertNull(reply.params.get("Nickname0"));
+		assertNull(reply.params.get("Comment0"));
+	}
+
+	/**
+	 * Tests whether the {@link FCPRequestDispatcher} processes the messages of a connection in the
+	 * order they were sent - also if reads and writes are mixed - and records statistics.
+	 */
+	@Test public void testDispatcher() throws MalformedURLException, InvalidParameterException,
+			IOException, InterruptedException, PluginNotFoundException {
+
+		final ArrayList<Identity> identities = addRandomIdentities(1, 1);
+		final String trusterID = identities.get(0).getID();
+		final String trusteeID = identities.get(1).getID();
+
+		// Not the ReplyReceiver: It is not thread-safe, and replies to send() are passed to it.
+		final LinkedBlockingQueue<FCPPluginMessage> replies
+			= new LinkedBlockingQueue<FCPPluginMessage>();
+		final FCPPluginConnection connection = mWebOfTrust.getPluginRespirator()
+			.connectToOtherPlugin(FCPClientReferenceImplementation.WOT_FCP_NAME,
+				new FredPluginFCPMessageHandler.ClientSideFCPMessageHandler() {
+					@Override public FCPPluginMessage handlePluginFCPMessage(
+							FCPPluginConnection connection, FCPPluginMessage message) {
+						replies.add(message);
+						return null;
+					}
+				});
+
+		final ArrayList<FCPPluginMessage> requests = new ArrayList<FCPPluginMessage>();
+		for(int value = -10; value <= 10; ++value) {
+			final SimpleFieldSet setTrust = new SimpleFieldSet(true);
+			setTrust.putOverwrite("Message", "SetTrust");
+			setTrust.putOverwrite("Truster", trusterID);
+			setTrust.putOverwrite("Trustee", trusteeID);
+			setTrust.put("Value", value);
+			setTrust.putOverwrite("Comment", "");
+			requests.add(FCPPluginMessage.construct(setTrust, null));
+
+			final SimpleFieldSet getTrust = new SimpleFieldSet(true);
+			getTrust.putOverwrite("Message", "GetTrust");
+			getTrust.putOverwrite("Truster", trusterID);
+			getTrust.putOverwrite("Trustee", trusteeID);
+			requests.add(FCPPluginMessage.construct(getTrust, null));
+		}
+
+		for(FCPPluginMessage request : requests)
+			connection.send(request);
+
+		for(int i = 0; i < requests.size(); ++i) {
+			final FCPPluginMessage reply = replies.poll(60, SECONDS);
+			assertNotNull(reply);
+			assertEquals(requests.get(i).identifier, reply.identifier);
+			assertTrue(reply.success);
+			// The GetTrust must have been processed after the preceding SetTrust.
+			if(i % 2 == 1) {
+				assertEquals(Integer.toString(-10 + i / 2),
+					reply.params.get("Trusts.0.Value"));
+			}
+		}
+
+		final TreeMap<String, MessageTypeStatistics> statistics
+			= mWebOfTrust.getFCPInterface().getRequestStatistics();
+		for(String type : new String[] { "SetTrust", "GetTrust" }) {
+			final MessageTypeStatistics stats = statistics.get(type);
+			assertEquals(0, stats.mQueued);
+			assertEquals(requests.size() / 2, stats.mProcessed);
+			assertEquals(0, stats.mRejected);
+			assertTrue(stats.getLatencyPercentile(50) <= stats.getLatencyPercentile(99));
+		}
+	}
+
+}
@@ -0,0 +1,130 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import plugins.WebOfTrust.IdentityFetcher.UpdateEditionHintCommand;
+
+import com.db4o.ext.ExtObjectContainer;
+import com.db4o.query.Query;
+
+/**
+ * Tests {@link GroupCommitter}.<br>
+ * Its background job is terminated along with the other threads of WOT by
+ * {@link AbstractSingleNodeTest}, so the deferred transactions are only committed by the other
+ * means, which allows testing them deterministically. */
+public final class GroupCommitterTest extends AbstractSingleNodeTest {
+
+	private static final List<Persistent> NO_DELETIONS = Collections.emptyList();
+
+	@Test public void testDeferredCommits() {
+		final GroupCommitter committer = mWebOfTrust.getGroupCommitter();
+		assertNotNull(committer);
+		final ExtObjectContainer db = mWebOfTrust.getDatabase();
+
+		synchronized(Persistent.transactionLock(db)) {
+			final GroupCommitter.Statistics before = committer.getStatistics();
+
+			// Committed along with a regular commit.
+			Persistent.checkedCommitDeferred(db, this, NO_DELETIONS);
+			Persistent.checkedCommitDeferred(db, this, NO_DELETIONS);
+			GroupCommitter.Statistics stats = committer.getStatistics();
+			assertEquals(before.mCommits, stats.mCommits);
+			assertEquals(2, stats.mPendingTransactions);
+
+			Persistent.checkedCommit(db, this);
+			stats = committer.getStatistics();
+			assertEquals(before.mCommits + 1, stats.mCommits);
+			assertEquals(0, stats.mPendingTransactions);
+			assertEquals(before.getSavedCommits() + 2, stats.getSavedCommits());
+			assertTrue(stats.mMaxCommitNanoseconds > 0);
+
+			// Re-applied and committed after a rollback.
+			Persistent.checkedCommitDeferred(db, this, NO_DELETIONS);
+			Persistent.checkedRollback(db, this, null);
+			stats = committer.getStatistics();
+			assertEquals(before.mReappliedTransactions + 1, stats.mReappliedTransactions);
+			assertEquals(before.mLostTransactions, stats.mLostTransactions);
+			assertEquals(before.mCommits + 2, stats.mCommits);
+			assertEquals(before.mGroupCommits + 1, stats.mGroupCommits);
+			assertEquals(0, stats.mPendingTransactions);
+
+			// Committed once the limit is reached.
+			for(int i = 0; i < GroupCommitter.MAX_PENDING_TRANSACTIONS; ++i)
+				Persistent.checkedCommitDeferred(db, this, NO_DELETIONS);
+			stats = committer.getStatistics();
+			assertEquals(before.mCommits + 3, stats.mCommits);
+			assertEquals(before.mGroupCommits + 2, stats.mGroupCommits);
+			assertEquals(0, stats.mPendingTransactions);
+			assertEquals(before.mDeferredTransactions + 3 + GroupCommitter.MAX_PENDING_TRANSACTIONS,
+				stats.mDeferredTransactions);
+			assertEquals(before.getSavedCommits() + 2 + GroupCommitter.MAX_PENDING_TRANSACTIONS - 1,
+				stats.getSavedCommits());
+
+			// Committed by finish() at termination, see testDatabaseIntegrityAfterTermination().
+			Persistent.checkedCommitDeferred(db, this, NO_DELETIONS);
+			assertEquals(before.mPendingTransactions + 1,
+				committer.getStatistics().mPendingTransactions);
+		}
+	}
+
+	/**
+	 * Tests whether the deletions of a deferred transaction survive the rollback of a different
+	 * transaction, such as a failed identity import, which happens before they are committed. */
+	@Test public void testRollbackDoesNotLoseDeferredDeletions() {
+		final GroupCommitter committer = mWebOfTrust.getGroupCommitter();
+		final ExtObjectContainer db = mWebOfTrust.getDatabase();
+
+		synchronized(Persistent.transactionLock(db)) {
+			final GroupCommitter.Statistics before = committer.getStatistics();
+
+			final UpdateEditionHintCommand deleted = new UpdateEditionHintCommand("deleted");
+			deleted.initializeTransient(mWebOfTrust);
+			deleted.storeWithoutCommit();
+			Persistent.checkedCommit(db, this);
+			assertEquals(1, countCommands(db, "deleted"));
+
+			// The deferred transaction, as done by the IdentityFetcher.
+			deleted.deleteWithoutCommit();
+			Persistent.checkedCommitDeferred(db, this, singletonList(deleted));
+			assertEquals(1, committer.getStatistics().mPendingTransactions);
+
+			// A different transaction which fails.
+			final UpdateEditionHintCommand rolledBack = new UpdateEditionHintCommand("rolledBack");
+			rolledBack.initializeTransient(mWebOfTrust);
+			rolledBack.storeWithoutCommit();
+			Persistent.checkedRollback(db, this, null);
+
+			assertEquals(0, countCommands(db, "deleted"));
+			assertEquals(0, countCommands(db, "rolledBack"));
+
+			final GroupCommitter.Statistics stats = committer.getStatistics();
+			assertEquals(before.mReappliedTransactions + before.mPendingTransactions + 1,
+				stats.mReappliedTransactions);
+			assertEquals(before.mLostTransactions, stats.mLostTransactions);
+			assertEquals(0, stats.mPendingTransactions);
+
+			// The deletion was committed, so a further rollback cannot undo it.
+			Persistent.checkedRollback(db, this, null);
+			assertEquals(0, countCommands(db, "deleted"));
+		}
+	}
+
+	private static int countCommands(ExtObjectContainer db, String identityID) {
+		final Query q = db.query();
+		q.constrain(UpdateEditionHintCommand.class);
+		q.descend("mIdentityID").constrain(identityID);
+		return q.execute().size();
+	}
+
+}
@@ -0,0 +1,258 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+
+import javax.xml.transform.TransformerException;
+
+import org.junit.Test;
+
+import plugins.WebOfTrust.IdentityFileQueue.IdentityFileStream;
+import plugins.WebOfTrust.exceptions.DuplicateTrustException;
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+import freenet.keys.FreenetURI;
+import freenet.support.PooledExecutor;
+import freenet.support.PrioritizedTicker;
+
+/**
+ * Tests the parse stage of {@link IdentityFileProcessor}, i.e. the Parser threads which feed the
+ * import thread through the handoff queue.<br>
+ * Uses the package-private constructor of IdentityFileProcessor to enable it independently of the
+ * amount of CPUs of the host, and to use small batches and handoff queues so the stages block
+ * each other even with few files.<br><br>
+ *
+ * The input files are produced the same way as in {@link IdentityFileQueueTest}.
+ */
+public class IdentityFileProcessorTest extends AbstractJUnit4BaseTest {
+
+	/** A random WebOfTrust: Random {@link OwnIdentity}s, {@link Trust}s, {@link Score}s */
+	private WebOfTrust mWebOfTrust;
+
+	/**
+	 * {@link IdentityFile#getURI()} of snapshots of the random {@link WebOfTrust}
+	 * {@link #mWebOfTrust} at different stages of generation of the random content. */
+	private ArrayList<FreenetURI> mIdentityFileURIs;
+
+	/**
+	 * XML of the files of {@link #mIdentityFileURIs}.<br>
+	 * Stored as byte[] instead of {@link IdentityFileStream} since streams cannot be recycled
+	 * after {@link java.io.InputStream#close()}, and each test needs multiple copies. */
+	private ArrayList<byte[]> mIdentityFileXML;
+
+
+	/**
+	 * Generates random {@link OwnIdentity}s and {@link Trust}s in {@link #mWebOfTrust}, and
+	 * populates {@link #mIdentityFileURIs} and {@link #mIdentityFileXML} with {@link IdentityFile}
+	 * dumps of several stages of the generation, including the final stage.<br>
+	 * See IdentityFileQueueTest.setUp(), which this is based upon. */
+	private void setUp() throws InvalidParameterException, DuplicateTrustException,
+			NotTrustedException, UnknownIdentityException, TransformerException, IOException {
+
+		mWebOfTrust = constructEmptyWebOfTrust();
+
+		final int identityFileCount = 10;
+		final int ownIdentityCount = 5;
+		// addRandomTrustValues() runs into an infinite loop if the graph is full, so we must stay
+		// below (identity count)² Trust values.
+		final int newTrustsPerFile = 1;
+
+		final ArrayList<OwnIdentity> ownIdentitiesUncasted
+			= addRandomOwnIdentities(ownIdentityCount);
+		@SuppressWarnings("unchecked")
+		final ArrayList<Identity> ownIdentitiesCasted
+			= (ArrayList<Identity>) (ArrayList<? extends Identity>)ownIdentitiesUncasted;
+
+		mIdentityFileURIs = new ArrayList<FreenetURI>(identityFileCount*ownIdentityCount + 1);
+		mIdentityFileXML = new ArrayList<byte[]>(identityFileCount*ownIdentityCount + 1);
+
+		for(int i=0; i < identityFileCount; ++i) {
+			addRandomTrustValues(ownIdentitiesCasted, newTrustsPerFile);
+
+			for(OwnIdentity identity : ownIdentitiesUncasted) {
+				ByteArrayOutputStream bos
+					= new ByteArrayOutputStream(XMLTransformer.MAX_IDENTITY_XML_BYTE_SIZE + 1);
+
+				// Re-query since we only have a clone() but db4o needs the original
+				identity = mWebOfTrust.getOwnIdentityByID(identity.getID());
+				identity.setPublishTrustList(true);
+				// The XMLTransformer ignores files whose edition is not newer than the latest one.
+				identity.setEdition(identity.getEdition() + 1);
+				identity.storeAndCommit();
+
+				// WebOfTrust.equals() also checks the value of trust.getTrusterEdition().
+				for(Trust trust : mWebOfTrust.getGivenTrusts(identity)) {
+					trust.trusterEditionUpdated();
+					trust.storeWithoutCommit();
+				}
+				Persistent.checkedCommit(mWebOfTrust.getDatabase(), this);
+
+				mWebOfTrust.getXMLTransformer().exportOwnIdentity(identity, bos);
+
+				mIdentityFileURIs.add(identity.getRequestURI());
+				mIdentityFileXML.add(bos.toByteArray());
+				bos.close();
+			}
+		}
+	}
+
+	/**
+	 * Tests whether importing files through the parse stage, see
+	 * IdentityFileProcessor.Processor.processFilesInParallel(), yields the same
+	 * {@link Identity}s, {@link Trust}s and {@link Score}s as the sequential path which parses
+	 * them on the import thread, and whether its {@link IdentityFileProcessor.Statistics} are
+	 * consistent after the queue was processed. */
+	@Test public void testParseStageByComparingResultsWithSequentialProcessing()
+			throws IOException, InterruptedException, InvalidParameterException,
+			DuplicateTrustException, NotTrustedException, UnknownIdentityException,
+			TransformerException {
+
+		setUp();
+
+		WebOfTrust wotSequential = constructWebOfTrustWithOwnIdentitiesOfSource();
+		WebOfTrust wotParallel = constructWebOfTrustWithOwnIdentitiesOfSource();
+
+		IdentityFileQueue queueSequential = constructQueueWithAllFiles();
+		IdentityFileQueue queueParallel = constructQueueWithAllFiles();
+
+		IdentityFileProcessor procSequential = new IdentityFileProcessor(queueSequential,
+			new PrioritizedTicker(new PooledExecutor(), 0), wotSequential.getXMLTransformer(),
+			0, IdentityFileProcessor.PROCESSING_BATCH_SIZE_MAX,
+			IdentityFileProcessor.HANDOFF_QUEUE_CAPACITY);
+		// Small batches and a small handoff queue to cause multiple batches and backpressure.
+		IdentityFileProcessor procParallel = new IdentityFileProcessor(queueParallel,
+			new PrioritizedTicker(new PooledExecutor(), 0), wotParallel.getXMLTransformer(),
+			3, 4, 2);
+
+		procSequential.start();
+		procParallel.start();
+
+		final int fileCount = mIdentityFileXML.size();
+		do {
+			Thread.sleep(100);
+		} while(
+				queueSequential.getStatistics().mQueuedFiles != 0
+			 || queueParallel.getStatistics().mQueuedFiles != 0
+			 || procSequential.getStatistics().mProcessedFiles != fileCount
+			 || procParallel.getStatistics().mProcessedFiles != fileCount
+		 );
+
+		procSequential.terminate();
+		procParallel.terminate();
+		procSequential.waitForTermination(Long.MAX_VALUE);
+		procParallel.waitForTermination(Long.MAX_VALUE);
+
+		assertEquals(mWebOfTrust, wotSequential);
+		assertEquals(mWebOfTrust, wotParallel);
+
+		// The sequential path must not touch the statistics of the parse stage.
+		assertStatisticsAreConsistent(procSequential.getStatistics(), 0, fileCount);
+		assertStatisticsAreConsistent(procParallel.getStatistics(), fileCount, fileCount);
+	}
+
+	/**
+	 * Tests whether {@link IdentityFileProcessor#terminate()} while the Parsers are blocked at
+	 * putting files into the full handoff queue loses none of the files which they had already
+	 * taken from the {@link IdentityFileQueue}: The import thread must keep draining the handoff
+	 * queue until all Parsers have exited. */
+	@Test public void testTerminateWhileParsersAreBlocked()
+			throws IOException, InterruptedException, InvalidParameterException,
+			DuplicateTrustException, NotTrustedException, UnknownIdentityException,
+			TransformerException {
+
+		setUp();
+
+		WebOfTrust wot = constructWebOfTrustWithOwnIdentitiesOfSource();
+		IdentityFileQueue queue = constructQueueWithAllFiles();
+
+		final int parsingThreads = 2;
+		final int handoffQueueCapacity = 1;
+		IdentityFileProcessor proc = new IdentityFileProcessor(queue,
+			new PrioritizedTicker(new PooledExecutor(), 0), wot.getXMLTransformer(),
+			parsingThreads, 2, handoffQueueCapacity);
+
+		// XMLTransformer.importIdentities() locks the WebOfTrust, so by holding the lock we block
+		// the import thread at its first batch. The Parsers don't need the lock so they will fill
+		// the handoff queue and then block at putting further files into it.
+		synchronized(wot) {
+			proc.start();
+
+			// Files which are in the handoff queue or which Parsers are trying to put into it.
+			while(proc.getStatistics().mHandoffFiles != handoffQueueCapacity + parsingThreads)
+				Thread.sleep(10);
+
+			assertEquals(0, proc.getStatistics().mProcessedFiles);
+			proc.terminate();
+		}
+
+		proc.waitForTermination(Long.MAX_VALUE);
+
+		IdentityFileProcessor.Statistics stats = proc.getStatistics();
+		IdentityFileQueue.Statistics queueStats = queue.getStatistics();
+
+		// IdentityFileMemoryQueue counts files as finished as soon as they are poll()ed.
+		final int polledFiles = queueStats.mFinishedFiles;
+		assertEquals(mIdentityFileXML.size(), queueStats.mQueuedFiles + polledFiles);
+		// The Parsers must have stopped taking files from the queue ...
+		assertTrue(queueStats.mQueuedFiles > 0);
+		// ... but all files which they did take must have been imported.
+		assertTrue(polledFiles >= handoffQueueCapacity + parsingThreads);
+		assertStatisticsAreConsistent(stats, polledFiles, polledFiles);
+	}
+
+	/**
+	 * Asserts that no file is left in the parse stage or the handoff queue, and that all files
+	 * which were parsed were also imported (or failed to be imported).
+	 *
+	 * @param parsedFiles The expected {@link IdentityFileProcessor.Statistics#mParsedFiles}.
+	 * @param processedFiles The expected amount of files which were processed or failed. */
+	private void assertStatisticsAreConsistent(IdentityFileProcessor.Statistics stats,
+			int parsedFiles, int processedFiles) {
+
+		assertEquals(0, stats.mParsingFiles);
+		assertEquals(0, stats.mHandoffFiles);
+		assertEquals(parsedFiles, stats.mParsedFiles);
+		assertEquals(parsedFiles, stats.mHandedOffFiles);
+		assertEquals(processedFiles, stats.mProcessedFiles + stats.mFailedFiles);
+	}
+
+	/**
+	 * Copies the {@link OwnIdentity}s of {@link #mWebOfTrust} to a new empty WebOfTrust to
+	 * ensure that their trust lists will be imported. */
+	private WebOfTrust constructWebOfTrustWithOwnIdentitiesOfSource()
+			throws MalformedURLException, InvalidParameterException {
+
+		WebOfTrust wot = constructEmptyWebOfTrust();
+		for(OwnIdentity ownId : mWebOfTrust.getAllOwnIdentities())
+			wot.restoreOwnIdentity(ownId.getInsertURI());
+		return wot;
+	}
+
+	/**
+	 * Returns an {@link IdentityFileMemoryQueue} which contains all files of
+	 * {@link #mIdentityFileXML} in the order in which they were generated.<br>
+	 * It does not deduplicate, so each of them will be processed. */
+	private IdentityFileQueue constructQueueWithAllFiles() {
+		IdentityFileQueue queue = new IdentityFileMemoryQueue();
+		for(int i = 0; i < mIdentityFileXML.size(); ++i) {
+			queue.add(new IdentityFileStream(mIdentityFileURIs.get(i),
+				new ByteArrayInputStream(mIdentityFileXML.get(i))));
+		}
+		return queue;
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+}
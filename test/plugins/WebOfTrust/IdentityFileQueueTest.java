@@ -3,14 +3,19 @@
  * any later version). See http://www.gnu.org/ for details of the GPL. */
 package plugins.WebOfTrust;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 
 import javax.xml.transform.TransformerException;
@@ -19,17 +24,20 @@ import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import plugins.WebOfTrust.Identity.IdentityID;
+import plugins.WebOfTrust.IdentityFileDiskQueue.PriorityProvider;
 import plugins.WebOfTrust.IdentityFileQueue.IdentityFileStream;
 import plugins.WebOfTrust.exceptions.DuplicateTrustException;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
 import plugins.WebOfTrust.exceptions.NotTrustedException;
 import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+import freenet.keys.FreenetURI;
 import freenet.support.PooledExecutor;
 import freenet.support.PrioritizedTicker;
 
 /**
- * Test for both implementations of {@link IdentityFileQueue}: {@link IdentityFileDiskQueue} and
- * {@link IdentityFileMemoryQueue}.<br><br>
+ * Test for the implementations of {@link IdentityFileQueue}: {@link IdentityFileDiskQueue},
+ * {@link IdentityFileLogQueue} and {@link IdentityFileMemoryQueue}.<br><br>
  * 
  * They are being tested against each other by feeding the same set of identity files to them, and
  * then checking whether the resulting WOT database is equal.<br><br>
@@ -51,13 +59,16 @@ public class IdentityFileQueueTest extends AbstractJUnit4BaseTest {
 	 * Copy of {@link #mIdentityFiles1} with different {@link InputStream} objects since streams
 	 * cannot be recycled after {@link InputStream#close()}. */
 	private ArrayList<IdentityFileStream> mIdentityFiles2;
+	
+	/** Another copy of {@link #mIdentityFiles1}, see {@link #mIdentityFiles2}. */
+	private ArrayList<IdentityFileStream> mIdentityFiles3;
 
 
 	/**
 	 * Generates random {@link OwnIdentity}s and {@link Trust}s in {@link #mWebOfTrust}.<br>
-	 * Populates {@link #mIdentityFiles1} and {@link #mIdentityFiles2} with {@link IdentityFile}
-	 * dumps of several stages of the generation of {@link #mWebOfTrust}, including the final
-	 * stage.<br>
+	 * Populates {@link #mIdentityFiles1}, {@link #mIdentityFiles2} and {@link #mIdentityFiles3}
+	 * with {@link IdentityFile} dumps of several stages of the generation of {@link #mWebOfTrust},
+	 * including the final stage.<br>
 	 * Those dumps will be used as input for the {@link IdentityFileQueue} implementations
 	 * to validate that they operate correctly.<br><br>
 	 * 
@@ -94,6 +105,7 @@ public class IdentityFileQueueTest extends AbstractJUnit4BaseTest {
 		// Now produce the actual IdentityFile dumps
 		mIdentityFiles1 = new ArrayList<IdentityFileStream>(identityFileCount*ownIdentityCount + 1);
 		mIdentityFiles2 = new ArrayList<IdentityFileStream>(identityFileCount*ownIdentityCount + 1);
+		mIdentityFiles3 = new ArrayList<IdentityFileStream>(identityFileCount*ownIdentityCount + 1);
 		
 		for(int i=0; i < identityFileCount; ++i) {
 			addRandomTrustValues(ownIdentitiesCasted, newTrustsPerFile);
@@ -118,7 +130,7 @@ public class IdentityFileQueueTest extends AbstractJUnit4BaseTest {
 				identity.setEdition(identity.getEdition() + 1);
 				identity.storeAndCommit();
 				
-				// testByComparingResultsOfTwoImplementations() will use WebOfTrust.equals() to
+				// testByComparingResultsOfAllImplementations() will use WebOfTrust.equals() to
 				// compare the original WebOfTrust against what was transported by identity files.
 				// The equals() also checks the value of trust.getTrusterEdition(), so we need
 				// to update it.
@@ -134,15 +146,18 @@ public class IdentityFileQueueTest extends AbstractJUnit4BaseTest {
 					= new ByteArrayInputStream(bos.toByteArray());
 				ByteArrayInputStream bis2
 					= new ByteArrayInputStream(bos.toByteArray());
+				ByteArrayInputStream bis3
+					= new ByteArrayInputStream(bos.toByteArray());
 				bos.close();
 				
 				mIdentityFiles1.add(new IdentityFileStream(identity.getRequestURI(), bis1));
 				mIdentityFiles2.add(new IdentityFileStream(identity.getRequestURI(), bis2));
+				mIdentityFiles3.add(new IdentityFileStream(identity.getRequestURI(), bis3));
 			}
 		}
 	}
 
-	@Test public void testByComparingResultsOfTwoImplementations()
+	@Test public void testByComparingResultsOfAllImplementations()
 			throws IOException, InterruptedException, InvalidParameterException,
 			DuplicateTrustException, NotTrustedException, UnknownIdentityException,
 			TransformerException {
@@ -151,18 +166,22 @@ public class IdentityFileQueueTest extends AbstractJUnit4BaseTest {
 
 		WebOfTrust wot1 = constructEmptyWebOfTrust();
 		WebOfTrust wot2 = constructEmptyWebOfTrust();
+		WebOfTrust wot3 = constructEmptyWebOfTrust();
 		
 		assertEquals(wot1, wot2);
+		assertEquals(wot1, wot3);
 
 		// Copy the OwnIdentitys from the source WOT to our test WOTs to ensure that trust lists
 		// are being imported.
 		for(OwnIdentity ownId : mWebOfTrust.getAllOwnIdentities()) {
 			wot1.restoreOwnIdentity(ownId.getInsertURI());
 			wot2.restoreOwnIdentity(ownId.getInsertURI());
+			wot3.restoreOwnIdentity(ownId.getInsertURI());
 		}
 
 		IdentityFileQueue queue1 = new IdentityFileMemoryQueue();
 		IdentityFileQueue queue2 = new IdentityFileDiskQueue(mTempFolder.newFolder());
+		IdentityFileQueue queue3 = new IdentityFileLogQueue(mTempFolder.newFolder());
 		
 		// TODO: Code quality: Move the Ticker creation to a function. Also search the other unit
 		// tests for similar code to deduplicate then.
@@ -170,6 +189,8 @@ public class IdentityFileQueueTest extends AbstractJUnit4BaseTest {
 			new PrioritizedTicker(new PooledExecutor(), 0), wot1.getXMLTransformer());
 		IdentityFileProcessor proc2 = new IdentityFileProcessor(queue2,
 			new PrioritizedTicker(new PooledExecutor(), 0), wot2.getXMLTransformer());
+		IdentityFileProcessor proc3 = new IdentityFileProcessor(queue3,
+			new PrioritizedTicker(new PooledExecutor(), 0), wot3.getXMLTransformer());
 		
 		@Ignore final class ConcurrentEnqueuer {
 			public void enqueue(final List<IdentityFileStream> files,
@@ -200,24 +221,236 @@ public class IdentityFileQueueTest extends AbstractJUnit4BaseTest {
 
 		new ConcurrentEnqueuer().enqueue(mIdentityFiles1, queue1, proc1);	
 		new ConcurrentEnqueuer().enqueue(mIdentityFiles2, queue2, proc2);
+		new ConcurrentEnqueuer().enqueue(mIdentityFiles3, queue3, proc3);
 		
 		do {
 			Thread.sleep(100);
 		} while(
 				queue1.getStatistics().mQueuedFiles != 0
 			 || queue2.getStatistics().mQueuedFiles != 0
+			 || queue3.getStatistics().mQueuedFiles != 0
 			 || proc1.getStatistics().mProcessedFiles != mIdentityFiles1.size()
-			 // Deduplication can cause us to process less files than mIdentityFiles2.size()
+			 // Deduplication can cause us to process less files than mIdentityFiles2/3.size()
 			 || proc2.getStatistics().mProcessedFiles != queue2.getStatistics().mFinishedFiles
+			 || proc3.getStatistics().mProcessedFiles != queue3.getStatistics().mFinishedFiles
 		 );
 		
 		proc1.terminate();
 		proc2.terminate();
+		proc3.terminate();
 		proc1.waitForTermination(Long.MAX_VALUE);
 		proc2.waitForTermination(Long.MAX_VALUE);
+		proc3.waitForTermination(Long.MAX_VALUE);
 		
 		assertEquals(mWebOfTrust, wot1);
 		assertEquals(mWebOfTrust, wot2);
+		assertEquals(mWebOfTrust, wot3);
+	}
+
+	/**
+	 * Tests whether {@link IdentityFileDiskQueue#poll()} returns files in the order of the
+	 * {@link PriorityProvider}, whether deduplication keeps the index consistent, and whether the
+	 * index is restored from disk by a new queue in the same directory. */
+	@Test public void testIdentityFileDiskQueuePriority() throws IOException {
+		final HashMap<String, Integer> priorities = new HashMap<String, Integer>();
+		final PriorityProvider priorityProvider = new PriorityProvider() {
+			@Override public int getPriority(String identityID) {
+				Integer priority = priorities.get(identityID);
+				return priority != null ? priority : 0;
+			}
+		};
+		
+		// Index = order in which poll() must return them.
+		final FreenetURI[] uris = new FreenetURI[5];
+		final int[] uriPriorities = { 3, 3, 2, 1, 0 };
+		for(int i = 0; i < uris.length; ++i) {
+			uris[i] = getRandomRequestURI().setKeyType("USK")
+				.setDocName(WebOfTrustInterface.WOT_NAME).setSuggestedEdition(10);
+			priorities.put(
+				IdentityID.constructAndValidateFromURI(uris[i]).toString(), uriPriorities[i]);
+		}
+		
+		File queueDir = mTempFolder.newFolder();
+		IdentityFileDiskQueue queue = new IdentityFileDiskQueue(queueDir, priorityProvider);
+		// Add in an order which differs from the priority order. Files of equal priority must
+		// be returned in the order in which they were added, so uris[0] must precede uris[1].
+		for(int i : new int[] { 3, 0, 4, 2, 1 })
+			queue.add(getIdentityFileStream(uris[i]));
+		
+		// An older edition must be dropped, a newer one must replace the queued one.
+		queue.add(getIdentityFileStream(uris[2].setSuggestedEdition(9)));
+		queue.add(getIdentityFileStream(uris[3].setSuggestedEdition(11)));
+		uris[3] = uris[3].setSuggestedEdition(11);
+		assertEquals(uris.length, queue.getStatistics().mQueuedFiles);
+		assertEquals(2, queue.getStatistics().mDeduplicatedFiles);
+		
+		assertArrayEquals(uris, pollAll(queue, uris.length));
+		assertNull(queue.poll());
+		
+		// Files which are left in the queue dir at shutdown must be returned in priority order
+		// by the next session as well.
+		// The next session does not know the order in which they were added, so make the
+		// priorities distinct.
+		for(int i = uris.length - 1; i >= 0; --i)
+			queue.add(getIdentityFileStream(uris[i]));
+		priorities.put(IdentityID.constructAndValidateFromURI(uris[0]).toString(), 4);
+		queue = new IdentityFileDiskQueue(queueDir, priorityProvider);
+		assertEquals(uris.length, queue.getStatistics().mQueuedFiles);
+		assertArrayEquals(uris, pollAll(queue, uris.length));
+		assertNull(queue.poll());
+	}
+
+	/**
+	 * Tests whether {@link IdentityFileLogQueue} deduplicates files and whether a new queue in the
+	 * same directory, i.e. after a restart, contains the same files as
+	 * {@link IdentityFileDiskQueue} would: The queued ones, but not the one which was being
+	 * processed. Also tests whether a partially written record at the end of the log, as caused
+	 * by a crash, is discarded. */
+	@Test public void testIdentityFileLogQueueRecovery() throws IOException {
+		final FreenetURI[] uris = new FreenetURI[4];
+		for(int i = 0; i < uris.length; ++i) {
+			uris[i] = getRandomRequestURI().setKeyType("USK")
+				.setDocName(WebOfTrustInterface.WOT_NAME).setSuggestedEdition(10);
+		}
+		
+		File queueDir = mTempFolder.newFolder();
+		IdentityFileLogQueue queue = new IdentityFileLogQueue(queueDir);
+		for(FreenetURI uri : uris)
+			queue.add(getIdentityFileStream(uri));
+		
+		// An older edition must be dropped, a newer one must replace the queued one.
+		queue.add(getIdentityFileStream(uris[1].setSuggestedEdition(9)));
+		uris[2] = uris[2].setSuggestedEdition(11);
+		queue.add(getIdentityFileStream(uris[2]));
+		assertEquals(uris.length, queue.getStatistics().mQueuedFiles);
+		assertEquals(2, queue.getStatistics().mDeduplicatedFiles);
+		
+		// Finish uris[0], leave uris[1] in processing.
+		assertArrayEquals(new FreenetURI[] { uris[0] }, pollAll(queue, 1));
+		IdentityFileStream processing = queue.poll();
+		assertEquals(uris[1], processing.mURI);
+		assertEquals(1, queue.getStatistics().mProcessingFiles);
+		
+		// Simulate a crash while appending a record.
+		File[] segments = new File(queueDir, "IdentityFileLogQueue").listFiles();
+		assertEquals(1, segments.length);
+		FileOutputStream segment = new FileOutputStream(segments[0], true);
+		segment.write(new byte[] { IdentityFileLogQueue.RECORD_TYPE_ENTRY, 0, 0 });
+		segment.close();
+		
+		queue = new IdentityFileLogQueue(queueDir);
+		assertEquals(2, queue.getStatistics().mQueuedFiles);
+		assertEquals(0, queue.getStatistics().mProcessingFiles);
+		assertArrayEquals(new FreenetURI[] { uris[3], uris[2] }, pollAll(queue, 2));
+		assertNull(queue.poll());
+		
+		// The truncated record must not prevent appending further ones.
+		queue.add(getIdentityFileStream(uris[0].setSuggestedEdition(12)));
+		queue = new IdentityFileLogQueue(queueDir);
+		assertArrayEquals(new FreenetURI[] { uris[0].setSuggestedEdition(12) },
+			pollAll(queue, 1));
+		assertNull(queue.poll());
+		processing.mXMLInputStream.close();
+	}
+
+	/**
+	 * Tests whether a bounded {@link IdentityFileMemoryQueue} spills files which exceed its byte
+	 * budget to the overflow queue, deduplicates across both, and preserves the FIFO order. */
+	@Test public void testIdentityFileMemoryQueueSpilling() throws IOException {
+		final FreenetURI[] uris = new FreenetURI[5];
+		for(int i = 0; i < uris.length; ++i) {
+			uris[i] = getRandomRequestURI().setKeyType("USK")
+				.setDocName(WebOfTrustInterface.WOT_NAME).setSuggestedEdition(10);
+		}
+		
+		// Budget for 3 files of at most 128 bytes, see getIdentityFileStream().
+		IdentityFileMemoryQueue queue = new IdentityFileMemoryQueue(3 * (128 + 512),
+			new IdentityFileDiskQueue(mTempFolder.newFolder()));
+		
+		for(FreenetURI uri : uris)
+			queue.add(getIdentityFileStream(uri));
+		assertEquals(uris.length, queue.getStatistics().mQueuedFiles);
+		
+		// Older than the edition in memory: Must be dropped.
+		queue.add(getIdentityFileStream(uris[0].setSuggestedEdition(9)));
+		// Newer than the edition in memory: Must replace it, and spill as spilling has started.
+		uris[1] = uris[1].setSuggestedEdition(11);
+		queue.add(getIdentityFileStream(uris[1]));
+		// Newer than the edition in the overflow queue: Must replace it there.
+		uris[4] = uris[4].setSuggestedEdition(11);
+		queue.add(getIdentityFileStream(uris[4]));
+		
+		assertEquals(uris.length, queue.getStatistics().mQueuedFiles);
+		assertEquals(3, queue.getStatistics().mDeduplicatedFiles);
+		
+		assertArrayEquals(new FreenetURI[] { uris[0], uris[2], uris[3], uris[1], uris[4] },
+			pollAll(queue, uris.length));
+		assertNull(queue.poll());
+		
+		// Once the overflow queue is drained, files must be kept in memory again.
+		queue.add(getIdentityFileStream(uris[0].setSuggestedEdition(12)));
+		assertEquals(1, queue.getStatistics().mQueuedFiles);
+		assertArrayEquals(new FreenetURI[] { uris[0].setSuggestedEdition(12) },
+			pollAll(queue, 1));
+	}
+
+	/**
+	 * Tests whether a bounded {@link IdentityFileMemoryQueue} returns the files which it keeps in
+	 * memory in the order of the {@link PriorityProvider}, the same as
+	 * {@link #testIdentityFileDiskQueuePriority()} does for the disk queue. */
+	@Test public void testIdentityFileMemoryQueuePriority() throws IOException {
+		final HashMap<String, Integer> priorities = new HashMap<String, Integer>();
+		final PriorityProvider priorityProvider = new PriorityProvider() {
+			@Override public int getPriority(String identityID) {
+				Integer priority = priorities.get(identityID);
+				return priority != null ? priority : 0;
+			}
+		};
+
+		// Index = order in which poll() must return them.
+		final FreenetURI[] uris = new FreenetURI[5];
+		final int[] uriPriorities = { 3, 3, 2, 1, 0 };
+		for(int i = 0; i < uris.length; ++i) {
+			uris[i] = getRandomRequestURI().setKeyType("USK")
+				.setDocName(WebOfTrustInterface.WOT_NAME).setSuggestedEdition(10);
+			priorities.put(
+				IdentityID.constructAndValidateFromURI(uris[i]).toString(), uriPriorities[i]);
+		}
+
+		IdentityFileMemoryQueue queue = new IdentityFileMemoryQueue(
+			IdentityFileMemoryQueue.DEFAULT_BYTE_BUDGET,
+			new IdentityFileDiskQueue(mTempFolder.newFolder(), priorityProvider),
+			priorityProvider);
+		for(int i : new int[] { 3, 0, 4, 2, 1 })
+			queue.add(getIdentityFileStream(uris[i]));
+
+		// An older edition must be dropped, a newer one must replace the queued one and keep
+		// its priority.
+		queue.add(getIdentityFileStream(uris[2].setSuggestedEdition(9)));
+		queue.add(getIdentityFileStream(uris[3].setSuggestedEdition(11)));
+		uris[3] = uris[3].setSuggestedEdition(11);
+		assertEquals(uris.length, queue.getStatistics().mQueuedFiles);
+		assertEquals(2, queue.getStatistics().mDeduplicatedFiles);
+
+		assertArrayEquals(uris, pollAll(queue, uris.length));
+		assertNull(queue.poll());
+	}
+
+	private IdentityFileStream getIdentityFileStream(FreenetURI uri) {
+		return new IdentityFileStream(uri, new ByteArrayInputStream(
+			getRandomLatinString(1 + mRandom.nextInt(128)).getBytes(XMLTransformer.XML_CHARSET)));
+	}
+
+	/** Polls the given amount of files and returns their {@link IdentityFileStream#mURI}s. */
+	private FreenetURI[] pollAll(IdentityFileQueue queue, int amount) throws IOException {
+		FreenetURI[] result = new FreenetURI[amount];
+		for(int i = 0; i < amount; ++i) {
+			IdentityFileStream stream = queue.poll();
+			result[i] = stream.mURI;
+			// Must be closed before the next poll(), see IdentityFileQueue.
+			stream.mXMLInputStream.close();
+		}
+		return result;
 	}
 
     @Override protected WebOfTrust getWebOfTrust() {
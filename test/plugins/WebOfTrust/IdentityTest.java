@@ -5,6 +5,7 @@ package plugins.WebOfTrust;
 
 import java.net.MalformedURLException;
 import java.util.Date;
+import java.util.List;
 
 import org.junit.Ignore;
 
@@ -13,8 +14,6 @@ import plugins.WebOfTrust.Identity.IdentityID;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
 import plugins.WebOfTrust.exceptions.UnknownIdentityException;
 
-import com.db4o.ObjectSet;
-
 import freenet.keys.FreenetURI;
 import freenet.support.Base64;
 import plugins.WebOfTrust.util.CurrentTimeUTC;
@@ -97,6 +96,34 @@ public final class IdentityTest extends AbstractJUnit3BaseTest {
 		assertEquals(original, deserialized);
 	}
 	
+	/** Test for {@link Identity#encode(java.io.DataOutputStream, Identity)} and its inverse. */
+	public void testEncodeDecode() throws MalformedURLException, InvalidParameterException {
+		final Identity original = new Identity(mWoT, getRandomSSKPair()[1], getRandomLatinString(Identity.MAX_NICKNAME_LENGTH), true);
+		original.addContext("Test");
+		original.setProperty("Key", "Value");
+		
+		final Identity decoded = (Identity)EventSourceCodec.decode(mWoT, EventSourceCodec.encode(original, null), null);
+		assertNotSame(original, decoded);
+		assertEquals(original, decoded);
+		
+		// Encoding relative to a base object shall only contain the changed fields.
+		final OwnIdentity base = new OwnIdentity(mWoT, getRandomSSKPair()[0], "Base", true);
+		final OwnIdentity changed = base.clone();
+		changed.setEdition(10);
+		changed.setPublishTrustList(false);
+		changed.addContext("Test");
+		
+		final byte[] full = EventSourceCodec.encode(changed, null);
+		final byte[] diff = EventSourceCodec.encode(changed, base);
+		assertTrue(diff.length < full.length);
+		
+		final OwnIdentity decodedDiff = (OwnIdentity)EventSourceCodec.decode(mWoT, diff, base);
+		assertEquals(changed, decodedDiff);
+		assertEquals(changed.getInsertURI(), decodedDiff.getInsertURI());
+		assertEquals(changed.getLastInsertDate(), decodedDiff.getLastInsertDate());
+		assertEquals(base, base.clone()); // The base must not have been modified
+	}
+	
 	public void testConstructors() throws MalformedURLException, InvalidParameterException {
 		final Identity identity = new Identity(mWoT, "USK@sdFxM0Z4zx4-gXhGwzXAVYvOUi6NRfdGbyJa797bNAg,ZP4aASnyZax8nYOvCOlUebegsmbGQIXfVzw7iyOsXEc,AQACAAE/WebOfTrust/-1",
 				getRandomLatinString(Identity.MAX_NICKNAME_LENGTH), true);
@@ -125,10 +152,10 @@ public final class IdentityTest extends AbstractJUnit3BaseTest {
 	 * @author Julien Cornuwel (batosai@freenetproject.org)
 	 */
 	public void testIdentityStored() {
-		ObjectSet<Identity> result = mWoT.getAllIdentities();
+		List<Identity> result = mWoT.getAllIdentities();
 		assertEquals(1, result.size());
 		
-		assertEquals(identity, result.next());
+		assertEquals(identity, result.get(0));
 	}
 
 	/**
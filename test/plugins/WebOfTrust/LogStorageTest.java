@@ -0,0 +1,212 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+
+/** Tests {@link LogStorage} and {@link StorageMigration}. */
+public final class LogStorageTest extends AbstractJUnit4BaseTest {
+
+	private WebOfTrust mWebOfTrust;
+
+	private File mFile;
+
+	private LogStorage mStorage;
+
+
+	@Before public void setUp() throws IOException, MalformedURLException,
+			InvalidParameterException, NotTrustedException {
+
+		mWebOfTrust = constructEmptyWebOfTrust();
+		final ArrayList<Identity> identities = addRandomIdentities(5, 50);
+		addRandomTrustValues(identities, 500);
+
+		mFile = new File(mTempFolder.newFolder(), "storage.log");
+		mStorage = new LogStorage(mWebOfTrust, mFile);
+		synchronized(mWebOfTrust) {
+		synchronized(Persistent.transactionLock(mWebOfTrust.getDatabase())) {
+			StorageMigration.migrate(mWebOfTrust.getStorage(), mStorage,
+				StorageMigration.DEFAULT_COMMIT_INTERVAL);
+		}
+		}
+	}
+
+	@After public void tearDown() {
+		if(mStorage != null)
+			mStorage.close();
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+	/** Tests whether the migrated objects and their lookups equal the ones of the database. */
+	@Test public void testMigrate() throws UnknownIdentityException, NotTrustedException,
+			NotInTrustTreeException {
+
+		assertEqualsWoT(mStorage);
+
+		final LogStorage.Statistics stats = mStorage.getStatistics();
+		assertEquals(mWebOfTrust.getAllIdentities().size(), stats.mIdentities);
+		assertEquals(mWebOfTrust.getAllTrusts().size(), stats.mTrusts);
+		assertEquals(mWebOfTrust.getAllScores().size(), stats.mScores);
+		assertEquals(0, stats.getObsoleteRecords());
+		assertEquals(mFile.length(), stats.mFileSize);
+
+		try {
+			StorageMigration.migrate(mWebOfTrust.getStorage(), mStorage, 1);
+			fail("Migrating to a non-empty Storage should fail");
+		} catch(IllegalArgumentException e) {}
+	}
+
+	/** Tests whether replaying the log restores the committed state. */
+	@Test public void testReplay() throws IOException, UnknownIdentityException,
+			NotTrustedException, NotInTrustTreeException {
+
+		mStorage.close();
+		mStorage = new LogStorage(mWebOfTrust, mFile);
+		assertEqualsWoT(mStorage);
+	}
+
+	@Test public void testCommitAndRollback() throws IOException, UnknownIdentityException {
+		final Trust deleted = mStorage.getAllTrusts().get(0);
+		final Trust rolledBack = mStorage.getAllTrusts().get(1);
+
+		mStorage.deleteWithoutCommit(deleted);
+		mStorage.commit();
+		mStorage.deleteWithoutCommit(rolledBack);
+		assertFalse(contains(mStorage, rolledBack));
+		mStorage.rollback();
+
+		assertFalse(contains(mStorage, deleted));
+		assertTrue(contains(mStorage, rolledBack));
+
+		mStorage.close();
+		mStorage = new LogStorage(mWebOfTrust, mFile);
+		assertFalse(contains(mStorage, deleted));
+		assertTrue(contains(mStorage, rolledBack));
+		assertEquals(mWebOfTrust.getAllTrusts().size() - 1, mStorage.getAllTrusts().size());
+
+		// Deleting an Identity which has Trusts must fail and not change anything.
+		final Identity truster = mStorage.getIdentityByID(rolledBack.getTruster().getID());
+		try {
+			mStorage.deleteWithoutCommit(truster);
+			fail("Deleting an Identity with Trusts should fail");
+		} catch(RuntimeException e) {}
+		assertTrue(contains(mStorage, rolledBack));
+	}
+
+	/** Tests whether a partially written record, as left by a crash, is discarded. */
+	@Test public void testTruncatedRecord() throws IOException, UnknownIdentityException,
+			NotTrustedException, NotInTrustTreeException {
+
+		mStorage.close();
+		final long length = mFile.length();
+
+		final FileOutputStream out = new FileOutputStream(mFile, true);
+		try {
+			// Type PUT_TRUST, a payload length which exceeds the file, no CRC and payload.
+			out.write(new byte[] { LogStorage.RECORD_TYPE_PUT_TRUST, 0, 0, 1, 0, 42 });
+		} finally {
+			out.close();
+		}
+
+		mStorage = new LogStorage(mWebOfTrust, mFile);
+		assertEquals(length, mFile.length());
+		assertEqualsWoT(mStorage);
+	}
+
+	@Test public void testCompact() throws IOException, UnknownIdentityException,
+			NotTrustedException, NotInTrustTreeException {
+
+		// Appends a second version of each Trust.
+		for(Trust trust : mStorage.getAllTrusts())
+			mStorage.storeWithoutCommit(trust);
+		mStorage.commit();
+
+		final long length = mFile.length();
+		assertEquals(mStorage.getAllTrusts().size(),
+			mStorage.getStatistics().getObsoleteRecords());
+
+		mStorage.compact();
+		assertTrue(mFile.length() < length);
+		assertFalse(new File(mFile.getPath() + LogStorage.COMPACTION_FILE_SUFFIX).exists());
+		assertEquals(0, mStorage.getStatistics().getObsoleteRecords());
+		assertEquals(mFile.length(), mStorage.getStatistics().mFileSize);
+		assertEqualsWoT(mStorage);
+
+		mStorage.close();
+		mStorage = new LogStorage(mWebOfTrust, mFile);
+		assertEqualsWoT(mStorage);
+	}
+
+	/**
+	 * Asserts that the given Storage contains the same {@link Identity}s, {@link Trust}s and
+	 * {@link Score}s as the database of {@link #mWebOfTrust}, and that its lookups return the
+	 * same results. */
+	private void assertEqualsWoT(Storage storage) throws UnknownIdentityException,
+			NotTrustedException, NotInTrustTreeException {
+
+		assertEquals(getAllIdentities(), new HashSet<Identity>(storage.getAllIdentities()));
+		assertEquals(getAllTrusts(), new HashSet<Trust>(storage.getAllTrusts()));
+		assertEquals(getAllScores(), new HashSet<Score>(storage.getAllScores()));
+		assertEquals(new HashSet<OwnIdentity>(mWebOfTrust.getAllOwnIdentities()),
+			new HashSet<OwnIdentity>(storage.getAllOwnIdentities()));
+
+		for(Identity identity : storage.getAllIdentities()) {
+			assertEquals(identity, storage.getIdentityByID(identity.getID()));
+			// The queries of the database need its own instance of the Identity.
+			final Identity original = mWebOfTrust.getIdentityByID(identity.getID());
+			assertEquals(new HashSet<Trust>(mWebOfTrust.getGivenTrusts(original)),
+				new HashSet<Trust>(storage.getGivenTrusts(identity)));
+			assertEquals(new HashSet<Trust>(mWebOfTrust.getReceivedTrusts(original)),
+				new HashSet<Trust>(storage.getReceivedTrusts(identity)));
+			assertEquals(new HashSet<Score>(mWebOfTrust.getScores(original)),
+				new HashSet<Score>(storage.getScores(identity)));
+		}
+
+		for(Trust trust : storage.getAllTrusts()) {
+			assertEquals(trust, storage.getTrust(trust.getTruster(), trust.getTrustee()));
+			assertTrue(trust == storage.getTrust(trust.getID()));
+			assertTrue(trust.getTruster() == storage.getIdentityByID(trust.getTruster().getID()));
+		}
+
+		for(Score score : storage.getAllScores()) {
+			assertEquals(score, storage.getScore(score.getTruster(), score.getTrustee()));
+			assertTrue(score == storage.getScore(score.getID()));
+		}
+	}
+
+	private static boolean contains(Storage storage, Trust trust) {
+		try {
+			storage.getTrust(storage.getIdentityByID(trust.getTruster().getID()),
+				storage.getIdentityByID(trust.getTrustee().getID()));
+			return true;
+		} catch(NotTrustedException e) {
+			return false;
+		} catch(UnknownIdentityException e) {
+			return false;
+		}
+	}
+
+}
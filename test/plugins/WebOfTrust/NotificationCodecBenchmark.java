@@ -0,0 +1,154 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.util.UUID.randomUUID;
+import static org.junit.Assert.*;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import plugins.WebOfTrust.SubscriptionManager.ObjectChangedNotification;
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+
+/**
+ * This is NOT an actual unit test. It benchmarks the size and the CPU time of the encoding which
+ * {@link ObjectChangedNotification} uses to store the changed objects: {@link EventSourceCodec}
+ * against the previously used Java serialization, {@link Persistent#serialize()}.<br><br>
+ *
+ * Each benchmarked notification is a modification of an object, i.e. it contains the object
+ * before and after the change. For the codec, the object after the change is encoded relative
+ * to the one before it, as ObjectChangedNotification does.<br><br>
+ *
+ * This is NOT run in the default test suite which is run by Ant when building.
+ * To run it, put "test.benchmark=true" into the "override.properties" build configuration file.
+ * If it does not exist, create it in the root of the project.
+ */
+public final class NotificationCodecBenchmark extends AbstractSingleNodeTest {
+
+	private static final int IDENTITY_COUNT = 100;
+
+	private static final int TRUST_COUNT = (IDENTITY_COUNT * IDENTITY_COUNT) / 5;
+
+	/** Each iteration encodes and decodes all Trusts and Scores once. */
+	private static final int ITERATIONS = 20;
+
+
+	@Test public void benchmark() throws MalformedURLException, InvalidParameterException,
+			NotTrustedException {
+
+		final ArrayList<Identity> identities = addRandomIdentities(1, IDENTITY_COUNT - 1);
+		addRandomTrustValues(identities, TRUST_COUNT);
+
+		final ArrayList<Persistent> oldObjects = new ArrayList<Persistent>();
+		final ArrayList<Persistent> newObjects = new ArrayList<Persistent>();
+
+		synchronized(mWebOfTrust) {
+			for(Trust trust : mWebOfTrust.getAllTrusts()) {
+				final Trust oldTrust = trust.clone();
+				final Trust newTrust = trust.clone();
+				oldTrust.setVersionID(randomUUID());
+				newTrust.setVersionID(randomUUID());
+				newTrust.setValue((byte)(trust.getValue() == 100 ? 99 : trust.getValue() + 1));
+				oldObjects.add(oldTrust);
+				newObjects.add(newTrust);
+			}
+
+			for(Score score : mWebOfTrust.getAllScores()) {
+				final Score oldScore = score.clone();
+				final Score newScore = score.clone();
+				oldScore.setVersionID(randomUUID());
+				newScore.setVersionID(randomUUID());
+				newScore.setValue(score.getValue() + 1);
+				oldObjects.add(oldScore);
+				newObjects.add(newScore);
+			}
+		}
+
+		final int count = oldObjects.size();
+		System.out.println("Notifications: " + count);
+
+		// Java serialization
+
+		long serializedBytes = 0;
+		long serializeNanos = 0;
+		long deserializeNanos = 0;
+
+		for(int iteration = 0; iteration < ITERATIONS; ++iteration) {
+			final byte[][] oldData = new byte[count][];
+			final byte[][] newData = new byte[count][];
+
+			long start = System.nanoTime();
+			for(int i = 0; i < count; ++i) {
+				oldData[i] = oldObjects.get(i).serialize();
+				newData[i] = newObjects.get(i).serialize();
+			}
+			serializeNanos += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for(int i = 0; i < count; ++i) {
+				Persistent.deserialize(mWebOfTrust, oldData[i]);
+				Persistent.deserialize(mWebOfTrust, newData[i]);
+			}
+			deserializeNanos += System.nanoTime() - start;
+
+			if(iteration == 0) {
+				for(int i = 0; i < count; ++i)
+					serializedBytes += oldData[i].length + newData[i].length;
+			}
+		}
+
+		// EventSourceCodec
+
+		long encodedBytes = 0;
+		long encodeNanos = 0;
+		long decodeNanos = 0;
+
+		for(int iteration = 0; iteration < ITERATIONS; ++iteration) {
+			final byte[][] oldData = new byte[count][];
+			final byte[][] newData = new byte[count][];
+
+			long start = System.nanoTime();
+			for(int i = 0; i < count; ++i) {
+				oldData[i] = EventSourceCodec.encode(oldObjects.get(i), null);
+				newData[i] = EventSourceCodec.encode(newObjects.get(i), oldObjects.get(i));
+			}
+			encodeNanos += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for(int i = 0; i < count; ++i) {
+				final Persistent oldObject = EventSourceCodec.decode(mWebOfTrust, oldData[i], null);
+				EventSourceCodec.decode(mWebOfTrust, newData[i], oldObject);
+			}
+			decodeNanos += System.nanoTime() - start;
+
+			if(iteration == 0) {
+				for(int i = 0; i < count; ++i) {
+					encodedBytes += oldData[i].length + newData[i].length;
+
+					assertEquals(newObjects.get(i), EventSourceCodec.decode(
+						mWebOfTrust, newData[i], oldObjects.get(i)));
+				}
+			}
+		}
+
+		final long operations = (long)count * ITERATIONS;
+
+		System.out.println("Java serialization: "
+			+ (serializedBytes / count) + " bytes/notification; "
+			+ (serializeNanos / operations) + " ns/notification to serialize; "
+			+ (deserializeNanos / operations) + " ns/notification to deserialize");
+
+		System.out.println("EventSourceCodec: "
+			+ (encodedBytes / count) + " bytes/notification; "
+			+ (encodeNanos / operations) + " ns/notification to encode; "
+			+ (decodeNanos / operations) + " ns/notification to decode");
+
+		assertTrue(encodedBytes < serializedBytes);
+	}
+
+}
@@ -21,11 +21,12 @@ import plugins.WebOfTrust.util.StopWatch;
 import freenet.support.TimeUtil;
 
 /**
- * Tests whether the 4 implementations of rank computation yield the same results:
+ * Tests whether the 5 implementations of rank computation yield the same results:
  * - {@link WebOfTrust#computeRankFromScratch_Caching(OwnIdentity, Identity, java.util.Map)}
  * - {@link WebOfTrust#computeRankFromScratch(OwnIdentity, Identity)}
  * - {@link WebOfTrust#computeRankFromScratch_Forward(OwnIdentity, Identity)}
  * - {@link WebOfTrust#computeAllScoresWithoutCommit()}
+ * - {@link IndexedRankComputer}
  * 
  * For the caching function, tests whether the cache it produces is correct.
  * Notice: For using this to debug wrong cache entries, you might have to comment out the assert
@@ -33,7 +34,7 @@ import freenet.support.TimeUtil;
  * cache entries, the assert which tests its returned rank value (and determine it
  * to be wrong maybe) could make this test fail before it reaches the stage of testing the cache.
  * 
- * Also measures the execution time per rank for the first 3 of them. The last currently only
+ * Also measures the execution time per rank for all except the fourth. It currently only
  * receives measurement of the total time for a Score, which includes more computation than a rank.
  * TODO: Performance: Measure rank computation time of
  * {@link WebOfTrust#computeAllScoresWithoutCommit()}. This requires extracting a function
@@ -77,10 +78,13 @@ public final class RankComputationTest extends AbstractJUnit4BaseTest {
 		long time_rank_computeRankFromScratch_Caching = 0;
 		long time_rank_computeRankFromScratch = 0;
 		long time_rank_computeRankFromScratch_Forward = 0;
+		long time_rank_IndexedRankComputer = 0;
 		
 		// For WebOfTrust.computeRankFromScratch_Caching()
 		final HashMap<String, Integer> rankCache = new HashMap<String, Integer>();
 		
+		final RankComputer indexedRankComputer = new IndexedRankComputer(mWebOfTrust);
+		
 		for(OwnIdentity source : ownIdentitys) {
 			for(Identity target : identitys) {
 				int rank_computeAllScores;
@@ -111,9 +115,16 @@ public final class RankComputationTest extends AbstractJUnit4BaseTest {
 				
 				// System.out.println("computeRankFromScratch_Forward() time: " + t2);
 				
+				StopWatch t3 = new StopWatch();
+				int rank_IndexedRankComputer = indexedRankComputer.computeRank(source, target);
+				time_rank_IndexedRankComputer += t3.getNanos();
+				
+				// System.out.println("IndexedRankComputer time: " + t3);
+				
 				assertEquals(rank_computeAllScores, rank_computeRankFromScratch_Caching);
 				assertEquals(rank_computeAllScores, rank_computeRankFromScratch);
 				assertEquals(rank_computeAllScores, rank_computeRankFromScratch_Forward);
+				assertEquals(rank_computeAllScores, rank_IndexedRankComputer);
 				
 				for(Entry<String, Integer> cacheEntry : rankCache.entrySet()) {
 					try {
@@ -133,6 +144,7 @@ public final class RankComputationTest extends AbstractJUnit4BaseTest {
 		time_rank_computeRankFromScratch_Caching /= rankCount;
 		time_rank_computeRankFromScratch /= rankCount;
 		time_rank_computeRankFromScratch_Forward /= rankCount;
+		time_rank_IndexedRankComputer /= rankCount;
 		
 		// TimeUtil wants millis, not nanos
 		time_rank_computeRankFromScratch_Caching
@@ -143,6 +155,9 @@ public final class RankComputationTest extends AbstractJUnit4BaseTest {
 
 		time_rank_computeRankFromScratch_Forward
 			= TimeUnit.NANOSECONDS.toMillis(time_rank_computeRankFromScratch_Forward);
+
+		time_rank_IndexedRankComputer
+			= TimeUnit.NANOSECONDS.toMillis(time_rank_IndexedRankComputer);
 		
 		System.out.println("computeRankFromScratch_Caching() avg. time per rank: "
 			+ TimeUtil.formatTime(time_rank_computeRankFromScratch_Caching, 3, true));
@@ -152,6 +167,9 @@ public final class RankComputationTest extends AbstractJUnit4BaseTest {
 		
 		System.out.println("computeRankFromScratch_Forward() avg. time per rank: "
 			+ TimeUtil.formatTime(time_rank_computeRankFromScratch_Forward, 3, true));
+		
+		System.out.println("IndexedRankComputer avg. time per rank: "
+			+ TimeUtil.formatTime(time_rank_IndexedRankComputer, 3, true));
 	}
 
 	@Override protected WebOfTrust getWebOfTrust() {
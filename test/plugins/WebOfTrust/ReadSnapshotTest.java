@@ -0,0 +1,251 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.exceptions.DuplicateTrustException;
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+
+/** Tests {@link ReadSnapshot}, {@link ReadSnapshotPublisher} and {@link VersionedMap}. */
+public final class ReadSnapshotTest extends AbstractJUnit4BaseTest {
+
+	private WebOfTrust mWebOfTrust;
+
+
+	@Before public void setUp() {
+		mWebOfTrust = constructEmptyWebOfTrust();
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+	@Test public void testSnapshotMatchesDatabase()
+			throws MalformedURLException, InvalidParameterException, NotTrustedException,
+			DuplicateTrustException, UnknownIdentityException, NotInTrustTreeException {
+
+		ArrayList<Identity> identities = addRandomIdentities(5, 50);
+		addRandomTrustValues(identities, 250);
+		assertSnapshotMatchesDatabase(mWebOfTrust.getReadSnapshot());
+
+		doRandomChangesToWOT(500);
+		assertSnapshotMatchesDatabase(mWebOfTrust.getReadSnapshot());
+
+		// Test whether rebuilding it from the database at startup works
+		File database = mWebOfTrust.getDatabaseFile();
+		mWebOfTrust.terminate();
+		mWebOfTrust = new WebOfTrust(database.toString());
+		assertSnapshotMatchesDatabase(mWebOfTrust.getReadSnapshot());
+	}
+
+	/** Tests whether a snapshot which was obtained is not affected by later changes. */
+	@Test public void testImmutability()
+			throws MalformedURLException, InvalidParameterException, NotTrustedException,
+			DuplicateTrustException, UnknownIdentityException, NotInTrustTreeException {
+
+		ArrayList<Identity> identities = addRandomIdentities(2, 20);
+		addRandomTrustValues(identities, 60);
+
+		final ReadSnapshot before = mWebOfTrust.getReadSnapshot();
+		// Key = ID of the truster, value = the values of its given Trusts.
+		final HashMap<String, String> trusts = new HashMap<String, String>();
+		int trustCount = 0;
+		for(Identity identity : before.getAllIdentities()) {
+			trusts.put(identity.getID(), getGivenTrustValues(before, identity.getID()));
+			trustCount += before.getGivenTrusts(identity.getID()).size();
+		}
+		final int identityCount = before.getIdentityCount();
+		final int scoreCount = before.getScoreCount();
+
+		doRandomChangesToWOT(200);
+		final ReadSnapshot after = mWebOfTrust.getReadSnapshot();
+		assertNotSame(before, after);
+		assertTrue(after.getVersion() > before.getVersion());
+
+		assertEquals(identityCount, before.getIdentityCount());
+		assertEquals(scoreCount, before.getScoreCount());
+		assertEquals(trustCount, before.getTrustCount());
+		for(String trusterID : trusts.keySet())
+			assertEquals(trusts.get(trusterID), getGivenTrustValues(before, trusterID));
+		assertSnapshotMatchesDatabase(after);
+	}
+
+	@Test public void testRollback()
+			throws MalformedURLException, InvalidParameterException, NotTrustedException,
+			UnknownIdentityException, NotInTrustTreeException {
+
+		ArrayList<Identity> identities = addRandomIdentities(2, 10);
+		addRandomTrustValues(identities, 30);
+		final ReadSnapshot before = mWebOfTrust.getReadSnapshot();
+
+		synchronized(mWebOfTrust) {
+		synchronized(mWebOfTrust.getIdentityFetcher()) {
+		synchronized(mWebOfTrust.getSubscriptionManager()) {
+		synchronized(Persistent.transactionLock(mWebOfTrust.getDatabase())) {
+			mWebOfTrust.beginTrustListImport();
+			for(Trust trust : new ArrayList<Trust>(mWebOfTrust.getAllTrusts())) {
+				if(mRandom.nextBoolean())
+					mWebOfTrust.removeTrustWithoutCommit(trust);
+			}
+			for(int i = 0; i < 10; ++i) {
+				Identity truster = identities.get(mRandom.nextInt(identities.size()));
+				Identity trustee = identities.get(mRandom.nextInt(identities.size()));
+				if(truster != trustee) {
+					mWebOfTrust.setTrustWithoutCommit(truster, trustee, getRandomTrustValue(),
+						"");
+				}
+			}
+			// Uncommitted changes must not be visible.
+			assertSame(before, mWebOfTrust.getReadSnapshot());
+			mWebOfTrust.abortTrustListImport(new RuntimeException("Test"));
+		}}}}
+
+		assertSame(before, mWebOfTrust.getReadSnapshot());
+		assertSnapshotMatchesDatabase(before);
+
+		// The discarded changes must not leak into the next transaction.
+		doRandomChangesToWOT(10);
+		assertSnapshotMatchesDatabase(mWebOfTrust.getReadSnapshot());
+	}
+
+	/**
+	 * Tests whether {@link ReadSnapshot#withCurrentIdentities(EventSource)} replaces the truster
+	 * and trustee of a {@link Trust} and {@link Score} which were changed after them. */
+	@Test public void testWithCurrentIdentities()
+			throws MalformedURLException, InvalidParameterException, NotTrustedException,
+			UnknownIdentityException, NotInTrustTreeException {
+
+		final ArrayList<OwnIdentity> identities = addRandomOwnIdentities(2);
+		final OwnIdentity truster = identities.get(0);
+		final OwnIdentity trustee = identities.get(1);
+		mWebOfTrust.setTrust(truster.getID(), trustee.getID(), (byte)100, "");
+		mWebOfTrust.addContext(trustee.getID(), "WithCurrentIdentities");
+
+		final ReadSnapshot snapshot = mWebOfTrust.getReadSnapshot();
+		final Identity currentTrustee = snapshot.getIdentityByID(trustee.getID());
+		assertTrue(currentTrustee.hasContext("WithCurrentIdentities"));
+		assertSame(currentTrustee, snapshot.withCurrentIdentities(currentTrustee));
+
+		final Trust trust = snapshot.getTrust(truster.getID(), trustee.getID());
+		final Trust trustCopy = snapshot.withCurrentIdentities(trust);
+		assertNotSame(trust, trustCopy);
+		assertEquals(trust, trustCopy);
+		assertSame(snapshot.getIdentityByID(truster.getID()), trustCopy.getTruster());
+		assertSame(currentTrustee, trustCopy.getTrustee());
+
+		final Score score = snapshot.getScore(truster.getID(), trustee.getID());
+		final Score scoreCopy = snapshot.withCurrentIdentities(score);
+		assertNotSame(score, scoreCopy);
+		assertEquals(score, scoreCopy);
+		assertSame(snapshot.getIdentityByID(truster.getID()), scoreCopy.getTruster());
+		assertSame(currentTrustee, scoreCopy.getTrustee());
+	}
+
+	/** Tests {@link VersionedMap} against a {@link HashMap} with random changes of random size. */
+	@Test public void testVersionedMap() {
+		final HashMap<String, Integer> expected = new HashMap<String, Integer>();
+		VersionedMap<Integer> map = VersionedMap.empty();
+
+		for(int i = 0; i < 1000; ++i) {
+			final HashMap<String, Integer> changes = new HashMap<String, Integer>();
+			final int changeCount = mRandom.nextInt(10) == 0 ? mRandom.nextInt(500) : 1 + mRandom.nextInt(5);
+			for(int j = 0; j < changeCount; ++j) {
+				final String key = Integer.toString(mRandom.nextInt(1000));
+				final Integer value = mRandom.nextInt(4) == 0 ? null : mRandom.nextInt();
+				changes.put(key, value);
+				if(value != null)
+					expected.put(key, value);
+				else
+					expected.remove(key);
+			}
+
+			final VersionedMap<Integer> previous = map;
+			final int previousSize = previous.size();
+			map = map.with(changes);
+			assertEquals(previousSize, previous.size());
+
+			assertEquals(expected.size(), map.size());
+			// The amount of deltas must stay logarithmic.
+			assertTrue(map.getDeltaCount() <= 1 + 32 - Integer.numberOfLeadingZeros(map.size()));
+			for(int key = 0; key < 1000; ++key)
+				assertEquals(expected.get(Integer.toString(key)), map.get(Integer.toString(key)));
+
+			final List<Integer> values = map.values();
+			assertEquals(expected.size(), values.size());
+			assertEquals(new HashSet<Integer>(expected.values()), new HashSet<Integer>(values));
+		}
+
+		assertNull(VersionedMap.<Integer>empty().get("0"));
+	}
+
+	private static String getGivenTrustValues(ReadSnapshot snapshot, String trusterID) {
+		final StringBuilder result = new StringBuilder();
+		for(Identity trustee : snapshot.getAllIdentities()) {
+			try {
+				final Trust trust = snapshot.getTrust(trusterID, trustee.getID());
+				result.append(trust.getID()).append('=').append(trust.getValue()).append(';');
+			} catch(NotTrustedException e) {}
+		}
+		return result.toString();
+	}
+
+	private void assertSnapshotMatchesDatabase(ReadSnapshot snapshot)
+			throws UnknownIdentityException, NotTrustedException, NotInTrustTreeException {
+
+		synchronized(mWebOfTrust) {
+			assertEquals(mWebOfTrust.getAllIdentities().size(), snapshot.getIdentityCount());
+			assertEquals(mWebOfTrust.getAllOwnIdentities().size(),
+				snapshot.getOwnIdentityCount());
+			assertEquals(mWebOfTrust.getAllTrusts().size(), snapshot.getTrustCount());
+			assertEquals(mWebOfTrust.getAllScores().size(), snapshot.getScoreCount());
+
+			for(Identity identity : mWebOfTrust.getAllIdentities()) {
+				final Identity copy = snapshot.getIdentityByID(identity.getID());
+				assertEquals(identity, copy);
+				assertEquals(identity.getLastFetchedDate(), copy.getLastFetchedDate());
+
+				final HashSet<Trust> given = new HashSet<Trust>();
+				for(Trust trust : mWebOfTrust.getGivenTrusts(identity))
+					given.add(trust);
+				assertEquals(given,
+					new HashSet<Trust>(snapshot.getGivenTrusts(identity.getID())));
+
+				final HashSet<Trust> received = new HashSet<Trust>();
+				for(Trust trust : mWebOfTrust.getReceivedTrusts(identity))
+					received.add(trust);
+				assertEquals(received,
+					new HashSet<Trust>(snapshot.getReceivedTrusts(identity.getID())));
+			}
+
+			for(Trust trust : mWebOfTrust.getAllTrusts()) {
+				assertEquals(trust,
+					snapshot.getTrust(trust.getTruster().getID(), trust.getTrustee().getID()));
+			}
+
+			for(Score score : mWebOfTrust.getAllScores()) {
+				assertEquals(score,
+					snapshot.getScore(score.getTruster().getID(), score.getTrustee().getID()));
+			}
+		}
+	}
+
+}
@@ -12,6 +12,7 @@ import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Random;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -38,7 +39,7 @@ public final class ScoreComputationBenchmark extends AbstractSingleNodeTest {
 	/**
 	 * Central parameter for tweaking size of benchmark data set.
 	 * The amount of trusts will be computed from this and {@link #BENCHMARK_OWN_IDENTITY_COUNT}. */
-	private static final int BENCHMARK_IDENTITY_COUNT = 1000;
+	static final int BENCHMARK_IDENTITY_COUNT = 1000;
 
 	/**
 	 * Parameter for tweaking size of benchmark dataset.
@@ -47,7 +48,7 @@ public final class ScoreComputationBenchmark extends AbstractSingleNodeTest {
 	 * own identities. Thus, incrementing {@link OwnIdentity} count likely only multiplies execution
 	 * time by a constant factor.
 	 * The amount of trusts will be computed from this and {@link #BENCHMARK_IDENTITY_COUNT}.*/
-	private static final int BENCHMARK_OWN_IDENTITY_COUNT = 1;
+	static final int BENCHMARK_OWN_IDENTITY_COUNT = 1;
 
 
 	/**
@@ -657,9 +658,7 @@ public final class ScoreComputationBenchmark extends AbstractSingleNodeTest {
 		WebOfTrust wot = getWebOfTrust();
 		ArrayList<OwnIdentity> ownIds = new ArrayList<OwnIdentity>(ownIdentityCount + 1);
 		ArrayList<Identity> ids = new ArrayList<Identity>(identityCount + ownIdentityCount + 1);
-		ArrayList<Byte> trusValueDistribution;
-		ArrayList<Integer> trusteeCountDistribution;
-		int trustCount = 0;
+		int trustCount;
 		
 		System.out.println("Creating " + ownIdentityCount + " OwnIdentitys ...");
 		for(int i = 0; i < ownIdentityCount; ++i)
@@ -671,41 +670,8 @@ public final class ScoreComputationBenchmark extends AbstractSingleNodeTest {
 		for(int i = 0; i < identityCount; ++i)
 			ids.add(wot.addIdentity(getRandomRequestURI().toString()));
 		
-		System.out.println("Computing trust value distribution from "
-						   + TRUST_DISTRIBUTION_TRUST_COUNT + " samples...");
-		trusValueDistribution = getTrustDistribution();
-		
-		System.out.println("Computing truste count distribution from "
-						   + TRUST_DISTRIBUTION_TRUST_COUNT + " samples...");
-		trusteeCountDistribution = getTrusteeCountDistribution();
-		
-		
-		System.out.println("Creating random Trust graph for " + ids.size() + " identities ...");
-
 		StopWatch setupTime = new StopWatch();
-		// Setup is not part of the benchmark, so to speed up setup, we use
-		// begin/finishTrustListImport() to ensure that only one full recomputation happens for all
-		// trusts.
-		wot.beginTrustListImport();
-		int currentIdentity = 0;
-		for(Identity truster : ids) {
-			int trusteeCount = Math.min(getRandomTrusteeCount(trusteeCountDistribution),
-										ids.size() - 1);
-			
-			System.out.println("Setting trusts for Identity " + ++currentIdentity);
-			
-			for(int j=0; j < trusteeCount; ++j) {
-				Identity trustee;
-				do {
-					trustee = ids.get(mRandom.nextInt());
-				} while(truster == trustee);
-
-				wot.setTrustWithoutCommit(truster, trustee, getRandomTrustValue(trusValueDistribution), "");
-				++trustCount;
-			}
-		}
-		System.out.println("finishTrustListImport() ...");
-		wot.finishTrustListImport();
+		trustCount = createTrustGraph(wot, ids, mRandom);
 		setupTime.stop();
 		
 		int fullRecomputationsForSetup = mWebOfTrust.getNumberOfFullScoreRecomputations();
@@ -765,8 +731,61 @@ public final class ScoreComputationBenchmark extends AbstractSingleNodeTest {
 		System.out.println("Full Score recomputations: " + fullRecomputationsForRemoval);
 	}
 
-	private byte getRandomTrustValue(ArrayList<Byte> trustDistribution) {
-		return trustDistribution.get(mRandom.nextInt(trustDistribution.size()));
+	/**
+	 * Creates random {@link Trust}s between the given {@link Identity}s according to
+	 * {@link #TRUST_DISTRIBUTION_VALUES} and {@link #TRUST_DISTRIBUTION_TRUSTEES}.<br>
+	 * Also used as dataset by {@link StorageBenchmark}.
+	 *
+	 * @return The amount of created Trusts. */
+	static int createTrustGraph(WebOfTrust wot, ArrayList<Identity> ids, Random random)
+			throws NotTrustedException, InvalidParameterException {
+		
+		System.out.println("Computing trust value distribution from "
+						   + TRUST_DISTRIBUTION_TRUST_COUNT + " samples...");
+		ArrayList<Byte> trusValueDistribution = getTrustDistribution();
+		
+		System.out.println("Computing truste count distribution from "
+						   + TRUST_DISTRIBUTION_TRUST_COUNT + " samples...");
+		ArrayList<Integer> trusteeCountDistribution = getTrusteeCountDistribution();
+		
+		System.out.println("Creating random Trust graph for " + ids.size() + " identities ...");
+
+		// Setup is not part of the benchmark, so to speed up setup, we use
+		// begin/finishTrustListImport() to ensure that only one full recomputation happens for all
+		// trusts.
+		int trustCount = 0;
+		wot.beginTrustListImport();
+		int currentIdentity = 0;
+		for(Identity truster : ids) {
+			int trusteeCount = Math.min(getRandomTrusteeCount(trusteeCountDistribution, random),
+										ids.size() - 1);
+			
+			System.out.println("Setting trusts for Identity " + ++currentIdentity);
+			
+			for(int j=0; j < trusteeCount; ++j) {
+				Identity trustee;
+				do {
+					trustee = ids.get(random.nextInt(ids.size()));
+				} while(truster == trustee);
+
+				// Only count new Trusts: The same trustee may be chosen twice.
+				try {
+					wot.getTrust(truster, trustee);
+				} catch(NotTrustedException e) {
+					++trustCount;
+				}
+
+				wot.setTrustWithoutCommit(truster, trustee,
+					getRandomTrustValue(trusValueDistribution, random), "");
+			}
+		}
+		System.out.println("finishTrustListImport() ...");
+		wot.finishTrustListImport();
+		return trustCount;
+	}
+
+	private static byte getRandomTrustValue(ArrayList<Byte> trustDistribution, Random random) {
+		return trustDistribution.get(random.nextInt(trustDistribution.size()));
 	}
 
 	private static ArrayList<Byte> getTrustDistribution() {
@@ -804,8 +823,9 @@ public final class ScoreComputationBenchmark extends AbstractSingleNodeTest {
 	}
 
 	/** FIXME: Not tested. Not reviewed. */
-	private int getRandomTrusteeCount(ArrayList<Integer> trusteeCountDistribution) {
-		return trusteeCountDistribution.get(mRandom.nextInt(trusteeCountDistribution.size()));
+	private static int getRandomTrusteeCount(ArrayList<Integer> trusteeCountDistribution,
+			Random random) {
+		return trusteeCountDistribution.get(random.nextInt(trusteeCountDistribution.size()));
 	}
 
 	/** FIXME: Not tested. Not reviewed. */
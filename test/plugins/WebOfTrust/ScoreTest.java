@@ -1147,6 +1147,55 @@ public final class ScoreTest extends AbstractJUnit4BaseTest {
 		});
 	}
 
+	/**
+	 * Test for {@link Score#encode(java.io.DataOutputStream, Score)} and the matching decoding
+	 * constructor.
+	 * 
+	 * @see #testWriteObjectObjectOutputStream2() Same test for Java serialization. */
+	@Test public void testEncode()
+			throws InterruptedException, IllegalArgumentException, IllegalAccessException,
+			       NotInTrustTreeException {
+		
+		testClone(new ScoreCloner() {
+			@Override public Score clone(Score s) {
+				return (Score) EventSourceCodec.decode(mWebOfTrust,
+					EventSourceCodec.encode(s, null), null);
+			}
+		});
+	}
+
+	/**
+	 * Test for {@link Score#encode(java.io.DataOutputStream, Score)} with a non-null base, i.e.
+	 * for the field-level diffs which {@link SubscriptionManager.ObjectChangedNotification} uses.
+	 */
+	@Test public void testEncodeDiff() throws InterruptedException {
+		final Score base = getValidScore();
+		base.setVersionID(randomUUID());
+		
+		final Score s = base.clone();
+		waitUntilCurrentTimeUTCIsAfter(s.getDateOfLastChange());
+		s.setValue(base.getValue() + 1);
+		s.setRank(base.getRank() + 1);
+		s.setVersionID(randomUUID());
+		
+		final byte[] full = EventSourceCodec.encode(s, null);
+		final byte[] diff = EventSourceCodec.encode(s, base);
+		assertTrue(diff.length < full.length);
+		
+		final Score decoded = (Score) EventSourceCodec.decode(mWebOfTrust, diff, base);
+		assertTrue(decoded.startupDatabaseIntegrityTestBoolean());
+		assertEquals(s, decoded);
+		// The following are not checked by Score.equals(), so we do it on our own.
+		assertEquals(s.getCreationDate(), decoded.getCreationDate());
+		assertEquals(s.getDateOfLastChange(), decoded.getDateOfLastChange());
+		assertEquals(s.getVersionID(), decoded.getVersionID());
+		assertEquals(truster, decoded.getTruster());
+		assertEquals(trustee, decoded.getTrustee());
+		
+		// Data of Persistent.serialize() is still readable, it may be stored in old databases.
+		assertEquals(s, EventSourceCodec.decode(mWebOfTrust, s.serialize(), null));
+	}
+
 	/** Test for {@link Score#setVersionID(UUID)}. */
 	@Test public void testSetVersionIDUUID() {
 		Score s = getValidScore();
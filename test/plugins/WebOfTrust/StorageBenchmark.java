@@ -0,0 +1,138 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+import plugins.WebOfTrust.util.StopWatch;
+
+/**
+ * This is NOT an actual unit test. It benchmarks the lookups which the score computation uses
+ * upon the two {@link Storage} implementations: {@link Db4oStorage} against {@link LogStorage}.
+ * <br>
+ * The dataset is the one of {@link ScoreComputationBenchmark}, a random trust graph which follows
+ * the distribution of trust values and trustee counts of a dump of the real network.<br><br>
+ *
+ * This is NOT run in the default test suite which is run by Ant when building.
+ * To run it, put "test.benchmark=true" into the "override.properties" build configuration file.
+ * If it does not exist, create it in the root of the project.
+ */
+public final class StorageBenchmark extends AbstractSingleNodeTest {
+
+	/** Each iteration walks all Trusts given and received by all Identitys, and looks up each
+	 *  Trust and Score by its truster and trustee. */
+	private static final int ITERATIONS = 5;
+
+
+	@Before
+	public void checkThatAssertionsAreDisabled() {
+		assert(false)
+			: "WOT has very sophisticated assertions which can impact performance a lot, so please "
+			+ "disable them for all classes running these benchmarks. ";
+	}
+
+	@Before public void setUpWOT() throws UnknownIdentityException, MalformedURLException {
+		// Delete the seed identities since the dataset assumes the WOT database to be empty.
+		deleteSeedIdentities();
+	}
+
+	@Test public void benchmark() throws InvalidParameterException, MalformedURLException,
+			NotTrustedException, NotInTrustTreeException, UnknownIdentityException, IOException {
+
+		final WebOfTrust wot = getWebOfTrust();
+		final ArrayList<Identity> ids = new ArrayList<Identity>();
+
+		for(int i = 0; i < ScoreComputationBenchmark.BENCHMARK_OWN_IDENTITY_COUNT; ++i)
+			ids.add(wot.createOwnIdentity(Integer.toString(i), true, null));
+		for(int i = 0; i < ScoreComputationBenchmark.BENCHMARK_IDENTITY_COUNT; ++i)
+			ids.add(wot.addIdentity(getRandomRequestURI().toString()));
+
+		final int trustCount = ScoreComputationBenchmark.createTrustGraph(wot, ids, mRandom);
+		System.out.println("Trusts created: " + trustCount);
+
+		final File file = new File(mTempFolder.newFolder(), "storage.log");
+		final LogStorage log = new LogStorage(wot, file);
+		try {
+			synchronized(wot) {
+			synchronized(Persistent.transactionLock(wot.getDatabase())) {
+				final StopWatch time = new StopWatch();
+				final int objects = StorageMigration.migrate(wot.getStorage(), log,
+					StorageMigration.DEFAULT_COMMIT_INTERVAL);
+				time.stop();
+				System.out.println("Migration of " + objects + " objects: " + time);
+				System.out.println("Log size: " + log.getStatistics().mFileSize + " bytes");
+
+				benchmarkLookups("db4o", wot.getStorage());
+				benchmarkLookups("LogStorage", log);
+			}
+			}
+
+			log.close();
+			StopWatch time = new StopWatch();
+			final LogStorage reopened = new LogStorage(wot, file);
+			time.stop();
+			System.out.println("LogStorage replay: " + time);
+
+			for(Trust trust : reopened.getAllTrusts())
+				reopened.storeWithoutCommit(trust);
+			reopened.commit();
+			time = new StopWatch();
+			reopened.compact();
+			time.stop();
+			System.out.println("LogStorage compaction after re-storing all Trusts: " + time);
+			reopened.close();
+		} finally {
+			log.close();
+		}
+	}
+
+	private static void benchmarkLookups(String name, Storage storage)
+			throws NotTrustedException, NotInTrustTreeException {
+
+		// Not part of the benchmark: Copy the lists, the ObjectSets of db4o are lazy.
+		final List<Identity> identities = new ArrayList<Identity>(storage.getAllIdentities());
+		final List<Trust> trusts = new ArrayList<Trust>(storage.getAllTrusts());
+		final List<Score> scores = new ArrayList<Score>(storage.getAllScores());
+
+		long walked = 0;
+		final StopWatch walkTime = new StopWatch();
+		for(int i = 0; i < ITERATIONS; ++i) {
+			for(Identity identity : identities) {
+				for(Trust trust : storage.getGivenTrusts(identity))
+					walked += trust.getValue();
+				for(Trust trust : storage.getReceivedTrusts(identity))
+					walked += trust.getValue();
+			}
+		}
+		walkTime.stop();
+
+		long lookedUp = 0;
+		final StopWatch lookupTime = new StopWatch();
+		for(int i = 0; i < ITERATIONS; ++i) {
+			for(Trust trust : trusts)
+				lookedUp += storage.getTrust(trust.getTruster(), trust.getTrustee()).getValue();
+			for(Score score : scores)
+				lookedUp += storage.getScore(score.getTruster(), score.getTrustee()).getScore();
+		}
+		lookupTime.stop();
+
+		// Printing the sums prevents the JIT from removing the loops.
+		System.out.println(name + ": getGivenTrusts() / getReceivedTrusts() of all Identitys: "
+		                 + walkTime + " (" + walked + ")");
+		System.out.println(name + ": getTrust() / getScore() of all Trusts and Scores: "
+		                 + lookupTime + " (" + lookedUp + ")");
+	}
+
+}
@@ -22,6 +22,8 @@ import org.junit.Ignore;
 import org.junit.Test;
 
 import plugins.WebOfTrust.SubscriptionManager.Notification;
+import plugins.WebOfTrust.SubscriptionManager.ObjectChangedNotification;
+import plugins.WebOfTrust.Trust.TrustID;
 import plugins.WebOfTrust.exceptions.DuplicateTrustException;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
 import plugins.WebOfTrust.exceptions.NotTrustedException;
@@ -59,6 +61,9 @@ public final class SubscriptionManagerFCPTest extends AbstractSingleNodeTest {
 
 		private final LinkedList<FCPPluginMessage> mResults = new LinkedList<FCPPluginMessage>();
 
+		/** @see #failNextMessage(int) */
+		private int mFailNextMessageAcknowledged = -1;
+
 		/**
 		 * Called by fred to handle messages from WOT's FCP server.
 		 */
@@ -68,10 +73,30 @@ public final class SubscriptionManagerFCPTest extends AbstractSingleNodeTest {
 		    
 		    mResults.addLast(message);
 
+		    if(message.isReplyMessage())
+		        return null;
+		    
+		    if(mFailNextMessageAcknowledged >= 0) {
+		        final SimpleFieldSet params = new SimpleFieldSet(true);
+		        params.put("Acknowledged", mFailNextMessageAcknowledged);
+		        mFailNextMessageAcknowledged = -1;
+		        return FCPPluginMessage.constructReplyMessage(
+		            message, params, null, false, "Test", "failNextMessage() was called");
+		    }
+		    
 		    // The fred code which calls this handler expects a reply to be returned to indicate
 		    // success so the sendSynchronous() calls in WOT can return.
-			return message.isReplyMessage() ? null 
-			    : FCPPluginMessage.constructSuccessReply(message);
+			return FCPPluginMessage.constructSuccessReply(message);
+		}
+		
+		/**
+		 * Causes the next received message which is not a reply to be replied to with
+		 * {@link FCPPluginMessage#success} = false and the given "Acknowledged" field, as a
+		 * client would which failed to process a "NotificationBatch" after processing the given
+		 * number of its notifications.
+		 */
+		public void failNextMessage(int acknowledged) {
+		    mFailNextMessageAcknowledged = acknowledged;
 		}
 		
 		/**
@@ -252,6 +277,267 @@ public final class SubscriptionManagerFCPTest extends AbstractSingleNodeTest {
 		return id;
 	}
 
+	@Test public void testNotificationBatch()
+	        throws FSParseException, IOException, InterruptedException {
+	    
+		final SimpleFieldSet sfs = new SimpleFieldSet(true);
+		sfs.putOverwrite("Message", "Subscribe");
+		sfs.putOverwrite("To", "Identities");
+		sfs.put("MaxNotificationBatchSize", 2);
+		fcpCall(sfs);
+		
+		final FCPPluginMessage subscription = mReplyReceiver.getNextResult();
+		assertEquals(true, subscription.success);
+		assertEquals("Subscribed", subscription.params.get("Message"));
+		
+		// Our parent class terminates all subsystem threads of WoT so we have to manually invoke
+		// the SubscriptionManager's thread to deploy notifications.
+		mWebOfTrust.getSubscriptionManager().run();
+		
+		// The synchronization is empty as the database is, so the Begin- and
+		// EndSynchronizationEvent should arrive as a single batch.
+		final FCPPluginMessage batch = mReplyReceiver.getNextResult();
+		assertEquals(false, batch.isReplyMessage());
+		assertEquals("NotificationBatch", batch.params.get("Message"));
+		assertEquals(2, batch.params.getInt("Amount"));
+		
+		final SimpleFieldSet beginSync = batch.params.subset("0");
+		final SimpleFieldSet endSync = batch.params.subset("1");
+		assertEquals("BeginSynchronizationEvent", beginSync.get("Message"));
+		assertEquals("Identities", beginSync.get("To"));
+		assertEquals("EndSynchronizationEvent", endSync.get("Message"));
+		assertEquals("Identities", endSync.get("To"));
+		assertEquals(beginSync.get("VersionID"), endSync.get("VersionID"));
+		assertFalse(mReplyReceiver.hasNextResult());
+		
+		// Acknowledging the batch should have deleted the notifications.
+		mWebOfTrust.getSubscriptionManager().run();
+		assertFalse(mReplyReceiver.hasNextResult());
+	}
+
+	@Test public void testSynchronizationSnapshot()
+	        throws FSParseException, IOException, InterruptedException, InvalidParameterException,
+	               MalformedURLException {
+	    
+		addRandomIdentities(3);
+		
+		final SimpleFieldSet sfs = new SimpleFieldSet(true);
+		sfs.putOverwrite("Message", "Subscribe");
+		sfs.putOverwrite("To", "Identities");
+		sfs.put("MaxNotificationBatchSize", 2);
+		fcpCall(sfs);
+		assertEquals("Subscribed", mReplyReceiver.getNextResult().params.get("Message"));
+		
+		// Only the Begin- and EndSynchronizationNotification should have been stored, the
+		// Identitys are kept in memory.
+		final SubscriptionManager subscriptionManager = mWebOfTrust.getSubscriptionManager();
+		assertEquals(0, mWebOfTrust.getDatabase().query(ObjectChangedNotification.class).size());
+		assertEquals(3 + 2, subscriptionManager.getPendingNotificationAmount());
+		
+		// Our parent class terminates all subsystem threads of WoT so we have to manually invoke
+		// the SubscriptionManager's thread to deploy notifications.
+		subscriptionManager.run();
+		
+		// The snapshot should be streamed between the BeginSynchronizationEvent and the
+		// EndSynchronizationEvent, filling the batches.
+		final ArrayList<SimpleFieldSet> events = new ArrayList<SimpleFieldSet>();
+		for(int batchSize : new int[] { 2, 2, 1 }) {
+			final FCPPluginMessage batch = mReplyReceiver.getNextResult();
+			assertEquals("NotificationBatch", batch.params.get("Message"));
+			assertEquals(batchSize, batch.params.getInt("Amount"));
+			for(int i = 0; i < batchSize; ++i)
+				events.add(batch.params.subset(Integer.toString(i)));
+		}
+		assertFalse(mReplyReceiver.hasNextResult());
+		assertEquals(0, subscriptionManager.getPendingNotificationAmount());
+		
+		assertEquals("BeginSynchronizationEvent", events.get(0).get("Message"));
+		assertEquals("EndSynchronizationEvent", events.get(4).get("Message"));
+		final UUID versionID = UUID.fromString(events.get(0).get("VersionID"));
+		for(SimpleFieldSet event : events.subList(1, 4)) {
+			assertEquals("ObjectChangedEvent", event.get("Message"));
+			final Identity identity
+			    = new IdentityParser(mWebOfTrust).parseObjectChangedEvent(event).afterChange;
+			assertEquals(versionID, identity.getVersionID());
+			mReceivedIdentities.put(identity.getID(), identity);
+		}
+		testWhetherReceivedDataMatchesMainDatabase();
+	}
+
+	/**
+	 * Tests whether a "NotificationBatch" which the client fails after processing some of its
+	 * notifications causes only the acknowledged ones to be deleted, and the others to be sent
+	 * again in the same order. The batch contains entries of the
+	 * {@link SubscriptionManager.SynchronizationSnapshot} as well as stored Notifications.
+	 */
+	@Test public void testNotificationBatchPartiallyAcknowledged()
+	        throws FSParseException, IOException, InterruptedException, InvalidParameterException,
+	               MalformedURLException {
+	    
+		addRandomIdentities(3);
+		
+		final SimpleFieldSet sfs = new SimpleFieldSet(true);
+		sfs.putOverwrite("Message", "Subscribe");
+		sfs.putOverwrite("To", "Identities");
+		sfs.put("MaxNotificationBatchSize", 3);
+		fcpCall(sfs);
+		assertEquals("Subscribed", mReplyReceiver.getNextResult().params.get("Message"));
+		
+		final SubscriptionManager subscriptionManager = mWebOfTrust.getSubscriptionManager();
+		assertEquals(3 + 2, subscriptionManager.getPendingNotificationAmount());
+		
+		// The first batch is BeginSynchronizationEvent and 2 Identitys. Fail it after the
+		// BeginSynchronizationEvent and the first Identity.
+		mReplyReceiver.failNextMessage(2);
+		// Our parent class terminates all subsystem threads of WoT so we have to manually invoke
+		// the SubscriptionManager's thread to deploy notifications.
+		subscriptionManager.run();
+		
+		final FCPPluginMessage failedBatch = mReplyReceiver.getNextResult();
+		assertEquals("NotificationBatch", failedBatch.params.get("Message"));
+		assertEquals(3, failedBatch.params.getInt("Amount"));
+		assertFalse(mReplyReceiver.hasNextResult());
+		assertEquals(3, subscriptionManager.getPendingNotificationAmount());
+		
+		final ArrayList<SimpleFieldSet> events = new ArrayList<SimpleFieldSet>();
+		events.add(failedBatch.params.subset("0"));
+		events.add(failedBatch.params.subset("1"));
+		final SimpleFieldSet notAcknowledged = failedBatch.params.subset("2");
+		
+		// The rest is resent: The not acknowledged Identity first, then the remaining one and
+		// the EndSynchronizationEvent.
+		subscriptionManager.run();
+		
+		final FCPPluginMessage resentBatch = mReplyReceiver.getNextResult();
+		assertEquals("NotificationBatch", resentBatch.params.get("Message"));
+		assertEquals(3, resentBatch.params.getInt("Amount"));
+		final IdentityParser parser = new IdentityParser(mWebOfTrust);
+		assertEquals(parser.parseObjectChangedEvent(notAcknowledged).afterChange.getID(),
+		    parser.parseObjectChangedEvent(resentBatch.params.subset("0")).afterChange.getID());
+		for(int i = 0; i < 3; ++i)
+			events.add(resentBatch.params.subset(Integer.toString(i)));
+		assertFalse(mReplyReceiver.hasNextResult());
+		assertEquals(0, subscriptionManager.getPendingNotificationAmount());
+		
+		assertEquals("BeginSynchronizationEvent", events.get(0).get("Message"));
+		assertEquals("EndSynchronizationEvent", events.get(4).get("Message"));
+		for(SimpleFieldSet event : events.subList(1, 4)) {
+			assertEquals("ObjectChangedEvent", event.get("Message"));
+			final Identity identity = parser.parseObjectChangedEvent(event).afterChange;
+			// Each Identity must have been received exactly once.
+			assertNull(mReceivedIdentities.put(identity.getID(), identity));
+		}
+		testWhetherReceivedDataMatchesMainDatabase();
+	}
+
+	@Test public void testCoalescing()
+	        throws FSParseException, InvalidParameterException, IOException, InterruptedException,
+	               UnknownIdentityException, MalformedURLException {
+	    
+		final Identity trustee = addRandomIdentities(1).get(0);
+		final OwnIdentity truster = addRandomOwnIdentities(1).get(0);
+		
+		subscribeAndSynchronize("Identities");
+		subscribeAndSynchronize("Trusts");
+		subscribeAndSynchronize("Scores");
+		
+		final long coalescedBefore
+		    = mWebOfTrust.getSubscriptionManager().getCoalescedNotificationAmount();
+		
+		// Creates the Trust and the Score of the trustee, and then changes them twice.
+		mWebOfTrust.setTrust(truster.getID(), trustee.getID(), (byte)10, "a");
+		mWebOfTrust.setTrust(truster.getID(), trustee.getID(), (byte)20, "b");
+		mWebOfTrust.setTrust(truster.getID(), trustee.getID(), (byte)30, "c");
+		
+		// 2 changes of the Trust, 2 of the Score. The trustee Identity might change as well.
+		assertTrue(mWebOfTrust.getSubscriptionManager().getCoalescedNotificationAmount()
+		    >= coalescedBefore + 4);
+		
+		// Our parent class terminates all subsystem threads of WoT so we have to manually invoke
+		// the SubscriptionManager's thread to deploy notifications.
+		mWebOfTrust.getSubscriptionManager().run();
+		
+		// Each of the Trust and the Score should have yielded a single notification, which
+		// announces their creation with the final value.
+		final LinkedList<FCPPluginMessage> events = new LinkedList<FCPPluginMessage>();
+		int trustEvents = 0;
+		int scoreEvents = 0;
+		while(mReplyReceiver.hasNextResult()) {
+			final FCPPluginMessage event = mReplyReceiver.getNextResult();
+			final SimpleFieldSet params = event.params;
+			assertEquals("ObjectChangedEvent", params.get("Message"));
+			
+			if(params.get("SubscriptionType").equals("Trusts")) {
+				++trustEvents;
+				assertEquals(null, new TrustParser(mWebOfTrust, mReceivedIdentities)
+				    .parseObjectChangedEvent(params).beforeChange);
+			} else if(params.get("SubscriptionType").equals("Scores")) {
+				++scoreEvents;
+				assertEquals(null, new ScoreParser(mWebOfTrust, mReceivedIdentities)
+				    .parseObjectChangedEvent(params).beforeChange);
+			}
+			
+			events.addFirst(event);
+		}
+		assertEquals(1, trustEvents);
+		assertEquals(1, scoreEvents);
+		
+		for(FCPPluginMessage event : events)
+			mReplyReceiver.restoreNextResult(event);
+		
+		importObjectChangedEvents();
+		testWhetherReceivedDataMatchesMainDatabase();
+		assertEquals(30, mReceivedTrusts.get(
+		    new TrustID(truster, trustee).toString()).getValue());
+	}
+
+	@Test public void testFilter()
+	        throws FSParseException, InvalidParameterException, IOException, InterruptedException,
+	               UnknownIdentityException, MalformedURLException {
+	    
+		final ArrayList<Identity> trustees = addRandomIdentities(2);
+		final Identity withContext = trustees.get(0);
+		final Identity withoutContext = trustees.get(1);
+		final OwnIdentity truster = addRandomOwnIdentities(1).get(0);
+		withContext.addContext("Filtered");
+		withContext.storeAndCommit();
+		
+		final SimpleFieldSet filter = new SimpleFieldSet(true);
+		filter.putOverwrite("Filter.Context", "Filtered");
+		subscribeAndSynchronize("Identities", filter);
+		filter.putOverwrite("Filter.ValueChangedOnly", "true");
+		subscribeAndSynchronize("Trusts", filter);
+		
+		// OwnIdentitys always pass the context filter.
+		assertEquals(2, mReceivedIdentities.size());
+		assertTrue(mReceivedIdentities.containsKey(withContext.getID()));
+		assertTrue(mReceivedIdentities.containsKey(truster.getID()));
+		
+		final long filteredBefore
+		    = mWebOfTrust.getSubscriptionManager().getFilteredNotificationAmount();
+		
+		mWebOfTrust.setTrust(truster.getID(), withContext.getID(), (byte)10, "a");
+		// Filtered by the context of the trustee.
+		mWebOfTrust.setTrust(truster.getID(), withoutContext.getID(), (byte)10, "a");
+		// Filtered by Filter.ValueChangedOnly.
+		mWebOfTrust.setTrust(truster.getID(), withContext.getID(), (byte)10, "b");
+		
+		assertTrue(mWebOfTrust.getSubscriptionManager().getFilteredNotificationAmount()
+		    >= filteredBefore + 2);
+		
+		// Our parent class terminates all subsystem threads of WoT so we have to manually invoke
+		// the SubscriptionManager's thread to deploy notifications.
+		mWebOfTrust.getSubscriptionManager().run();
+		importObjectChangedEvents();
+		
+		assertFalse(mReceivedIdentities.containsKey(withoutContext.getID()));
+		assertEquals(1, mReceivedTrusts.size());
+		final Trust trust = mReceivedTrusts.get(new TrustID(truster, withContext).toString());
+		assertEquals(10, trust.getValue());
+		// The Client was not notified about the change of the comment.
+		assertEquals("a", trust.getComment());
+	}
+
 	@Test public void testAllRandomized()
 	        throws InvalidParameterException, FSParseException, DuplicateTrustException,
 	        NotTrustedException, UnknownIdentityException, IOException, InterruptedException {
@@ -313,7 +599,15 @@ public final class SubscriptionManagerFCPTest extends AbstractSingleNodeTest {
 	void subscribeAndSynchronize(final String type)
 	        throws FSParseException, InvalidParameterException, IOException, InterruptedException {
 	    
+		subscribeAndSynchronize(type, new SimpleFieldSet(true));
+	}
+	
+	/** @param extraParams Added to the "Subscribe" message, e.g. "Filter.*" fields. */
+	void subscribeAndSynchronize(final String type, final SimpleFieldSet extraParams)
+	        throws FSParseException, InvalidParameterException, IOException, InterruptedException {
+	    
 		final SimpleFieldSet sfs = new SimpleFieldSet(true);
+		sfs.putAllOverwrite(extraParams);
 		sfs.putOverwrite("Message", "Subscribe");
 		sfs.putOverwrite("To", type);
 		fcpCall(sfs);
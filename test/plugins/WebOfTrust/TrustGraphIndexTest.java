@@ -0,0 +1,219 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.exceptions.DuplicateTrustException;
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+
+/**
+ * Tests {@link TrustGraphIndex} and its use in
+ * {@link WebOfTrust#computeAllScoresWithoutCommit_Indexed()}. */
+public final class TrustGraphIndexTest extends AbstractJUnit4BaseTest {
+
+	private WebOfTrust mWebOfTrust;
+
+
+	@Before public void setUp() {
+		mWebOfTrust = constructEmptyWebOfTrust();
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+	@Test public void testIndexMatchesDatabase()
+			throws MalformedURLException, InvalidParameterException, NotTrustedException,
+			DuplicateTrustException, UnknownIdentityException {
+		
+		ArrayList<Identity> identities = addRandomIdentities(5, 50);
+		addRandomTrustValues(identities, 250);
+		assertIndexMatchesDatabase(mWebOfTrust.getTrustGraphIndex());
+		
+		doRandomChangesToWOT(500);
+		assertIndexMatchesDatabase(mWebOfTrust.getTrustGraphIndex());
+		
+		// Test whether rebuilding it from the database at startup works
+		File database = mWebOfTrust.getDatabaseFile();
+		mWebOfTrust.terminate();
+		mWebOfTrust = new WebOfTrust(database.toString());
+		assertIndexMatchesDatabase(mWebOfTrust.getTrustGraphIndex());
+	}
+
+	@Test public void testRollback()
+			throws MalformedURLException, InvalidParameterException, NotTrustedException {
+		
+		ArrayList<Identity> identities = addRandomIdentities(2, 10);
+		addRandomTrustValues(identities, 30);
+		final TrustGraphIndex index = mWebOfTrust.getTrustGraphIndex();
+		final TrustGraphIndex.Snapshot before = index.getSnapshot();
+		
+		synchronized(mWebOfTrust) {
+		synchronized(mWebOfTrust.getIdentityFetcher()) {
+		synchronized(mWebOfTrust.getSubscriptionManager()) {
+		synchronized(Persistent.transactionLock(mWebOfTrust.getDatabase())) {
+			mWebOfTrust.beginTrustListImport();
+			for(Trust trust : new ArrayList<Trust>(mWebOfTrust.getAllTrusts())) {
+				if(mRandom.nextBoolean())
+					mWebOfTrust.removeTrustWithoutCommit(trust);
+			}
+			for(int i = 0; i < 10; ++i) {
+				Identity truster = identities.get(mRandom.nextInt(identities.size()));
+				Identity trustee = identities.get(mRandom.nextInt(identities.size()));
+				if(truster != trustee) {
+					mWebOfTrust.setTrustWithoutCommit(truster, trustee, getRandomTrustValue(),
+						"");
+				}
+			}
+			assertIndexMatchesDatabase(index);
+			mWebOfTrust.abortTrustListImport(new RuntimeException("Test"));
+		}}}}
+		
+		assertIndexMatchesDatabase(index);
+		final TrustGraphIndex.Snapshot after = index.getSnapshot();
+		assertEquals(before.getTrustCount(), after.getTrustCount());
+		for(Trust trust : mWebOfTrust.getAllTrusts()) {
+			assertEquals(
+				before.getTrustValue(before.getVertex(trust.getTruster().getID()),
+					before.getVertex(trust.getTrustee().getID())),
+				after.getTrustValue(after.getVertex(trust.getTruster().getID()),
+					after.getVertex(trust.getTrustee().getID())));
+		}
+	}
+
+	@Test public void testModificationCount()
+			throws MalformedURLException, InvalidParameterException, NotTrustedException {
+		
+		ArrayList<Identity> identities = addRandomIdentities(2, 10);
+		addRandomTrustValues(identities, 10);
+		final TrustGraphIndex index = mWebOfTrust.getTrustGraphIndex();
+		
+		final long count = index.getModificationCount();
+		final TrustGraphIndex.Snapshot snapshot = index.getSnapshot();
+		assertTrue(snapshot == index.getSnapshot());
+		assertEquals(count, index.getModificationCount());
+		
+		addRandomTrustValues(identities, 1);
+		assertFalse(count == index.getModificationCount());
+		assertFalse(snapshot == index.getSnapshot());
+	}
+
+	/**
+	 * Tests whether {@link WebOfTrust#computeAllScoresWithoutCommit_Indexed()} yields the same
+	 * results as the reference implementation {@link WebOfTrust#computeAllScoresWithoutCommit()}.
+	 */
+	@Test public void testComputeAllScoresWithoutCommit_Indexed()
+			throws MalformedURLException, InvalidParameterException, NotTrustedException,
+			DuplicateTrustException, UnknownIdentityException {
+		
+		ArrayList<Identity> identities = addRandomIdentities(5, 50);
+		addRandomTrustValues(identities, 250);
+		doRandomChangesToWOT(100);
+		
+		synchronized(mWebOfTrust) {
+		synchronized(mWebOfTrust.getIdentityFetcher()) {
+		synchronized(mWebOfTrust.getSubscriptionManager()) {
+		synchronized(Persistent.transactionLock(mWebOfTrust.getDatabase())) {
+			// The database is correct, so it should not change anything.
+			assertTrue(mWebOfTrust.computeAllScoresWithoutCommit_Indexed());
+			
+			// Damage the Scores and check whether it repairs them the same way as the reference
+			// implementation would.
+			for(Score score : new ArrayList<Score>(mWebOfTrust.getAllScores())) {
+				if(score.getRank() == 0) // Self-Scores are not re-created by Score computation.
+					continue;
+				
+				switch(mRandom.nextInt(3)) {
+					case 0: score.deleteWithoutCommit(); break;
+					case 1: score.setValue(score.getValue() - 1); score.storeWithoutCommit(); break;
+					default: break;
+				}
+			}
+			assertFalse(mWebOfTrust.computeAllScoresWithoutCommit_Indexed());
+			assertTrue(mWebOfTrust.computeAllScoresWithoutCommit());
+			assertTrue(mWebOfTrust.computeAllScoresWithoutCommit_Indexed());
+			Persistent.checkedCommit(mWebOfTrust.getDatabase(), this);
+		}}}}
+	}
+
+	/**
+	 * Tests whether {@link WebOfTrust#computeTrustTrees(TrustGraphIndex.Snapshot, String[])},
+	 * which uses multiple threads if {@link WebOfTrust#SCORE_COMPUTATION_THREADS} is greater than
+	 * 1, produces the same trees as computing them one by one in the calling thread. */
+	@Test public void testComputeTrustTrees()
+			throws MalformedURLException, InvalidParameterException, NotTrustedException,
+			DuplicateTrustException, UnknownIdentityException {
+		
+		ArrayList<Identity> identities = addRandomIdentities(5, 50);
+		addRandomTrustValues(identities, 250);
+		
+		final TrustGraphIndex.Snapshot graph = mWebOfTrust.getTrustGraphIndex().getSnapshot();
+		final ArrayList<OwnIdentity> ownIdentities
+			= new ArrayList<OwnIdentity>(mWebOfTrust.getAllOwnIdentities());
+		// One more than the amount of OwnIdentitys so we can test a null element.
+		final String[] treeOwnerIDs = new String[ownIdentities.size() + 1];
+		for(int i = 0; i < ownIdentities.size(); ++i)
+			treeOwnerIDs[i] = ownIdentities.get(i).getID();
+		
+		final WebOfTrust.TrustTree[] trees = mWebOfTrust.computeTrustTrees(graph, treeOwnerIDs);
+		assertEquals(treeOwnerIDs.length, trees.length);
+		assertNull(trees[trees.length - 1]);
+		for(int i = 0; i < ownIdentities.size(); ++i) {
+			final WebOfTrust.TrustTree expected
+				= WebOfTrust.computeTrustTree(graph, treeOwnerIDs[i]);
+			assertArrayEquals(expected.mRanks, trees[i].mRanks);
+			assertArrayEquals(expected.mCapacities, trees[i].mCapacities);
+			assertArrayEquals(expected.mValues, trees[i].mValues);
+		}
+	}
+
+	private void assertIndexMatchesDatabase(TrustGraphIndex index) {
+		int trustCount = 0;
+		for(Trust trust : mWebOfTrust.getAllTrusts()) {
+			assertEquals(trust.getValue(),
+				index.getTrustValue(trust.getTruster().getID(), trust.getTrustee().getID()));
+			++trustCount;
+		}
+		assertEquals(trustCount, index.getTrustCount());
+		
+		final TrustGraphIndex.Snapshot snapshot = index.getSnapshot();
+		assertEquals(trustCount, snapshot.getTrustCount());
+		for(int truster = 0; truster < snapshot.getVertexCount(); ++truster) {
+			for(int i = snapshot.getGivenTrustsStart(truster);
+					i < snapshot.getGivenTrustsEnd(truster); ++i) {
+				
+				final int trustee = snapshot.getTrustee(i);
+				final byte value = snapshot.getGivenTrustValue(i);
+				
+				// The received Trusts must mirror the given ones
+				boolean foundReceived = false;
+				for(int j = snapshot.getReceivedTrustsStart(trustee);
+						j < snapshot.getReceivedTrustsEnd(trustee); ++j) {
+					
+					if(snapshot.getTruster(j) == truster) {
+						assertFalse(foundReceived);
+						assertEquals(value, snapshot.getReceivedTrustValue(j));
+						foundReceived = true;
+					}
+				}
+				assertTrue(foundReceived);
+			}
+		}
+	}
+
+}
@@ -5,7 +5,9 @@ package plugins.WebOfTrust;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.net.MalformedURLException;
 import java.util.ArrayList;
@@ -15,6 +17,7 @@ import org.junit.Test;
 
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
 import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
 import plugins.WebOfTrust.util.IdentifierHashSet;
 
 /**
@@ -131,6 +134,120 @@ public class WebOfTrustTest extends AbstractJUnit4BaseTest {
 		
 	}
 
+	@Test public void testSetTrusts() throws MalformedURLException, InvalidParameterException,
+			UnknownIdentityException, NotTrustedException {
+		
+		ArrayList<Identity> identities = addRandomIdentities(2, 30);
+		addRandomTrustValues(identities, 60);
+		final OwnIdentity truster = (OwnIdentity)identities.get(0);
+		
+		// Test both the incremental and the full Score computation
+		for(int amount : new int[] { WebOfTrust.SET_TRUSTS_INCREMENTAL_SCORE_UPDATE_LIMIT, 25 }) {
+			final ArrayList<WebOfTrust.TrustChange> changes
+				= new ArrayList<WebOfTrust.TrustChange>();
+			for(int i = 0; i < amount; ++i) {
+				final Identity trustee = identities.get(2 + mRandom.nextInt(30));
+				final boolean remove = mRandom.nextBoolean();
+				changes.add(new WebOfTrust.TrustChange(trustee.getID(),
+					remove ? null : getRandomTrustValue(), "Comment " + i));
+			}
+			// Make sure the removals are valid: Set the Trust before removing it.
+			final ArrayList<WebOfTrust.TrustChange> expected
+				= new ArrayList<WebOfTrust.TrustChange>();
+			for(WebOfTrust.TrustChange change : changes) {
+				if(change.mValue == null)
+					expected.add(new WebOfTrust.TrustChange(change.mTrusteeID, (byte)1, ""));
+				expected.add(change);
+			}
+			
+			final Exception[] results = mWebOfTrust.setTrusts(truster.getID(), expected);
+			assertEquals(expected.size(), results.length);
+			for(Exception result : results)
+				assertNull(result);
+			
+			synchronized(mWebOfTrust) {
+				for(WebOfTrust.TrustChange change : expected) {
+					// Only the last change of each trustee is effective.
+					WebOfTrust.TrustChange last = change;
+					for(WebOfTrust.TrustChange other : expected) {
+						if(other.mTrusteeID.equals(change.mTrusteeID))
+							last = other;
+					}
+					
+					final Identity trustee = mWebOfTrust.getIdentityByID(last.mTrusteeID);
+					if(last.mValue == null) {
+						try {
+							mWebOfTrust.getTrust(truster, trustee);
+							fail("Trust should have been removed");
+						} catch(NotTrustedException e) {}
+					} else {
+						final Trust trust = mWebOfTrust.getTrust(truster, trustee);
+						assertEquals((byte)last.mValue, trust.getValue());
+						assertEquals(last.mComment, trust.getComment());
+					}
+				}
+				
+				// Returns true if the Scores were correct already
+				assertTrue(mWebOfTrust.computeAllScoresWithoutCommit());
+			}
+		}
+		
+		// Invalid changes must not prevent the valid ones from being applied
+		final Identity trustee = identities.get(2);
+		final Identity untrusted = identities.get(3);
+		mWebOfTrust.removeTrust(truster.getID(), untrusted.getID());
+		final ArrayList<WebOfTrust.TrustChange> changes = new ArrayList<WebOfTrust.TrustChange>();
+		changes.add(new WebOfTrust.TrustChange("nonexistent", (byte)1, ""));
+		changes.add(new WebOfTrust.TrustChange(trustee.getID(), (byte)101, ""));
+		changes.add(new WebOfTrust.TrustChange(truster.getID(), (byte)1, ""));
+		changes.add(new WebOfTrust.TrustChange(untrusted.getID(), null, null));
+		changes.add(new WebOfTrust.TrustChange(trustee.getID(), (byte)-7, "Valid"));
+		final Exception[] results = mWebOfTrust.setTrusts(truster.getID(), changes);
+		assertTrue(results[0] instanceof UnknownIdentityException);
+		assertTrue(results[1] instanceof InvalidParameterException);
+		assertTrue(results[2] instanceof InvalidParameterException);
+		assertTrue(results[3] instanceof NotTrustedException);
+		assertNull(results[4]);
+		synchronized(mWebOfTrust) {
+			assertEquals(-7, mWebOfTrust.getTrust(truster, trustee).getValue());
+			assertTrue(mWebOfTrust.computeAllScoresWithoutCommit());
+		}
+		
+		try {
+			mWebOfTrust.setTrusts(trustee.getID(), changes);
+			fail("The truster must be an OwnIdentity");
+		} catch(UnknownIdentityException e) {}
+	}
+
+	/** Tests the functions which the {@link StartupVerifier} uses for testing the integrity of
+	 *  the database in slices. */
+	@Test public void testVerifyDatabaseIntegrityInSlices() throws MalformedURLException,
+			InvalidParameterException, UnknownIdentityException, NotTrustedException {
+		
+		ArrayList<Identity> identities = addRandomIdentities(2, 20);
+		ArrayList<Trust> trusts = addRandomTrustValues(identities, 50);
+		
+		final long[] ids = mWebOfTrust.getAllPersistentObjectIDs();
+		synchronized(mWebOfTrust) {
+			// Also contains the Configuration etc.
+			assertTrue(ids.length > mWebOfTrust.getAllIdentities().size()
+				+ mWebOfTrust.getAllTrusts().size() + mWebOfTrust.getAllScores().size());
+		}
+		
+		// Objects which were deleted after the IDs were obtained must be skipped.
+		for(int i = 0; i < 10; ++i) {
+			final Trust trust = trusts.remove(mRandom.nextInt(trusts.size()));
+			mWebOfTrust.removeTrustIncludingNonOwn(
+				trust.getTruster().getID(), trust.getTrustee().getID());
+		}
+		
+		final int sliceSize = 1 + mRandom.nextInt(10);
+		for(int from = 0; from < ids.length; from += sliceSize) {
+			assertTrue(mWebOfTrust.verifyDatabaseIntegrity(
+				ids, from, Math.min(ids.length, from + sliceSize)));
+		}
+	}
+
 	@Override protected WebOfTrust getWebOfTrust() {
 		return mWebOfTrust;
 	}
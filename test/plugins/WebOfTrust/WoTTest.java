@@ -546,6 +546,125 @@ public class WoTTest extends AbstractJUnit3BaseTest {
 		assertEquals(40, scoreC.getScore());
 	}
 
+	/**
+	 * Tests whether removing Trusts which are part of a cycle updates the ranks correctly:
+	 * Removing the path into a cycle must not allow the Identitys of the cycle to keep their
+	 * ranks by receiving them from each other, see
+	 * {@link WebOfTrust#updateScoresAfterTrustRemovalWithoutCommit(Trust)}. */
+	public void testRemoveTrustFromCycle() throws MalformedURLException,
+			InvalidParameterException, NotInTrustTreeException, UnknownIdentityException,
+			NotTrustedException {
+		
+		OwnIdentity o = mWoT.createOwnIdentity(new FreenetURI(insertUriO), "o", true, null);
+		Identity a = mWoT.addIdentity(requestUriA);
+		Identity b = mWoT.addIdentity(requestUriB);
+		Identity c = mWoT.addIdentity(requestUriC);
+		Identity d = mWoT.addIdentity(requestUriM1);
+		
+		// a -> b -> c -> a is a cycle, o reaches it through a directly and through d to c.
+		mWoT.setTrust(o, a, (byte) 100, "");
+		mWoT.setTrust(o, d, (byte) 100, "");
+		mWoT.setTrust(a, b, (byte) 100, "");
+		mWoT.setTrust(b, c, (byte) 100, "");
+		mWoT.setTrust(c, a, (byte) 100, "");
+		mWoT.setTrust(d, c, (byte) 100, "");
+		
+		assertEquals(1, mWoT.getScore(o, a).getRank());
+		assertEquals(2, mWoT.getScore(o, b).getRank());
+		assertEquals(2, mWoT.getScore(o, c).getRank());
+		
+		// a and b must now receive their rank through d -> c
+		mWoT.removeTrust(o.getID(), a.getID());
+		flushCaches();
+		
+		assertEquals(3, mWoT.getScore(o, a).getRank());
+		assertEquals(4, mWoT.getScore(o, b).getRank());
+		assertEquals(2, mWoT.getScore(o, c).getRank());
+		assertEquals(WebOfTrust.capacities[3], mWoT.getScore(o, a).getCapacity());
+		assertEquals(WebOfTrust.capacities[4], mWoT.getScore(o, b).getCapacity());
+		assertTrue(mWoT.verifyAndCorrectStoredScores());
+		
+		// Now the cycle is not reachable anymore
+		mWoT.removeTrustIncludingNonOwn(d.getID(), c.getID());
+		flushCaches();
+		
+		for(Identity i : new Identity[] { a, b, c }) {
+			try {
+				mWoT.getScore(o, i);
+				fail();
+			} catch (NotInTrustTreeException e) {}
+		}
+		assertEquals(1, mWoT.getScore(o, d).getRank());
+		assertTrue(mWoT.verifyAndCorrectStoredScores());
+	}
+
+	/**
+	 * Tests whether removing a {@link Trust} which an {@link OwnIdentity} has received from an
+	 * Identity which it trusts back leaves its self-{@link Score} unchanged: The tree owner has a
+	 * rank in its own tree, so it must not be considered as affected by the removal. */
+	public void testRemoveTrustOfTreeOwner() throws MalformedURLException,
+			InvalidParameterException, NotInTrustTreeException, UnknownIdentityException,
+			NotTrustedException {
+
+		OwnIdentity o = mWoT.createOwnIdentity(new FreenetURI(insertUriO), "o", true, null);
+		Identity a = mWoT.addIdentity(requestUriA);
+		Identity b = mWoT.addIdentity(requestUriB);
+
+		mWoT.setTrust(o, a, (byte) 100, "");
+		mWoT.setTrust(a, o, (byte) 100, "");
+		mWoT.setTrust(a, b, (byte) 100, "");
+
+		Score oldSelfScore = mWoT.getScore(o, o).clone();
+		Score oldScoreB = mWoT.getScore(o, b).clone();
+
+		mWoT.removeTrustIncludingNonOwn(a.getID(), o.getID());
+		flushCaches();
+
+		Score selfScore = mWoT.getScore(o, o);
+		assertEquals(0, selfScore.getRank());
+		assertEquals(100, selfScore.getCapacity());
+		assertEquals(oldSelfScore.getScore(), selfScore.getScore());
+		assertEquals(oldScoreB.getRank(), mWoT.getScore(o, b).getRank());
+		assertEquals(oldScoreB.getScore(), mWoT.getScore(o, b).getScore());
+		assertTrue(mWoT.verifyAndCorrectStoredScores());
+	}
+
+	/**
+	 * Tests whether removing a distrust of the tree owner updates the ranks correctly: Unlike the
+	 * removal of other Trusts, this improves the rank of the trustee and the ones below it, see
+	 * {@link WebOfTrust#updateScoresAfterTrustRemovalWithoutCommit(Trust)}. */
+	public void testRemoveDistrustOfTreeOwner() throws MalformedURLException,
+			InvalidParameterException, NotInTrustTreeException, UnknownIdentityException,
+			NotTrustedException {
+
+		OwnIdentity o = mWoT.createOwnIdentity(new FreenetURI(insertUriO), "o", true, null);
+		Identity a = mWoT.addIdentity(requestUriA);
+		Identity b = mWoT.addIdentity(requestUriB);
+		Identity c = mWoT.addIdentity(requestUriC);
+
+		mWoT.setTrust(o, a, (byte) 100, "");
+		mWoT.setTrust(o, b, (byte) -100, "");
+		mWoT.setTrust(a, b, (byte) 100, "");
+		mWoT.setTrust(b, c, (byte) 100, "");
+
+		assertEquals(Integer.MAX_VALUE, mWoT.getScore(o, b).getRank());
+		assertEquals(0, mWoT.getScore(o, b).getCapacity());
+		try {
+			mWoT.getScore(o, c);
+			fail();
+		} catch (NotInTrustTreeException e) {}
+
+		// b now receives its rank from a, and hands it down to c
+		mWoT.removeTrust(o.getID(), b.getID());
+		flushCaches();
+
+		assertEquals(2, mWoT.getScore(o, b).getRank());
+		assertEquals(3, mWoT.getScore(o, c).getRank());
+		assertEquals(WebOfTrust.capacities[2], mWoT.getScore(o, b).getCapacity());
+		assertEquals(WebOfTrust.capacities[3], mWoT.getScore(o, c).getCapacity());
+		assertTrue(mWoT.verifyAndCorrectStoredScores());
+	}
+
 	/**
 	 * Test whether spammer resistance works properly.
 	 */
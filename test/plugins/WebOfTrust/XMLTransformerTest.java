@@ -6,13 +6,18 @@ package plugins.WebOfTrust;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
 
 import javax.xml.transform.TransformerException;
 
 import org.xml.sax.SAXException;
 
+import plugins.WebOfTrust.Identity.FetchState;
+import plugins.WebOfTrust.XMLTransformer.ParsedIdentityXML;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
 import plugins.WebOfTrust.exceptions.UnknownIdentityException;
 import plugins.WebOfTrust.introduction.IntroductionPuzzle;
 import freenet.keys.FreenetURI;
@@ -123,6 +128,192 @@ public class XMLTransformerTest extends AbstractJUnit3BaseTest {
 		//fail("Not yet implemented"); // TODO
 	}
 
+	/**
+	 * Tests whether {@link XMLTransformer#parseIdentityXMLWithStAX(java.io.InputStream)} yields
+	 * the same results as {@link XMLTransformer#parseIdentityXMLWithDOM(java.io.InputStream)}. */
+	public void testParseIdentityXMLWithStAX() throws Exception {
+		for(OwnIdentity ownIdentity : addRandomOwnIdentities(3)) {
+			ownIdentity.addContext(getRandomLatinString(OwnIdentity.MAX_CONTEXT_NAME_LENGTH));
+			ownIdentity.setProperty(getRandomLatinString(OwnIdentity.MAX_PROPERTY_NAME_LENGTH),
+				getRandomLatinString(OwnIdentity.MAX_PROPERTY_VALUE_LENGTH));
+			ownIdentity.storeAndCommit();
+			
+			for(Identity trustee : addRandomIdentities(10)) {
+				mWoT.setTrust(ownIdentity.getID(), trustee.getID(),
+					(byte)(mRandom.nextInt(201) - 100),
+					getRandomLatinString(mRandom.nextInt(Trust.MAX_TRUST_COMMENT_LENGTH + 1)));
+			}
+			
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			mTransformer.exportOwnIdentity(ownIdentity, os);
+			assertParsersEqual(os.toByteArray(), false);
+		}
+		
+		final String header = "<?xml version=\"1.1\" encoding=\"UTF-8\" standalone=\"no\"?>"
+			+ "<" + WebOfTrustInterface.WOT_NAME + " Version=\"1\">";
+		final String footer = "</" + WebOfTrustInterface.WOT_NAME + ">";
+		final String trust = "<Trust Identity=\"" + getRandomRequestURI() + "\" Value=\"-5\""
+			+ " Comment=\"\u00e4\u00f6\u00fc &amp; \u2713 \ud834\udd1e\"/>";
+		
+		// Multi-byte characters, entities, missing attributes and elements in unusual places
+		assertParsersEqual((header
+			+ "<Identity Version=\"1\" Name=\"\u00c4\u0436\u4e2d\" PublishesTrustList=\"true\">"
+			+ "<Context Name=\"a\"/><Context/><Property Name=\"p\"/>"
+			+ "<TrustList>" + trust + "<Context Name=\"b\"/><X>" + trust + "</X></TrustList>"
+			+ "<TrustList>" + trust + "</TrustList>"
+			+ "</Identity>"
+			+ "<Identity Version=\"1\" Name=\"second\"><Context Name=\"c\"/></Identity>"
+			+ footer).getBytes("UTF-8"), false);
+		
+		// Trust list which is not published
+		assertParsersEqual((header
+			+ "<Identity Version=\"1\" Name=\"n\" PublishesTrustList=\"false\">"
+			+ "<TrustList>" + trust + "</TrustList></Identity>" + footer).getBytes("UTF-8"), false);
+		
+		// Errors
+		StringBuilder tooManyTrusts = new StringBuilder();
+		for(int i = 0; i <= XMLTransformer.MAX_IDENTITY_XML_TRUSTEE_AMOUNT; ++i)
+			tooManyTrusts.append(trust);
+		assertParsersEqual((header
+			+ "<Identity Version=\"1\" Name=\"n\" PublishesTrustList=\"true\">"
+			+ "<TrustList>" + tooManyTrusts + "</TrustList></Identity>" + footer)
+			.getBytes("UTF-8"), true);
+		assertParsersEqual((header
+			+ "<Identity Version=\"1\" Name=\"n\" PublishesTrustList=\"true\"></Identity>"
+			+ footer).getBytes("UTF-8"), true);
+		assertParsersEqual((header + "<Identity Version=\"2\" Name=\"n\"></Identity>" + footer)
+			.getBytes("UTF-8"), true);
+		assertParsersEqual((header + "<Identity Name=\"n\"></Identity>" + footer)
+			.getBytes("UTF-8"), true);
+		assertParsersEqual((header + footer).getBytes("UTF-8"), true);
+		assertParsersEqual((header + "<Identity Version=\"1\" Name=\"n\">" + footer)
+			.getBytes("UTF-8"), true);
+		assertParsersEqual((header
+			+ "<Identity Version=\"1\" Name=\"n\" PublishesTrustList=\"true\"><TrustList>"
+			+ "<Trust Identity=\"" + getRandomRequestURI() + "\" Value=\"1000\"/>"
+			+ "</TrustList></Identity>" + footer).getBytes("UTF-8"), true);
+		assertParsersEqual(new byte[] { '<', (byte)0xFF, (byte)0xFE, '/', '>' }, true);
+		assertParsersEqual(new byte[XMLTransformer.MAX_IDENTITY_XML_BYTE_SIZE + 1], true);
+		
+		// Valid XML which only exceeds the size limit
+		final String validXML = header + "<Identity Version=\"1\" Name=\"n\"></Identity>" + footer;
+		assertParsersEqual(validXML.getBytes("UTF-8"), false);
+		StringBuilder padding = new StringBuilder(XMLTransformer.MAX_IDENTITY_XML_BYTE_SIZE);
+		while(padding.length() + validXML.length() <= XMLTransformer.MAX_IDENTITY_XML_BYTE_SIZE)
+			padding.append(' ');
+		assertParsersEqual((validXML + padding).getBytes("UTF-8"), true);
+	}
+	
+	private void assertParsersEqual(byte[] xml, boolean expectError) {
+		final ParsedIdentityXML dom
+			= mTransformer.parseIdentityXMLWithDOM(new ByteArrayInputStream(xml));
+		final ParsedIdentityXML stax
+			= mTransformer.parseIdentityXMLWithStAX(new ByteArrayInputStream(xml));
+		
+		if(expectError) {
+			assertNotNull(dom.parseError);
+			assertNotNull(stax.parseError);
+			return;
+		}
+		
+		assertNull(dom.parseError);
+		assertNull(stax.parseError);
+		assertEquals(dom.identityName, stax.identityName);
+		assertEquals(dom.identityPublishesTrustList, stax.identityPublishesTrustList);
+		assertEquals(dom.identityContexts, stax.identityContexts);
+		assertEquals(dom.identityProperties, stax.identityProperties);
+		
+		if(dom.identityTrustList == null) {
+			assertNull(stax.identityTrustList);
+			return;
+		}
+		
+		assertEquals(dom.identityTrustList.size(), stax.identityTrustList.size());
+		for(int i = 0; i < dom.identityTrustList.size(); ++i) {
+			final ParsedIdentityXML.TrustListEntry expected = dom.identityTrustList.get(i);
+			final ParsedIdentityXML.TrustListEntry actual = stax.identityTrustList.get(i);
+			assertEquals(expected.mTrusteeURI, actual.mTrusteeURI);
+			assertEquals(expected.mTrustValue, actual.mTrustValue);
+			assertEquals(expected.mTrustComment, actual.mTrustComment);
+		}
+	}
+	
+	/**
+	 * Tests {@link XMLTransformer#importIdentities(java.util.List)}, including the fallback to
+	 * importing the files one by one if the import of one of them fails. */
+	public void testImportIdentities() throws Exception {
+		final ArrayList<Identity> identities = addRandomIdentities(4);
+		for(Identity identity : identities)
+			mWoT.setTrust(mOwnIdentity.getID(), identity.getID(), (byte)100, "");
+		
+		final FreenetURI newTrusteeURI = getRandomRequestURI();
+		
+		final ArrayList<ParsedIdentityXML> batch = new ArrayList<ParsedIdentityXML>();
+		// Trusts an existing and a new Identity
+		batch.add(parseIdentityXML(identities.get(0), 1,
+			getTrustXML(identities.get(1).getRequestURI(), 50) + getTrustXML(newTrusteeURI, 50)));
+		// Distrust, which requires a full Score computation
+		batch.add(parseIdentityXML(identities.get(1), 1,
+			getTrustXML(identities.get(2).getRequestURI(), -100)));
+		// Parse error, must not cause the whole batch to fail
+		batch.add(mTransformer.parseIdentityXML(
+			identities.get(2).getRequestURI().setSuggestedEdition(1),
+			new ByteArrayInputStream("<bogus".getBytes("UTF-8"))));
+		
+		assertTrue(mTransformer.importIdentities(batch));
+		
+		assertEquals(FetchState.Fetched, identities.get(0).getCurrentEditionFetchState());
+		assertEquals(FetchState.Fetched, identities.get(1).getCurrentEditionFetchState());
+		assertEquals(FetchState.ParsingFailed, identities.get(2).getCurrentEditionFetchState());
+		assertEquals(1, identities.get(2).getEdition());
+		assertEquals(50, mWoT.getTrust(identities.get(0), identities.get(1)).getValue());
+		assertEquals(50, mWoT.getTrust(identities.get(0), mWoT.getIdentityByURI(newTrusteeURI))
+			.getValue());
+		assertEquals(-100, mWoT.getTrust(identities.get(1), identities.get(2)).getValue());
+		
+		batch.clear();
+		batch.add(parseIdentityXML(identities.get(0), 2,
+			getTrustXML(identities.get(3).getRequestURI(), 50)));
+		// Invalid trust value, which is only detected after the database was modified and thus
+		// must cause the batch to be rolled back and imported one by one.
+		batch.add(parseIdentityXML(identities.get(3), 1,
+			getTrustXML(identities.get(0).getRequestURI(), 127)));
+		
+		assertFalse(mTransformer.importIdentities(batch));
+		
+		assertEquals(2, identities.get(0).getEdition());
+		assertEquals(FetchState.Fetched, identities.get(0).getCurrentEditionFetchState());
+		assertEquals(50, mWoT.getTrust(identities.get(0), identities.get(3)).getValue());
+		// The Trusts of the previous edition which are not in the new one must have been deleted.
+		try {
+			mWoT.getTrust(identities.get(0), identities.get(1));
+			fail("Trust of previous edition was not deleted");
+		} catch(NotTrustedException e) {}
+		
+		assertEquals(1, identities.get(3).getEdition());
+		assertEquals(FetchState.ParsingFailed, identities.get(3).getCurrentEditionFetchState());
+		assertEquals(0, mWoT.getGivenTrusts(identities.get(3)).size());
+	}
+	
+	private ParsedIdentityXML parseIdentityXML(Identity identity, long edition, String trustList)
+			throws UnsupportedEncodingException {
+		
+		final String xml = "<?xml version=\"1.1\" encoding=\"UTF-8\" standalone=\"no\"?>"
+			+ "<" + WebOfTrustInterface.WOT_NAME + " Version=\"1\">"
+			+ "<Identity Name=\"" + getRandomLatinString(Identity.MAX_NICKNAME_LENGTH) + "\""
+			+ " PublishesTrustList=\"true\" Version=\"1\">"
+			+ "<TrustList>" + trustList + "</TrustList>"
+			+ "</Identity>"
+			+ "</" + WebOfTrustInterface.WOT_NAME + ">";
+		
+		return mTransformer.parseIdentityXML(identity.getRequestURI().setSuggestedEdition(edition),
+			new ByteArrayInputStream(xml.getBytes("UTF-8")));
+	}
+	
+	private String getTrustXML(FreenetURI trusteeURI, int value) {
+		return "<Trust Identity=\"" + trusteeURI + "\" Value=\"" + value + "\" Comment=\"\"/>";
+	}
+
 	public void testExportIntroduction() throws MalformedURLException, InvalidParameterException, TransformerException {
 		ByteArrayOutputStream os = new ByteArrayOutputStream();
 		mTransformer.exportIntroduction(mOwnIdentity, os);